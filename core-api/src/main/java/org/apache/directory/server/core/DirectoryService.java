@@ -440,6 +440,23 @@ public interface DirectoryService extends ServerEntryFactory
      * null value will be transformed to {@link Integer#MAX_VALUE}
      */
     void setMaxPDUSize( int maxPDUSize );
+
+
+    /**
+     * @return the number of threads reading the partitions concurrently when
+     * a search spans several naming contexts, 0 if they are read one after
+     * the other
+     */
+    int getSearchThreads();
+
+
+    /**
+     * Sets the number of threads reading the partitions concurrently when a
+     * search is based on the RootDSE and spans several naming contexts.
+     * @param searchThreads the number of threads, 0 to read the partitions
+     * one after the other, which is the default
+     */
+    void setSearchThreads( int searchThreads );
     
     
     /**
@@ -81,4 +81,11 @@ public interface DirectoryListener
      * @param moveAndRenameContext the move/rename operation context responsible for the change
      */
     void entryMovedAndRenamed( MoveAndRenameOperationContext moveAndRenameContext );
+    
+    
+    /**
+     * Called when the listener has been removed because too many changes 
+     * were waiting to be delivered to it : it receives no more change.
+     */
+    void listenerDisconnected();
 }
@@ -48,6 +48,7 @@ public class NotificationCriteria
     private DN base = DEFAULT_BASE;
     private ExprNode filter = DEFAULT_FILTER;
     private int eventMask = EventType.ALL_EVENT_TYPES_MASK;
+    private boolean coalesceModifies;
     
     
     public NotificationCriteria()
@@ -179,4 +180,24 @@ public class NotificationCriteria
     {
         return eventMask;
     }
+
+
+    /**
+     * @param coalesceModifies tells if successive modifications of an entry, 
+     * waiting to be delivered, can be delivered as the last one only
+     */
+    public void setCoalesceModifies( boolean coalesceModifies )
+    {
+        this.coalesceModifies = coalesceModifies;
+    }
+
+
+    /**
+     * @return true if successive modifications of an entry, waiting to be 
+     * delivered, can be delivered as the last one only
+     */
+    public boolean isCoalesceModifies()
+    {
+        return coalesceModifies;
+    }
 }
@@ -386,7 +386,7 @@ public class BaseEntryFilteringCursor implements EntryFilteringCursor
         {
             for ( AttributeType at : entry.getOriginalEntry().getAttributeTypes() )
             {
-                entry.remove( entry.get( at ) );
+                entry.removeAttributes( at );
             }
             
             return;
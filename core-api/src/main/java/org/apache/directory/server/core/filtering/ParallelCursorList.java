@@ -0,0 +1,653 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.directory.server.core.filtering;
+
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.directory.server.core.entry.ClonedServerEntry;
+import org.apache.directory.server.core.interceptor.context.SearchingOperationContext;
+import org.apache.directory.shared.i18n.I18n;
+import org.apache.directory.shared.ldap.cursor.ClosureMonitor;
+import org.apache.directory.shared.ldap.cursor.CursorIterator;
+import org.apache.directory.shared.ldap.cursor.InvalidCursorPositionException;
+import org.apache.directory.shared.ldap.exception.OperationAbandonedException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * A Cursor over the entries of a {@link List} of {@link EntryFilteringCursor}s
+ * read concurrently : each Cursor, typically the result of the search of one
+ * partition, is read by a task run by an {@link Executor}, and its entries are
+ * returned as soon as they are available. The order of the entries of each
+ * Cursor is kept, but the entries of the different Cursors are interleaved.
+ * <p>
+ * The tasks are started by the first move of the Cursor, so the filters must
+ * be added before. Each task reads ahead a bounded number of entries, and
+ * then gives back its thread until the entries are consumed. The tasks stop
+ * once one more entry than the size limit of the search has been read, when
+ * the search is abandoned or when the Cursor is closed, and the {@link ClosureMonitor}
+ * enforcing the time limit is checked while waiting for the entries.
+ * <p>
+ * This Cursor only moves forward, except for the single step back done by
+ * the search handler once it has checked whether another entry is available.
+ *
+ * WARN this is only used internally
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class ParallelCursorList implements EntryFilteringCursor
+{
+    private static final Logger LOG = LoggerFactory.getLogger( ParallelCursorList.class );
+
+    /** The number of entries read ahead by the tasks */
+    private static final int READ_AHEAD = 256;
+
+    /** The time, in milliseconds, waited for an entry before checking the closure of the search */
+    private static final long POLL_TIMEOUT = 100;
+
+    /** The element queued once a Cursor has been read */
+    private static final Object END = new Object();
+
+    /** The inner List */
+    private final List<EntryFilteringCursor> list;
+
+    /** the operation context */
+    private final SearchingOperationContext searchContext;
+
+    /** The executor running the tasks reading the Cursors */
+    private final Executor executor;
+
+    /** The entries read, the end markers and the failures of the tasks */
+    private final BlockingQueue<Object> queue = new LinkedBlockingQueue<Object>();
+
+    /** The tasks waiting for entries to be consumed */
+    private final Queue<Branch> parked = new ConcurrentLinkedQueue<Branch>();
+
+    /** The number of entries read by all the tasks */
+    private final AtomicLong read = new AtomicLong();
+
+    /** The number of entries the tasks can read, one more than the size limit */
+    private final long readLimit;
+
+    /** Tells the tasks to stop */
+    private volatile boolean stopped;
+
+    /** The monitor checked while waiting for the entries */
+    private ClosureMonitor monitor;
+
+    /** The number of tasks which are still reading */
+    private int running;
+
+    /** flag to detect the started tasks */
+    private boolean started;
+
+    /** The current entry, the one returned before and the one to return again */
+    private ClonedServerEntry current;
+    private ClonedServerEntry previous;
+    private ClonedServerEntry pushedBack;
+
+    /** flag to detect the end of the entries */
+    private boolean afterLast;
+
+    /** flag to detect the closed cursor */
+    private boolean closed;
+
+
+    /**
+     * Creates a new ParallelCursorList.
+     *
+     * @param list the Cursors to read
+     * @param searchContext the operation context of the search
+     * @param executor the executor running the tasks reading the Cursors
+     */
+    public ParallelCursorList( List<EntryFilteringCursor> list, SearchingOperationContext searchContext,
+        Executor executor )
+    {
+        this.list = list;
+        this.searchContext = searchContext;
+        this.executor = executor;
+
+        long sizeLimit = searchContext.getSizeLimit();
+        readLimit = ( sizeLimit > 0 ) ? sizeLimit + 1 : Long.MAX_VALUE;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean available()
+    {
+        return current != null;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void before( ClonedServerEntry element ) throws Exception
+    {
+        throw new UnsupportedOperationException( I18n.err( I18n.ERR_02014_UNSUPPORTED_OPERATION, getClass().getName()
+            .concat( "." ).concat( "before()" ) ) );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void after( ClonedServerEntry element ) throws Exception
+    {
+        throw new UnsupportedOperationException( I18n.err( I18n.ERR_02014_UNSUPPORTED_OPERATION, getClass().getName()
+            .concat( "." ).concat( "after()" ) ) );
+    }
+
+
+    /**
+     * Does nothing if no entry has been read yet, as the Cursor is already
+     * positioned before the first entry.
+     */
+    public void beforeFirst() throws Exception
+    {
+        if ( started )
+        {
+            throw new UnsupportedOperationException( I18n.err( I18n.ERR_02014_UNSUPPORTED_OPERATION, getClass()
+                .getName().concat( "." ).concat( "beforeFirst()" ) ) );
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void afterLast() throws Exception
+    {
+        throw new UnsupportedOperationException( I18n.err( I18n.ERR_02014_UNSUPPORTED_OPERATION, getClass().getName()
+            .concat( "." ).concat( "afterLast()" ) ) );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean first() throws Exception
+    {
+        throw new UnsupportedOperationException( I18n.err( I18n.ERR_02014_UNSUPPORTED_OPERATION, getClass().getName()
+            .concat( "." ).concat( "first()" ) ) );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean last() throws Exception
+    {
+        throw new UnsupportedOperationException( I18n.err( I18n.ERR_02014_UNSUPPORTED_OPERATION, getClass().getName()
+            .concat( "." ).concat( "last()" ) ) );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean isFirst() throws Exception
+    {
+        throw new UnsupportedOperationException( I18n.err( I18n.ERR_02014_UNSUPPORTED_OPERATION, getClass().getName()
+            .concat( "." ).concat( "isFirst()" ) ) );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean isLast() throws Exception
+    {
+        throw new UnsupportedOperationException( I18n.err( I18n.ERR_02014_UNSUPPORTED_OPERATION, getClass().getName()
+            .concat( "." ).concat( "isLast()" ) ) );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean isAfterLast() throws Exception
+    {
+        return afterLast;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean isBeforeFirst() throws Exception
+    {
+        return !afterLast && ( current == null );
+    }
+
+
+    /**
+     * Moves back to the previous entry. The entries are not kept once read,
+     * so the Cursor can only move back one entry after each move forward.
+     */
+    public boolean previous() throws Exception
+    {
+        if ( pushedBack != null )
+        {
+            throw new UnsupportedOperationException( I18n.err( I18n.ERR_02014_UNSUPPORTED_OPERATION, getClass()
+                .getName().concat( "." ).concat( "previous()" ) ) );
+        }
+
+        if ( afterLast )
+        {
+            afterLast = false;
+            current = previous;
+        }
+        else if ( current != null )
+        {
+            pushedBack = current;
+            current = previous;
+        }
+
+        previous = null;
+
+        return current != null;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean next() throws Exception
+    {
+        if ( pushedBack != null )
+        {
+            previous = current;
+            current = pushedBack;
+            pushedBack = null;
+
+            return true;
+        }
+
+        if ( !started )
+        {
+            start();
+        }
+
+        while ( running > 0 )
+        {
+            checkNotClosed();
+            resumeBranches();
+
+            Object element = queue.poll( POLL_TIMEOUT, TimeUnit.MILLISECONDS );
+
+            if ( element == null )
+            {
+                continue;
+            }
+            else if ( element == END )
+            {
+                running--;
+            }
+            else if ( element instanceof Exception )
+            {
+                close( ( Exception ) element );
+
+                throw ( Exception ) element;
+            }
+            else
+            {
+                previous = current;
+                current = ( ClonedServerEntry ) element;
+
+                return true;
+            }
+        }
+
+        if ( current != null )
+        {
+            previous = current;
+        }
+
+        current = null;
+        afterLast = true;
+
+        return false;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public ClonedServerEntry get() throws Exception
+    {
+        if ( current == null )
+        {
+            throw new InvalidCursorPositionException();
+        }
+
+        return current;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean isElementReused()
+    {
+        return false;
+    }
+
+
+    public boolean addEntryFilter( EntryFilter filter )
+    {
+        for ( EntryFilteringCursor efc : list )
+        {
+            efc.addEntryFilter( filter );
+        }
+
+        // returning hard coded value, shouldn't be a problem
+        return true;
+    }
+
+
+    public List<EntryFilter> getEntryFilters()
+    {
+        throw new UnsupportedOperationException( I18n.err( I18n.ERR_02014_UNSUPPORTED_OPERATION, getClass().getName()
+            .concat( "." ).concat( "getEntryFilters()" ) ) );
+    }
+
+
+    public SearchingOperationContext getOperationContext()
+    {
+        return searchContext;
+    }
+
+
+    public boolean isAbandoned()
+    {
+        return getOperationContext().isAbandoned();
+    }
+
+
+    public boolean removeEntryFilter( EntryFilter filter )
+    {
+        return false;
+    }
+
+
+    public void setAbandoned( boolean abandoned )
+    {
+        getOperationContext().setAbandoned( abandoned );
+
+        if ( abandoned )
+        {
+            LOG.info( "Cursor has been abandoned." );
+        }
+    }
+
+
+    public void close() throws Exception
+    {
+        close( null );
+    }
+
+
+    /**
+     * Stops the tasks, which close their Cursor. The Cursors of the tasks
+     * which are not running are closed by the calling thread.
+     */
+    public void close( Exception reason ) throws Exception
+    {
+        closed = true;
+        stopped = true;
+
+        if ( !started )
+        {
+            started = true;
+
+            for ( EntryFilteringCursor cursor : list )
+            {
+                closeCursor( cursor, reason );
+            }
+        }
+
+        Branch branch;
+
+        while ( ( branch = parked.poll() ) != null )
+        {
+            branch.finish( reason );
+        }
+
+        queue.clear();
+        running = 0;
+        current = null;
+        previous = null;
+        pushedBack = null;
+    }
+
+
+    public boolean isClosed() throws Exception
+    {
+        return closed;
+    }
+
+
+    public Iterator<ClonedServerEntry> iterator()
+    {
+        return new CursorIterator<ClonedServerEntry>( this );
+    }
+
+
+    public void setClosureMonitor( ClosureMonitor monitor )
+    {
+        this.monitor = monitor;
+
+        for ( EntryFilteringCursor cursor : list )
+        {
+            cursor.setClosureMonitor( monitor );
+        }
+    }
+
+
+    /**
+     * Starts a task per Cursor.
+     */
+    private void start()
+    {
+        started = true;
+        running = list.size();
+
+        for ( EntryFilteringCursor cursor : list )
+        {
+            schedule( new Branch( cursor ) );
+        }
+    }
+
+
+    /**
+     * Checks that the search has not been abandoned, and that the time limit
+     * has not been reached.
+     */
+    private void checkNotClosed() throws Exception
+    {
+        if ( getOperationContext().isAbandoned() )
+        {
+            LOG.info( "Cursor has been abandoned." );
+            close();
+            throw new OperationAbandonedException();
+        }
+
+        if ( monitor != null )
+        {
+            try
+            {
+                monitor.checkNotClosed();
+            }
+            catch ( Exception e )
+            {
+                close( e );
+                throw e;
+            }
+        }
+    }
+
+
+    /**
+     * Runs again the tasks waiting for the entries to be consumed, as long
+     * as there is room for their entries.
+     */
+    private void resumeBranches()
+    {
+        while ( queue.size() < READ_AHEAD )
+        {
+            Branch branch = parked.poll();
+
+            if ( branch == null )
+            {
+                return;
+            }
+
+            schedule( branch );
+        }
+    }
+
+
+    private void schedule( Branch branch )
+    {
+        try
+        {
+            executor.execute( branch );
+        }
+        catch ( RejectedExecutionException ree )
+        {
+            branch.finish( ree );
+        }
+    }
+
+
+    private static void closeCursor( EntryFilteringCursor cursor, Exception reason )
+    {
+        try
+        {
+            if ( reason != null )
+            {
+                cursor.close( reason );
+            }
+            else
+            {
+                cursor.close();
+            }
+        }
+        catch ( Exception e )
+        {
+            LOG.warn( "Failed to close the cursor" );
+        }
+    }
+
+
+    /**
+     * The task reading one of the Cursors. It is never run by two threads at
+     * the same time, as it is only scheduled again once it has been parked.
+     */
+    private class Branch implements Runnable
+    {
+        /** The Cursor read */
+        private final EntryFilteringCursor cursor;
+
+        /** The entry read but not queued yet */
+        private ClonedServerEntry pending;
+
+
+        private Branch( EntryFilteringCursor cursor )
+        {
+            this.cursor = cursor;
+        }
+
+
+        public void run()
+        {
+            try
+            {
+                while ( !stopped )
+                {
+                    if ( pending == null )
+                    {
+                        if ( !cursor.next() || ( read.incrementAndGet() > readLimit ) )
+                        {
+                            break;
+                        }
+
+                        pending = cursor.get();
+                    }
+
+                    if ( queue.size() >= READ_AHEAD )
+                    {
+                        park();
+                        return;
+                    }
+
+                    queue.add( pending );
+                    pending = null;
+                }
+
+                finish( null );
+            }
+            catch ( Exception e )
+            {
+                finish( e );
+            }
+        }
+
+
+        /**
+         * Gives back the thread until the entries are consumed.
+         */
+        private void park()
+        {
+            parked.add( this );
+
+            // The entries may have been consumed, or the Cursor closed,
+            // before this task was parked
+            if ( ( stopped || ( queue.size() < READ_AHEAD ) ) && parked.remove( this ) )
+            {
+                schedule( this );
+            }
+        }
+
+
+        /**
+         * Closes the Cursor, and tells the reader that this task is done.
+         */
+        private void finish( Exception failure )
+        {
+            pending = null;
+            closeCursor( cursor, failure );
+            queue.add( ( failure == null ) ? END : failure );
+        }
+    }
+}
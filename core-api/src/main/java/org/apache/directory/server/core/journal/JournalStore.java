@@ -98,8 +98,8 @@ public interface JournalStore
     
     
     /**
-     * The file name to use as the journal file. Default to 
-     * 'journal.ldif'
+     * The file name to use as the journal file, or as the prefix of the 
+     * journal segment files. Default to 'journal'
      * @param fileName the fileName to set
      */
     void setFileName( String fileName );
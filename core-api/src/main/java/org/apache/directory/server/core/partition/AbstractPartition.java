@@ -27,6 +27,7 @@ import org.apache.directory.server.core.interceptor.context.EntryOperationContex
 import org.apache.directory.server.core.interceptor.context.LookupOperationContext;
 import org.apache.directory.shared.ldap.exception.LdapException;
 import org.apache.directory.shared.ldap.exception.LdapOtherException;
+import org.apache.directory.shared.ldap.name.DN;
 
 
 /**
@@ -156,4 +157,20 @@ public abstract class AbstractPartition implements Partition
      * this method if there is more effective way for your implementation.
      */
     public abstract ClonedServerEntry lookup( LookupOperationContext lookupContext ) throws LdapException;
+
+
+    /**
+     * Gives the number of immediate subordinates of an entry, when this
+     * partition keeps it up to date.  This method returns <tt>-1</tt> by
+     * default.  Please override this method if your implementation counts
+     * the children of its entries.
+     *
+     * @param dn the normalized DN of the entry
+     * @return the number of children of the entry, or <tt>-1</tt> if it is not known
+     * @throws LdapException if the entry can't be read
+     */
+    public int getChildCount( DN dn ) throws LdapException
+    {
+        return -1;
+    }
 }
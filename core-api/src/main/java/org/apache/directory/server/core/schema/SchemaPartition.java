@@ -439,6 +439,21 @@ public final class SchemaPartition extends AbstractPartition
     }
 
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getChildCount( DN dn ) throws LdapException
+    {
+        if ( wrapped instanceof AbstractPartition )
+        {
+            return ( ( AbstractPartition ) wrapped ).getChildCount( dn );
+        }
+
+        return -1;
+    }
+
+
     /**
      * Updates the schemaModifiersName and schemaModifyTimestamp attributes of
      * the schemaModificationAttributes entry for the global schema at 
@@ -421,6 +421,18 @@ public class MockDirectoryService implements DirectoryService
         // Do nothing
     }
 
+
+    public int getSearchThreads()
+    {
+        return 0;
+    }
+
+
+    public void setSearchThreads( int searchThreads )
+    {
+        // Do nothing
+    }
+
     
     public Interceptor getInterceptor( String interceptorName )
     {
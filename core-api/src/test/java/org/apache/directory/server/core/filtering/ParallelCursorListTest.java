@@ -0,0 +1,277 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.directory.server.core.filtering;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.directory.server.core.LdapPrincipal;
+import org.apache.directory.server.core.MockCoreSession;
+import org.apache.directory.server.core.MockDirectoryService;
+import org.apache.directory.server.core.entry.ClonedServerEntry;
+import org.apache.directory.server.core.interceptor.context.SearchOperationContext;
+import org.apache.directory.shared.ldap.constants.AuthenticationLevel;
+import org.apache.directory.shared.ldap.cursor.ListCursor;
+import org.apache.directory.shared.ldap.entry.DefaultEntry;
+import org.apache.directory.shared.ldap.entry.Entry;
+import org.apache.directory.shared.ldap.exception.OperationAbandonedException;
+import org.apache.directory.shared.ldap.name.DN;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * Tests the {@link ParallelCursorList} class.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class ParallelCursorListTest
+{
+    private ExecutorService executor;
+
+    private SearchOperationContext searchContext;
+
+
+    /**
+     * A Cursor over entries named after a prefix, counting the entries read,
+     * which can wait for a gate to open before reading its first entry.
+     */
+    private static class EntryCursor extends ListCursor<Entry>
+    {
+        private final CountDownLatch gate;
+
+        private final AtomicInteger read = new AtomicInteger();
+
+
+        private EntryCursor( String prefix, int count, CountDownLatch gate ) throws Exception
+        {
+            super( createEntries( prefix, count ) );
+            this.gate = gate;
+        }
+
+
+        public boolean next() throws Exception
+        {
+            if ( gate != null )
+            {
+                gate.await();
+            }
+
+            read.incrementAndGet();
+
+            return super.next();
+        }
+    }
+
+
+    private static List<Entry> createEntries( String prefix, int count ) throws Exception
+    {
+        List<Entry> entries = new ArrayList<Entry>();
+
+        for ( int i = 0; i < count; i++ )
+        {
+            entries.add( new ClonedServerEntry( new DefaultEntry( new DN( "cn=" + prefix + i ) ) ) );
+        }
+
+        return entries;
+    }
+
+
+    @Before
+    public void setUp() throws Exception
+    {
+        executor = Executors.newCachedThreadPool();
+        searchContext = new SearchOperationContext( new MockCoreSession( new LdapPrincipal( new DN(
+            "uid=admin,ou=system" ), AuthenticationLevel.STRONG ), new MockDirectoryService() ) );
+    }
+
+
+    @After
+    public void tearDown() throws Exception
+    {
+        executor.shutdownNow();
+        executor.awaitTermination( 10, TimeUnit.SECONDS );
+    }
+
+
+    private ParallelCursorList createCursor( EntryCursor... cursors )
+    {
+        List<EntryFilteringCursor> list = new ArrayList<EntryFilteringCursor>();
+
+        for ( EntryCursor cursor : cursors )
+        {
+            list.add( new BaseEntryFilteringCursor( cursor, searchContext ) );
+        }
+
+        return new ParallelCursorList( list, searchContext, executor );
+    }
+
+
+    private static String getName( ParallelCursorList cursor ) throws Exception
+    {
+        return cursor.get().getDn().getName();
+    }
+
+
+    @Test
+    public void testInterleaving() throws Exception
+    {
+        // The second Cursor is only read once the entries of the first one are returned
+        CountDownLatch gate = new CountDownLatch( 1 );
+        ParallelCursorList cursor = createCursor( new EntryCursor( "a", 10, null ), new EntryCursor( "b", 10, gate ) );
+        int a = 0;
+        int b = 0;
+
+        for ( int i = 0; i < 10; i++ )
+        {
+            assertTrue( cursor.next() );
+            assertEquals( "cn=a" + a++, getName( cursor ) );
+        }
+
+        gate.countDown();
+
+        while ( cursor.next() )
+        {
+            // The entries of each Cursor are returned in their order
+            assertEquals( "cn=b" + b++, getName( cursor ) );
+        }
+
+        assertEquals( 10, b );
+        assertTrue( cursor.isAfterLast() );
+        cursor.close();
+    }
+
+
+    @Test
+    public void testSizeLimit() throws Exception
+    {
+        searchContext.setSizeLimit( 5 );
+        ParallelCursorList cursor = createCursor( new EntryCursor( "a", 10, null ), new EntryCursor( "b", 10, null ),
+            new EntryCursor( "c", 10, null ) );
+        int count = 0;
+
+        while ( cursor.next() )
+        {
+            count++;
+        }
+
+        // One more entry than the limit is read, to tell that the limit is exceeded
+        assertEquals( 6, count );
+        cursor.close();
+    }
+
+
+    @Test
+    public void testAbandon() throws Exception
+    {
+        EntryCursor entries = new EntryCursor( "a", 1000, null );
+        ParallelCursorList cursor = createCursor( entries );
+
+        assertTrue( cursor.next() );
+        cursor.setAbandoned( true );
+
+        try
+        {
+            cursor.next();
+            fail();
+        }
+        catch ( OperationAbandonedException oae )
+        {
+            assertTrue( cursor.isClosed() );
+        }
+    }
+
+
+    @Test
+    public void testCloseWhileParked() throws Exception
+    {
+        EntryCursor entries = new EntryCursor( "a", 1000, null );
+        ParallelCursorList cursor = createCursor( entries );
+
+        assertTrue( cursor.next() );
+
+        // The task stops reading once it has read ahead, and gives back its thread
+        long deadline = System.currentTimeMillis() + 10000;
+        int read = -1;
+
+        while ( ( read != entries.read.get() ) && ( System.currentTimeMillis() < deadline ) )
+        {
+            read = entries.read.get();
+            Thread.sleep( 100 );
+        }
+
+        assertTrue( read < 1000 );
+        assertFalse( entries.isClosed() );
+
+        // The Cursor of the parked task is closed by the closing thread
+        cursor.close();
+        assertTrue( entries.isClosed() );
+        assertEquals( read, entries.read.get() );
+    }
+
+
+    @Test
+    public void testPrevious() throws Exception
+    {
+        ParallelCursorList cursor = createCursor( new EntryCursor( "a", 3, null ) );
+
+        assertTrue( cursor.next() );
+        assertTrue( cursor.next() );
+        assertEquals( "cn=a1", getName( cursor ) );
+
+        // A single step back, the search handler checking for another entry
+        assertTrue( cursor.previous() );
+        assertEquals( "cn=a0", getName( cursor ) );
+
+        try
+        {
+            cursor.previous();
+            fail();
+        }
+        catch ( UnsupportedOperationException uoe )
+        {
+            // Expected
+        }
+
+        assertTrue( cursor.next() );
+        assertEquals( "cn=a1", getName( cursor ) );
+        assertTrue( cursor.next() );
+        assertEquals( "cn=a2", getName( cursor ) );
+
+        // Stepping back from the end returns the last entry again
+        assertFalse( cursor.next() );
+        assertTrue( cursor.previous() );
+        assertEquals( "cn=a2", getName( cursor ) );
+        assertFalse( cursor.next() );
+
+        cursor.close();
+    }
+}
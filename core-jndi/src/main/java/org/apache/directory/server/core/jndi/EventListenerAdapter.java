@@ -246,4 +246,13 @@ public class EventListenerAdapter implements DirectoryListener
             deliverNamingExceptionEvent( e );
         }
     }
+
+
+    /**
+     * Tells the listener it receives no more event.
+     */
+    public void listenerDisconnected()
+    {
+        deliverNamingExceptionEvent( new NamingException( I18n.err( I18n.ERR_755 ) ) );
+    }
 }
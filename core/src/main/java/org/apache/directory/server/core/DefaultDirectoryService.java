@@ -229,6 +229,9 @@ public class DefaultDirectoryService implements DirectoryService
     /** The maximum size for an incoming PDU */
     private int maxPDUSize = Integer.MAX_VALUE;
 
+    /** The number of threads reading the partitions of a search spanning several naming contexts */
+    private int searchThreads;
+
     /** the value of last successful add/update operation's CSN */
     private String contextCsn;
     
@@ -1413,6 +1416,7 @@ public class DefaultDirectoryService implements DirectoryService
         // @TODO - NOTE: Need to find a way to instantiate without dependency on DPN
         partitionNexus = new DefaultPartitionNexus( new DefaultEntry( schemaManager, DN.EMPTY_DN ) );
         partitionNexus.setDirectoryService( this );
+        partitionNexus.setSearchThreads( searchThreads );
         partitionNexus.initialize( );
 
         // --------------------------------------------------------------------
@@ -1604,6 +1608,29 @@ public class DefaultDirectoryService implements DirectoryService
         
         this.maxPDUSize = maxPDUSize;
     }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public int getSearchThreads()
+    {
+        return searchThreads;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void setSearchThreads( int searchThreads )
+    {
+        this.searchThreads = Math.max( searchThreads, 0 );
+
+        if ( partitionNexus != null )
+        {
+            partitionNexus.setSearchThreads( this.searchThreads );
+        }
+    }
     
     
     /**
@@ -20,14 +20,17 @@
 package org.apache.directory.server.core.authz;
 
 
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.naming.directory.SearchControls;
 
+import org.apache.commons.collections.map.LRUMap;
 import org.apache.directory.server.constants.ServerDNConstants;
 import org.apache.directory.server.core.CoreSession;
 import org.apache.directory.server.core.filtering.EntryFilteringCursor;
@@ -57,6 +60,14 @@ import org.slf4j.LoggerFactory;
 
 /**
  * A cache for tracking static group membership.
+ * <p>
+ * The members of each group are indexed the other way around too, giving
+ * the groups having a member, so that the groups of a user are found
+ * without going through all the groups. The groups of a user include the
+ * groups having one of its groups as a member, and are kept for the users
+ * recently looked up, until a group changes. The members of the groups are
+ * read without locking, while their changes, made by the interceptor, are
+ * serialized.
  *
  * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
  */
@@ -68,8 +79,20 @@ public class GroupCache
     /** Speedup for logs */
     private static final boolean IS_DEBUG = LOG.isDebugEnabled();
 
-    /** String key for the DN of a group to a Set (HashSet) for the Strings of member DNs */
-    private final Map<String, Set<String>> groups = new HashMap<String, Set<String>>();
+    /** String key for the DN of a group to a Set for the Strings of member DNs */
+    private final Map<String, Set<String>> groups = new ConcurrentHashMap<String, Set<String>>();
+
+    /** String key for the DN of a member to a Set for the Strings of the DNs of the groups it is directly in */
+    private final Map<String, Set<String>> memberGroups = new ConcurrentHashMap<String, Set<String>>();
+
+    /** The number of members whose resolved groups are kept */
+    private static final int RESOLVED_GROUPS_CACHE_SIZE = 1000;
+
+    /** String key for the DN of a recently used member to the Set of all its groups, including the nested ones */
+    private final LRUMap resolvedGroups = new LRUMap( RESOLVED_GROUPS_CACHE_SIZE );
+
+    /** the number of changes of the groups, to discard the groups resolved while they change */
+    private long version;
 
     /** a handle on the partition nexus */
     private final PartitionNexus nexus;
@@ -88,7 +111,7 @@ public class GroupCache
     /** the normalized dn of the administrators group */
     private DN administratorsGroupDn;
 
-    private static final Set<DN> EMPTY_GROUPS = new HashSet<DN>();
+    private static final Set<DN> EMPTY_GROUPS = Collections.emptySet();
 
 
     /**
@@ -120,7 +143,7 @@ public class GroupCache
     }
 
 
-    private void initialize( CoreSession session ) throws LdapException
+    private synchronized void initialize( CoreSession session ) throws LdapException
     {
         // search all naming contexts for static groups and generate
         // normalized sets of members to cache within the map
@@ -157,9 +180,9 @@ public class GroupCache
     
                     if ( members != null )
                     {
-                        Set<String> memberSet = new HashSet<String>( members.size() );
-                        addMembers( memberSet, members );
-                        groups.put( groupDn.getNormName(), memberSet );
+                        String group = groupDn.getNormName();
+                        groups.put( group, newMemberSet() );
+                        addMembers( group, members );
                     }
                     else
                     {
@@ -228,58 +251,147 @@ public class GroupCache
 
 
     /**
-     * Adds normalized member DNs to the set of normalized member names.
+     * @return a new set of members, read without locking
+     */
+    private static Set<String> newMemberSet()
+    {
+        return Collections.newSetFromMap( new ConcurrentHashMap<String, Boolean>() );
+    }
+
+
+    /**
+     * Normalizes the DN of a member.
+     *
+     * @param value the member attribute value
+     * @param message the warning logged if the value is not a DN
+     * @return the normalized DN of the member, or the value itself if it is not a DN
+     */
+    private String normalizeMember( Value<?> value, String message )
+    {
+        // get and normalize the DN of the member
+        String memberDn = value.getString();
+
+        try
+        {
+            memberDn = parseNormalized( memberDn ).getNormName();
+        }
+        catch ( LdapException e )
+        {
+            LOG.warn( message, e );
+        }
+
+        return memberDn;
+    }
+
+
+    /**
+     * Adds normalized member DNs to the set of normalized member names of a
+     * group, and the group to the groups of the members.
      *
-     * @param memberSet the set of member Dns (Strings)
+     * @param group the normalized DN of the group
      * @param members the member attribute values being added
      * @throws LdapException if there are problems accessing the attr values
      */
-    private void addMembers( Set<String> memberSet, EntryAttribute members ) throws LdapException
+    private void addMembers( String group, EntryAttribute members ) throws LdapException
     {
+        Set<String> memberSet = groups.get( group );
+
         for ( Value<?> value : members )
         {
-
-            // get and normalize the DN of the member
-            String memberDn = value.getString();
-
-            try
-            {
-                memberDn = parseNormalized( memberDn ).getNormName();
-            }
-            catch ( LdapException e )
-            {
-                LOG.warn( "Malformed member DN in groupOf[Unique]Names entry.  Member not added to GroupCache.", e );
-            }
+            String memberDn = normalizeMember( value,
+                "Malformed member DN in groupOf[Unique]Names entry.  Member not added to GroupCache." );
 
             memberSet.add( memberDn );
+            addMemberGroup( memberDn, group );
         }
+
+        changed();
     }
 
 
     /**
-     * Removes a set of member names from an existing set.
+     * Removes a set of member names from the existing set of a group, and
+     * the group from the groups of the members.
      *
-     * @param memberSet the set of normalized member DNs
+     * @param group the normalized DN of the group
      * @param members the set of member values
      * @throws LdapException if there are problems accessing the attr values
      */
-    private void removeMembers( Set<String> memberSet, EntryAttribute members ) throws LdapException
+    private void removeMembers( String group, EntryAttribute members ) throws LdapException
     {
+        Set<String> memberSet = groups.get( group );
+
         for ( Value<?> value : members )
         {
-            // get and normalize the DN of the member
-            String memberDn = value.getString();
+            String memberDn = normalizeMember( value,
+                "Malformed member DN in groupOf[Unique]Names entry.  Member not removed from GroupCache." );
 
-            try
-            {
-                memberDn = parseNormalized( memberDn ).getNormName();
-            }
-            catch ( LdapException e )
+            memberSet.remove( memberDn );
+            removeMemberGroup( memberDn, group );
+        }
+
+        changed();
+    }
+
+
+    /**
+     * Removes all the members of a group.
+     *
+     * @param group the normalized DN of the group
+     */
+    private void clearMembers( String group )
+    {
+        Set<String> memberSet = groups.get( group );
+
+        for ( String memberDn : memberSet )
+        {
+            removeMemberGroup( memberDn, group );
+        }
+
+        memberSet.clear();
+        changed();
+    }
+
+
+    private void addMemberGroup( String memberDn, String group )
+    {
+        Set<String> groupSet = memberGroups.get( memberDn );
+
+        if ( groupSet == null )
+        {
+            groupSet = newMemberSet();
+            memberGroups.put( memberDn, groupSet );
+        }
+
+        groupSet.add( group );
+    }
+
+
+    private void removeMemberGroup( String memberDn, String group )
+    {
+        Set<String> groupSet = memberGroups.get( memberDn );
+
+        if ( groupSet != null )
+        {
+            groupSet.remove( group );
+
+            if ( groupSet.isEmpty() )
             {
-                LOG.warn( "Malformed member DN in groupOf[Unique]Names entry.  Member not removed from GroupCache.", e );
+                memberGroups.remove( memberDn );
             }
+        }
+    }
 
-            memberSet.remove( memberDn );
+
+    /**
+     * Discards the groups resolved before a change of the groups.
+     */
+    private void changed()
+    {
+        synchronized ( resolvedGroups )
+        {
+            version++;
+            resolvedGroups.clear();
         }
     }
 
@@ -292,7 +404,7 @@ public class GroupCache
      * @param entry the group entry's attributes
      * @throws LdapException if there are problems accessing the attr values
      */
-    public void groupAdded( DN name, Entry entry ) throws LdapException
+    public synchronized void groupAdded( DN name, Entry entry ) throws LdapException
     {
         EntryAttribute members = getMemberAttribute( entry );
 
@@ -301,9 +413,18 @@ public class GroupCache
             return;
         }
 
-        Set<String> memberSet = new HashSet<String>( members.size() );
-        addMembers( memberSet, members );
-        groups.put( name.getNormName(), memberSet );
+        String group = name.getNormName();
+
+        if ( groups.containsKey( group ) )
+        {
+            clearMembers( group );
+        }
+        else
+        {
+            groups.put( group, newMemberSet() );
+        }
+
+        addMembers( group, members );
 
         if ( IS_DEBUG )
         {
@@ -319,7 +440,7 @@ public class GroupCache
      * @param name the normalized DN of the group entry
      * @param entry the attributes of entry being deleted
      */
-    public void groupDeleted( DN name, Entry entry ) throws LdapException
+    public synchronized void groupDeleted( DN name, Entry entry ) throws LdapException
     {
         EntryAttribute members = getMemberAttribute( entry );
 
@@ -328,7 +449,13 @@ public class GroupCache
             return;
         }
 
-        groups.remove( name.getNormName() );
+        String group = name.getNormName();
+
+        if ( groups.containsKey( group ) )
+        {
+            clearMembers( group );
+            groups.remove( group );
+        }
 
         if ( IS_DEBUG )
         {
@@ -338,35 +465,35 @@ public class GroupCache
 
 
     /**
-     * Utility method to modify a set of member names based on a modify operation
-     * that changes the members of a group.
+     * Utility method to modify the set of member names of a group based on a
+     * modify operation that changes the members of a group.
      *
-     * @param memberSet the set of members to be altered
+     * @param group the normalized DN of the group to be altered
      * @param modOp the type of modify operation being performed
      * @param members the members being added, removed or replaced
      * @throws LdapException if there are problems accessing attribute values
      */
-    private void modify( Set<String> memberSet, ModificationOperation modOp, EntryAttribute members )
+    private void modify( String group, ModificationOperation modOp, EntryAttribute members )
         throws LdapException
     {
 
         switch ( modOp )
         {
             case ADD_ATTRIBUTE:
-                addMembers( memberSet, members );
+                addMembers( group, members );
                 break;
 
             case REPLACE_ATTRIBUTE:
                 if ( members.size() > 0 )
                 {
-                    memberSet.clear();
-                    addMembers( memberSet, members );
+                    clearMembers( group );
+                    addMembers( group, members );
                 }
 
                 break;
 
             case REMOVE_ATTRIBUTE:
-                removeMembers( memberSet, members );
+                removeMembers( group, members );
                 break;
 
             default:
@@ -384,7 +511,7 @@ public class GroupCache
      * @param entry the group entry being modified
      * @throws LdapException if there are problems accessing attribute  values
      */
-    public void groupModified( DN name, List<Modification> mods, Entry entry, SchemaManager schemaManager )
+    public synchronized void groupModified( DN name, List<Modification> mods, Entry entry, SchemaManager schemaManager )
         throws LdapException
     {
         EntryAttribute members = null;
@@ -412,11 +539,9 @@ public class GroupCache
         {
             if ( memberAttrId.equalsIgnoreCase( modification.getAttribute().getId() ) )
             {
-                Set<String> memberSet = groups.get( name.getNormName() );
-
-                if ( memberSet != null )
+                if ( groups.containsKey( name.getNormName() ) )
                 {
-                    modify( memberSet, modification.getOperation(), modification.getAttribute() );
+                    modify( name.getNormName(), modification.getOperation(), modification.getAttribute() );
                 }
 
                 break;
@@ -439,7 +564,7 @@ public class GroupCache
      * @param mods the modifications being performed
      * @throws LdapException if there are problems accessing attribute  values
      */
-    public void groupModified( DN name, ModificationOperation modOp, Entry mods ) throws LdapException
+    public synchronized void groupModified( DN name, ModificationOperation modOp, Entry mods ) throws LdapException
     {
         EntryAttribute members = getMemberAttribute( mods );
 
@@ -448,11 +573,9 @@ public class GroupCache
             return;
         }
 
-        Set<String> memberSet = groups.get( name.getNormName() );
-
-        if ( memberSet != null )
+        if ( groups.containsKey( name.getNormName() ) )
         {
-            modify( memberSet, modOp, members );
+            modify( name.getNormName(), modOp, members );
         }
 
         if ( IS_DEBUG )
@@ -489,13 +612,15 @@ public class GroupCache
 
 
     /**
-     * Gets the set of groups a user is a member of.  The groups are returned
-     * as normalized Name objects within the set.
+     * Gets the set of groups a user is a member of, directly or through the
+     * groups it is a member of.  The groups are returned as normalized Name
+     * objects within the set, which must not be modified.
      *
      * @param member the member (user) to get the groups for
      * @return a Set of Name objects representing the groups
      * @throws LdapException if there are problems accessing attribute  values
      */
+    @SuppressWarnings("unchecked")
     public Set<DN> getGroups( String member ) throws LdapException
     {
         DN normMember;
@@ -513,44 +638,95 @@ public class GroupCache
             return EMPTY_GROUPS;
         }
 
-        Set<DN> memberGroups = null;
+        String memberDn = normMember.getNormName();
+        long resolvedVersion;
+
+        synchronized ( resolvedGroups )
+        {
+            Set<DN> groupDns = ( Set<DN> ) resolvedGroups.get( memberDn );
+
+            if ( groupDns != null )
+            {
+                return groupDns;
+            }
+
+            resolvedVersion = version;
+        }
+
+        Set<DN> groupDns = resolveGroups( memberDn );
+
+        synchronized ( resolvedGroups )
+        {
+            // The groups may have changed while they were resolved
+            if ( version == resolvedVersion )
+            {
+                resolvedGroups.put( memberDn, groupDns );
+            }
+        }
+
+        return groupDns;
+    }
+
+
+    /**
+     * Finds the groups of a member, and the groups of these groups.
+     *
+     * @param memberDn the normalized DN of the member
+     * @return the normalized DNs of the groups
+     */
+    private Set<DN> resolveGroups( String memberDn ) throws LdapException
+    {
+        Set<String> found = new HashSet<String>();
+        Set<DN> groupDns = new HashSet<DN>();
+        LinkedList<String> pending = new LinkedList<String>();
+        pending.add( memberDn );
 
-        for ( String group : groups.keySet() )
+        while ( !pending.isEmpty() )
         {
-            Set<String> members = groups.get( group );
+            Set<String> groupSet = memberGroups.get( pending.removeFirst() );
 
-            if ( members == null )
+            if ( groupSet == null )
             {
                 continue;
             }
 
-            if ( members.contains( normMember.getNormName() ) )
+            for ( String group : groupSet )
             {
-                if ( memberGroups == null )
+                // A group found twice, or a cycle of groups, is not followed again
+                if ( found.add( group ) )
                 {
-                    memberGroups = new HashSet<DN>();
+                    groupDns.add( parseNormalized( group ) );
+                    pending.add( group );
                 }
-
-                memberGroups.add( parseNormalized( group ) );
             }
         }
 
-        if ( memberGroups == null )
+        if ( groupDns.isEmpty() )
         {
             return EMPTY_GROUPS;
         }
 
-        return memberGroups;
+        return Collections.unmodifiableSet( groupDns );
     }
 
 
-    public boolean groupRenamed( DN oldName, DN newName )
+    public synchronized boolean groupRenamed( DN oldName, DN newName )
     {
-        Set<String> members = groups.remove( oldName.getNormName() );
+        String oldGroup = oldName.getNormName();
+        String newGroup = newName.getNormName();
+        Set<String> members = groups.remove( oldGroup );
 
         if ( members != null )
         {
-            groups.put( newName.getNormName(), members );
+            groups.put( newGroup, members );
+
+            for ( String memberDn : members )
+            {
+                removeMemberGroup( memberDn, oldGroup );
+                addMemberGroup( memberDn, newGroup );
+            }
+
+            changed();
 
             if ( IS_DEBUG )
             {
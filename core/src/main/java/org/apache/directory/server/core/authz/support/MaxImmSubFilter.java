@@ -36,6 +36,9 @@ import org.apache.directory.server.core.interceptor.context.OperationContext;
 import org.apache.directory.server.core.interceptor.context.SearchOperationContext;
 import org.apache.directory.server.core.normalization.NormalizationInterceptor;
 import org.apache.directory.server.core.operational.OperationalAttributeInterceptor;
+import org.apache.directory.server.core.partition.AbstractPartition;
+import org.apache.directory.server.core.partition.Partition;
+import org.apache.directory.server.core.partition.PartitionNexus;
 import org.apache.directory.server.core.schema.SchemaInterceptor;
 import org.apache.directory.server.core.subtree.SubentryInterceptor;
 import org.apache.directory.shared.ldap.aci.ACITuple;
@@ -159,15 +162,37 @@ public class MaxImmSubFilter implements ACITupleFilter
     }
 
 
+    /**
+     * Counts the children with the count kept by the partition, and only
+     * searches them if the partition does not keep it.
+     */
     private int getImmSubCount( OperationContext opContext, DN entryName ) throws LdapException
     {
+        DN baseDn = ( DN ) entryName.getPrefix( 1 );
+        PartitionNexus nexus = opContext.getSession().getDirectoryService().getPartitionNexus();
+
+        if ( nexus != null )
+        {
+            Partition partition = nexus.getPartition( baseDn );
+
+            if ( partition instanceof AbstractPartition )
+            {
+                int count = ( ( AbstractPartition ) partition ).getChildCount( baseDn );
+
+                if ( count >= 0 )
+                {
+                    return count;
+                }
+            }
+        }
+
         int cnt = 0;
         EntryFilteringCursor results = null;
         
         try
         {
             SearchOperationContext searchContext = new SearchOperationContext( opContext.getSession(), 
-                ( DN ) entryName.getPrefix( 1 ), childrenFilter, childrenSearchControls );
+                baseDn, childrenFilter, childrenSearchControls );
             searchContext.setByPassed( SEARCH_BYPASS );
             searchContext.setAliasDerefMode( AliasDerefMode.DEREF_ALWAYS );
             
@@ -23,9 +23,11 @@ package org.apache.directory.server.core.event;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
@@ -63,7 +65,24 @@ public class EventInterceptor extends BaseInterceptor
 {
     private final static Logger LOG = LoggerFactory.getLogger( EventInterceptor.class );
 
+    /** The number of threads delivering the events */
+    private static final int DELIVERY_THREADS = 10;
+
+    /** The default maximum number of events waiting for a listener */
+    public static final int DEFAULT_EVENT_QUEUE_SIZE = 1000;
+
     private List<RegistrationEntry> registrations = new CopyOnWriteArrayList<RegistrationEntry>();
+    private ListenerIndex index;
+
+    /** The events waiting for each registration */
+    private Map<RegistrationEntry, EventQueue> queues = new ConcurrentHashMap<RegistrationEntry, EventQueue>();
+
+    /** The maximum number of events waiting for a listener */
+    private int eventQueueSize = DEFAULT_EVENT_QUEUE_SIZE;
+
+    /** What happens when a listener has too many events waiting */
+    private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+
     private DirectoryService ds;
     private FilterNormalizingVisitor filterNormalizer;
     private Evaluator evaluator;
@@ -81,62 +100,70 @@ public class EventInterceptor extends BaseInterceptor
         NameComponentNormalizer ncn = new ConcreteNameComponentNormalizer( schemaManager );
         filterNormalizer = new FilterNormalizingVisitor( ncn, schemaManager );
         evaluator = new ExpressionEvaluator( schemaManager );
-        executor = new ThreadPoolExecutor( 1, 10, 1000, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>( 100 ) );
+        index = new ListenerIndex( schemaManager );
+
+        // A queue is delivered by a single task at a time : there are never 
+        // more tasks waiting than registrations
+        ThreadPoolExecutor pool = new ThreadPoolExecutor( DELIVERY_THREADS, DELIVERY_THREADS, 1000,
+            TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>() );
+        pool.allowCoreThreadTimeOut( true );
+        executor = pool;
 
         this.ds.setEventService( new DefaultEventService() );
         LOG.info( "Initialization complete." );
     }
 
 
-    private void fire( final OperationContext opContext, EventType type, final DirectoryListener listener )
+    /**
+     * Queues a change for the listener of a registration. The listener is
+     * removed if its queue is full and its policy is to disconnect it.
+     */
+    private void fire( OperationContext opContext, RegistrationEntry registration )
     {
-        switch ( type )
+        EventQueue queue = queues.get( registration );
+
+        // The listener may have been removed meanwhile
+        if ( ( queue != null ) && !queue.add( opContext ) )
         {
-            case ADD:
-                executor.execute( new Runnable()
-                {
-                    public void run()
-                    {
-                        listener.entryAdded( ( AddOperationContext ) opContext );
-                    }
-                } );
-                break;
-            case DELETE:
-                executor.execute( new Runnable()
-                {
-                    public void run()
-                    {
-                        listener.entryDeleted( ( DeleteOperationContext ) opContext );
-                    }
-                } );
-                break;
-            case MODIFY:
-                executor.execute( new Runnable()
-                {
-                    public void run()
-                    {
-                        listener.entryModified( ( ModifyOperationContext ) opContext );
-                    }
-                } );
-                break;
-            case MOVE:
-                executor.execute( new Runnable()
-                {
-                    public void run()
-                    {
-                        listener.entryMoved( ( MoveOperationContext ) opContext );
-                    }
-                } );
-                break;
-            case RENAME:
-                executor.execute( new Runnable()
-                {
-                    public void run()
-                    {
-                        listener.entryRenamed( ( RenameOperationContext ) opContext );
-                    }
-                } );
-                break;
+            removeRegistration( registration );
+        }
+    }
+
+
+    private void removeRegistration( RegistrationEntry registration )
+    {
+        registrations.remove( registration );
+        index.remove( registration );
+        EventQueue queue = queues.remove( registration );
+
+        if ( queue != null )
+        {
+            queue.close();
+        }
+    }
+
+
+    private void addRegistration( RegistrationEntry registration )
+    {
+        queues.put( registration, new EventQueue( registration, executor, eventQueueSize, overflowPolicy ) );
+        registrations.add( registration );
+        index.add( registration );
+    }
+
+
+    /**
+     * Stops delivering the events.
+     */
+    public void destroy()
+    {
+        for ( EventQueue queue : queues.values() )
+        {
+            queue.close();
+        }
+
+        if ( executor != null )
+        {
+            executor.shutdown();
         }
     }
 
@@ -155,7 +182,7 @@ public class EventInterceptor extends BaseInterceptor
         {
             if ( EventType.isAdd( registration.getCriteria().getEventMask() ) )
             {
-                fire( addContext, EventType.ADD, registration.getListener() );
+                fire( addContext, registration );
             }
         }
     }
@@ -175,7 +202,7 @@ public class EventInterceptor extends BaseInterceptor
         {
             if ( EventType.isDelete( registration.getCriteria().getEventMask() ) )
             {
-                fire( deleteContext, EventType.DELETE, registration.getListener() );
+                fire( deleteContext, registration );
             }
         }
     }
@@ -202,7 +229,7 @@ public class EventInterceptor extends BaseInterceptor
         {
             if ( EventType.isModify( registration.getCriteria().getEventMask() ) )
             {
-                fire( modifyContext, EventType.MODIFY, registration.getListener() );
+                fire( modifyContext, registration );
             }
         }
     }
@@ -228,7 +255,7 @@ public class EventInterceptor extends BaseInterceptor
         {
             if ( EventType.isRename( registration.getCriteria().getEventMask() ) )
             {
-                fire( renameContext, EventType.RENAME, registration.getListener() );
+                fire( renameContext, registration );
             }
         }
     }
@@ -249,13 +276,7 @@ public class EventInterceptor extends BaseInterceptor
         {
             if ( EventType.isMoveAndRename( registration.getCriteria().getEventMask() ) )
             {
-                executor.execute( new Runnable()
-                {
-                    public void run()
-                    {
-                        registration.getListener().entryMovedAndRenamed( moveAndRenameContext );
-                    }
-                } );
+                fire( moveAndRenameContext, registration );
             }
         }
     }
@@ -280,7 +301,7 @@ public class EventInterceptor extends BaseInterceptor
         {
             if ( EventType.isMove( registration.getCriteria().getEventMask() ) )
             {
-                fire( moveContext, EventType.MOVE, registration.getListener() );
+                fire( moveContext, registration );
             }
         }
     }
@@ -293,17 +314,17 @@ public class EventInterceptor extends BaseInterceptor
             return Collections.emptyList();
         }
 
-        List<RegistrationEntry> selecting = new ArrayList<RegistrationEntry>();
+        // The registrations on the entry are selected whatever their filter,
+        // those on its ancestors when their filter matches the entry (fix for 
+        // DIRSERVER-1502). Only the candidates given by the index may match.
+        List<RegistrationEntry> candidates = new ArrayList<RegistrationEntry>();
+        List<RegistrationEntry> selecting = index.getCandidates( name, entry, candidates );
 
-        for ( RegistrationEntry registration : registrations )
+        for ( RegistrationEntry registration : candidates )
         {
             NotificationCriteria criteria = registration.getCriteria();
 
-            DN base = criteria.getBase();
-
-            // fix for DIRSERVER-1502
-            if ( name.equals( base ) || name.isChildOf( base )
-                && evaluator.evaluate( criteria.getFilter(), base, entry ) )
+            if ( evaluator.evaluate( criteria.getFilter(), criteria.getBase(), entry ) )
             {
                 selecting.add( registration );
             }
@@ -312,6 +333,126 @@ public class EventInterceptor extends BaseInterceptor
         return selecting;
     }
 
+    /**
+     * @return the maximum number of events waiting for a listener
+     */
+    public int getEventQueueSize()
+    {
+        return eventQueueSize;
+    }
+
+
+    /**
+     * Sets the maximum number of events waiting for a listener. The queues
+     * of the listeners already registered keep their size.
+     *
+     * @param eventQueueSize the maximum number of events waiting for a listener
+     */
+    public void setEventQueueSize( int eventQueueSize )
+    {
+        this.eventQueueSize = eventQueueSize;
+    }
+
+
+    /**
+     * @return what happens when a listener has too many events waiting
+     */
+    public OverflowPolicy getOverflowPolicy()
+    {
+        return overflowPolicy;
+    }
+
+
+    /**
+     * Sets what happens when a listener has too many events waiting. The 
+     * listeners already registered keep their policy.
+     *
+     * @param overflowPolicy what happens when a listener has too many events waiting
+     */
+    public void setOverflowPolicy( OverflowPolicy overflowPolicy )
+    {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+
+    /**
+     * @param listener a registered listener
+     * @return the number of events waiting to be delivered to the listener
+     */
+    public int getQueueDepth( DirectoryListener listener )
+    {
+        int depth = 0;
+
+        for ( EventQueue queue : queues.values() )
+        {
+            if ( queue.getRegistration().getListener() == listener )
+            {
+                depth += queue.getDepth();
+            }
+        }
+
+        return depth;
+    }
+
+
+    /**
+     * @param listener a registered listener
+     * @return the maximum number of events which have been waiting to be 
+     * delivered to the listener, for any of its registrations
+     */
+    public int getMaxQueueDepth( DirectoryListener listener )
+    {
+        int maxDepth = 0;
+
+        for ( EventQueue queue : queues.values() )
+        {
+            if ( queue.getRegistration().getListener() == listener )
+            {
+                maxDepth = Math.max( maxDepth, queue.getMaxDepth() );
+            }
+        }
+
+        return maxDepth;
+    }
+
+
+    /**
+     * @param listener a registered listener
+     * @return the number of events dropped, or replaced by a later 
+     * modification, without being delivered to the listener
+     */
+    public long getDroppedEventCount( DirectoryListener listener )
+    {
+        long count = 0;
+
+        for ( EventQueue queue : queues.values() )
+        {
+            if ( queue.getRegistration().getListener() == listener )
+            {
+                count += queue.getDroppedCount() + queue.getCoalescedCount();
+            }
+        }
+
+        return count;
+    }
+
+
+    /**
+     * @return the number of events waiting to be delivered to all the listeners
+     */
+    public int getQueueDepth()
+    {
+        int depth = 0;
+
+        for ( EventQueue queue : queues.values() )
+        {
+            depth += queue.getDepth();
+        }
+
+        return depth;
+    }
+
+
     // -----------------------------------------------------------------------
     // EventService Inner Class
     // -----------------------------------------------------------------------
@@ -323,7 +464,7 @@ public class EventInterceptor extends BaseInterceptor
          */
         public void addListener( DirectoryListener listener )
         {
-            registrations.add( new RegistrationEntry( listener ) );
+            addRegistration( new RegistrationEntry( listener ) );
         }
 
 
@@ -335,7 +476,7 @@ public class EventInterceptor extends BaseInterceptor
             criteria.getBase().normalize( ds.getSchemaManager().getNormalizerMapping() );
             ExprNode result = ( ExprNode ) criteria.getFilter().accept( filterNormalizer );
             criteria.setFilter( result );
-            registrations.add( new RegistrationEntry( listener, criteria ) );
+            addRegistration( new RegistrationEntry( listener, criteria ) );
         }
 
 
@@ -345,7 +486,7 @@ public class EventInterceptor extends BaseInterceptor
             {
                 if ( entry.getListener() == listener )
                 {
-                    registrations.remove( entry );
+                    removeRegistration( entry );
                 }
             }
         }
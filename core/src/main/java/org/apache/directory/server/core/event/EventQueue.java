@@ -0,0 +1,386 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *  
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License. 
+ *  
+ */
+package org.apache.directory.server.core.event;
+
+
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.directory.server.core.interceptor.context.AddOperationContext;
+import org.apache.directory.server.core.interceptor.context.DeleteOperationContext;
+import org.apache.directory.server.core.interceptor.context.ModifyOperationContext;
+import org.apache.directory.server.core.interceptor.context.MoveAndRenameOperationContext;
+import org.apache.directory.server.core.interceptor.context.MoveOperationContext;
+import org.apache.directory.server.core.interceptor.context.OperationContext;
+import org.apache.directory.server.core.interceptor.context.RenameOperationContext;
+import org.apache.directory.server.i18n.I18n;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * The changes waiting to be delivered to the listener of a registration. 
+ * The changes are delivered in the order they have been made, by a single 
+ * task of an executor at a time, so that a slow listener does not delay 
+ * the others.
+ * <p>
+ * The queue is bounded : when it is full, the {@link OverflowPolicy} tells 
+ * if the operation waits, if the oldest change is dropped, or if the 
+ * listener is removed : it is then told so, once the change it may be 
+ * handling is delivered. A listener changing the DIT while it handles an 
+ * event never waits for itself though, its queue growing beyond its size.
+ * When the registration allows it, a modification waiting to be delivered
+ * is replaced by a new modification of the same entry.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+class EventQueue implements Runnable
+{
+    private static final Logger LOG = LoggerFactory.getLogger( EventQueue.class );
+
+    /** The number of events delivered by a task before it lets the other queues run */
+    private static final int MAX_DELIVERIES = 64;
+
+    /** The registration of the listener */
+    private final RegistrationEntry registration;
+
+    /** The executor running the deliveries */
+    private final Executor executor;
+
+    /** The maximum number of events waiting */
+    private final int size;
+
+    /** What happens when the queue is full */
+    private final OverflowPolicy policy;
+
+    /** The events waiting to be delivered, in order */
+    private final LinkedList<OperationContext> events = new LinkedList<OperationContext>();
+
+    /** Tells if a task delivering the events is submitted */
+    private boolean isScheduled;
+
+    /** Tells if the registration has been removed */
+    private boolean isClosed;
+
+    /** Tells if the listener must be told it has been removed */
+    private boolean isDisconnecting;
+
+    /** The thread delivering the events, if any */
+    private volatile Thread deliveringThread;
+
+    /** The maximum number of events which have been waiting */
+    private int maxDepth;
+
+    /** The number of events dropped */
+    private long droppedCount;
+
+    /** The number of modifications replaced by a later one */
+    private long coalescedCount;
+
+
+    /**
+     * Creates the queue of a registration.
+     *
+     * @param registration the registration
+     * @param executor the executor running the deliveries
+     * @param size the maximum number of events waiting
+     * @param policy what happens when the queue is full
+     */
+    EventQueue( RegistrationEntry registration, Executor executor, int size, OverflowPolicy policy )
+    {
+        this.registration = registration;
+        this.executor = executor;
+        this.size = size;
+        this.policy = policy;
+    }
+
+
+    /**
+     * Adds a change to deliver.
+     *
+     * @param opContext the context of the operation
+     * @return false if the queue is full and its listener must be removed
+     */
+    synchronized boolean add( OperationContext opContext )
+    {
+        if ( isClosed )
+        {
+            return true;
+        }
+
+        if ( registration.getCriteria().isCoalesceModifies() && ( opContext instanceof ModifyOperationContext )
+            && !events.isEmpty() && ( events.getLast() instanceof ModifyOperationContext )
+            && events.getLast().getDn().equals( opContext.getDn() ) )
+        {
+            events.set( events.size() - 1, opContext );
+            coalescedCount++;
+
+            return true;
+        }
+
+        while ( ( events.size() >= size ) && ( Thread.currentThread() != deliveringThread ) )
+        {
+            if ( policy == OverflowPolicy.DISCONNECT )
+            {
+                LOG.warn( I18n.err( I18n.ERR_750, registration.getListener() ) );
+                disconnect();
+
+                return false;
+            }
+
+            if ( policy == OverflowPolicy.DROP_OLDEST )
+            {
+                events.removeFirst();
+                droppedCount++;
+                continue;
+            }
+
+            try
+            {
+                wait();
+            }
+            catch ( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+                droppedCount++;
+
+                return true;
+            }
+
+            if ( isClosed )
+            {
+                return true;
+            }
+        }
+
+        events.addLast( opContext );
+        maxDepth = Math.max( maxDepth, events.size() );
+
+        if ( !isScheduled )
+        {
+            schedule();
+        }
+
+        return true;
+    }
+
+
+    /**
+     * Drops the events waiting, and releases the operations waiting for the
+     * queue : the registration has been removed.
+     */
+    synchronized void close()
+    {
+        isClosed = true;
+        droppedCount += events.size();
+        events.clear();
+        notifyAll();
+    }
+
+
+    /**
+     * Drops the events waiting, and schedules the task telling the listener 
+     * it has been removed.
+     */
+    private void disconnect()
+    {
+        close();
+        isDisconnecting = true;
+
+        if ( !isScheduled )
+        {
+            schedule();
+        }
+    }
+
+
+    /**
+     * @return the number of events waiting to be delivered
+     */
+    synchronized int getDepth()
+    {
+        return events.size();
+    }
+
+
+    /**
+     * @return the maximum number of events which have been waiting
+     */
+    synchronized int getMaxDepth()
+    {
+        return maxDepth;
+    }
+
+
+    /**
+     * @return the number of events dropped
+     */
+    synchronized long getDroppedCount()
+    {
+        return droppedCount;
+    }
+
+
+    /**
+     * @return the number of modifications replaced by a later one
+     */
+    synchronized long getCoalescedCount()
+    {
+        return coalescedCount;
+    }
+
+
+    /**
+     * @return the registration of the listener
+     */
+    RegistrationEntry getRegistration()
+    {
+        return registration;
+    }
+
+
+    /**
+     * Delivers the waiting events, then lets the other queues run.
+     */
+    public void run()
+    {
+        deliveringThread = Thread.currentThread();
+
+        for ( int i = 0; i < MAX_DELIVERIES; i++ )
+        {
+            OperationContext opContext;
+            boolean isDisconnected = false;
+
+            synchronized ( this )
+            {
+                opContext = events.poll();
+
+                if ( opContext == null )
+                {
+                    // Cleared before a next task may be scheduled, which 
+                    // would set its own thread
+                    deliveringThread = null;
+                    isScheduled = false;
+                    isDisconnected = isDisconnecting;
+                    isDisconnecting = false;
+                }
+
+                notifyAll();
+            }
+
+            if ( opContext == null )
+            {
+                // The queue is closed : no other task is scheduled
+                if ( isDisconnected )
+                {
+                    disconnected();
+                }
+
+                return;
+            }
+
+            deliver( opContext );
+        }
+
+        synchronized ( this )
+        {
+            deliveringThread = null;
+
+            if ( events.isEmpty() && !isDisconnecting )
+            {
+                isScheduled = false;
+            }
+            else
+            {
+                schedule();
+            }
+        }
+    }
+
+
+    private void schedule()
+    {
+        try
+        {
+            executor.execute( this );
+            isScheduled = true;
+        }
+        catch ( RejectedExecutionException e )
+        {
+            // The service is shutting down
+            close();
+        }
+    }
+
+
+    private void disconnected()
+    {
+        DirectoryListener listener = registration.getListener();
+
+        try
+        {
+            listener.listenerDisconnected();
+        }
+        catch ( RuntimeException e )
+        {
+            LOG.error( I18n.err( I18n.ERR_118 ), e );
+        }
+    }
+
+
+    private void deliver( OperationContext opContext )
+    {
+        DirectoryListener listener = registration.getListener();
+
+        try
+        {
+            if ( opContext instanceof AddOperationContext )
+            {
+                listener.entryAdded( ( AddOperationContext ) opContext );
+            }
+            else if ( opContext instanceof DeleteOperationContext )
+            {
+                listener.entryDeleted( ( DeleteOperationContext ) opContext );
+            }
+            else if ( opContext instanceof ModifyOperationContext )
+            {
+                listener.entryModified( ( ModifyOperationContext ) opContext );
+            }
+            else if ( opContext instanceof MoveAndRenameOperationContext )
+            {
+                listener.entryMovedAndRenamed( ( MoveAndRenameOperationContext ) opContext );
+            }
+            else if ( opContext instanceof MoveOperationContext )
+            {
+                listener.entryMoved( ( MoveOperationContext ) opContext );
+            }
+            else if ( opContext instanceof RenameOperationContext )
+            {
+                listener.entryRenamed( ( RenameOperationContext ) opContext );
+            }
+        }
+        catch ( RuntimeException e )
+        {
+            // The listener does not prevent the next events from being delivered
+            LOG.error( I18n.err( I18n.ERR_749, listener, opContext.getDn() ), e );
+        }
+    }
+}
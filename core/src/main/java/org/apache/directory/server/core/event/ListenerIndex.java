@@ -0,0 +1,483 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *  
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License. 
+ *  
+ */
+package org.apache.directory.server.core.event;
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.directory.shared.ldap.constants.SchemaConstants;
+import org.apache.directory.shared.ldap.entry.Entry;
+import org.apache.directory.shared.ldap.entry.EntryAttribute;
+import org.apache.directory.shared.ldap.entry.StringValue;
+import org.apache.directory.shared.ldap.entry.Value;
+import org.apache.directory.shared.ldap.exception.LdapException;
+import org.apache.directory.shared.ldap.filter.AndNode;
+import org.apache.directory.shared.ldap.filter.EqualityNode;
+import org.apache.directory.shared.ldap.filter.ExprNode;
+import org.apache.directory.shared.ldap.name.DN;
+import org.apache.directory.shared.ldap.schema.AttributeType;
+import org.apache.directory.shared.ldap.schema.MatchingRule;
+import org.apache.directory.shared.ldap.schema.Normalizer;
+import org.apache.directory.shared.ldap.schema.SchemaManager;
+
+
+/**
+ * The registrations of the {@link DirectoryListener}s, indexed so that a 
+ * change only evaluates the filters of the registrations it may select.
+ * <p>
+ * The registrations are stored in a tree of their base DNs, in which each 
+ * node is reached from its parent with its normalized RDN : the bases 
+ * selecting a changed entry are the nodes on the path of its DN. In each 
+ * node, the registrations which filter requires an attribute value, with an
+ * equality assertion at its top or in its top level AND, are stored by this
+ * value : they are only candidates when the entry has this value. The other
+ * registrations are always candidates.
+ * <p>
+ * The candidates still have their filter evaluated : the index only skips 
+ * the registrations which filter can't match. As the filters compare the 
+ * normalized values with the comparator of the matching rule, only the 
+ * values of the matching rules which normalized form is canonical, equal 
+ * when the comparator matches, are indexed.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+class ListenerIndex
+{
+    /** The OIDs of the equality matching rules which normalized values are canonical */
+    private static final Set<String> CANONICAL_RULES = Collections.unmodifiableSet( new HashSet<String>( Arrays.asList(
+        "2.5.13.0", // objectIdentifierMatch
+        "2.5.13.1", // distinguishedNameMatch
+        "2.5.13.2", // caseIgnoreMatch
+        "2.5.13.5", // caseExactMatch
+        "2.5.13.8", // numericStringMatch
+        "1.3.6.1.4.1.1466.109.114.1", // caseExactIA5Match
+        "1.3.6.1.4.1.1466.109.114.2" // caseIgnoreIA5Match
+        ) ) );
+
+    /** The schema manager, giving the normalizers of the indexed values */
+    private final SchemaManager schemaManager;
+
+    /** The node of the root DSE */
+    private final Node root = new Node();
+
+
+    /**
+     * Creates an empty index.
+     *
+     * @param schemaManager the schema manager
+     */
+    ListenerIndex( SchemaManager schemaManager )
+    {
+        this.schemaManager = schemaManager;
+    }
+
+
+    /**
+     * Adds a registration, which base DN must be normalized.
+     *
+     * @param registration the registration to add
+     */
+    synchronized void add( RegistrationEntry registration )
+    {
+        DN base = registration.getCriteria().getBase();
+        Node node = root;
+
+        for ( int i = 0; i < base.size(); i++ )
+        {
+            String rdn = base.getRdn( i ).getNormName();
+            Node child = node.children.get( rdn );
+
+            if ( child == null )
+            {
+                child = new Node();
+                node.children.put( rdn, child );
+            }
+
+            node = child;
+        }
+
+        node.add( registration, getTerm( registration.getCriteria().getFilter() ) );
+    }
+
+
+    /**
+     * Removes a registration.
+     *
+     * @param registration the registration to remove
+     */
+    synchronized void remove( RegistrationEntry registration )
+    {
+        DN base = registration.getCriteria().getBase();
+        List<Node> path = new ArrayList<Node>( base.size() + 1 );
+        path.add( root );
+
+        for ( int i = 0; i < base.size(); i++ )
+        {
+            Node child = path.get( i ).children.get( base.getRdn( i ).getNormName() );
+
+            if ( child == null )
+            {
+                return;
+            }
+
+            path.add( child );
+        }
+
+        path.get( base.size() ).remove( registration );
+
+        // Drop the nodes left without registration nor children
+        for ( int i = base.size(); ( i > 0 ) && path.get( i ).isEmpty(); i-- )
+        {
+            path.get( i - 1 ).children.remove( base.getRdn( i - 1 ).getNormName() );
+        }
+    }
+
+
+    /**
+     * @return true if the index has no registration, nor node left
+     */
+    synchronized boolean isEmpty()
+    {
+        return root.isEmpty();
+    }
+
+
+    /**
+     * Gets the registrations which may select a change on an entry : the 
+     * registrations on this entry, which are selected whatever their filter,
+     * and the registrations on its ancestors which filter may match it.
+     *
+     * @param name the normalized DN of the changed entry
+     * @param entry the changed entry
+     * @param candidates the list to which the registrations on the ancestors 
+     * are added
+     * @return the registrations on the entry itself
+     */
+    List<RegistrationEntry> getCandidates( DN name, Entry entry, List<RegistrationEntry> candidates )
+    {
+        Node node = root;
+
+        for ( int i = 0; i < name.size(); i++ )
+        {
+            node.addCandidates( entry, candidates );
+            node = node.children.get( name.getRdn( i ).getNormName() );
+
+            if ( node == null )
+            {
+                return new ArrayList<RegistrationEntry>();
+            }
+        }
+
+        List<RegistrationEntry> selected = new ArrayList<RegistrationEntry>( node.unindexed );
+        node.addAll( selected );
+
+        return selected;
+    }
+
+
+    /**
+     * Gets the attribute value required by a filter, which indexes its 
+     * registration. The assertions on objectClass, matched by many entries,
+     * are used when there is no other one.
+     *
+     * @param filter a normalized filter
+     * @return the OID and the normalized value required, or null if the 
+     * filter has no indexable assertion
+     */
+    private Term getTerm( ExprNode filter )
+    {
+        if ( !( filter instanceof AndNode ) )
+        {
+            return getEqualityTerm( filter );
+        }
+
+        Term objectClassTerm = null;
+
+        for ( ExprNode child : ( ( AndNode ) filter ).getChildren() )
+        {
+            Term term = getEqualityTerm( child );
+
+            if ( term == null )
+            {
+                continue;
+            }
+
+            if ( !term.oid.equals( SchemaConstants.OBJECT_CLASS_AT_OID ) )
+            {
+                return term;
+            }
+
+            objectClassTerm = term;
+        }
+
+        return objectClassTerm;
+    }
+
+
+    private Term getEqualityTerm( ExprNode node )
+    {
+        // The subclasses of the EqualityNode don't match the same values
+        if ( ( node == null ) || ( node.getClass() != EqualityNode.class ) )
+        {
+            return null;
+        }
+
+        EqualityNode<?> equality = ( EqualityNode<?> ) node;
+
+        try
+        {
+            AttributeType type = schemaManager.lookupAttributeTypeRegistry( equality.getAttribute() );
+            MatchingRule rule = type.getEquality();
+
+            // The other matching rules may match values which normalized forms differ
+            if ( ( rule == null ) || !CANONICAL_RULES.contains( rule.getOid() ) || !type.getSyntax().isHumanReadable() )
+            {
+                return null;
+            }
+
+            Normalizer normalizer = rule.getNormalizer();
+
+            if ( normalizer == null )
+            {
+                return null;
+            }
+
+            // As in the LeafEvaluator
+            Value<?> value = equality.getValue();
+
+            if ( value.isBinary() )
+            {
+                value = new StringValue( value.getString() );
+            }
+
+            Object key = normalizer.normalize( value ).get();
+
+            return ( key instanceof String ) ? new Term( type.getOid(), key ) : null;
+        }
+        catch ( LdapException e )
+        {
+            return null;
+        }
+    }
+
+
+    private Normalizer getNormalizer( AttributeType type )
+    {
+        MatchingRule equality = type.getEquality();
+
+        return ( equality == null ) ? null : equality.getNormalizer();
+    }
+
+
+    /**
+     * An attribute value required by a filter.
+     */
+    private static class Term
+    {
+        /** The OID of the attribute type */
+        private final String oid;
+
+        /** The normalized value */
+        private final Object key;
+
+
+        private Term( String oid, Object key )
+        {
+            this.oid = oid;
+            this.key = key;
+        }
+    }
+
+
+    /**
+     * The registrations on a base DN.
+     */
+    private class Node
+    {
+        /** The nodes of the children of the base, by normalized RDN */
+        private final Map<String, Node> children = new ConcurrentHashMap<String, Node>();
+
+        /** The registrations which filter has no indexed value */
+        private final List<RegistrationEntry> unindexed = new CopyOnWriteArrayList<RegistrationEntry>();
+
+        /** The other registrations, by OID and normalized value required */
+        private final Map<String, Map<Object, List<RegistrationEntry>>> indexed =
+            new ConcurrentHashMap<String, Map<Object, List<RegistrationEntry>>>();
+
+
+        private void add( RegistrationEntry registration, Term term )
+        {
+            if ( term == null )
+            {
+                unindexed.add( registration );
+                return;
+            }
+
+            Map<Object, List<RegistrationEntry>> byValue = indexed.get( term.oid );
+
+            if ( byValue == null )
+            {
+                byValue = new ConcurrentHashMap<Object, List<RegistrationEntry>>();
+                indexed.put( term.oid, byValue );
+            }
+
+            List<RegistrationEntry> registrations = byValue.get( term.key );
+
+            if ( registrations == null )
+            {
+                registrations = new CopyOnWriteArrayList<RegistrationEntry>();
+                byValue.put( term.key, registrations );
+            }
+
+            registrations.add( registration );
+        }
+
+
+        private void remove( RegistrationEntry registration )
+        {
+            if ( unindexed.remove( registration ) )
+            {
+                return;
+            }
+
+            for ( Map<Object, List<RegistrationEntry>> byValue : indexed.values() )
+            {
+                for ( Map.Entry<Object, List<RegistrationEntry>> registrations : byValue.entrySet() )
+                {
+                    if ( registrations.getValue().remove( registration ) )
+                    {
+                        if ( registrations.getValue().isEmpty() )
+                        {
+                            byValue.remove( registrations.getKey() );
+                        }
+
+                        break;
+                    }
+                }
+            }
+
+            for ( Map.Entry<String, Map<Object, List<RegistrationEntry>>> byValue : indexed.entrySet() )
+            {
+                if ( byValue.getValue().isEmpty() )
+                {
+                    indexed.remove( byValue.getKey() );
+                }
+            }
+        }
+
+
+        private boolean isEmpty()
+        {
+            return children.isEmpty() && unindexed.isEmpty() && indexed.isEmpty();
+        }
+
+
+        /**
+         * Adds all the registrations of the node.
+         */
+        private void addAll( List<RegistrationEntry> registrations )
+        {
+            for ( Map<Object, List<RegistrationEntry>> byValue : indexed.values() )
+            {
+                addAll( byValue.values(), registrations );
+            }
+        }
+
+
+        private void addAll( Collection<List<RegistrationEntry>> from, List<RegistrationEntry> registrations )
+        {
+            for ( List<RegistrationEntry> list : from )
+            {
+                registrations.addAll( list );
+            }
+        }
+
+
+        /**
+         * Adds the registrations which filter may match an entry.
+         */
+        private void addCandidates( Entry entry, List<RegistrationEntry> candidates )
+        {
+            candidates.addAll( unindexed );
+
+            if ( indexed.isEmpty() )
+            {
+                return;
+            }
+
+            if ( entry == null )
+            {
+                // Let the filters decide
+                addAll( candidates );
+                return;
+            }
+
+            for ( Map.Entry<String, Map<Object, List<RegistrationEntry>>> byValue : indexed.entrySet() )
+            {
+                EntryAttribute attribute = entry.get( byValue.getKey() );
+
+                if ( attribute == null )
+                {
+                    continue;
+                }
+
+                List<RegistrationEntry> matching = new ArrayList<RegistrationEntry>();
+                Set<Object> keys = new HashSet<Object>();
+
+                try
+                {
+                    Normalizer normalizer = getNormalizer( schemaManager.lookupAttributeTypeRegistry( byValue.getKey() ) );
+
+                    for ( Value<?> value : attribute )
+                    {
+                        Object key = normalizer.normalize( value ).get();
+
+                        if ( keys.add( key ) )
+                        {
+                            List<RegistrationEntry> registrations = byValue.getValue().get( key );
+
+                            if ( registrations != null )
+                            {
+                                matching.addAll( registrations );
+                            }
+                        }
+                    }
+                }
+                catch ( LdapException e )
+                {
+                    // Let the filters decide
+                    matching.clear();
+                    addAll( byValue.getValue().values(), matching );
+                }
+
+                candidates.addAll( matching );
+            }
+        }
+    }
+}
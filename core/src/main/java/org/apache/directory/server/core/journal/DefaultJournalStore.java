@@ -19,36 +19,149 @@
  */
 package org.apache.directory.server.core.journal;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
-import java.io.Writer;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
 
 import org.apache.directory.server.core.DirectoryService;
 import org.apache.directory.server.core.LdapPrincipal;
+import org.apache.directory.server.i18n.I18n;
 import org.apache.directory.shared.ldap.exception.LdapException;
 import org.apache.directory.shared.ldap.ldif.LdifEntry;
 import org.apache.directory.shared.ldap.ldif.LdifUtils;
+import org.apache.directory.shared.ldap.util.StringTools;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
- * @TODO : Missing Javadoc
+ * A journal stored in binary segment files, named after the journal file 
+ * name followed by the number of the segment. A new segment is started 
+ * when the current one reaches its maximum size.
+ * <p>
+ * A segment starts with a header, followed by the records. Each record 
+ * is made of the length of its body, the CRC32 of its body, and its body :
+ * <ul>
+ *   <li>the {@link JournalRecord.Type} code</li>
+ *   <li>the revision, and the timestamp</li>
+ *   <li>for a change, the principal name and the forward LDIF</li>
+ * </ul>
+ * The revisions are taken before the operations, and the changes logged 
+ * once they are done, so they are not written in the order of their 
+ * revisions. The journal is split in blocks of records, and the highest 
+ * revision written up to the end of each block is kept in memory, so that 
+ * the journal can be replayed from any revision with a {@link JournalCursor}
+ * starting at the first block which may have a later change. The cursor 
+ * can also wait for the next records at the end of the journal.
+ * <p>
+ * The records are written as they are logged, but the segment is only 
+ * synced to the disk once enough bytes have been written, or once the sync 
+ * interval has elapsed, so that a single sync covers many records. The 
+ * cursors only read the synced records. A record partially written when 
+ * the server stopped is dropped on startup.
+ *
  * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
 */
 public class DefaultJournalStore implements JournalStore
 {
+    /** The class logger */
+    private static final Logger LOG = LoggerFactory.getLogger( DefaultJournalStore.class );
+
+    /** The first bytes of a segment : "JRNL" */
+    private static final int MAGIC = 0x4A524E4C;
+
+    /** The version of the format */
+    private static final byte VERSION = 1;
+
+    /** The size of the segment header : the magic number and the version */
+    static final int HEADER_SIZE = 5;
+
+    /** The size of the record header : the length and the CRC of its body */
+    static final int RECORD_HEADER_SIZE = 8;
+
+    /** The number of bits of a position storing the offset in the segment */
+    private static final int OFFSET_BITS = 40;
+
+    /** The size after which a new block of records is started */
+    static final int BLOCK_SIZE = 64 * 1024;
+
+    /** The default maximum size of a segment */
+    public static final long DEFAULT_MAX_SEGMENT_SIZE = 64L * 1024 * 1024;
+
+    /** The default number of bytes written before the segment is synced */
+    public static final long DEFAULT_SYNC_SIZE = 1024 * 1024;
+
+    /** The default maximum time, in milliseconds, before written records are synced */
+    public static final long DEFAULT_SYNC_INTERVAL = 100;
+
     /** The directory where the journal is stored */
     private File workingDirectory;
     
-    /** The journal file name */
+    /** The journal file name, prefix of the segment file names */
     private String fileName;
     
-    /** The file containing the journal */
-    private File journal;
-    
-    /** The stream used to write data into the journal */
-    private Writer writer;
+    /** The maximum size of a segment */
+    private long maxSegmentSize = DEFAULT_MAX_SEGMENT_SIZE;
+
+    /** The number of bytes written before the segment is synced */
+    private long syncSize = DEFAULT_SYNC_SIZE;
+
+    /** The maximum time before written records are synced, or 0 to sync every record */
+    private long syncInterval = DEFAULT_SYNC_INTERVAL;
+
+    /** The lock protecting the written segment, notified when a record is written */
+    private final Object lock = new Object();
+
+    /** The segment written to, null when the journal is closed */
+    private FileChannel channel;
+
+    /** The number of the segment written to */
+    private int segment;
+
+    /** The number of the first segment */
+    private int firstSegment;
+
+    /** The number of bytes written and not synced yet */
+    private long unsyncedSize;
+
+    /** The position after the last record written */
+    private volatile long end;
+
+    /** The position after the last record synced, which the cursors can read */
+    private volatile long syncedEnd;
+
+    /** The current revision */
+    private volatile long currentRevision;
+
+    /** 
+     * The positions of the blocks, by the highest revision written up to the 
+     * end of the block, for the blocks raising it 
+     */
+    private final NavigableMap<Long, Long> index = new ConcurrentSkipListMap<Long, Long>();
+
+    /** The position of the block written to, or -1 */
+    private long blockStart = -1;
+
+    /** The key of the block written to in the index, or -1 */
+    private long blockRevision = -1;
+
+    /** The thread syncing the written records */
+    private ScheduledExecutorService syncer;
 
     
     /**
@@ -56,9 +169,21 @@ public class DefaultJournalStore implements JournalStore
      */
     public void destroy() throws Exception
     {
-        if ( writer != null )
+        if ( syncer != null )
         {
-            writer.close();
+            syncer.shutdown();
+        }
+
+        synchronized ( lock )
+        {
+            if ( channel != null )
+            {
+                channel.force( false );
+                channel.close();
+                channel = null;
+                syncedEnd = end;
+                lock.notifyAll();
+            }
         }
     }
     
@@ -76,15 +201,482 @@ public class DefaultJournalStore implements JournalStore
         /** Load or create the journal file */
         if ( fileName == null )
         {
-            fileName = "journal.ldif";
+            fileName = "journal";
         }
         
-        journal = new File( workingDirectory, fileName );
+        // Read the existing segments, and continue the last one
+        List<Integer> segments = getSegments();
+
+        for ( int i = 0; i < segments.size(); i++ )
+        {
+            recover( segments.get( i ), i == segments.size() - 1 );
+        }
+
+        firstSegment = segments.isEmpty() ? 1 : segments.get( 0 );
+
+        if ( segments.isEmpty() )
+        {
+            createSegment( 1 );
+        }
+        else
+        {
+            segment = segments.get( segments.size() - 1 );
+            channel = new RandomAccessFile( getSegmentFile( segment ), "rw" ).getChannel();
+            channel.position( channel.size() );
+            end = getPosition( segment, channel.size() );
+        }
+
+        syncedEnd = end;
         
-        // The new requests are added at the end of the existing journal
-        writer = new PrintWriter( 
-            new OutputStreamWriter(
-                new FileOutputStream( journal, true ) ) );
+        if ( syncInterval > 0 )
+        {
+            syncer = Executors.newSingleThreadScheduledExecutor( new ThreadFactory()
+            {
+                public Thread newThread( Runnable runnable )
+                {
+                    Thread thread = new Thread( runnable, "journal-sync" );
+                    thread.setDaemon( true );
+
+                    return thread;
+                }
+            } );
+
+            syncer.scheduleWithFixedDelay( new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        sync();
+                    }
+                    catch ( Exception e )
+                    {
+                        LOG.error( e.getMessage(), e );
+                    }
+                }
+            }, syncInterval, syncInterval, TimeUnit.MILLISECONDS );
+        }
+    }
+
+
+    /**
+     * @return the numbers of the existing segments, in order
+     */
+    private List<Integer> getSegments()
+    {
+        List<Integer> segments = new ArrayList<Integer>();
+        String prefix = fileName + '.';
+        String[] names = workingDirectory.list();
+
+        if ( names != null )
+        {
+            for ( String name : names )
+            {
+                if ( name.startsWith( prefix ) && ( name.length() > prefix.length() ) )
+                {
+                    try
+                    {
+                        segments.add( Integer.parseInt( name.substring( prefix.length() ) ) );
+                    }
+                    catch ( NumberFormatException nfe )
+                    {
+                        // Not a segment
+                    }
+                }
+            }
+        }
+
+        Collections.sort( segments );
+
+        return segments;
+    }
+
+
+    /**
+     * @param segment the number of a segment
+     * @return the file of the segment
+     */
+    File getSegmentFile( int segment )
+    {
+        return new File( workingDirectory, fileName + '.' + String.format( "%08d", segment ) );
+    }
+
+
+    private void createSegment( int newSegment ) throws IOException
+    {
+        channel = new RandomAccessFile( getSegmentFile( newSegment ), "rw" ).getChannel();
+        ByteBuffer header = ByteBuffer.allocate( HEADER_SIZE );
+        header.putInt( MAGIC ).put( VERSION ).flip();
+        channel.truncate( 0 );
+
+        while ( header.hasRemaining() )
+        {
+            channel.write( header );
+        }
+
+        segment = newSegment;
+        end = getPosition( segment, HEADER_SIZE );
+    }
+
+
+    /**
+     * Indexes the changes of a segment. A record partially written at the 
+     * end of the last segment is removed, and only the records of this 
+     * segment have their CRC checked : the previous ones have been synced.
+     */
+    private void recover( int recovered, boolean isLast ) throws IOException
+    {
+        File file = getSegmentFile( recovered );
+        RandomAccessFile segmentFile = new RandomAccessFile( file, "rw" );
+
+        try
+        {
+            if ( isLast && ( segmentFile.length() < HEADER_SIZE ) )
+            {
+                // The segment was being created when the server stopped
+                LOG.warn( "Writing again the incomplete header of {}", file );
+                segmentFile.setLength( 0 );
+                segmentFile.writeInt( MAGIC );
+                segmentFile.writeByte( VERSION );
+
+                return;
+            }
+
+            checkHeader( segmentFile, file );
+            long offset = HEADER_SIZE;
+
+            while ( offset < segmentFile.length() )
+            {
+                JournalRecord record;
+
+                try
+                {
+                    record = isLast ? readRecord( segmentFile, offset, file ) : readSummary( segmentFile, offset,
+                        file );
+                }
+                catch ( IOException ioe )
+                {
+                    if ( !isLast )
+                    {
+                        throw ioe;
+                    }
+
+                    LOG.warn( "Dropping the incomplete journal record at {} in {}", offset, file );
+                    segmentFile.setLength( offset );
+                    break;
+                }
+
+                if ( record.getType() == JournalRecord.Type.LOG )
+                {
+                    index( recovered, offset, record.getRevision() );
+                }
+
+                offset = segmentFile.getFilePointer();
+            }
+        }
+        finally
+        {
+            segmentFile.close();
+        }
+    }
+
+
+    /**
+     * Indexes a change, starting a new block if the current one is full, or 
+     * in a previous segment.
+     */
+    private void index( int recordSegment, long offset, long revision )
+    {
+        if ( ( blockStart < 0 ) || ( getSegment( blockStart ) != recordSegment )
+            || ( offset - getOffset( blockStart ) >= BLOCK_SIZE ) )
+        {
+            blockStart = getPosition( recordSegment, offset );
+            blockRevision = -1;
+        }
+
+        if ( revision > currentRevision )
+        {
+            // The block is found from the new revision only
+            index.put( revision, blockStart );
+
+            if ( blockRevision >= 0 )
+            {
+                index.remove( blockRevision );
+            }
+
+            blockRevision = revision;
+            currentRevision = revision;
+        }
+    }
+
+
+    /**
+     * Checks that a file is a journal segment.
+     */
+    static void checkHeader( RandomAccessFile segmentFile, File file ) throws IOException
+    {
+        segmentFile.seek( 0 );
+
+        if ( ( segmentFile.length() < HEADER_SIZE ) || ( segmentFile.readInt() != MAGIC )
+            || ( segmentFile.readByte() != VERSION ) )
+        {
+            throw new IOException( I18n.err( I18n.ERR_751, file ) );
+        }
+    }
+
+
+    /**
+     * Reads the type, the revision and the timestamp of a record, without 
+     * checking its CRC, leaving the file pointer after it.
+     *
+     * @param segmentFile the segment
+     * @param offset the offset of the record in the segment
+     * @param file the file of the segment, for the error messages
+     * @return the record, without its principal nor its change
+     * @throws IOException if the record can't be read
+     */
+    static JournalRecord readSummary( RandomAccessFile segmentFile, long offset, File file ) throws IOException
+    {
+        segmentFile.seek( offset );
+
+        try
+        {
+            int length = segmentFile.readInt();
+            segmentFile.readInt();
+
+            if ( ( length < 17 ) || ( length > segmentFile.length() - offset - RECORD_HEADER_SIZE ) )
+            {
+                throw new IOException( I18n.err( I18n.ERR_752, offset, file ) );
+            }
+
+            JournalRecord.Type type = JournalRecord.Type.getType( segmentFile.readByte() );
+            long revision = segmentFile.readLong();
+            long timestamp = segmentFile.readLong();
+
+            if ( type == null )
+            {
+                throw new IOException( I18n.err( I18n.ERR_752, offset, file ) );
+            }
+
+            segmentFile.seek( offset + RECORD_HEADER_SIZE + length );
+
+            return new JournalRecord( type, revision, timestamp, null, null );
+        }
+        catch ( EOFException eofe )
+        {
+            throw new IOException( I18n.err( I18n.ERR_752, offset, file ) );
+        }
+    }
+
+
+    /**
+     * Reads a record, leaving the file pointer after it.
+     *
+     * @param segmentFile the segment
+     * @param offset the offset of the record in the segment
+     * @param file the file of the segment, for the error messages
+     * @return the record
+     * @throws IOException if the record can't be read, or is corrupted
+     */
+    static JournalRecord readRecord( RandomAccessFile segmentFile, long offset, File file ) throws IOException
+    {
+        segmentFile.seek( offset );
+
+        try
+        {
+            int length = segmentFile.readInt();
+            int crc = segmentFile.readInt();
+
+            if ( ( length < 17 ) || ( length > segmentFile.length() - offset - RECORD_HEADER_SIZE ) )
+            {
+                throw new IOException( I18n.err( I18n.ERR_752, offset, file ) );
+            }
+
+            byte[] body = new byte[length];
+            segmentFile.readFully( body );
+
+            if ( getCrc( body ) != crc )
+            {
+                throw new IOException( I18n.err( I18n.ERR_752, offset, file ) );
+            }
+
+            ByteBuffer buffer = ByteBuffer.wrap( body );
+            JournalRecord.Type type = JournalRecord.Type.getType( buffer.get() );
+            long revision = buffer.getLong();
+            long timestamp = buffer.getLong();
+
+            if ( type == null )
+            {
+                throw new IOException( I18n.err( I18n.ERR_752, offset, file ) );
+            }
+
+            if ( type != JournalRecord.Type.LOG )
+            {
+                return new JournalRecord( type, revision, timestamp, null, null );
+            }
+
+            int principalLength = buffer.getInt();
+            String principalName = new String( body, buffer.position(), principalLength, "UTF-8" );
+            buffer.position( buffer.position() + principalLength );
+            String ldif = new String( body, buffer.position(), buffer.remaining(), "UTF-8" );
+
+            return new JournalRecord( type, revision, timestamp, principalName, ldif );
+        }
+        catch ( EOFException eofe )
+        {
+            throw new IOException( I18n.err( I18n.ERR_752, offset, file ) );
+        }
+        catch ( RuntimeException re )
+        {
+            // A buffer underflow, or a wrong length
+            throw new IOException( I18n.err( I18n.ERR_752, offset, file ) );
+        }
+    }
+
+
+    private static int getCrc( byte[] body )
+    {
+        CRC32 crc = new CRC32();
+        crc.update( body );
+
+        return ( int ) crc.getValue();
+    }
+
+
+    /**
+     * @return a position in the journal, made of the segment number and the
+     * offset in the segment
+     */
+    static long getPosition( int segment, long offset )
+    {
+        return ( ( long ) segment << OFFSET_BITS ) | offset;
+    }
+
+
+    /**
+     * @return the segment number of a position
+     */
+    static int getSegment( long position )
+    {
+        return ( int ) ( position >>> OFFSET_BITS );
+    }
+
+
+    /**
+     * @return the offset in its segment of a position
+     */
+    static long getOffset( long position )
+    {
+        return position & ( ( 1L << OFFSET_BITS ) - 1 );
+    }
+
+
+    /**
+     * @return the position after the last record written
+     */
+    long getEnd()
+    {
+        return end;
+    }
+
+
+    /**
+     * @return the position after the last record synced
+     */
+    long getSyncedEnd()
+    {
+        return syncedEnd;
+    }
+
+
+    /**
+     * Waits until a record is synced after a position, or the journal is 
+     * closed.
+     *
+     * @param position the position known as the end of the journal
+     * @param timeout the maximum time to wait, in milliseconds
+     * @throws InterruptedException if the thread is interrupted
+     */
+    void awaitEnd( long position, long timeout ) throws InterruptedException
+    {
+        synchronized ( lock )
+        {
+            if ( ( syncedEnd <= position ) && ( channel != null ) )
+            {
+                lock.wait( timeout );
+            }
+        }
+    }
+
+
+    /**
+     * Syncs the segment written to, and wakes up the cursors waiting.
+     */
+    private void force() throws IOException
+    {
+        channel.force( false );
+        unsyncedSize = 0;
+        syncedEnd = end;
+        lock.notifyAll();
+    }
+
+
+    /**
+     * Writes a record.
+     */
+    private void append( JournalRecord.Type type, long revision, byte[] payload ) throws IOException
+    {
+        int length = 17 + ( payload == null ? 0 : payload.length );
+        ByteBuffer buffer = ByteBuffer.allocate( RECORD_HEADER_SIZE + length );
+        buffer.putInt( length ).putInt( 0 );
+        buffer.put( type.getCode() ).putLong( revision ).putLong( System.currentTimeMillis() );
+
+        if ( payload != null )
+        {
+            buffer.put( payload );
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update( buffer.array(), RECORD_HEADER_SIZE, length );
+        buffer.putInt( 4, ( int ) crc.getValue() );
+        buffer.flip();
+
+        synchronized ( lock )
+        {
+            if ( channel == null )
+            {
+                throw new IOException( I18n.err( I18n.ERR_753 ) );
+            }
+
+            long offset = getOffset( end );
+
+            if ( ( offset > HEADER_SIZE ) && ( offset + buffer.remaining() > maxSegmentSize ) )
+            {
+                // Start a new segment
+                force();
+                channel.close();
+                createSegment( segment + 1 );
+                offset = HEADER_SIZE;
+            }
+
+            while ( buffer.hasRemaining() )
+            {
+                channel.write( buffer );
+            }
+
+            if ( type == JournalRecord.Type.LOG )
+            {
+                index( segment, offset, revision );
+            }
+
+            end = getPosition( segment, offset + RECORD_HEADER_SIZE + length );
+            unsyncedSize += RECORD_HEADER_SIZE + length;
+
+            if ( ( syncInterval <= 0 ) || ( unsyncedSize >= syncSize ) )
+            {
+                force();
+            }
+        }
     }
     
     
@@ -97,37 +689,27 @@ public class DefaultJournalStore implements JournalStore
      */
     public boolean log( LdapPrincipal principal, long revision, LdifEntry forward )
     {
-        synchronized ( writer )
+        try
         {
-            try
-            {
-                // Write the LdapPrincipal
-                writer.write( "# principal: " );
-                writer.write( principal.getName() );
-                writer.write( '\n' );
-                
-                // Write the timestamp
-                writer.write( "# timestamp: " );
-                writer.write( Long.toString( System.currentTimeMillis() ) );
-                writer.write( '\n' );
-                
-                // Write the revision
-                writer.write( "# revision: " );
-                writer.write( Long.toString( revision ) );
-                writer.write( "\n" );
-                
-                // Write the entry
-                writer.write( LdifUtils.convertToLdif( forward, 80 ) );
-                writer.flush();
-            }
-            catch ( LdapException ne )
-            {
-                return false;
-            }
-            catch ( IOException ioe )
-            {
-                return false;
-            }
+            // Encode the change before taking the lock
+            ByteArrayOutputStream payload = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream( payload );
+            byte[] principalName = StringTools.getBytesUtf8( principal.getName() );
+            out.writeInt( principalName.length );
+            out.write( principalName );
+            out.write( StringTools.getBytesUtf8( LdifUtils.convertToLdif( forward, 80 ) ) );
+            out.flush();
+
+            append( JournalRecord.Type.LOG, revision, payload.toByteArray() );
+        }
+        catch ( LdapException ne )
+        {
+            return false;
+        }
+        catch ( IOException ioe )
+        {
+            LOG.error( ioe.getMessage(), ioe );
+            return false;
         }
         
         return true;
@@ -143,21 +725,14 @@ public class DefaultJournalStore implements JournalStore
      */
     public boolean ack( long revision )
     {
-        synchronized ( writer )
+        try
         {
-            try
-            {
-                // Write the revision
-                writer.write( "# ack-revision: " );
-                writer.write( Long.toString( revision ) );
-                writer.write( "\n\n" );
-
-                writer.flush();
-            }
-            catch ( IOException ioe )
-            {
-                return false;
-            }
+            append( JournalRecord.Type.ACK, revision, null );
+        }
+        catch ( IOException ioe )
+        {
+            LOG.error( ioe.getMessage(), ioe );
+            return false;
         }
         
         return true;
@@ -173,37 +748,87 @@ public class DefaultJournalStore implements JournalStore
      */
     public boolean nack( long revision )
     {
-        synchronized ( writer )
+        try
         {
-            try
-            {
-                // Write the revision
-                writer.write( "# nack-revision: " );
-                writer.write( Long.toString( revision ) );
-                writer.write( "\n\n" );
-
-                writer.flush();
-            }
-            catch ( IOException ioe )
-            {
-                return false;
-            }
+            append( JournalRecord.Type.NACK, revision, null );
+        }
+        catch ( IOException ioe )
+        {
+            LOG.error( ioe.getMessage(), ioe );
+            return false;
         }
         
         return true;
     }
 
     
+    /**
+     * Syncs the records written to the disk.
+     */
     public void sync() throws Exception
     {
-        // TODO Auto-generated method stub
-        
+        synchronized ( lock )
+        {
+            if ( ( channel != null ) && ( unsyncedSize > 0 ) )
+            {
+                force();
+            }
+        }
     }
     
+    
+    /**
+     * {@inheritDoc}
+     */
     public long getCurrentRevision()
     {
-        // TODO Auto-generated method stub
-        return 0;
+        return currentRevision;
+    }
+
+
+    /**
+     * Opens a cursor reading the journal from a revision : the records 
+     * having this revision or a later one, in the order they have been 
+     * written.
+     *
+     * @param revision the revision of the first change to read
+     * @return the cursor, positioned at the start of the first block which 
+     * may have a change with this revision or a later one, or at the end of 
+     * the journal if there is none
+     */
+    public JournalCursor replay( long revision )
+    {
+        long position = getEnd();
+        Map.Entry<Long, Long> first = index.ceilingEntry( revision );
+
+        if ( first != null )
+        {
+            position = first.getValue();
+        }
+
+        return new JournalCursor( this, position, revision );
+    }
+
+
+    /**
+     * Opens a cursor reading the whole journal.
+     *
+     * @return the cursor, positioned before the first record
+     */
+    public JournalCursor replay()
+    {
+        return new JournalCursor( this, getPosition( firstSegment, HEADER_SIZE ), Long.MIN_VALUE );
+    }
+
+
+    /**
+     * Opens a cursor reading the records written from now on.
+     *
+     * @return the cursor, positioned at the end of the journal
+     */
+    public JournalCursor tail()
+    {
+        return new JournalCursor( this, getEnd(), Long.MIN_VALUE );
     }
 
 
@@ -232,4 +857,63 @@ public class DefaultJournalStore implements JournalStore
     {
         this.workingDirectory = new File( workingDirectoryName );
     }
+
+
+    /**
+     * @return the maximum size of a segment
+     */
+    public long getMaxSegmentSize()
+    {
+        return maxSegmentSize;
+    }
+
+
+    /**
+     * @param maxSegmentSize the maximum size of a segment, before a new one
+     * is started
+     */
+    public void setMaxSegmentSize( long maxSegmentSize )
+    {
+        this.maxSegmentSize = maxSegmentSize;
+    }
+
+
+    /**
+     * @return the number of bytes written before the segment is synced
+     */
+    public long getSyncSize()
+    {
+        return syncSize;
+    }
+
+
+    /**
+     * @param syncSize the number of bytes written before the segment is synced
+     */
+    public void setSyncSize( long syncSize )
+    {
+        this.syncSize = syncSize;
+    }
+
+
+    /**
+     * @return the maximum time, in milliseconds, before written records are synced
+     */
+    public long getSyncInterval()
+    {
+        return syncInterval;
+    }
+
+
+    /**
+     * Sets the maximum time before written records are synced. It is read
+     * when the store is initialized.
+     *
+     * @param syncInterval the maximum time, in milliseconds, or 0 to sync 
+     * each record as it is written
+     */
+    public void setSyncInterval( long syncInterval )
+    {
+        this.syncInterval = syncInterval;
+    }
 }
@@ -0,0 +1,185 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.core.journal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * A cursor reading the records of a {@link DefaultJournalStore} in the 
+ * order they have been written, from one segment to the next, skipping 
+ * the records older than its first revision. It only reads the records 
+ * synced to the disk : once it has read them all, it can wait for the 
+ * next ones, so that a consumer can follow the journal as it is written.
+ * <p>
+ * A cursor is used by a single thread, and must be closed.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+*/
+public class JournalCursor
+{
+    /** The journal read */
+    private final DefaultJournalStore store;
+
+    /** The position of the next record to read */
+    private long position;
+
+    /** The revision of the first record to read */
+    private final long revision;
+
+    /** The segment read */
+    private RandomAccessFile segmentFile;
+
+    /** The file of the segment read */
+    private File file;
+
+    /** The last record read */
+    private JournalRecord record;
+
+
+    /**
+     * Creates a cursor.
+     *
+     * @param store the journal to read
+     * @param position the position of the first record to read
+     * @param revision the revision of the first record to read, the 
+     * previous ones being skipped
+     */
+    JournalCursor( DefaultJournalStore store, long position, long revision )
+    {
+        this.store = store;
+        this.position = position;
+        this.revision = revision;
+    }
+
+
+    /**
+     * Reads the next record, if it has been synced.
+     *
+     * @return <code>true</code> if a record has been read, <code>false</code>
+     * if the end of the journal has been reached
+     * @throws IOException if the journal can't be read
+     */
+    public boolean next() throws IOException
+    {
+        while ( read() )
+        {
+            if ( record.getRevision() >= revision )
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+
+    /**
+     * Reads the record at the position, if it has been synced.
+     */
+    private boolean read() throws IOException
+    {
+        long end = store.getSyncedEnd();
+
+        if ( position >= end )
+        {
+            return false;
+        }
+
+        int segment = DefaultJournalStore.getSegment( position );
+        long offset = DefaultJournalStore.getOffset( position );
+
+        if ( segmentFile == null )
+        {
+            open( segment );
+        }
+
+        if ( ( segment < DefaultJournalStore.getSegment( end ) ) && ( offset >= segmentFile.length() ) )
+        {
+            // The segment is complete, the next records are in the next one
+            segmentFile.close();
+            segmentFile = null;
+            position = DefaultJournalStore.getPosition( segment + 1, DefaultJournalStore.HEADER_SIZE );
+
+            return read();
+        }
+
+        record = DefaultJournalStore.readRecord( segmentFile, offset, file );
+        position = DefaultJournalStore.getPosition( segment, segmentFile.getFilePointer() );
+
+        return true;
+    }
+
+
+    /**
+     * Reads the next record, waiting for it to be synced if the end of the
+     * journal has been reached.
+     *
+     * @param timeout the maximum time to wait, in milliseconds
+     * @return <code>true</code> if a record has been read, <code>false</code>
+     * if none has been written before the timeout, or if the journal is closed
+     * @throws IOException if the journal can't be read
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public boolean next( long timeout ) throws IOException, InterruptedException
+    {
+        if ( next() )
+        {
+            return true;
+        }
+
+        store.awaitEnd( position, timeout );
+
+        return next();
+    }
+
+
+    /**
+     * @return the last record read
+     */
+    public JournalRecord get()
+    {
+        return record;
+    }
+
+
+    /**
+     * Closes the cursor.
+     *
+     * @throws IOException if the segment read can't be closed
+     */
+    public void close() throws IOException
+    {
+        if ( segmentFile != null )
+        {
+            segmentFile.close();
+            segmentFile = null;
+        }
+    }
+
+
+    private void open( int segment ) throws IOException
+    {
+        file = store.getSegmentFile( segment );
+        segmentFile = new RandomAccessFile( file, "r" );
+        DefaultJournalStore.checkHeader( segmentFile, file );
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.core.journal;
+
+
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.directory.shared.ldap.ldif.LdapLdifException;
+import org.apache.directory.shared.ldap.ldif.LdifEntry;
+import org.apache.directory.shared.ldap.ldif.LdifReader;
+
+
+/**
+ * A record read from the journal : a change, or the ack or nack of a change.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class JournalRecord
+{
+    /**
+     * The kinds of records, with the code identifying them in the journal.
+     */
+    public enum Type
+    {
+        /** A change */
+        LOG( 1 ),
+
+        /** The ack of a change */
+        ACK( 2 ),
+
+        /** The nack of a change */
+        NACK( 3 );
+
+        /** The code of the type in the journal */
+        private final byte code;
+
+
+        private Type( int code )
+        {
+            this.code = ( byte ) code;
+        }
+
+
+        /**
+         * @return the code of the type in the journal
+         */
+        byte getCode()
+        {
+            return code;
+        }
+
+
+        /**
+         * @param code a code read from the journal
+         * @return the type having this code, or null if there is none
+         */
+        static Type getType( byte code )
+        {
+            for ( Type type : values() )
+            {
+                if ( type.code == code )
+                {
+                    return type;
+                }
+            }
+
+            return null;
+        }
+    }
+
+    /** The kind of record */
+    private final Type type;
+
+    /** The revision of the change */
+    private final long revision;
+
+    /** The time the record has been written */
+    private final long timestamp;
+
+    /** The name of the principal who made the change, for a LOG record */
+    private final String principalName;
+
+    /** The forward LDIF of the change, for a LOG record */
+    private final String ldif;
+
+
+    JournalRecord( Type type, long revision, long timestamp, String principalName, String ldif )
+    {
+        this.type = type;
+        this.revision = revision;
+        this.timestamp = timestamp;
+        this.principalName = principalName;
+        this.ldif = ldif;
+    }
+
+
+    /**
+     * @return the kind of record
+     */
+    public Type getType()
+    {
+        return type;
+    }
+
+
+    /**
+     * @return the revision of the change
+     */
+    public long getRevision()
+    {
+        return revision;
+    }
+
+
+    /**
+     * @return the time the record has been written, in milliseconds
+     */
+    public long getTimestamp()
+    {
+        return timestamp;
+    }
+
+
+    /**
+     * @return the name of the principal who made the change, or null if 
+     * the record is not a change
+     */
+    public String getPrincipalName()
+    {
+        return principalName;
+    }
+
+
+    /**
+     * @return the forward LDIF of the change, or null if the record is not
+     * a change
+     */
+    public String getLdif()
+    {
+        return ldif;
+    }
+
+
+    /**
+     * Parses the change.
+     *
+     * @return the change, or null if the record is not a change
+     * @throws LdapLdifException if the LDIF can't be parsed
+     */
+    public LdifEntry getForward() throws LdapLdifException
+    {
+        if ( ldif == null )
+        {
+            return null;
+        }
+
+        LdifReader reader = new LdifReader();
+        List<LdifEntry> entries = reader.parseLdif( ldif );
+
+        try
+        {
+            reader.close();
+        }
+        catch ( IOException ioe )
+        {
+            // Nothing to release : the LDIF is read from a String
+        }
+
+        return entries.isEmpty() ? null : entries.get( 0 );
+    }
+
+
+    /**
+     * @see Object#toString()
+     */
+    public String toString()
+    {
+        return "JournalRecord[" + type + ", " + revision + "]";
+    }
+}
@@ -31,6 +31,10 @@ import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import javax.naming.ConfigurationException;
 import javax.naming.directory.SearchControls;
@@ -44,6 +48,7 @@ import org.apache.directory.server.core.entry.ClonedServerEntry;
 import org.apache.directory.server.core.filtering.BaseEntryFilteringCursor;
 import org.apache.directory.server.core.filtering.CursorList;
 import org.apache.directory.server.core.filtering.EntryFilteringCursor;
+import org.apache.directory.server.core.filtering.ParallelCursorList;
 import org.apache.directory.server.core.interceptor.context.AddOperationContext;
 import org.apache.directory.server.core.interceptor.context.BindOperationContext;
 import org.apache.directory.server.core.interceptor.context.CompareOperationContext;
@@ -150,6 +155,15 @@ public class DefaultPartitionNexus extends AbstractPartition implements Partitio
 
     private String lastSyncedCtxCsn = "";
 
+    /**
+     * the number of threads reading the partitions concurrently when a search
+     * spans several naming contexts, 0 to read them one after the other
+     */
+    private int searchThreads;
+
+    /** the executor reading the partitions, created by the first parallel search */
+    private ThreadPoolExecutor searchExecutor;
+
 
     /**
      * Creates the root nexus singleton of the entire system.  The root DSE has
@@ -374,6 +388,12 @@ public class DefaultPartitionNexus extends AbstractPartition implements Partitio
             }
         }
 
+        if ( searchExecutor != null )
+        {
+            searchExecutor.shutdown();
+            searchExecutor = null;
+        }
+
         initialized = false;
     }
 
@@ -850,7 +870,7 @@ public class DefaultPartitionNexus extends AbstractPartition implements Partitio
                     cursors.add( p.search( searchContext ) );
                 }
 
-                return new CursorList( cursors, searchContext );
+                return mergeCursors( cursors, searchContext );
             }
             else if ( isSublevelScope )
             {
@@ -868,7 +888,7 @@ public class DefaultPartitionNexus extends AbstractPartition implements Partitio
                 }
 
                 // don't feed the above Cursors' list to a BaseEntryFilteringCursor it is skipping the naming context entry of each partition 
-                return new CursorList( cursors, searchContext );
+                return mergeCursors( cursors, searchContext );
             }
 
             // TODO : handle searches based on the RootDSE
@@ -885,6 +905,80 @@ public class DefaultPartitionNexus extends AbstractPartition implements Partitio
     }
 
 
+    /**
+     * Merges the results of the search of several partitions. The partitions
+     * are read concurrently if search threads have been configured. The
+     * Cursors are still created one after the other, as the filter and the
+     * search context are shared.
+     */
+    private EntryFilteringCursor mergeCursors( List<EntryFilteringCursor> cursors, SearchOperationContext searchContext )
+    {
+        if ( ( searchThreads > 0 ) && ( cursors.size() > 1 ) )
+        {
+            return new ParallelCursorList( cursors, searchContext, getSearchExecutor() );
+        }
+
+        return new CursorList( cursors, searchContext );
+    }
+
+
+    /**
+     * @return the executor reading the partitions concurrently
+     */
+    private synchronized ExecutorService getSearchExecutor()
+    {
+        if ( searchExecutor == null )
+        {
+            searchExecutor = new ThreadPoolExecutor( searchThreads, searchThreads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>() );
+            searchExecutor.allowCoreThreadTimeOut( true );
+        }
+
+        return searchExecutor;
+    }
+
+
+    /**
+     * @return the number of threads reading the partitions concurrently when
+     * a search spans several naming contexts, 0 if they are read one after
+     * the other
+     */
+    public int getSearchThreads()
+    {
+        return searchThreads;
+    }
+
+
+    /**
+     * Sets the number of threads reading the partitions concurrently when a
+     * search is based on the RootDSE and spans several naming contexts. The
+     * entries are then returned as soon as one of the partitions has found
+     * them, and not partition after partition.
+     *
+     * @param searchThreads the number of threads, 0 to read the partitions
+     * one after the other, which is the default
+     */
+    public synchronized void setSearchThreads( int searchThreads )
+    {
+        this.searchThreads = Math.max( searchThreads, 0 );
+
+        // The executor is resized, as the running searches still use it
+        if ( ( searchExecutor != null ) && ( this.searchThreads > 0 ) )
+        {
+            if ( this.searchThreads > searchExecutor.getMaximumPoolSize() )
+            {
+                searchExecutor.setMaximumPoolSize( this.searchThreads );
+                searchExecutor.setCorePoolSize( this.searchThreads );
+            }
+            else
+            {
+                searchExecutor.setCorePoolSize( this.searchThreads );
+                searchExecutor.setMaximumPoolSize( this.searchThreads );
+            }
+        }
+    }
+
+
     /* (non-Javadoc)
      * @see org.apache.directory.server.core.partition.PartitionNexus#unbind(org.apache.directory.server.core.interceptor.context.UnbindOperationContext)
      */
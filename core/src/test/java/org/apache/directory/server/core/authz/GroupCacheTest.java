@@ -0,0 +1,285 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.authz;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.directory.server.core.LdapPrincipal;
+import org.apache.directory.server.core.MockCoreSession;
+import org.apache.directory.server.core.MockDirectoryService;
+import org.apache.directory.server.core.partition.PartitionNexus;
+import org.apache.directory.shared.ldap.constants.AuthenticationLevel;
+import org.apache.directory.shared.ldap.entry.DefaultEntry;
+import org.apache.directory.shared.ldap.entry.DefaultEntryAttribute;
+import org.apache.directory.shared.ldap.entry.DefaultModification;
+import org.apache.directory.shared.ldap.entry.Entry;
+import org.apache.directory.shared.ldap.entry.Modification;
+import org.apache.directory.shared.ldap.entry.ModificationOperation;
+import org.apache.directory.shared.ldap.name.DN;
+import org.apache.directory.shared.ldap.schema.SchemaManager;
+import org.apache.directory.shared.ldap.schema.loader.ldif.JarLdifSchemaLoader;
+import org.apache.directory.shared.ldap.schema.manager.impl.DefaultSchemaManager;
+import org.apache.directory.shared.ldap.util.LdapExceptionUtils;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+
+/**
+ * Tests the {@link GroupCache}, fed by the changes of the groups.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class GroupCacheTest
+{
+    private static final String USER = "uid=user,ou=users,ou=system";
+
+    private static SchemaManager schemaManager;
+
+    private GroupCache cache;
+
+
+    @BeforeClass
+    public static void init() throws Exception
+    {
+        schemaManager = new DefaultSchemaManager( new JarLdifSchemaLoader() );
+
+        if ( !schemaManager.loadAllEnabled() )
+        {
+            fail( "Schema load failed : " + LdapExceptionUtils.printErrors( schemaManager.getErrors() ) );
+        }
+    }
+
+
+    @Before
+    public void setUp() throws Exception
+    {
+        // A nexus without any suffix : the cache starts without groups
+        final PartitionNexus nexus = ( PartitionNexus ) Proxy.newProxyInstance( getClass().getClassLoader(),
+            new Class[] { PartitionNexus.class }, new InvocationHandler()
+            {
+                public Object invoke( Object proxy, Method method, Object[] args )
+                {
+                    if ( method.getName().equals( "listSuffixes" ) )
+                    {
+                        return new HashSet<String>();
+                    }
+
+                    return null;
+                }
+            } );
+
+        MockDirectoryService directoryService = new MockDirectoryService()
+        {
+            public SchemaManager getSchemaManager()
+            {
+                return schemaManager;
+            }
+
+
+            public PartitionNexus getPartitionNexus()
+            {
+                return nexus;
+            }
+        };
+
+        cache = new GroupCache( new MockCoreSession( new LdapPrincipal( new DN( "uid=admin,ou=system" ),
+            AuthenticationLevel.STRONG ), directoryService ) );
+    }
+
+
+    private DN getDn( String name ) throws Exception
+    {
+        DN dn = new DN( name );
+        dn.normalize( schemaManager.getNormalizerMapping() );
+
+        return dn;
+    }
+
+
+    private Entry createGroup( String name, String... members ) throws Exception
+    {
+        Entry entry = new DefaultEntry( schemaManager, getDn( name ) );
+        entry.add( "objectClass", "top", "groupOfNames" );
+        entry.add( "member", members );
+
+        return entry;
+    }
+
+
+    private void addGroup( String name, String... members ) throws Exception
+    {
+        cache.groupAdded( getDn( name ), createGroup( name, members ) );
+    }
+
+
+    /**
+     * @return the normalized names of the groups of a member
+     */
+    private Set<String> getGroups( String member ) throws Exception
+    {
+        Set<String> names = new HashSet<String>();
+
+        for ( DN group : cache.getGroups( member ) )
+        {
+            names.add( group.getNormName() );
+        }
+
+        return names;
+    }
+
+
+    private Set<String> names( String... groups ) throws Exception
+    {
+        Set<String> names = new HashSet<String>();
+
+        for ( String group : groups )
+        {
+            names.add( getDn( group ).getNormName() );
+        }
+
+        return names;
+    }
+
+
+    @Test
+    public void testNestedGroups() throws Exception
+    {
+        addGroup( "cn=a,ou=groups,ou=system", USER );
+        addGroup( "cn=b,ou=groups,ou=system", "cn=a,ou=groups,ou=system" );
+        addGroup( "cn=c,ou=groups,ou=system", "cn=b,ou=groups,ou=system", USER );
+        addGroup( "cn=d,ou=groups,ou=system", "uid=other,ou=users,ou=system" );
+
+        assertEquals( names( "cn=a,ou=groups,ou=system", "cn=b,ou=groups,ou=system", "cn=c,ou=groups,ou=system" ),
+            getGroups( USER ) );
+        assertEquals( names( "cn=b,ou=groups,ou=system", "cn=c,ou=groups,ou=system" ),
+            getGroups( "cn=a,ou=groups,ou=system" ) );
+        assertTrue( getGroups( "uid=nobody,ou=users,ou=system" ).isEmpty() );
+
+        // The member DNs are normalized
+        assertEquals( getGroups( USER ), getGroups( "UID=User, OU=Users, OU=System" ) );
+    }
+
+
+    @Test
+    public void testCycle() throws Exception
+    {
+        addGroup( "cn=a,ou=groups,ou=system", USER, "cn=c,ou=groups,ou=system" );
+        addGroup( "cn=b,ou=groups,ou=system", "cn=a,ou=groups,ou=system" );
+        addGroup( "cn=c,ou=groups,ou=system", "cn=b,ou=groups,ou=system" );
+
+        // Each group of the cycle is found once
+        assertEquals( names( "cn=a,ou=groups,ou=system", "cn=b,ou=groups,ou=system", "cn=c,ou=groups,ou=system" ),
+            getGroups( USER ) );
+
+        // A group member of itself through the cycle is in its own groups
+        assertEquals( names( "cn=a,ou=groups,ou=system", "cn=b,ou=groups,ou=system", "cn=c,ou=groups,ou=system" ),
+            getGroups( "cn=a,ou=groups,ou=system" ) );
+    }
+
+
+    @Test
+    public void testResolvedGroupsKept() throws Exception
+    {
+        addGroup( "cn=a,ou=groups,ou=system", USER );
+        addGroup( "cn=b,ou=groups,ou=system", "cn=a,ou=groups,ou=system" );
+
+        // The groups are resolved once, until a group changes
+        Set<DN> groups = cache.getGroups( USER );
+        assertSame( groups, cache.getGroups( USER ) );
+
+        addGroup( "cn=c,ou=groups,ou=system", "cn=b,ou=groups,ou=system" );
+        Set<DN> changed = cache.getGroups( USER );
+        assertNotSame( groups, changed );
+        assertEquals( 3, changed.size() );
+        assertSame( changed, cache.getGroups( USER ) );
+
+        cache.groupDeleted( getDn( "cn=b,ou=groups,ou=system" ), createGroup( "cn=b,ou=groups,ou=system",
+            "cn=a,ou=groups,ou=system" ) );
+        assertEquals( names( "cn=a,ou=groups,ou=system" ), getGroups( USER ) );
+    }
+
+
+    @Test
+    public void testGroupRenamed() throws Exception
+    {
+        addGroup( "cn=a,ou=groups,ou=system", USER );
+        assertEquals( names( "cn=a,ou=groups,ou=system" ), getGroups( USER ) );
+
+        assertTrue( cache.groupRenamed( getDn( "cn=a,ou=groups,ou=system" ), getDn( "cn=z,ou=groups,ou=system" ) ) );
+        assertEquals( names( "cn=z,ou=groups,ou=system" ), getGroups( USER ) );
+
+        // The renamed group is a member under its new name
+        addGroup( "cn=b,ou=groups,ou=system", "cn=z,ou=groups,ou=system" );
+        assertEquals( names( "cn=z,ou=groups,ou=system", "cn=b,ou=groups,ou=system" ), getGroups( USER ) );
+
+        assertFalse( cache.groupRenamed( getDn( "cn=a,ou=groups,ou=system" ), getDn( "cn=y,ou=groups,ou=system" ) ) );
+    }
+
+
+    @Test
+    public void testGroupModified() throws Exception
+    {
+        String group = "cn=a,ou=groups,ou=system";
+        String other = "uid=other,ou=users,ou=system";
+        addGroup( group, USER );
+
+        // Add
+        Entry mods = new DefaultEntry( schemaManager, getDn( group ) );
+        mods.add( "member", other );
+        cache.groupModified( getDn( group ), ModificationOperation.ADD_ATTRIBUTE, mods );
+        assertEquals( names( group ), getGroups( USER ) );
+        assertEquals( names( group ), getGroups( other ) );
+
+        // Remove
+        cache.groupModified( getDn( group ), ModificationOperation.REMOVE_ATTRIBUTE, mods );
+        assertEquals( names( group ), getGroups( USER ) );
+        assertTrue( getGroups( other ).isEmpty() );
+
+        // Replace, with the modifications of a modify operation
+        List<Modification> modifications = new ArrayList<Modification>();
+        modifications.add( new DefaultModification( ModificationOperation.REPLACE_ATTRIBUTE,
+            new DefaultEntryAttribute( "member", schemaManager.lookupAttributeTypeRegistry( "member" ), other ) ) );
+        cache.groupModified( getDn( group ), modifications, createGroup( group, other ), schemaManager );
+        assertTrue( getGroups( USER ).isEmpty() );
+        assertEquals( names( group ), getGroups( other ) );
+
+        // Remove, with the modifications of a modify operation
+        modifications.clear();
+        modifications.add( new DefaultModification( ModificationOperation.REMOVE_ATTRIBUTE,
+            new DefaultEntryAttribute( "member", schemaManager.lookupAttributeTypeRegistry( "member" ), other ) ) );
+        cache.groupModified( getDn( group ), modifications, createGroup( group, USER ), schemaManager );
+        assertTrue( getGroups( other ).isEmpty() );
+    }
+}
@@ -0,0 +1,423 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.event;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+
+import org.apache.directory.server.core.interceptor.context.AddOperationContext;
+import org.apache.directory.server.core.interceptor.context.DeleteOperationContext;
+import org.apache.directory.server.core.interceptor.context.ModifyOperationContext;
+import org.apache.directory.server.core.interceptor.context.MoveAndRenameOperationContext;
+import org.apache.directory.server.core.interceptor.context.MoveOperationContext;
+import org.apache.directory.server.core.interceptor.context.OperationContext;
+import org.apache.directory.server.core.interceptor.context.RenameOperationContext;
+import org.apache.directory.shared.ldap.entry.Modification;
+import org.apache.directory.shared.ldap.name.DN;
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * Tests the {@link EventQueue} of a registration.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class EventQueueTest
+{
+    private TaskExecutor executor;
+
+    private RecordingListener listener;
+
+
+    /**
+     * An executor keeping the tasks, run by the test.
+     */
+    private static class TaskExecutor implements Executor
+    {
+        private final LinkedList<Runnable> tasks = new LinkedList<Runnable>();
+
+
+        public synchronized void execute( Runnable task )
+        {
+            tasks.add( task );
+        }
+
+
+        private synchronized Runnable poll()
+        {
+            return tasks.poll();
+        }
+
+
+        private synchronized int size()
+        {
+            return tasks.size();
+        }
+
+
+        /**
+         * Runs the tasks, until none is left.
+         */
+        private void runAll()
+        {
+            for ( Runnable task = poll(); task != null; task = poll() )
+            {
+                task.run();
+            }
+        }
+    }
+
+
+    /**
+     * A listener keeping the changes delivered.
+     */
+    private static class RecordingListener implements DirectoryListener
+    {
+        private final List<OperationContext> delivered = new CopyOnWriteArrayList<OperationContext>();
+
+        private volatile int disconnectedCount;
+
+
+        public void entryAdded( AddOperationContext addContext )
+        {
+            delivered.add( addContext );
+        }
+
+
+        public void entryDeleted( DeleteOperationContext deleteContext )
+        {
+            delivered.add( deleteContext );
+        }
+
+
+        public void entryModified( ModifyOperationContext modifyContext )
+        {
+            delivered.add( modifyContext );
+        }
+
+
+        public void entryRenamed( RenameOperationContext renameContext )
+        {
+            delivered.add( renameContext );
+        }
+
+
+        public void entryMoved( MoveOperationContext moveContext )
+        {
+            delivered.add( moveContext );
+        }
+
+
+        public void entryMovedAndRenamed( MoveAndRenameOperationContext moveAndRenameContext )
+        {
+            delivered.add( moveAndRenameContext );
+        }
+
+
+        public void listenerDisconnected()
+        {
+            disconnectedCount++;
+        }
+    }
+
+
+    @Before
+    public void setUp()
+    {
+        executor = new TaskExecutor();
+        listener = new RecordingListener();
+    }
+
+
+    private EventQueue createQueue( int size, OverflowPolicy policy, boolean coalesceModifies )
+    {
+        NotificationCriteria criteria = new NotificationCriteria();
+        criteria.setCoalesceModifies( coalesceModifies );
+
+        return new EventQueue( new RegistrationEntry( listener, criteria ), executor, size, policy );
+    }
+
+
+    private List<OperationContext> createEvents( int count ) throws Exception
+    {
+        List<OperationContext> events = new ArrayList<OperationContext>();
+
+        for ( int i = 0; i < count; i++ )
+        {
+            DN dn = new DN( "cn=entry" + i + ",ou=system" );
+            events.add( ( i % 2 == 0 ) ? new AddOperationContext( null, dn ) : new DeleteOperationContext( null, dn ) );
+        }
+
+        return events;
+    }
+
+
+    private ModifyOperationContext createModify( String dn ) throws Exception
+    {
+        return new ModifyOperationContext( null, new DN( dn ), new ArrayList<Modification>() );
+    }
+
+
+    @Test
+    public void testOrder() throws Exception
+    {
+        EventQueue queue = createQueue( 1000, OverflowPolicy.BLOCK, false );
+        List<OperationContext> events = createEvents( 200 );
+
+        for ( OperationContext event : events )
+        {
+            assertTrue( queue.add( event ) );
+        }
+
+        // A single task delivers the events at a time
+        assertEquals( 1, executor.size() );
+        assertEquals( 200, queue.getDepth() );
+
+        executor.runAll();
+
+        assertEquals( events, listener.delivered );
+        assertEquals( 0, queue.getDepth() );
+        assertEquals( 200, queue.getMaxDepth() );
+        assertEquals( 0, queue.getDroppedCount() );
+
+        // The queue is scheduled again by the next change
+        OperationContext event = createEvents( 1 ).get( 0 );
+        queue.add( event );
+        assertEquals( 1, executor.size() );
+        executor.runAll();
+        assertSame( event, listener.delivered.get( 200 ) );
+    }
+
+
+    @Test
+    public void testDropOldest() throws Exception
+    {
+        EventQueue queue = createQueue( 3, OverflowPolicy.DROP_OLDEST, false );
+        List<OperationContext> events = createEvents( 5 );
+
+        for ( OperationContext event : events )
+        {
+            assertTrue( queue.add( event ) );
+        }
+
+        assertEquals( 3, queue.getDepth() );
+        assertEquals( 2, queue.getDroppedCount() );
+
+        executor.runAll();
+
+        assertEquals( events.subList( 2, 5 ), listener.delivered );
+        assertEquals( 0, listener.disconnectedCount );
+    }
+
+
+    @Test
+    public void testDisconnect() throws Exception
+    {
+        EventQueue queue = createQueue( 2, OverflowPolicy.DISCONNECT, false );
+        List<OperationContext> events = createEvents( 4 );
+
+        assertTrue( queue.add( events.get( 0 ) ) );
+        assertTrue( queue.add( events.get( 1 ) ) );
+        assertFalse( queue.add( events.get( 2 ) ) );
+
+        // The events waiting are dropped, and the next ones ignored
+        assertEquals( 0, queue.getDepth() );
+        assertEquals( 2, queue.getDroppedCount() );
+        assertTrue( queue.add( events.get( 3 ) ) );
+        assertEquals( 0, queue.getDepth() );
+
+        // The listener is told once it has been removed
+        assertEquals( 1, executor.size() );
+        executor.runAll();
+
+        assertTrue( listener.delivered.isEmpty() );
+        assertEquals( 1, listener.disconnectedCount );
+    }
+
+
+    @Test(timeout = 10000)
+    public void testDisconnectWhileDelivering() throws Exception
+    {
+        final List<OperationContext> events = createEvents( 4 );
+        final EventQueue[] queue = new EventQueue[1];
+        final boolean[] added = new boolean[3];
+
+        // The queue overflows while the listener handles the first event
+        listener = new RecordingListener()
+        {
+            public void entryAdded( AddOperationContext addContext )
+            {
+                super.entryAdded( addContext );
+
+                Thread operation = new Thread()
+                {
+                    public void run()
+                    {
+                        for ( int i = 0; i < 3; i++ )
+                        {
+                            added[i] = queue[0].add( events.get( i + 1 ) );
+                        }
+                    }
+                };
+
+                operation.start();
+
+                try
+                {
+                    operation.join();
+                }
+                catch ( InterruptedException e )
+                {
+                    throw new RuntimeException( e );
+                }
+
+                assertEquals( 0, disconnectedCount );
+            }
+        };
+
+        queue[0] = createQueue( 2, OverflowPolicy.DISCONNECT, false );
+        queue[0].add( events.get( 0 ) );
+        executor.runAll();
+
+        // The listener is told once the event it was handling is delivered
+        assertTrue( added[0] );
+        assertTrue( added[1] );
+        assertFalse( added[2] );
+        assertEquals( events.subList( 0, 1 ), listener.delivered );
+        assertEquals( 1, listener.disconnectedCount );
+        assertEquals( 2, queue[0].getDroppedCount() );
+    }
+
+
+    @Test
+    public void testCoalesceModifies() throws Exception
+    {
+        EventQueue queue = createQueue( 10, OverflowPolicy.BLOCK, true );
+        ModifyOperationContext first = createModify( "cn=a,ou=system" );
+        ModifyOperationContext second = createModify( "cn=a,ou=system" );
+        ModifyOperationContext other = createModify( "cn=b,ou=system" );
+        ModifyOperationContext third = createModify( "cn=a,ou=system" );
+
+        queue.add( first );
+        queue.add( second );
+        assertEquals( 1, queue.getDepth() );
+        assertEquals( 1, queue.getCoalescedCount() );
+
+        // Only the last change waiting is replaced, to keep the order
+        queue.add( other );
+        queue.add( third );
+        assertEquals( 3, queue.getDepth() );
+
+        executor.runAll();
+
+        assertEquals( 3, listener.delivered.size() );
+        assertSame( second, listener.delivered.get( 0 ) );
+        assertSame( other, listener.delivered.get( 1 ) );
+        assertSame( third, listener.delivered.get( 2 ) );
+    }
+
+
+    @Test
+    public void testNoCoalescing() throws Exception
+    {
+        EventQueue queue = createQueue( 10, OverflowPolicy.BLOCK, false );
+
+        queue.add( createModify( "cn=a,ou=system" ) );
+        queue.add( createModify( "cn=a,ou=system" ) );
+
+        assertEquals( 2, queue.getDepth() );
+        assertEquals( 0, queue.getCoalescedCount() );
+    }
+
+
+    @Test(timeout = 10000)
+    public void testBlock() throws Exception
+    {
+        final EventQueue queue = createQueue( 1, OverflowPolicy.BLOCK, false );
+        final List<OperationContext> events = createEvents( 2 );
+
+        queue.add( events.get( 0 ) );
+
+        Thread adder = new Thread()
+        {
+            public void run()
+            {
+                queue.add( events.get( 1 ) );
+            }
+        };
+
+        adder.start();
+
+        // The operation waits until the listener has handled an event
+        adder.join( 200 );
+        assertTrue( adder.isAlive() );
+        assertEquals( 1, queue.getDepth() );
+
+        while ( adder.isAlive() )
+        {
+            executor.runAll();
+            adder.join( 10 );
+        }
+
+        executor.runAll();
+
+        assertEquals( events, listener.delivered );
+    }
+
+
+    @Test(timeout = 10000)
+    public void testListenerChangingTheDit() throws Exception
+    {
+        final List<OperationContext> events = createEvents( 3 );
+        final EventQueue[] queue = new EventQueue[1];
+
+        // The listener adds changes to its own full queue : it doesn't wait for itself
+        listener = new RecordingListener()
+        {
+            public void entryAdded( AddOperationContext addContext )
+            {
+                super.entryAdded( addContext );
+
+                if ( addContext == events.get( 0 ) )
+                {
+                    queue[0].add( events.get( 1 ) );
+                    queue[0].add( events.get( 2 ) );
+                }
+            }
+        };
+
+        queue[0] = createQueue( 1, OverflowPolicy.BLOCK, false );
+        queue[0].add( events.get( 0 ) );
+        executor.runAll();
+
+        assertEquals( events, listener.delivered );
+        assertEquals( 2, queue[0].getMaxDepth() );
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.event;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.directory.shared.ldap.entry.DefaultEntry;
+import org.apache.directory.shared.ldap.entry.Entry;
+import org.apache.directory.shared.ldap.entry.StringValue;
+import org.apache.directory.shared.ldap.filter.AndNode;
+import org.apache.directory.shared.ldap.filter.EqualityNode;
+import org.apache.directory.shared.ldap.filter.ExprNode;
+import org.apache.directory.shared.ldap.filter.PresenceNode;
+import org.apache.directory.shared.ldap.name.DN;
+import org.apache.directory.shared.ldap.schema.SchemaManager;
+import org.apache.directory.shared.ldap.schema.loader.ldif.JarLdifSchemaLoader;
+import org.apache.directory.shared.ldap.schema.manager.impl.DefaultSchemaManager;
+import org.apache.directory.shared.ldap.util.LdapExceptionUtils;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+
+/**
+ * Tests the {@link ListenerIndex}.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class ListenerIndexTest
+{
+    private static SchemaManager schemaManager;
+
+    private ListenerIndex index;
+
+
+    @BeforeClass
+    public static void init() throws Exception
+    {
+        schemaManager = new DefaultSchemaManager( new JarLdifSchemaLoader() );
+
+        if ( !schemaManager.loadAllEnabled() )
+        {
+            fail( "Schema load failed : " + LdapExceptionUtils.printErrors( schemaManager.getErrors() ) );
+        }
+    }
+
+
+    @Before
+    public void setUp()
+    {
+        index = new ListenerIndex( schemaManager );
+    }
+
+
+    private DN getDn( String name ) throws Exception
+    {
+        DN dn = new DN( name );
+        dn.normalize( schemaManager.getNormalizerMapping() );
+
+        return dn;
+    }
+
+
+    private RegistrationEntry register( String base, ExprNode filter ) throws Exception
+    {
+        NotificationCriteria criteria = new NotificationCriteria();
+        criteria.setBase( getDn( base ) );
+        criteria.setFilter( filter );
+
+        RegistrationEntry registration = new RegistrationEntry( null, criteria );
+        index.add( registration );
+
+        return registration;
+    }
+
+
+    private EqualityNode<String> equality( String attribute, String value )
+    {
+        return new EqualityNode<String>( attribute, new StringValue( value ) );
+    }
+
+
+    private Entry createEntry( String name, String attribute, String... values ) throws Exception
+    {
+        Entry entry = new DefaultEntry( schemaManager, getDn( name ) );
+        entry.add( "objectClass", "top", "person" );
+        entry.add( "sn", "entry" );
+        entry.add( attribute, values );
+
+        return entry;
+    }
+
+
+    /**
+     * @return the candidates on the ancestors of the entry
+     */
+    private List<RegistrationEntry> getCandidates( Entry entry ) throws Exception
+    {
+        List<RegistrationEntry> candidates = new ArrayList<RegistrationEntry>();
+        index.getCandidates( entry.getDn(), entry, candidates );
+
+        return candidates;
+    }
+
+
+    @Test
+    public void testAddRemove() throws Exception
+    {
+        RegistrationEntry users = register( "ou=users,ou=system", new PresenceNode( "objectClass" ) );
+        RegistrationEntry system = register( "ou=system", equality( "cn", "other" ) );
+        RegistrationEntry groups = register( "ou=groups,ou=system", new PresenceNode( "objectClass" ) );
+        Entry entry = createEntry( "cn=foo,ou=users,ou=system", "cn", "foo" );
+
+        List<RegistrationEntry> candidates = getCandidates( entry );
+        assertEquals( 1, candidates.size() );
+        assertTrue( candidates.contains( users ) );
+
+        // The registrations on the entry itself are selected whatever their filter
+        List<RegistrationEntry> selected = index.getCandidates( getDn( "ou=system" ), null,
+            new ArrayList<RegistrationEntry>() );
+        assertEquals( 1, selected.size() );
+        assertTrue( selected.contains( system ) );
+
+        index.remove( users );
+        assertTrue( getCandidates( entry ).isEmpty() );
+        assertTrue( index.getCandidates( entry.getDn(), entry, new ArrayList<RegistrationEntry>() ).isEmpty() );
+
+        // Removing a registration which is not there changes nothing
+        index.remove( users );
+        index.remove( groups );
+        assertFalse( index.isEmpty() );
+
+        index.remove( system );
+        assertTrue( index.isEmpty() );
+    }
+
+
+    @Test
+    public void testPruning() throws Exception
+    {
+        RegistrationEntry deep = register( "cn=a,ou=users,ou=system", new PresenceNode( "objectClass" ) );
+        RegistrationEntry system = register( "ou=system", new PresenceNode( "objectClass" ) );
+
+        // The nodes between ou=system and cn=a are dropped with the registration
+        index.remove( deep );
+        assertFalse( index.isEmpty() );
+        assertTrue( index.getCandidates( getDn( "ou=users,ou=system" ), null, new ArrayList<RegistrationEntry>() )
+            .isEmpty() );
+
+        index.remove( system );
+        assertTrue( index.isEmpty() );
+
+        // A node keeping a registration is not dropped
+        RegistrationEntry users = register( "ou=users,ou=system", new PresenceNode( "objectClass" ) );
+        deep = register( "cn=a,ou=users,ou=system", equality( "cn", "a" ) );
+        index.remove( deep );
+
+        List<RegistrationEntry> selected = index.getCandidates( getDn( "ou=users,ou=system" ), null,
+            new ArrayList<RegistrationEntry>() );
+        assertEquals( 1, selected.size() );
+        assertTrue( selected.contains( users ) );
+
+        index.remove( users );
+        assertTrue( index.isEmpty() );
+    }
+
+
+    @Test
+    public void testIndexedCandidates() throws Exception
+    {
+        RegistrationEntry cn = register( "ou=system", equality( "cn", "Foo" ) );
+        RegistrationEntry otherCn = register( "ou=system", equality( "cn", "bar" ) );
+        RegistrationEntry ou = register( "ou=system", equality( "ou", "foo" ) );
+        AndNode and = new AndNode();
+        and.addNode( equality( "objectClass", "person" ) );
+        and.addNode( equality( "cn", "  FOO " ) );
+        RegistrationEntry andCn = register( "ou=system", and );
+        RegistrationEntry objectClass = register( "ou=system", equality( "objectClass", "person" ) );
+        RegistrationEntry presence = register( "ou=system", new PresenceNode( "cn" ) );
+
+        List<RegistrationEntry> candidates = getCandidates( createEntry( "cn=foo,ou=system", "cn", "foo" ) );
+
+        assertEquals( 4, candidates.size() );
+        assertTrue( candidates.contains( cn ) );
+        assertTrue( candidates.contains( andCn ) );
+        assertTrue( candidates.contains( objectClass ) );
+        assertTrue( candidates.contains( presence ) );
+        assertFalse( candidates.contains( otherCn ) );
+        assertFalse( candidates.contains( ou ) );
+    }
+
+
+    @Test
+    public void testNotCanonicalRule() throws Exception
+    {
+        // The telephoneNumberMatch and integerMatch normalized values are not indexed
+        RegistrationEntry phone = register( "ou=system", equality( "telephoneNumber", "+1 234" ) );
+        RegistrationEntry version = register( "ou=system", equality( "supportedLDAPVersion", "3" ) );
+
+        List<RegistrationEntry> candidates = getCandidates( createEntry( "cn=foo,ou=system", "cn", "foo" ) );
+
+        assertEquals( 2, candidates.size() );
+        assertTrue( candidates.contains( phone ) );
+        assertTrue( candidates.contains( version ) );
+    }
+
+
+    @Test
+    public void testMultiValued() throws Exception
+    {
+        RegistrationEntry beta = register( "ou=system", equality( "cn", "beta" ) );
+        RegistrationEntry otherBeta = register( "ou=system", equality( "cn", "BETA" ) );
+        RegistrationEntry gamma = register( "ou=system", equality( "cn", "gamma" ) );
+
+        // All the registrations on a value matched by the entry are selected
+        List<RegistrationEntry> candidates = getCandidates( createEntry( "cn=alpha,ou=system", "cn", "alpha",
+            "Beta", "delta" ) );
+
+        assertEquals( 2, candidates.size() );
+        assertTrue( candidates.contains( beta ) );
+        assertTrue( candidates.contains( otherBeta ) );
+        assertFalse( candidates.contains( gamma ) );
+    }
+
+
+    @Test
+    public void testNullEntry() throws Exception
+    {
+        RegistrationEntry cn = register( "ou=system", equality( "cn", "foo" ) );
+        RegistrationEntry presence = register( "ou=system", new PresenceNode( "cn" ) );
+
+        // Without the entry, all the registrations are candidates
+        List<RegistrationEntry> candidates = new ArrayList<RegistrationEntry>();
+        index.getCandidates( getDn( "cn=bar,ou=system" ), null, candidates );
+
+        assertEquals( 2, candidates.size() );
+        assertTrue( candidates.contains( cn ) );
+        assertTrue( candidates.contains( presence ) );
+    }
+}
@@ -0,0 +1,353 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.core.journal;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.directory.server.core.LdapPrincipal;
+import org.apache.directory.shared.ldap.ldif.ChangeType;
+import org.apache.directory.shared.ldap.ldif.LdifEntry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * Tests the DefaultJournalStore.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class DefaultJournalStoreTest
+{
+    private File workingDirectory;
+
+    private DefaultJournalStore store;
+
+
+    @Before
+    public void createStore() throws Exception
+    {
+        workingDirectory = File.createTempFile( "journal", "" );
+        workingDirectory.delete();
+        workingDirectory.mkdirs();
+
+        store = openStore();
+    }
+
+
+    @After
+    public void destroyStore() throws Exception
+    {
+        store.destroy();
+
+        for ( File file : workingDirectory.listFiles() )
+        {
+            file.delete();
+        }
+
+        workingDirectory.delete();
+    }
+
+
+    private DefaultJournalStore openStore() throws Exception
+    {
+        return openStore( 1024, DefaultJournalStore.DEFAULT_SYNC_INTERVAL );
+    }
+
+
+    private DefaultJournalStore openStore( long maxSegmentSize, long syncInterval ) throws Exception
+    {
+        DefaultJournalStore newStore = new DefaultJournalStore();
+        newStore.setWorkingDirectory( workingDirectory.getPath() );
+        newStore.setMaxSegmentSize( maxSegmentSize );
+        newStore.setSyncInterval( syncInterval );
+        newStore.init( null );
+
+        return newStore;
+    }
+
+
+    private static LdifEntry change( String ou ) throws Exception
+    {
+        LdifEntry forward = new LdifEntry();
+        forward.setDn( "ou=" + ou + ",ou=system" );
+        forward.setChangeType( ChangeType.Add );
+        forward.putAttribute( "objectClass", "organizationalUnit" );
+        forward.putAttribute( "ou", ou );
+
+        return forward;
+    }
+
+
+    private static int count( JournalCursor cursor ) throws Exception
+    {
+        int count = 0;
+
+        while ( cursor.next() )
+        {
+            count++;
+        }
+
+        cursor.close();
+
+        return count;
+    }
+
+
+    /**
+     * Logs the revisions by pairs in the reverse order, as the operations 
+     * done concurrently : 2, 1, 4, 3...
+     */
+    private void logOutOfOrder( int count ) throws Exception
+    {
+        for ( long revision = 1; revision <= count; revision += 2 )
+        {
+            assertTrue( store.log( new LdapPrincipal(), revision + 1, change( "test" + ( revision + 1 ) ) ) );
+            assertTrue( store.log( new LdapPrincipal(), revision, change( "test" + revision ) ) );
+        }
+
+        store.sync();
+    }
+
+
+    /**
+     * Checks that a replay reads each change from a revision once.
+     */
+    private void checkReplay( long revision, int count ) throws Exception
+    {
+        JournalCursor cursor = store.replay( revision );
+        Set<Long> revisions = new HashSet<Long>();
+
+        while ( cursor.next() )
+        {
+            assertTrue( cursor.get().getRevision() >= revision );
+            assertTrue( revisions.add( cursor.get().getRevision() ) );
+        }
+
+        cursor.close();
+        assertEquals( count - revision + 1, revisions.size() );
+    }
+
+
+    @Test
+    public void testLogAndReplay() throws Exception
+    {
+        assertEquals( 0, store.getCurrentRevision() );
+
+        for ( long revision = 1; revision <= 3; revision++ )
+        {
+            assertTrue( store.log( new LdapPrincipal(), revision, change( "test" + revision ) ) );
+        }
+
+        assertTrue( store.ack( 2 ) );
+        assertEquals( 3, store.getCurrentRevision() );
+        store.sync();
+
+        JournalCursor cursor = store.replay( 2 );
+        assertTrue( cursor.next() );
+        assertEquals( JournalRecord.Type.LOG, cursor.get().getType() );
+        assertEquals( 2, cursor.get().getRevision() );
+        assertEquals( "ou=test2,ou=system", cursor.get().getForward().getDn().getName() );
+        assertTrue( cursor.next() );
+        assertEquals( JournalRecord.Type.LOG, cursor.get().getType() );
+        assertEquals( 3, cursor.get().getRevision() );
+        assertTrue( cursor.next() );
+        assertEquals( JournalRecord.Type.ACK, cursor.get().getType() );
+        assertEquals( 2, cursor.get().getRevision() );
+        assertFalse( cursor.next() );
+        cursor.close();
+    }
+
+
+    @Test
+    public void testSegments() throws Exception
+    {
+        for ( long revision = 1; revision <= 50; revision++ )
+        {
+            assertTrue( store.log( new LdapPrincipal(), revision, change( "test" + revision ) ) );
+        }
+
+        assertTrue( workingDirectory.list().length > 1 );
+        store.sync();
+        assertEquals( 50, count( store.replay() ) );
+        assertEquals( 11, count( store.replay( 40 ) ) );
+
+        // The journal is read again when the store is restarted
+        store.destroy();
+        store = openStore();
+
+        assertEquals( 50, store.getCurrentRevision() );
+        assertEquals( 50, count( store.replay() ) );
+        assertTrue( store.log( new LdapPrincipal(), 51, change( "test51" ) ) );
+        store.sync();
+        assertEquals( 2, count( store.replay( 50 ) ) );
+    }
+
+
+    @Test
+    public void testIncompleteRecord() throws Exception
+    {
+        assertTrue( store.log( new LdapPrincipal(), 1, change( "test1" ) ) );
+        store.destroy();
+
+        // A record partially written when the server stopped
+        RandomAccessFile segment = new RandomAccessFile( new File( workingDirectory, "journal.00000001" ), "rw" );
+        long length = segment.length();
+        segment.seek( length );
+        segment.writeInt( 100 );
+        segment.writeInt( 0 );
+        segment.write( new byte[20] );
+        segment.close();
+
+        store = openStore();
+        assertEquals( 1, store.getCurrentRevision() );
+        assertEquals( length, new File( workingDirectory, "journal.00000001" ).length() );
+
+        assertTrue( store.log( new LdapPrincipal(), 2, change( "test2" ) ) );
+        store.sync();
+        assertEquals( 2, count( store.replay() ) );
+    }
+
+
+    @Test
+    public void testIncompleteHeader() throws Exception
+    {
+        for ( long revision = 1; revision <= 20; revision++ )
+        {
+            assertTrue( store.log( new LdapPrincipal(), revision, change( "test" + revision ) ) );
+        }
+
+        store.destroy();
+
+        // A segment being created when the server stopped
+        String[] segments = workingDirectory.list();
+        File segmentFile = new File( workingDirectory, String.format( "journal.%08d", segments.length + 1 ) );
+        RandomAccessFile segment = new RandomAccessFile( segmentFile, "rw" );
+        segment.writeShort( 0x4A52 );
+        segment.close();
+
+        store = openStore();
+        assertEquals( 20, store.getCurrentRevision() );
+        assertEquals( DefaultJournalStore.HEADER_SIZE, segmentFile.length() );
+
+        assertTrue( store.log( new LdapPrincipal(), 21, change( "test21" ) ) );
+        store.sync();
+        assertEquals( 21, count( store.replay() ) );
+        assertEquals( 2, count( store.replay( 20 ) ) );
+    }
+
+
+    @Test
+    public void testOutOfOrder() throws Exception
+    {
+        logOutOfOrder( 40 );
+        assertTrue( workingDirectory.list().length > 2 );
+        assertEquals( 40, store.getCurrentRevision() );
+
+        for ( long revision = 1; revision <= 40; revision++ )
+        {
+            checkReplay( revision, 40 );
+        }
+
+        // The revision 3 is written before the revision 2
+        JournalCursor cursor = store.replay( 2 );
+        assertTrue( cursor.next() );
+        assertEquals( 2, cursor.get().getRevision() );
+        assertTrue( cursor.next() );
+        assertEquals( 4, cursor.get().getRevision() );
+        assertTrue( cursor.next() );
+        assertEquals( 3, cursor.get().getRevision() );
+        cursor.close();
+
+        // The index is built again when the store is restarted
+        store.destroy();
+        store = openStore();
+
+        for ( long revision = 1; revision <= 40; revision++ )
+        {
+            checkReplay( revision, 40 );
+        }
+    }
+
+
+    @Test
+    public void testBlocks() throws Exception
+    {
+        store.destroy();
+        store = openStore( DefaultJournalStore.DEFAULT_MAX_SEGMENT_SIZE, DefaultJournalStore.DEFAULT_SYNC_INTERVAL );
+
+        // Several blocks in the same segment
+        logOutOfOrder( 2000 );
+        assertTrue( DefaultJournalStore.getOffset( store.getEnd() ) > DefaultJournalStore.BLOCK_SIZE * 2 );
+
+        for ( long revision = 1; revision <= 2000; revision += 111 )
+        {
+            checkReplay( revision, 2000 );
+        }
+
+        checkReplay( 2000, 2000 );
+    }
+
+
+    @Test
+    public void testUnsyncedRecords() throws Exception
+    {
+        store.destroy();
+        store = openStore( 1024, 3600000L );
+
+        assertTrue( store.log( new LdapPrincipal(), 1, change( "test1" ) ) );
+
+        // The records are not read until they are synced
+        JournalCursor cursor = store.replay();
+        assertFalse( cursor.next() );
+        assertFalse( cursor.next( 10 ) );
+
+        store.sync();
+        assertTrue( cursor.next() );
+        assertEquals( 1, cursor.get().getRevision() );
+        assertFalse( cursor.next() );
+        cursor.close();
+    }
+
+
+    @Test
+    public void testTail() throws Exception
+    {
+        assertTrue( store.log( new LdapPrincipal(), 1, change( "test1" ) ) );
+
+        JournalCursor cursor = store.tail();
+        assertFalse( cursor.next() );
+        assertFalse( cursor.next( 10 ) );
+
+        assertTrue( store.log( new LdapPrincipal(), 2, change( "test2" ) ) );
+        store.sync();
+        assertTrue( cursor.next( 10 ) );
+        assertEquals( 2, cursor.get().getRevision() );
+        cursor.close();
+    }
+}
@@ -766,7 +766,29 @@ public enum I18n
     ERR_730("ERR_730"),
     ERR_731("ERR_731"),
     ERR_732("ERR_732"),
-    ERR_733("ERR_733");
+    ERR_733("ERR_733"),
+    ERR_734("ERR_734"),
+    ERR_735("ERR_735"),
+    ERR_736("ERR_736"),
+    ERR_737("ERR_737"),
+    ERR_738("ERR_738"),
+    ERR_739("ERR_739"),
+    ERR_740("ERR_740"),
+    ERR_741("ERR_741"),
+    ERR_742("ERR_742"),
+    ERR_743("ERR_743"),
+    ERR_744("ERR_744"),
+    ERR_745("ERR_745"),
+    ERR_746("ERR_746"),
+    ERR_747("ERR_747"),
+    ERR_748("ERR_748"),
+    ERR_749("ERR_749"),
+    ERR_750("ERR_750"),
+    ERR_751("ERR_751"),
+    ERR_752("ERR_752"),
+    ERR_753("ERR_753"),
+    ERR_754("ERR_754"),
+    ERR_755("ERR_755");
 
     private final static ResourceBundle errBundle = ResourceBundle
         .getBundle( "org/apache/directory/server/i18n/errors" );
@@ -0,0 +1,148 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.partition.impl.btree.jdbm;
+
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.directory.shared.ldap.entry.Entry;
+import org.apache.directory.shared.ldap.entry.EntryAttribute;
+
+
+/**
+ * The ordinals given to the OIDs of the attribute types stored in a master
+ * table, so that the serialized entries refer to their attribute types with
+ * a small number instead of a string. The ordinals are stored in the admin
+ * table, in the same file as the entries, and are never reused : they are
+ * valid as long as the master table.
+ * <p>
+ * The OIDs of an entry are given an ordinal before the entry is put in the
+ * master table, so that they are committed along with it.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+class AttributeTypeDictionary
+{
+    /** The admin table property storing the number of OIDs */
+    private static final String COUNT_PROPERTY = "__oids__";
+
+    /** The prefix of the admin table properties storing the OIDs */
+    private static final String OID_PROPERTY_PREFIX = "__oid__";
+
+    /** The admin table storing the ordinals */
+    private final JdbmTable<String, String> adminTbl;
+
+    /** The ordinals, by OID */
+    private final Map<String, Integer> ordinals = new ConcurrentHashMap<String, Integer>();
+
+    /** The OIDs, by ordinal */
+    private final Map<Integer, String> oids = new ConcurrentHashMap<Integer, String>();
+
+
+    /**
+     * Reads the ordinals stored in an admin table.
+     *
+     * @param adminTbl the admin table of the master table
+     * @throws Exception if the admin table can't be read
+     */
+    AttributeTypeDictionary( JdbmTable<String, String> adminTbl ) throws Exception
+    {
+        this.adminTbl = adminTbl;
+
+        synchronized ( adminTbl )
+        {
+            String count = adminTbl.get( COUNT_PROPERTY );
+
+            if ( count != null )
+            {
+                for ( int ordinal = 1; ordinal <= Integer.parseInt( count ); ordinal++ )
+                {
+                    String oid = adminTbl.get( OID_PROPERTY_PREFIX + ordinal );
+                    oids.put( ordinal, oid );
+                    ordinals.put( oid, ordinal );
+                }
+            }
+        }
+    }
+
+
+    /**
+     * @param oid the OID of an attribute type
+     * @return the ordinal of the OID, or 0 if it has none
+     */
+    int getOrdinal( String oid )
+    {
+        Integer ordinal = ordinals.get( oid );
+
+        return ( ordinal == null ) ? 0 : ordinal;
+    }
+
+
+    /**
+     * @param ordinal an ordinal
+     * @return the OID having this ordinal, or null if there is none
+     */
+    String getOid( int ordinal )
+    {
+        return oids.get( ordinal );
+    }
+
+
+    /**
+     * Gives an ordinal to the OIDs of the attribute types of an entry which
+     * don't have one yet.
+     *
+     * @param entry the entry about to be stored
+     * @throws Exception if the ordinals can't be stored
+     */
+    void register( Entry entry ) throws Exception
+    {
+        for ( EntryAttribute attribute : entry )
+        {
+            String oid = attribute.getAttributeType().getOid();
+
+            if ( !ordinals.containsKey( oid ) )
+            {
+                add( oid );
+            }
+        }
+    }
+
+
+    private void add( String oid ) throws Exception
+    {
+        synchronized ( adminTbl )
+        {
+            if ( ordinals.containsKey( oid ) )
+            {
+                return;
+            }
+
+            int ordinal = oids.size() + 1;
+            adminTbl.put( OID_PROPERTY_PREFIX + ordinal, oid );
+            adminTbl.put( COUNT_PROPERTY, Integer.toString( ordinal ) );
+
+            // The OID is found by the readers of the ordinal
+            oids.put( ordinal, oid );
+            ordinals.put( oid, ordinal );
+        }
+    }
+}
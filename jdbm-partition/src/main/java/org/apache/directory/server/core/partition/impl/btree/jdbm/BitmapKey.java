@@ -0,0 +1,67 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.partition.impl.btree.jdbm;
+
+
+import java.io.Serializable;
+
+
+/**
+ * The key of a container of a bitmap index : the containers of the ids of
+ * the entries having the same value are ordered by the high bits of the ids
+ * they store.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class BitmapKey<K> implements Serializable
+{
+    private static final long serialVersionUID = 2768165740379224529L;
+
+    /** the normalized value of the indexed attribute */
+    private final K value;
+
+    /** the key of the container, shared by the ids it stores */
+    private final long container;
+
+
+    public BitmapKey( K value, long container )
+    {
+        this.value = value;
+        this.container = container;
+    }
+
+
+    public K getValue()
+    {
+        return value;
+    }
+
+
+    public long getContainer()
+    {
+        return container;
+    }
+
+
+    public String toString()
+    {
+        return "BitmapKey[" + value + ", " + container + "]";
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.partition.impl.btree.jdbm;
+
+
+import org.apache.directory.shared.ldap.schema.SchemaManager;
+import org.apache.directory.shared.ldap.schema.comparators.SerializableComparator;
+
+
+/**
+ * A comparator used to compare the {@link BitmapKey}s of a bitmap index :
+ * the keys are ordered by value, using the comparator of the indexed
+ * attribute, then by container.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class BitmapKeyComparator<K> extends SerializableComparator<BitmapKey<K>>
+{
+    private static final long serialVersionUID = -3150733573413563837L;
+
+    /** the comparator of the values of the indexed attribute */
+    private final SerializableComparator<K> valueComparator;
+
+
+    /**
+     * Creates a new instance of BitmapKeyComparator.
+     *
+     * @param matchingRuleOid the equality MatchingRule of the indexed attribute
+     * @param valueComparator the comparator of the values of the indexed attribute
+     */
+    public BitmapKeyComparator( String matchingRuleOid, SerializableComparator<K> valueComparator )
+    {
+        super( matchingRuleOid );
+        this.valueComparator = valueComparator;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int compare( BitmapKey<K> key1, BitmapKey<K> key2 )
+    {
+        int result = valueComparator.compare( key1.getValue(), key2.getValue() );
+
+        if ( result != 0 )
+        {
+            return result;
+        }
+
+        if ( key1.getContainer() == key2.getContainer() )
+        {
+            return 0;
+        }
+
+        return ( key1.getContainer() < key2.getContainer() ) ? -1 : 1;
+    }
+
+
+    /**
+     * @return the comparator of the values of the indexed attribute
+     */
+    public SerializableComparator<K> getValueComparator()
+    {
+        return valueComparator;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setSchemaManager( SchemaManager schemaManager )
+    {
+        super.setSchemaManager( schemaManager );
+        valueComparator.setSchemaManager( schemaManager );
+    }
+}
@@ -0,0 +1,381 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.partition.impl.btree.jdbm;
+
+
+import java.io.IOException;
+
+import jdbm.btree.BTree;
+import jdbm.helper.TupleBrowser;
+
+import org.apache.directory.server.xdbm.IdBitmap;
+import org.apache.directory.shared.ldap.cursor.AbstractTupleCursor;
+import org.apache.directory.shared.ldap.cursor.InvalidCursorPositionException;
+import org.apache.directory.shared.ldap.cursor.Tuple;
+
+
+/**
+ * Cursor over the (value, id) Tuples of a bitmap index, ordered by value
+ * then by id. The containers of the bitmaps are read one at a time : the
+ * Cursor moves inside the current container, and browses the BTree of the
+ * index again when it reaches one of its ends. The Cursor can be limited to
+ * the ids of a single value.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+class BitmapTupleCursor<K> extends AbstractTupleCursor<K, Long>
+{
+    /** the BTree storing the containers of the index */
+    private final BTree<BitmapKey<K>, byte[]> btree;
+
+    /** the comparator of the keys of the BTree */
+    private final BitmapKeyComparator<K> comparator;
+
+    /** the only value whose ids are returned, or null for all the values */
+    private final K key;
+
+    /** the value of the current position */
+    private K value;
+
+    /** the id before the one returned by next(), -1 before the first id of the value */
+    private long lower;
+
+    /** the id after the one returned by previous() */
+    private long upper;
+
+    private boolean beforeFirst = true;
+    private boolean afterLast;
+
+    /** the key of the container last read */
+    private BitmapKey<K> containerKey;
+
+    /** the ids of the container last read */
+    private IdBitmap container;
+
+    private Tuple<K, Long> returnedTuple = new Tuple<K, Long>();
+    private boolean valueAvailable;
+
+
+    /**
+     * Creates a Cursor over the Tuples of a bitmap index.
+     *
+     * @param table the table storing the containers of the index
+     * @param key the only value whose ids are returned, or null for all the values
+     */
+    @SuppressWarnings("unchecked")
+    BitmapTupleCursor( JdbmTable<BitmapKey<K>, byte[]> table, K key )
+    {
+        this.btree = table.getBTree();
+        this.comparator = ( BitmapKeyComparator<K> ) table.getKeyComparator();
+        this.key = key;
+    }
+
+
+    private void clearValue()
+    {
+        returnedTuple.setKey( null );
+        returnedTuple.setValue( null );
+        valueAvailable = false;
+    }
+
+
+    /**
+     * Positions this Cursor between two ids of a value. If the Cursor is
+     * limited to another value, it is positioned before the first or after
+     * the last Tuple.
+     */
+    private void position( K value, long lower, long upper )
+    {
+        if ( key != null )
+        {
+            int compared = comparator.getValueComparator().compare( value, key );
+
+            if ( compared != 0 )
+            {
+                beforeFirst = compared < 0;
+                afterLast = compared > 0;
+                clearValue();
+                return;
+            }
+        }
+
+        this.value = value;
+        this.lower = lower;
+        this.upper = upper;
+        beforeFirst = false;
+        afterLast = false;
+        clearValue();
+    }
+
+
+    public boolean available()
+    {
+        return valueAvailable;
+    }
+
+
+    public void beforeKey( K key ) throws Exception
+    {
+        checkNotClosed( "beforeKey()" );
+        position( key, -1, 0 );
+    }
+
+
+    public void afterKey( K key ) throws Exception
+    {
+        checkNotClosed( "afterKey()" );
+        position( key, Long.MAX_VALUE, Long.MAX_VALUE );
+    }
+
+
+    public void beforeValue( K key, Long value ) throws Exception
+    {
+        checkNotClosed( "beforeValue()" );
+        position( key, value - 1, value );
+    }
+
+
+    public void afterValue( K key, Long value ) throws Exception
+    {
+        checkNotClosed( "afterValue()" );
+        position( key, value, value + 1 );
+    }
+
+
+    public void before( Tuple<K, Long> element ) throws Exception
+    {
+        beforeValue( element.getKey(), element.getValue() );
+    }
+
+
+    public void after( Tuple<K, Long> element ) throws Exception
+    {
+        afterValue( element.getKey(), element.getValue() );
+    }
+
+
+    public void beforeFirst() throws Exception
+    {
+        checkNotClosed( "beforeFirst()" );
+        beforeFirst = true;
+        afterLast = false;
+        clearValue();
+    }
+
+
+    public void afterLast() throws Exception
+    {
+        checkNotClosed( "afterLast()" );
+        beforeFirst = false;
+        afterLast = true;
+        clearValue();
+    }
+
+
+    public boolean first() throws Exception
+    {
+        beforeFirst();
+        return next();
+    }
+
+
+    public boolean last() throws Exception
+    {
+        afterLast();
+        return previous();
+    }
+
+
+    public boolean previous() throws Exception
+    {
+        checkNotClosed( "previous()" );
+
+        if ( beforeFirst )
+        {
+            return false;
+        }
+
+        TupleBrowser<BitmapKey<K>, byte[]> browser;
+
+        if ( afterLast )
+        {
+            browser = ( key == null ) ? btree.browse( null ) : btree.browse( new BitmapKey<K>( key, Long.MAX_VALUE ) );
+        }
+        else if ( upper > 0 )
+        {
+            long high = IdBitmap.getContainerKey( upper - 1 );
+
+            if ( readContainer( value, high ) )
+            {
+                long id = container.previous( upper );
+
+                if ( id >= 0 )
+                {
+                    return moveTo( value, id );
+                }
+            }
+
+            browser = btree.browse( new BitmapKey<K>( value, high ) );
+        }
+        else
+        {
+            browser = btree.browse( new BitmapKey<K>( value, 0 ) );
+        }
+
+        jdbm.helper.Tuple<BitmapKey<K>, byte[]> tuple = new jdbm.helper.Tuple<BitmapKey<K>, byte[]>();
+
+        if ( !browser.getPrevious( tuple ) || !isInRange( tuple.getKey() ) )
+        {
+            beforeFirst();
+            return false;
+        }
+
+        setContainer( tuple.getKey(), tuple.getValue() );
+
+        return moveTo( containerKey.getValue(), container.last() );
+    }
+
+
+    public boolean next() throws Exception
+    {
+        checkNotClosed( "next()" );
+
+        if ( afterLast )
+        {
+            return false;
+        }
+
+        TupleBrowser<BitmapKey<K>, byte[]> browser;
+
+        if ( beforeFirst )
+        {
+            browser = ( key == null ) ? btree.browse() : btree.browse( new BitmapKey<K>( key, 0 ) );
+        }
+        else if ( lower >= 0 )
+        {
+            long high = IdBitmap.getContainerKey( lower );
+
+            if ( readContainer( value, high ) )
+            {
+                long id = container.next( lower );
+
+                if ( id >= 0 )
+                {
+                    return moveTo( value, id );
+                }
+            }
+
+            browser = btree.browse( new BitmapKey<K>( value, high + 1 ) );
+        }
+        else
+        {
+            browser = btree.browse( new BitmapKey<K>( value, 0 ) );
+        }
+
+        jdbm.helper.Tuple<BitmapKey<K>, byte[]> tuple = new jdbm.helper.Tuple<BitmapKey<K>, byte[]>();
+
+        if ( !browser.getNext( tuple ) || !isInRange( tuple.getKey() ) )
+        {
+            afterLast();
+            return false;
+        }
+
+        setContainer( tuple.getKey(), tuple.getValue() );
+
+        return moveTo( containerKey.getValue(), container.first() );
+    }
+
+
+    public Tuple<K, Long> get() throws Exception
+    {
+        checkNotClosed( "get()" );
+
+        if ( valueAvailable )
+        {
+            return returnedTuple;
+        }
+
+        throw new InvalidCursorPositionException();
+    }
+
+
+    public boolean isElementReused()
+    {
+        return true;
+    }
+
+
+    private boolean moveTo( K value, long id )
+    {
+        this.value = value;
+        lower = id;
+        upper = id;
+        beforeFirst = false;
+        afterLast = false;
+        returnedTuple.setKey( value );
+        returnedTuple.setValue( id );
+
+        return valueAvailable = true;
+    }
+
+
+    /**
+     * @return true if the container belongs to the value this Cursor is limited to, if any
+     */
+    private boolean isInRange( BitmapKey<K> found )
+    {
+        return ( key == null ) || ( comparator.getValueComparator().compare( found.getValue(), key ) == 0 );
+    }
+
+
+    /**
+     * Reads a container, unless it is the one last read.
+     *
+     * @return false if the value has no such container
+     */
+    private boolean readContainer( K value, long high ) throws IOException
+    {
+        BitmapKey<K> wanted = new BitmapKey<K>( value, high );
+
+        if ( ( containerKey != null ) && ( comparator.compare( containerKey, wanted ) == 0 ) )
+        {
+            return true;
+        }
+
+        byte[] bites = btree.find( wanted );
+
+        if ( bites == null )
+        {
+            return false;
+        }
+
+        setContainer( wanted, bites );
+
+        return true;
+    }
+
+
+    private void setContainer( BitmapKey<K> key, byte[] bites )
+    {
+        containerKey = key;
+        container = new IdBitmap();
+        container.addContainer( key.getContainer(), bites );
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.partition.impl.btree.jdbm;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Array;
+import java.nio.channels.FileChannel;
+
+import jdbm.RecordManager;
+import jdbm.recman.BaseRecordManager;
+import jdbm.recman.CacheRecordManager;
+
+import org.apache.directory.server.i18n.I18n;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Writes a compacted copy of a jdbm file, and replaces the file with it.
+ * The tables of the file are copied to the record manager returned by
+ * {@link #getTarget()}, then {@link #swap(RecordManager)} renames the copy,
+ * which replaces the file atomically on the systems supporting it.
+ * <p>
+ * The copy is synced to the disk before it replaces the file, and the 
+ * directory is synced after. On the systems which can't rename a file 
+ * over another one, the file is kept under a backup name until the copy 
+ * has been renamed, and {@link #recover(String)} restores it if the 
+ * compaction has been interrupted in between.
+ * <p>
+ * The record manager of the former file is not closed : the cursors 
+ * opened before the swap still read it.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+class FileCompactor
+{
+    /** The class logger */
+    private static final Logger LOG = LoggerFactory.getLogger( FileCompactor.class );
+
+    /** The suffix added to the name of the copy */
+    private static final String COMPACT_SUFFIX = ".compact";
+
+    /** The extension of the jdbm files */
+    private static final String DB_EXTENSION = ".db";
+
+    /** The extension of the jdbm transaction logs */
+    private static final String LOG_EXTENSION = ".lg";
+
+    /** The extension added to the file while the copy replaces it */
+    private static final String BACKUP_EXTENSION = ".bak";
+
+    /** The path of the file, without extension */
+    private final String path;
+
+    /** The record manager of the copy */
+    private final BaseRecordManager target;
+
+
+    /**
+     * Creates the copy of a file.
+     *
+     * @param path the path of the file, without extension
+     * @throws IOException if the copy can't be created
+     */
+    FileCompactor( String path ) throws IOException
+    {
+        this.path = path;
+
+        // The leftovers of an interrupted compaction
+        new File( path + COMPACT_SUFFIX + DB_EXTENSION ).delete();
+        new File( path + COMPACT_SUFFIX + LOG_EXTENSION ).delete();
+
+        target = new BaseRecordManager( path + COMPACT_SUFFIX );
+        target.disableTransactions();
+    }
+
+
+    /**
+     * Restores a file which has been renamed by a compaction interrupted
+     * before its copy replaced it. This must be done before the file is
+     * opened.
+     *
+     * @param path the path of the file, without extension
+     */
+    static void recover( String path )
+    {
+        File file = new File( path + DB_EXTENSION );
+        File backup = new File( path + DB_EXTENSION + BACKUP_EXTENSION );
+
+        if ( !backup.exists() )
+        {
+            return;
+        }
+
+        if ( file.exists() )
+        {
+            // The copy has replaced the file
+            backup.delete();
+        }
+        else if ( backup.renameTo( file ) )
+        {
+            LOG.warn( "Restored the file {}, which compaction has been interrupted", file );
+        }
+    }
+
+
+    /**
+     * @return the record manager of the copy
+     */
+    RecordManager getTarget()
+    {
+        return target;
+    }
+
+
+    /**
+     * @return the size of the file, in bytes
+     */
+    long getFileSize()
+    {
+        return new File( path + DB_EXTENSION ).length();
+    }
+
+
+    /**
+     * Closes and deletes the copy, which won't replace the file.
+     */
+    void discard()
+    {
+        try
+        {
+            target.close();
+        }
+        catch ( IOException ioe )
+        {
+            LOG.warn( "Cannot close the copy of {}", path, ioe );
+        }
+
+        new File( path + COMPACT_SUFFIX + DB_EXTENSION ).delete();
+        new File( path + COMPACT_SUFFIX + LOG_EXTENSION ).delete();
+    }
+
+
+    /**
+     * Closes the copy, and replaces the file with it. The transaction log
+     * of the file is written to it first, and the record manager of the
+     * file then only reads it : it is not closed, as the cursors opened on
+     * it may still read it, but it must not be written anymore.
+     * <p>
+     * If the copy can't replace the file, the file is kept and reopened.
+     *
+     * @param recMan the record manager of the file, which must be committed
+     * @return a record manager on the compacted file
+     * @throws IOException if the files can't be written
+     */
+    BaseRecordManager swap( RecordManager recMan ) throws IOException
+    {
+        target.commit();
+        target.close();
+
+        File file = new File( path + DB_EXTENSION );
+        File copy = new File( path + COMPACT_SUFFIX + DB_EXTENSION );
+        sync( copy );
+
+        // The log must not be applied to the copy when it is opened
+        getBase( recMan ).detachLog();
+        new File( path + LOG_EXTENSION ).delete();
+
+        if ( !copy.renameTo( file ) )
+        {
+            // Some systems can't rename a file over an existing one
+            File backup = new File( path + DB_EXTENSION + BACKUP_EXTENSION );
+            backup.delete();
+
+            if ( !file.renameTo( backup ) )
+            {
+                LOG.error( I18n.err( I18n.ERR_741, file, copy ) );
+                discard();
+
+                return new BaseRecordManager( path );
+            }
+
+            if ( !copy.renameTo( file ) )
+            {
+                LOG.error( I18n.err( I18n.ERR_741, file, copy ) );
+                backup.renameTo( file );
+                discard();
+
+                return new BaseRecordManager( path );
+            }
+
+            syncDirectory( file.getParentFile() );
+            backup.delete();
+        }
+        else
+        {
+            syncDirectory( file.getParentFile() );
+        }
+
+        return new BaseRecordManager( path );
+    }
+
+
+    private static BaseRecordManager getBase( RecordManager recMan )
+    {
+        if ( recMan instanceof CacheRecordManager )
+        {
+            return ( BaseRecordManager ) ( ( CacheRecordManager ) recMan ).getRecordManager();
+        }
+
+        return ( BaseRecordManager ) recMan;
+    }
+
+
+    /**
+     * Writes a file to the disk.
+     */
+    private static void sync( File file ) throws IOException
+    {
+        RandomAccessFile randomAccessFile = new RandomAccessFile( file, "rw" );
+
+        try
+        {
+            randomAccessFile.getChannel().force( true );
+        }
+        finally
+        {
+            randomAccessFile.close();
+        }
+    }
+
+
+    /**
+     * Writes the entries of a directory to the disk, so that a file renamed
+     * in it is not lost on a crash. A directory can only be opened with
+     * FileChannel.open, since Java 7, which is called by reflection : on
+     * the former JVMs, and on the systems which can't open a directory,
+     * the directory is not synced.
+     */
+    private static void syncDirectory( File directory )
+    {
+        try
+        {
+            Class<?> pathClass = Class.forName( "java.nio.file.Path" );
+            Class<?> optionClass = Class.forName( "java.nio.file.OpenOption" );
+            Object directoryPath = File.class.getMethod( "toPath" ).invoke( directory );
+            Object options = Array.newInstance( optionClass, 1 );
+            Array.set( options, 0, Class.forName( "java.nio.file.StandardOpenOption" ).getField( "READ" ).get(
+                null ) );
+            FileChannel channel = ( FileChannel ) FileChannel.class.getMethod( "open", pathClass,
+                options.getClass() ).invoke( null, directoryPath, options );
+
+            try
+            {
+                channel.force( true );
+            }
+            finally
+            {
+                channel.close();
+            }
+        }
+        catch ( Exception e )
+        {
+            LOG.debug( "Cannot sync the directory {}", directory, e );
+        }
+    }
+}
@@ -0,0 +1,594 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.partition.impl.btree.jdbm;
+
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import jdbm.RecordManager;
+import jdbm.btree.BTree;
+import jdbm.helper.ByteArraySerializer;
+import jdbm.helper.TupleBrowser;
+
+import org.apache.directory.server.core.partition.impl.btree.IndexCursorAdaptor;
+import org.apache.directory.server.xdbm.BitmapIndex;
+import org.apache.directory.server.xdbm.IdBitmap;
+import org.apache.directory.server.xdbm.IndexCursor;
+import org.apache.directory.shared.ldap.cursor.Cursor;
+import org.apache.directory.shared.ldap.cursor.ListCursor;
+import org.apache.directory.shared.ldap.cursor.Tuple;
+import org.apache.directory.shared.ldap.schema.SchemaManager;
+import org.apache.directory.shared.ldap.schema.comparators.SerializableComparator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * A Jdbm based index storing the ids of the entries having a value in a
+ * compressed bitmap, used for the objectClass and the presence indices
+ * whose values are shared by a lot of entries. The bitmap of a value is
+ * split in containers of 65536 ids, each container being a tuple of the
+ * forward table keyed by the value and the high bits of the ids : adding
+ * or removing an id rewrites a single container of at most 8KB. The
+ * reverse table is the one of a {@link JdbmIndex}.
+ * <p>
+ * The forward table of an index created by a {@link JdbmIndex} is rebuilt
+ * from the reverse table when the index is opened.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class JdbmBitmapIndex<K, O> extends JdbmIndex<K, O> implements BitmapIndex<K, O, Long>
+{
+    /** A logger for this class */
+    private static final Logger LOG = LoggerFactory.getLogger( JdbmBitmapIndex.class.getSimpleName() );
+
+    /**
+     * the forward btree where the btree key is the value of the indexed attribute and
+     * the high bits of the entry ids, and the value a container of those entry ids
+     */
+    protected JdbmTable<BitmapKey<K>, byte[]> bitmaps;
+
+    /** the comparator of the values of the indexed attribute */
+    private SerializableComparator<K> valueComparator;
+
+    /** the bitmaps of the values added while the index is bulk loaded */
+    private Map<K, IdBitmap> bulkLoadedBitmaps;
+
+
+    public JdbmBitmapIndex()
+    {
+        super();
+    }
+
+
+    public JdbmBitmapIndex( String attributeId )
+    {
+        super( attributeId );
+    }
+
+
+    /**
+     * Initializes the forward and reverse tables used by this Index, and
+     * rebuilds the forward table if it has been created by a JdbmIndex.
+     *
+     * @throws IOException if we cannot initialize the forward and reverse
+     * tables
+     */
+    @SuppressWarnings("unchecked")
+    protected void initTables( SchemaManager schemaManager ) throws IOException
+    {
+        valueComparator = createComparator( schemaManager );
+        initReverseTable( schemaManager, valueComparator );
+
+        String name = attribute.getOid() + FORWARD_BTREE;
+        long recId = recMan.getNamedObject( name );
+        boolean rebuild = false;
+
+        if ( ( recId != 0 ) && !( new BTree().load( recMan, recId ).getComparator() instanceof BitmapKeyComparator ) )
+        {
+            LOG.info( "Rebuilding the forward table of the {} index as bitmaps", attribute.getName() );
+            JdbmTable.forget( recMan, name );
+            rebuild = true;
+        }
+
+        BitmapKeyComparator<K> comp = new BitmapKeyComparator<K>( attribute.getEquality().getOid(), valueComparator );
+        comp.setSchemaManager( schemaManager );
+
+        bitmaps = new JdbmTable<BitmapKey<K>, byte[]>( schemaManager, name, recMan, comp, null,
+            ByteArraySerializer.INSTANCE );
+
+        if ( rebuild )
+        {
+            try
+            {
+                Map<K, IdBitmap> rebuilt = new TreeMap<K, IdBitmap>( valueComparator );
+                Cursor<Tuple<Long, K>> cursor = reverse.cursor();
+
+                while ( cursor.next() )
+                {
+                    Tuple<Long, K> tuple = cursor.get();
+                    getBitmap( rebuilt, tuple.getValue() ).add( tuple.getKey() );
+                }
+
+                cursor.close();
+                writeBitmaps( bitmaps, rebuilt );
+            }
+            catch ( IOException ioe )
+            {
+                throw ioe;
+            }
+            catch ( Exception e )
+            {
+                throw new IOException( e.getMessage() );
+            }
+        }
+    }
+
+
+    // ------------------------------------------------------------------------
+    // Scan Count Methods
+    // ------------------------------------------------------------------------
+
+    /**
+     * @see org.apache.directory.server.xdbm.Index#count()
+     */
+    public int count() throws IOException
+    {
+        return reverse.count();
+    }
+
+
+    /**
+     * @see org.apache.directory.server.xdbm.Index#count(java.lang.Object)
+     */
+    public int count( K attrVal ) throws Exception
+    {
+        int count = 0;
+
+        for ( byte[] container : readContainers( bitmaps, valueComparator, getNormalized( attrVal ), null ) )
+        {
+            count += IdBitmap.getCardinality( container );
+        }
+
+        return count;
+    }
+
+
+    public int greaterThanCount( K attrVal ) throws Exception
+    {
+        // take a best guess
+        return count();
+    }
+
+
+    /**
+     * @see org.apache.directory.server.xdbm.Index#lessThanCount(java.lang.Object)
+     */
+    public int lessThanCount( K attrVal ) throws Exception
+    {
+        // take a best guess
+        return count();
+    }
+
+
+    // ------------------------------------------------------------------------
+    // Forward Lookups
+    // ------------------------------------------------------------------------
+
+    /**
+     * {@inheritDoc}
+     */
+    public IdBitmap forwardBitmap( K attrVal ) throws Exception
+    {
+        IdBitmap bitmap = new IdBitmap();
+        readContainers( bitmaps, valueComparator, getNormalized( attrVal ), bitmap );
+
+        return bitmap;
+    }
+
+
+    /**
+     * @see org.apache.directory.server.xdbm.Index#forwardLookup(java.lang.Object)
+     */
+    public Long forwardLookup( K attrVal ) throws Exception
+    {
+        Cursor<Tuple<K, Long>> cursor = new BitmapTupleCursor<K>( bitmaps, getNormalized( attrVal ) );
+
+        try
+        {
+            return cursor.next() ? cursor.get().getValue() : null;
+        }
+        finally
+        {
+            cursor.close();
+        }
+    }
+
+
+    // ------------------------------------------------------------------------
+    // Add/Drop Methods
+    // ------------------------------------------------------------------------
+
+    /**
+     * @see org.apache.directory.server.xdbm.Index#add(Object, Long)
+     */
+    public synchronized void add( K attrVal, Long id ) throws Exception
+    {
+        K normalized = getNormalized( attrVal );
+
+        if ( bulkLoadedBitmaps != null )
+        {
+            getBitmap( bulkLoadedBitmaps, normalized ).add( id );
+        }
+        else
+        {
+            boolean isNewValue = ( statistics != null ) && ( forwardLookup( normalized ) == null );
+
+            if ( updateContainer( bitmaps, normalized, id, true ) && ( statistics != null ) )
+            {
+                updateStatistics( normalized, true, isNewValue );
+            }
+        }
+
+        reverse.put( id, normalized );
+    }
+
+
+    /**
+     * @see org.apache.directory.server.xdbm.Index#drop(Object,Long)
+     */
+    public synchronized void drop( K attrVal, Long id ) throws Exception
+    {
+        K normalized = getNormalized( attrVal );
+
+        if ( updateContainer( bitmaps, normalized, id, false ) && ( statistics != null ) )
+        {
+            updateStatistics( normalized, false, forwardLookup( normalized ) == null );
+        }
+
+        reverse.remove( id, normalized );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public synchronized void drop( Long entryId ) throws Exception
+    {
+        // The values of the reverse table are normalized
+        Cursor<Tuple<Long, K>> values = reverse.cursor( entryId );
+
+        while ( values.next() )
+        {
+            K value = values.get().getValue();
+
+            if ( updateContainer( bitmaps, value, entryId, false ) && ( statistics != null ) )
+            {
+                updateStatistics( value, false, forwardLookup( value ) == null );
+            }
+        }
+
+        values.close();
+        reverse.remove( entryId );
+    }
+
+
+    // ------------------------------------------------------------------------
+    // Index Cursor Operations
+    // ------------------------------------------------------------------------
+
+    @SuppressWarnings("unchecked")
+    public IndexCursor<K, O, Long> forwardCursor() throws Exception
+    {
+        return new IndexCursorAdaptor<K, O, Long>( ( Cursor ) new BitmapTupleCursor<K>( bitmaps, null ), true );
+    }
+
+
+    @SuppressWarnings("unchecked")
+    public IndexCursor<K, O, Long> forwardCursor( K key ) throws Exception
+    {
+        return new IndexCursorAdaptor<K, O, Long>( ( Cursor ) new BitmapTupleCursor<K>( bitmaps, key ), true );
+    }
+
+
+    public Cursor<Long> forwardValueCursor( K key ) throws Exception
+    {
+        IdBitmap bitmap = new IdBitmap();
+        readContainers( bitmaps, valueComparator, key, bitmap );
+        List<Long> ids = new ArrayList<Long>( bitmap.size() );
+
+        for ( long id = bitmap.first(); id >= 0; id = bitmap.next( id ) )
+        {
+            ids.add( id );
+        }
+
+        return new ListCursor<Long>( ids );
+    }
+
+
+    // ------------------------------------------------------------------------
+    // Value Assertion (a.k.a Index Lookup) Methods //
+    // ------------------------------------------------------------------------
+
+    /**
+     * @see org.apache.directory.server.xdbm.Index#forward(Object)
+     */
+    public boolean forward( K attrVal ) throws Exception
+    {
+        return forwardLookup( attrVal ) != null;
+    }
+
+
+    /**
+     * @see org.apache.directory.server.xdbm.Index#forward(Object,Long)
+     */
+    public boolean forward( K attrVal, Long id ) throws Exception
+    {
+        byte[] container = bitmaps.get( new BitmapKey<K>( getNormalized( attrVal ), IdBitmap.getContainerKey( id ) ) );
+
+        return ( container != null ) && IdBitmap.contains( container, id );
+    }
+
+
+    /**
+     * @see org.apache.directory.server.xdbm.Index#reverse(Long,Object)
+     */
+    public boolean reverse( Long id, K attrVal ) throws Exception
+    {
+        return forward( attrVal, id );
+    }
+
+
+    /**
+     * @see org.apache.directory.server.xdbm.Index#forwardGreaterOrEq(Object)
+     */
+    public boolean forwardGreaterOrEq( K attrVal ) throws Exception
+    {
+        return bitmaps.hasGreaterOrEqual( new BitmapKey<K>( getNormalized( attrVal ), 0 ) );
+    }
+
+
+    /**
+     * @see org.apache.directory.server.xdbm.Index#forwardGreaterOrEq(Object, Long)
+     */
+    public boolean forwardGreaterOrEq( K attrVal, Long id ) throws Exception
+    {
+        K normalized = getNormalized( attrVal );
+        BitmapTupleCursor<K> cursor = new BitmapTupleCursor<K>( bitmaps, normalized );
+
+        try
+        {
+            cursor.beforeValue( normalized, id );
+            return cursor.next();
+        }
+        finally
+        {
+            cursor.close();
+        }
+    }
+
+
+    /**
+     * @see org.apache.directory.server.xdbm.Index#forwardLessOrEq(Object)
+     */
+    public boolean forwardLessOrEq( K attrVal ) throws Exception
+    {
+        return bitmaps.hasLessOrEqual( new BitmapKey<K>( getNormalized( attrVal ), Long.MAX_VALUE ) );
+    }
+
+
+    /**
+     * @see org.apache.directory.server.xdbm.Index#forwardLessOrEq(Object, Long)
+     */
+    public boolean forwardLessOrEq( K attrVal, Long id ) throws Exception
+    {
+        K normalized = getNormalized( attrVal );
+        BitmapTupleCursor<K> cursor = new BitmapTupleCursor<K>( bitmaps, normalized );
+
+        try
+        {
+            cursor.afterValue( normalized, id );
+            return cursor.previous();
+        }
+        finally
+        {
+            cursor.close();
+        }
+    }
+
+
+    // ------------------------------------------------------------------------
+    // Maintenance Methods 
+    // ------------------------------------------------------------------------
+
+    /**
+     * @see org.apache.directory.server.xdbm.Index#close()
+     */
+    public synchronized void close() throws IOException
+    {
+        if ( bitmaps != null )
+        {
+            bitmaps.close();
+        }
+
+        super.close();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    synchronized int copyTo( RecordManager target ) throws IOException
+    {
+        return bitmaps.copyTo( target ) + reverse.copyTo( target );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    synchronized void reopen( RecordManager recMan ) throws IOException
+    {
+        this.recMan = recMan;
+        bitmaps.reopen( recMan );
+        reverse.reopen( recMan );
+        reopenStatistics();
+    }
+
+
+    /**
+     * Starts loading this index, which must be empty. The bitmaps of the
+     * values are built in memory, and written to the forward table when
+     * the load is ended.
+     */
+    public synchronized void startBulkLoad()
+    {
+        // The statistics are computed once the index is written
+        statistics = null;
+        bulkLoadedBitmaps = new TreeMap<K, IdBitmap>( valueComparator );
+        bitmaps.startBulkLoad( true );
+        reverse.startBulkLoad( false );
+    }
+
+
+    /**
+     * Writes the values added since the load has been started.
+     *
+     * @throws Exception if the tables can't be written
+     */
+    public synchronized void endBulkLoad() throws Exception
+    {
+        if ( bulkLoadedBitmaps != null )
+        {
+            // The bitmaps are sorted by value, and their containers by key
+            writeBitmaps( bitmaps, bulkLoadedBitmaps );
+            bulkLoadedBitmaps = null;
+        }
+
+        bitmaps.endBulkLoad();
+        reverse.endBulkLoad();
+        endBulkLoadStatistics();
+        sync();
+    }
+
+
+    /**
+     * Reads the containers of a value.
+     *
+     * @param bitmaps the table of the containers
+     * @param valueComparator the comparator of the values
+     * @param normalized the normalized value
+     * @param bitmap the bitmap the containers are added to, if not null
+     * @return the serialized containers
+     */
+    @SuppressWarnings("unchecked")
+    static <K> List<byte[]> readContainers( JdbmTable<BitmapKey<K>, byte[]> bitmaps,
+        Comparator<K> valueComparator, K normalized, IdBitmap bitmap ) throws IOException
+    {
+        List<byte[]> containers = new ArrayList<byte[]>();
+        TupleBrowser<BitmapKey<K>, byte[]> browser = bitmaps.getBTree().browse( new BitmapKey<K>( normalized, 0 ) );
+        jdbm.helper.Tuple<BitmapKey<K>, byte[]> tuple = new jdbm.helper.Tuple<BitmapKey<K>, byte[]>();
+
+        while ( browser.getNext( tuple ) && ( valueComparator.compare( tuple.getKey().getValue(), normalized ) == 0 ) )
+        {
+            containers.add( tuple.getValue() );
+
+            if ( bitmap != null )
+            {
+                bitmap.addContainer( tuple.getKey().getContainer(), tuple.getValue() );
+            }
+        }
+
+        return containers;
+    }
+
+
+    /**
+     * Adds or removes an id from the container of a value.
+     *
+     * @return false if the container already had, or didn't have, the id
+     */
+    static <K> boolean updateContainer( JdbmTable<BitmapKey<K>, byte[]> bitmaps, K normalized, Long id, boolean add )
+        throws Exception
+    {
+        BitmapKey<K> key = new BitmapKey<K>( normalized, IdBitmap.getContainerKey( id ) );
+        byte[] bites = bitmaps.get( key );
+        IdBitmap container = new IdBitmap();
+
+        if ( bites != null )
+        {
+            container.addContainer( key.getContainer(), bites );
+        }
+
+        if ( add ? !container.add( id ) : !container.remove( id ) )
+        {
+            return false;
+        }
+
+        if ( container.isEmpty() )
+        {
+            bitmaps.remove( key );
+        }
+        else
+        {
+            bitmaps.put( key, container.serializeContainer( 0 ) );
+        }
+
+        return true;
+    }
+
+
+    /**
+     * Writes the containers of bitmaps to a table.
+     */
+    static <K> void writeBitmaps( JdbmTable<BitmapKey<K>, byte[]> bitmaps, Map<K, IdBitmap> written )
+        throws Exception
+    {
+        for ( Map.Entry<K, IdBitmap> entry : written.entrySet() )
+        {
+            IdBitmap bitmap = entry.getValue();
+
+            for ( int i = 0; i < bitmap.getContainerCount(); i++ )
+            {
+                bitmaps.put( new BitmapKey<K>( entry.getKey(), bitmap.getContainerKeyAt( i ) ), bitmap
+                    .serializeContainer( i ) );
+            }
+        }
+    }
+
+
+    static <K> IdBitmap getBitmap( Map<K, IdBitmap> bitmapMap, K normalized )
+    {
+        IdBitmap bitmap = bitmapMap.get( normalized );
+
+        if ( bitmap == null )
+        {
+            bitmap = new IdBitmap();
+            bitmapMap.put( normalized, bitmap );
+        }
+
+        return bitmap;
+    }
+}
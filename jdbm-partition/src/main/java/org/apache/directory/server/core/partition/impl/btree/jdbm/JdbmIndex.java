@@ -23,11 +23,16 @@ package org.apache.directory.server.core.partition.impl.btree.jdbm;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.util.Comparator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import javax.naming.NamingException;
 
 import jdbm.RecordManager;
-import jdbm.helper.MRU;
+import jdbm.helper.SLRU;
 import jdbm.recman.BaseRecordManager;
 import jdbm.recman.CacheRecordManager;
 
@@ -36,6 +41,7 @@ import org.apache.directory.server.core.partition.impl.btree.LongComparator;
 import org.apache.directory.server.i18n.I18n;
 import org.apache.directory.server.xdbm.Index;
 import org.apache.directory.server.xdbm.IndexCursor;
+import org.apache.directory.server.xdbm.IndexStatistics;
 import org.apache.directory.shared.ldap.cursor.Cursor;
 import org.apache.directory.shared.ldap.cursor.Tuple;
 import org.apache.directory.shared.ldap.entry.BinaryValue;
@@ -69,6 +75,24 @@ public class JdbmIndex<K, O> implements Index<K, O, Long>
     /**  the key used for the reverse btree name */
     public static final String REVERSE_BTREE = "_reverse";
 
+    /**  the key used for the statistics record name */
+    public static final String STATISTICS = "_statistics";
+
+    /** the number of modifications after which the statistics are saved on sync */
+    private static final int STATISTICS_SAVE_INTERVAL = 1000;
+
+    /** the thread rebuilding the stale statistics of the indices, one index at a time */
+    private static final ExecutorService STATISTICS_REBUILDER = Executors.newSingleThreadExecutor( new ThreadFactory()
+    {
+        public Thread newThread( Runnable runnable )
+        {
+            Thread thread = new Thread( runnable, "IndexStatisticsRebuilder" );
+            thread.setDaemon( true );
+
+            return thread;
+        }
+    } );
+
     /** the attribute type resolved for this JdbmIndex */
     protected AttributeType attribute;
 
@@ -91,6 +115,12 @@ public class JdbmIndex<K, O> implements Index<K, O, Long>
      */
     protected RecordManager recMan;
 
+    /**
+     * true if the record manager is shared with the other tables of the partition,
+     * in which case this index neither commits nor closes it
+     */
+    protected boolean sharedRecMan;
+
     /**
      * the normalized value cache for this index
      * @todo I don't think the keyCache is required anymore since the normalizer
@@ -118,6 +148,21 @@ public class JdbmIndex<K, O> implements Index<K, O, Long>
     /** a custom working directory path when specified in configuration */
     protected File wkDirPath;
 
+    /** whether or not statistics on the values of this index are maintained */
+    protected boolean statisticsEnabled;
+
+    /** the statistics on the values of this index, null if they are not maintained */
+    protected IndexStatistics<K> statistics;
+
+    /** the comparator of the values the statistics are computed on */
+    private Comparator<K> statisticsComparator;
+
+    /** the number of modifications of the statistics since they have been saved */
+    private int unsavedStatistics;
+
+    /** the rebuild of the stale statistics, null if they have not been stale yet */
+    private Future<?> statisticsRebuild;
+
 
     /*
      * NOTE: Duplicate Key Limit
@@ -171,11 +216,7 @@ public class JdbmIndex<K, O> implements Index<K, O, Long>
             this.wkDirPath = wkDirPath;
         }
 
-        File file = new File( this.wkDirPath.getPath() + File.separator + attribute.getOid() );
-        String path = file.getAbsolutePath();
-        BaseRecordManager base = new BaseRecordManager( path );
-        base.disableTransactions();
-        this.recMan = new CacheRecordManager( base, new MRU( cacheSize ) );
+        initRecordManager();
 
         try
         {
@@ -188,6 +229,11 @@ public class JdbmIndex<K, O> implements Index<K, O, Long>
             throw e;
         }
 
+        if ( statisticsEnabled )
+        {
+            initStatistics( schemaManager );
+        }
+
         // finally write a text file in the format <OID>-<attribute-name>.txt
         FileWriter fw = new FileWriter( new File( this.wkDirPath.getPath() + File.separator + attribute.getOid() + "-" + attribute.getName() + ".txt" ) );
         // write the AttributeType description
@@ -198,6 +244,49 @@ public class JdbmIndex<K, O> implements Index<K, O, Long>
     }
 
 
+    /**
+     * Opens the record manager of the file containing this index, unless
+     * a shared record manager has been set.
+     *
+     * @throws IOException if the file cannot be opened
+     */
+    protected void initRecordManager() throws IOException
+    {
+        if ( sharedRecMan )
+        {
+            return;
+        }
+
+        FileCompactor.recover( getFilePath() );
+        this.recMan = openRecordManager( new BaseRecordManager( getFilePath() ) );
+    }
+
+
+    /**
+     * @return the path of the file containing this index, without extension
+     */
+    protected String getFilePath()
+    {
+        File file = new File( this.wkDirPath.getPath() + File.separator + attribute.getOid() );
+
+        return file.getAbsolutePath();
+    }
+
+
+    /**
+     * Configures the record manager of the file containing this index.
+     */
+    private RecordManager openRecordManager( BaseRecordManager base ) throws IOException
+    {
+        base.disableTransactions();
+        base.enableConcurrentReads();
+        CacheRecordManager cacheRecMan = new CacheRecordManager( base, new SLRU( cacheSize ) );
+        cacheRecMan.enableConcurrentReads();
+
+        return cacheRecMan;
+    }
+
+
     /**
      * Initializes the forward and reverse tables used by this Index.
      * 
@@ -205,10 +294,29 @@ public class JdbmIndex<K, O> implements Index<K, O, Long>
      * tables
      * @throws NamingException 
      */
-    private void initTables( SchemaManager schemaManager ) throws IOException
+    protected void initTables( SchemaManager schemaManager ) throws IOException
     {
-        SerializableComparator<K> comp;
+        SerializableComparator<K> comp = createComparator( schemaManager );
+
+        /*
+         * The forward key/value map stores attribute values to master table 
+         * primary keys.  A value for an attribute can occur several times in
+         * different entries so the forward map can have more than one value.
+         */
+        forward = new JdbmTable<K, Long>( schemaManager, attribute.getOid() + FORWARD_BTREE, numDupLimit, recMan,
+            comp, LongComparator.INSTANCE, null, LongSerializer.INSTANCE );
+
+        initReverseTable( schemaManager, comp );
+    }
+
 
+    /**
+     * Creates the comparator of the values of the indexed attribute.
+     *
+     * @throws IOException if the attribute has no equality matching rule
+     */
+    protected SerializableComparator<K> createComparator( SchemaManager schemaManager ) throws IOException
+    {
         MatchingRule mr = attribute.getEquality();
 
         if ( mr == null )
@@ -216,19 +324,22 @@ public class JdbmIndex<K, O> implements Index<K, O, Long>
             throw new IOException( I18n.err( I18n.ERR_574, attribute.getName() ) );
         }
 
-        comp = new SerializableComparator<K>( mr.getOid() );
-
-        /*
-         * The forward key/value map stores attribute values to master table 
-         * primary keys.  A value for an attribute can occur several times in
-         * different entries so the forward map can have more than one value.
-         */
+        SerializableComparator<K> comp = new SerializableComparator<K>( mr.getOid() );
         LongComparator.INSTANCE.setSchemaManager( schemaManager );
         comp.setSchemaManager( schemaManager );
 
-        forward = new JdbmTable<K, Long>( schemaManager, attribute.getOid() + FORWARD_BTREE, numDupLimit, recMan,
-            comp, LongComparator.INSTANCE, null, LongSerializer.INSTANCE );
+        return comp;
+    }
+
 
+    /**
+     * Initializes the reverse table used by this Index.
+     *
+     * @param comp the comparator of the values of the indexed attribute
+     * @throws IOException if we cannot initialize the reverse table
+     */
+    protected void initReverseTable( SchemaManager schemaManager, SerializableComparator<K> comp ) throws IOException
+    {
         /*
          * Now the reverse map stores the primary key into the master table as
          * the key and the values of attributes as the value.  If an attribute
@@ -248,6 +359,137 @@ public class JdbmIndex<K, O> implements Index<K, O, Long>
     }
 
 
+    /**
+     * Reads the statistics saved with the tables of this index. They are
+     * computed again if they are missing, or if they don't match the index,
+     * as the index has been modified after they have been saved.
+     *
+     * @throws IOException if the statistics can't be read or computed
+     */
+    @SuppressWarnings("unchecked")
+    protected void initStatistics( SchemaManager schemaManager ) throws IOException
+    {
+        statisticsComparator = createComparator( schemaManager );
+        long recId = recMan.getNamedObject( attribute.getOid() + STATISTICS );
+
+        if ( recId != 0 )
+        {
+            statistics = ( IndexStatistics<K> ) recMan.fetch( recId );
+            statistics.setComparator( statisticsComparator );
+
+            if ( statistics.getCount() == count() )
+            {
+                return;
+            }
+
+            LOG.info( "The statistics of the {} index are outdated", attribute.getName() );
+        }
+
+        statistics = new IndexStatistics<K>( statisticsComparator );
+        rebuildStatistics();
+    }
+
+
+    /**
+     * Computes the statistics again by scanning the index, and saves them.
+     *
+     * @throws IOException if the index can't be read
+     */
+    protected void rebuildStatistics() throws IOException
+    {
+        try
+        {
+            statistics.rebuild( this );
+        }
+        catch ( IOException ioe )
+        {
+            throw ioe;
+        }
+        catch ( Exception e )
+        {
+            throw new IOException( e.getMessage() );
+        }
+
+        LOG.debug( "Rebuilt the statistics of the {} index : {}", attribute.getName(), statistics );
+        saveStatistics();
+    }
+
+
+    /**
+     * Writes the statistics in the file containing the tables of this index.
+     */
+    private void saveStatistics() throws IOException
+    {
+        String name = attribute.getOid() + STATISTICS;
+        long recId = recMan.getNamedObject( name );
+
+        if ( recId == 0 )
+        {
+            recMan.setNamedObject( name, recMan.insert( statistics ) );
+        }
+        else
+        {
+            recMan.update( recId, statistics );
+        }
+
+        unsavedStatistics = 0;
+    }
+
+
+    /**
+     * Updates the statistics once a tuple has been added or dropped, and
+     * rebuilds them when they don't reflect the values anymore. The index
+     * is scanned by another thread, so that it is not locked meanwhile.
+     *
+     * @param normalized the normalized value of the tuple
+     * @param added true if the tuple has been added, false if it has been dropped
+     * @param isNewOrLast true if the value is a new one, or has been dropped
+     * from all the entries
+     */
+    protected void updateStatistics( K normalized, boolean added, boolean isNewOrLast ) throws IOException
+    {
+        if ( added )
+        {
+            statistics.add( normalized, isNewOrLast );
+        }
+        else
+        {
+            statistics.drop( normalized, isNewOrLast );
+        }
+
+        unsavedStatistics++;
+
+        if ( statistics.isStale() && ( ( statisticsRebuild == null ) || statisticsRebuild.isDone() ) )
+        {
+            final IndexStatistics<K> stale = statistics;
+
+            statisticsRebuild = STATISTICS_REBUILDER.submit( new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        stale.rebuild( JdbmIndex.this );
+                        LOG.debug( "Rebuilt the statistics of the {} index : {}", attribute.getName(), stale );
+                    }
+                    catch ( Exception e )
+                    {
+                        // The index has been closed meanwhile, or the statistics will be rebuilt once stale again
+                        LOG.debug( "Cannot rebuild the statistics of the " + attribute.getName() + " index", e );
+                        return;
+                    }
+
+                    // The statistics are saved at the next sync
+                    synchronized ( JdbmIndex.this )
+                    {
+                        unsavedStatistics = Math.max( unsavedStatistics, STATISTICS_SAVE_INTERVAL );
+                    }
+                }
+            } );
+        }
+    }
+
+
     /**
      * @see org.apache.directory.server.xdbm.Index#getAttribute()
      */
@@ -281,6 +523,31 @@ public class JdbmIndex<K, O> implements Index<K, O, Long>
     }
 
 
+    /**
+     * Tells if statistics on the values of this index are maintained.
+     *
+     * @return true if the statistics are maintained
+     */
+    public boolean isStatisticsEnabled()
+    {
+        return statisticsEnabled;
+    }
+
+
+    /**
+     * Enables the statistics on the values of this index, which are updated
+     * on each modification and saved with its tables. They are used by the
+     * optimizer instead of counting the tuples of the index.
+     *
+     * @param statisticsEnabled true to maintain the statistics
+     */
+    public void setStatisticsEnabled( boolean statisticsEnabled )
+    {
+        protect( "statisticsEnabled" );
+        this.statisticsEnabled = statisticsEnabled;
+    }
+
+
     /**
      * Gets the attribute identifier set at configuration time for this index which may not
      * be the OID but an alias name for the attributeType associated with this Index
@@ -367,6 +634,21 @@ public class JdbmIndex<K, O> implements Index<K, O, Long>
     }
 
 
+    /**
+     * Stores the tables of this index in the given record manager, instead of
+     * a file of its own. The record manager is committed and closed by its
+     * owner, not by this index.
+     *
+     * @param recMan the record manager shared with the other tables of the partition
+     */
+    public void setRecordManager( RecordManager recMan )
+    {
+        protect( "recordManager" );
+        this.recMan = recMan;
+        sharedRecMan = ( recMan != null );
+    }
+
+
     /**
      * Gets the working directory path to something other than the default. Sometimes more
      * performance is gained by locating indices on separate disk spindles.
@@ -416,6 +698,15 @@ public class JdbmIndex<K, O> implements Index<K, O, Long>
     }
 
 
+    /**
+     * {@inheritDoc}
+     */
+    public IndexStatistics<K> getStatistics()
+    {
+        return statistics;
+    }
+
+
     // ------------------------------------------------------------------------
     // Forward and Reverse Lookups
     // ------------------------------------------------------------------------
@@ -447,8 +738,17 @@ public class JdbmIndex<K, O> implements Index<K, O, Long>
      */
     public synchronized void add( K attrVal, Long id ) throws Exception
     {
-        forward.put( getNormalized( attrVal ), id );
-        reverse.put( id, getNormalized( attrVal ) );
+        K normalized = getNormalized( attrVal );
+        boolean counted = ( statistics != null ) && !forward.has( normalized, id );
+        boolean isNewValue = counted && !forward.has( normalized );
+
+        forward.put( normalized, id );
+        reverse.put( id, normalized );
+
+        if ( counted )
+        {
+            updateStatistics( normalized, true, isNewValue );
+        }
     }
 
 
@@ -457,15 +757,23 @@ public class JdbmIndex<K, O> implements Index<K, O, Long>
      */
     public synchronized void drop( K attrVal, Long id ) throws Exception
     {
-        forward.remove( getNormalized( attrVal ), id );
-        reverse.remove( id, getNormalized( attrVal ) );
+        K normalized = getNormalized( attrVal );
+        boolean counted = ( statistics != null ) && forward.has( normalized, id );
+
+        forward.remove( normalized, id );
+        reverse.remove( id, normalized );
+
+        if ( counted )
+        {
+            updateStatistics( normalized, false, !forward.has( normalized ) );
+        }
     }
 
 
     /**
      * {@inheritDoc}
      */
-    public void drop( Long entryId ) throws Exception
+    public synchronized void drop( Long entryId ) throws Exception
     {
         // Build a cursor to iterate on all the keys referencing
         // this entryId
@@ -474,7 +782,13 @@ public class JdbmIndex<K, O> implements Index<K, O, Long>
         while ( values.next() )
         {
             // Remove the Key -> entryId from the index
-            forward.remove( values.get().getValue(), entryId );
+            K value = values.get().getValue();
+            forward.remove( value, entryId );
+
+            if ( statistics != null )
+            {
+                updateStatistics( value, false, !forward.has( value ) );
+            }
         }
 
         // Remove the id -> key from the reverse index
@@ -644,6 +958,11 @@ public class JdbmIndex<K, O> implements Index<K, O, Long>
      */
     public synchronized void close() throws IOException
     {
+        if ( statisticsRebuild != null )
+        {
+            statisticsRebuild.cancel( false );
+        }
+
         if ( forward != null )
         {
             forward.close();
@@ -654,8 +973,16 @@ public class JdbmIndex<K, O> implements Index<K, O, Long>
             reverse.close();
         }
 
-        recMan.commit();
-        recMan.close();
+        if ( ( statistics != null ) && ( unsavedStatistics > 0 ) )
+        {
+            saveStatistics();
+        }
+
+        if ( !sharedRecMan )
+        {
+            recMan.commit();
+            recMan.close();
+        }
     }
 
 
@@ -664,7 +991,156 @@ public class JdbmIndex<K, O> implements Index<K, O, Long>
      */
     public synchronized void sync() throws IOException
     {
+        // The statistics are rebuilt when opening the index if they are
+        // not in sync with it, so they don't need to be saved every time
+        if ( ( statistics != null ) && ( unsavedStatistics >= STATISTICS_SAVE_INTERVAL ) )
+        {
+            saveStatistics();
+        }
+
+        if ( !sharedRecMan )
+        {
+            recMan.commit();
+        }
+    }
+
+
+    /**
+     * Copies the tables of this index to another record manager.
+     *
+     * @param target the record manager receiving the copy
+     * @return the number of tuples copied
+     * @throws IOException if the tables can't be copied
+     */
+    synchronized int copyTo( RecordManager target ) throws IOException
+    {
+        return forward.copyTo( target ) + reverse.copyTo( target );
+    }
+
+
+    /**
+     * Reads the tables of this index from the record manager shared with
+     * the other tables of the partition, once they have been copied there.
+     *
+     * @param recMan the shared record manager
+     * @throws IOException if the tables can't be read
+     */
+    synchronized void reopen( RecordManager recMan ) throws IOException
+    {
+        this.recMan = recMan;
+        forward.reopen( recMan );
+        reverse.reopen( recMan );
+        reopenStatistics();
+    }
+
+
+    /**
+     * Saves the statistics in the record manager the tables have been
+     * copied to.
+     */
+    protected void reopenStatistics() throws IOException
+    {
+        if ( statistics != null )
+        {
+            saveStatistics();
+        }
+    }
+
+
+    /**
+     * Copies the tables of this index to a new file, if it is not stored in
+     * a file shared with the other tables of the partition. The index can
+     * still be read and written while it is copied.
+     *
+     * @return the copy, which replaces the file of this index with
+     * {@link #swapFile(FileCompactor, RetiredRecordManagers)}, or null if the
+     * index is stored in a shared file
+     * @throws IOException if the file can't be copied
+     */
+    FileCompactor copyFile() throws IOException
+    {
+        if ( sharedRecMan )
+        {
+            return null;
+        }
+
+        FileCompactor compactor = new FileCompactor( getFilePath() );
+
+        try
+        {
+            int copied = copyTo( compactor.getTarget() );
+            LOG.debug( "Copied {} tuples of the {} index", copied, attribute.getName() );
+        }
+        catch ( IOException ioe )
+        {
+            compactor.discard();
+            throw ioe;
+        }
+
+        return compactor;
+    }
+
+
+    /**
+     * Replaces the file of this index with its copy, which must not have
+     * been modified since it has been copied. The former file is still read
+     * by the cursors opened on it, and closed once they are gone.
+     *
+     * @param compactor the copy of the file
+     * @param retired the record managers of the former files
+     * @return the number of bytes reclaimed
+     * @throws IOException if the file can't be replaced
+     */
+    synchronized long swapFile( FileCompactor compactor, RetiredRecordManagers retired ) throws IOException
+    {
+        long size = compactor.getFileSize();
         recMan.commit();
+        RecordManager former = recMan;
+        reopen( openRecordManager( compactor.swap( former ) ) );
+        retired.add( ( CacheRecordManager ) former );
+
+        return size - compactor.getFileSize();
+    }
+
+
+    /**
+     * Starts loading this index, which must be empty. The values added are
+     * sorted and written to the tables when the load is ended, and the
+     * index must not be read until then.
+     */
+    public synchronized void startBulkLoad()
+    {
+        // The statistics are computed once the index is written
+        statistics = null;
+        forward.startBulkLoad( false );
+        reverse.startBulkLoad( false );
+    }
+
+
+    /**
+     * Writes the values added since the load has been started.
+     *
+     * @throws Exception if the tables can't be written
+     */
+    public synchronized void endBulkLoad() throws Exception
+    {
+        forward.endBulkLoad();
+        reverse.endBulkLoad();
+        endBulkLoadStatistics();
+        sync();
+    }
+
+
+    /**
+     * Computes the statistics of the values loaded, if they are enabled.
+     */
+    protected void endBulkLoadStatistics() throws IOException
+    {
+        if ( statisticsEnabled )
+        {
+            statistics = new IndexStatistics<K>( statisticsComparator );
+            rebuildStatistics();
+        }
     }
 
 
@@ -20,6 +20,8 @@
 package org.apache.directory.server.core.partition.impl.btree.jdbm;
 
 
+import java.io.IOException;
+
 import jdbm.RecordManager;
 import jdbm.helper.LongSerializer;
 import jdbm.helper.Serializer;
@@ -27,6 +29,7 @@ import jdbm.helper.StringComparator;
 
 import org.apache.directory.server.i18n.I18n;
 import org.apache.directory.server.xdbm.MasterTable;
+import org.apache.directory.shared.ldap.entry.Entry;
 import org.apache.directory.shared.ldap.schema.SchemaManager;
 import org.apache.directory.shared.ldap.schema.comparators.SerializableComparator;
 
@@ -106,6 +109,9 @@ public class JdbmMasterTable<E> extends JdbmTable<Long,E> implements MasterTable
 
     protected final JdbmTable<String,String> adminTbl;
 
+    /** the ordinals of the attribute types of the serialized entries */
+    private final AttributeTypeDictionary dictionary;
+
 
     /**
      * Creates the master table using JDBM B+Trees for the backing store.
@@ -125,6 +131,9 @@ public class JdbmMasterTable<E> extends JdbmTable<Long,E> implements MasterTable
             adminTbl.put( SEQPROP_KEY, "0" );
         }
         
+        dictionary = new AttributeTypeDictionary( adminTbl );
+        ( ( ServerEntrySerializer ) getValueSerializer() ).setDictionary( dictionary );
+
         LONG_COMPARATOR.setSchemaManager( schemaManager );
         STRING_COMPARATOR.setSchemaManager( schemaManager );
     }
@@ -140,6 +149,8 @@ public class JdbmMasterTable<E> extends JdbmTable<Long,E> implements MasterTable
         {
             adminTbl.put( SEQPROP_KEY, "0" );
         }
+
+        dictionary = null;
     }
 
     /**
@@ -166,6 +177,11 @@ public class JdbmMasterTable<E> extends JdbmTable<Long,E> implements MasterTable
      */
     public void put( Long id, E entry ) throws Exception
     {
+        if ( ( dictionary != null ) && ( entry instanceof Entry ) )
+        {
+            dictionary.register( ( Entry ) entry );
+        }
+
         super.put( id, entry );
     }
 
@@ -251,4 +267,47 @@ public class JdbmMasterTable<E> extends JdbmTable<Long,E> implements MasterTable
             adminTbl.put( property, value );
         }
     }
+
+
+    /**
+     * Compresses the serialized entries having at least a given size.
+     *
+     * @param compressionThreshold the minimum size in bytes of the entries
+     * compressed, or -1 to never compress them
+     * @see ServerEntrySerializer#setCompressionThreshold(int)
+     */
+    public void setCompressionThreshold( int compressionThreshold )
+    {
+        ( ( ServerEntrySerializer ) getValueSerializer() ).setCompressionThreshold( compressionThreshold );
+    }
+
+
+    /**
+     * Copies the entries and the admin table to another record manager.
+     */
+    @Override
+    int copyTo( RecordManager target ) throws IOException
+    {
+        synchronized ( adminTbl )
+        {
+            adminTbl.copyTo( target );
+        }
+
+        return super.copyTo( target );
+    }
+
+
+    /**
+     * Reads the entries and the admin table from another record manager.
+     */
+    @Override
+    void reopen( RecordManager recMan ) throws IOException
+    {
+        super.reopen( recMan );
+
+        synchronized ( adminTbl )
+        {
+            adminTbl.reopen( recMan );
+        }
+    }
 }
@@ -0,0 +1,354 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.partition.impl.btree.jdbm;
+
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import jdbm.RecordManager;
+import jdbm.helper.ByteArraySerializer;
+
+import org.apache.directory.server.i18n.I18n;
+import org.apache.directory.server.xdbm.IdBitmap;
+import org.apache.directory.server.xdbm.NgramIndex;
+import org.apache.directory.server.xdbm.Ngrams;
+import org.apache.directory.shared.ldap.cursor.Cursor;
+import org.apache.directory.shared.ldap.cursor.Tuple;
+import org.apache.directory.shared.ldap.schema.SchemaManager;
+import org.apache.directory.shared.ldap.schema.comparators.SerializableComparator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * A Jdbm based index which also stores the ids of the entries having a
+ * value containing each n-gram, used to answer the substring assertions
+ * without initial part, like (cn=*smith*). The ids of an n-gram are stored
+ * in a compressed bitmap split in containers, like the ones of a
+ * {@link JdbmBitmapIndex}, in a table next to the forward and reverse
+ * tables of the index.
+ * <p>
+ * The n-gram table of an index created by a {@link JdbmIndex} is built
+ * from the reverse table when the index is opened.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class JdbmNgramIndex<O> extends JdbmIndex<String, O> implements NgramIndex<O, Long>
+{
+    /** A logger for this class */
+    private static final Logger LOG = LoggerFactory.getLogger( JdbmNgramIndex.class.getSimpleName() );
+
+    /**  the key used for the n-gram btree name */
+    public static final String NGRAM_BTREE = "_ngram";
+
+    /** the OID of the octetStringMatch matching rule, which compares the n-grams */
+    private static final String OCTET_STRING_MATCH_OID = "2.5.13.17";
+
+    /** the comparator of the n-grams */
+    private static final NgramComparator NGRAM_COMPARATOR = new NgramComparator();
+
+    /**
+     * the btree where the btree key is an n-gram and the high bits of the
+     * entry ids, and the value a container of those entry ids
+     */
+    protected JdbmTable<BitmapKey<String>, byte[]> ngrams;
+
+    /** the bitmaps of the n-grams added while the index is bulk loaded */
+    private Map<String, IdBitmap> bulkLoadedNgrams;
+
+
+    public JdbmNgramIndex()
+    {
+        super();
+    }
+
+
+    public JdbmNgramIndex( String attributeId )
+    {
+        super( attributeId );
+    }
+
+
+    /**
+     * Initializes the forward, reverse and n-gram tables used by this Index,
+     * and builds the n-gram table if it has been created by a JdbmIndex.
+     *
+     * @throws IOException if we cannot initialize the tables
+     */
+    protected void initTables( SchemaManager schemaManager ) throws IOException
+    {
+        if ( !attribute.getSyntax().isHumanReadable() )
+        {
+            throw new IOException( I18n.err( I18n.ERR_743, attribute.getName() ) );
+        }
+
+        super.initTables( schemaManager );
+
+        String name = attribute.getOid() + NGRAM_BTREE;
+        boolean rebuild = ( recMan.getNamedObject( name ) == 0 ) && ( reverse.count() > 0 );
+
+        BitmapKeyComparator<String> comp = new BitmapKeyComparator<String>( OCTET_STRING_MATCH_OID,
+            NGRAM_COMPARATOR );
+        comp.setSchemaManager( schemaManager );
+
+        ngrams = new JdbmTable<BitmapKey<String>, byte[]>( schemaManager, name, recMan, comp, null,
+            ByteArraySerializer.INSTANCE );
+
+        if ( rebuild )
+        {
+            LOG.info( "Building the n-gram table of the {} index", attribute.getName() );
+
+            try
+            {
+                Map<String, IdBitmap> built = new TreeMap<String, IdBitmap>( NGRAM_COMPARATOR );
+                Cursor<Tuple<Long, String>> cursor = reverse.cursor();
+
+                while ( cursor.next() )
+                {
+                    Tuple<Long, String> tuple = cursor.get();
+
+                    for ( String ngram : Ngrams.split( tuple.getValue() ) )
+                    {
+                        JdbmBitmapIndex.getBitmap( built, ngram ).add( tuple.getKey() );
+                    }
+                }
+
+                cursor.close();
+                JdbmBitmapIndex.writeBitmaps( ngrams, built );
+            }
+            catch ( IOException ioe )
+            {
+                throw ioe;
+            }
+            catch ( Exception e )
+            {
+                throw new IOException( e.getMessage() );
+            }
+        }
+    }
+
+
+    // ------------------------------------------------------------------------
+    // N-gram Lookups
+    // ------------------------------------------------------------------------
+
+    /**
+     * {@inheritDoc}
+     */
+    public IdBitmap forwardNgramBitmap( List<String> parts ) throws Exception
+    {
+        Set<String> searched = new TreeSet<String>();
+
+        for ( String part : parts )
+        {
+            searched.addAll( Ngrams.split( part ) );
+        }
+
+        if ( searched.isEmpty() )
+        {
+            return null;
+        }
+
+        IdBitmap candidates = null;
+
+        for ( String ngram : searched )
+        {
+            IdBitmap bitmap = new IdBitmap();
+            JdbmBitmapIndex.readContainers( ngrams, NGRAM_COMPARATOR, ngram, bitmap );
+            candidates = ( candidates == null ) ? bitmap : candidates.and( bitmap );
+
+            if ( candidates.isEmpty() )
+            {
+                break;
+            }
+        }
+
+        return candidates;
+    }
+
+
+    // ------------------------------------------------------------------------
+    // Add/Drop Methods
+    // ------------------------------------------------------------------------
+
+    /**
+     * @see org.apache.directory.server.xdbm.Index#add(Object, Long)
+     */
+    public synchronized void add( String attrVal, Long id ) throws Exception
+    {
+        super.add( attrVal, id );
+
+        for ( String ngram : Ngrams.split( getNormalized( attrVal ) ) )
+        {
+            if ( bulkLoadedNgrams != null )
+            {
+                JdbmBitmapIndex.getBitmap( bulkLoadedNgrams, ngram ).add( id );
+            }
+            else
+            {
+                JdbmBitmapIndex.updateContainer( ngrams, ngram, id, true );
+            }
+        }
+    }
+
+
+    /**
+     * @see org.apache.directory.server.xdbm.Index#drop(Object,Long)
+     */
+    public synchronized void drop( String attrVal, Long id ) throws Exception
+    {
+        super.drop( attrVal, id );
+        Set<String> dropped = Ngrams.split( getNormalized( attrVal ) );
+
+        // The n-grams of the other values of the entry are kept
+        Cursor<Tuple<Long, String>> values = reverse.cursor( id );
+
+        while ( values.next() && !dropped.isEmpty() )
+        {
+            dropped.removeAll( Ngrams.split( values.get().getValue() ) );
+        }
+
+        values.close();
+
+        for ( String ngram : dropped )
+        {
+            JdbmBitmapIndex.updateContainer( ngrams, ngram, id, false );
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public synchronized void drop( Long entryId ) throws Exception
+    {
+        Set<String> dropped = new TreeSet<String>();
+        Cursor<Tuple<Long, String>> values = reverse.cursor( entryId );
+
+        while ( values.next() )
+        {
+            dropped.addAll( Ngrams.split( values.get().getValue() ) );
+        }
+
+        values.close();
+        super.drop( entryId );
+
+        for ( String ngram : dropped )
+        {
+            JdbmBitmapIndex.updateContainer( ngrams, ngram, entryId, false );
+        }
+    }
+
+
+    // ------------------------------------------------------------------------
+    // Maintenance Methods
+    // ------------------------------------------------------------------------
+
+    /**
+     * @see org.apache.directory.server.xdbm.Index#close()
+     */
+    public synchronized void close() throws IOException
+    {
+        if ( ngrams != null )
+        {
+            ngrams.close();
+        }
+
+        super.close();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    synchronized int copyTo( RecordManager target ) throws IOException
+    {
+        return super.copyTo( target ) + ngrams.copyTo( target );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    synchronized void reopen( RecordManager recMan ) throws IOException
+    {
+        super.reopen( recMan );
+        ngrams.reopen( recMan );
+    }
+
+
+    /**
+     * Starts loading this index, which must be empty. The bitmaps of the
+     * n-grams are built in memory, and written to the n-gram table when the
+     * load is ended.
+     */
+    public synchronized void startBulkLoad()
+    {
+        super.startBulkLoad();
+        bulkLoadedNgrams = new TreeMap<String, IdBitmap>( NGRAM_COMPARATOR );
+        ngrams.startBulkLoad( true );
+    }
+
+
+    /**
+     * Writes the values added since the load has been started.
+     *
+     * @throws Exception if the tables can't be written
+     */
+    public synchronized void endBulkLoad() throws Exception
+    {
+        if ( bulkLoadedNgrams != null )
+        {
+            // The bitmaps are sorted by n-gram, and their containers by key
+            JdbmBitmapIndex.writeBitmaps( ngrams, bulkLoadedNgrams );
+            bulkLoadedNgrams = null;
+        }
+
+        ngrams.endBulkLoad();
+        super.endBulkLoad();
+    }
+
+
+    /**
+     * Compares the n-grams character by character, as they are parts of
+     * normalized values.
+     */
+    public static class NgramComparator extends SerializableComparator<String>
+    {
+        private static final long serialVersionUID = 1L;
+
+
+        public NgramComparator()
+        {
+            super( OCTET_STRING_MATCH_OID );
+        }
+
+
+        public int compare( String ngram1, String ngram2 )
+        {
+            return ngram1.compareTo( ngram2 );
+        }
+    }
+}
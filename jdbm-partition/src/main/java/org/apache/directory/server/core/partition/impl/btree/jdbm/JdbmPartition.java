@@ -24,10 +24,10 @@ import org.apache.directory.server.core.partition.Partition;
 import org.apache.directory.server.core.partition.impl.xdbm.AbstractXdbmPartition;
 import org.apache.directory.server.xdbm.Index;
 import org.apache.directory.server.xdbm.search.impl.CursorBuilder;
-import org.apache.directory.server.xdbm.search.impl.DefaultOptimizer;
 import org.apache.directory.server.xdbm.search.impl.DefaultSearchEngine;
 import org.apache.directory.server.xdbm.search.impl.EvaluatorBuilder;
 import org.apache.directory.server.xdbm.search.impl.NoOpOptimizer;
+import org.apache.directory.server.xdbm.search.impl.StatisticsOptimizer;
 import org.apache.directory.shared.ldap.entry.Entry;
 
 
@@ -49,6 +49,97 @@ public class JdbmPartition extends AbstractXdbmPartition<Long>
     }
 
 
+    /**
+     * Stores the master table and all the indices of this partition in a
+     * single file, so that each write is committed atomically.
+     *
+     * @see JdbmStore#setSingleFile(boolean)
+     */
+    public void setSingleFile( boolean singleFile )
+    {
+        ( ( JdbmStore<Entry> ) store ).setSingleFile( singleFile );
+    }
+
+
+    public boolean isSingleFile()
+    {
+        return ( ( JdbmStore<Entry> ) store ).isSingleFile();
+    }
+
+
+    /**
+     * Synchronizes the transaction log of a single file partition with a
+     * group commit, shared by the syncs done within the window.
+     *
+     * @see JdbmStore#setGroupCommitWindow(long)
+     */
+    public void setGroupCommitWindow( long groupCommitWindow )
+    {
+        ( ( JdbmStore<Entry> ) store ).setGroupCommitWindow( groupCommitWindow );
+    }
+
+
+    public long getGroupCommitWindow()
+    {
+        return ( ( JdbmStore<Entry> ) store ).getGroupCommitWindow();
+    }
+
+
+    /**
+     * @see JdbmStore#setGroupCommitBytes(long)
+     */
+    public void setGroupCommitBytes( long groupCommitBytes )
+    {
+        ( ( JdbmStore<Entry> ) store ).setGroupCommitBytes( groupCommitBytes );
+    }
+
+
+    public long getGroupCommitBytes()
+    {
+        return ( ( JdbmStore<Entry> ) store ).getGroupCommitBytes();
+    }
+
+
+    /**
+     * Compresses the entries of this partition having a large serialized
+     * size.
+     *
+     * @see JdbmStore#setEntryCompressionThreshold(int)
+     */
+    public void setEntryCompressionThreshold( int entryCompressionThreshold )
+    {
+        ( ( JdbmStore<Entry> ) store ).setEntryCompressionThreshold( entryCompressionThreshold );
+    }
+
+
+    public int getEntryCompressionThreshold()
+    {
+        return ( ( JdbmStore<Entry> ) store ).getEntryCompressionThreshold();
+    }
+
+
+    /**
+     * Compacts the files of this partition, while it is online.
+     *
+     * @return the number of bytes reclaimed
+     * @see JdbmStore#compact()
+     */
+    public long compact() throws Exception
+    {
+        return ( ( JdbmStore<Entry> ) store ).compact();
+    }
+
+
+    /**
+     * @return the percentage of the running compaction done, or -1
+     * @see JdbmStore#getCompactionProgress()
+     */
+    public int getCompactionProgress()
+    {
+        return ( ( JdbmStore<Entry> ) store ).getCompactionProgress();
+    }
+
+
     protected void doInit() throws Exception
     {
         store.setPartitionDir( getPartitionDir() );
@@ -63,10 +154,13 @@ public class JdbmPartition extends AbstractXdbmPartition<Long>
         }
         else
         {
-            optimizer = new DefaultOptimizer<Entry, Long>( store );
+            optimizer = new StatisticsOptimizer<Entry, Long>( store );
         }
 
-        searchEngine = new DefaultSearchEngine<Long>( store, cursorBuilder, evaluatorBuilder, optimizer );
+        DefaultSearchEngine<Long> defaultSearchEngine = new DefaultSearchEngine<Long>( store, cursorBuilder,
+            evaluatorBuilder, optimizer );
+        initParallelEvaluation( defaultSearchEngine );
+        searchEngine = defaultSearchEngine;
 
         // initialize the store
         store.setCacheSize( cacheSize );
@@ -25,10 +25,6 @@ import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 
-import jdbm.helper.MRU;
-import jdbm.recman.BaseRecordManager;
-import jdbm.recman.CacheRecordManager;
-
 import org.apache.directory.server.core.partition.impl.btree.LongComparator;
 import org.apache.directory.server.i18n.I18n;
 import org.apache.directory.server.xdbm.ParentIdAndRdn;
@@ -82,11 +78,7 @@ public class JdbmRdnIndex<E> extends JdbmIndex<ParentIdAndRdn<Long>, E>
             this.wkDirPath = wkDirPath;
         }
 
-        File file = new File( this.wkDirPath.getPath() + File.separator + attribute.getOid() );
-        String path = file.getAbsolutePath();
-        BaseRecordManager base = new BaseRecordManager( path );
-        base.disableTransactions();
-        this.recMan = new CacheRecordManager( base, new MRU( cacheSize ) );
+        initRecordManager();
 
         try
         {
@@ -116,7 +108,7 @@ public class JdbmRdnIndex<E> extends JdbmIndex<ParentIdAndRdn<Long>, E>
      * tables
      * @throws NamingException 
      */
-    private void initTables( SchemaManager schemaManager ) throws IOException
+    protected void initTables( SchemaManager schemaManager ) throws IOException
     {
         MatchingRule mr = attribute.getEquality();
 
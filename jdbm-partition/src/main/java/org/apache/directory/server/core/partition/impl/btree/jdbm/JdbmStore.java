@@ -24,17 +24,27 @@ import java.io.File;
 import java.io.FilenameFilter;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
 
 import jdbm.RecordManager;
-import jdbm.helper.MRU;
+import jdbm.helper.LongSerializer;
+import jdbm.helper.SLRU;
 import jdbm.recman.BaseRecordManager;
 import jdbm.recman.CacheRecordManager;
+import jdbm.recman.GroupCommit;
 
 import org.apache.directory.server.constants.ApacheSchemaConstants;
+import org.apache.directory.server.core.partition.impl.btree.LongComparator;
 import org.apache.directory.server.i18n.I18n;
 import org.apache.directory.server.xdbm.AbstractStore;
 import org.apache.directory.server.xdbm.Index;
+import org.apache.directory.server.xdbm.IntervalHierarchy;
+import org.apache.directory.server.xdbm.IntervalHierarchy.NodeRecord;
 import org.apache.directory.shared.ldap.MultiException;
 import org.apache.directory.shared.ldap.constants.SchemaConstants;
 import org.apache.directory.shared.ldap.cursor.Cursor;
@@ -59,10 +69,67 @@ public class JdbmStore<E> extends AbstractStore<E, Long>
     private static final Logger LOG = LoggerFactory.getLogger( JdbmStore.class );
 
     /** the JDBM record manager used by this database */
-    private RecordManager recMan;
+    private CacheRecordManager recMan;
+
+    /** true if the master table and the indices are stored in the master file */
+    private boolean singleFile;
+
+    /** the maximum time in milliseconds a commit of the master file waits for the group commit, or 0 */
+    private long groupCommitWindow;
+
+    /** the number of bytes written to the log which triggers the group commit before the end of its window */
+    private long groupCommitBytes = GroupCommit.DEFAULT_WINDOW_BYTES;
+
+    /** the group commit synchronizing the log of the master file, or null if each commit synchronizes it */
+    private GroupCommit groupCommit;
+
+    /** the OIDs of the indices which are not stored in the master file yet */
+    private Set<String> newIndices = new HashSet<String>();
+
+    /** the minimum size of the compressed entries, or -1 if they are not compressed */
+    private int entryCompressionThreshold = -1;
+
+    /** the indices being bulk loaded, or null if the store is not bulk loaded */
+    private List<JdbmIndex<?, E>> bulkLoadedIndices;
+
+    /** the size of the cache of the master file record manager */
+    private int recManCacheSize;
+
+    /** the number of tables compacted, or -1 if no compaction is running */
+    private volatile int compactedTables = -1;
+
+    /** the number of tables of the running compaction */
+    private volatile int tablesToCompact;
+
+    /** the lock taken by the compactions, which run one at a time */
+    private final Object compactionLock = new Object();
+
+    /** the record managers of the files replaced by the compactions */
+    private final RetiredRecordManagers retiredRecMans = new RetiredRecordManagers();
+
+    /** the table of the master file storing the hierarchy of the entries */
+    private JdbmTable<Long, NodeRecord<Long>> hierarchyTable;
+
+    /** the name of the hierarchy table */
+    private static final String HIERARCHY_TABLE = "hierarchy";
+
+    /** the number of times a file is copied before the store is locked during the copy */
+    private static final int MAX_COMPACTION_ATTEMPTS = 3;
+
+    /** the master table property storing the layout of the partition files */
+    private static final String LAYOUT_PROPERTY = "jdbm.layout";
+
+    /** the layout storing each index in its own file */
+    private static final String FILE_PER_INDEX_LAYOUT = "filePerIndex";
+
+    /** the layout storing the master table and the indices in the master file */
+    private static final String SINGLE_FILE_LAYOUT = "singleFile";
 
     private static final String JDBM_DB_FILE_EXTN = ".db";
     
+    /** The OIDs prefixing the names of the index tables in a single file */
+    private static final Pattern OID_PATTERN = Pattern.compile( "[0-9]+(\\.[0-9]+)*" );
+
     private static final FilenameFilter DB_FILTER = new FilenameFilter()
     {
         
@@ -100,6 +167,110 @@ public class JdbmStore<E> extends AbstractStore<E, Long>
     }
 
 
+    /**
+     * Stores the master table and all the indices in a single record manager
+     * file, with a single transaction log. Each sync of the store is then a
+     * single commit, which is atomic for the master table and the indices.
+     * A partition cannot be reopened with another layout than the one it
+     * has been created with.
+     *
+     * @param singleFile true to store the whole partition in the master file
+     */
+    public void setSingleFile( boolean singleFile )
+    {
+        protect( "singleFile" );
+        this.singleFile = singleFile;
+    }
+
+
+    /**
+     * @return true if the master table and all the indices are stored in the
+     * master file
+     */
+    public boolean isSingleFile()
+    {
+        return singleFile;
+    }
+
+
+    /**
+     * Compresses the entries of the master table which serialized size is
+     * at least a given number of bytes, when they are smaller compressed.
+     * The entries are read whether they are compressed or not, so this may
+     * be changed when the partition is reopened.
+     *
+     * @param entryCompressionThreshold the minimum size in bytes of the
+     * compressed entries, or -1 to never compress them
+     */
+    public void setEntryCompressionThreshold( int entryCompressionThreshold )
+    {
+        protect( "entryCompressionThreshold" );
+        this.entryCompressionThreshold = entryCompressionThreshold;
+    }
+
+
+    /**
+     * @return the minimum size in bytes of the compressed entries, or -1 if
+     * they are never compressed
+     */
+    public int getEntryCompressionThreshold()
+    {
+        return entryCompressionThreshold;
+    }
+
+
+    /**
+     * Synchronizes the transaction log of a single file with a group commit,
+     * as the {@link jdbm.RecordManagerOptions#GROUP_COMMIT_WINDOW} option of
+     * a record manager : the log is synchronized at most once in the window
+     * for all the syncs of the store done meanwhile, which wait for it out
+     * of the lock of the store. It is ignored by the file per index layout,
+     * which does not keep a transaction log.
+     *
+     * @param groupCommitWindow the maximum time in milliseconds a sync waits
+     * for the log to be synchronized, or 0 to synchronize it on each sync
+     */
+    public void setGroupCommitWindow( long groupCommitWindow )
+    {
+        protect( "groupCommitWindow" );
+        this.groupCommitWindow = groupCommitWindow;
+    }
+
+
+    /**
+     * @return the maximum time in milliseconds a sync waits for the group
+     * commit, or 0 if the log is synchronized on each sync
+     */
+    public long getGroupCommitWindow()
+    {
+        return groupCommitWindow;
+    }
+
+
+    /**
+     * Sets the number of bytes written to the log which triggers the group
+     * commit before the end of its window, as the
+     * {@link jdbm.RecordManagerOptions#GROUP_COMMIT_BYTES} option.
+     *
+     * @param groupCommitBytes the number of bytes triggering the group commit
+     */
+    public void setGroupCommitBytes( long groupCommitBytes )
+    {
+        protect( "groupCommitBytes" );
+        this.groupCommitBytes = groupCommitBytes;
+    }
+
+
+    /**
+     * @return the number of bytes written to the log which triggers the
+     * group commit before the end of its window
+     */
+    public long getGroupCommitBytes()
+    {
+        return groupCommitBytes;
+    }
+
+
     /**
      * Initialize the JDBM storage system.
      *
@@ -119,9 +290,8 @@ public class JdbmStore<E> extends AbstractStore<E, Long>
         partitionDir.mkdirs();
 
         // First, check if the file storing the data exists
-        String path = partitionDir.getPath() + File.separator + "master";
-        BaseRecordManager base = new BaseRecordManager( path );
-        base.disableTransactions();
+        FileCompactor.recover( getMasterPath() );
+        BaseRecordManager base = new BaseRecordManager( getMasterPath() );
 
         if ( cacheSize < 0 )
         {
@@ -133,11 +303,42 @@ public class JdbmStore<E> extends AbstractStore<E, Long>
             LOG.debug( "Using the custom configured cache size of {} for {} partition", cacheSize, id );
         }
 
-        // Now, create the entry cache for this partition
-        recMan = new CacheRecordManager( base, new MRU( cacheSize ) );
+        // Now, create the entry cache for this partition. In a single file,
+        // the cache is shared with the indices.
+        recManCacheSize = cacheSize;
+
+        if ( singleFile )
+        {
+            for ( Index<?, E, Long> index : userIndices.values() )
+            {
+                recManCacheSize += index.getCacheSize();
+            }
+
+            for ( Index<?, E, Long> index : systemIndices.values() )
+            {
+                recManCacheSize += index.getCacheSize();
+            }
+        }
+
+        if ( groupCommitWindow > 0 )
+        {
+            if ( singleFile )
+            {
+                groupCommit = new GroupCommit( groupCommitWindow, groupCommitBytes );
+            }
+            else
+            {
+                LOG.warn( "The group commit of the {} partition is ignored, as it is not stored in a single file", id );
+            }
+        }
+
+        recMan = openRecordManager( base );
+        setupEntryCache();
 
         // Create the master table (the table containing all the entries)
         master = new JdbmMasterTable<Entry>( recMan, schemaManager );
+        ( ( JdbmMasterTable<Entry> ) master ).setCompressionThreshold( entryCompressionThreshold );
+        checkLayout();
 
         // -------------------------------------------------------------------
         // Initializes the user and system indices
@@ -151,6 +352,7 @@ public class JdbmStore<E> extends AbstractStore<E, Long>
         
         setupSystemIndices();
         setupUserIndices();
+        setupHierarchy();
 
         // then add all index objects to a list
         List<String> allIndices = new ArrayList<String>();
@@ -171,14 +373,33 @@ public class JdbmStore<E> extends AbstractStore<E, Long>
             String name = i.getAttribute().getOid() + JDBM_DB_FILE_EXTN;
 
             // if the name doesn't exist in the list of index DB files
-            // this is a new index and we need to build it
-            if( !indexDbFileNameList.contains( name ) )
+            // this is a new index and we need to build it. In a single
+            // file, the new indices are found when they are initialized
+            boolean isNew;
+
+            if ( singleFile )
+            {
+                isNew = newIndices.contains( i.getAttribute().getOid() );
+            }
+            else
+            {
+                isNew = !indexDbFileNameList.contains( name );
+            }
+
+            if( isNew )
             {
                 buildUserIndex( i );
             }
         }
 
         deleteUnusedIndexFiles( allIndices, allIndexDbFiles );
+
+        if ( singleFile )
+        {
+            deleteUnusedIndexTables( allIndices, base );
+        }
+
+        newIndices.clear();
         
         // We are done !
         initialized = true;
@@ -191,100 +412,533 @@ public class JdbmStore<E> extends AbstractStore<E, Long>
      * @throws Exception lazily thrown on any closer failures to avoid leaving
      * open files
      */
-    public synchronized void destroy() throws Exception
+    public void destroy() throws Exception
     {
-        LOG.debug( "destroy() called on store for {}", this.suffixDn );
+        lockStore();
 
-        if ( !initialized )
+        try
         {
-            return;
-        }
+            LOG.debug( "destroy() called on store for {}", this.suffixDn );
 
-        List<Index<?, E, Long>> array = new ArrayList<Index<?, E, Long>>();
-        array.addAll( userIndices.values() );
-        array.addAll( systemIndices.values() );
-        MultiException errors = new MultiException( I18n.err( I18n.ERR_577 ) );
+            if ( !initialized )
+            {
+                return;
+            }
+
+            List<Index<?, E, Long>> array = new ArrayList<Index<?, E, Long>>();
+            array.addAll( userIndices.values() );
+            array.addAll( systemIndices.values() );
+            MultiException errors = new MultiException( I18n.err( I18n.ERR_577 ) );
+
+            for ( Index<?, E, Long> index : array )
+            {
+                try
+                {
+                    index.close();
+                    LOG.debug( "Closed {} index for {} partition.", index.getAttributeId(), suffixDn );
+                }
+                catch ( Throwable t )
+                {
+                    LOG.error( I18n.err( I18n.ERR_124 ), t );
+                    errors.addThrowable( t );
+                }
+            }
+
+            try
+            {
+                hierarchy.save( hierarchyTable );
+                hierarchyTable.close();
+                master.close();
+                LOG.debug( I18n.err( I18n.ERR_125, suffixDn ) );
+            }
+            catch ( Throwable t )
+            {
+                LOG.error( I18n.err( I18n.ERR_126 ), t );
+                errors.addThrowable( t );
+            }
 
-        for ( Index<?, E, Long> index : array )
-        {
             try
             {
-                index.close();
-                LOG.debug( "Closed {} index for {} partition.", index.getAttributeId(), suffixDn );
+                recMan.close();
+                retiredRecMans.closeAll();
+
+                if ( groupCommit != null )
+                {
+                    groupCommit.close();
+                    groupCommit = null;
+                }
+
+                LOG.debug( "Closed record manager for {} partition.", suffixDn );
             }
             catch ( Throwable t )
             {
-                LOG.error( I18n.err( I18n.ERR_124 ), t );
+                LOG.error( I18n.err( I18n.ERR_127 ), t );
                 errors.addThrowable( t );
             }
+
+            entryCache.clear();
+            hierarchy.clear();
+
+            if ( errors.size() > 0 )
+            {
+                throw errors;
+            }
+
+            initialized = false;
+        }
+        finally
+        {
+            unlockStore();
         }
+    }
+
+
+    /**
+     * This method is called when the synch thread is waking up, to write
+     * the modified data. With a group commit, the sync waits for the log
+     * to be synchronized once the store is unlocked, so that the concurrent
+     * syncs share the same synchronization.
+     * 
+     * @throws Exception on failures to sync database files to disk
+     */
+    public void sync() throws Exception
+    {
+        Future<Void> durable;
+        lockStore();
 
         try
         {
-            master.close();
-            LOG.debug( I18n.err( I18n.ERR_125, suffixDn ) );
+            if ( !initialized )
+            {
+                return;
+            }
+
+            List<Index<?, E, Long>> array = new ArrayList<Index<?, E, Long>>();
+            array.addAll( userIndices.values() );
+            array.add( aliasIdx );
+            array.add( oneAliasIdx );
+            array.add( subAliasIdx );
+            array.add( oneLevelIdx );
+            array.add( presenceIdx );
+            array.add( entryCsnIdx );
+            array.add( entryUuidIdx );
+            array.add( objectClassIdx );
+
+            // Sync all user defined userIndices
+            for ( Index<?, E, Long> idx : array )
+            {
+                idx.sync();
+            }
+
+            rdnIdx.sync();
+
+            ( ( JdbmMasterTable<Entry> ) master ).sync();
+            hierarchy.save( hierarchyTable );
+            hierarchyTable.sync();
+            durable = recMan.commitAsync();
+            retiredRecMans.closeUnused();
         }
-        catch ( Throwable t )
+        finally
         {
-            LOG.error( I18n.err( I18n.ERR_126 ), t );
-            errors.addThrowable( t );
+            unlockStore();
         }
 
         try
         {
-            recMan.close();
-            LOG.debug( "Closed record manager for {} partition.", suffixDn );
+            durable.get();
         }
-        catch ( Throwable t )
+        catch ( ExecutionException ee )
         {
-            LOG.error( I18n.err( I18n.ERR_127 ), t );
-            errors.addThrowable( t );
+            throw ( Exception ) ee.getCause();
         }
+    }
+
 
-        if ( errors.size() > 0 )
+    /**
+     * Reads the hierarchy of the entries saved in the master file. The
+     * hierarchy is built again from the one level index when it has not
+     * been saved yet, or when it does not contain all the entries.
+     */
+    @Override
+    protected void setupHierarchy() throws Exception
+    {
+        hierarchyTable = new JdbmTable<Long, NodeRecord<Long>>( schemaManager, HIERARCHY_TABLE, recMan,
+            LongComparator.INSTANCE, LongSerializer.INSTANCE, null );
+        hierarchy = new IntervalHierarchy<Long>( getRootId() );
+
+        if ( hierarchy.load( hierarchyTable ) && ( hierarchy.getSubtreeSize( getRootId() ) == master.count() ) )
         {
-            throw errors;
+            LOG.debug( "Read the hierarchy of the {} partition", id );
+            return;
         }
 
-        initialized = false;
+        LOG.info( "Building the hierarchy of the {} partition", id );
+        hierarchyTable.close();
+        JdbmTable.drop( recMan, HIERARCHY_TABLE );
+        hierarchyTable = new JdbmTable<Long, NodeRecord<Long>>( schemaManager, HIERARCHY_TABLE, recMan,
+            LongComparator.INSTANCE, LongSerializer.INSTANCE, null );
+        super.setupHierarchy();
+        hierarchy.save( hierarchyTable );
+        hierarchyTable.sync();
+        recMan.commit();
     }
 
 
     /**
-     * This method is called when the synch thread is waking up, to write
-     * the modified data.
-     * 
-     * @throws Exception on failures to sync database files to disk
+     * Starts loading this store, which must be empty. The entries added are
+     * then written to fully packed BTree pages when the load is ended : the
+     * master table receives the entries in the order of their ids, and the
+     * values added to the indices are sorted first. The rdn and alias
+     * indices, which are read while the entries are added, are updated as
+     * usual. The store must not be searched until the load is ended.
+     *
+     * @throws Exception if the store is not empty
      */
-    public synchronized void sync() throws Exception
+    @SuppressWarnings("unchecked")
+    public void startBulkLoad() throws Exception
     {
-        if ( !initialized )
+        lockStore();
+
+        try
         {
-            return;
+            if ( master.count() > 0 )
+            {
+                throw new IllegalStateException( I18n.err( I18n.ERR_739, id ) );
+            }
+
+            List<Index<?, E, Long>> indices = new ArrayList<Index<?, E, Long>>();
+            indices.addAll( userIndices.values() );
+            indices.add( objectClassIdx );
+            indices.add( presenceIdx );
+            indices.add( oneLevelIdx );
+            indices.add( entryCsnIdx );
+            indices.add( entryUuidIdx );
+
+            bulkLoadedIndices = new ArrayList<JdbmIndex<?, E>>();
+
+            for ( Index<?, E, Long> index : indices )
+            {
+                JdbmIndex<?, E> jdbmIndex = ( JdbmIndex<?, E> ) index;
+                jdbmIndex.startBulkLoad();
+                bulkLoadedIndices.add( jdbmIndex );
+            }
+
+            ( ( JdbmMasterTable<Entry> ) master ).startBulkLoad( true );
+        }
+        finally
+        {
+            unlockStore();
         }
+    }
+
+
+    /**
+     * Writes the entries added since the load has been started, and syncs
+     * the store.
+     *
+     * @throws Exception if the tables can't be written
+     */
+    public void endBulkLoad() throws Exception
+    {
+        lockStore();
+
+        try
+        {
+            if ( bulkLoadedIndices == null )
+            {
+                return;
+            }
 
-        List<Index<?, E, Long>> array = new ArrayList<Index<?, E, Long>>();
-        array.addAll( userIndices.values() );
-        array.add( aliasIdx );
-        array.add( oneAliasIdx );
-        array.add( subAliasIdx );
-        array.add( oneLevelIdx );
-        array.add( presenceIdx );
-        array.add( subLevelIdx );
-        array.add( entryCsnIdx );
-        array.add( entryUuidIdx );
-        array.add( objectClassIdx );
+            ( ( JdbmMasterTable<Entry> ) master ).endBulkLoad();
 
-        // Sync all user defined userIndices
-        for ( Index<?, E, Long> idx : array )
+            for ( JdbmIndex<?, E> index : bulkLoadedIndices )
+            {
+                index.endBulkLoad();
+            }
+
+            bulkLoadedIndices = null;
+            sync();
+        }
+        finally
         {
-            idx.sync();
+            unlockStore();
         }
+    }
 
-        rdnIdx.sync();
 
-        ( ( JdbmMasterTable<Entry> ) master ).sync();
-        recMan.commit();
+    /**
+     * Compacts the files of this store. The live records of each file are
+     * copied contiguously to a new file, which then replaces the former
+     * one, so that the space left by the deleted and modified entries is
+     * given back to the file system.
+     * <p>
+     * A file is copied while the store is still read and written. The store
+     * is only locked to replace the file with its copy, unless entries have
+     * been written during the copy : the file is then copied again, and the
+     * last attempt is made with the store locked. The searches running when
+     * a file is replaced keep reading the former file, which is closed once
+     * they are gone.
+     *
+     * @return the number of bytes reclaimed
+     * @throws Exception if the files can't be compacted
+     */
+    @SuppressWarnings("unchecked")
+    public long compact() throws Exception
+    {
+        synchronized ( compactionLock )
+        {
+            final List<JdbmIndex<?, E>> indices = new ArrayList<JdbmIndex<?, E>>();
+
+            for ( Index<?, E, Long> index : userIndices.values() )
+            {
+                indices.add( ( JdbmIndex<?, E> ) index );
+            }
+
+            for ( Index<?, E, Long> index : systemIndices.values() )
+            {
+                indices.add( ( JdbmIndex<?, E> ) index );
+            }
+
+            tablesToCompact = indices.size() + 1;
+            compactedTables = 0;
+            long reclaimed = 0;
+
+            try
+            {
+                final JdbmMasterTable<Entry> masterTable = ( JdbmMasterTable<Entry> ) master;
+
+                reclaimed += compactFile( new FileCopy()
+                {
+                    FileCompactor copy() throws Exception
+                    {
+                        // The hierarchy of the entries written so far is saved before
+                        // it is copied, the entries written afterwards are then detected
+                        saveHierarchy();
+                        FileCompactor compactor = new FileCompactor( getMasterPath() );
+
+                        try
+                        {
+                            masterTable.copyTo( compactor.getTarget() );
+                            hierarchyTable.copyTo( compactor.getTarget() );
+                            compactedTables++;
+
+                            // In a single file, the indices are copied along with the master table
+                            if ( singleFile )
+                            {
+                                for ( JdbmIndex<?, E> index : indices )
+                                {
+                                    index.copyTo( compactor.getTarget() );
+                                    compactedTables++;
+                                }
+                            }
+                        }
+                        catch ( Exception e )
+                        {
+                            compactor.discard();
+                            throw e;
+                        }
+
+                        return compactor;
+                    }
+
+
+                    long swap( FileCompactor compactor ) throws Exception
+                    {
+                        long size = compactor.getFileSize();
+                        sync();
+
+                        RecordManager former = recMan;
+                        recMan = openRecordManager( compactor.swap( former ) );
+                        retiredRecMans.add( ( CacheRecordManager ) former );
+                        masterTable.reopen( recMan );
+                        hierarchyTable.reopen( recMan );
+
+                        if ( singleFile )
+                        {
+                            for ( JdbmIndex<?, E> index : indices )
+                            {
+                                index.reopen( recMan );
+                            }
+                        }
+
+                        return size - compactor.getFileSize();
+                    }
+                } );
+
+                if ( !singleFile )
+                {
+                    for ( final JdbmIndex<?, E> index : indices )
+                    {
+                        reclaimed += compactFile( new FileCopy()
+                        {
+                            FileCompactor copy() throws Exception
+                            {
+                                FileCompactor compactor = index.copyFile();
+                                compactedTables++;
+
+                                return compactor;
+                            }
+
+
+                            long swap( FileCompactor compactor ) throws Exception
+                            {
+                                return index.swapFile( compactor, retiredRecMans );
+                            }
+                        } );
+                    }
+                }
+            }
+            finally
+            {
+                compactedTables = -1;
+            }
+
+            LOG.info( "Compacted the {} partition, {} bytes reclaimed", id, reclaimed );
+
+            return reclaimed;
+        }
+    }
+
+
+    /**
+     * Saves the hierarchy of the entries, the store being locked.
+     */
+    private void saveHierarchy() throws Exception
+    {
+        lockStore();
+
+        try
+        {
+            hierarchy.save( hierarchyTable );
+        }
+        finally
+        {
+            unlockStore();
+        }
+    }
+
+
+    /**
+     * The copy of a file of this store, made by {@link JdbmStore#compactFile(FileCopy)}.
+     */
+    private abstract class FileCopy
+    {
+        /**
+         * Copies the tables of the file, counting them as compacted.
+         *
+         * @return the copy, or null if the file is not copied
+         */
+        abstract FileCompactor copy() throws Exception;
+
+
+        /**
+         * Replaces the file with its copy, the store being locked.
+         *
+         * @return the number of bytes reclaimed
+         */
+        abstract long swap( FileCompactor compactor ) throws Exception;
+    }
+
+
+    /**
+     * Copies a file without locking the store, then replaces it with its
+     * copy once the store is locked, if no entry has been written meanwhile.
+     * Otherwise the file is copied again, with the store locked on the last
+     * attempt.
+     */
+    private long compactFile( FileCopy fileCopy ) throws Exception
+    {
+        int compacted = compactedTables;
+
+        for ( int attempt = 1;; attempt++ )
+        {
+            boolean isLocked = ( attempt == MAX_COMPACTION_ATTEMPTS );
+
+            if ( isLocked )
+            {
+                lockStore();
+            }
+
+            try
+            {
+                compactedTables = compacted;
+                long writeCount = getWriteCount();
+                FileCompactor compactor = fileCopy.copy();
+
+                if ( compactor == null )
+                {
+                    return 0;
+                }
+
+                if ( !isLocked )
+                {
+                    lockStore();
+                    isLocked = true;
+                }
+
+                if ( getWriteCount() != writeCount )
+                {
+                    LOG.debug( "The {} partition has been written while it was copied, copying it again", id );
+                    compactor.discard();
+                    continue;
+                }
+
+                return fileCopy.swap( compactor );
+            }
+            finally
+            {
+                if ( isLocked )
+                {
+                    unlockStore();
+                }
+            }
+        }
+    }
+
+
+    /**
+     * @return the percentage of the tables copied by the running compaction,
+     * or -1 if the store is not being compacted
+     */
+    public int getCompactionProgress()
+    {
+        int compacted = compactedTables;
+
+        return ( compacted < 0 ) ? -1 : ( compacted * 100 / tablesToCompact );
+    }
+
+
+    /**
+     * @return the path of the master file, without extension
+     */
+    private String getMasterPath()
+    {
+        return partitionDir.getPath() + File.separator + "master";
+    }
+
+
+    /**
+     * Configures the record manager of the master file.
+     */
+    private CacheRecordManager openRecordManager( BaseRecordManager base ) throws Exception
+    {
+        // A single file keeps its transaction log, so that the commits are
+        // atomic across the master table and the indices
+        if ( !singleFile )
+        {
+            base.disableTransactions();
+        }
+        else if ( groupCommit != null )
+        {
+            base.setGroupCommit( groupCommit );
+        }
+
+        base.enableConcurrentReads();
+
+        CacheRecordManager cacheRecMan = new CacheRecordManager( base, new SLRU( recManCacheSize ) );
+        cacheRecMan.enableConcurrentReads();
+
+        return cacheRecMan;
     }
 
 
@@ -306,6 +960,14 @@ public class JdbmStore<E> extends AbstractStore<E, Long>
             jdbmIndex.setNumDupLimit( JdbmIndex.DEFAULT_DUPLICATE_LIMIT );
             jdbmIndex.setWkDirPath( index.getWkDirPath() );
         }
+        else if ( isBitmapIndexed( index.getAttributeId() ) && !( index instanceof JdbmBitmapIndex<?, ?> ) )
+        {
+            LOG.debug( "Supplied index {} is not a JdbmBitmapIndex.  "
+                + "Will create new JdbmBitmapIndex using copied configuration parameters.", index );
+            jdbmIndex = new JdbmBitmapIndex( index.getAttributeId() );
+            jdbmIndex.setCacheSize( index.getCacheSize() );
+            jdbmIndex.setWkDirPath( index.getWkDirPath() );
+        }
         else if ( index instanceof JdbmIndex<?, ?> )
         {
             jdbmIndex = ( JdbmIndex<?, E> ) index;
@@ -320,12 +982,87 @@ public class JdbmStore<E> extends AbstractStore<E, Long>
             jdbmIndex.setWkDirPath( index.getWkDirPath() );
         }
 
-        jdbmIndex.init( schemaManager, schemaManager.lookupAttributeTypeRegistry( index.getAttributeId() ),
-            partitionDir );
+        AttributeType attributeType = schemaManager.lookupAttributeTypeRegistry( index.getAttributeId() );
+
+        // The optimizer counts the children of an entry directly
+        if ( !( jdbmIndex instanceof JdbmRdnIndex ) )
+        {
+            jdbmIndex.setStatisticsEnabled( !isIdKeyed( attributeType.getOid() ) );
+        }
+
+        if ( singleFile )
+        {
+            // The index tables are created in the master file if they are not there yet
+            if ( recMan.getNamedObject( attributeType.getOid() + JdbmIndex.FORWARD_BTREE ) == 0 )
+            {
+                newIndices.add( attributeType.getOid() );
+            }
+
+            jdbmIndex.setRecordManager( recMan );
+        }
+
+        jdbmIndex.init( schemaManager, attributeType, partitionDir );
 
         return jdbmIndex;
     }
 
+
+    /**
+     * Tells if the ids of an index are stored in bitmaps : the values of the
+     * objectClass and of the presence indices are shared by a lot of entries.
+     */
+    private boolean isBitmapIndexed( String attributeId ) throws Exception
+    {
+        String oid = schemaManager.getAttributeTypeRegistry().getOidByName( attributeId );
+
+        return oid.equals( SchemaConstants.OBJECT_CLASS_AT_OID )
+            || oid.equals( ApacheSchemaConstants.APACHE_EXISTENCE_AT_OID );
+    }
+
+
+    /**
+     * Tells if the values of an index are the ids of entries, in which case
+     * no statistics are kept on its values.
+     */
+    private boolean isIdKeyed( String oid )
+    {
+        return oid.equals( ApacheSchemaConstants.APACHE_ONE_LEVEL_AT_OID )
+            || oid.equals( ApacheSchemaConstants.APACHE_ONE_ALIAS_AT_OID )
+            || oid.equals( ApacheSchemaConstants.APACHE_SUB_ALIAS_AT_OID );
+    }
+
+
+    /**
+     * Checks that the partition files have the configured layout. The partitions
+     * created before the layout was stored use a file per index.
+     */
+    private void checkLayout() throws Exception
+    {
+        String expected = singleFile ? SINGLE_FILE_LAYOUT : FILE_PER_INDEX_LAYOUT;
+        String layout = master.getProperty( LAYOUT_PROPERTY );
+
+        if ( layout == null )
+        {
+            if ( master.count() > 0 )
+            {
+                layout = FILE_PER_INDEX_LAYOUT;
+            }
+            else
+            {
+                layout = expected;
+            }
+
+            master.setProperty( LAYOUT_PROPERTY, layout );
+        }
+
+        if ( !layout.equals( expected ) )
+        {
+            master.close();
+            recMan.close();
+            throw new IllegalStateException( I18n.err( I18n.ERR_738, id, layout, expected ) );
+        }
+    }
+
     
     /**
      * removes any unused/removed attribute index files present under the partition's
@@ -376,6 +1113,46 @@ public class JdbmStore<E> extends AbstractStore<E, Long>
     }
     
     
+    /**
+     * Deletes the tables of the indices which have been removed from the
+     * master file, in the single file layout. The tables of an index are
+     * named after the OID of its attribute type.
+     */
+    private void deleteUnusedIndexTables( List<String> allIndices, BaseRecordManager base ) throws Exception
+    {
+        boolean deleted = false;
+
+        for ( String name : base.getNames() )
+        {
+            int pos = name.indexOf( '_' );
+
+            if ( ( pos <= 0 ) || !OID_PATTERN.matcher( name.substring( 0, pos ) ).matches()
+                || allIndices.contains( name.substring( 0, pos ) ) || name.endsWith( JdbmTable.SZSUFFIX ) )
+            {
+                continue;
+            }
+
+            if ( name.endsWith( JdbmIndex.STATISTICS ) )
+            {
+                recMan.delete( recMan.getNamedObject( name ) );
+                recMan.setNamedObject( name, 0 );
+            }
+            else
+            {
+                JdbmTable.drop( recMan, name );
+            }
+
+            LOG.info( "Deleted unused index table {} of {} partition", name, id );
+            deleted = true;
+        }
+
+        if ( deleted )
+        {
+            recMan.commit();
+        }
+    }
+
+
     /**
      * builds a user defined index on a attribute by browsing all the entries present in master db
      * 
@@ -26,6 +26,7 @@ import java.util.Map;
 
 import jdbm.RecordManager;
 import jdbm.btree.BTree;
+import jdbm.btree.BTreeBuilder;
 import jdbm.helper.Serializer;
 import jdbm.helper.Tuple;
 import jdbm.helper.TupleBrowser;
@@ -58,13 +59,13 @@ public class JdbmTable<K,V> implements Table<K,V>
     private static final Logger LOG = LoggerFactory.getLogger( JdbmTable.class.getSimpleName() );
 
     /** the key to store and retreive the count information */
-    private static final String SZSUFFIX = "_btree_sz";
+    static final String SZSUFFIX = "_btree_sz";
 
     /** the name of this table */
     private final String name;
 
     /** the JDBM record manager for the file this table is managed in */
-    private final RecordManager recMan;
+    private RecordManager recMan;
     
     /** whether or not this table allows for duplicates */
     private final boolean allowsDuplicates;
@@ -93,9 +94,18 @@ public class JdbmTable<K,V> implements Table<K,V>
 
     Marshaller<ArrayTree<V>> marshaller;
 
+    /** whether the duplicate values are Longs, stored by a LongArrayMarshaller */
+    private final boolean longValues;
+
     /** The global SchemaManager */
     private SchemaManager schemaManager;
 
+    /** the loader writing the BTree while the table is bulk loaded */
+    private BulkLoader bulkLoader;
+
+    /** the sorter of the tuples put in a bulk load, if they are not sorted */
+    private TupleSorter<K, V> sorter;
+
     // ------------------------------------------------------------------------
     // C O N S T R U C T O R
     // ------------------------------------------------------------------------
@@ -128,7 +138,13 @@ public class JdbmTable<K,V> implements Table<K,V>
         // TODO make the size of the duplicate btree cache configurable via constructor
         duplicateBtrees = new SynchronizedLRUMap( 100 );
 
-        if ( valueSerializer != null )
+        longValues = valueSerializer instanceof LongSerializer;
+
+        if ( longValues )
+        {
+            marshaller = ( Marshaller ) LongArrayMarshaller.INSTANCE;
+        }
+        else if ( valueSerializer != null )
         {
             marshaller = new ArrayMarshaller<V>( valueComparator,
                     new MarshallerSerializerBridge<V>( valueSerializer ) );
@@ -210,6 +226,7 @@ public class JdbmTable<K,V> implements Table<K,V>
     {
         this.schemaManager = schemaManager;
         this.duplicateBtrees = null;
+        this.longValues = false;
         this.numDupLimit = Integer.MAX_VALUE;
         this.name = name;
         this.recMan = manager;
@@ -357,7 +374,14 @@ public class JdbmTable<K,V> implements Table<K,V>
             }
         }
 
-        DupsContainer<V> values = getDupsContainer( ( byte[] ) bt.find( key ) );
+        byte[] serialized = ( byte[] ) bt.find( key );
+
+        if ( longValues && LongArrayMarshaller.isLongArray( serialized ) )
+        {
+            return LongArrayMarshaller.size( serialized );
+        }
+
+        DupsContainer<V> values = getDupsContainer( serialized );
         
         if ( values.isArrayTree() )
         {
@@ -395,8 +419,19 @@ public class JdbmTable<K,V> implements Table<K,V>
             return ( V ) bt.find( key );
         }                         
 
-        
-        DupsContainer<V> values = getDupsContainer( ( byte[] ) bt.find( key ) );
+        byte[] serialized = ( byte[] ) bt.find( key );
+
+        if ( longValues && LongArrayMarshaller.isLongArray( serialized ) )
+        {
+            if ( LongArrayMarshaller.size( serialized ) == 0 )
+            {
+                return null;
+            }
+
+            return ( V ) Long.valueOf( LongArrayMarshaller.getValue( serialized, 0 ) );
+        }
+
+        DupsContainer<V> values = getDupsContainer( serialized );
         if ( values.isArrayTree() )
         {
             ArrayTree<V> set = values.getArrayTree();
@@ -435,7 +470,17 @@ public class JdbmTable<K,V> implements Table<K,V>
             throw new UnsupportedOperationException( I18n.err( I18n.ERR_593 ) );
         }
 
-        DupsContainer<V> values = getDupsContainer( ( byte[] ) bt.find( key ) );
+        byte[] serialized = ( byte[] ) bt.find( key );
+
+        if ( longValues && LongArrayMarshaller.isLongArray( serialized ) )
+        {
+            int size = LongArrayMarshaller.size( serialized );
+
+            // The greatest value is the last one
+            return ( size != 0 ) && ( LongArrayMarshaller.getValue( serialized, size - 1 ) >= ( Long ) val );
+        }
+
+        DupsContainer<V> values = getDupsContainer( serialized );
         
         if ( values.isArrayTree() )
         {
@@ -466,7 +511,16 @@ public class JdbmTable<K,V> implements Table<K,V>
             throw new UnsupportedOperationException( I18n.err( I18n.ERR_593 ) );
         }
 
-        DupsContainer<V> values = getDupsContainer( ( byte[] ) bt.find( key ) );
+        byte[] serialized = ( byte[] ) bt.find( key );
+
+        if ( longValues && LongArrayMarshaller.isLongArray( serialized ) )
+        {
+            // The smallest value is the first one
+            return ( LongArrayMarshaller.size( serialized ) != 0 )
+                && ( LongArrayMarshaller.getValue( serialized, 0 ) <= ( Long ) val );
+        }
+
+        DupsContainer<V> values = getDupsContainer( serialized );
         
         if ( values.isArrayTree() )
         {
@@ -575,7 +629,14 @@ public class JdbmTable<K,V> implements Table<K,V>
             return null != stored && stored.equals( value );
         }
         
-        DupsContainer<V> values = getDupsContainer( ( byte[] ) bt.find( key ) );
+        byte[] serialized = ( byte[] ) bt.find( key );
+
+        if ( longValues && LongArrayMarshaller.isLongArray( serialized ) )
+        {
+            return LongArrayMarshaller.indexOf( serialized, ( Long ) value ) >= 0;
+        }
+
+        DupsContainer<V> values = getDupsContainer( serialized );
         
         if ( values.isArrayTree() )
         {
@@ -613,6 +674,20 @@ public class JdbmTable<K,V> implements Table<K,V>
             {
                 throw new IllegalArgumentException( I18n.err( I18n.ERR_594 ) );
             }
+
+            if ( bulkLoader != null )
+            {
+                if ( sorter != null )
+                {
+                    sorter.add( key, value );
+                }
+                else
+                {
+                    bulkLoader.add( key, value );
+                }
+
+                return;
+            }
             
             V replaced;
     
@@ -633,7 +708,33 @@ public class JdbmTable<K,V> implements Table<K,V>
                 return;
             }
             
-            DupsContainer<V> values = getDupsContainer( ( byte[] ) bt.find( key ) );
+            byte[] serialized = ( byte[] ) bt.find( key );
+
+            if ( longValues && ( ( serialized == null ) || LongArrayMarshaller.isLongArray( serialized ) ) )
+            {
+                byte[] inserted = LongArrayMarshaller.insert( serialized, ( Long ) value );
+
+                if ( inserted == serialized ) // the value is already present
+                {
+                    return;
+                }
+
+                if ( LongArrayMarshaller.size( inserted ) > numDupLimit )
+                {
+                    BTree tree = convertToBTree( marshaller.deserialize( inserted ) );
+                    BTreeRedirect redirect = new BTreeRedirect( tree.getRecordId() );
+                    bt.insert( key, (V)BTreeRedirectMarshaller.INSTANCE.serialize( redirect ), true );
+                }
+                else
+                {
+                    bt.insert( key, (V)inserted, true );
+                }
+
+                count++;
+                return;
+            }
+
+            DupsContainer<V> values = getDupsContainer( serialized );
             
             if ( values.isArrayTree() )
             {
@@ -734,7 +835,31 @@ public class JdbmTable<K,V> implements Table<K,V>
                 return;
             }
     
-            DupsContainer<V> values = getDupsContainer( ( byte[] ) bt.find( key ) );
+            byte[] serialized = ( byte[] ) bt.find( key );
+
+            if ( longValues && LongArrayMarshaller.isLongArray( serialized ) )
+            {
+                byte[] removed = LongArrayMarshaller.remove( serialized, ( Long ) value );
+
+                if ( removed == serialized ) // the value is not present
+                {
+                    return;
+                }
+
+                if ( LongArrayMarshaller.size( removed ) == 0 )
+                {
+                    bt.remove( key );
+                }
+                else
+                {
+                    bt.insert( key, (V)removed, true );
+                }
+
+                count--;
+                return;
+            }
+
+            DupsContainer<V> values = getDupsContainer( serialized );
             
             if ( values.isArrayTree() )
             {
@@ -854,6 +979,17 @@ public class JdbmTable<K,V> implements Table<K,V>
                 duplicateBtrees.remove( tree.getRecordId() );
                 return;
             }
+            else if ( longValues && LongArrayMarshaller.isLongArray( serialized ) )
+            {
+                this.count -= LongArrayMarshaller.size( serialized );
+
+                if ( LOG.isDebugEnabled() )
+                {
+                    LOG.debug( "<--- Remove AVL {} = {}", name, key );
+                }
+
+                return;
+            }
             else
             {
                 ArrayTree<V> set = marshaller.deserialize( serialized );
@@ -984,6 +1120,74 @@ public class JdbmTable<K,V> implements Table<K,V>
     {
         return marshaller;
     }
+
+
+    /**
+     * Starts loading this table, which must be empty. Until the load is
+     * ended, the tuples put are not stored in the table but written in
+     * sorted order to fully packed BTree pages, and the table must not be
+     * read.
+     *
+     * @param sorted true if the tuples are put sorted by key, and by value
+     * for a table with duplicates, false if they must be sorted first
+     * @throws IllegalStateException if the table is not empty
+     */
+    public synchronized void startBulkLoad( boolean sorted )
+    {
+        if ( count != 0 )
+        {
+            throw new IllegalStateException( I18n.err( I18n.ERR_754, name ) );
+        }
+
+        bulkLoader = new BulkLoader();
+
+        if ( !sorted )
+        {
+            sorter = new TupleSorter<K, V>( keyComparator, allowsDuplicates ? valueComparator : null );
+        }
+    }
+
+
+    /**
+     * Writes the tuples put since the load has been started, and stores
+     * the size of the table.
+     *
+     * @throws Exception if the tuples can't be written
+     */
+    public synchronized void endBulkLoad() throws Exception
+    {
+        if ( bulkLoader == null )
+        {
+            return;
+        }
+
+        try
+        {
+            if ( sorter != null )
+            {
+                sorter.sort();
+
+                for ( jdbm.helper.Tuple<K, V> tuple = sorter.next(); tuple != null; tuple = sorter.next() )
+                {
+                    bulkLoader.add( tuple.getKey(), tuple.getValue() );
+                }
+            }
+
+            bulkLoader.build();
+        }
+        finally
+        {
+            if ( sorter != null )
+            {
+                sorter.close();
+            }
+
+            sorter = null;
+            bulkLoader = null;
+        }
+
+        sync();
+    }
     
 
     // ------------------------------------------------------------------------
@@ -1033,6 +1237,180 @@ public class JdbmTable<K,V> implements Table<K,V>
     }
 
 
+    /**
+     * Rewrites the pages of the main BTree of a table, and of the BTrees
+     * holding its duplicate values, which are still in the former BPage
+     * format. The values are only read when the table may have duplicates,
+     * so that no schema is needed to convert the master table.
+     *
+     * @param recMan the record manager of the table
+     * @param tree the main BTree of the table
+     * @return the number of pages rewritten
+     * @throws IOException if the pages can't be read or written
+     */
+    @SuppressWarnings("unchecked")
+    public static int rewritePages( RecordManager recMan, BTree tree ) throws IOException
+    {
+        int rewritten = tree.rewritePages();
+
+        if ( tree.getValueSerializer() != null )
+        {
+            return rewritten;
+        }
+
+        jdbm.helper.Tuple tuple = new jdbm.helper.Tuple();
+        TupleBrowser browser = tree.browse();
+
+        while ( browser.getNext( tuple ) )
+        {
+            if ( ( tuple.getValue() instanceof byte[] )
+                && BTreeRedirectMarshaller.isRedirect( ( byte[] ) tuple.getValue() ) )
+            {
+                BTreeRedirect redirect = BTreeRedirectMarshaller.INSTANCE.deserialize( ( byte[] ) tuple.getValue() );
+                rewritten += new BTree().load( recMan, redirect.getRecId() ).rewritePages();
+            }
+        }
+
+        return rewritten;
+    }
+
+
+    /**
+     * Copies this table to another record manager, under the same name.
+     * The pages of the BTrees are copied without deserializing the tuples,
+     * and the values redirecting to a BTree of duplicates are updated to
+     * redirect to its copy.
+     *
+     * @param target the record manager receiving the copy
+     * @return the number of tuples copied
+     * @throws IOException if the table can't be copied
+     */
+    @SuppressWarnings("unchecked")
+    synchronized int copyTo( RecordManager target ) throws IOException
+    {
+        BTree<K, V> copy = bt.copy( target );
+
+        if ( allowsDuplicates )
+        {
+            jdbm.helper.Tuple<K, V> tuple = new jdbm.helper.Tuple<K, V>();
+            TupleBrowser<K, V> browser = bt.browse();
+
+            while ( browser.getNext( tuple ) )
+            {
+                byte[] serialized = ( byte[] ) tuple.getValue();
+
+                if ( BTreeRedirectMarshaller.isRedirect( serialized ) )
+                {
+                    BTree tree = getBTree( BTreeRedirectMarshaller.INSTANCE.deserialize( serialized ) );
+                    BTreeRedirect redirect = new BTreeRedirect( tree.copy( target ).getRecordId() );
+                    copy.insert( tuple.getKey(), ( V ) BTreeRedirectMarshaller.INSTANCE.serialize( redirect ), true );
+                }
+            }
+        }
+
+        target.setNamedObject( name, copy.getRecordId() );
+        target.setNamedObject( name + SZSUFFIX, target.insert( count ) );
+
+        return count;
+    }
+
+
+    /**
+     * Reads this table from another record manager, once it has been
+     * copied there.
+     *
+     * @param recMan the record manager containing the copy of this table
+     * @throws IOException if the table can't be read
+     */
+    @SuppressWarnings("unchecked")
+    synchronized void reopen( RecordManager recMan ) throws IOException
+    {
+        this.recMan = recMan;
+
+        if ( duplicateBtrees != null )
+        {
+            duplicateBtrees.clear();
+        }
+
+        bt = new BTree<K, V>().load( recMan, recMan.getNamedObject( name ) );
+        ((SerializableComparator<K>)bt.getComparator()).setSchemaManager( schemaManager );
+
+        if ( !allowsDuplicates )
+        {
+            bt.setValueSerializer( valueSerializer );
+        }
+
+        count = ( Integer ) recMan.fetch( recMan.getNamedObject( name + SZSUFFIX ) );
+    }
+
+
+    /**
+     * Removes the names of a table from a record manager, so that another
+     * table can be created with the same name. The records of the former
+     * table are left in the file until it is compacted.
+     *
+     * @param recMan the record manager containing the table
+     * @param name the name of the table
+     * @throws IOException if the names can't be removed
+     */
+    static void forget( RecordManager recMan, String name ) throws IOException
+    {
+        recMan.setNamedObject( name, 0 );
+        recMan.setNamedObject( name + SZSUFFIX, 0 );
+    }
+
+
+    /**
+     * Deletes a table which is no longer used from a record manager : its
+     * BTree, the BTrees storing its duplicate values, its size, and its
+     * names. The table must not be opened.
+     *
+     * @param recMan the record manager containing the table
+     * @param name the name of the table
+     * @throws IOException if the table can't be deleted
+     */
+    @SuppressWarnings("unchecked")
+    static void drop( RecordManager recMan, String name ) throws IOException
+    {
+        long recId = recMan.getNamedObject( name );
+
+        if ( recId != 0 )
+        {
+            BTree tree = new BTree().load( recMan, recId );
+
+            // Only the tables with duplicates store their values without
+            // a serializer, some of them in their own BTrees
+            if ( tree.getValueSerializer() == null )
+            {
+                Tuple tuple = new Tuple();
+                TupleBrowser browser = tree.browse();
+
+                while ( browser.getNext( tuple ) )
+                {
+                    if ( ( tuple.getValue() instanceof byte[] )
+                        && BTreeRedirectMarshaller.isRedirect( ( byte[] ) tuple.getValue() ) )
+                    {
+                        BTreeRedirect redirect = BTreeRedirectMarshaller.INSTANCE.deserialize( ( byte[] ) tuple
+                            .getValue() );
+                        new BTree().load( recMan, redirect.getRecId() ).delete();
+                    }
+                }
+            }
+
+            tree.delete();
+        }
+
+        long sizeRecId = recMan.getNamedObject( name + SZSUFFIX );
+
+        if ( sizeRecId != 0 )
+        {
+            recMan.delete( sizeRecId );
+        }
+
+        forget( recMan, name );
+    }
+
+
     /**
      * Returns the main BTree used by this table.
      *
@@ -1111,18 +1489,22 @@ public class JdbmTable<K,V> implements Table<K,V>
     }
     
 
-    private BTree<V, K> convertToBTree( ArrayTree<V> arrayTree ) throws Exception
+    private BTree<V, K> createDuplicatesBTree() throws IOException
     {
-        BTree<V, K> bTree;
-
         if ( valueSerializer != null )
         {
-            bTree = new BTree<V, K>( recMan, valueComparator, valueSerializer, null );
+            return new BTree<V, K>( recMan, valueComparator, valueSerializer, null );
         }
         else
         {
-            bTree = new BTree<V, K>( recMan, valueComparator );
+            return new BTree<V, K>( recMan, valueComparator );
         }
+    }
+
+
+    private BTree<V, K> convertToBTree( ArrayTree<V> arrayTree ) throws Exception
+    {
+        BTree<V, K> bTree = createDuplicatesBTree();
 
         Cursor<V> keys = new ArrayTreeCursor<V>( arrayTree );
         keys.beforeFirst();
@@ -1134,4 +1516,118 @@ public class JdbmTable<K,V> implements Table<K,V>
         
         return bTree;
     }
+
+
+    /**
+     * Writes the tuples of a bulk load, sorted by key and by value, to the
+     * main BTree and to the BTrees of the duplicates. The values of a key
+     * are gathered until the next key is put. When a table has no
+     * duplicates, the last value put for a key replaces the others.
+     */
+    private class BulkLoader
+    {
+        /** the builder of the main BTree */
+        private final BTreeBuilder<K, V> builder = new BTreeBuilder<K, V>( bt );
+
+        /** the key whose values are being gathered */
+        private K key;
+
+        /** the value of the key, if the table has no duplicates */
+        private V value;
+
+        /** the last value of the key, if the table has duplicates */
+        private V lastValue;
+
+        /** the values of the key, until there are more than numDupLimit */
+        private ArrayTree<V> values;
+
+        /** the builder of the BTree holding the values of the key, past numDupLimit */
+        private BTreeBuilder<V, K> duplicates;
+
+
+        @SuppressWarnings("unchecked")
+        private void add( K key, V value ) throws Exception
+        {
+            if ( ( this.key == null ) || ( keyComparator.compare( this.key, key ) != 0 ) )
+            {
+                flush();
+                this.key = key;
+                lastValue = null;
+                values = new ArrayTree<V>( valueComparator );
+                duplicates = null;
+            }
+
+            if ( !allowsDuplicates )
+            {
+                this.value = value;
+                return;
+            }
+
+            // The values are sorted, a value equal to the previous one is
+            // already stored
+            if ( ( lastValue != null ) && ( valueComparator.compare( lastValue, value ) == 0 ) )
+            {
+                return;
+            }
+
+            lastValue = value;
+            count++;
+
+            if ( duplicates != null )
+            {
+                duplicates.add( value, ( K ) StringTools.EMPTY_BYTES );
+                return;
+            }
+
+            values.insert( value );
+
+            if ( values.size() > numDupLimit )
+            {
+                duplicates = new BTreeBuilder<V, K>( createDuplicatesBTree() );
+
+                for ( int i = 0; i < values.size(); i++ )
+                {
+                    duplicates.add( values.get( i ), ( K ) StringTools.EMPTY_BYTES );
+                }
+
+                values = null;
+            }
+        }
+
+
+        /**
+         * Writes the values of the current key to the main BTree.
+         */
+        @SuppressWarnings("unchecked")
+        private void flush() throws Exception
+        {
+            if ( key == null )
+            {
+                return;
+            }
+
+            if ( !allowsDuplicates )
+            {
+                builder.add( key, value );
+                count++;
+            }
+            else if ( duplicates != null )
+            {
+                BTreeRedirect redirect = new BTreeRedirect( duplicates.build().getRecordId() );
+                builder.add( key, ( V ) BTreeRedirectMarshaller.INSTANCE.serialize( redirect ) );
+            }
+            else
+            {
+                builder.add( key, ( V ) marshaller.serialize( values ) );
+            }
+        }
+
+
+        private void build() throws Exception
+        {
+            flush();
+            key = null;
+            builder.build();
+        }
+    }
 }
@@ -0,0 +1,811 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.partition.impl.btree.jdbm;
+
+
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectOutput;
+import java.io.ObjectStreamException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.directory.server.i18n.I18n;
+import org.apache.directory.shared.ldap.constants.SchemaConstants;
+import org.apache.directory.shared.ldap.entry.DefaultEntry;
+import org.apache.directory.shared.ldap.entry.Entry;
+import org.apache.directory.shared.ldap.entry.EntryAttribute;
+import org.apache.directory.shared.ldap.entry.Value;
+import org.apache.directory.shared.ldap.exception.LdapException;
+import org.apache.directory.shared.ldap.name.DN;
+import org.apache.directory.shared.ldap.schema.AttributeType;
+import org.apache.directory.shared.ldap.schema.SchemaManager;
+
+
+/**
+ * An entry read from the master table, which reads the values of its
+ * attributes from the serialized entry only when they are used. The
+ * searches only read the attributes of their filter and the returned
+ * attributes, and not the large values of the other ones, like the photos
+ * or the certificates.
+ * <p>
+ * Each method reads the attributes it is given before using them, and the
+ * methods working on the whole entry, like {@link #iterator()}, read all
+ * the attributes. The attributes which have not been read yet are removed
+ * by {@link #removeAttributes(AttributeType...)} without being read, and
+ * are not returned.
+ * <p>
+ * The entry is shared by the threads reading it from the master table, as
+ * the pages of the BTree keep the deserialized values : the attributes are
+ * read, and the methods using them called, under the lock of the entry.
+ * The clones share the serialized entry, and read their attributes on
+ * their own.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+class LazyEntry extends DefaultEntry
+{
+    private static final long serialVersionUID = 1L;
+
+    /** The schemaManager, to find the attribute types of the IDs */
+    private final transient SchemaManager schemaManager;
+
+    /** The serializer reading the attributes */
+    private final transient ServerEntrySerializer serializer;
+
+    /** The serialized entry */
+    private final transient byte[] data;
+
+    /** The types of the attributes not read yet, null once read or removed */
+    private transient AttributeType[] attributeTypes;
+
+    /** The positions of the attributes in the serialized entry */
+    private transient int[] positions;
+
+    /** The number of attributes not read yet */
+    private transient int unread;
+
+
+    /**
+     * Creates an entry which attributes are not read yet.
+     *
+     * @param schemaManager the schemaManager
+     * @param dn the DN of the entry
+     * @param serializer the serializer reading the attributes
+     * @param data the serialized entry, uncompressed
+     * @param attributeTypes the types of the attributes
+     * @param positions the positions of the attributes in the serialized entry
+     */
+    LazyEntry( SchemaManager schemaManager, DN dn, ServerEntrySerializer serializer, byte[] data,
+        AttributeType[] attributeTypes, int[] positions )
+    {
+        super( schemaManager, dn );
+        this.schemaManager = schemaManager;
+        this.serializer = serializer;
+        this.data = data;
+        this.attributeTypes = attributeTypes;
+        this.positions = positions;
+
+        for ( AttributeType attributeType : attributeTypes )
+        {
+            if ( attributeType != null )
+            {
+                unread++;
+            }
+        }
+    }
+
+
+    /**
+     * @return the number of attributes which have not been read yet
+     */
+    synchronized int getUnreadCount()
+    {
+        return unread;
+    }
+
+
+    // -----------------------------------------------------------------------
+    // Reading the attributes
+    // -----------------------------------------------------------------------
+    private void read( int index )
+    {
+        AttributeType attributeType = attributeTypes[index];
+
+        // Forgotten first, as the DefaultEntry may use the other methods
+        // of this entry while the attribute is put
+        attributeTypes[index] = null;
+        unread--;
+
+        try
+        {
+            super.put( serializer.readAttribute( data, positions[index] ) );
+        }
+        catch ( Exception e )
+        {
+            throw new IllegalStateException( I18n.err( I18n.ERR_748, attributeType.getName(), getDn(), e
+                .getLocalizedMessage() ), e );
+        }
+    }
+
+
+    private void readAll()
+    {
+        for ( int i = 0; ( unread > 0 ) && ( i < attributeTypes.length ); i++ )
+        {
+            if ( attributeTypes[i] != null )
+            {
+                read( i );
+            }
+        }
+    }
+
+
+    private int indexOf( AttributeType attributeType )
+    {
+        if ( ( unread > 0 ) && ( attributeType != null ) )
+        {
+            for ( int i = 0; i < attributeTypes.length; i++ )
+            {
+                if ( ( attributeTypes[i] != null ) && attributeTypes[i].getOid().equals( attributeType.getOid() ) )
+                {
+                    return i;
+                }
+            }
+        }
+
+        return -1;
+    }
+
+
+    private void read( AttributeType... types )
+    {
+        if ( types == null )
+        {
+            return;
+        }
+
+        for ( AttributeType attributeType : types )
+        {
+            int index = indexOf( attributeType );
+
+            if ( index >= 0 )
+            {
+                read( index );
+            }
+        }
+    }
+
+
+    /**
+     * Reads the attributes having some IDs, or all the attributes if one of
+     * the IDs is not an attribute type known by the schema.
+     */
+    private void read( String... ids )
+    {
+        if ( ( unread == 0 ) || ( ids == null ) )
+        {
+            return;
+        }
+
+        for ( String id : ids )
+        {
+            AttributeType attributeType = lookup( id );
+
+            if ( attributeType == null )
+            {
+                readAll();
+                return;
+            }
+
+            read( attributeType );
+        }
+    }
+
+
+    private void read( EntryAttribute... attributes )
+    {
+        if ( attributes == null )
+        {
+            return;
+        }
+
+        for ( EntryAttribute attribute : attributes )
+        {
+            if ( attribute == null )
+            {
+                continue;
+            }
+
+            if ( attribute.getAttributeType() != null )
+            {
+                read( attribute.getAttributeType() );
+            }
+            else
+            {
+                read( attribute.getUpId() );
+            }
+        }
+    }
+
+
+    private AttributeType lookup( String id )
+    {
+        if ( id == null )
+        {
+            return null;
+        }
+
+        try
+        {
+            return schemaManager.lookupAttributeTypeRegistry( id );
+        }
+        catch ( Exception e )
+        {
+            return null;
+        }
+    }
+
+
+    /**
+     * Forgets an attribute which has not been read yet.
+     */
+    private void forget( AttributeType attributeType )
+    {
+        int index = indexOf( attributeType );
+
+        if ( index >= 0 )
+        {
+            attributeTypes[index] = null;
+            unread--;
+        }
+    }
+
+
+    // -----------------------------------------------------------------------
+    // Entry methods
+    // -----------------------------------------------------------------------
+    public synchronized void add( AttributeType attributeType, byte[]... values ) throws LdapException
+    {
+        read( attributeType );
+        super.add( attributeType, values );
+    }
+
+
+    public synchronized void add( AttributeType attributeType, String... values ) throws LdapException
+    {
+        read( attributeType );
+        super.add( attributeType, values );
+    }
+
+
+    public synchronized void add( AttributeType attributeType, Value<?>... values ) throws LdapException
+    {
+        read( attributeType );
+        super.add( attributeType, values );
+    }
+
+
+    public synchronized void add( String upId, AttributeType attributeType, byte[]... values ) throws LdapException
+    {
+        read( attributeType );
+        super.add( upId, attributeType, values );
+    }
+
+
+    public synchronized void add( String upId, AttributeType attributeType, String... values ) throws LdapException
+    {
+        read( attributeType );
+        super.add( upId, attributeType, values );
+    }
+
+
+    public synchronized void add( String upId, AttributeType attributeType, Value<?>... values ) throws LdapException
+    {
+        read( attributeType );
+        super.add( upId, attributeType, values );
+    }
+
+
+    public synchronized void add( EntryAttribute... attributes ) throws LdapException
+    {
+        read( attributes );
+        super.add( attributes );
+    }
+
+
+    public synchronized void add( String upId, String... values ) throws LdapException
+    {
+        read( upId );
+        super.add( upId, values );
+    }
+
+
+    public synchronized void add( String upId, byte[]... values ) throws LdapException
+    {
+        read( upId );
+        super.add( upId, values );
+    }
+
+
+    public synchronized void add( String upId, Value<?>... values ) throws LdapException
+    {
+        read( upId );
+        super.add( upId, values );
+    }
+
+
+    public synchronized boolean contains( AttributeType attributeType, byte[]... values )
+    {
+        read( attributeType );
+        return super.contains( attributeType, values );
+    }
+
+
+    public synchronized boolean contains( AttributeType attributeType, String... values )
+    {
+        read( attributeType );
+        return super.contains( attributeType, values );
+    }
+
+
+    public synchronized boolean contains( AttributeType attributeType, Value<?>... values )
+    {
+        read( attributeType );
+        return super.contains( attributeType, values );
+    }
+
+
+    public synchronized boolean contains( EntryAttribute... attributes ) throws LdapException
+    {
+        read( attributes );
+        return super.contains( attributes );
+    }
+
+
+    public synchronized boolean contains( String upId ) throws LdapException
+    {
+        read( upId );
+        return super.contains( upId );
+    }
+
+
+    public synchronized boolean contains( String upId, byte[]... values )
+    {
+        read( upId );
+        return super.contains( upId, values );
+    }
+
+
+    public synchronized boolean contains( String upId, String... values )
+    {
+        read( upId );
+        return super.contains( upId, values );
+    }
+
+
+    public synchronized boolean contains( String upId, Value<?>... values )
+    {
+        read( upId );
+        return super.contains( upId, values );
+    }
+
+
+    /**
+     * Tells if the entry has an attribute, without reading it.
+     */
+    public synchronized boolean containsAttribute( AttributeType attributeType )
+    {
+        return ( indexOf( attributeType ) >= 0 ) || super.containsAttribute( attributeType );
+    }
+
+
+    public synchronized boolean containsAttribute( String... attributes )
+    {
+        read( attributes );
+        return super.containsAttribute( attributes );
+    }
+
+
+    public synchronized EntryAttribute get( AttributeType attributeType )
+    {
+        read( attributeType );
+        return super.get( attributeType );
+    }
+
+
+    public synchronized EntryAttribute get( String alias )
+    {
+        read( alias );
+        return super.get( alias );
+    }
+
+
+    /**
+     * Gives the types of the attributes, without reading them.
+     */
+    public synchronized Set<AttributeType> getAttributeTypes()
+    {
+        Set<AttributeType> types = new HashSet<AttributeType>( super.getAttributeTypes() );
+
+        for ( int i = 0; ( unread > 0 ) && ( i < attributeTypes.length ); i++ )
+        {
+            if ( attributeTypes[i] != null )
+            {
+                types.add( attributeTypes[i] );
+            }
+        }
+
+        return types;
+    }
+
+
+    public synchronized boolean hasObjectClass( String objectClass )
+    {
+        read( SchemaConstants.OBJECT_CLASS_AT );
+        return super.hasObjectClass( objectClass );
+    }
+
+
+    public synchronized boolean hasObjectClass( EntryAttribute objectClass )
+    {
+        read( SchemaConstants.OBJECT_CLASS_AT );
+        return super.hasObjectClass( objectClass );
+    }
+
+
+    public synchronized boolean isValid()
+    {
+        readAll();
+        return super.isValid();
+    }
+
+
+    public synchronized boolean isValid( String objectClass )
+    {
+        readAll();
+        return super.isValid( objectClass );
+    }
+
+
+    public synchronized boolean isValid( EntryAttribute objectClass )
+    {
+        readAll();
+        return super.isValid( objectClass );
+    }
+
+
+    /**
+     * Reads all the attributes, so that the readers of the entry don't
+     * change it anymore while the returned iterator is used.
+     */
+    public synchronized Iterator<EntryAttribute> iterator()
+    {
+        readAll();
+        return super.iterator();
+    }
+
+
+    public synchronized EntryAttribute put( AttributeType attributeType, byte[]... values ) throws LdapException
+    {
+        read( attributeType );
+        return super.put( attributeType, values );
+    }
+
+
+    public synchronized EntryAttribute put( AttributeType attributeType, String... values ) throws LdapException
+    {
+        read( attributeType );
+        return super.put( attributeType, values );
+    }
+
+
+    public synchronized EntryAttribute put( AttributeType attributeType, Value<?>... values ) throws LdapException
+    {
+        read( attributeType );
+        return super.put( attributeType, values );
+    }
+
+
+    public synchronized EntryAttribute put( String upId, AttributeType attributeType, byte[]... values ) throws LdapException
+    {
+        read( attributeType );
+        return super.put( upId, attributeType, values );
+    }
+
+
+    public synchronized EntryAttribute put( String upId, AttributeType attributeType, String... values ) throws LdapException
+    {
+        read( attributeType );
+        return super.put( upId, attributeType, values );
+    }
+
+
+    public synchronized EntryAttribute put( String upId, AttributeType attributeType, Value<?>... values ) throws LdapException
+    {
+        read( attributeType );
+        return super.put( upId, attributeType, values );
+    }
+
+
+    public synchronized List<EntryAttribute> put( EntryAttribute... attributes ) throws LdapException
+    {
+        read( attributes );
+        return super.put( attributes );
+    }
+
+
+    public synchronized EntryAttribute put( String upId, byte[]... values )
+    {
+        read( upId );
+        return super.put( upId, values );
+    }
+
+
+    public synchronized EntryAttribute put( String upId, String... values )
+    {
+        read( upId );
+        return super.put( upId, values );
+    }
+
+
+    public synchronized EntryAttribute put( String upId, Value<?>... values )
+    {
+        read( upId );
+        return super.put( upId, values );
+    }
+
+
+    public synchronized boolean remove( AttributeType attributeType, byte[]... values ) throws LdapException
+    {
+        read( attributeType );
+        return super.remove( attributeType, values );
+    }
+
+
+    public synchronized boolean remove( AttributeType attributeType, String... values ) throws LdapException
+    {
+        read( attributeType );
+        return super.remove( attributeType, values );
+    }
+
+
+    public synchronized boolean remove( AttributeType attributeType, Value<?>... values ) throws LdapException
+    {
+        read( attributeType );
+        return super.remove( attributeType, values );
+    }
+
+
+    public synchronized List<EntryAttribute> remove( EntryAttribute... attributes ) throws LdapException
+    {
+        read( attributes );
+        return super.remove( attributes );
+    }
+
+
+    public synchronized boolean remove( String upId, byte[]... values ) throws LdapException
+    {
+        read( upId );
+        return super.remove( upId, values );
+    }
+
+
+    public synchronized boolean remove( String upId, String... values ) throws LdapException
+    {
+        read( upId );
+        return super.remove( upId, values );
+    }
+
+
+    public synchronized boolean remove( String upId, Value<?>... values ) throws LdapException
+    {
+        read( upId );
+        return super.remove( upId, values );
+    }
+
+
+    /**
+     * Removes some attributes. The attributes which have not been read yet
+     * are not read, and are not in the returned list.
+     */
+    public synchronized List<EntryAttribute> removeAttributes( AttributeType... attributes )
+    {
+        if ( attributes != null )
+        {
+            for ( AttributeType attributeType : attributes )
+            {
+                forget( attributeType );
+            }
+        }
+
+        return super.removeAttributes( attributes );
+    }
+
+
+    /**
+     * Removes some attributes. The attributes which have not been read yet
+     * are not read, and are not in the returned list.
+     */
+    public synchronized List<EntryAttribute> removeAttributes( String... attributes )
+    {
+        if ( ( unread > 0 ) && ( attributes != null ) )
+        {
+            for ( String id : attributes )
+            {
+                AttributeType attributeType = lookup( id );
+
+                if ( attributeType == null )
+                {
+                    readAll();
+                    break;
+                }
+
+                forget( attributeType );
+            }
+        }
+
+        return super.removeAttributes( attributes );
+    }
+
+
+    public synchronized List<EntryAttribute> set( AttributeType... attributeTypes )
+    {
+        read( attributeTypes );
+        return super.set( attributeTypes );
+    }
+
+
+    public synchronized List<EntryAttribute> set( String... upIds )
+    {
+        read( upIds );
+        return super.set( upIds );
+    }
+
+
+    public synchronized void clear()
+    {
+        for ( int i = 0; ( unread > 0 ) && ( i < attributeTypes.length ); i++ )
+        {
+            attributeTypes[i] = null;
+        }
+
+        unread = 0;
+        super.clear();
+    }
+
+
+    /**
+     * Gives the number of attributes, without reading them.
+     */
+    public synchronized int size()
+    {
+        return super.size() + unread;
+    }
+
+
+    // -----------------------------------------------------------------------
+    // Object methods
+    // -----------------------------------------------------------------------
+    /**
+     * Clones the entry, sharing the serialized entry. The attributes which
+     * have not been read are read by the clone on its own.
+     */
+    public synchronized Entry clone()
+    {
+        DN dn = getDn();
+        LazyEntry clone = new LazyEntry( schemaManager, ( dn == null ) ? null : ( DN ) dn.clone(), serializer, data,
+            attributeTypes.clone(), positions );
+
+        Iterator<EntryAttribute> attributes = super.iterator();
+
+        while ( attributes.hasNext() )
+        {
+            clone.putRead( attributes.next().clone() );
+        }
+
+        return clone;
+    }
+
+
+    private void putRead( EntryAttribute attribute )
+    {
+        try
+        {
+            super.put( attribute );
+        }
+        catch ( LdapException le )
+        {
+            throw new IllegalStateException( I18n.err( I18n.ERR_748, attribute.getUpId(), getDn(), le
+                .getLocalizedMessage() ), le );
+        }
+    }
+
+
+    public boolean equals( Object o )
+    {
+        // The other entry is read under its own lock, and then only read
+        // by this one, so that the two locks are never held together
+        if ( ( o instanceof LazyEntry ) && ( o != this ) )
+        {
+            ( ( LazyEntry ) o ).readAllAttributes();
+        }
+
+        synchronized ( this )
+        {
+            readAll();
+            return super.equals( o );
+        }
+    }
+
+
+    private synchronized void readAllAttributes()
+    {
+        readAll();
+    }
+
+
+    public synchronized int hashCode()
+    {
+        readAll();
+        return super.hashCode();
+    }
+
+
+    public synchronized String toString()
+    {
+        readAll();
+        return super.toString();
+    }
+
+
+    public synchronized void writeExternal( ObjectOutput out ) throws IOException
+    {
+        readAll();
+        super.writeExternal( out );
+    }
+
+
+    /**
+     * Serializes a DefaultEntry instead, as this entry can't be created
+     * without its serialized entry.
+     */
+    private synchronized Object writeReplace() throws ObjectStreamException
+    {
+        readAll();
+        Entry entry = new DefaultEntry( schemaManager, getDn() );
+
+        try
+        {
+            for ( EntryAttribute attribute : this )
+            {
+                entry.put( attribute );
+            }
+        }
+        catch ( LdapException le )
+        {
+            throw new InvalidObjectException( le.getLocalizedMessage() );
+        }
+
+        return entry;
+    }
+}
@@ -0,0 +1,278 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.partition.impl.btree.jdbm;
+
+
+import java.io.IOException;
+
+import org.apache.directory.server.core.avltree.ArrayMarshaller;
+import org.apache.directory.server.core.avltree.ArrayTree;
+import org.apache.directory.server.core.avltree.Marshaller;
+import org.apache.directory.server.core.partition.impl.btree.LongComparator;
+import org.apache.directory.server.i18n.I18n;
+
+
+/**
+ * Serializes the duplicate values of a table whose values are Longs, like
+ * the entry ids of the forward index tables, as a sorted array of longs.
+ * The serialized form starts with the magic number 2, followed by the
+ * number of values and by the values, each one encoded on 8 bytes. As the
+ * values have a fixed size, the static methods of this class count, search
+ * and update the values in their serialized form, without deserializing
+ * them or boxing them.
+ * <p>
+ * The values serialized by an {@link ArrayMarshaller} are still read, and
+ * are written back in this format when they are modified.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class LongArrayMarshaller implements Marshaller<ArrayTree<Long>>
+{
+    /** the magic number of the serialized form */
+    static final byte MAGIC = 2;
+
+    /** the size of the header, containing the magic number and the number of values */
+    private static final int HEADER_SIZE = 5;
+
+    /** the serialized form of an empty array */
+    private static final byte[] EMPTY_ARRAY = new byte[] { MAGIC, 0, 0, 0, 0 };
+
+    /** a reusable instance of this Marshaller */
+    public static final LongArrayMarshaller INSTANCE = new LongArrayMarshaller();
+
+    /** the marshaller of the values stored in the former format */
+    private final Marshaller<ArrayTree<Long>> arrayMarshaller = new ArrayMarshaller<Long>(
+        LongComparator.INSTANCE, new MarshallerSerializerBridge<Long>( LongSerializer.INSTANCE ) );
+
+
+    /**
+     * @see Marshaller#serialize(Object)
+     */
+    public byte[] serialize( ArrayTree<Long> tree ) throws IOException
+    {
+        if ( ( tree == null ) || tree.isEmpty() )
+        {
+            return EMPTY_ARRAY;
+        }
+
+        byte[] bites = newArray( tree.size() );
+
+        for ( int i = 0; i < tree.size(); i++ )
+        {
+            setValue( bites, i, tree.get( i ) );
+        }
+
+        return bites;
+    }
+
+
+    /**
+     * @see Marshaller#deserialize(byte[])
+     */
+    public ArrayTree<Long> deserialize( byte[] bites ) throws IOException
+    {
+        if ( !isLongArray( bites ) )
+        {
+            return arrayMarshaller.deserialize( bites );
+        }
+
+        Long[] values = new Long[size( bites )];
+
+        for ( int i = 0; i < values.length; i++ )
+        {
+            values[i] = getValue( bites, i );
+        }
+
+        return new ArrayTree<Long>( LongComparator.INSTANCE, values );
+    }
+
+
+    /**
+     * Checks to see if a byte[] contains values serialized by this marshaller.
+     *
+     * @param bites the bites to check
+     * @return true if the bites contain a sorted array of longs
+     */
+    public static boolean isLongArray( byte[] bites )
+    {
+        return ( bites != null ) && ( bites.length >= HEADER_SIZE ) && ( bites[0] == MAGIC )
+            && ( ( bites.length - HEADER_SIZE ) % 8 == 0 );
+    }
+
+
+    /**
+     * @param bites a serialized array of longs
+     * @return the number of values of the array
+     */
+    public static int size( byte[] bites )
+    {
+        return ( ( bites[1] & 0xFF ) << 24 ) | ( ( bites[2] & 0xFF ) << 16 ) | ( ( bites[3] & 0xFF ) << 8 )
+            | ( bites[4] & 0xFF );
+    }
+
+
+    /**
+     * @param bites a serialized array of longs
+     * @param index the position of a value in the array
+     * @return the value at this position
+     */
+    public static long getValue( byte[] bites, int index )
+    {
+        int pos = HEADER_SIZE + ( index << 3 );
+        long value = 0;
+
+        for ( int i = 0; i < 8; i++ )
+        {
+            value = ( value << 8 ) | ( bites[pos + i] & 0xFF );
+        }
+
+        return value;
+    }
+
+
+    /**
+     * Searches a value in a serialized array of longs.
+     *
+     * @param bites a serialized array of longs
+     * @param value the value to search
+     * @return the position of the value if it is present, otherwise
+     * <code>(-(insertion point) - 1)</code> like {@link java.util.Arrays#binarySearch(long[], long)}
+     */
+    public static int indexOf( byte[] bites, long value )
+    {
+        int low = 0;
+        int high = size( bites ) - 1;
+
+        while ( low <= high )
+        {
+            int middle = ( low + high ) >>> 1;
+            long current = getValue( bites, middle );
+
+            if ( current < value )
+            {
+                low = middle + 1;
+            }
+            else if ( current > value )
+            {
+                high = middle - 1;
+            }
+            else
+            {
+                return middle;
+            }
+        }
+
+        return -( low + 1 );
+    }
+
+
+    /**
+     * Adds a value to a serialized array of longs.
+     *
+     * @param bites a serialized array of longs, or null for an empty array
+     * @param value the value to add
+     * @return the serialized array containing the value, which is the
+     * given array if the value was already present
+     */
+    public static byte[] insert( byte[] bites, long value )
+    {
+        if ( bites == null )
+        {
+            bites = EMPTY_ARRAY;
+        }
+
+        int index = indexOf( bites, value );
+
+        if ( index >= 0 )
+        {
+            return bites;
+        }
+
+        index = -( index + 1 );
+        int size = size( bites );
+        byte[] result = newArray( size + 1 );
+        int pos = HEADER_SIZE + ( index << 3 );
+        System.arraycopy( bites, HEADER_SIZE, result, HEADER_SIZE, pos - HEADER_SIZE );
+        System.arraycopy( bites, pos, result, pos + 8, bites.length - pos );
+        setValue( result, index, value );
+
+        return result;
+    }
+
+
+    /**
+     * Removes a value from a serialized array of longs.
+     *
+     * @param bites a serialized array of longs
+     * @param value the value to remove
+     * @return the serialized array without the value, which is the given
+     * array if the value was not present
+     */
+    public static byte[] remove( byte[] bites, long value )
+    {
+        int index = indexOf( bites, value );
+
+        if ( index < 0 )
+        {
+            return bites;
+        }
+
+        byte[] result = newArray( size( bites ) - 1 );
+        int pos = HEADER_SIZE + ( index << 3 );
+        System.arraycopy( bites, HEADER_SIZE, result, HEADER_SIZE, pos - HEADER_SIZE );
+        System.arraycopy( bites, pos + 8, result, pos, bites.length - pos - 8 );
+
+        return result;
+    }
+
+
+    /**
+     * Creates a serialized array of longs containing the given number of
+     * values, all equal to 0.
+     */
+    private static byte[] newArray( int size )
+    {
+        if ( size < 0 )
+        {
+            throw new IllegalArgumentException( I18n.err( I18n.ERR_440 ) );
+        }
+
+        byte[] bites = new byte[HEADER_SIZE + ( size << 3 )];
+        bites[0] = MAGIC;
+        bites[1] = ( byte ) ( size >> 24 );
+        bites[2] = ( byte ) ( size >> 16 );
+        bites[3] = ( byte ) ( size >> 8 );
+        bites[4] = ( byte ) size;
+
+        return bites;
+    }
+
+
+    private static void setValue( byte[] bites, int index, long value )
+    {
+        int pos = HEADER_SIZE + ( index << 3 );
+
+        for ( int i = 7; i >= 0; i-- )
+        {
+            bites[pos + i] = ( byte ) value;
+            value >>= 8;
+        }
+    }
+}
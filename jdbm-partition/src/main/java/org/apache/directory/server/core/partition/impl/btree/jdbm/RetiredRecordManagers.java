@@ -0,0 +1,128 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.partition.impl.btree.jdbm;
+
+
+import java.io.IOException;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import jdbm.RecordManager;
+import jdbm.recman.CacheRecordManager;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * The record managers of the files replaced by a compaction. The cursors
+ * opened before the compaction still read them, through the BTree pages
+ * they hold : a record manager is closed once it is not referenced by any
+ * cursor anymore, which is found when it is garbage collected. The record
+ * manager under its cache is kept to be closed.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+class RetiredRecordManagers
+{
+    /** The class logger */
+    private static final Logger LOG = LoggerFactory.getLogger( RetiredRecordManagers.class );
+
+    /** The queue receiving the references of the record managers collected */
+    private final ReferenceQueue<RecordManager> queue = new ReferenceQueue<RecordManager>();
+
+    /** The record managers to close, by the reference of their cache */
+    private final Map<Reference<RecordManager>, RecordManager> retired = new HashMap<Reference<RecordManager>, RecordManager>();
+
+
+    /**
+     * Adds the record manager of a file which has been replaced. It must
+     * have been detached from its files, and must not be written anymore.
+     *
+     * @param recMan the record manager, with its cache
+     */
+    synchronized void add( CacheRecordManager recMan )
+    {
+        retired.put( new WeakReference<RecordManager>( recMan, queue ), recMan.getRecordManager() );
+        closeUnused();
+    }
+
+
+    /**
+     * Closes the record managers which are not read anymore.
+     */
+    synchronized void closeUnused()
+    {
+        Reference<? extends RecordManager> reference = queue.poll();
+
+        while ( reference != null )
+        {
+            close( retired.remove( reference ) );
+            reference = queue.poll();
+        }
+    }
+
+
+    /**
+     * Closes all the record managers, once the cursors have been closed.
+     */
+    synchronized void closeAll()
+    {
+        List<RecordManager> recMans = new ArrayList<RecordManager>( retired.values() );
+        retired.clear();
+
+        for ( RecordManager recMan : recMans )
+        {
+            close( recMan );
+        }
+    }
+
+
+    /**
+     * @return the number of record managers not closed yet
+     */
+    synchronized int size()
+    {
+        return retired.size();
+    }
+
+
+    private static void close( RecordManager recMan )
+    {
+        if ( recMan == null )
+        {
+            return;
+        }
+
+        try
+        {
+            recMan.close();
+        }
+        catch ( IOException ioe )
+        {
+            LOG.warn( "Cannot close a record manager replaced by a compaction", ioe );
+        }
+    }
+}
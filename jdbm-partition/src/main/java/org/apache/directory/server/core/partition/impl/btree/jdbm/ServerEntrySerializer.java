@@ -24,18 +24,72 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 import jdbm.helper.Serializer;
 
 import org.apache.directory.server.i18n.I18n;
 import org.apache.directory.shared.ldap.entry.DefaultEntry;
+import org.apache.directory.shared.ldap.entry.DefaultEntryAttribute;
 import org.apache.directory.shared.ldap.entry.Entry;
+import org.apache.directory.shared.ldap.entry.EntryAttribute;
+import org.apache.directory.shared.ldap.entry.StringValue;
+import org.apache.directory.shared.ldap.entry.Value;
+import org.apache.directory.shared.ldap.name.AVA;
+import org.apache.directory.shared.ldap.name.DN;
+import org.apache.directory.shared.ldap.name.RDN;
+import org.apache.directory.shared.ldap.schema.AttributeType;
 import org.apache.directory.shared.ldap.schema.SchemaManager;
+import org.apache.directory.shared.ldap.util.StringTools;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 
 /**
+ * The serializer of the entries of the master table. The entries are
+ * written in a compact binary format, read back without the Java
+ * serialization :
+ * <li><b>[version]</b> : the version of the format, with a flag set if the
+ * rest of the record is compressed. If so, it starts with the length of
+ * the uncompressed data, followed by the data deflated.
+ * </li>
+ * <li><b>[RDN]</b> : the RDN of the entry, as its DN is rebuilt by the
+ * store. A single RDN with a String value is written as its user provided
+ * and normalized type and value, the others are serialized.
+ * </li>
+ * <li><b>[nb attributes]</b> : the number of attributes
+ * </li>
+ * <br>
+ * For each attribute :
+ * <li>
+ * <b>[type]</b> : the ordinal of the attribute type OID in the dictionary
+ * of the master table, or 0 followed by the OID if it has no ordinal
+ * </li>
+ * <li>
+ * <b>[upId]</b> : the attribute user provided ID, empty if it is the name
+ * of the attribute type
+ * </li>
+ * <li>
+ * <b>[HR flag]</b> : if the values are Strings
+ * </li>
+ * <li>
+ * <b>[nb values]</b> : the number of values
+ * </li>
+ * <li>
+ * <b>[values]</b> : the user provided values. The normalized values are
+ * computed again by the values when they are needed.
+ * </li>
+ * <br>
+ * The numbers are written as variable length integers, the Strings in
+ * UTF-8 and the values preceded by their length, plus one so that a null
+ * value has a length of 0.
+ * <p>
+ * The entries are read as {@link LazyEntry}s, which read the values of an
+ * attribute when it is used. The entries written by the former versions,
+ * with the Java serialization, are still read, entirely.
+ *
  * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
  */
 public class ServerEntrySerializer implements Serializer
@@ -50,9 +104,38 @@ public class ServerEntrySerializer implements Serializer
      */
     private static final boolean IS_DEBUG = LOG.isDebugEnabled();
 
+    /** The version of the format of the serialized entries */
+    private static final int VERSION = 1;
+
+    /** The flag set on the version when the record is compressed */
+    private static final int COMPRESSED = 0x40;
+
+    /** The first byte of the entries written with the Java serialization */
+    private static final int JAVA_SERIALIZATION = 0xAC;
+
+    /** The kinds of RDN */
+    private static final int EMPTY_RDN = 0;
+    private static final int STRING_RDN = 1;
+    private static final int SERIALIZED_RDN = 2;
+
+    /** The buffers of the serializing threads */
+    private static final ThreadLocal<Buffers> BUFFERS = new ThreadLocal<Buffers>()
+    {
+        protected Buffers initialValue()
+        {
+            return new Buffers();
+        }
+    };
+
     /** The schemaManager reference */
     private transient SchemaManager schemaManager;
 
+    /** The ordinals of the attribute types, or null if there is none */
+    private transient AttributeTypeDictionary dictionary;
+
+    /** The minimum size of the compressed records, or -1 if they are not compressed */
+    private int compressionThreshold = -1;
+
 
     /**
      * Creates a new instance of ServerEntrySerializer.
@@ -66,64 +149,59 @@ public class ServerEntrySerializer implements Serializer
 
 
     /**
-     * <p>
-     * 
-     * This is the place where we serialize entries, and all theirs
-     * elements. the reason why we don't call the underlying methods
-     * (<code>ServerAttribute.write(), Value.write()</code>) is that we need
-     * access to the registries to read back the values.
-     * <p>
-     * The structure used to store the entry is the following :
-     * <li><b>[DN length]</b> : can be -1 if we don't have a DN, 0 if the 
-     * DN is empty, otherwise contains the DN's length.<p> 
-     * <b>NOTE :</b>This should be unnecessary, as the DN should always exists
-     * <p>
-     * </li>
-     * <li>
-     * <b>DN</b> : The entry's DN. Can be empty (rootDSE)<p>
-     * </li>
-     * <li>
-     * <b>[nb attributes]</b> The number of attributes
-     * </li>
-     * <br>
-     * For each attribute :
-     * <li>
-     * <b>[upId]</b> The attribute user provided ID (it can't be null)
-     * </li>
-     * <li>
-     * <b>[nb values]</b> The number of values
-     * </li>
-     * <br>
-     * For each value :
-     * <li>
-     *  <b>[is valid]</b> if the value is valid
-     * </li>
-     * <li>
-     *  <b>[HR flag]</b> if the value is a String
-     * </li>
-     * <li>
-     *  <b>[Streamed flag]</b> if the value is streamed
-     * </li>
-     * <li>
-     *  <b>[UP value]</b> the user provided value
-     * </li>
-     * <li>
-     *  <b>[Norm value]</b> (will be null if normValue == upValue)
-     * </li>
+     * Sets the dictionary giving the ordinals of the attribute types. The
+     * attribute types without ordinal are written with their OID.
+     *
+     * @param dictionary the ordinals of the attribute types
+     */
+    void setDictionary( AttributeTypeDictionary dictionary )
+    {
+        this.dictionary = dictionary;
+    }
+
+
+    /**
+     * Compresses the records having at least a given size, if they are
+     * smaller once compressed.
+     *
+     * @param compressionThreshold the minimum size in bytes of the records
+     * compressed, or -1 to never compress them
+     */
+    public void setCompressionThreshold( int compressionThreshold )
+    {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+
+    /**
+     * @return the minimum size in bytes of the records compressed, or -1 if
+     * they are never compressed
+     */
+    public int getCompressionThreshold()
+    {
+        return compressionThreshold;
+    }
+
+
+    /**
+     * Serializes an entry, and all its elements, in the format described
+     * above.
      */
     public byte[] serialize( Object object ) throws IOException
     {
-        Entry entry = ( DefaultEntry ) object;
-        
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        ObjectOutputStream out = new ObjectOutputStream( baos );
+        Entry entry = ( Entry ) object;
+        Buffers buffers = BUFFERS.get();
+        Output out = buffers.output;
+        out.reset();
 
-        ((DefaultEntry)entry).serialize( out );
+        writeRdn( out, entry.getDn() );
 
-        // Note : we don't store the ObjectClassAttribute. I has already
-        // been stored as an attribute.
+        out.writeInt( entry.size() );
 
-        out.flush();
+        for ( EntryAttribute attribute : entry )
+        {
+            writeAttribute( out, attribute );
+        }
 
         if ( IS_DEBUG )
         {
@@ -131,10 +209,101 @@ public class ServerEntrySerializer implements Serializer
             LOG.debug( "Serialize " + entry );
         }
 
-        return baos.toByteArray();
+        if ( ( compressionThreshold >= 0 ) && ( out.length >= compressionThreshold ) )
+        {
+            byte[] compressed = buffers.compress( out );
+
+            if ( compressed != null )
+            {
+                return compressed;
+            }
+        }
+
+        byte[] bytes = new byte[out.length + 1];
+        bytes[0] = VERSION;
+        System.arraycopy( out.data, 0, bytes, 1, out.length );
+
+        return bytes;
+    }
+
+
+    private void writeRdn( Output out, DN dn ) throws IOException
+    {
+        if ( ( dn == null ) || ( dn.size() == 0 ) )
+        {
+            out.writeByte( EMPTY_RDN );
+            return;
+        }
+
+        RDN rdn = dn.getRdn();
+
+        if ( rdn.size() == 1 )
+        {
+            AVA ava = rdn.getAtav();
+
+            // The RDNs which names need escaped values are serialized
+            if ( ( ava.getUpValue() instanceof StringValue ) && ( ava.getNormValue() instanceof StringValue )
+                && rdn.getUpName().equals( ava.getUpType() + '=' + ava.getUpValue().getString() )
+                && rdn.getNormName().equals( ava.getNormType() + '=' + ava.getNormValue().getString() ) )
+            {
+                out.writeByte( STRING_RDN );
+                out.writeString( ava.getUpType() );
+                out.writeString( ava.getNormType() );
+                out.writeString( ava.getUpValue().getString() );
+                out.writeString( ava.getNormValue().getString() );
+
+                return;
+            }
+        }
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream( baos );
+        oos.writeObject( rdn );
+        oos.flush();
+
+        out.writeByte( SERIALIZED_RDN );
+        out.writeBytes( baos.toByteArray() );
+    }
+
+
+    private void writeAttribute( Output out, EntryAttribute attribute ) throws IOException
+    {
+        AttributeType attributeType = attribute.getAttributeType();
+        String oid = attributeType.getOid();
+        int ordinal = ( dictionary == null ) ? 0 : dictionary.getOrdinal( oid );
+
+        out.writeInt( ordinal );
+
+        if ( ordinal == 0 )
+        {
+            out.writeString( oid );
+        }
+
+        String upId = attribute.getUpId();
+        out.writeString( upId.equals( attributeType.getName() ) ? "" : upId );
+
+        boolean isHR = attribute.isHR();
+        out.writeByte( isHR ? 1 : 0 );
+        out.writeInt( attribute.size() );
+
+        for ( Value<?> value : attribute )
+        {
+            if ( value.get() == null )
+            {
+                out.writeInt( 0 );
+            }
+            else if ( isHR )
+            {
+                out.writeString( value.getString(), 1 );
+            }
+            else
+            {
+                out.writeBytes( value.getBytes(), 1 );
+            }
+        }
     }
 
-    
+
     /**
      *  Deserialize a Entry.
      *  
@@ -143,6 +312,183 @@ public class ServerEntrySerializer implements Serializer
      *  @throws IOException if we can't deserialize the Entry
      */
     public Object deserialize( byte[] bytes ) throws IOException
+    {
+        int header = bytes[0] & 0xFF;
+
+        if ( header == JAVA_SERIALIZATION )
+        {
+            return deserializeObject( bytes );
+        }
+
+        if ( ( header & ~COMPRESSED ) != VERSION )
+        {
+            throw new IOException( I18n.err( I18n.ERR_745, header ) );
+        }
+
+        Input in = new Input( bytes, 1 );
+
+        if ( ( header & COMPRESSED ) != 0 )
+        {
+            in = BUFFERS.get().decompress( in );
+        }
+
+        try
+        {
+            DN dn = readDn( in );
+            int nbAttributes = in.readInt();
+            AttributeType[] attributeTypes = new AttributeType[nbAttributes];
+            int[] positions = new int[nbAttributes];
+
+            // Only the attribute types are read, the values are read when
+            // the entry needs them
+            for ( int i = 0; i < nbAttributes; i++ )
+            {
+                positions[i] = in.position;
+                attributeTypes[i] = readAttributeType( in );
+                skipAttribute( in );
+            }
+
+            return new LazyEntry( schemaManager, dn, this, in.data, attributeTypes, positions );
+        }
+        catch ( IOException ioe )
+        {
+            throw ioe;
+        }
+        catch ( Exception e )
+        {
+            LOG.error( I18n.err( I18n.ERR_134, e.getLocalizedMessage() ) );
+            throw new IOException( I18n.err( I18n.ERR_134, e.getLocalizedMessage() ), e );
+        }
+    }
+
+
+    private DN readDn( Input in ) throws Exception
+    {
+        DN dn = new DN();
+
+        switch ( in.readByte() )
+        {
+            case EMPTY_RDN:
+                return dn;
+
+            case STRING_RDN:
+                String upType = in.readString();
+                String normType = in.readString();
+                String upValue = in.readString();
+                String normValue = in.readString();
+
+                return dn.add( new RDN( upType, normType, upValue, normValue ) );
+
+            default:
+                ObjectInputStream ois = new ObjectInputStream( new ByteArrayInputStream( in.readBytes() ) );
+
+                return dn.add( ( RDN ) ois.readObject() );
+        }
+    }
+
+
+    /**
+     * Reads the attribute written at a position of a serialized entry.
+     *
+     * @param data the serialized entry, uncompressed
+     * @param position the position of the attribute
+     * @return the attribute
+     * @throws IOException if the attribute can't be read
+     */
+    EntryAttribute readAttribute( byte[] data, int position ) throws IOException
+    {
+        try
+        {
+            return readAttribute( new Input( data, position ) );
+        }
+        catch ( IOException ioe )
+        {
+            throw ioe;
+        }
+        catch ( Exception e )
+        {
+            LOG.error( I18n.err( I18n.ERR_134, e.getLocalizedMessage() ) );
+            throw new IOException( I18n.err( I18n.ERR_134, e.getLocalizedMessage() ), e );
+        }
+    }
+
+
+    private AttributeType readAttributeType( Input in ) throws Exception
+    {
+        int ordinal = in.readInt();
+        String oid;
+
+        if ( ordinal == 0 )
+        {
+            oid = in.readString();
+        }
+        else
+        {
+            oid = ( dictionary == null ) ? null : dictionary.getOid( ordinal );
+
+            if ( oid == null )
+            {
+                throw new IOException( I18n.err( I18n.ERR_746, ordinal ) );
+            }
+        }
+
+        return schemaManager.lookupAttributeTypeRegistry( oid );
+    }
+
+
+    /**
+     * Moves after the values of an attribute which type has been read.
+     */
+    private void skipAttribute( Input in ) throws IOException
+    {
+        in.skip( in.readInt() );
+        in.readByte();
+        int nbValues = in.readInt();
+
+        for ( int i = 0; i < nbValues; i++ )
+        {
+            int length = in.readInt() - 1;
+
+            if ( length > 0 )
+            {
+                in.skip( length );
+            }
+        }
+    }
+
+
+    private EntryAttribute readAttribute( Input in ) throws Exception
+    {
+        AttributeType attributeType = readAttributeType( in );
+        String upId = in.readString();
+        EntryAttribute attribute = new DefaultEntryAttribute( ( upId.length() == 0 ) ? attributeType.getName()
+            : upId, attributeType );
+
+        boolean isHR = in.readByte() == 1;
+        int nbValues = in.readInt();
+
+        for ( int i = 0; i < nbValues; i++ )
+        {
+            int length = in.readInt() - 1;
+
+            if ( isHR )
+            {
+                attribute.add( ( length < 0 ) ? ( String ) null : in.readString( length ) );
+            }
+            else
+            {
+                attribute.add( ( length < 0 ) ? ( byte[] ) null : in.readBytes( length ) );
+            }
+        }
+
+        return attribute;
+    }
+
+
+    /**
+     * Reads an entry written with the Java serialization.
+     */
+    private Object deserializeObject( byte[] bytes ) throws IOException
     {
         ObjectInputStream in = new ObjectInputStream( new ByteArrayInputStream( bytes ) );
 
@@ -160,4 +506,271 @@ public class ServerEntrySerializer implements Serializer
             return null;
         }
     }
+
+
+    /**
+     * The buffers reused by a thread to serialize the entries.
+     */
+    private static class Buffers
+    {
+        /** The serialized entry */
+        private final Output output = new Output();
+
+        /** The compressed entry */
+        private final Output compressed = new Output();
+
+        private final Deflater deflater = new Deflater( Deflater.BEST_SPEED );
+
+        private final Inflater inflater = new Inflater();
+
+
+        /**
+         * @return the record storing the entry compressed, or null if it is
+         * not smaller than the entry
+         */
+        private byte[] compress( Output out )
+        {
+            compressed.reset();
+            compressed.writeByte( VERSION | COMPRESSED );
+            compressed.writeInt( out.length );
+            int start = compressed.length;
+
+            deflater.reset();
+            deflater.setInput( out.data, 0, out.length );
+            deflater.finish();
+
+            while ( !deflater.finished() )
+            {
+                compressed.ensureCapacity( 256 );
+                compressed.length += deflater.deflate( compressed.data, compressed.length, compressed.data.length
+                    - compressed.length );
+
+                if ( compressed.length - start >= out.length )
+                {
+                    return null;
+                }
+            }
+
+            byte[] bytes = new byte[compressed.length];
+            System.arraycopy( compressed.data, 0, bytes, 0, compressed.length );
+
+            return bytes;
+        }
+
+
+        private Input decompress( Input in ) throws IOException
+        {
+            byte[] data = new byte[in.readInt()];
+
+            inflater.reset();
+            inflater.setInput( in.data, in.position, in.data.length - in.position );
+
+            try
+            {
+                int length = 0;
+
+                while ( length < data.length )
+                {
+                    int inflated = inflater.inflate( data, length, data.length - length );
+
+                    if ( inflated == 0 && ( inflater.finished() || inflater.needsInput() ) )
+                    {
+                        break;
+                    }
+
+                    length += inflated;
+                }
+
+                if ( length != data.length )
+                {
+                    throw new IOException( I18n.err( I18n.ERR_747 ) );
+                }
+            }
+            catch ( DataFormatException dfe )
+            {
+                throw new IOException( I18n.err( I18n.ERR_134, dfe.getLocalizedMessage() ), dfe );
+            }
+
+            return new Input( data, 0 );
+        }
+    }
+
+
+    /**
+     * A growable byte array, written with variable length integers.
+     */
+    private static class Output
+    {
+        private byte[] data = new byte[1024];
+
+        private int length;
+
+
+        private void reset()
+        {
+            length = 0;
+        }
+
+
+        private void ensureCapacity( int size )
+        {
+            if ( length + size > data.length )
+            {
+                byte[] newData = new byte[Math.max( data.length * 2, length + size )];
+                System.arraycopy( data, 0, newData, 0, length );
+                data = newData;
+            }
+        }
+
+
+        private void writeByte( int b )
+        {
+            ensureCapacity( 1 );
+            data[length++] = ( byte ) b;
+        }
+
+
+        private void writeInt( int value )
+        {
+            ensureCapacity( 5 );
+
+            while ( ( value & ~0x7F ) != 0 )
+            {
+                data[length++] = ( byte ) ( ( value & 0x7F ) | 0x80 );
+                value >>>= 7;
+            }
+
+            data[length++] = ( byte ) value;
+        }
+
+
+        private void writeBytes( byte[] bytes )
+        {
+            writeBytes( bytes, 0 );
+        }
+
+
+        /**
+         * Writes bytes preceded by their length, plus a shift
+         */
+        private void writeBytes( byte[] bytes, int shift )
+        {
+            writeInt( bytes.length + shift );
+            ensureCapacity( bytes.length );
+            System.arraycopy( bytes, 0, data, length, bytes.length );
+            length += bytes.length;
+        }
+
+
+        private void writeString( String value )
+        {
+            writeBytes( StringTools.getBytesUtf8( value ), 0 );
+        }
+
+
+        private void writeString( String value, int shift )
+        {
+            writeBytes( StringTools.getBytesUtf8( value ), shift );
+        }
+    }
+
+
+    /**
+     * A byte array read from a position.
+     */
+    private static class Input
+    {
+        private final byte[] data;
+
+        private int position;
+
+
+        private Input( byte[] data, int position )
+        {
+            this.data = data;
+            this.position = position;
+        }
+
+
+        private int readByte() throws IOException
+        {
+            if ( position >= data.length )
+            {
+                throw new IOException( I18n.err( I18n.ERR_747 ) );
+            }
+
+            return data[position++] & 0xFF;
+        }
+
+
+        private int readInt() throws IOException
+        {
+            int value = 0;
+
+            for ( int shift = 0; shift < 32; shift += 7 )
+            {
+                int b = readByte();
+                value |= ( b & 0x7F ) << shift;
+
+                if ( ( b & 0x80 ) == 0 )
+                {
+                    return value;
+                }
+            }
+
+            throw new IOException( I18n.err( I18n.ERR_747 ) );
+        }
+
+
+        private void skip( int length ) throws IOException
+        {
+            if ( ( length < 0 ) || ( position + length > data.length ) )
+            {
+                throw new IOException( I18n.err( I18n.ERR_747 ) );
+            }
+
+            position += length;
+        }
+
+
+        private byte[] readBytes() throws IOException
+        {
+            return readBytes( readInt() );
+        }
+
+
+        private byte[] readBytes( int length ) throws IOException
+        {
+            if ( ( length < 0 ) || ( position + length > data.length ) )
+            {
+                throw new IOException( I18n.err( I18n.ERR_747 ) );
+            }
+
+            byte[] bytes = new byte[length];
+            System.arraycopy( data, position, bytes, 0, length );
+            position += length;
+
+            return bytes;
+        }
+
+
+        private String readString() throws IOException
+        {
+            return readString( readInt() );
+        }
+
+
+        private String readString( int length ) throws IOException
+        {
+            if ( ( length < 0 ) || ( position + length > data.length ) )
+            {
+                throw new IOException( I18n.err( I18n.ERR_747 ) );
+            }
+
+            String value = new String( data, position, length, "UTF-8" );
+            position += length;
+
+            return value;
+        }
+    }
 }
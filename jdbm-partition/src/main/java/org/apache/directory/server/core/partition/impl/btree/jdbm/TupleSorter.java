@@ -0,0 +1,288 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.partition.impl.btree.jdbm;
+
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import jdbm.helper.Tuple;
+
+
+/**
+ * Sorts the tuples of a table being bulk loaded. The tuples are sorted in
+ * memory by runs of {@link #RUN_SIZE} tuples, and each run is written to a
+ * temporary file when the next one is started. The runs are then merged
+ * while the tuples are read back. The sort is stable : the tuples which are
+ * equal are returned in the order they have been added.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+class TupleSorter<K, V>
+{
+    /** The number of tuples sorted in memory */
+    static final int RUN_SIZE = 100000;
+
+    /** Compares the keys, then the values if the table has duplicates */
+    private final Comparator<Tuple<K, V>> comparator;
+
+    /** The run being filled */
+    private List<Tuple<K, V>> run = new ArrayList<Tuple<K, V>>();
+
+    /** The files storing the runs which are already sorted */
+    private final List<File> files = new ArrayList<File>();
+
+    /** The tuples of the run kept in memory, once sorted */
+    private Iterator<Tuple<K, V>> iterator;
+
+    /** The readers of the runs written to files, ordered by their next tuple */
+    private PriorityQueue<RunReader> readers;
+
+
+    /**
+     * Creates a sorter.
+     *
+     * @param keyComparator the comparator of the keys
+     * @param valueComparator the comparator of the values, or null if the
+     * tuples are only sorted by key
+     */
+    TupleSorter( final Comparator<K> keyComparator, final Comparator<V> valueComparator )
+    {
+        comparator = new Comparator<Tuple<K, V>>()
+        {
+            public int compare( Tuple<K, V> tuple1, Tuple<K, V> tuple2 )
+            {
+                int result = keyComparator.compare( tuple1.getKey(), tuple2.getKey() );
+
+                if ( ( result != 0 ) || ( valueComparator == null ) )
+                {
+                    return result;
+                }
+
+                return valueComparator.compare( tuple1.getValue(), tuple2.getValue() );
+            }
+        };
+    }
+
+
+    /**
+     * Adds a tuple to sort.
+     */
+    void add( K key, V value ) throws IOException
+    {
+        if ( run.size() == RUN_SIZE )
+        {
+            writeRun();
+        }
+
+        run.add( new Tuple<K, V>( key, value ) );
+    }
+
+
+    /**
+     * Sorts the tuples added. They are then read with {@link #next()}.
+     */
+    void sort() throws IOException
+    {
+        if ( files.isEmpty() )
+        {
+            Collections.sort( run, comparator );
+            iterator = run.iterator();
+            return;
+        }
+
+        if ( !run.isEmpty() )
+        {
+            writeRun();
+        }
+
+        run = null;
+        readers = new PriorityQueue<RunReader>( files.size() );
+
+        for ( int i = 0; i < files.size(); i++ )
+        {
+            RunReader reader = new RunReader( files.get( i ), i );
+
+            if ( reader.advance() )
+            {
+                readers.add( reader );
+            }
+        }
+    }
+
+
+    /**
+     * @return the next tuple in sorted order, or null once all the tuples
+     * have been read
+     */
+    Tuple<K, V> next() throws IOException
+    {
+        if ( iterator != null )
+        {
+            return iterator.hasNext() ? iterator.next() : null;
+        }
+
+        RunReader reader = readers.poll();
+
+        if ( reader == null )
+        {
+            return null;
+        }
+
+        Tuple<K, V> tuple = reader.tuple;
+
+        if ( reader.advance() )
+        {
+            readers.add( reader );
+        }
+
+        return tuple;
+    }
+
+
+    /**
+     * Deletes the temporary files.
+     */
+    void close() throws IOException
+    {
+        if ( readers != null )
+        {
+            for ( RunReader reader : readers )
+            {
+                reader.in.close();
+            }
+
+            readers = null;
+        }
+
+        for ( File file : files )
+        {
+            file.delete();
+        }
+
+        files.clear();
+        run = null;
+        iterator = null;
+    }
+
+
+    private void writeRun() throws IOException
+    {
+        Collections.sort( run, comparator );
+
+        File file = File.createTempFile( "bulkload", ".run" );
+        file.deleteOnExit();
+        files.add( file );
+
+        ObjectOutputStream out = new ObjectOutputStream( new BufferedOutputStream( new FileOutputStream( file ) ) );
+
+        try
+        {
+            for ( Tuple<K, V> tuple : run )
+            {
+                out.writeObject( tuple.getKey() );
+                out.writeObject( tuple.getValue() );
+
+                // Don't keep a reference on the tuples already written
+                out.reset();
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+
+        run.clear();
+    }
+
+
+    /**
+     * Reads the tuples of a run written to a file.
+     */
+    private class RunReader implements Comparable<RunReader>
+    {
+        private final ObjectInputStream in;
+
+        /** The position of the run, which orders the equal tuples */
+        private final int position;
+
+        /** The next tuple of the run */
+        private Tuple<K, V> tuple;
+
+
+        private RunReader( File file, int position ) throws IOException
+        {
+            in = new ObjectInputStream( new BufferedInputStream( new FileInputStream( file ) ) );
+            this.position = position;
+        }
+
+
+        /**
+         * Reads the next tuple, closing the file at its end.
+         *
+         * @return false if the run has been completely read
+         */
+        @SuppressWarnings("unchecked")
+        private boolean advance() throws IOException
+        {
+            try
+            {
+                K key = ( K ) in.readObject();
+                V value = ( V ) in.readObject();
+                tuple = new Tuple<K, V>( key, value );
+
+                return true;
+            }
+            catch ( EOFException eofe )
+            {
+                in.close();
+                tuple = null;
+
+                return false;
+            }
+            catch ( ClassNotFoundException cnfe )
+            {
+                in.close();
+                throw new IOException( cnfe.getMessage() );
+            }
+        }
+
+
+        public int compareTo( RunReader other )
+        {
+            int result = comparator.compare( tuple, other.tuple );
+
+            return ( result != 0 ) ? result : ( position - other.position );
+        }
+    }
+}
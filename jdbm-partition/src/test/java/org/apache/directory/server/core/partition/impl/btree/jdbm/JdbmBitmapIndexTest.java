@@ -0,0 +1,305 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *  
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License. 
+ *  
+ */
+package org.apache.directory.server.core.partition.impl.btree.jdbm;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.directory.server.xdbm.IdBitmap;
+import org.apache.directory.server.xdbm.IndexCursor;
+import org.apache.directory.shared.ldap.constants.SchemaConstants;
+import org.apache.directory.shared.ldap.cursor.Cursor;
+import org.apache.directory.shared.ldap.entry.Entry;
+import org.apache.directory.shared.ldap.schema.SchemaManager;
+import org.apache.directory.shared.ldap.schema.ldif.extractor.SchemaLdifExtractor;
+import org.apache.directory.shared.ldap.schema.ldif.extractor.impl.DefaultSchemaLdifExtractor;
+import org.apache.directory.shared.ldap.schema.loader.ldif.LdifSchemaLoader;
+import org.apache.directory.shared.ldap.schema.manager.impl.DefaultSchemaManager;
+import org.apache.directory.shared.ldap.util.LdapExceptionUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+
+/**
+ * Tests the JdbmBitmapIndex.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class JdbmBitmapIndexTest
+{
+    private static File dbFileDir;
+    JdbmIndex<String, Entry> idx;
+    private static SchemaManager schemaManager;
+
+
+    @BeforeClass
+    public static void init() throws Exception
+    {
+        String workingDirectory = System.getProperty( "workingDirectory" );
+
+        if ( workingDirectory == null )
+        {
+            String path = JdbmBitmapIndexTest.class.getResource( "" ).getPath();
+            int targetPos = path.indexOf( "target" );
+            workingDirectory = path.substring( 0, targetPos + 6 );
+        }
+
+        File schemaRepository = new File( workingDirectory, "schema" );
+        SchemaLdifExtractor extractor = new DefaultSchemaLdifExtractor( new File( workingDirectory ) );
+        extractor.extractOrCopy( true );
+        LdifSchemaLoader loader = new LdifSchemaLoader( schemaRepository );
+        schemaManager = new DefaultSchemaManager( loader );
+
+        boolean loaded = schemaManager.loadAllEnabled();
+
+        if ( !loaded )
+        {
+            fail( "Schema load failed : " + LdapExceptionUtils.printErrors( schemaManager.getErrors() ) );
+        }
+    }
+
+
+    @Before
+    public void setup() throws IOException
+    {
+
+        File tmpIndexFile = File.createTempFile( JdbmBitmapIndexTest.class.getSimpleName(), "db" );
+        tmpIndexFile.deleteOnExit();
+        dbFileDir = new File( tmpIndexFile.getParentFile(), JdbmBitmapIndexTest.class.getSimpleName() );
+
+        dbFileDir.mkdirs();
+    }
+
+
+    @After
+    public void teardown() throws Exception
+    {
+        destroyIndex();
+
+        if ( ( dbFileDir != null ) && dbFileDir.exists() )
+        {
+            FileUtils.deleteDirectory( dbFileDir );
+        }
+    }
+
+
+    void destroyIndex() throws Exception
+    {
+        if ( idx != null )
+        {
+            idx.sync();
+            idx.close();
+
+            // created by this test
+            File dbFile = new File( idx.getWkDirPath(), idx.getAttribute().getOid() + ".db" );
+            assertTrue( dbFile.delete() );
+
+            // created by TransactionManager, if transactions are not disabled
+            File logFile = new File( idx.getWkDirPath(), idx.getAttribute().getOid() + ".lg" );
+            if ( logFile.exists() )
+            {
+                assertTrue( logFile.delete() );
+            }
+        }
+
+        idx = null;
+    }
+
+
+    void initIndex() throws Exception
+    {
+        initIndex( new JdbmBitmapIndex<String, Entry>() );
+    }
+
+
+    void initIndex( JdbmIndex<String, Entry> jdbmIdx ) throws Exception
+    {
+        jdbmIdx.init( schemaManager, schemaManager.lookupAttributeTypeRegistry( SchemaConstants.OU_AT ), dbFileDir );
+        this.idx = jdbmIdx;
+    }
+
+
+    @Test
+    public void testAddDropOneByOne() throws Exception
+    {
+        initIndex();
+        assertNull( idx.forwardLookup( "foo" ) );
+        assertFalse( idx.forward( "foo" ) );
+
+        idx.add( "foo", 0L );
+        idx.add( "foo", 1L );
+        idx.add( "bar", 0L );
+        assertEquals( 3, idx.count() );
+        assertEquals( 2, idx.count( "foo" ) );
+        assertEquals( 0L, ( long ) idx.forwardLookup( "foo" ) );
+        assertEquals( 0L, ( long ) idx.forwardLookup( "bar" ) );
+        assertTrue( idx.forward( "foo", 1L ) );
+        assertTrue( idx.reverse( 0L, "bar" ) );
+        assertFalse( idx.forward( "bar", 1L ) );
+
+        idx.drop( "bar", 0L );
+        assertNull( idx.forwardLookup( "bar" ) );
+        assertFalse( idx.forward( "bar", 0L ) );
+        assertEquals( "foo", idx.reverseLookup( 0L ) );
+
+        idx.drop( "foo", 0L );
+        assertEquals( 1L, ( long ) idx.forwardLookup( "foo" ) );
+        assertTrue( idx.forwardGreaterOrEq( "foo", 1L ) );
+        assertFalse( idx.forwardGreaterOrEq( "foo", 2L ) );
+        assertTrue( idx.forwardLessOrEq( "foo", 1L ) );
+        assertFalse( idx.forwardLessOrEq( "foo", 0L ) );
+
+        idx.drop( 1L );
+        assertNull( idx.forwardLookup( "foo" ) );
+        assertNull( idx.reverseLookup( 1L ) );
+        assertEquals( 0, idx.count() );
+    }
+
+
+    @Test
+    public void testForwardBitmap() throws Exception
+    {
+        initIndex();
+
+        // The ids of "foo" are spread over three containers
+        for ( long id = 0; id < 140000; id += 7 )
+        {
+            idx.add( "foo", id );
+        }
+
+        idx.add( "bar", 70000L );
+
+        IdBitmap bitmap = ( ( JdbmBitmapIndex<String, Entry> ) idx ).forwardBitmap( "FOO" );
+        assertEquals( 20000, bitmap.size() );
+        assertEquals( 20000, idx.count( "foo" ) );
+        assertEquals( 0L, bitmap.first() );
+        assertEquals( 139993L, bitmap.last() );
+        assertTrue( bitmap.contains( 70000L ) );
+        assertFalse( bitmap.contains( 70001L ) );
+        assertEquals( 1, ( ( JdbmBitmapIndex<String, Entry> ) idx ).forwardBitmap( "bar" ).size() );
+        assertEquals( 0, ( ( JdbmBitmapIndex<String, Entry> ) idx ).forwardBitmap( "baz" ).size() );
+    }
+
+
+    @Test
+    public void testCursors() throws Exception
+    {
+        initIndex();
+        idx.add( "foo", 1234L );
+        idx.add( "foo", 333L );
+        idx.add( "foo", 100000L );
+        idx.add( "bar", 555L );
+
+        IndexCursor<String, Entry, Long> cursor = idx.forwardCursor();
+        cursor.beforeFirst();
+        assertTrue( cursor.next() );
+        assertEquals( "bar", cursor.get().getValue() );
+        assertEquals( 555L, ( long ) cursor.get().getId() );
+        assertTrue( cursor.next() );
+        assertEquals( "foo", cursor.get().getValue() );
+        assertEquals( 333L, ( long ) cursor.get().getId() );
+        assertTrue( cursor.next() );
+        assertEquals( 1234L, ( long ) cursor.get().getId() );
+        assertTrue( cursor.next() );
+        assertEquals( 100000L, ( long ) cursor.get().getId() );
+        assertFalse( cursor.next() );
+
+        assertTrue( cursor.previous() );
+        assertEquals( 100000L, ( long ) cursor.get().getId() );
+        assertTrue( cursor.previous() );
+        assertEquals( 1234L, ( long ) cursor.get().getId() );
+        assertTrue( cursor.previous() );
+        assertTrue( cursor.previous() );
+        assertEquals( "bar", cursor.get().getValue() );
+        assertFalse( cursor.previous() );
+        cursor.close();
+
+        cursor = idx.forwardCursor( "foo" );
+        cursor.afterValue( 333L, "foo" );
+        assertTrue( cursor.next() );
+        assertEquals( 1234L, ( long ) cursor.get().getId() );
+        cursor.afterLast();
+        assertTrue( cursor.previous() );
+        assertEquals( 100000L, ( long ) cursor.get().getId() );
+        cursor.beforeValue( 333L, "foo" );
+        assertFalse( cursor.previous() );
+        cursor.close();
+
+        Cursor<Long> values = idx.forwardValueCursor( "foo" );
+        int count = 0;
+
+        while ( values.next() )
+        {
+            count++;
+        }
+
+        assertEquals( 3, count );
+    }
+
+
+    @Test
+    public void testRebuildForwardTable() throws Exception
+    {
+        initIndex( new JdbmIndex<String, Entry>() );
+        idx.add( "foo", 1L );
+        idx.add( "foo", 2L );
+        idx.add( "bar", 2L );
+        idx.sync();
+        idx.close();
+
+        initIndex();
+        assertEquals( 3, idx.count() );
+        assertEquals( 2, idx.count( "foo" ) );
+        assertTrue( idx.forward( "bar", 2L ) );
+        assertEquals( 1L, ( long ) idx.forwardLookup( "foo" ) );
+    }
+
+
+    @Test
+    public void testBulkLoad() throws Exception
+    {
+        initIndex();
+        idx.startBulkLoad();
+
+        for ( long id = 1; id <= 1000; id++ )
+        {
+            idx.add( ( id % 2 == 0 ) ? "even" : "odd", id );
+        }
+
+        idx.endBulkLoad();
+        assertEquals( 1000, idx.count() );
+        assertEquals( 500, idx.count( "even" ) );
+        assertTrue( idx.forward( "odd", 999L ) );
+        assertFalse( idx.forward( "odd", 1000L ) );
+
+        idx.add( "odd", 1001L );
+        assertEquals( 501, idx.count( "odd" ) );
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *  
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License. 
+ *  
+ */
+package org.apache.directory.server.core.partition.impl.btree.jdbm;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.directory.server.xdbm.IdBitmap;
+import org.apache.directory.shared.ldap.constants.SchemaConstants;
+import org.apache.directory.shared.ldap.entry.Entry;
+import org.apache.directory.shared.ldap.schema.SchemaManager;
+import org.apache.directory.shared.ldap.schema.ldif.extractor.SchemaLdifExtractor;
+import org.apache.directory.shared.ldap.schema.ldif.extractor.impl.DefaultSchemaLdifExtractor;
+import org.apache.directory.shared.ldap.schema.loader.ldif.LdifSchemaLoader;
+import org.apache.directory.shared.ldap.schema.manager.impl.DefaultSchemaManager;
+import org.apache.directory.shared.ldap.util.LdapExceptionUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+
+/**
+ * Tests the JdbmNgramIndex.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class JdbmNgramIndexTest
+{
+    private static File dbFileDir;
+    JdbmIndex<String, Entry> idx;
+    private static SchemaManager schemaManager;
+
+
+    @BeforeClass
+    public static void init() throws Exception
+    {
+        String workingDirectory = System.getProperty( "workingDirectory" );
+
+        if ( workingDirectory == null )
+        {
+            String path = JdbmNgramIndexTest.class.getResource( "" ).getPath();
+            int targetPos = path.indexOf( "target" );
+            workingDirectory = path.substring( 0, targetPos + 6 );
+        }
+
+        File schemaRepository = new File( workingDirectory, "schema" );
+        SchemaLdifExtractor extractor = new DefaultSchemaLdifExtractor( new File( workingDirectory ) );
+        extractor.extractOrCopy( true );
+        LdifSchemaLoader loader = new LdifSchemaLoader( schemaRepository );
+        schemaManager = new DefaultSchemaManager( loader );
+
+        boolean loaded = schemaManager.loadAllEnabled();
+
+        if ( !loaded )
+        {
+            fail( "Schema load failed : " + LdapExceptionUtils.printErrors( schemaManager.getErrors() ) );
+        }
+    }
+
+
+    @Before
+    public void setup() throws IOException
+    {
+
+        File tmpIndexFile = File.createTempFile( JdbmNgramIndexTest.class.getSimpleName(), "db" );
+        tmpIndexFile.deleteOnExit();
+        dbFileDir = new File( tmpIndexFile.getParentFile(), JdbmNgramIndexTest.class.getSimpleName() );
+
+        dbFileDir.mkdirs();
+    }
+
+
+    @After
+    public void teardown() throws Exception
+    {
+        destroyIndex();
+
+        if ( ( dbFileDir != null ) && dbFileDir.exists() )
+        {
+            FileUtils.deleteDirectory( dbFileDir );
+        }
+    }
+
+
+    void destroyIndex() throws Exception
+    {
+        if ( idx != null )
+        {
+            idx.sync();
+            idx.close();
+
+            // created by this test
+            File dbFile = new File( idx.getWkDirPath(), idx.getAttribute().getOid() + ".db" );
+            assertTrue( dbFile.delete() );
+
+            // created by TransactionManager, if transactions are not disabled
+            File logFile = new File( idx.getWkDirPath(), idx.getAttribute().getOid() + ".lg" );
+            if ( logFile.exists() )
+            {
+                assertTrue( logFile.delete() );
+            }
+        }
+
+        idx = null;
+    }
+
+
+    void initIndex() throws Exception
+    {
+        initIndex( new JdbmNgramIndex<Entry>() );
+    }
+
+
+    void initIndex( JdbmIndex<String, Entry> jdbmIdx ) throws Exception
+    {
+        jdbmIdx.init( schemaManager, schemaManager.lookupAttributeTypeRegistry( SchemaConstants.CN_AT ), dbFileDir );
+        this.idx = jdbmIdx;
+    }
+
+
+    private IdBitmap candidates( String... parts ) throws Exception
+    {
+        return ( ( JdbmNgramIndex<Entry> ) idx ).forwardNgramBitmap( Arrays.asList( parts ) );
+    }
+
+
+    @Test
+    public void testAddDrop() throws Exception
+    {
+        initIndex();
+        idx.add( "John Smith", 1L );
+        idx.add( "Jane Smithers", 2L );
+        idx.add( "Bob Smyth", 3L );
+        assertEquals( 3, idx.count() );
+        assertEquals( 1L, ( long ) idx.forwardLookup( "john smith" ) );
+
+        IdBitmap bitmap = candidates( "smith" );
+        assertEquals( 2, bitmap.size() );
+        assertTrue( bitmap.contains( 1L ) );
+        assertTrue( bitmap.contains( 2L ) );
+
+        // All the n-grams of all the parts
+        bitmap = candidates( "jo", "smith" );
+        assertEquals( 2, bitmap.size() );
+        bitmap = candidates( "smi", "ers" );
+        assertEquals( 1, bitmap.size() );
+        assertTrue( bitmap.contains( 2L ) );
+        assertEquals( 0, candidates( "smithson" ).size() );
+
+        // Too short to contain an n-gram
+        assertNull( candidates( "sm", "th" ) );
+
+        idx.drop( "Jane Smithers", 2L );
+        assertEquals( 1, candidates( "smith" ).size() );
+        assertEquals( 0, candidates( "ers" ).size() );
+
+        idx.drop( 1L );
+        assertEquals( 0, candidates( "smith" ).size() );
+        assertEquals( 1, candidates( "smy" ).size() );
+    }
+
+
+    @Test
+    public void testDropValueOfMultiValuedAttribute() throws Exception
+    {
+        initIndex();
+        idx.add( "Jane Smith", 1L );
+        idx.add( "Janet Smith", 1L );
+
+        // The n-grams of the other value are kept
+        idx.drop( "Jane Smith", 1L );
+        assertEquals( 0, candidates( "jane smith" ).size() );
+        assertEquals( 1, candidates( "jane" ).size() );
+        assertEquals( 1, candidates( "janet smith" ).size() );
+
+        idx.drop( "Janet Smith", 1L );
+        assertEquals( 0, candidates( "jan" ).size() );
+        assertNull( idx.reverseLookup( 1L ) );
+    }
+
+
+    @Test
+    public void testBuildNgramTable() throws Exception
+    {
+        initIndex( new JdbmIndex<String, Entry>() );
+        idx.add( "John Smith", 1L );
+        idx.add( "Jane Smithers", 2L );
+        idx.sync();
+        idx.close();
+
+        initIndex();
+        assertEquals( 2, idx.count() );
+        assertEquals( 2, candidates( "smith" ).size() );
+        assertEquals( 1, candidates( "john" ).size() );
+    }
+
+
+    @Test
+    public void testBulkLoad() throws Exception
+    {
+        initIndex();
+        idx.startBulkLoad();
+
+        for ( long id = 1; id <= 1000; id++ )
+        {
+            idx.add( "user" + id, id );
+        }
+
+        idx.endBulkLoad();
+        assertEquals( 1000, idx.count() );
+
+        // user10, user100 to user109 and user1000
+        assertEquals( 12, candidates( "r10" ).size() );
+        assertEquals( 1000, candidates( "user" ).size() );
+
+        idx.add( "user1001", 1001L );
+        assertEquals( 13, candidates( "r10" ).size() );
+    }
+}
@@ -30,18 +30,23 @@ import static org.junit.Assert.fail;
 import java.io.File;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.UUID;
 
 import javax.naming.directory.Attributes;
 
+import jdbm.recman.BaseRecordManager;
+
 import org.apache.commons.io.FileUtils;
 import org.apache.directory.server.constants.ApacheSchemaConstants;
 import org.apache.directory.server.xdbm.GenericIndex;
 import org.apache.directory.server.xdbm.Index;
+import org.apache.directory.server.xdbm.IndexCursor;
 import org.apache.directory.server.xdbm.IndexEntry;
 import org.apache.directory.server.xdbm.IndexNotFoundException;
+import org.apache.directory.server.xdbm.IntervalHierarchy;
 import org.apache.directory.server.xdbm.StoreUtils;
 import org.apache.directory.shared.ldap.constants.SchemaConstants;
 import org.apache.directory.shared.ldap.csn.CsnFactory;
@@ -204,6 +209,87 @@ public class JdbmStoreTest
     }
 
 
+    private Entry createOrganizationalUnit( DN dn, String... ous ) throws Exception
+    {
+        dn.normalize( schemaManager.getNormalizerMapping() );
+        Entry entry = new DefaultEntry( schemaManager, dn );
+        entry.add( "objectClass", "top", "organizationalUnit" );
+        entry.add( "ou", ous );
+        entry.add( SchemaConstants.ENTRY_CSN_AT, new CsnFactory( 0 ).newInstance().toString() );
+        entry.add( SchemaConstants.ENTRY_UUID_AT, UUID.randomUUID().toString() );
+
+        return entry;
+    }
+
+
+    @Test
+    public void testBulkLoad() throws Exception
+    {
+        File wkdir2 = File.createTempFile( getClass().getSimpleName(), "bulk" );
+        wkdir2.delete();
+        wkdir2 = new File( wkdir2.getParentFile(), getClass().getSimpleName() + "Bulk" );
+        wkdir2.mkdirs();
+
+        JdbmStore<Entry> store2 = new JdbmStore<Entry>();
+        store2.setId( "bulk" );
+        store2.setCacheSize( 10 );
+        store2.setPartitionDir( wkdir2 );
+        store2.setSyncOnWrite( false );
+        store2.addIndex( new JdbmIndex( SchemaConstants.OU_AT_OID ) );
+        store2.setSuffixDn( EXAMPLE_COM );
+        store2.init( schemaManager );
+
+        try
+        {
+            store2.startBulkLoad();
+
+            Entry suffix = new DefaultEntry( schemaManager, EXAMPLE_COM );
+            suffix.add( "objectClass", "top", "domain" );
+            suffix.add( "dc", "example" );
+            suffix.add( SchemaConstants.ENTRY_CSN_AT, new CsnFactory( 0 ).newInstance().toString() );
+            suffix.add( SchemaConstants.ENTRY_UUID_AT, UUID.randomUUID().toString() );
+            store2.add( suffix );
+
+            // More children sharing an ou value than the duplicate limit of the index
+            for ( int i = 0; i < 1000; i++ )
+            {
+                store2.add( createOrganizationalUnit( new DN( "ou=unit" + i + ",dc=example,dc=com" ), "unit" + i,
+                    "shared" ) );
+            }
+
+            store2.endBulkLoad();
+
+            Long suffixId = store2.getEntryId( EXAMPLE_COM );
+            assertEquals( 1001, store2.count() );
+            assertEquals( 1000, store2.getOneLevelIndex().count( suffixId ) );
+
+            Index<String, Entry, Long> ouIdx = ( Index<String, Entry, Long> ) store2.getUserIndex( SchemaConstants.OU_AT );
+            assertEquals( 1000, ouIdx.count( "shared" ) );
+
+            for ( int i = 0; i < 1000; i += 99 )
+            {
+                DN dn = new DN( "ou=unit" + i + ",dc=example,dc=com" );
+                dn.normalize( schemaManager.getNormalizerMapping() );
+                Long id = store2.getEntryId( dn );
+                assertNotNull( id );
+                assertTrue( store2.lookup( id ).get( "ou" ).contains( "unit" + i ) );
+                assertTrue( ouIdx.forward( "unit" + i, id ) );
+                assertTrue( ouIdx.forward( "shared", id ) );
+            }
+
+            // The store is updated as usual once the load is ended
+            store2.add( createOrganizationalUnit( new DN( "ou=after,dc=example,dc=com" ), "after", "shared" ) );
+            assertEquals( 1002, store2.count() );
+            assertEquals( 1001, ouIdx.count( "shared" ) );
+        }
+        finally
+        {
+            store2.destroy();
+            FileUtils.deleteDirectory( wkdir2 );
+        }
+    }
+
+
     @Test
     public void testSimplePropertiesUnlocked() throws Exception
     {
@@ -226,10 +312,6 @@ public class JdbmStoreTest
         store.addIndex( new JdbmIndex<Long, Attributes>( ApacheSchemaConstants.APACHE_ONE_LEVEL_AT_OID ) );
         assertNotNull( store.getOneLevelIndex() );
 
-        assertNull( store.getSubLevelIndex() );
-        store.addIndex( new JdbmIndex<Long, Attributes>( ApacheSchemaConstants.APACHE_SUB_LEVEL_AT_OID ) );
-        assertNotNull( store.getSubLevelIndex() );
-
         assertNull( store.getId() );
         store.setId( "foo" );
         assertEquals( "foo", store.getId() );
@@ -312,16 +394,6 @@ public class JdbmStoreTest
         {
         }
 
-        assertNotNull( store.getSubLevelIndex() );
-        try
-        {
-            store.addIndex( new JdbmIndex<Long, Entry>( ApacheSchemaConstants.APACHE_SUB_LEVEL_AT_OID ) );
-            fail();
-        }
-        catch ( IllegalStateException e )
-        {
-        }
-
         assertNotNull( store.getId() );
         try
         {
@@ -512,13 +584,164 @@ public class JdbmStoreTest
 
 
     @Test
-    public void testSubLevelIndex() throws Exception
+    public void testCompact() throws Exception
+    {
+        DN dn = new DN( "cn=JIM BEAN,ou=Sales,o=Good Times Co." );
+        dn.normalize( schemaManager.getNormalizerMapping() );
+        store.delete( store.getEntryId( dn ) );
+
+        int count = store.count();
+        Index<String, Entry, Long> ouIdx = ( Index<String, Entry, Long> ) store.getUserIndex( SchemaConstants.OU_AT );
+        int salesCount = ouIdx.count( "sales" );
+        int subtreeSize = store.getHierarchy().getSubtreeSize( 1L );
+
+        assertEquals( -1, store.getCompactionProgress() );
+        store.compact();
+        assertEquals( -1, store.getCompactionProgress() );
+
+        assertEquals( count, store.count() );
+        assertNull( store.getEntryId( dn ) );
+        assertEquals( salesCount, ouIdx.count( "sales" ) );
+        assertEquals( subtreeSize, store.getHierarchy().getSubtreeSize( 1L ) );
+
+        DN sales = new DN( "ou=Sales,o=Good Times Co." );
+        sales.normalize( schemaManager.getNormalizerMapping() );
+        Long salesId = store.getEntryId( sales );
+        assertTrue( store.lookup( salesId ).get( "ou" ).contains( "Sales" ) );
+
+        // The compacted store can be modified
+        dn = new DN( "cn=Jim Beam,ou=Sales,o=Good Times Co." );
+        dn.normalize( schemaManager.getNormalizerMapping() );
+        Entry entry = new DefaultEntry( schemaManager, dn );
+        entry.add( "objectClass", "top", "person", "organizationalPerson" );
+        entry.add( "ou", "Sales" );
+        entry.add( "cn", "Jim Beam" );
+        entry.add( "entryCSN", new CsnFactory( 1 ).newInstance().toString() );
+        entry.add( "entryUUID", UUID.randomUUID().toString() );
+        store.add( entry );
+
+        assertEquals( count + 1, store.count() );
+        assertEquals( salesCount + 1, ouIdx.count( "sales" ) );
+        assertNotNull( store.getEntryId( dn ) );
+    }
+
+
+    @Test
+    public void testCompactWhileSearching() throws Exception
+    {
+        IndexCursor<String, Entry, Long> cursor = store.getEntryUuidIndex().forwardCursor();
+        int count = store.count();
+
+        assertTrue( cursor.next() );
+        int read = 1;
+
+        store.compact();
+
+        // The cursor still reads the former file
+        while ( cursor.next() )
+        {
+            read++;
+        }
+
+        cursor.close();
+        assertEquals( count, read );
+
+        // Neither the copy nor the backup of the file is left
+        assertTrue( new File( wkdir, "master.db" ).exists() );
+        assertFalse( new File( wkdir, "master.db.bak" ).exists() );
+        assertFalse( new File( wkdir, "master.compact.db" ).exists() );
+    }
+
+
+    /**
+     * Adds, modifies and deletes distinct entries from several threads at
+     * once, and logs the number of operations done per second.
+     */
+    @Test
+    public void testConcurrentWrites() throws Exception
+    {
+        final int threadCount = 4;
+        final int entryCount = 250;
+        final List<Exception> errors = Collections.synchronizedList( new ArrayList<Exception>() );
+        DN sales = new DN( "ou=Sales,o=Good Times Co." );
+        sales.normalize( schemaManager.getNormalizerMapping() );
+        Long salesId = store.getEntryId( sales );
+        int count = store.count();
+        int childCount = store.getChildCount( salesId );
+        Thread[] threads = new Thread[threadCount];
+        long start = System.nanoTime();
+
+        for ( int i = 0; i < threadCount; i++ )
+        {
+            final String prefix = "unit" + i + "-";
+
+            threads[i] = new Thread()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        for ( int j = 0; j < entryCount; j++ )
+                        {
+                            DN dn = new DN( "ou=" + prefix + j + ",ou=Sales,o=Good Times Co." );
+                            store.add( createOrganizationalUnit( dn, prefix + j, "concurrent" ) );
+
+                            List<Modification> mods = new ArrayList<Modification>();
+                            EntryAttribute attrib = new DefaultEntryAttribute( SchemaConstants.OU_AT, schemaManager
+                                .lookupAttributeTypeRegistry( SchemaConstants.OU_AT ) );
+                            attrib.add( "modified" );
+                            mods.add( new DefaultModification( ModificationOperation.ADD_ATTRIBUTE, attrib ) );
+                            store.modify( dn, mods );
+
+                            if ( j % 2 == 0 )
+                            {
+                                store.delete( store.getEntryId( dn ) );
+                            }
+                        }
+                    }
+                    catch ( Exception e )
+                    {
+                        errors.add( e );
+                    }
+                }
+            };
+
+            threads[i].start();
+        }
+
+        for ( Thread thread : threads )
+        {
+            thread.join();
+        }
+
+        long time = System.nanoTime() - start;
+        int operations = threadCount * entryCount * 5 / 2;
+        LOG.info( "{} write operations done by {} threads, {} operations per second", new Object[]
+            { operations, threadCount, operations * 1000000000L / Math.max( time, 1 ) } );
+
+        assertTrue( errors.toString(), errors.isEmpty() );
+        assertEquals( count + threadCount * entryCount / 2, store.count() );
+
+        Index<String, Entry, Long> ouIdx = ( Index<String, Entry, Long> ) store.getUserIndex( SchemaConstants.OU_AT );
+        assertEquals( threadCount * entryCount / 2, ouIdx.count( "concurrent" ) );
+        assertEquals( threadCount * entryCount / 2, ouIdx.count( "modified" ) );
+
+        assertEquals( childCount + threadCount * entryCount / 2, store.getChildCount( salesId ) );
+        assertEquals( count + threadCount * entryCount / 2, store.getHierarchy().getSubtreeSize( 1L ) );
+    }
+
+
+    @Test
+    public void testHierarchy() throws Exception
     {
-        Index idx = store.getSubLevelIndex();
+        IntervalHierarchy<Long> hierarchy = store.getHierarchy();
 
-        assertEquals( 19, idx.count() );
+        assertEquals( 11, hierarchy.getSubtreeSize( 1L ) );
+        assertEquals( 3, hierarchy.getSubtreeSize( 2L ) );
+        assertTrue( hierarchy.isInSubtree( 2L, 5L ) );
+        assertFalse( hierarchy.isInSubtree( 3L, 5L ) );
 
-        Cursor<IndexEntry<Long, Attributes, Long>> cursor = idx.forwardCursor( 2L );
+        Cursor<IndexEntry<Long, Attributes, Long>> cursor = hierarchy.subtreeCursor( 2L );
 
         assertTrue( cursor.next() );
         assertEquals( 2, ( long ) cursor.get().getId() );
@@ -531,9 +754,9 @@ public class JdbmStoreTest
 
         assertFalse( cursor.next() );
 
-        idx.drop( 5L );
+        hierarchy.delete( 5L );
 
-        cursor = idx.forwardCursor( 2L );
+        cursor = hierarchy.subtreeCursor( 2L );
 
         assertTrue( cursor.next() );
         assertEquals( 2, ( long ) cursor.get().getId() );
@@ -554,7 +777,7 @@ public class JdbmStoreTest
         entry.add( "entryUUID", UUID.randomUUID().toString() );
         store.add( entry );
 
-        cursor = idx.forwardCursor( 2L );
+        cursor = hierarchy.subtreeCursor( 2L );
         cursor.afterLast();
         assertTrue( cursor.previous() );
         assertEquals( 12, ( long ) cursor.get().getId() );
@@ -565,7 +788,7 @@ public class JdbmStoreTest
         DN newDn = ((DN)newParentDn.clone()).add( martinDn.getRdn() );
 
         store.move( martinDn, newParentDn, newDn, entry );
-        cursor = idx.forwardCursor( 3L );
+        cursor = hierarchy.subtreeCursor( 3L );
         cursor.afterLast();
         assertTrue( cursor.previous() );
         assertEquals( 12, ( long ) cursor.get().getId() );
@@ -595,7 +818,7 @@ public class JdbmStoreTest
 
         store.move( marketingDn, newParentDn, newDn, entry );
 
-        cursor = idx.forwardCursor( 3L );
+        cursor = hierarchy.subtreeCursor( 3L );
         cursor.afterLast();
 
         assertTrue( cursor.previous() );
@@ -620,6 +843,60 @@ public class JdbmStoreTest
         assertEquals( 3, ( long ) cursor.get().getId() );
 
         assertFalse( cursor.previous() );
+
+        assertEquals( 7, hierarchy.getSubtreeSize( 3L ) );
+        assertTrue( hierarchy.isInSubtree( 3L, 14L ) );
+        assertFalse( hierarchy.isInSubtree( 2L, 14L ) );
+    }
+
+
+    @Test
+    public void testReopenHierarchy() throws Exception
+    {
+        // Once moved, Johnny Walker is the last child of the Board of Directors,
+        // while it would come first if the hierarchy was built from the one level index
+        DN walkerDn = new DN( "cn=JOhnny WAlkeR,ou=Sales,o=Good Times Co." );
+        walkerDn.normalize( schemaManager.getNormalizerMapping() );
+        DN newParentDn = new DN( "ou=Board of Directors,o=Good Times Co." );
+        newParentDn.normalize( schemaManager.getNormalizerMapping() );
+        DN newDn = ((DN)newParentDn.clone()).add( walkerDn.getRdn() );
+
+        store.move( walkerDn, newParentDn, newDn, store.lookup( 5L ) );
+        store.destroy();
+
+        File subLevelIndexDbFile = new File( wkdir, ApacheSchemaConstants.APACHE_SUB_LEVEL_AT_OID + ".db" );
+
+        store = new JdbmStore<Entry>();
+        store.setId( "example" );
+        store.setCacheSize( 10 );
+        store.setPartitionDir( wkdir );
+        store.setSyncOnWrite( false );
+        store.addIndex( new JdbmIndex( SchemaConstants.OU_AT_OID ) );
+        store.addIndex( new JdbmIndex( SchemaConstants.UID_AT_OID ) );
+
+        // The former sub level index is ignored
+        store.addIndex( new JdbmIndex( ApacheSchemaConstants.APACHE_SUB_LEVEL_AT_OID ) );
+
+        DN suffixDn = new DN( "o=Good Times Co." );
+        suffixDn.normalize( schemaManager.getNormalizerMapping() );
+        store.setSuffixDn( suffixDn );
+        store.init( schemaManager );
+
+        assertFalse( store.hasUserIndexOn( ApacheSchemaConstants.APACHE_SUB_LEVEL_AT_OID ) );
+        assertFalse( subLevelIndexDbFile.exists() );
+
+        IntervalHierarchy<Long> hierarchy = store.getHierarchy();
+
+        assertEquals( 11, hierarchy.getSubtreeSize( 1L ) );
+        assertEquals( 2, hierarchy.getSubtreeSize( 2L ) );
+        assertEquals( 6, hierarchy.getSubtreeSize( 3L ) );
+        assertTrue( hierarchy.isInSubtree( 3L, 5L ) );
+        assertFalse( hierarchy.isInSubtree( 2L, 5L ) );
+
+        Cursor<IndexEntry<Long, Attributes, Long>> cursor = hierarchy.subtreeCursor( 3L );
+        cursor.afterLast();
+        assertTrue( cursor.previous() );
+        assertEquals( 5, ( long ) cursor.get().getId() );
     }
 
 
@@ -945,5 +1222,185 @@ public class JdbmStoreTest
         assertTrue( uuidIndexDbFile.exists() );
         assertTrue( uuidIndexTxtFile.exists() );
     }
-    
+
+
+    @Test
+    public void testSingleFile() throws Exception
+    {
+        File wkdir2 = new File( wkdir.getParentFile(), getClass().getSimpleName() + "-single" );
+        FileUtils.deleteDirectory( wkdir2 );
+        wkdir2.mkdirs();
+
+        try
+        {
+            JdbmStore<Entry> store2 = new JdbmStore<Entry>();
+            store2.setId( "example2" );
+            store2.setCacheSize( 10 );
+            store2.setPartitionDir( wkdir2 );
+            store2.setSyncOnWrite( true );
+            store2.setSingleFile( true );
+            store2.addIndex( new JdbmIndex( SchemaConstants.OU_AT_OID ) );
+            store2.addIndex( new JdbmIndex( SchemaConstants.UID_AT_OID ) );
+            StoreUtils.loadExampleData( store2, schemaManager );
+
+            // The indices are stored in the master file
+            assertFalse( new File( wkdir2, SchemaConstants.OU_AT_OID + ".db" ).exists() );
+            assertFalse( new File( wkdir2, SchemaConstants.ENTRY_UUID_AT_OID + ".db" ).exists() );
+            assertEquals( 11, store2.count() );
+            store2.destroy();
+
+            // Reopen the store, with a new index built in the master file
+            store2 = new JdbmStore<Entry>();
+            store2.setId( "example2" );
+            store2.setCacheSize( 10 );
+            store2.setPartitionDir( wkdir2 );
+            store2.setSingleFile( true );
+            store2.addIndex( new JdbmIndex( SchemaConstants.OU_AT_OID ) );
+            store2.addIndex( new JdbmIndex( SchemaConstants.UID_AT_OID ) );
+            store2.addIndex( new JdbmIndex( SchemaConstants.CN_AT_OID ) );
+            DN suffixDn = new DN( "o=Good Times Co." );
+            suffixDn.normalize( schemaManager.getNormalizerMapping() );
+            store2.setSuffixDn( suffixDn );
+            store2.init( schemaManager );
+
+            assertEquals( 11, store2.count() );
+            DN dn = new DN( "cn=JOhnny WAlkeR,ou=Sales,o=Good Times Co." );
+            dn.normalize( schemaManager.getNormalizerMapping() );
+            assertEquals( 5L, ( long ) store2.getEntryId( dn ) );
+            Index<String, Entry, Long> cnIndex = ( Index<String, Entry, Long> ) store2.getUserIndex( SchemaConstants.CN_AT_OID );
+            assertTrue( cnIndex.forward( "johnny walker", 5L ) );
+            store2.destroy();
+
+            // Reopen the store without the uid index, which tables are deleted
+            store2 = new JdbmStore<Entry>();
+            store2.setId( "example2" );
+            store2.setCacheSize( 10 );
+            store2.setPartitionDir( wkdir2 );
+            store2.setSingleFile( true );
+            store2.addIndex( new JdbmIndex( SchemaConstants.OU_AT_OID ) );
+            store2.addIndex( new JdbmIndex( SchemaConstants.CN_AT_OID ) );
+            store2.setSuffixDn( suffixDn );
+            store2.init( schemaManager );
+            assertEquals( 11, store2.count() );
+            store2.destroy();
+
+            BaseRecordManager recMan = new BaseRecordManager( new File( wkdir2, "master" ).getPath() );
+
+            for ( String name : recMan.getNames() )
+            {
+                assertFalse( name, name.startsWith( SchemaConstants.UID_AT_OID + "_" ) );
+            }
+
+            assertTrue( recMan.getNamedObject( SchemaConstants.CN_AT_OID + JdbmIndex.FORWARD_BTREE ) != 0 );
+            recMan.close();
+
+            // The layout cannot be changed
+            store2 = new JdbmStore<Entry>();
+            store2.setId( "example2" );
+            store2.setPartitionDir( wkdir2 );
+            store2.setSuffixDn( suffixDn );
+
+            try
+            {
+                store2.init( schemaManager );
+                fail();
+            }
+            catch ( IllegalStateException ise )
+            {
+                // Expected
+            }
+        }
+        finally
+        {
+            FileUtils.deleteDirectory( wkdir2 );
+        }
+    }
+
+
+    /**
+     * Syncs a single file store from several threads with a group commit,
+     * and checks the entries are all there once the store is reopened.
+     */
+    @Test
+    public void testGroupCommit() throws Exception
+    {
+        File wkdir2 = new File( wkdir.getParentFile(), getClass().getSimpleName() + "-group" );
+        FileUtils.deleteDirectory( wkdir2 );
+        wkdir2.mkdirs();
+
+        try
+        {
+            final JdbmStore<Entry> store2 = new JdbmStore<Entry>();
+            store2.setId( "example2" );
+            store2.setCacheSize( 10 );
+            store2.setPartitionDir( wkdir2 );
+            store2.setSyncOnWrite( true );
+            store2.setSingleFile( true );
+            store2.setGroupCommitWindow( 10 );
+            store2.setGroupCommitBytes( 4096 );
+            store2.addIndex( new JdbmIndex( SchemaConstants.OU_AT_OID ) );
+            StoreUtils.loadExampleData( store2, schemaManager );
+
+            final int threadCount = 4;
+            final int entryCount = 10;
+            final List<Exception> errors = Collections.synchronizedList( new ArrayList<Exception>() );
+            Thread[] threads = new Thread[threadCount];
+
+            for ( int i = 0; i < threadCount; i++ )
+            {
+                final String prefix = "group" + i + "-";
+
+                threads[i] = new Thread()
+                {
+                    public void run()
+                    {
+                        try
+                        {
+                            for ( int j = 0; j < entryCount; j++ )
+                            {
+                                DN dn = new DN( "ou=" + prefix + j + ",ou=Sales,o=Good Times Co." );
+                                store2.add( createOrganizationalUnit( dn, prefix + j, "grouped" ) );
+                            }
+                        }
+                        catch ( Exception e )
+                        {
+                            errors.add( e );
+                        }
+                    }
+                };
+
+                threads[i].start();
+            }
+
+            for ( Thread thread : threads )
+            {
+                thread.join();
+            }
+
+            assertTrue( errors.toString(), errors.isEmpty() );
+            assertEquals( 11 + threadCount * entryCount, store2.count() );
+            store2.destroy();
+
+            // The synced entries are found without the group commit
+            JdbmStore<Entry> store3 = new JdbmStore<Entry>();
+            store3.setId( "example2" );
+            store3.setCacheSize( 10 );
+            store3.setPartitionDir( wkdir2 );
+            store3.setSingleFile( true );
+            store3.addIndex( new JdbmIndex( SchemaConstants.OU_AT_OID ) );
+            DN suffixDn = new DN( "o=Good Times Co." );
+            suffixDn.normalize( schemaManager.getNormalizerMapping() );
+            store3.setSuffixDn( suffixDn );
+            store3.init( schemaManager );
+
+            assertEquals( 11 + threadCount * entryCount, store3.count() );
+            Index<String, Entry, Long> ouIdx = ( Index<String, Entry, Long> ) store3.getUserIndex( SchemaConstants.OU_AT );
+            assertEquals( threadCount * entryCount, ouIdx.count( "grouped" ) );
+            store3.destroy();
+        }
+        finally
+        {
+            FileUtils.deleteDirectory( wkdir2 );
+        }
+    }
 }
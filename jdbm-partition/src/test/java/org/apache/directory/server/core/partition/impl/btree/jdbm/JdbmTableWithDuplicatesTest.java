@@ -33,6 +33,7 @@ import jdbm.helper.DefaultSerializer;
 import jdbm.helper.IntegerSerializer;
 import jdbm.recman.BaseRecordManager;
 
+import org.apache.directory.server.core.partition.impl.btree.LongComparator;
 import org.apache.directory.shared.ldap.constants.SchemaConstants;
 import org.apache.directory.shared.ldap.cursor.Cursor;
 import org.apache.directory.shared.ldap.cursor.Tuple;
@@ -603,6 +604,70 @@ public class JdbmTableWithDuplicatesTest
         assertFalse( table.has( "0" ) );
     }
 
+
+    @Test
+    public void testLongValues() throws Exception
+    {
+        SerializableComparator<String> comparator = new SerializableComparator<String>( SchemaConstants.INTEGER_ORDERING_MATCH_MR_OID );
+        comparator.setSchemaManager( schemaManager );
+
+        JdbmTable<String,Long> longs = new JdbmTable<String,Long>( schemaManager, "longs", SIZE, recman,
+            comparator, LongComparator.INSTANCE, new DefaultSerializer(), LongSerializer.INSTANCE );
+        assertTrue( longs.getMarshaller() instanceof LongArrayMarshaller );
+
+        for ( long i = SIZE; i > 0; i-- )
+        {
+            longs.put( "1", i * 2 );
+        }
+
+        longs.put( "1", 2L );
+        assertEquals( SIZE, longs.count() );
+        assertEquals( SIZE, longs.count( "1" ) );
+        assertFalse( longs.isKeyUsingBTree( "1" ) );
+        assertEquals( Long.valueOf( 2 ), longs.get( "1" ) );
+        assertTrue( longs.has( "1", 4L ) );
+        assertFalse( longs.has( "1", 5L ) );
+        assertTrue( longs.hasGreaterOrEqual( "1", SIZE * 2L ) );
+        assertFalse( longs.hasGreaterOrEqual( "1", SIZE * 2L + 1 ) );
+        assertTrue( longs.hasLessOrEqual( "1", 2L ) );
+        assertFalse( longs.hasLessOrEqual( "1", 1L ) );
+
+        Cursor<Long> values = longs.valueCursor( "1" );
+        long expected = 2;
+
+        while ( values.next() )
+        {
+            assertEquals( Long.valueOf( expected ), values.get() );
+            expected += 2;
+        }
+
+        assertEquals( SIZE * 2L + 2, expected );
+
+        // Going past the limit moves the values to a BTree, and back
+        longs.put( "1", 1L );
+        assertTrue( longs.isKeyUsingBTree( "1" ) );
+        assertEquals( SIZE + 1, longs.count( "1" ) );
+        longs.remove( "1", 1L );
+        assertFalse( longs.isKeyUsingBTree( "1" ) );
+        assertEquals( SIZE, longs.count( "1" ) );
+
+        longs.remove( "1", 4L );
+        longs.remove( "1", 5L );
+        assertEquals( SIZE - 1, longs.count( "1" ) );
+        assertFalse( longs.has( "1", 4L ) );
+
+        longs.close();
+        longs = new JdbmTable<String,Long>( schemaManager, "longs", SIZE, recman,
+            comparator, LongComparator.INSTANCE, new DefaultSerializer(), LongSerializer.INSTANCE );
+        assertEquals( SIZE - 1, longs.count() );
+        assertTrue( longs.has( "1", 6L ) );
+
+        longs.remove( "1" );
+        assertEquals( 0, longs.count() );
+        assertFalse( longs.has( "1" ) );
+        longs.close();
+    }
+
     
     /**
      * Let's test keys with a null or lack of any values.
@@ -0,0 +1,150 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.partition.impl.btree.jdbm;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import org.apache.directory.server.core.avltree.ArrayMarshaller;
+import org.apache.directory.server.core.avltree.ArrayTree;
+import org.apache.directory.server.core.partition.impl.btree.LongComparator;
+import org.junit.Test;
+
+
+/**
+ * Test case for the serialization of the duplicate Long values.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class LongArrayMarshallerTest
+{
+    LongArrayMarshaller marshaller = LongArrayMarshaller.INSTANCE;
+
+
+    private ArrayTree<Long> createTree( long... values )
+    {
+        ArrayTree<Long> tree = new ArrayTree<Long>( LongComparator.INSTANCE );
+
+        for ( long value : values )
+        {
+            tree.insert( value );
+        }
+
+        return tree;
+    }
+
+
+    @Test
+    public void testEmpty() throws IOException
+    {
+        byte[] bites = marshaller.serialize( createTree() );
+        assertTrue( LongArrayMarshaller.isLongArray( bites ) );
+        assertEquals( 0, LongArrayMarshaller.size( bites ) );
+        assertEquals( -1, LongArrayMarshaller.indexOf( bites, 0 ) );
+        assertTrue( marshaller.deserialize( bites ).isEmpty() );
+        assertSame( bites, LongArrayMarshaller.remove( bites, 0 ) );
+    }
+
+
+    @Test
+    public void testRoundTrip() throws IOException
+    {
+        byte[] bites = marshaller.serialize( createTree( 7, -1, Long.MAX_VALUE, 0, 256, Long.MIN_VALUE ) );
+        assertTrue( LongArrayMarshaller.isLongArray( bites ) );
+        assertFalse( BTreeRedirectMarshaller.isRedirect( bites ) );
+        assertEquals( 6, LongArrayMarshaller.size( bites ) );
+
+        long[] expected = new long[] { Long.MIN_VALUE, -1, 0, 7, 256, Long.MAX_VALUE };
+        ArrayTree<Long> tree = marshaller.deserialize( bites );
+        assertEquals( expected.length, tree.size() );
+
+        for ( int i = 0; i < expected.length; i++ )
+        {
+            assertEquals( expected[i], LongArrayMarshaller.getValue( bites, i ) );
+            assertEquals( i, LongArrayMarshaller.indexOf( bites, expected[i] ) );
+            assertEquals( Long.valueOf( expected[i] ), tree.get( i ) );
+        }
+
+        assertEquals( -4, LongArrayMarshaller.indexOf( bites, 1 ) );
+        assertEquals( -6, LongArrayMarshaller.indexOf( bites, Long.MAX_VALUE - 1 ) );
+    }
+
+
+    @Test
+    public void testInsertRemove() throws IOException
+    {
+        byte[] bites = null;
+
+        for ( long i = 100; i > 0; i -= 2 )
+        {
+            bites = LongArrayMarshaller.insert( bites, i );
+        }
+
+        for ( long i = 1; i < 100; i += 2 )
+        {
+            bites = LongArrayMarshaller.insert( bites, i );
+        }
+
+        assertSame( bites, LongArrayMarshaller.insert( bites, 50 ) );
+        assertEquals( 100, LongArrayMarshaller.size( bites ) );
+
+        for ( int i = 0; i < 100; i++ )
+        {
+            assertEquals( i + 1, LongArrayMarshaller.getValue( bites, i ) );
+        }
+
+        for ( long i = 1; i <= 100; i += 3 )
+        {
+            bites = LongArrayMarshaller.remove( bites, i );
+        }
+
+        assertSame( bites, LongArrayMarshaller.remove( bites, 1 ) );
+        assertEquals( 66, LongArrayMarshaller.size( bites ) );
+
+        for ( long i = 1; i <= 100; i++ )
+        {
+            assertEquals( ( i % 3 ) != 1, LongArrayMarshaller.indexOf( bites, i ) >= 0 );
+        }
+
+        assertEquals( 66, marshaller.deserialize( bites ).size() );
+    }
+
+
+    @Test
+    public void testFormerFormat() throws IOException
+    {
+        ArrayMarshaller<Long> arrayMarshaller = new ArrayMarshaller<Long>( LongComparator.INSTANCE,
+            new MarshallerSerializerBridge<Long>( LongSerializer.INSTANCE ) );
+        byte[] bites = arrayMarshaller.serialize( createTree( 3, 1, 2 ) );
+        assertFalse( LongArrayMarshaller.isLongArray( bites ) );
+
+        ArrayTree<Long> tree = marshaller.deserialize( bites );
+        assertEquals( 3, tree.size() );
+        assertEquals( Long.valueOf( 1 ), tree.getFirst() );
+        assertEquals( Long.valueOf( 3 ), tree.getLast() );
+
+        assertTrue( LongArrayMarshaller.isLongArray( marshaller.serialize( tree ) ) );
+    }
+}
@@ -21,12 +21,17 @@ package org.apache.directory.server.core.partition.impl.btree.jdbm;
 
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.ObjectOutputStream;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CyclicBarrier;
 
 import org.apache.directory.junit.tools.Concurrent;
 import org.apache.directory.junit.tools.ConcurrentJunitRunner;
@@ -36,6 +41,7 @@ import org.apache.directory.shared.ldap.entry.DefaultEntryAttribute;
 import org.apache.directory.shared.ldap.entry.Entry;
 import org.apache.directory.shared.ldap.entry.EntryAttribute;
 import org.apache.directory.shared.ldap.name.DN;
+import org.apache.directory.shared.ldap.schema.AttributeType;
 import org.apache.directory.shared.ldap.schema.SchemaManager;
 import org.apache.directory.shared.ldap.schema.ldif.extractor.SchemaLdifExtractor;
 import org.apache.directory.shared.ldap.schema.ldif.extractor.impl.DefaultSchemaLdifExtractor;
@@ -310,4 +316,184 @@ public class ServerEntrySerializerTest
 
         assertEquals( entry, result );
     }
+
+    @Test
+    public void testDeserializeJavaSerializedEntry() throws Exception
+    {
+        DN dn = new DN( "cn=text, dc=example, dc=com" );
+        dn.normalize( oids );
+
+        Entry entry = new DefaultEntry( schemaManager, dn );
+        entry.add( "objectClass", "top", "person", "inetOrgPerson", "organizationalPerson" );
+        entry.add( "cn", "text", "test" );
+        entry.add( "userPassword", StringTools.getBytesUtf8( "password" ) );
+
+        // The entries stored by the former versions
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream( baos );
+        ( ( DefaultEntry ) entry ).serialize( out );
+        out.flush();
+
+        ServerEntrySerializer ses = new ServerEntrySerializer( schemaManager );
+        Entry result = ( Entry ) ses.deserialize( baos.toByteArray() );
+
+        DN newDn = new DN();
+        newDn.add( dn.getRdn() );
+        entry.setDn( newDn );
+
+        assertEquals( entry, result );
+        assertTrue( ses.serialize( entry ).length < baos.size() );
+    }
+
+
+    @Test
+    public void testSerializeCompressedServerEntry() throws Exception
+    {
+        DN dn = new DN( "cn=text, dc=example, dc=com" );
+        dn.normalize( oids );
+
+        Entry entry = new DefaultEntry( schemaManager, dn );
+        entry.add( "objectClass", "top", "person", "inetOrgPerson", "organizationalPerson" );
+
+        for ( int i = 0; i < 100; i++ )
+        {
+            entry.add( "cn", "a common name of the entry " + i );
+        }
+
+        ServerEntrySerializer ses = new ServerEntrySerializer( schemaManager );
+        byte[] data = ses.serialize( entry );
+
+        ses.setCompressionThreshold( 0 );
+        byte[] compressed = ses.serialize( entry );
+        assertTrue( compressed.length < data.length );
+
+        // The compressed and uncompressed entries are both read
+        DN newDn = new DN();
+        newDn.add( dn.getRdn() );
+        entry.setDn( newDn );
+
+        assertEquals( entry, ses.deserialize( compressed ) );
+        assertEquals( entry, ses.deserialize( data ) );
+    }
+
+    @Test
+    public void testDeserializeLazyEntry() throws Exception
+    {
+        DN dn = new DN( "cn=text, dc=example, dc=com" );
+        dn.normalize( oids );
+
+        Entry entry = new DefaultEntry( schemaManager, dn );
+        entry.add( "objectClass", "top", "person", "inetOrgPerson", "organizationalPerson" );
+        entry.add( "cn", "text", "test" );
+        entry.add( "sn", "test" );
+        entry.add( "userPassword", StringTools.getBytesUtf8( "password" ) );
+
+        ServerEntrySerializer ses = new ServerEntrySerializer( schemaManager );
+        LazyEntry result = ( LazyEntry ) ses.deserialize( ses.serialize( entry ) );
+        AttributeType cn = schemaManager.lookupAttributeTypeRegistry( "cn" );
+        AttributeType userPassword = schemaManager.lookupAttributeTypeRegistry( "userPassword" );
+
+        // The attribute types and the size are known without reading the attributes
+        assertEquals( 4, result.size() );
+        assertEquals( 4, result.getAttributeTypes().size() );
+        assertTrue( result.containsAttribute( userPassword ) );
+        assertEquals( 4, result.getUnreadCount() );
+
+        // Only the used attributes are read
+        assertEquals( entry.get( cn ), result.get( cn ) );
+        assertTrue( result.contains( "sn", "test" ) );
+        assertEquals( 2, result.getUnreadCount() );
+
+        // A clone reads its attributes on its own
+        LazyEntry clone = ( LazyEntry ) result.clone();
+        result.removeAttributes( userPassword );
+        assertEquals( 1, result.getUnreadCount() );
+        assertEquals( 3, result.size() );
+        assertEquals( 4, clone.size() );
+        assertEquals( entry.get( userPassword ), clone.get( userPassword ) );
+
+        DN newDn = new DN();
+        newDn.add( dn.getRdn() );
+        entry.setDn( newDn );
+
+        assertEquals( entry, clone );
+        assertEquals( 0, clone.getUnreadCount() );
+    }
+
+
+    @Test
+    public void testConcurrentLazyEntryReaders() throws Exception
+    {
+        DN dn = new DN( "cn=text, dc=example, dc=com" );
+        dn.normalize( oids );
+
+        final Entry entry = new DefaultEntry( schemaManager, dn );
+        entry.add( "objectClass", "top", "person", "inetOrgPerson", "organizationalPerson" );
+        entry.add( "cn", "text", "test" );
+        entry.add( "sn", "test" );
+        entry.add( "description", "a description" );
+        entry.add( "telephoneNumber", "1234" );
+        entry.add( "userPassword", StringTools.getBytesUtf8( "password" ) );
+
+        ServerEntrySerializer ses = new ServerEntrySerializer( schemaManager );
+        byte[] data = ses.serialize( entry );
+        final String[] ids = { "objectClass", "cn", "sn", "description", "telephoneNumber", "userPassword" };
+        final List<String> errors = new CopyOnWriteArrayList<String>();
+
+        // The threads share the entry, as when it is kept by a page of the BTree
+        for ( int n = 0; n < 50; n++ )
+        {
+            final LazyEntry result = ( LazyEntry ) ses.deserialize( data );
+            final CyclicBarrier barrier = new CyclicBarrier( ids.length );
+            Thread[] readers = new Thread[ids.length];
+
+            for ( int i = 0; i < readers.length; i++ )
+            {
+                final int first = i;
+
+                readers[i] = new Thread()
+                {
+                    public void run()
+                    {
+                        try
+                        {
+                            barrier.await();
+
+                            for ( int j = 0; j < ids.length; j++ )
+                            {
+                                String id = ids[( first + j ) % ids.length];
+
+                                if ( !entry.get( id ).equals( result.get( id ) ) )
+                                {
+                                    errors.add( id + " read as " + result.get( id ) );
+                                }
+
+                                Entry clone = result.clone();
+
+                                if ( clone.size() != ids.length )
+                                {
+                                    errors.add( "clone of " + clone.size() + " attributes" );
+                                }
+                            }
+                        }
+                        catch ( Exception e )
+                        {
+                            errors.add( e.toString() );
+                        }
+                    }
+                };
+
+                readers[i].start();
+            }
+
+            for ( Thread reader : readers )
+            {
+                reader.join();
+            }
+
+            assertEquals( 0, result.getUnreadCount() );
+        }
+
+        assertTrue( errors.toString(), errors.isEmpty() );
+    }
 }
@@ -75,6 +75,28 @@ public interface RecordManagerOptions
     String DISABLE_TRANSACTIONS = "jdbm.disableTransactions";
 
 
+    /**
+     * Option to let the fetches run concurrently. The updates are still
+     * serialized, and exclude the fetches.
+     */
+    String CONCURRENT_READS = "jdbm.concurrentReads";
+
+
+    /**
+     * Option to synchronize the transaction log with a group commit : the
+     * log is synchronized at most once in the given number of milliseconds
+     * for all the commits done meanwhile.
+     */
+    String GROUP_COMMIT_WINDOW = "jdbm.groupCommit.window";
+
+
+    /**
+     * Number of bytes written to the log which triggers the synchronization
+     * before the end of the group commit window.
+     */
+    String GROUP_COMMIT_BYTES = "jdbm.groupCommit.bytes";
+
+
     /** Cache type. */
     String CACHE_TYPE = "jdbm.cache.type";
 
@@ -87,6 +109,13 @@ public interface RecordManagerOptions
     String NORMAL_CACHE = "normal";
 
 
+    /**
+     * Use a thread-safe segmented LRU for the record cache, so that large
+     * scans do not flush the records which are used repeatedly.
+     */
+    String SCAN_RESISTANT_CACHE = "scanResistant";
+
+
     /**
      * Use soft references {$link java.lang.ref.SoftReference} for the record
      * cache instead of the default normal object references.
@@ -105,4 +134,27 @@ public interface RecordManagerOptions
      * finalizable, finalized, and then reclaimed.
      */
     String WEAK_REF_CACHE = "weak";
+
+
+    /** Block I/O strategy used to read and write the database file. */
+    String BLOCK_IO = "jdbm.blockIo";
+
+
+    /** Size in bytes of a mapped segment (when applicable) */
+    String BLOCK_IO_SEGMENT_SIZE = "jdbm.blockIo.segmentSize";
+
+
+    /**
+     * Read and write each block with a seek followed by a read or a write
+     * on the database file. This is the default.
+     */
+    String RANDOM_ACCESS_BLOCK_IO = "randomAccess";
+
+
+    /**
+     * Memory-map the database file in segments of
+     * {@link #BLOCK_IO_SEGMENT_SIZE} bytes, and serve the blocks from the
+     * mapping.
+     */
+    String MAPPED_BLOCK_IO = "mapped";
 }
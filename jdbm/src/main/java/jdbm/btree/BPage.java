@@ -47,6 +47,7 @@
 package jdbm.btree;
 
 
+import jdbm.helper.Serialization;
 import jdbm.helper.Serializer;
 import jdbm.helper.Tuple;
 import jdbm.helper.TupleBrowser;
@@ -54,10 +55,11 @@ import jdbm.helper.TupleBrowser;
 import java.io.IOException;
 import java.io.ByteArrayOutputStream;
 import java.io.ByteArrayInputStream;
+import java.io.DataOutputStream;
 import java.io.ObjectInput;
-import java.io.ObjectOutput;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 import org.apache.directory.server.i18n.I18n;
 
@@ -76,6 +78,15 @@ import org.apache.directory.server.i18n.I18n;
  * The only exception is the rightmost BPage, which is considered to have an
  * "infinite" key value, meaning that any insert will be to the left of this
  * pseudo-key
+ * <p>
+ * The keys of a page are serialized as the prefix they have in common,
+ * followed by an offset table giving the length of the suffix of each key.
+ * A page read from the disk keeps this serialized form, and a key is only
+ * deserialized when it is compared or returned : a lookup deserializes the
+ * keys probed by the binary search, instead of all the keys of the page.
+ * The page is fully deserialized before being modified. The pages written
+ * in the former format, a plain serialization of all the keys and values,
+ * can still be read, and are converted when they are written again.
  *
  * @author <a href="mailto:boisvert@intalio.com">Alex Boisvert</a>
  */
@@ -113,6 +124,20 @@ public class BPage<K, V> implements Serializer
     /** Next leaf BPage (only if this BPage is a leaf) */
     protected long next;
 
+    /** The first byte of the pages written in the prefix-compressed format */
+    static final byte COMPRESSED_FORMAT = 1;
+
+    /** The tags of the objects serialized without serializer */
+    private static final byte OBJECT_TAG = 0;
+    private static final byte STRING_TAG = 1;
+    private static final byte BYTES_TAG = 2;
+
+    /** The keys and values which have not been deserialized yet */
+    private transient SerializedEntries serializedEntries;
+
+    /** Tells if this page has been read in the former format */
+    private transient boolean legacyFormat;
+
 
     /**
      * No-argument constructor used by serialization.
@@ -203,9 +228,106 @@ public class BPage<K, V> implements Serializer
      * Get largest key under this BPage.  Null is considered to be the
      * greatest possible key.
      */
-    K getLargestKey()
+    K getLargestKey() throws IOException
+    {
+        return getKey( btree.pageSize - 1 );
+    }
+
+
+    /**
+     * Get the key at the given index, deserializing it if needed. Concurrent
+     * readers may deserialize the same key twice, which is harmless.
+     */
+    @SuppressWarnings("unchecked") // The deserialize method returns an Object
+    K getKey( int index ) throws IOException
+    {
+        K key = keys[index];
+        SerializedEntries entries = serializedEntries;
+
+        if ( ( key == null ) && ( entries != null ) && ( entries.keyLengths[index] >= 0 ) )
+        {
+            key = ( K ) deserializeObject( btree.keySerializer, entries.getKey( index ) );
+            keys[index] = key;
+        }
+
+        return key;
+    }
+
+
+    /**
+     * Get the value at the given index of a leaf page, deserializing it if
+     * needed.
+     */
+    @SuppressWarnings("unchecked") // The deserialize method returns an Object
+    V getValue( int index ) throws IOException
+    {
+        V value = values[index];
+        SerializedEntries entries = serializedEntries;
+
+        if ( ( value == null ) && ( entries != null ) && ( entries.valueLengths[index] >= 0 ) )
+        {
+            value = ( V ) deserializeObject( btree.valueSerializer, entries.getValue( index ) );
+            values[index] = value;
+        }
+
+        return value;
+    }
+
+
+    /**
+     * Get the serialized form of the key at the given index, without
+     * deserializing it if it has been read from the disk.
+     */
+    private byte[] getSerializedKey( int index ) throws IOException
+    {
+        SerializedEntries entries = serializedEntries;
+
+        if ( ( entries != null ) && ( entries.keyLengths[index] >= 0 ) )
+        {
+            return entries.getKey( index );
+        }
+
+        return ( keys[index] == null ) ? null : serializeObject( btree.keySerializer, keys[index] );
+    }
+
+
+    /**
+     * Get the serialized form of the value at the given index of a leaf
+     * page, without deserializing it if it has been read from the disk.
+     */
+    private byte[] getSerializedValue( int index ) throws IOException
     {
-        return keys[btree.pageSize - 1];
+        SerializedEntries entries = serializedEntries;
+
+        if ( ( entries != null ) && ( entries.valueLengths[index] >= 0 ) )
+        {
+            return entries.getValue( index );
+        }
+
+        return ( values[index] == null ) ? null : serializeObject( btree.valueSerializer, values[index] );
+    }
+
+
+    /**
+     * Deserialize all the keys and values of the page, before it is
+     * modified.
+     */
+    private void materialize() throws IOException
+    {
+        if ( serializedEntries != null )
+        {
+            for ( int i = 0; i < btree.pageSize; i++ )
+            {
+                getKey( i );
+
+                if ( isLeaf )
+                {
+                    getValue( i );
+                }
+            }
+
+            serializedEntries = null;
+        }
     }
     
     
@@ -361,10 +483,11 @@ public class BPage<K, V> implements Serializer
                     System.out.println( "Bpage.insert() Key already exists." );
                 }
                 
-                result.existing = values[index];
+                result.existing = getValue( index );
                 
                 if ( replace )
                 {
+                    materialize();
                     values[index] = value;
                     btree.recordManager.update( recordId, this, this );
                 }
@@ -402,6 +525,7 @@ public class BPage<K, V> implements Serializer
             overflow = result.overflow.recordId;
 
             // update child's largest key
+            materialize();
             keys[index] = child.getLargestKey();
 
             // clean result so we can reuse it
@@ -545,7 +669,7 @@ public class BPage<K, V> implements Serializer
             }
             
             result = new RemoveResult<V>();
-            result.value = values[index];
+            result.value = getValue( index );
             removeEntry( this, index );
 
             // update this BPage
@@ -558,6 +682,7 @@ public class BPage<K, V> implements Serializer
             result = child.remove( height, key );
 
             // update children
+            materialize();
             keys[index] = child.getLargestKey();
             btree.recordManager.update( recordId, this, this );
 
@@ -790,7 +915,7 @@ public class BPage<K, V> implements Serializer
      * @return index of first children with equal or greater key. If the 
      * key already exists, the index value will be negative
      */
-    private int findChildren( K key )
+    private int findChildren( K key ) throws IOException
     {
         int left = first;
         int right = btree.pageSize - 1;
@@ -800,7 +925,7 @@ public class BPage<K, V> implements Serializer
         {
             int middle = ( left + right ) >>> 1;
             
-            int comp = compare( keys[middle], key );
+            int comp = compare( getKey( middle ), key );
             
             if ( comp < 0 )
             {
@@ -821,7 +946,7 @@ public class BPage<K, V> implements Serializer
         if ( left == right )
         {
             // Special case : we don't know if the key is present
-            if ( compare( keys[left], key ) ==0 )
+            if ( compare( getKey( left ), key ) == 0 )
             {
                 return -right - 1;
             }
@@ -834,8 +959,9 @@ public class BPage<K, V> implements Serializer
     /**
      * Insert entry at given position.
      */
-    private void insertEntry( BPage<K, V> page, int index, K key, V value )
+    private void insertEntry( BPage<K, V> page, int index, K key, V value ) throws IOException
     {
+        page.materialize();
         K[] keys = page.keys;
         V[] values = page.values;
         int start = page.first;
@@ -853,8 +979,9 @@ public class BPage<K, V> implements Serializer
     /**
      * Insert child at given position.
      */
-    private void insertChild( BPage<K, V> page, int index, K key, long child )
+    private void insertChild( BPage<K, V> page, int index, K key, long child ) throws IOException
     {
+        page.materialize();
         K[] keys = page.keys;
         long[] children = page.children;
         int start = page.first;
@@ -872,8 +999,9 @@ public class BPage<K, V> implements Serializer
     /**
      * Remove entry at given position.
      */
-    private void removeEntry( BPage<K, V> page, int index )
+    private void removeEntry( BPage<K, V> page, int index ) throws IOException
     {
+        page.materialize();
         K[] keys = page.keys;
         V[] values = page.values;
         int start = page.first;
@@ -890,8 +1018,9 @@ public class BPage<K, V> implements Serializer
     /**
      * Set the entry at the given index.
      */
-    private void setEntry( BPage<K, V> page, int index, K key, V value )
+    private void setEntry( BPage<K, V> page, int index, K key, V value ) throws IOException
     {
+        page.materialize();
         page.keys[index] = key;
         page.values[index] = value;
     }
@@ -900,8 +1029,9 @@ public class BPage<K, V> implements Serializer
     /**
      * Set the child BPage recordId at the given index.
      */
-    private void setChild( BPage<K, V> page, int index, K key, long recid )
+    private void setChild( BPage<K, V> page, int index, K key, long recid ) throws IOException
     {
+        page.materialize();
         page.keys[index] = key;
         page.children[index] = recid;
     }
@@ -911,7 +1041,10 @@ public class BPage<K, V> implements Serializer
      * Copy entries between two BPages
      */
     private void copyEntries( BPage<K, V> source, int indexSource, BPage<K, V> dest, int indexDest, int count )
+        throws IOException
     {
+        source.materialize();
+        dest.materialize();
         System.arraycopy( source.keys, indexSource, dest.keys, indexDest, count );
         System.arraycopy( source.values, indexSource, dest.values, indexDest, count );
     }
@@ -921,7 +1054,10 @@ public class BPage<K, V> implements Serializer
      * Copy child BPage recids between two BPages
      */
     private void copyChildren( BPage<K, V> source, int indexSource, BPage<K, V> dest, int indexDest, int count )
+        throws IOException
     {
+        source.materialize();
+        dest.materialize();
         System.arraycopy( source.keys, indexSource, dest.keys, indexDest, count );
         System.arraycopy( source.children, indexSource, dest.children, indexDest, count );
     }
@@ -989,17 +1125,176 @@ public class BPage<K, V> implements Serializer
     }
 
 
-    static void writeByteArray( ObjectOutput out, byte[] buf ) throws IOException
+    /**
+     * Serialize an object with the given serializer. Without serializer, the
+     * strings and byte arrays are stored as is, so that the keys of a page
+     * share a prefix, and the other objects use the java serialization.
+     */
+    private static byte[] serializeObject( Serializer serializer, Object obj ) throws IOException
     {
-        if ( buf == null )
+        if ( serializer != null )
+        {
+            return serializer.serialize( obj );
+        }
+
+        byte tag;
+        byte[] bytes;
+
+        if ( obj instanceof String )
+        {
+            tag = STRING_TAG;
+            bytes = ( ( String ) obj ).getBytes( "UTF-8" );
+        }
+        else if ( obj instanceof byte[] )
         {
-            out.writeInt( -1 );
+            tag = BYTES_TAG;
+            bytes = ( byte[] ) obj;
         }
         else
         {
-            out.writeInt( buf.length );
-            out.write( buf );
+            tag = OBJECT_TAG;
+            bytes = Serialization.serialize( obj );
         }
+
+        byte[] serialized = new byte[bytes.length + 1];
+        serialized[0] = tag;
+        System.arraycopy( bytes, 0, serialized, 1, bytes.length );
+
+        return serialized;
+    }
+
+
+    /**
+     * Deserialize an object serialized by {@link #serializeObject(Serializer, Object)}.
+     */
+    private static Object deserializeObject( Serializer serializer, byte[] serialized ) throws IOException
+    {
+        if ( serializer != null )
+        {
+            return serializer.deserialize( serialized );
+        }
+
+        byte[] bytes = new byte[serialized.length - 1];
+        System.arraycopy( serialized, 1, bytes, 0, bytes.length );
+
+        switch ( serialized[0] )
+        {
+            case STRING_TAG:
+                return new String( bytes, "UTF-8" );
+
+            case BYTES_TAG:
+                return bytes;
+
+            default:
+                try
+                {
+                    return Serialization.deserialize( bytes );
+                }
+                catch ( ClassNotFoundException except )
+                {
+                    throw new IOException( except.getLocalizedMessage() );
+                }
+        }
+    }
+
+
+    /**
+     * Rewrite this page and its sub-pages which have been read in the former
+     * format.
+     *
+     * @return the number of pages rewritten
+     */
+    int rewrite() throws IOException
+    {
+        int rewritten = 0;
+
+        if ( !isLeaf )
+        {
+            for ( int i = first; i < btree.pageSize; i++ )
+            {
+                rewritten += childBPage( i ).rewrite();
+            }
+        }
+
+        if ( legacyFormat )
+        {
+            btree.recordManager.update( recordId, this, this );
+            legacyFormat = false;
+            rewritten++;
+        }
+
+        return rewritten;
+    }
+
+
+    /**
+     * Delete this page and its sub-pages from the record manager.
+     */
+    void delete() throws IOException
+    {
+        if ( !isLeaf )
+        {
+            for ( int i = first; i < btree.pageSize; i++ )
+            {
+                childBPage( i ).delete();
+            }
+        }
+
+        btree.recordManager.delete( recordId );
+    }
+
+
+    /**
+     * Copy this page and its sub-pages to the record manager of another
+     * BTree. The keys and values read from the disk are copied without
+     * being deserialized. The sub-pages are written before their parent,
+     * so that the leaves are stored in key order.
+     *
+     * @param copy the state of the copy
+     * @return the record id of the copy of this page
+     */
+    @SuppressWarnings("unchecked") // Cannot create an array of generic objects
+    long copy( Copy<K, V> copy ) throws IOException
+    {
+        BPage<K, V> page = new BPage<K, V>();
+        page.btree = copy.target;
+        page.isLeaf = isLeaf;
+        page.first = first;
+        page.keys = keys.clone();
+        page.serializedEntries = serializedEntries;
+
+        if ( isLeaf )
+        {
+            page.values = values.clone();
+
+            if ( copy.lastLeaf != null )
+            {
+                page.previous = copy.lastLeaf.recordId;
+            }
+
+            page.recordId = copy.target.recordManager.insert( page, page );
+
+            if ( copy.lastLeaf != null )
+            {
+                copy.lastLeaf.next = page.recordId;
+                copy.target.recordManager.update( copy.lastLeaf.recordId, copy.lastLeaf, copy.lastLeaf );
+            }
+
+            copy.lastLeaf = page;
+        }
+        else
+        {
+            page.children = new long[btree.pageSize];
+
+            for ( int i = first; i < btree.pageSize; i++ )
+            {
+                page.children[i] = childBPage( i ).copy( copy );
+            }
+
+            page.recordId = copy.target.recordManager.insert( page, page );
+        }
+
+        return page.recordId;
     }
 
 
@@ -1007,7 +1302,7 @@ public class BPage<K, V> implements Serializer
      * Dump the structure of the tree on the screen.  This is used for debugging
      * purposes only.
      */
-    private void dump( int height )
+    private void dump( int height ) throws IOException
     {
         String prefix = "";
         
@@ -1023,11 +1318,11 @@ public class BPage<K, V> implements Serializer
         {
             if ( isLeaf )
             {
-                System.out.println( prefix + "BPage [" + i + "] " + keys[i] + " " + values[i] );
+                System.out.println( prefix + "BPage [" + i + "] " + getKey( i ) + " " + getValue( i ) );
             }
             else
             {
-                System.out.println( prefix + "BPage [" + i + "] " + keys[i] + " " + children[i] );
+                System.out.println( prefix + "BPage [" + i + "] " + getKey( i ) + " " + children[i] );
             }
         }
         
@@ -1048,7 +1343,7 @@ public class BPage<K, V> implements Serializer
         {
             for ( int i = first; i < btree.pageSize; i++ )
             {
-                if ( keys[i] == null )
+                if ( getKey( i ) == null )
                 { 
                     break;
                 }
@@ -1065,11 +1360,11 @@ public class BPage<K, V> implements Serializer
      * Assert the ordering of the keys on the BPage. This is used for testing
      * purposes only.
      */
-    private void assertConsistency()
+    private void assertConsistency() throws IOException
     {
         for ( int i = first; i < btree.pageSize - 1; i++ )
         {
-            if ( compare( keys[i], keys[i + 1] ) >= 0 )
+            if ( compare( getKey( i ), getKey( i + 1 ) ) >= 0 )
             {
                 dump( 0 );
                 throw new Error( I18n.err( I18n.ERR_515 ) );
@@ -1090,14 +1385,14 @@ public class BPage<K, V> implements Serializer
         {
             for ( int i = first; i < btree.pageSize; i++ )
             {
-                if ( keys[i] == null )
+                if ( getKey( i ) == null )
                 {
                     break;
                 }
                 
                 BPage<K, V> child = childBPage( i );
                 
-                if ( compare( keys[i], child.getLargestKey() ) != 0 )
+                if ( compare( getKey( i ), child.getLargestKey() ) != 0 )
                 {
                     dump( 0 );
                     child.dump( 0 );
@@ -1117,17 +1412,124 @@ public class BPage<K, V> implements Serializer
      * @return deserialized object
      *
      */
-    @SuppressWarnings("unchecked") // Cannot create an array of generic objects
     public BPage<K, V> deserialize( byte[] serialized ) throws IOException
+    {
+        if ( ( serialized.length > 0 ) && ( serialized[0] == COMPRESSED_FORMAT ) )
+        {
+            return deserializeCompressed( serialized );
+        }
+        else
+        {
+            // The former format starts with the header of the java serialization
+            return deserializeLegacy( serialized );
+        }
+    }
+
+
+    /**
+     * Read a page written in the prefix-compressed format. Only the offset
+     * table is read : the keys and values are deserialized when needed.
+     */
+    @SuppressWarnings("unchecked") // Cannot create an array of generic objects
+    private BPage<K, V> deserializeCompressed( byte[] serialized )
+    {
+        ByteBuffer buffer = ByteBuffer.wrap( serialized );
+        BPage<K, V> bpage = new BPage<K, V>();
+        bpage.btree = btree;
+
+        // Skip the format
+        buffer.get();
+        bpage.isLeaf = ( buffer.get() != 0 );
+
+        if ( bpage.isLeaf )
+        {
+            bpage.previous = buffer.getLong();
+            bpage.next = buffer.getLong();
+        }
+
+        bpage.first = buffer.getInt();
+        bpage.keys = (K[])new Object[btree.pageSize];
+
+        int prefixLength = buffer.getInt();
+        int prefixOffset = buffer.position();
+        buffer.position( prefixOffset + prefixLength );
+
+        int[] keyOffsets = new int[btree.pageSize];
+        int[] keyLengths = newLengths();
+
+        for ( int i = bpage.first; i < btree.pageSize; i++ )
+        {
+            keyLengths[i] = buffer.getInt();
+        }
+
+        int offset = buffer.position();
+
+        for ( int i = bpage.first; i < btree.pageSize; i++ )
+        {
+            if ( keyLengths[i] >= 0 )
+            {
+                keyOffsets[i] = offset;
+                offset += keyLengths[i];
+            }
+        }
+
+        buffer.position( offset );
+
+        int[] valueOffsets = null;
+        int[] valueLengths = null;
+
+        if ( bpage.isLeaf )
+        {
+            bpage.values = (V[])new Object[btree.pageSize];
+            valueOffsets = new int[btree.pageSize];
+            valueLengths = newLengths();
+
+            for ( int i = bpage.first; i < btree.pageSize; i++ )
+            {
+                valueLengths[i] = buffer.getInt();
+
+                if ( valueLengths[i] >= 0 )
+                {
+                    valueOffsets[i] = buffer.position();
+                    buffer.position( valueOffsets[i] + valueLengths[i] );
+                }
+            }
+        }
+        else
+        {
+            bpage.children = new long[btree.pageSize];
+
+            for ( int i = bpage.first; i < btree.pageSize; i++ )
+            {
+                bpage.children[i] = buffer.getLong();
+            }
+        }
+
+        bpage.serializedEntries = new SerializedEntries( serialized, prefixOffset, prefixLength, keyOffsets,
+            keyLengths, valueOffsets, valueLengths );
+
+        return bpage;
+    }
+
+
+    /**
+     * Read a page written in the former format. The keys and values written
+     * by a serializer are kept in their serialized form, so that they are
+     * written again as is when the page is converted.
+     */
+    @SuppressWarnings("unchecked") // Cannot create an array of generic objects
+    private BPage<K, V> deserializeLegacy( byte[] serialized ) throws IOException
     {
         ByteArrayInputStream bais;
         ObjectInputStream ois;
         BPage<K, V> bpage;
 
         bpage = new BPage<K, V>();
+        bpage.btree = btree;
+        bpage.legacyFormat = true;
         bais = new ByteArrayInputStream( serialized );
         ois = new ObjectInputStream( bais );
-
+        
         bpage.isLeaf = ois.readBoolean();
         
         if ( bpage.isLeaf )
@@ -1139,7 +1541,11 @@ public class BPage<K, V> implements Serializer
         bpage.first = ois.readInt();
 
         bpage.keys = (K[])new Object[btree.pageSize];
-        
+
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        int[] keyOffsets = new int[btree.pageSize];
+        int[] keyLengths = newLengths();
+
         try
         {
             for ( int i = bpage.first; i < btree.pageSize; i++ )
@@ -1154,7 +1560,9 @@ public class BPage<K, V> implements Serializer
                     
                     if ( serialized != null )
                     {
-                        bpage.keys[i] = (K)btree.keySerializer.deserialize( serialized );
+                        keyOffsets[i] = data.size();
+                        keyLengths[i] = serialized.length;
+                        data.write( serialized );
                     }
                 }
             }
@@ -1164,9 +1572,14 @@ public class BPage<K, V> implements Serializer
             throw new IOException( except.getLocalizedMessage() );
         }
 
+        int[] valueOffsets = null;
+        int[] valueLengths = null;
+
         if ( bpage.isLeaf )
         {
             bpage.values = (V[])new Object[btree.pageSize];
+            valueOffsets = new int[btree.pageSize];
+            valueLengths = newLengths();
             
             try
             {
@@ -1182,7 +1595,9 @@ public class BPage<K, V> implements Serializer
                         
                         if ( serialized != null )
                         {
-                            bpage.values[i] = (V)btree.valueSerializer.deserialize( serialized );
+                            valueOffsets[i] = data.size();
+                            valueLengths[i] = serialized.length;
+                            data.write( serialized );
                         }
                     }
                 }
@@ -1205,12 +1620,41 @@ public class BPage<K, V> implements Serializer
         ois.close();
         bais.close();
 
+        if ( data.size() > 0 )
+        {
+            bpage.serializedEntries = new SerializedEntries( data.toByteArray(), 0, 0, keyOffsets, keyLengths,
+                valueOffsets, valueLengths );
+        }
+
         return bpage;
     }
 
 
+    /**
+     * @return an array of lengths telling that no entry is serialized
+     */
+    private int[] newLengths()
+    {
+        int[] lengths = new int[btree.pageSize];
+        Arrays.fill( lengths, -1 );
+
+        return lengths;
+    }
+
+
     /** 
-     * Serialize the content of an object into a byte array.
+     * Serialize the content of an object into a byte array. The page is
+     * written in the prefix-compressed format :
+     * <ul>
+     *   <li>the format, the leaf flag, the previous and next leaves and the
+     *   index of the first entry</li>
+     *   <li>the length and bytes of the prefix shared by the serialized keys</li>
+     *   <li>the offset table, giving the length of the suffix of each key, or
+     *   -1 for a null key</li>
+     *   <li>the suffixes of the keys</li>
+     *   <li>the length and bytes of each value for a leaf, or the record ids
+     *   of the children pages</li>
+     * </ul>
      *
      * @param obj Object to serialize
      * @return a byte array representing the object's state
@@ -1219,67 +1663,87 @@ public class BPage<K, V> implements Serializer
     @SuppressWarnings("unchecked") // The serialize signature requires an Object, so we have to cast
     public byte[] serialize( Object obj ) throws IOException
     {
-        byte[] serialized;
-        ByteArrayOutputStream baos;
-        ObjectOutputStream oos;
-        BPage<K, V> bpage;
-        byte[] data;
-
         // note:  It is assumed that BPage instance doing the serialization is the parent
         // of the BPage object being serialized.
-        bpage = ( BPage<K, V> ) obj;
-        baos = new ByteArrayOutputStream();
-        oos = new ObjectOutputStream( baos );
+        BPage<K, V> bpage = ( BPage<K, V> ) obj;
+        byte[][] serializedKeys = new byte[btree.pageSize][];
+        byte[] prefix = null;
+        int prefixLength = 0;
 
-        oos.writeBoolean( bpage.isLeaf );
-        
-        if ( bpage.isLeaf )
+        for ( int i = bpage.first; i < btree.pageSize; i++ )
         {
-            oos.writeLong( bpage.previous );
-            oos.writeLong( bpage.next );
-        }
+            byte[] serializedKey = bpage.getSerializedKey( i );
+            serializedKeys[i] = serializedKey;
 
-        oos.writeInt( bpage.first );
+            if ( serializedKey == null )
+            {
+                continue;
+            }
 
-        for ( int i = bpage.first; i < btree.pageSize; i++ )
-        {
-            if ( btree.keySerializer == null )
+            if ( prefix == null )
             {
-                oos.writeObject( bpage.keys[i] );
+                prefix = serializedKey;
+                prefixLength = serializedKey.length;
             }
             else
             {
-                if ( bpage.keys[i] != null )
-                {
-                    serialized = btree.keySerializer.serialize( bpage.keys[i] );
-                    writeByteArray( oos, serialized );
-                }
-                else
+                int length = Math.min( prefixLength, serializedKey.length );
+                prefixLength = 0;
+
+                while ( ( prefixLength < length ) && ( prefix[prefixLength] == serializedKey[prefixLength] ) )
                 {
-                    writeByteArray( oos, null );
+                    prefixLength++;
                 }
             }
         }
 
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream( baos );
+
+        out.writeByte( COMPRESSED_FORMAT );
+        out.writeBoolean( bpage.isLeaf );
+        
+        if ( bpage.isLeaf )
+        {
+            out.writeLong( bpage.previous );
+            out.writeLong( bpage.next );
+        }
+
+        out.writeInt( bpage.first );
+        out.writeInt( prefixLength );
+
+        if ( prefixLength > 0 )
+        {
+            out.write( prefix, 0, prefixLength );
+        }
+
+        for ( int i = bpage.first; i < btree.pageSize; i++ )
+        {
+            out.writeInt( serializedKeys[i] == null ? -1 : serializedKeys[i].length - prefixLength );
+        }
+
+        for ( int i = bpage.first; i < btree.pageSize; i++ )
+        {
+            if ( serializedKeys[i] != null )
+            {
+                out.write( serializedKeys[i], prefixLength, serializedKeys[i].length - prefixLength );
+            }
+        }
+
         if ( bpage.isLeaf )
         {
             for ( int i = bpage.first; i < btree.pageSize; i++ )
             {
-                if ( btree.valueSerializer == null )
+                byte[] serializedValue = bpage.getSerializedValue( i );
+
+                if ( serializedValue == null )
                 {
-                    oos.writeObject( bpage.values[i] );
+                    out.writeInt( -1 );
                 }
                 else
                 {
-                    if ( bpage.values[i] != null )
-                    {
-                        serialized = btree.valueSerializer.serialize( bpage.values[i] );
-                        writeByteArray( oos, serialized );
-                    }
-                    else
-                    {
-                        writeByteArray( oos, null );
-                    }
+                    out.writeInt( serializedValue.length );
+                    out.write( serializedValue );
                 }
             }
         }
@@ -1287,15 +1751,13 @@ public class BPage<K, V> implements Serializer
         {
             for ( int i = bpage.first; i < btree.pageSize; i++ )
             {
-                oos.writeLong( bpage.children[i] );
+                out.writeLong( bpage.children[i] );
             }
         }
 
-        oos.flush();
-        data = baos.toByteArray();
-        oos.close();
-        baos.close();
-        return data;
+        out.flush();
+
+        return baos.toByteArray();
     }
 
     /** STATIC INNER CLASS
@@ -1335,6 +1797,78 @@ public class BPage<K, V> implements Serializer
         V value;
     }
 
+    /** STATIC INNER CLASS
+     *  The state of a copy of the pages of a BTree to another record
+     *  manager.
+     */
+    static class Copy<K, V>
+    {
+        /**
+         * The BTree receiving the pages.
+         */
+        final BTree<K, V> target;
+
+        /**
+         * The last leaf copied, which is linked to the next one.
+         */
+        BPage<K, V> lastLeaf;
+
+
+        Copy( BTree<K, V> target )
+        {
+            this.target = target;
+        }
+    }
+
+    /** STATIC INNER CLASS
+     *  The keys and values of a page which have not been deserialized yet.
+     *  A serialized key is made of the prefix shared by all the keys of the
+     *  page, followed by its own suffix. A length of -1 tells that the entry
+     *  is not serialized.
+     */
+    private static class SerializedEntries
+    {
+        private final byte[] data;
+        private final int prefixOffset;
+        private final int prefixLength;
+        private final int[] keyOffsets;
+        private final int[] keyLengths;
+        private final int[] valueOffsets;
+        private final int[] valueLengths;
+
+
+        private SerializedEntries( byte[] data, int prefixOffset, int prefixLength, int[] keyOffsets,
+            int[] keyLengths, int[] valueOffsets, int[] valueLengths )
+        {
+            this.data = data;
+            this.prefixOffset = prefixOffset;
+            this.prefixLength = prefixLength;
+            this.keyOffsets = keyOffsets;
+            this.keyLengths = keyLengths;
+            this.valueOffsets = valueOffsets;
+            this.valueLengths = valueLengths;
+        }
+
+
+        private byte[] getKey( int index )
+        {
+            byte[] key = new byte[prefixLength + keyLengths[index]];
+            System.arraycopy( data, prefixOffset, key, 0, prefixLength );
+            System.arraycopy( data, keyOffsets[index], key, prefixLength, keyLengths[index] );
+
+            return key;
+        }
+
+
+        private byte[] getValue( int index )
+        {
+            byte[] value = new byte[valueLengths[index]];
+            System.arraycopy( data, valueOffsets[index], value, 0, valueLengths[index] );
+
+            return value;
+        }
+    }
+
     /** PRIVATE INNER CLASS
      * Browser to traverse leaf BPages.
      */
@@ -1377,7 +1911,7 @@ public class BPage<K, V> implements Serializer
             if ( index < page.btree.pageSize )
             {
                 // We are. Now check that we have a Tuple
-                if ( page.keys[index] == null )
+                if ( page.getKey( index ) == null )
                 {
                     // no : reached end of the tree.
                     return false;
@@ -1392,8 +1926,8 @@ public class BPage<K, V> implements Serializer
                 index = page.first;
             }
             
-            tuple.setKey( page.keys[index] );
-            tuple.setValue( page.values[index] );
+            tuple.setKey( page.getKey( index ) );
+            tuple.setValue( page.getValue( index ) );
             index++;
             
             return true;
@@ -1417,8 +1951,8 @@ public class BPage<K, V> implements Serializer
             }
             
             index--;
-            tuple.setKey( page.keys[index] );
-            tuple.setValue( page.values[index] );
+            tuple.setKey( page.getKey( index ) );
+            tuple.setValue( page.getValue( index ) );
             
             return true;
         }
@@ -54,6 +54,7 @@ import java.io.ObjectOutput;
 import java.io.Serializable;
 import java.util.Comparator;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import jdbm.RecordManager;
 import jdbm.helper.Serializer;
@@ -83,6 +84,9 @@ import org.apache.directory.server.i18n.I18n;
  * possible to handle duplicates by inlining or referencing an object collection
  * as a value.
  * <p>
+ * Lookups and browser creations run concurrently, while inserts and removals
+ * are serialized and exclude them.
+ * <p>
  * There is no limit on key size or value size, but it is recommended to keep
  * both as small as possible to reduce disk I/O.   This is especially true for
  * the key size, which impacts all non-leaf <code>BPage</code> objects.
@@ -132,6 +136,9 @@ public class BTree<K, V> implements Externalizable
     /** Serializer used for BPages of this tree */
     private transient BPage<K, V> bpageSerializer;
 
+    /** The lock excluding the updates from the lookups */
+    private transient ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
 
     /**
      * No-argument constructor used by serialization.
@@ -268,68 +275,77 @@ public class BTree<K, V> implements Externalizable
      * @param replace Set to true to replace an existing key-value pair.
      * @return Existing value, if any.
      */
-    public synchronized Object insert( K key, V value, boolean replace ) throws IOException
+    public Object insert( K key, V value, boolean replace ) throws IOException
     {
-        if ( key == null )
-        {
-            throw new IllegalArgumentException( I18n.err( I18n.ERR_523 ) );
-        }
+        lock.writeLock().lock();
         
-        if ( value == null )
+        try
         {
-            throw new IllegalArgumentException( I18n.err( I18n.ERR_524 ) );
-        }
-
-        BPage<K, V> rootPage = getRoot();
-
-        if ( rootPage == null )
-        {
-            // BTree is currently empty, create a new root BPage
-            if ( DEBUG )
+            if ( key == null )
             {
-                System.out.println( "BTree.insert() new root BPage" );
+                throw new IllegalArgumentException( I18n.err( I18n.ERR_523 ) );
             }
-            
-            rootPage = new BPage<K, V>( this, key, value );
-            rootId = rootPage.getRecordId();
-            bTreeHeight = 1;
-            nbEntries.set( 1 );
-            recordManager.update( recordId, this );
-            
-            return null;
-        }
-        else
-        {
-            BPage.InsertResult<K, V> insert = rootPage.insert( bTreeHeight, key, value, replace );
-            boolean dirty = false;
-            
-            if ( insert.overflow != null )
+        
+            if ( value == null )
+            {
+                throw new IllegalArgumentException( I18n.err( I18n.ERR_524 ) );
+            }
+
+            BPage<K, V> rootPage = getRoot();
+
+            if ( rootPage == null )
             {
-                // current root page overflowed, we replace with a new root page
+                // BTree is currently empty, create a new root BPage
                 if ( DEBUG )
                 {
-                    System.out.println( "BTree.insert() replace root BPage due to overflow" );
+                    System.out.println( "BTree.insert() new root BPage" );
                 }
-                
-                rootPage = new BPage<K, V>( this, rootPage, insert.overflow );
+            
+                rootPage = new BPage<K, V>( this, key, value );
                 rootId = rootPage.getRecordId();
-                bTreeHeight += 1;
-                dirty = true;
-            }
+                bTreeHeight = 1;
+                nbEntries.set( 1 );
+                recordManager.update( recordId, this );
             
-            if ( insert.existing == null )
-            {
-                nbEntries.getAndIncrement();
-                dirty = true;
+                return null;
             }
-            
-            if ( dirty )
+            else
             {
-                recordManager.update( recordId, this );
-            }
+                BPage.InsertResult<K, V> insert = rootPage.insert( bTreeHeight, key, value, replace );
+                boolean dirty = false;
+            
+                if ( insert.overflow != null )
+                {
+                    // current root page overflowed, we replace with a new root page
+                    if ( DEBUG )
+                    {
+                        System.out.println( "BTree.insert() replace root BPage due to overflow" );
+                    }
+                
+                    rootPage = new BPage<K, V>( this, rootPage, insert.overflow );
+                    rootId = rootPage.getRecordId();
+                    bTreeHeight += 1;
+                    dirty = true;
+                }
+            
+                if ( insert.existing == null )
+                {
+                    nbEntries.getAndIncrement();
+                    dirty = true;
+                }
+            
+                if ( dirty )
+                {
+                    recordManager.update( recordId, this );
+                }
             
-            // insert might have returned an existing value
-            return insert.existing;
+                // insert might have returned an existing value
+                return insert.existing;
+            }
+        }
+        finally
+        {
+            lock.writeLock().unlock();
         }
     }
 
@@ -341,52 +357,61 @@ public class BTree<K, V> implements Externalizable
      * @return Value associated with the key, or null if no entry with given
      *         key existed in the BTree.
      */
-    public synchronized V remove( K key ) throws IOException
+    public V remove( K key ) throws IOException
     {
-        if ( key == null )
+        lock.writeLock().lock();
+        
+        try
         {
-            throw new IllegalArgumentException( I18n.err( I18n.ERR_523 ) );
-        }
+            if ( key == null )
+            {
+                throw new IllegalArgumentException( I18n.err( I18n.ERR_523 ) );
+            }
 
-        BPage<K, V> rootPage = getRoot();
+            BPage<K, V> rootPage = getRoot();
         
-        if ( rootPage == null )
-        {
-            return null;
-        }
+            if ( rootPage == null )
+            {
+                return null;
+            }
         
-        boolean dirty = false;
-        BPage.RemoveResult<V> remove = rootPage.remove( bTreeHeight, key );
+            boolean dirty = false;
+            BPage.RemoveResult<V> remove = rootPage.remove( bTreeHeight, key );
         
-        if ( remove.underflow && rootPage.isEmpty() )
-        {
-            bTreeHeight -= 1;
-            dirty = true;
+            if ( remove.underflow && rootPage.isEmpty() )
+            {
+                bTreeHeight -= 1;
+                dirty = true;
 
-            recordManager.delete( rootId );
+                recordManager.delete( rootId );
             
-            if ( bTreeHeight == 0 )
+                if ( bTreeHeight == 0 )
+                {
+                    rootId = 0;
+                }
+                else
+                {
+                    rootId = rootPage.childBPage( pageSize - 1 ).getRecordId();
+                }
+            }
+        
+            if ( remove.value != null )
             {
-                rootId = 0;
+                nbEntries.getAndDecrement();
+                dirty = true;
             }
-            else
+        
+            if ( dirty )
             {
-                rootId = rootPage.childBPage( pageSize - 1 ).getRecordId();
+                recordManager.update( recordId, this );
             }
-        }
         
-        if ( remove.value != null )
-        {
-            nbEntries.getAndDecrement();
-            dirty = true;
+            return remove.value;
         }
-        
-        if ( dirty )
+        finally
         {
-            recordManager.update( recordId, this );
+            lock.writeLock().unlock();
         }
-        
-        return remove.value;
     }
 
 
@@ -396,39 +421,48 @@ public class BTree<K, V> implements Externalizable
      * @param key Lookup key.
      * @return Value associated with the key, or null if not found.
      */
-    public synchronized V find( K key ) throws IOException
+    public V find( K key ) throws IOException
     {
-        if ( key == null )
+        lock.readLock().lock();
+        
+        try
         {
-            throw new IllegalArgumentException( I18n.err( I18n.ERR_523 ) );
-        }
+            if ( key == null )
+            {
+                throw new IllegalArgumentException( I18n.err( I18n.ERR_523 ) );
+            }
         
-        BPage<K, V> rootPage = getRoot();
+            BPage<K, V> rootPage = getRoot();
         
-        if ( rootPage == null )
-        {
-            return null;
-        }
+            if ( rootPage == null )
+            {
+                return null;
+            }
 
-        Tuple<K, V> tuple = new Tuple<K, V>( null, null );
-        TupleBrowser<K, V> browser = rootPage.find( bTreeHeight, key );
+            Tuple<K, V> tuple = new Tuple<K, V>( null, null );
+            TupleBrowser<K, V> browser = rootPage.find( bTreeHeight, key );
 
-        if ( browser.getNext( tuple ) )
-        {
-            // find returns the matching key or the next ordered key, so we must
-            // check if we have an exact match
-            if ( comparator.compare( key, tuple.getKey() ) != 0 )
+            if ( browser.getNext( tuple ) )
             {
-                return null;
+                // find returns the matching key or the next ordered key, so we must
+                // check if we have an exact match
+                if ( comparator.compare( key, tuple.getKey() ) != 0 )
+                {
+                    return null;
+                }
+                else
+                {
+                    return tuple.getValue();
+                }
             }
             else
             {
-                return tuple.getValue();
+                return null;
             }
         }
-        else
+        finally
         {
-            return null;
+            lock.readLock().unlock();
         }
     }
 
@@ -441,28 +475,37 @@ public class BTree<K, V> implements Externalizable
      * @return Value associated with the key, or a greater entry, or null if no
      *         greater entry was found.
      */
-    public synchronized Tuple<K, V> findGreaterOrEqual( K key ) throws IOException
+    public Tuple<K, V> findGreaterOrEqual( K key ) throws IOException
     {
-        Tuple<K, V> tuple;
-        TupleBrowser<K, V> browser;
-
-        if ( key == null )
+        lock.readLock().lock();
+        
+        try
         {
-            // there can't be a key greater than or equal to "null"
-            // because null is considered an infinite key.
-            return null;
-        }
+            Tuple<K, V> tuple;
+            TupleBrowser<K, V> browser;
+
+            if ( key == null )
+            {
+                // there can't be a key greater than or equal to "null"
+                // because null is considered an infinite key.
+                return null;
+            }
 
-        tuple = new Tuple<K, V>( null, null );
-        browser = browse( key );
+            tuple = new Tuple<K, V>( null, null );
+            browser = browse( key );
         
-        if ( browser.getNext( tuple ) )
-        {
-            return tuple;
+            if ( browser.getNext( tuple ) )
+            {
+                return tuple;
+            }
+            else
+            {
+                return null;
+            }
         }
-        else
+        finally
         {
-            return null;
+            lock.readLock().unlock();
         }
     }
 
@@ -476,18 +519,27 @@ public class BTree<K, V> implements Externalizable
      *
      * @return Browser positionned at the beginning of the BTree.
      */
-    public synchronized TupleBrowser<K, V> browse() throws IOException
+    public TupleBrowser<K, V> browse() throws IOException
     {
-        BPage<K, V> rootPage = getRoot();
+        lock.readLock().lock();
         
-        if ( rootPage == null )
+        try
         {
-            return new EmptyBrowser(){};
-        }
+            BPage<K, V> rootPage = getRoot();
+        
+            if ( rootPage == null )
+            {
+                return new EmptyBrowser(){};
+            }
         
-        TupleBrowser<K, V> browser = rootPage.findFirst();
+            TupleBrowser<K, V> browser = rootPage.findFirst();
         
-        return browser;
+            return browser;
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
     }
 
 
@@ -503,18 +555,27 @@ public class BTree<K, V> implements Externalizable
      *            (Null is considered to be an "infinite" key)
      * @return Browser positioned just before the given key.
      */
-    public synchronized TupleBrowser<K, V> browse( K key ) throws IOException
+    public TupleBrowser<K, V> browse( K key ) throws IOException
     {
-        BPage<K, V> rootPage = getRoot();
+        lock.readLock().lock();
         
-        if ( rootPage == null )
+        try
         {
-            return new EmptyBrowser(){};
-        }
+            BPage<K, V> rootPage = getRoot();
         
-        TupleBrowser<K, V> browser = rootPage.find( bTreeHeight, key );
+            if ( rootPage == null )
+            {
+                return new EmptyBrowser(){};
+            }
+        
+            TupleBrowser<K, V> browser = rootPage.find( bTreeHeight, key );
         
-        return browser;
+            return browser;
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
     }
 
 
@@ -527,6 +588,132 @@ public class BTree<K, V> implements Externalizable
     }
 
 
+    /**
+     * Rewrite the pages of the BTree which are still in the format used
+     * before the keys were prefix-compressed. Those pages can be read, and
+     * are otherwise converted the next time they are modified.
+     *
+     * @return the number of pages rewritten
+     */
+    public int rewritePages() throws IOException
+    {
+        lock.writeLock().lock();
+
+        try
+        {
+            BPage<K, V> rootPage = getRoot();
+
+            if ( rootPage == null )
+            {
+                return 0;
+            }
+
+            return rootPage.rewrite();
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+
+    /**
+     * Delete the pages of the BTree, and the BTree itself, from its record
+     * manager. The BTree must not be used afterwards.
+     */
+    public void delete() throws IOException
+    {
+        lock.writeLock().lock();
+
+        try
+        {
+            BPage<K, V> rootPage = getRoot();
+
+            if ( rootPage != null )
+            {
+                rootPage.delete();
+            }
+
+            rootId = 0;
+            nbEntries.set( 0 );
+            recordManager.delete( recordId );
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+
+    /**
+     * Copy the BTree to another record manager. The pages are copied as
+     * they are stored, without deserializing their keys and values, and
+     * the leaves are written contiguously in key order.
+     *
+     * @param target the record manager receiving the copy
+     * @return the copy of the BTree
+     */
+    public BTree<K, V> copy( RecordManager target ) throws IOException
+    {
+        lock.readLock().lock();
+
+        try
+        {
+            BTree<K, V> copy = new BTree<K, V>();
+            copy.recordManager = target;
+            copy.comparator = comparator;
+            copy.keySerializer = keySerializer;
+            copy.valueSerializer = valueSerializer;
+            copy.pageSize = pageSize;
+            copy.bpageSerializer = new BPage<K, V>();
+            copy.bpageSerializer.btree = copy;
+            copy.bTreeHeight = bTreeHeight;
+            copy.nbEntries = new AtomicInteger( nbEntries.get() );
+
+            BPage<K, V> rootPage = getRoot();
+
+            if ( rootPage != null )
+            {
+                copy.rootId = rootPage.copy( new BPage.Copy<K, V>( copy ) );
+            }
+
+            copy.recordId = target.insert( copy );
+
+            return copy;
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+
+    /**
+     * Set the root of the BTree once its pages have been written by a
+     * {@link BTreeBuilder}.
+     *
+     * @param rootId the record id of the root page
+     * @param height the number of levels of the tree
+     * @param size the number of entries
+     */
+    void setRoot( long rootId, int height, int size ) throws IOException
+    {
+        lock.writeLock().lock();
+
+        try
+        {
+            this.rootId = rootId;
+            bTreeHeight = height;
+            nbEntries.set( size );
+            recordManager.update( recordId, this );
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+
     /**
      * Return the persistent record identifier of the BTree.
      */
@@ -614,6 +801,16 @@ public class BTree<K, V> implements Externalizable
     {
         return comparator;
     }
+
+
+    /**
+     * @return the serializer of the values, or null if the values use the
+     * java serialization
+     */
+    public Serializer getValueSerializer()
+    {
+        return valueSerializer;
+    }
     
     
     public String toString()
@@ -0,0 +1,323 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package jdbm.btree;
+
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.directory.server.i18n.I18n;
+
+
+/**
+ * Loads an empty {@link BTree} with entries sorted by key. Instead of
+ * inserting the entries one by one, which splits the pages repeatedly and
+ * writes them in a random order, the tree is built bottom-up : the leaves
+ * are filled completely and written in sequence, and each written page adds
+ * an entry to the page being filled at the level above.
+ * <p>
+ * A page is only written once the next page of its level is started, so
+ * that the last two pages of a level can share their entries : every page
+ * but the root is at least half full, as required by the removals.
+ * <p>
+ * The tree must not be used until {@link #build()} returns.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class BTreeBuilder<K, V>
+{
+    /** The tree being built */
+    private final BTree<K, V> btree;
+
+    /** The levels of the tree, from the leaves to the root */
+    private final List<Level> levels = new ArrayList<Level>();
+
+    /** The last key added */
+    private K lastKey;
+
+    /** The number of entries added */
+    private int size;
+
+
+    /**
+     * Creates a builder loading the given tree.
+     *
+     * @param btree an empty tree
+     */
+    public BTreeBuilder( BTree<K, V> btree )
+    {
+        if ( btree.size() != 0 )
+        {
+            throw new IllegalArgumentException( I18n.err( I18n.ERR_739, btree ) );
+        }
+
+        this.btree = btree;
+        levels.add( new Level( true ) );
+    }
+
+
+    /**
+     * Adds an entry. The keys must be added in increasing order.
+     *
+     * @param key the key, greater than the previous one
+     * @param value the value
+     */
+    public void add( K key, V value ) throws IOException
+    {
+        if ( key == null )
+        {
+            throw new IllegalArgumentException( I18n.err( I18n.ERR_523 ) );
+        }
+
+        if ( value == null )
+        {
+            throw new IllegalArgumentException( I18n.err( I18n.ERR_524 ) );
+        }
+
+        if ( ( lastKey != null ) && ( btree.getComparator().compare( lastKey, key ) >= 0 ) )
+        {
+            throw new IllegalArgumentException( I18n.err( I18n.ERR_740, key, lastKey ) );
+        }
+
+        levels.get( 0 ).add( key, value, 0 );
+        lastKey = key;
+        size++;
+    }
+
+
+    /**
+     * Writes the pages which are still being filled, and sets the root of
+     * the tree.
+     *
+     * @return the loaded tree
+     */
+    public BTree<K, V> build() throws IOException
+    {
+        if ( size == 0 )
+        {
+            return btree;
+        }
+
+        // The last leaf ends with a null key, which is greater than all the
+        // others, like the last leaf of a tree built by insertions
+        levels.get( 0 ).add( null, null, 0 );
+
+        int height = 0;
+
+        while ( !levels.get( height ).isRoot() )
+        {
+            // Writing the last pages of a level may add a level above
+            levels.get( height ).flush();
+            height++;
+        }
+
+        long rootId = levels.get( height ).flush();
+        btree.setRoot( rootId, height + 1, size );
+
+        return btree;
+    }
+
+
+    /**
+     * The pages of a level which are not written yet.
+     */
+    private class Level
+    {
+        /** Tells if the level contains the leaves */
+        private final boolean isLeaf;
+
+        /** The page being filled */
+        private Entries current = new Entries();
+
+        /** The full page preceding the current one */
+        private Entries pending;
+
+        /** The number of pages written */
+        private int written;
+
+        /** The last leaf written, which is linked to the next one */
+        private BPage<K, V> lastLeaf;
+
+
+        private Level( boolean isLeaf )
+        {
+            this.isLeaf = isLeaf;
+        }
+
+
+        /**
+         * Adds an entry to the page being filled, and writes the previous
+         * page when a new page is started.
+         */
+        private void add( K key, V value, long child ) throws IOException
+        {
+            if ( current.count == btree.pageSize )
+            {
+                if ( pending != null )
+                {
+                    write( pending );
+                }
+
+                pending = current;
+                current = new Entries();
+            }
+
+            current.add( key, value, child );
+        }
+
+
+        /**
+         * @return true if the whole level fits in a single page
+         */
+        private boolean isRoot()
+        {
+            return ( written == 0 ) && ( pending == null );
+        }
+
+
+        /**
+         * Writes the remaining pages of this level, moving entries from
+         * the last full page to the current one if it is less than half
+         * full.
+         *
+         * @return the record id of the last page
+         */
+        private long flush() throws IOException
+        {
+            if ( pending != null )
+            {
+                int half = btree.pageSize / 2;
+
+                if ( current.count < half )
+                {
+                    current.prepend( pending, half - current.count );
+                }
+
+                write( pending );
+                pending = null;
+            }
+
+            return write( current );
+        }
+
+
+        /**
+         * Writes a page, and adds an entry pointing to it to the level above.
+         */
+        @SuppressWarnings("unchecked") // Cannot create an array of generic objects
+        private long write( Entries entries ) throws IOException
+        {
+            int pageSize = btree.pageSize;
+            BPage<K, V> page = new BPage<K, V>();
+            page.btree = btree;
+            page.isLeaf = isLeaf;
+            page.first = pageSize - entries.count;
+            page.keys = ( K[] ) new Object[pageSize];
+            System.arraycopy( entries.keys, 0, page.keys, page.first, entries.count );
+
+            if ( isLeaf )
+            {
+                page.values = ( V[] ) new Object[pageSize];
+                System.arraycopy( entries.values, 0, page.values, page.first, entries.count );
+
+                if ( lastLeaf != null )
+                {
+                    page.previous = lastLeaf.recordId;
+                }
+            }
+            else
+            {
+                page.children = new long[pageSize];
+                System.arraycopy( entries.children, 0, page.children, page.first, entries.count );
+            }
+
+            page.recordId = btree.recordManager.insert( page, page );
+
+            if ( isLeaf )
+            {
+                if ( lastLeaf != null )
+                {
+                    lastLeaf.next = page.recordId;
+                    btree.recordManager.update( lastLeaf.recordId, lastLeaf, lastLeaf );
+                }
+
+                lastLeaf = page;
+            }
+
+            written++;
+
+            // The root is the only page of its level
+            if ( ( written > 1 ) || ( pending != null ) || ( entries != current ) )
+            {
+                int depth = levels.indexOf( this );
+
+                if ( depth == levels.size() - 1 )
+                {
+                    levels.add( new Level( false ) );
+                }
+
+                levels.get( depth + 1 ).add( page.getLargestKey(), null, page.recordId );
+            }
+
+            return page.recordId;
+        }
+    }
+
+
+    /**
+     * The entries of a page, stored from the first slot.
+     */
+    private class Entries
+    {
+        private final Object[] keys = new Object[btree.pageSize];
+        private final Object[] values = new Object[btree.pageSize];
+        private final long[] children = new long[btree.pageSize];
+        private int count;
+
+
+        private void add( K key, V value, long child )
+        {
+            keys[count] = key;
+            values[count] = value;
+            children[count] = child;
+            count++;
+        }
+
+
+        /**
+         * Moves the last entries of the given page before the entries of
+         * this one.
+         */
+        private void prepend( Entries previous, int moved )
+        {
+            System.arraycopy( keys, 0, keys, moved, count );
+            System.arraycopy( values, 0, values, moved, count );
+            System.arraycopy( children, 0, children, moved, count );
+
+            int from = previous.count - moved;
+            System.arraycopy( previous.keys, from, keys, 0, moved );
+            System.arraycopy( previous.values, from, values, 0, moved );
+            System.arraycopy( previous.children, from, children, 0, moved );
+            count += moved;
+            previous.count = from;
+        }
+    }
+}
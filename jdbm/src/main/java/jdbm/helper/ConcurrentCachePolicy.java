@@ -0,0 +1,48 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package jdbm.helper;
+
+
+/**
+ * A {@link CachePolicy} which can be used by concurrent threads without
+ * any external synchronization, and which counts its hits, misses and
+ * evictions.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public interface ConcurrentCachePolicy<K, V> extends CachePolicy<K, V>
+{
+    /**
+     * @return the number of gets which found the object in the cache
+     */
+    long getHits();
+
+
+    /**
+     * @return the number of gets which did not find the object in the cache
+     */
+    long getMisses();
+
+
+    /**
+     * @return the number of objects evicted to make room for new ones
+     */
+    long getEvictions();
+}
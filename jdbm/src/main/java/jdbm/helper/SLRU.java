@@ -0,0 +1,486 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package jdbm.helper;
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.directory.server.i18n.I18n;
+
+
+/**
+ * SLRU - Segmented Least Recently Used cache policy.
+ * <p>
+ * The cache is split in two segments. A new object enters the
+ * <em>probationary</em> segment, and is promoted to the <em>protected</em>
+ * segment the next time it is accessed. When the protected segment is full,
+ * its least recently used object goes back to the probationary segment.
+ * Objects are always evicted from the probationary segment first. An object
+ * read only once, like the pages read by a large scan, can then only evict
+ * other objects read once, and the objects which are used repeatedly stay
+ * in the cache.
+ * <p>
+ * The methods are thread-safe. The keys are spread over several stripes,
+ * each one being an independent SLRU with its own lock, so that concurrent
+ * threads rarely wait for each other. The eviction listeners are called
+ * while the stripe of the evicted object is locked.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class SLRU<K, V> implements ConcurrentCachePolicy<K, V>
+{
+    /** The maximum number of stripes */
+    private static final int MAX_STRIPES = 16;
+
+    /** The minimum number of objects a stripe can contain */
+    private static final int MIN_STRIPE_SIZE = 64;
+
+    /** The percentage of a stripe reserved to the protected segment */
+    private static final int PROTECTED_PERCENTAGE = 80;
+
+    /** The stripes */
+    private final Stripe<K, V>[] stripes;
+
+    /** The number of bits used to select a stripe */
+    private final int stripeBits;
+
+    /** Cache eviction listeners */
+    private final List<CachePolicyListener<V>> listeners = new CopyOnWriteArrayList<CachePolicyListener<V>>();
+
+
+    /**
+     * Construct a SLRU with a given maximum number of objects.
+     *
+     * @param max the maximum number of objects in the cache
+     */
+    @SuppressWarnings("unchecked")
+    public SLRU( int max )
+    {
+        if ( max <= 0 )
+        {
+            throw new IllegalArgumentException( I18n.err( I18n.ERR_736 ) );
+        }
+
+        int bits = 0;
+
+        while ( ( ( 1 << ( bits + 1 ) ) <= MAX_STRIPES ) && ( ( max >> ( bits + 1 ) ) >= MIN_STRIPE_SIZE ) )
+        {
+            bits++;
+        }
+
+        stripeBits = bits;
+        stripes = new Stripe[1 << bits];
+
+        for ( int i = 0; i < stripes.length; i++ )
+        {
+            // Spread the remainder over the first stripes
+            int size = max / stripes.length + ( i < max % stripes.length ? 1 : 0 );
+            stripes[i] = new Stripe<K, V>( size, listeners );
+        }
+    }
+
+
+    /**
+     * Place an object in the cache.
+     */
+    public void put( K key, V value ) throws CacheEvictionException
+    {
+        stripe( key ).put( key, value );
+    }
+
+
+    /**
+     * Obtain an object in the cache
+     */
+    public V get( K key )
+    {
+        return stripe( key ).get( key );
+    }
+
+
+    /**
+     * Remove an object from the cache
+     */
+    public void remove( K key )
+    {
+        stripe( key ).remove( key );
+    }
+
+
+    /**
+     * Remove all objects from the cache
+     */
+    public void removeAll()
+    {
+        for ( Stripe<K, V> stripe : stripes )
+        {
+            stripe.removeAll();
+        }
+    }
+
+
+    /**
+     * Enumerate the values in the cache. The enumeration is a snapshot : it
+     * does not reflect the changes done after this call.
+     */
+    public Enumeration<V> elements()
+    {
+        List<V> values = new ArrayList<V>();
+
+        for ( Stripe<K, V> stripe : stripes )
+        {
+            stripe.addValues( values );
+        }
+
+        return Collections.enumeration( values );
+    }
+
+
+    /**
+     * Add a listener to this cache policy
+     *
+     * @param listener Listener to add to this policy
+     */
+    public void addListener( CachePolicyListener<V> listener )
+    {
+        if ( listener == null )
+        {
+            throw new IllegalArgumentException( I18n.err( I18n.ERR_529 ) );
+        }
+
+        synchronized ( listeners )
+        {
+            if ( !listeners.contains( listener ) )
+            {
+                listeners.add( listener );
+            }
+        }
+    }
+
+
+    /**
+     * Remove a listener from this cache policy
+     *
+     * @param listener Listener to remove from this policy
+     */
+    public void removeListener( CachePolicyListener<V> listener )
+    {
+        listeners.remove( listener );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getHits()
+    {
+        long hits = 0;
+
+        for ( Stripe<K, V> stripe : stripes )
+        {
+            synchronized ( stripe )
+            {
+                hits += stripe.hits;
+            }
+        }
+
+        return hits;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getMisses()
+    {
+        long misses = 0;
+
+        for ( Stripe<K, V> stripe : stripes )
+        {
+            synchronized ( stripe )
+            {
+                misses += stripe.misses;
+            }
+        }
+
+        return misses;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getEvictions()
+    {
+        long evictions = 0;
+
+        for ( Stripe<K, V> stripe : stripes )
+        {
+            synchronized ( stripe )
+            {
+                evictions += stripe.evictions;
+            }
+        }
+
+        return evictions;
+    }
+
+
+    /**
+     * @see Object#toString()
+     */
+    public String toString()
+    {
+        return "SLRU(stripes:" + stripes.length + ", hits:" + getHits() + ", misses:" + getMisses() + ", evictions:"
+            + getEvictions() + ")";
+    }
+
+
+    /**
+     * Selects the stripe of a key. The hash code is mixed, as the record
+     * ids used as keys are mostly sequential.
+     */
+    private Stripe<K, V> stripe( K key )
+    {
+        if ( stripeBits == 0 )
+        {
+            return stripes[0];
+        }
+
+        int hash = key.hashCode() * 0x9E3779B9;
+
+        return stripes[hash >>> ( 32 - stripeBits )];
+    }
+
+
+    /**
+     * An independent SLRU, guarded by its own monitor.
+     */
+    private static class Stripe<K, V>
+    {
+        /** The cached objects */
+        private final Map<K, Node<K, V>> map = new HashMap<K, Node<K, V>>();
+
+        /** The probationary segment, from the least to the most recently used */
+        private final Node<K, V> probation = new Node<K, V>( null, null );
+
+        /** The protected segment, from the least to the most recently used */
+        private final Node<K, V> protect = new Node<K, V>( null, null );
+
+        /** The maximum number of objects in this stripe */
+        private final int max;
+
+        /** The eviction listeners of the cache */
+        private final List<CachePolicyListener<V>> listeners;
+
+        /** The maximum number of objects in the protected segment */
+        private final int maxProtected;
+
+        /** The current number of objects in the protected segment */
+        private int protectedSize;
+
+        /** The statistics */
+        private long hits;
+        private long misses;
+        private long evictions;
+
+
+        private Stripe( int max, List<CachePolicyListener<V>> listeners )
+        {
+            this.max = max;
+            this.listeners = listeners;
+            maxProtected = Math.max( 1, max * PROTECTED_PERCENTAGE / 100 );
+        }
+
+
+        private synchronized void put( K key, V value ) throws CacheEvictionException
+        {
+            Node<K, V> node = map.get( key );
+
+            if ( node != null )
+            {
+                node.value = value;
+                touch( node );
+                return;
+            }
+
+            if ( map.size() >= max )
+            {
+                evict();
+            }
+
+            node = new Node<K, V>( key, value );
+            node.linkBefore( probation );
+            map.put( key, node );
+        }
+
+
+        private synchronized V get( K key )
+        {
+            Node<K, V> node = map.get( key );
+
+            if ( node == null )
+            {
+                misses++;
+                return null;
+            }
+
+            hits++;
+            touch( node );
+
+            return node.value;
+        }
+
+
+        private synchronized void remove( K key )
+        {
+            Node<K, V> node = map.remove( key );
+
+            if ( node != null )
+            {
+                node.unlink();
+
+                if ( node.isProtected )
+                {
+                    protectedSize--;
+                }
+            }
+        }
+
+
+        private synchronized void removeAll()
+        {
+            map.clear();
+            probation.next = probation.previous = probation;
+            protect.next = protect.previous = protect;
+            protectedSize = 0;
+        }
+
+
+        private synchronized void addValues( List<V> values )
+        {
+            for ( Node<K, V> node : map.values() )
+            {
+                values.add( node.value );
+            }
+        }
+
+
+        /**
+         * Moves an accessed object to the most recently used end of the
+         * protected segment, demoting the least recently used protected
+         * object if needed.
+         */
+        private void touch( Node<K, V> node )
+        {
+            node.unlink();
+            node.linkBefore( protect );
+
+            if ( !node.isProtected )
+            {
+                node.isProtected = true;
+                protectedSize++;
+
+                if ( protectedSize > maxProtected )
+                {
+                    Node<K, V> demoted = protect.next;
+                    demoted.unlink();
+                    demoted.isProtected = false;
+                    demoted.linkBefore( probation );
+                    protectedSize--;
+                }
+            }
+        }
+
+
+        /**
+         * Evicts the least recently used probationary object, or the least
+         * recently used protected one if there is no probationary object.
+         * The listeners are notified first : if one of them fails, the
+         * stripe is left untouched.
+         */
+        private void evict() throws CacheEvictionException
+        {
+            Node<K, V> victim = ( probation.next != probation ) ? probation.next : protect.next;
+
+            for ( CachePolicyListener<V> listener : listeners )
+            {
+                listener.cacheObjectEvicted( victim.value );
+            }
+
+            victim.unlink();
+            map.remove( victim.key );
+
+            if ( victim.isProtected )
+            {
+                protectedSize--;
+            }
+
+            evictions++;
+        }
+    }
+
+
+    /**
+     * A cached object, linked in the list of its segment.
+     */
+    private static class Node<K, V>
+    {
+        private final K key;
+        private V value;
+        private boolean isProtected;
+        private Node<K, V> previous = this;
+        private Node<K, V> next = this;
+
+
+        private Node( K key, V value )
+        {
+            this.key = key;
+            this.value = value;
+        }
+
+
+        /**
+         * Inserts this node before the given one, that is at the most
+         * recently used end of a list when the given node is its head.
+         */
+        private void linkBefore( Node<K, V> head )
+        {
+            previous = head.previous;
+            next = head;
+            head.previous.next = this;
+            head.previous = this;
+        }
+
+
+        private void unlink()
+        {
+            previous.next = next;
+            next.previous = previous;
+            previous = next = this;
+        }
+    }
+}
@@ -51,11 +51,19 @@ package jdbm.recman;
 import java.io.IOException;
 
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.apache.directory.server.i18n.I18n;
 
 import jdbm.RecordManager;
+import jdbm.RecordManagerOptions;
 import jdbm.helper.Serializer;
 import jdbm.helper.DefaultSerializer;
 
@@ -68,7 +76,9 @@ import jdbm.helper.DefaultSerializer;
  *  lengths different from the original when updating.
  *  <p>
  *  Operations are synchronized, so that only one of them will happen
- *  concurrently even if you hammer away from multiple threads. Operations
+ *  concurrently even if you hammer away from multiple threads. When
+ *  concurrent reads are enabled, fetches run in parallel with each other,
+ *  but still exclude all the other operations. Operations
  *  are made atomic by keeping a transaction log which is recovered after
  *  a crash, so the operations specified by this interface all have ACID
  *  properties.
@@ -110,6 +120,15 @@ public final class BaseRecordManager
      */
     private Map<String,Long> nameDirectory;
 
+    /** The lock excluding the updates from all the other operations */
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /** The lock taken by fetches : the write lock, unless concurrent reads are enabled */
+    private volatile Lock fetchLock = lock.writeLock();
+
+    /** The group commit created from the options, closed with the record manager */
+    private GroupCommit ownGroupCommit;
+
 
     /**
      * Creates a record manager for the indicated file
@@ -119,20 +138,82 @@ public final class BaseRecordManager
      */
     public BaseRecordManager( String filename ) throws IOException
     {
-        recordFile = new RecordFile( filename );
+        this( filename, new Properties() );
+    }
+
+
+    /**
+     * Creates a record manager for the indicated file, using the block I/O
+     * strategy selected by the {@link RecordManagerOptions#BLOCK_IO} option.
+     * If the {@link RecordManagerOptions#GROUP_COMMIT_WINDOW} option is set,
+     * the transaction log is synchronized by a group commit.
+     *
+     * @param filename the name of the file, without an extension
+     * @param options the record manager options
+     * @throws IOException when the file cannot be opened or is not
+     *         a valid file content-wise.
+     * @throws IllegalArgumentException if the block I/O options are invalid
+     */
+    public BaseRecordManager( String filename, Properties options ) throws IOException
+    {
+        recordFile = new RecordFile( filename, createStorage( filename + RecordFile.extension, options ) );
         pageMgr = new PageManager( recordFile );
         physMgr = new PhysicalRowIdManager( pageMgr );
         logMgr = new LogicalRowIdManager( pageMgr );
+        
+        String window = options.getProperty( RecordManagerOptions.GROUP_COMMIT_WINDOW );
+        
+        if ( window != null )
+        {
+            long windowBytes = Long.parseLong( options.getProperty( RecordManagerOptions.GROUP_COMMIT_BYTES,
+                Long.toString( GroupCommit.DEFAULT_WINDOW_BYTES ) ) );
+            ownGroupCommit = new GroupCommit( Long.parseLong( window ), windowBytes );
+            recordFile.setGroupCommit( ownGroupCommit );
+        }
+    }
+
+
+    /**
+     * Opens the storage of the database file according to the block I/O options.
+     */
+    private static BlockStorage createStorage( String fileName, Properties options ) throws IOException
+    {
+        String value = options.getProperty( RecordManagerOptions.BLOCK_IO, RecordManagerOptions.RANDOM_ACCESS_BLOCK_IO );
+
+        if ( value.equalsIgnoreCase( RecordManagerOptions.RANDOM_ACCESS_BLOCK_IO ) )
+        {
+            return new RandomAccessBlockStorage( fileName );
+        }
+        else if ( value.equalsIgnoreCase( RecordManagerOptions.MAPPED_BLOCK_IO ) )
+        {
+            int segmentSize = Integer.parseInt( options.getProperty( RecordManagerOptions.BLOCK_IO_SEGMENT_SIZE,
+                Integer.toString( MappedBlockStorage.DEFAULT_SEGMENT_SIZE ) ) );
+
+            return new MappedBlockStorage( fileName, segmentSize );
+        }
+        else
+        {
+            throw new IllegalArgumentException( I18n.err( I18n.ERR_734, value ) );
+        }
     }
 
 
     /**
      * Get the underlying Transaction Manager
      */
-    public synchronized TransactionManager getTransactionManager() throws IOException
+    public TransactionManager getTransactionManager() throws IOException
     {
-        checkIfClosed();
-        return recordFile.getTxnMgr();
+        lock.writeLock().lock();
+        
+        try
+        {
+            checkIfClosed();
+            return recordFile.getTxnMgr();
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
     }
 
 
@@ -145,10 +226,90 @@ public final class BaseRecordManager
      *  Only call this method directly after opening the file, otherwise
      *  the results will be undefined.
      */
-    public synchronized void disableTransactions()
+    public void disableTransactions()
     {
-        checkIfClosed();
-        recordFile.disableTransactions();
+        lock.writeLock().lock();
+        
+        try
+        {
+            checkIfClosed();
+            recordFile.disableTransactions();
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+
+    /**
+     * Writes the transaction log to the file, and stops using it. The
+     * record manager can then still be read, and closed later, while its
+     * files are replaced, by a compacted copy for instance : it does not
+     * write to them anymore. No record must be written afterwards.
+     */
+    public void detachLog() throws IOException
+    {
+        lock.writeLock().lock();
+        
+        try
+        {
+            checkIfClosed();
+            recordFile.detachLog();
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+
+    /**
+     * Lets a group commit synchronize the transaction log. The commits
+     * then return once the group commit has synchronized the log, and
+     * the concurrent commits share the same synchronization. The group
+     * commit can be shared by several record managers.
+     *
+     * @param groupCommit the group commit, or null to synchronize the log
+     *        on each commit
+     */
+    public void setGroupCommit( GroupCommit groupCommit )
+    {
+        lock.writeLock().lock();
+        
+        try
+        {
+            checkIfClosed();
+            recordFile.setGroupCommit( groupCommit );
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+
+    /**
+     * Lets the fetches run concurrently. They still exclude the inserts,
+     * updates, deletes, commits and rollbacks, which are serialized.
+     *  <p>
+     *  Only call this method directly after opening the file, otherwise
+     *  the results will be undefined.
+     */
+    public void enableConcurrentReads()
+    {
+        lock.writeLock().lock();
+        
+        try
+        {
+            checkIfClosed();
+            recordFile.enableConcurrentReads();
+            fetchLock = lock.readLock();
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
     }
 
     
@@ -157,15 +318,30 @@ public final class BaseRecordManager
      *
      * @throws IOException when one of the underlying I/O operations fails.
      */
-    public synchronized void close() throws IOException
+    public void close() throws IOException
     {
-        checkIfClosed();
-
-        pageMgr.close();
-        pageMgr = null;
-
-        recordFile.close();
-        recordFile = null;
+        lock.writeLock().lock();
+        
+        try
+        {
+            checkIfClosed();
+    
+            pageMgr.close();
+            pageMgr = null;
+    
+            recordFile.close();
+            recordFile = null;
+            
+            if ( ownGroupCommit != null )
+            {
+                ownGroupCommit.close();
+                ownGroupCommit = null;
+            }
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
     }
 
 
@@ -190,17 +366,27 @@ public final class BaseRecordManager
      * @return the rowid for the new record.
      * @throws IOException when one of the underlying I/O operations fails.
      */
-    public synchronized long insert( Object obj, Serializer serializer ) throws IOException
+    public long insert( Object obj, Serializer serializer ) throws IOException
     {
         byte[]    data;
         long      recid;
         Location  physRowId;
         
-        checkIfClosed();
-
         data = serializer.serialize( obj );
-        physRowId = physMgr.insert( data, 0, data.length );
-        recid = logMgr.insert( physRowId ).toLong();
+        
+        lock.writeLock().lock();
+        
+        try
+        {
+            checkIfClosed();
+    
+            physRowId = physMgr.insert( data, 0, data.length );
+            recid = logMgr.insert( physRowId ).toLong();
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
      
         if ( DEBUG ) 
         {
@@ -217,10 +403,8 @@ public final class BaseRecordManager
      * @param recid the rowid for the record that should be deleted.
      * @throws IOException when one of the underlying I/O operations fails.
      */
-    public synchronized void delete( long recid ) throws IOException
+    public void delete( long recid ) throws IOException
     {
-        checkIfClosed();
-        
         if ( recid <= 0 ) 
         {
             throw new IllegalArgumentException( I18n.err( I18n.ERR_536, recid ) );
@@ -231,10 +415,21 @@ public final class BaseRecordManager
             System.out.println( "BaseRecordManager.delete() recid " + recid ) ;
         }
 
-        Location logRowId = new Location( recid );
-        Location physRowId = logMgr.fetch( logRowId );
-        physMgr.delete( physRowId );
-        logMgr.delete( logRowId );
+        lock.writeLock().lock();
+        
+        try
+        {
+            checkIfClosed();
+            
+            Location logRowId = new Location( recid );
+            Location physRowId = logMgr.fetch( logRowId );
+            physMgr.delete( physRowId );
+            logMgr.delete( logRowId );
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
     }
 
 
@@ -259,18 +454,13 @@ public final class BaseRecordManager
      * @param serializer a custom serializer
      * @throws IOException when one of the underlying I/O operations fails.
      */
-    public synchronized void update( long recid, Object obj, Serializer serializer ) throws IOException
+    public void update( long recid, Object obj, Serializer serializer ) throws IOException
     {
-        checkIfClosed();
-
         if ( recid <= 0 ) 
         {
             throw new IllegalArgumentException( I18n.err( I18n.ERR_536, recid ) );
         }
 
-        Location logRecid = new Location( recid );
-        Location physRecid = logMgr.fetch( logRecid );
-
         byte[] data = serializer.serialize( obj );
         
         if ( DEBUG ) 
@@ -278,11 +468,25 @@ public final class BaseRecordManager
             System.out.println( "BaseRecordManager.update() recid " + recid + " length " + data.length ) ;
         }
         
-        Location newRecid = physMgr.update( physRecid, data, 0, data.length );
+        lock.writeLock().lock();
         
-        if ( ! newRecid.equals( physRecid ) ) 
+        try
         {
-            logMgr.update( logRecid, newRecid );
+            checkIfClosed();
+    
+            Location logRecid = new Location( recid );
+            Location physRecid = logMgr.fetch( logRecid );
+    
+            Location newRecid = physMgr.update( physRecid, data, 0, data.length );
+            
+            if ( ! newRecid.equals( physRecid ) ) 
+            {
+                logMgr.update( logRecid, newRecid );
+            }
+        }
+        finally
+        {
+            lock.writeLock().unlock();
         }
     }
 
@@ -308,19 +512,29 @@ public final class BaseRecordManager
      * @return the object contained in the record.
      * @throws IOException when one of the underlying I/O operations fails.
      */
-    public synchronized Object fetch( long recid, Serializer serializer )
+    public Object fetch( long recid, Serializer serializer )
         throws IOException
     {
         byte[] data;
 
-        checkIfClosed();
-       
         if ( recid <= 0 ) 
         {
             throw new IllegalArgumentException( I18n.err( I18n.ERR_536, recid ) );
         }
         
-        data = physMgr.fetch( logMgr.fetch( new Location( recid ) ) );
+        Lock fetchLock = this.fetchLock;
+        fetchLock.lock();
+        
+        try
+        {
+            checkIfClosed();
+           
+            data = physMgr.fetch( logMgr.fetch( new Location( recid ) ) );
+        }
+        finally
+        {
+            fetchLock.unlock();
+        }
         
         if ( DEBUG ) 
         {
@@ -347,11 +561,21 @@ public final class BaseRecordManager
      *
      *  @see #getRootCount
      */
-    public synchronized long getRoot( int id ) throws IOException
+    public long getRoot( int id ) throws IOException
     {
-        checkIfClosed();
-
-        return pageMgr.getFileHeader().getRoot( id );
+        Lock fetchLock = this.fetchLock;
+        fetchLock.lock();
+        
+        try
+        {
+            checkIfClosed();
+    
+            return pageMgr.getFileHeader().getRoot( id );
+        }
+        finally
+        {
+            fetchLock.unlock();
+        }
     }
 
 
@@ -360,11 +584,20 @@ public final class BaseRecordManager
      *
      *  @see #getRootCount
      */
-    public synchronized void setRoot( int id, long rowid ) throws IOException
+    public void setRoot( int id, long rowid ) throws IOException
     {
-        checkIfClosed();
-
-        pageMgr.getFileHeader().setRoot( id, rowid );
+        lock.writeLock().lock();
+        
+        try
+        {
+            checkIfClosed();
+    
+            pageMgr.getFileHeader().setRoot( id, rowid );
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
     }
 
 
@@ -388,6 +621,27 @@ public final class BaseRecordManager
     }
     
 
+    /**
+     * Get the names of all the named objects.
+     */
+    public Set<String> getNames() throws IOException
+    {
+        // The name directory may be created, so the write lock is taken
+        lock.writeLock().lock();
+
+        try
+        {
+            checkIfClosed();
+
+            return new HashSet<String>( getNameDirectory().keySet() );
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+
     /**
      * Set the record id of a named object.
      */
@@ -411,23 +665,78 @@ public final class BaseRecordManager
     /**
      * Commit (make persistent) all changes since beginning of transaction.
      */
-    public synchronized void commit()
+    public void commit()
         throws IOException
     {
-        checkIfClosed();
+        // Wait out of the lock, so that the concurrent commits can be
+        // synchronized together
+        waitUntilDurable( commitAsync() );
+    }
+
 
-        pageMgr.commit();
+    /**
+     * Commits all changes since beginning of transaction, without waiting
+     * for the transaction log to be synchronized by the group commit.
+     *
+     * @return a future telling when the changes are durable. It is already
+     *         done when no group commit is used.
+     * @throws IOException when one of the underlying I/O operations fails.
+     */
+    public Future<Void> commitAsync() throws IOException
+    {
+        lock.writeLock().lock();
+        
+        try
+        {
+            checkIfClosed();
+    
+            return pageMgr.commit();
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
     }
 
 
     /**
-     * Rollback (cancel) all changes since beginning of transaction.
+     * Waits for the future returned by {@link #commitAsync()}.
      */
-    public synchronized void rollback() throws IOException
+    static void waitUntilDurable( Future<Void> durable ) throws IOException
     {
-        checkIfClosed();
+        try
+        {
+            durable.get();
+        }
+        catch ( InterruptedException ie )
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException( ie.getMessage() );
+        }
+        catch ( ExecutionException ee )
+        {
+            throw ( IOException ) ee.getCause();
+        }
+    }
 
-        pageMgr.rollback();
+
+    /**
+     * Rollback (cancel) all changes since beginning of transaction.
+     */
+    public void rollback() throws IOException
+    {
+        lock.writeLock().lock();
+        
+        try
+        {
+            checkIfClosed();
+    
+            pageMgr.rollback();
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
     }
 
 
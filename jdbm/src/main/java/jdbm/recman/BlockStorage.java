@@ -0,0 +1,78 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package jdbm.recman;
+
+
+import java.io.IOException;
+
+
+/**
+ * The physical storage behind a {@link RecordFile}. The storage is seen as
+ * a flat sequence of bytes which is always read and written by whole blocks
+ * of {@link RecordFile#BLOCK_SIZE} bytes, at offsets aligned on the block size.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+interface BlockStorage
+{
+    /**
+     * @return the current length of the storage, in bytes
+     * @throws IOException if the length can't be read
+     */
+    long length() throws IOException;
+
+
+    /**
+     * Reads a block from the storage. If the storage ends before the block
+     * is completely read, the remaining bytes are zeroed.
+     *
+     * @param offset the position of the block in the storage
+     * @param buffer the buffer to fill
+     * @param nBytes the number of bytes to read
+     * @throws IOException if the block can't be read
+     */
+    void read( long offset, byte[] buffer, int nBytes ) throws IOException;
+
+
+    /**
+     * Writes a block to the storage, extending it if needed.
+     *
+     * @param offset the position of the block in the storage
+     * @param data the block content
+     * @throws IOException if the block can't be written
+     */
+    void write( long offset, byte[] data ) throws IOException;
+
+
+    /**
+     * Forces all the written blocks to the disk.
+     *
+     * @throws IOException if the storage can't be synchronized
+     */
+    void sync() throws IOException;
+
+
+    /**
+     * Closes the storage. It can't be used afterward.
+     *
+     * @throws IOException if the storage can't be closed
+     */
+    void close() throws IOException;
+}
@@ -52,18 +52,26 @@ import jdbm.RecordManager;
 import jdbm.helper.CacheEvictionException;
 import jdbm.helper.CachePolicy;
 import jdbm.helper.CachePolicyListener;
+import jdbm.helper.ConcurrentCachePolicy;
 import jdbm.helper.DefaultSerializer;
 import jdbm.helper.Serializer;
 import jdbm.helper.WrappedRuntimeException;
 
 import java.io.IOException;
 import java.util.Enumeration;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.apache.directory.server.i18n.I18n;
 
 
 /**
  *  A RecordManager wrapping and caching another RecordManager.
+ *  <p>
+ *  Operations are serialized, unless concurrent reads are enabled : the
+ *  fetches then run in parallel with each other, and only exclude the
+ *  other operations.
  *
  * @author <a href="mailto:boisvert@intalio.com">Alex Boisvert</a>
  * @author <a href="cg@cdegroot.com">Cees de Groot</a>
@@ -76,6 +84,15 @@ public class CacheRecordManager implements RecordManager
     /** Cache for underlying RecordManager */
     protected CachePolicy<Long, CacheEntry> cache;
 
+    /** The lock excluding the updates from all the other operations */
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /** The lock taken by fetches : the write lock, unless concurrent reads are enabled */
+    private volatile Lock fetchLock = lock.writeLock();
+
+    /** Tells if the cache policy has to be synchronized by the concurrent fetches */
+    private final boolean synchronizedCache;
+
 
     /**
      * Construct a CacheRecordManager wrapping another RecordManager and
@@ -99,6 +116,32 @@ public class CacheRecordManager implements RecordManager
         this.recordManager = recordManager;
         this.cache = cache;
         this.cache.addListener( new CacheListener() );
+        synchronizedCache = !( cache instanceof ConcurrentCachePolicy );
+    }
+
+    
+    /**
+     * Lets the fetches run concurrently. They still exclude the inserts,
+     * updates, deletes, commits and rollbacks, which are serialized. The
+     * wrapped record manager should allow concurrent reads too, otherwise
+     * the fetches of the records which are not cached are serialized.
+     * <p>
+     * Only call this method directly after creating the record manager,
+     * otherwise the results will be undefined.
+     */
+    public void enableConcurrentReads()
+    {
+        lock.writeLock().lock();
+        
+        try
+        {
+            checkIfClosed();
+            fetchLock = lock.readLock();
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
     }
 
     
@@ -147,22 +190,31 @@ public class CacheRecordManager implements RecordManager
      * @return the rowid for the new record.
      * @throws IOException when one of the underlying I/O operations fails.
      */
-    public synchronized long insert( Object obj, Serializer serializer ) throws IOException
+    public long insert( Object obj, Serializer serializer ) throws IOException
     {
-        checkIfClosed();
-
-        long recid = recordManager.insert( obj, serializer );
+        lock.writeLock().lock();
         
-        try 
+        try
         {
-            cache.put( recid, new CacheEntry( recid, obj, serializer, false ) );
-        } 
-        catch ( CacheEvictionException except ) 
+            checkIfClosed();
+    
+            long recid = recordManager.insert( obj, serializer );
+            
+            try 
+            {
+                cache.put( recid, new CacheEntry( recid, obj, serializer, false ) );
+            } 
+            catch ( CacheEvictionException except ) 
+            {
+                throw new WrappedRuntimeException( except );
+            }
+            
+            return recid;
+        }
+        finally
         {
-            throw new WrappedRuntimeException( except );
+            lock.writeLock().unlock();
         }
-        
-        return recid;
     }
 
 
@@ -172,15 +224,24 @@ public class CacheRecordManager implements RecordManager
      * @param recid the rowid for the record that should be deleted.
      * @throws IOException when one of the underlying I/O operations fails.
      */
-    public synchronized void delete( long recid ) throws IOException
+    public void delete( long recid ) throws IOException
     {
-        checkIfClosed();
-
-        // Remove the entry from the underlying storage
-        recordManager.delete( recid );
+        lock.writeLock().lock();
         
-        // And now update the cache
-        cache.remove( recid );
+        try
+        {
+            checkIfClosed();
+    
+            // Remove the entry from the underlying storage
+            recordManager.delete( recid );
+            
+            // And now update the cache
+            cache.remove( recid );
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
     }
 
 
@@ -205,11 +266,14 @@ public class CacheRecordManager implements RecordManager
      * @param serializer a custom serializer
      * @throws IOException when one of the underlying I/O operations fails.
      */
-    public synchronized void update( long recid, Object obj, Serializer serializer ) throws IOException
+    public void update( long recid, Object obj, Serializer serializer ) throws IOException
     {
-        checkIfClosed();
-
-        try {
+        lock.writeLock().lock();
+        
+        try 
+        {
+            checkIfClosed();
+    
             CacheEntry entry = cache.get( recid );
             
             if ( entry != null ) 
@@ -228,6 +292,10 @@ public class CacheRecordManager implements RecordManager
         {
             throw new IOException( except.getLocalizedMessage() );
         }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
     }
 
 
@@ -252,26 +320,39 @@ public class CacheRecordManager implements RecordManager
      * @return the object contained in the record.
      * @throws IOException when one of the underlying I/O operations fails.
      */
-    public synchronized Object fetch( long recid, Serializer serializer ) throws IOException
+    public Object fetch( long recid, Serializer serializer ) throws IOException
     {
-        checkIfClosed();
-
-        CacheEntry entry = cache.get( recid );
+        CacheEntry entry;
+        Lock fetchLock = this.fetchLock;
+        fetchLock.lock();
         
-        if ( entry == null ) 
+        try
         {
-            entry = new CacheEntry( recid, null, serializer, false );
-            entry.obj = recordManager.fetch( recid, serializer );
+            checkIfClosed();
+    
+            // The cache is shared by the concurrent readers, if any. The
+            // record itself is fetched out of the cache monitor.
+            entry = getCached( recid );
             
-            try 
+            if ( entry == null ) 
             {
-                cache.put( recid, entry );
-            } 
-            catch ( CacheEvictionException except ) 
-            {
-                throw new WrappedRuntimeException( except );
+                entry = new CacheEntry( recid, null, serializer, false );
+                entry.obj = recordManager.fetch( recid, serializer );
+                
+                try 
+                {
+                    putCached( recid, entry );
+                } 
+                catch ( CacheEvictionException except ) 
+                {
+                    throw new WrappedRuntimeException( except );
+                }
             }
         }
+        finally
+        {
+            fetchLock.unlock();
+        }
         
         if ( entry.obj instanceof byte[] )
         {
@@ -289,14 +370,23 @@ public class CacheRecordManager implements RecordManager
      *
      * @throws IOException when one of the underlying I/O operations fails.
      */
-    public synchronized void close() throws IOException
+    public void close() throws IOException
     {
-        checkIfClosed();
-
-        updateCacheEntries();
-        recordManager.close();
-        recordManager = null;
-        cache = null;
+        lock.writeLock().lock();
+        
+        try
+        {
+            checkIfClosed();
+    
+            updateCacheEntries();
+            recordManager.close();
+            recordManager = null;
+            cache = null;
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
     }
 
 
@@ -306,11 +396,21 @@ public class CacheRecordManager implements RecordManager
      * other rowids. Root rowids are useful for bootstrapping access to
      * a set of data.
      */
-    public synchronized int getRootCount()
+    public int getRootCount()
     {
-        checkIfClosed();
-
-        return recordManager.getRootCount();
+        Lock fetchLock = this.fetchLock;
+        fetchLock.lock();
+        
+        try
+        {
+            checkIfClosed();
+    
+            return recordManager.getRootCount();
+        }
+        finally
+        {
+            fetchLock.unlock();
+        }
     }
 
 
@@ -319,11 +419,21 @@ public class CacheRecordManager implements RecordManager
      *
      * @see #getRootCount
      */
-    public synchronized long getRoot( int id ) throws IOException
+    public long getRoot( int id ) throws IOException
     {
-        checkIfClosed();
-
-        return recordManager.getRoot( id );
+        Lock fetchLock = this.fetchLock;
+        fetchLock.lock();
+        
+        try
+        {
+            checkIfClosed();
+    
+            return recordManager.getRoot( id );
+        }
+        finally
+        {
+            fetchLock.unlock();
+        }
     }
 
 
@@ -332,37 +442,89 @@ public class CacheRecordManager implements RecordManager
      *
      * @see #getRootCount
      */
-    public synchronized void setRoot( int id, long rowid ) throws IOException
+    public void setRoot( int id, long rowid ) throws IOException
     {
-        checkIfClosed();
-
-        recordManager.setRoot( id, rowid );
+        lock.writeLock().lock();
+        
+        try
+        {
+            checkIfClosed();
+    
+            recordManager.setRoot( id, rowid );
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
     }
 
 
     /**
      * Commit (make persistent) all changes since beginning of transaction.
      */
-    public synchronized void commit() throws IOException
+    public void commit() throws IOException
     {
-        checkIfClosed();
-        updateCacheEntries();
-        recordManager.commit();
+        // Wait out of the lock, so that the concurrent commits can be
+        // synchronized together by a group commit
+        BaseRecordManager.waitUntilDurable( commitAsync() );
     }
 
 
     /**
-     * Rollback (cancel) all changes since beginning of transaction.
+     * Commits all changes since beginning of transaction, without waiting
+     * for the transaction log to be synchronized by the group commit of
+     * the underlying {@link BaseRecordManager}.
+     *
+     * @return a future telling when the changes are durable. It is already
+     *         done when no group commit is used.
+     * @throws IOException when one of the underlying I/O operations fails.
      */
-    public synchronized void rollback() throws IOException
+    public Future<Void> commitAsync() throws IOException
     {
-        checkIfClosed();
+        lock.writeLock().lock();
+        
+        try
+        {
+            checkIfClosed();
+            updateCacheEntries();
+            
+            if ( recordManager instanceof BaseRecordManager )
+            {
+                return ( ( BaseRecordManager ) recordManager ).commitAsync();
+            }
+
+            recordManager.commit();
+
+            return GroupCommit.DURABLE;
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
 
-        recordManager.rollback();
 
-        // discard all cache entries since we don't know which entries
-        // where part of the transaction
-        cache.removeAll();
+    /**
+     * Rollback (cancel) all changes since beginning of transaction.
+     */
+    public void rollback() throws IOException
+    {
+        lock.writeLock().lock();
+        
+        try
+        {
+            checkIfClosed();
+    
+            recordManager.rollback();
+    
+            // discard all cache entries since we don't know which entries
+            // where part of the transaction
+            cache.removeAll();
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
     }
 
 
@@ -370,22 +532,76 @@ public class CacheRecordManager implements RecordManager
      * Obtain the record id of a named object. Returns 0 if named object
      * doesn't exist.
      */
-    public synchronized long getNamedObject( String name ) throws IOException
+    public long getNamedObject( String name ) throws IOException
     {
-        checkIfClosed();
-
-        return recordManager.getNamedObject( name );
+        lock.writeLock().lock();
+        
+        try
+        {
+            checkIfClosed();
+    
+            return recordManager.getNamedObject( name );
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
     }
 
 
     /**
      * Set the record id of a named object.
      */
-    public synchronized void setNamedObject( String name, long recid ) throws IOException
+    public void setNamedObject( String name, long recid ) throws IOException
+    {
+        lock.writeLock().lock();
+        
+        try
+        {
+            checkIfClosed();
+    
+            recordManager.setNamedObject( name, recid );
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+
+    /**
+     * Gets an entry from the cache during a fetch. The cache policies which
+     * are not thread-safe are synchronized on, as the fetches may be concurrent.
+     */
+    private CacheEntry getCached( long recid )
+    {
+        if ( !synchronizedCache )
+        {
+            return cache.get( recid );
+        }
+
+        synchronized ( cache )
+        {
+            return cache.get( recid );
+        }
+    }
+
+
+    /**
+     * Puts an entry in the cache during a fetch.
+     */
+    private void putCached( long recid, CacheEntry entry ) throws CacheEvictionException
     {
-        checkIfClosed();
+        if ( !synchronizedCache )
+        {
+            cache.put( recid, entry );
+            return;
+        }
 
-        recordManager.setNamedObject( name, recid );
+        synchronized ( cache )
+        {
+            cache.put( recid, entry );
+        }
     }
 
 
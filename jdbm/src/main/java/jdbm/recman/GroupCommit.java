@@ -0,0 +1,329 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package jdbm.recman;
+
+
+import java.io.IOException;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.directory.server.i18n.I18n;
+
+
+/**
+ * Coalesces the synchronizations of the transaction logs. When a transaction
+ * manager uses a group commit, its commits are written to the log but not
+ * synchronized with the disk. The log is synchronized by a background
+ * thread, once for all the commits done during a time window, or as soon as
+ * the commits have written a given number of bytes. The commits return a
+ * {@link Future} telling when they are durable.
+ * <p>
+ * A group commit can be shared by several record managers : the logs of all
+ * the commits of a window are then synchronized together.
+ * <p>
+ * As the log is always synchronized before the database file is written,
+ * the database file stays consistent after a crash. Only the commits which
+ * were not acknowledged yet can be lost.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class GroupCommit
+{
+    /** The default number of bytes written in a window */
+    public static final long DEFAULT_WINDOW_BYTES = 1024 * 1024;
+
+    /** A future for the commits which are already durable */
+    static final Future<Void> DURABLE = new Batch( true );
+
+    /** The maximum time a commit waits for the synchronization, in milliseconds */
+    private final long windowMillis;
+
+    /** The number of bytes which triggers the synchronization before the end of the window */
+    private final long windowBytes;
+
+    /** The logs written since the last synchronization */
+    private Set<TransactionManager> pending = new LinkedHashSet<TransactionManager>();
+
+    /** The number of bytes written since the last synchronization */
+    private long pendingBytes;
+
+    /** The time of the first commit of the window, in nanoseconds */
+    private long windowStart;
+
+    /** The future of the commits of the current window */
+    private Batch batch = new Batch( false );
+
+    /** Tells if the group commit has been closed */
+    private boolean closed;
+
+    /** The thread synchronizing the logs */
+    private final Thread syncer;
+
+
+    /**
+     * Creates a group commit synchronizing the logs at least every
+     * <code>windowMillis</code> milliseconds.
+     *
+     * @param windowMillis the maximum time a commit waits for the synchronization
+     */
+    public GroupCommit( long windowMillis )
+    {
+        this( windowMillis, DEFAULT_WINDOW_BYTES );
+    }
+
+
+    /**
+     * Creates a group commit synchronizing the logs at least every
+     * <code>windowMillis</code> milliseconds, or when the commits have
+     * written <code>windowBytes</code> bytes.
+     *
+     * @param windowMillis the maximum time a commit waits for the synchronization
+     * @param windowBytes the number of bytes which triggers the synchronization
+     */
+    public GroupCommit( long windowMillis, long windowBytes )
+    {
+        if ( windowMillis <= 0 || windowBytes <= 0 )
+        {
+            throw new IllegalArgumentException( I18n.err( I18n.ERR_737, windowMillis, windowBytes ) );
+        }
+
+        this.windowMillis = windowMillis;
+        this.windowBytes = windowBytes;
+
+        syncer = new Thread( "jdbm-group-commit" )
+        {
+            public void run()
+            {
+                synchronizeLogs();
+            }
+        };
+
+        syncer.setDaemon( true );
+        syncer.start();
+    }
+
+
+    /**
+     * Registers a commit which has been written to a log.
+     *
+     * @param txnMgr the transaction manager of the log
+     * @param bytes the number of bytes written
+     * @return a future telling when the commit is durable
+     */
+    Future<Void> add( TransactionManager txnMgr, long bytes ) throws IOException
+    {
+        synchronized ( this )
+        {
+            if ( !closed )
+            {
+                if ( pending.isEmpty() )
+                {
+                    windowStart = System.nanoTime();
+                    notifyAll();
+                }
+
+                pending.add( txnMgr );
+                pendingBytes += bytes;
+
+                if ( pendingBytes >= windowBytes )
+                {
+                    notifyAll();
+                }
+
+                return batch;
+            }
+        }
+
+        // Nobody will synchronize the log anymore
+        txnMgr.synchronizeLogFile();
+
+        return DURABLE;
+    }
+
+
+    /**
+     * Synchronizes the pending logs, and stops the background thread. The
+     * following commits synchronize their log themselves.
+     */
+    public void close() throws IOException
+    {
+        synchronized ( this )
+        {
+            closed = true;
+            notifyAll();
+        }
+
+        try
+        {
+            syncer.join();
+        }
+        catch ( InterruptedException ie )
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException( ie.getMessage() );
+        }
+    }
+
+
+    /**
+     * The loop of the background thread.
+     */
+    private void synchronizeLogs()
+    {
+        while ( true )
+        {
+            Set<TransactionManager> logs;
+            Batch synchronizedBatch;
+
+            synchronized ( this )
+            {
+                try
+                {
+                    while ( pending.isEmpty() && !closed )
+                    {
+                        wait();
+                    }
+
+                    long remaining = windowMillis - ( System.nanoTime() - windowStart ) / 1000000L;
+
+                    while ( !closed && pendingBytes < windowBytes && remaining > 0 )
+                    {
+                        wait( remaining );
+                        remaining = windowMillis - ( System.nanoTime() - windowStart ) / 1000000L;
+                    }
+                }
+                catch ( InterruptedException ie )
+                {
+                    closed = true;
+                }
+
+                if ( pending.isEmpty() )
+                {
+                    return;
+                }
+
+                logs = pending;
+                synchronizedBatch = batch;
+                pending = new LinkedHashSet<TransactionManager>();
+                pendingBytes = 0;
+                batch = new Batch( false );
+            }
+
+            IOException failure = null;
+
+            for ( TransactionManager txnMgr : logs )
+            {
+                try
+                {
+                    txnMgr.synchronizeLogFile();
+                }
+                catch ( IOException ioe )
+                {
+                    if ( failure == null )
+                    {
+                        failure = ioe;
+                    }
+                }
+            }
+
+            synchronizedBatch.done( failure );
+        }
+    }
+
+
+    /**
+     * The future of the commits synchronized together.
+     */
+    private static class Batch implements Future<Void>
+    {
+        private final CountDownLatch latch = new CountDownLatch( 1 );
+        private volatile IOException failure;
+
+
+        private Batch( boolean done )
+        {
+            if ( done )
+            {
+                latch.countDown();
+            }
+        }
+
+
+        private void done( IOException failure )
+        {
+            this.failure = failure;
+            latch.countDown();
+        }
+
+
+        public boolean cancel( boolean mayInterruptIfRunning )
+        {
+            return false;
+        }
+
+
+        public boolean isCancelled()
+        {
+            return false;
+        }
+
+
+        public boolean isDone()
+        {
+            return latch.getCount() == 0;
+        }
+
+
+        public Void get() throws InterruptedException, ExecutionException
+        {
+            latch.await();
+
+            return report();
+        }
+
+
+        public Void get( long timeout, TimeUnit unit ) throws InterruptedException, ExecutionException,
+            TimeoutException
+        {
+            if ( !latch.await( timeout, unit ) )
+            {
+                throw new TimeoutException();
+            }
+
+            return report();
+        }
+
+
+        private Void report() throws ExecutionException
+        {
+            if ( failure != null )
+            {
+                throw new ExecutionException( failure );
+            }
+
+            return null;
+        }
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package jdbm.recman;
+
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.directory.server.i18n.I18n;
+
+
+/**
+ * A {@link BlockStorage} which memory-maps the file in fixed size segments.
+ * A block miss is then served by a copy from the mapping instead of a seek
+ * and a read system call.
+ * <p>
+ * The segments are mapped lazily, the first time a block they contain is
+ * accessed. The last segment is only mapped up to the end of the file, and
+ * is remapped with a larger size when the file grows. The file is extended
+ * by chunks of {@link #GROWTH_SIZE} bytes to limit the number of remappings,
+ * and is truncated back to its real length when the storage is closed.
+ * <p>
+ * The blocks are still copied to and from the {@link BlockIo} arrays : the
+ * transaction log relies on the fact that modified blocks don't reach the
+ * data file before they are committed.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+final class MappedBlockStorage implements BlockStorage
+{
+    /** The default size of a mapped segment : 64 MB */
+    static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    /** The minimal number of bytes the file grows by : 1 MB */
+    static final int GROWTH_SIZE = 128 * RecordFile.BLOCK_SIZE;
+
+    /** The underlying file */
+    private final RandomAccessFile file;
+
+    /** The channel used to map the file */
+    private final FileChannel channel;
+
+    /** The size of a mapped segment */
+    private final int segmentSize;
+
+    /** The mapped segments. A null element is a segment not yet mapped */
+    private final List<MappedByteBuffer> segments = new ArrayList<MappedByteBuffer>();
+
+    /** The length of the data written in the file */
+    private long length;
+
+    /** The physical size of the file, which may be bigger than its length */
+    private long capacity;
+
+
+    /**
+     * Opens the given file in read/write mode, creating it if needed.
+     *
+     * @param fileName the full name of the file
+     * @param segmentSize the size of a mapped segment, a multiple of the block size
+     * @throws IOException if the file can't be opened
+     */
+    MappedBlockStorage( String fileName, int segmentSize ) throws IOException
+    {
+        if ( ( segmentSize <= 0 ) || ( segmentSize % RecordFile.BLOCK_SIZE != 0 ) )
+        {
+            throw new IllegalArgumentException( I18n.err( I18n.ERR_735, segmentSize, RecordFile.BLOCK_SIZE ) );
+        }
+
+        this.segmentSize = segmentSize;
+        file = new RandomAccessFile( fileName, "rw" );
+        channel = file.getChannel();
+        length = channel.size();
+        capacity = length;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public long length()
+    {
+        return length;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void read( long offset, byte[] buffer, int nBytes ) throws IOException
+    {
+        int available = ( int ) Math.max( 0, Math.min( nBytes, length - offset ) );
+
+        if ( available > 0 )
+        {
+            ByteBuffer view = map( offset, available ).duplicate();
+            view.position( ( int ) ( offset % segmentSize ) );
+            view.get( buffer, 0, available );
+        }
+
+        if ( available < nBytes )
+        {
+            System.arraycopy( RecordFile.cleanData, 0, buffer, available, nBytes - available );
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void write( long offset, byte[] data ) throws IOException
+    {
+        ByteBuffer view = map( offset, data.length ).duplicate();
+        view.position( ( int ) ( offset % segmentSize ) );
+        view.put( data );
+
+        length = Math.max( length, offset + data.length );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void sync() throws IOException
+    {
+        for ( MappedByteBuffer segment : segments )
+        {
+            if ( segment != null )
+            {
+                segment.force();
+            }
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void close() throws IOException
+    {
+        segments.clear();
+
+        if ( capacity > length )
+        {
+            try
+            {
+                channel.truncate( length );
+            }
+            catch ( IOException ioe )
+            {
+                // Some platforms don't allow to truncate a file which is
+                // still mapped. The padding is only made of clean blocks,
+                // so we can safely keep it.
+            }
+        }
+
+        channel.close();
+        file.close();
+    }
+
+
+    /**
+     * Gets the segment containing the given range, mapping or remapping it
+     * if it does not cover the range yet.
+     *
+     * @param offset the start of the range
+     * @param nBytes the size of the range, which must fit in a single segment
+     * @return the mapped segment
+     * @throws IOException if the segment can't be mapped
+     */
+    private MappedByteBuffer map( long offset, int nBytes ) throws IOException
+    {
+        int index = ( int ) ( offset / segmentSize );
+        long segmentStart = ( long ) index * segmentSize;
+        int needed = ( int ) ( offset - segmentStart ) + nBytes;
+
+        while ( segments.size() <= index )
+        {
+            segments.add( null );
+        }
+
+        MappedByteBuffer segment = segments.get( index );
+
+        if ( ( segment != null ) && ( segment.capacity() >= needed ) )
+        {
+            return segment;
+        }
+
+        // Map the whole segment if the file is big enough, otherwise grow the
+        // file by a few blocks : mapping past the end of a file extends it.
+        long available = Math.max( 0, capacity - segmentStart );
+        long grown = ( ( needed + GROWTH_SIZE - 1 ) / GROWTH_SIZE ) * GROWTH_SIZE;
+        int size = ( int ) Math.min( segmentSize, Math.max( available, grown ) );
+
+        segment = channel.map( FileChannel.MapMode.READ_WRITE, segmentStart, size );
+        segments.set( index, segment );
+        capacity = Math.max( capacity, segmentStart + size );
+
+        return segment;
+    }
+}
@@ -48,6 +48,7 @@ package jdbm.recman;
 
 
 import java.io.*;
+import java.util.concurrent.Future;
 
 import org.apache.directory.server.i18n.I18n;
 
@@ -280,16 +281,20 @@ final class PageManager
      * Commit all pending (in-memory) data by flushing the page manager.
      * This forces a flush of all outstanding blocks (this is an implicit
      * {@link RecordFile#commit} as well).
+     *
+     * @return a future telling when the changes are durable
      */
-    void commit() throws IOException 
+    Future<Void> commit() throws IOException 
     {
         // write the header out
         recordFile.release( headerBuf );
-        recordFile.commit();
+        Future<Void> durable = recordFile.commit();
 
         // and obtain it again
         headerBuf = recordFile.get( 0 );
         header = new FileHeader( headerBuf, false );
+        
+        return durable;
     }
 
     
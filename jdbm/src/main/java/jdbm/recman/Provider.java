@@ -58,6 +58,7 @@ import jdbm.RecordManagerOptions;
 import jdbm.RecordManagerProvider;
 
 import jdbm.helper.MRU;
+import jdbm.helper.SLRU;
 
 /**
  * Provider of the default RecordManager implementation.
@@ -82,8 +83,9 @@ public final class Provider implements RecordManagerProvider
         RecordManager  recman;
         String         value;
         int            cacheSize;
+        boolean        concurrentReads;
 
-        recman = new BaseRecordManager( name );
+        recman = new BaseRecordManager( name, options );
 
         value = options.getProperty( RecordManagerOptions.DISABLE_TRANSACTIONS, "false" );
         
@@ -92,6 +94,14 @@ public final class Provider implements RecordManagerProvider
             ( ( BaseRecordManager ) recman ).disableTransactions();
         }
 
+        value = options.getProperty( RecordManagerOptions.CONCURRENT_READS, "false" );
+        concurrentReads = value.equalsIgnoreCase( "TRUE" );
+        
+        if ( concurrentReads ) 
+        {
+            ( ( BaseRecordManager ) recman ).enableConcurrentReads();
+        }
+
         value = options.getProperty( RecordManagerOptions.CACHE_SIZE, "1000" );
         cacheSize = Integer.parseInt( value );
 
@@ -101,6 +111,21 @@ public final class Provider implements RecordManagerProvider
         {
             MRU cache = new MRU( cacheSize );
             recman = new CacheRecordManager( recman, cache );
+            
+            if ( concurrentReads )
+            {
+                ( ( CacheRecordManager ) recman ).enableConcurrentReads();
+            }
+        } 
+        else if ( value.equalsIgnoreCase( RecordManagerOptions.SCAN_RESISTANT_CACHE ) ) 
+        {
+            SLRU cache = new SLRU( cacheSize );
+            recman = new CacheRecordManager( recman, cache );
+            
+            if ( concurrentReads )
+            {
+                ( ( CacheRecordManager ) recman ).enableConcurrentReads();
+            }
         } 
         else if ( value.equalsIgnoreCase( RecordManagerOptions.SOFT_REF_CACHE ) ) 
         {
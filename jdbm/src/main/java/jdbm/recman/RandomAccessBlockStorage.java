@@ -0,0 +1,111 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package jdbm.recman;
+
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+
+/**
+ * The default {@link BlockStorage}, which does a seek followed by a read or
+ * a write on a {@link RandomAccessFile} for each block.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+final class RandomAccessBlockStorage implements BlockStorage
+{
+    /** The underlying file */
+    private final RandomAccessFile file;
+
+
+    /**
+     * Opens the given file in read/write mode, creating it if needed.
+     *
+     * @param fileName the full name of the file
+     * @throws IOException if the file can't be opened
+     */
+    RandomAccessBlockStorage( String fileName ) throws IOException
+    {
+        file = new RandomAccessFile( fileName, "rw" );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public long length() throws IOException
+    {
+        return file.length();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void read( long offset, byte[] buffer, int nBytes ) throws IOException
+    {
+        file.seek( offset );
+        int remaining = nBytes;
+        int pos = 0;
+
+        while ( remaining > 0 )
+        {
+            int read = file.read( buffer, pos, remaining );
+
+            if ( read == -1 )
+            {
+                System.arraycopy( RecordFile.cleanData, 0, buffer, pos, remaining );
+                break;
+            }
+
+            remaining -= read;
+            pos += read;
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void write( long offset, byte[] data ) throws IOException
+    {
+        file.seek( offset );
+        file.write( data );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void sync() throws IOException
+    {
+        file.getFD().sync();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void close() throws IOException
+    {
+        file.close();
+    }
+}
@@ -49,6 +49,7 @@ package jdbm.recman;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.Future;
 
 import org.apache.directory.server.i18n.I18n;
 
@@ -72,9 +73,21 @@ public final class RecordFile
     private final HashMap<Long,BlockIo> dirty = new HashMap<Long,BlockIo>();
     private final HashMap<Long,BlockIo> inTxn = new HashMap<Long,BlockIo>();
 
+    // number of extra gets on the in use blocks shared by concurrent readers
+    private final HashMap<Long,Integer> shared = new HashMap<Long,Integer>();
+
     // transactions disabled?
     private boolean transactionsDisabled = false;
 
+    // can blocks be read by concurrent threads?
+    private boolean concurrentReads = false;
+
+    // the group commit synchronizing the transaction log, if any
+    private GroupCommit groupCommit;
+
+    // tells when the last committed transaction is durable
+    private Future<Void> lastCommit = GroupCommit.DURABLE;
+
     /** The length of a single block. */
     public final static int BLOCK_SIZE = 8192;//4096;
 
@@ -84,7 +97,8 @@ public final class RecordFile
     /** A block of clean data to wipe clean pages. */
     final static byte[] cleanData = new byte[BLOCK_SIZE];
 
-    private RandomAccessFile file;
+    /** The storage the blocks are read from and written to */
+    private BlockStorage storage;
     private final String fileName;
 
     
@@ -98,9 +112,24 @@ public final class RecordFile
      *         RandomAccessFile throws it.
      */
     RecordFile ( String fileName ) throws IOException 
+    {
+        this( fileName, new RandomAccessBlockStorage( fileName + extension ) );
+    }
+
+
+    /**
+     * Creates a new object on the indicated filename, using the given
+     * storage to read and write the blocks.
+     *
+     * @param fileName the name of the file, without an extension. It is
+     *        used to name the transaction log.
+     * @param storage the storage opened on the file with the
+     *        {@link #extension}
+     */
+    RecordFile ( String fileName, BlockStorage storage )
     {
         this.fileName = fileName;
-        file = new RandomAccessFile(fileName + extension, "rw");
+        this.storage = storage;
     }
 
 
@@ -113,6 +142,7 @@ public final class RecordFile
         if ( transactionManager == null )
         {
             transactionManager = new TransactionManager( this );
+            transactionManager.setGroupCommit( groupCommit );
         }
         return transactionManager;
     }
@@ -136,6 +166,30 @@ public final class RecordFile
         transactionsDisabled = true;
     }
 
+
+    /**
+     * Lets a group commit synchronize the transaction log.
+     */
+    void setGroupCommit( GroupCommit groupCommit )
+    {
+        this.groupCommit = groupCommit;
+        
+        if ( transactionManager != null )
+        {
+            transactionManager.setGroupCommit( groupCommit );
+        }
+    }
+
+
+    /**
+     * Allows concurrent readers to get the same block. The updates must
+     * still be done by a single thread, while nobody is reading.
+     */
+    void enableConcurrentReads()
+    {
+        concurrentReads = true;
+    }
+
     
     /**
      * Gets a block from the file. The returned byte array is the in-memory 
@@ -144,7 +198,7 @@ public final class RecordFile
      *
      * @param blockid The record number to retrieve.
      */
-     BlockIo get( long blockid ) throws IOException 
+     synchronized BlockIo get( long blockid ) throws IOException 
      {
          // try in transaction list, dirty list, free list
          
@@ -176,18 +230,30 @@ public final class RecordFile
              }
          }
 
-         // sanity check: can't be on in use list
-         if ( inUse.get( blockid ) != null ) 
+         // sanity check: can't be on in use list, unless it is shared
+         // by concurrent readers
+         node = inUse.get( blockid );
+         
+         if ( node != null ) 
          {
-             throw new Error( I18n.err( I18n.ERR_554, blockid ) );
+             if ( ! concurrentReads )
+             {
+                 throw new Error( I18n.err( I18n.ERR_554, blockid ) );
+             }
+             
+             Integer count = shared.get( blockid );
+             shared.put( blockid, count == null ? 1 : count + 1 );
+             return node;
          }
 
          // get a new node and read it from the file
          node = getNewNode( blockid );
          long offset = blockid * BLOCK_SIZE;
-         if ( file.length() > 0 && offset <= file.length() ) 
+         long length = storage.length();
+         
+         if ( length > 0 && offset <= length ) 
          {
-             read( file, offset, node.getData(), BLOCK_SIZE );
+             storage.read( offset, node.getData(), BLOCK_SIZE );
          } 
          else 
          {
@@ -206,7 +272,7 @@ public final class RecordFile
      * @param blockid The record number to release.
      * @param isDirty If true, the block was modified since the get().
      */
-    void release( long blockid, boolean isDirty ) throws IOException 
+    synchronized void release( long blockid, boolean isDirty ) throws IOException 
     {
         BlockIo node = inUse.get( blockid );
         
@@ -229,8 +295,13 @@ public final class RecordFile
      *
      * @param block The block to release.
      */
-    void release( BlockIo block ) 
+    synchronized void release( BlockIo block ) 
     {
+        if ( concurrentReads && releaseShared( block.getBlockId() ) )
+        {
+            return;
+        }
+        
         inUse.remove( block.getBlockId() );
         
         if ( block.isDirty() ) 
@@ -257,8 +328,13 @@ public final class RecordFile
      *
      * @param block The block to discard.
      */
-    void discard( BlockIo block ) 
+    synchronized void discard( BlockIo block ) 
     {
+        if ( concurrentReads && releaseShared( block.getBlockId() ) )
+        {
+            return;
+        }
+        
         inUse.remove( block.getBlockId() );
 
         // note: block not added to free list on purpose, because
@@ -266,10 +342,40 @@ public final class RecordFile
     }
 
     
+    /**
+     * Releases one of the extra gets done on a block shared by concurrent
+     * readers.
+     *
+     * @return true if the block is still used by another reader
+     */
+    private boolean releaseShared( long blockid )
+    {
+        Integer count = shared.get( blockid );
+        
+        if ( count == null )
+        {
+            return false;
+        }
+        
+        if ( count == 1 )
+        {
+            shared.remove( blockid );
+        }
+        else
+        {
+            shared.put( blockid, count - 1 );
+        }
+        
+        return true;
+    }
+    
+    
     /**
      * Commits the current transaction by flushing all dirty buffers to disk.
+     *
+     * @return a future telling when the transaction is durable
      */
-    void commit() throws IOException 
+    Future<Void> commit() throws IOException 
     {
         // debugging...
         if ( ! inUse.isEmpty() && inUse.size() > 1 ) 
@@ -282,8 +388,9 @@ public final class RecordFile
 
         if ( dirty.size() == 0 ) 
         {
-            // if no dirty blocks, skip commit process
-            return;
+            // if no dirty blocks, skip commit process. The previous
+            // transaction may not be durable yet.
+            return lastCommit;
         }
 
         
@@ -302,8 +409,7 @@ public final class RecordFile
             if ( transactionsDisabled ) 
             {
                 long offset = node.getBlockId() * BLOCK_SIZE;
-                file.seek( offset );
-                file.write( node.getData() );
+                storage.write( offset, node.getData() );
                 node.setClean();
                 free.add( node );
             }
@@ -316,8 +422,10 @@ public final class RecordFile
 
         if ( ! transactionsDisabled ) 
         {
-            getTxnMgr().commit();
+            lastCommit = getTxnMgr().commit();
         }
+        
+        return lastCommit;
     }
 
     
@@ -349,6 +457,26 @@ public final class RecordFile
     }
 
     
+    /**
+     * Writes the transactions of the log to the file, and stops using the
+     * log, so that it can be replaced while the file is still read. The
+     * file must not be written anymore.
+     */
+    void detachLog() throws IOException
+    {
+        if ( ! dirty.isEmpty() ) 
+        {
+            commit();
+        }
+
+        if ( ! transactionsDisabled )
+        {
+            getTxnMgr().shutdown();
+            transactionsDisabled = true;
+        }
+    }
+
+
     /**
      * Commits and closes file.
      */
@@ -387,8 +515,8 @@ public final class RecordFile
 
         // debugging stuff to keep an eye on the free list
         // System.out.println("Free list size:" + free.size());
-        file.close();
-        file = null;
+        storage.close();
+        storage = null;
     }
 
 
@@ -402,7 +530,7 @@ public final class RecordFile
         {
             getTxnMgr().forceClose();
         }
-        file.close();
+        storage.close();
     }
 
     
@@ -454,8 +582,7 @@ public final class RecordFile
         if ( data != null ) 
         {
             long offset = node.getBlockId() * BLOCK_SIZE;
-            file.seek( offset );
-            file.write( data );
+            storage.write( offset, data );
         }
     }
 
@@ -479,28 +606,6 @@ public final class RecordFile
      */
     void sync() throws IOException 
     {
-        file.getFD().sync();
-    }
-
-
-    /**
-     * Utility method: Read a block from a RandomAccessFile
-     */
-    private static void read( RandomAccessFile file, long offset, byte[] buffer, int nBytes ) throws IOException 
-    {
-        file.seek( offset );
-        int remaining = nBytes;
-        int pos = 0;
-        while ( remaining > 0 ) 
-        {
-            int read = file.read( buffer, pos, remaining );
-            if ( read == -1 ) 
-            {
-                System.arraycopy( cleanData, 0, buffer, pos, remaining );
-                break;
-            }
-            remaining -= read;
-            pos += read;
-        }
+        storage.sync();
     }
 }
@@ -49,6 +49,7 @@ package jdbm.recman;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.Future;
 
 import org.apache.directory.server.i18n.I18n;
 
@@ -96,6 +97,12 @@ public final class TransactionManager {
     /** Extension of a log file. */
     static final String extension = ".lg";
 
+    /**
+     * The group commit synchronizing the log, or null if each commit
+     * synchronizes the log itself.
+     */
+    private GroupCommit groupCommit;
+
     /**
      *  Instantiates a transaction manager instance. If recovery
      *  needs to be performed, it is done.
@@ -145,6 +152,18 @@ public final class TransactionManager {
     }
 
     
+    /**
+     * Lets a group commit synchronize the log, instead of synchronizing
+     * it on each commit.
+     *
+     * @param groupCommit the group commit, or null to synchronize the
+     *        log on each commit
+     */
+    void setGroupCommit( GroupCommit groupCommit ) {
+        this.groupCommit = groupCommit;
+    }
+
+
     /** Builds logfile name  */
     private String makeLogName() {
         return owner.getFileName() + extension;
@@ -183,7 +202,7 @@ public final class TransactionManager {
 
 
     /** Opens the log file */
-    private void open() throws IOException {
+    private synchronized void open() throws IOException {
         fos = new FileOutputStream(makeLogName());
         oos = new ObjectOutputStream(fos);
         oos.writeShort(Magic.LOGFILE_HEADER);
@@ -306,18 +325,50 @@ public final class TransactionManager {
 
     /**
      *  Commits the transaction to the log file.
+     *
+     *  @return a future telling when the transaction is durable
      */
-    void commit() throws IOException {
-        oos.writeObject(txns[curTxn]);
-        sync();
+    Future<Void> commit() throws IOException {
+        long written;
 
-        // set clean flag to indicate blocks have been written to log
-        setClean(txns[curTxn]);
+        synchronized (this) {
+            long start = fos.getChannel().position();
+            oos.writeObject(txns[curTxn]);
 
-        // reset ObjectOutputStream in order to store
-        // newer states of BlockIo
-        oos = new ObjectOutputStream(fos);
-        oos.reset();
+            if (groupCommit == null) {
+                sync();
+            }
+            else {
+                // the group commit syncs the log later on
+                oos.flush();
+                fos.flush();
+            }
+
+            written = fos.getChannel().position() - start;
+
+            // set clean flag to indicate blocks have been written to log
+            setClean(txns[curTxn]);
+
+            // reset ObjectOutputStream in order to store
+            // newer states of BlockIo
+            oos = new ObjectOutputStream(fos);
+            oos.reset();
+        }
+
+        if (groupCommit == null) {
+            return GroupCommit.DURABLE;
+        }
+
+        return groupCommit.add(this, written);
+    }
+
+    /**
+     *  Syncs the log file, if it is still open. Called by the group commit.
+     */
+    synchronized void synchronizeLogFile() throws IOException {
+        if (fos != null) {
+            sync();
+        }
     }
 
     /** Flushes and syncs */
@@ -339,7 +390,7 @@ public final class TransactionManager {
     /**
      *  Closes open files.
      */
-    private void close() throws IOException {
+    private synchronized void close() throws IOException {
         sync();
         oos.close();
         fos.close();
@@ -351,7 +402,7 @@ public final class TransactionManager {
      * Force closing the file without synchronizing pending transaction data.
      * Used for testing purposes only.
      */
-    void forceClose() throws IOException {
+    synchronized void forceClose() throws IOException {
         oos.close();
         fos.close();
         oos = null;
@@ -0,0 +1,252 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package jdbm.btree;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+
+import jdbm.RecordManager;
+import jdbm.helper.IntegerComparator;
+import jdbm.helper.IntegerSerializer;
+import jdbm.helper.StringComparator;
+import jdbm.helper.Tuple;
+import jdbm.helper.TupleBrowser;
+import jdbm.recman.BaseRecordManager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * Tests the prefix-compressed format of the BPages, and the reading of the
+ * pages written in the former format.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class BPageFormatTest
+{
+    private String name;
+
+
+    @Before
+    public void createFileName() throws IOException
+    {
+        File dbFile = File.createTempFile( "bpage", ".db" );
+        dbFile.delete();
+        name = dbFile.getAbsolutePath().substring( 0, dbFile.getAbsolutePath().length() - 3 );
+    }
+
+
+    @After
+    public void deleteFiles()
+    {
+        new File( name + ".db" ).delete();
+        new File( name + ".lg" ).delete();
+        new File( name + "-copy.db" ).delete();
+        new File( name + "-copy.lg" ).delete();
+    }
+
+
+    private static String key( int i )
+    {
+        return "2.5.4.3=user " + ( 100000 + i ) + ",2.5.4.11=people,2.5.4.10=example";
+    }
+
+
+    @Test
+    public void testCompressedPages() throws IOException
+    {
+        RecordManager recman = new BaseRecordManager( name );
+        BTree<String, Integer> tree = new BTree<String, Integer>( recman, new StringComparator() );
+        long recid = tree.getRecordId();
+
+        for ( int i = 0; i < 1000; i++ )
+        {
+            tree.insert( key( i ), i, false );
+        }
+
+        for ( int i = 0; i < 1000; i += 2 )
+        {
+            tree.remove( key( i ) );
+        }
+
+        recman.commit();
+        recman.close();
+
+        recman = new BaseRecordManager( name );
+        tree = new BTree<String, Integer>().load( recman, recid );
+
+        assertEquals( 500, tree.size() );
+        assertEquals( 0, tree.rewritePages() );
+
+        for ( int i = 0; i < 1000; i++ )
+        {
+            assertEquals( ( i % 2 == 0 ) ? null : Integer.valueOf( i ), tree.find( key( i ) ) );
+        }
+
+        TupleBrowser<String, Integer> browser = tree.browse();
+        Tuple<String, Integer> tuple = new Tuple<String, Integer>();
+
+        for ( int i = 1; i < 1000; i += 2 )
+        {
+            assertTrue( browser.getNext( tuple ) );
+            assertEquals( key( i ), tuple.getKey() );
+            assertEquals( Integer.valueOf( i ), tuple.getValue() );
+        }
+
+        recman.close();
+    }
+
+
+    @Test
+    public void testCopy() throws IOException
+    {
+        RecordManager recman = new BaseRecordManager( name );
+        BTree<String, Integer> tree = new BTree<String, Integer>( recman, new StringComparator() );
+
+        for ( int i = 0; i < 1000; i++ )
+        {
+            tree.insert( key( i ), i, false );
+        }
+
+        for ( int i = 0; i < 1000; i += 3 )
+        {
+            tree.remove( key( i ) );
+        }
+
+        recman.commit();
+
+        RecordManager target = new BaseRecordManager( name + "-copy" );
+        long recid = tree.copy( target ).getRecordId();
+        target.commit();
+        target.close();
+        recman.close();
+
+        target = new BaseRecordManager( name + "-copy" );
+        tree = new BTree<String, Integer>().load( target, recid );
+        assertEquals( 666, tree.size() );
+
+        TupleBrowser<String, Integer> browser = tree.browse();
+        Tuple<String, Integer> tuple = new Tuple<String, Integer>();
+
+        for ( int i = 0; i < 1000; i++ )
+        {
+            if ( i % 3 != 0 )
+            {
+                assertTrue( browser.getNext( tuple ) );
+                assertEquals( key( i ), tuple.getKey() );
+                assertEquals( Integer.valueOf( i ), tree.find( key( i ) ) );
+            }
+        }
+
+        browser = tree.browse( null );
+
+        for ( int i = 998; i >= 0; i-- )
+        {
+            if ( i % 3 != 0 )
+            {
+                assertTrue( browser.getPrevious( tuple ) );
+                assertEquals( key( i ), tuple.getKey() );
+            }
+        }
+
+        // The copy can be modified
+        for ( int i = 0; i < 1000; i += 3 )
+        {
+            tree.insert( key( i ), i, false );
+        }
+
+        for ( int i = 1; i < 1000; i += 3 )
+        {
+            tree.remove( key( i ) );
+        }
+
+        assertEquals( 667, tree.size() );
+        assertNull( tree.find( key( 1 ) ) );
+        assertEquals( Integer.valueOf( 999 ), tree.find( key( 999 ) ) );
+
+        target.close();
+    }
+
+
+    @Test
+    public void testLegacyPages() throws IOException
+    {
+        RecordManager recman = new BaseRecordManager( name );
+        BTree<Integer, String> tree = new BTree<Integer, String>( recman, new IntegerComparator(),
+            IntegerSerializer.INSTANCE, null );
+        BPage<Integer, String> serializer = new BPage<Integer, String>();
+        serializer.btree = tree;
+
+        // A leaf containing 1, 2 and 3, written in the former format
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream( baos );
+        int first = tree.pageSize - 3;
+        oos.writeBoolean( true );
+        oos.writeLong( 0 );
+        oos.writeLong( 0 );
+        oos.writeInt( first );
+
+        for ( int i = 1; i <= 3; i++ )
+        {
+            byte[] key = IntegerSerializer.INSTANCE.serialize( i );
+            oos.writeInt( key.length );
+            oos.write( key );
+        }
+
+        for ( int i = 1; i <= 3; i++ )
+        {
+            oos.writeObject( "value " + i );
+        }
+
+        oos.close();
+
+        BPage<Integer, String> legacy = serializer.deserialize( baos.toByteArray() );
+
+        for ( int i = 1; i <= 3; i++ )
+        {
+            assertEquals( Integer.valueOf( i ), legacy.getKey( first + i - 1 ) );
+            assertEquals( "value " + i, legacy.getValue( first + i - 1 ) );
+        }
+
+        byte[] compressed = serializer.serialize( legacy );
+        assertEquals( BPage.COMPRESSED_FORMAT, compressed[0] );
+
+        BPage<Integer, String> page = serializer.deserialize( compressed );
+        assertEquals( first, page.first );
+        assertNull( page.getKey( first - 1 ) );
+
+        for ( int i = 1; i <= 3; i++ )
+        {
+            assertEquals( Integer.valueOf( i ), page.getKey( first + i - 1 ) );
+            assertEquals( "value " + i, page.getValue( first + i - 1 ) );
+        }
+
+        recman.close();
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package jdbm.btree;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+
+import jdbm.RecordManager;
+import jdbm.helper.IntegerComparator;
+import jdbm.helper.Tuple;
+import jdbm.helper.TupleBrowser;
+import jdbm.recman.BaseRecordManager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * Tests the bulk load of the BTrees.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class BTreeBuilderTest
+{
+    private String name;
+
+
+    @Before
+    public void createFileName() throws IOException
+    {
+        File dbFile = File.createTempFile( "builder", ".db" );
+        dbFile.delete();
+        name = dbFile.getAbsolutePath().substring( 0, dbFile.getAbsolutePath().length() - 3 );
+    }
+
+
+    @After
+    public void deleteFiles()
+    {
+        new File( name + ".db" ).delete();
+        new File( name + ".lg" ).delete();
+    }
+
+
+    private BTree<Integer, String> load( RecordManager recman, int size ) throws IOException
+    {
+        BTree<Integer, String> tree = new BTree<Integer, String>( recman, new IntegerComparator() );
+        tree.setPageSize( 8 );
+        BTreeBuilder<Integer, String> builder = new BTreeBuilder<Integer, String>( tree );
+
+        for ( int i = 0; i < size; i++ )
+        {
+            builder.add( i * 2, "value " + i );
+        }
+
+        return builder.build();
+    }
+
+
+    @Test
+    public void testBuild() throws IOException
+    {
+        // Sizes filling the pages exactly, or leaving a nearly empty last page
+        for ( int size : new int[] { 1, 7, 8, 9, 64, 65, 1000 } )
+        {
+            RecordManager recman = new BaseRecordManager( name );
+            long recid = load( recman, size ).getRecordId();
+            recman.commit();
+            recman.close();
+
+            recman = new BaseRecordManager( name );
+            BTree<Integer, String> tree = new BTree<Integer, String>().load( recman, recid );
+            assertEquals( size, tree.size() );
+
+            for ( int i = 0; i < size; i++ )
+            {
+                assertEquals( "value " + i, tree.find( i * 2 ) );
+                assertNull( tree.find( i * 2 + 1 ) );
+            }
+
+            TupleBrowser<Integer, String> browser = tree.browse();
+            Tuple<Integer, String> tuple = new Tuple<Integer, String>();
+
+            for ( int i = 0; i < size; i++ )
+            {
+                assertTrue( browser.getNext( tuple ) );
+                assertEquals( Integer.valueOf( i * 2 ), tuple.getKey() );
+            }
+
+            assertFalse( browser.getNext( tuple ) );
+
+            browser = tree.browse( null );
+
+            for ( int i = size - 1; i >= 0; i-- )
+            {
+                assertTrue( browser.getPrevious( tuple ) );
+                assertEquals( Integer.valueOf( i * 2 ), tuple.getKey() );
+            }
+
+            recman.close();
+            deleteFiles();
+        }
+    }
+
+
+    @Test
+    public void testModifyAfterBuild() throws IOException
+    {
+        RecordManager recman = new BaseRecordManager( name );
+        BTree<Integer, String> tree = load( recman, 500 );
+
+        for ( int i = 0; i < 500; i++ )
+        {
+            tree.insert( i * 2 + 1, "odd " + i, false );
+        }
+
+        assertEquals( 1000, tree.size() );
+
+        for ( int i = 0; i < 1000; i++ )
+        {
+            assertEquals( ( i % 2 == 0 ) ? "value " + ( i / 2 ) : "odd " + ( i / 2 ), tree.find( i ) );
+        }
+
+        for ( int i = 0; i < 1000; i++ )
+        {
+            assertEquals( ( i % 2 == 0 ) ? "value " + ( i / 2 ) : "odd " + ( i / 2 ), tree.remove( i ) );
+        }
+
+        assertEquals( 0, tree.size() );
+        assertNull( tree.find( 0 ) );
+
+        recman.close();
+    }
+
+
+    @Test
+    public void testDelete() throws IOException
+    {
+        BaseRecordManager recman = new BaseRecordManager( name );
+        recman.disableTransactions();
+        BTree<Integer, String> tree = load( recman, 1000 );
+        recman.commit();
+        long size = new File( name + ".db" ).length();
+
+        tree.delete();
+        recman.commit();
+
+        // The pages deleted are reused, the file only grows by a few blocks
+        load( recman, 1000 );
+        recman.commit();
+        assertTrue( new File( name + ".db" ).length() - size < size / 4 );
+
+        recman.close();
+    }
+
+
+    @Test
+    public void testUnsortedKeys() throws IOException
+    {
+        RecordManager recman = new BaseRecordManager( name );
+        BTree<Integer, String> tree = new BTree<Integer, String>( recman, new IntegerComparator() );
+        BTreeBuilder<Integer, String> builder = new BTreeBuilder<Integer, String>( tree );
+        builder.add( 2, "two" );
+
+        try
+        {
+            builder.add( 2, "two" );
+            fail();
+        }
+        catch ( IllegalArgumentException iae )
+        {
+            // Expected
+        }
+
+        try
+        {
+            builder.add( 1, "one" );
+            fail();
+        }
+        catch ( IllegalArgumentException iae )
+        {
+            // Expected
+        }
+
+        builder.build();
+        assertEquals( 1, tree.size() );
+
+        try
+        {
+            new BTreeBuilder<Integer, String>( tree );
+            fail();
+        }
+        catch ( IllegalArgumentException iae )
+        {
+            // Expected
+        }
+
+        recman.close();
+    }
+}
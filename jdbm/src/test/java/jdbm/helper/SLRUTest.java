@@ -0,0 +1,226 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package jdbm.helper;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+
+/**
+ * Tests the SLRU cache policy.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class SLRUTest
+{
+    @Test
+    public void testPutGetRemove() throws CacheEvictionException
+    {
+        SLRU<Integer, String> cache = new SLRU<Integer, String>( 10 );
+
+        cache.put( 1, "one" );
+        cache.put( 2, "two" );
+        assertEquals( "one", cache.get( 1 ) );
+        assertEquals( "two", cache.get( 2 ) );
+        assertNull( cache.get( 3 ) );
+
+        cache.put( 1, "uno" );
+        assertEquals( "uno", cache.get( 1 ) );
+
+        cache.remove( 1 );
+        assertNull( cache.get( 1 ) );
+
+        cache.removeAll();
+        assertNull( cache.get( 2 ) );
+        assertEquals( false, cache.elements().hasMoreElements() );
+
+        assertEquals( 3, cache.getHits() );
+        assertEquals( 3, cache.getMisses() );
+        assertEquals( 0, cache.getEvictions() );
+    }
+
+
+    @Test
+    public void testEviction() throws CacheEvictionException
+    {
+        final List<String> evicted = new ArrayList<String>();
+        SLRU<Integer, String> cache = new SLRU<Integer, String>( 3 );
+        cache.addListener( new CachePolicyListener<String>()
+        {
+            public void cacheObjectEvicted( String obj )
+            {
+                evicted.add( obj );
+            }
+        } );
+
+        for ( int i = 0; i < 5; i++ )
+        {
+            cache.put( i, "value " + i );
+        }
+
+        // The oldest objects are evicted first
+        assertEquals( 2, cache.getEvictions() );
+        assertEquals( "value 0", evicted.get( 0 ) );
+        assertEquals( "value 1", evicted.get( 1 ) );
+        assertNull( cache.get( 0 ) );
+        assertNotNull( cache.get( 4 ) );
+        assertEquals( 3, Collections.list( cache.elements() ).size() );
+    }
+
+
+    @Test
+    public void testScanResistance() throws CacheEvictionException
+    {
+        SLRU<Integer, String> cache = new SLRU<Integer, String>( 100 );
+
+        // The hot objects are read twice, so that they are protected
+        for ( int i = 0; i < 50; i++ )
+        {
+            cache.put( i, "hot " + i );
+            cache.get( i );
+        }
+
+        // A scan reading many objects once
+        for ( int i = 1000; i < 3000; i++ )
+        {
+            if ( cache.get( i ) == null )
+            {
+                cache.put( i, "cold " + i );
+            }
+        }
+
+        for ( int i = 0; i < 50; i++ )
+        {
+            assertEquals( "hot " + i, cache.get( i ) );
+        }
+    }
+
+
+    @Test
+    public void testFailingListener() throws CacheEvictionException
+    {
+        SLRU<Integer, String> cache = new SLRU<Integer, String>( 1 );
+        cache.put( 1, "one" );
+        cache.addListener( new CachePolicyListener<String>()
+        {
+            public void cacheObjectEvicted( String obj ) throws CacheEvictionException
+            {
+                throw new CacheEvictionException( new Exception( obj ) );
+            }
+        } );
+
+        try
+        {
+            cache.put( 2, "two" );
+            fail();
+        }
+        catch ( CacheEvictionException cee )
+        {
+            // Expected
+        }
+
+        // The cache is left unchanged
+        assertEquals( "one", cache.get( 1 ) );
+        assertNull( cache.get( 2 ) );
+        assertEquals( 0, cache.getEvictions() );
+    }
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBadSize()
+    {
+        new SLRU<Integer, String>( 0 );
+    }
+
+
+    @Test
+    public void testConcurrentAccess() throws Throwable
+    {
+        final int size = 1000;
+        final SLRU<Integer, Integer> cache = new SLRU<Integer, Integer>( size );
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+
+        for ( int i = 0; i < 8; i++ )
+        {
+            Thread thread = new Thread()
+            {
+                public void run()
+                {
+                    Random random = new Random();
+
+                    try
+                    {
+                        for ( int j = 0; j < 100000; j++ )
+                        {
+                            int key = random.nextInt( 4 * size );
+                            Integer value = cache.get( key );
+
+                            if ( value == null )
+                            {
+                                cache.put( key, key );
+                            }
+                            else
+                            {
+                                assertEquals( key, value.intValue() );
+                            }
+
+                            if ( j % 100 == 0 )
+                            {
+                                cache.remove( key );
+                            }
+                        }
+                    }
+                    catch ( Throwable t )
+                    {
+                        failure.compareAndSet( null, t );
+                    }
+                }
+            };
+
+            threads.add( thread );
+            thread.start();
+        }
+
+        for ( Thread thread : threads )
+        {
+            thread.join();
+        }
+
+        if ( failure.get() != null )
+        {
+            throw failure.get();
+        }
+
+        assertEquals( 800000, cache.getHits() + cache.getMisses() );
+        assertEquals( true, Collections.list( cache.elements() ).size() <= size );
+    }
+}
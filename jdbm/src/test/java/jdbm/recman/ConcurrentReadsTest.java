@@ -0,0 +1,199 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package jdbm.recman;
+
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import jdbm.btree.BTree;
+import jdbm.helper.IntegerComparator;
+import jdbm.helper.MRU;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * Tests the record managers and the BTrees when the reads are concurrent.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class ConcurrentReadsTest
+{
+    private static final int THREADS = 8;
+    private static final int RECORDS = 2000;
+    private static final int FETCHES = 20000;
+
+    private File dbFile;
+    private String name;
+
+
+    @Before
+    public void createFileName() throws IOException
+    {
+        dbFile = File.createTempFile( "concurrent", RecordFile.extension );
+        dbFile.delete();
+        name = dbFile.getAbsolutePath().substring( 0, dbFile.getAbsolutePath().length() - RecordFile.extension.length() );
+    }
+
+
+    @After
+    public void deleteFiles()
+    {
+        dbFile.delete();
+        new File( name + TransactionManager.extension ).delete();
+    }
+
+
+    /**
+     * Runs the given task in several threads, and rethrows the first failure.
+     */
+    private void runConcurrently( final Runnable task ) throws Throwable
+    {
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+
+        for ( int i = 0; i < THREADS; i++ )
+        {
+            Thread thread = new Thread()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        task.run();
+                    }
+                    catch ( Throwable t )
+                    {
+                        failure.compareAndSet( null, t );
+                    }
+                }
+            };
+
+            threads.add( thread );
+            thread.start();
+        }
+
+        for ( Thread thread : threads )
+        {
+            thread.join();
+        }
+
+        if ( failure.get() != null )
+        {
+            throw failure.get();
+        }
+    }
+
+
+    @Test
+    public void testConcurrentFetches() throws Throwable
+    {
+        BaseRecordManager base = new BaseRecordManager( name );
+        base.enableConcurrentReads();
+
+        // A small cache, so that most of the fetches go to the disk
+        final CacheRecordManager recman = new CacheRecordManager( base, new MRU( 100 ) );
+        recman.enableConcurrentReads();
+
+        final long[] recids = new long[RECORDS];
+
+        for ( int i = 0; i < RECORDS; i++ )
+        {
+            recids[i] = recman.insert( "record " + i );
+        }
+
+        recman.commit();
+
+        runConcurrently( new Runnable()
+        {
+            public void run()
+            {
+                Random random = new Random();
+
+                try
+                {
+                    for ( int i = 0; i < FETCHES; i++ )
+                    {
+                        int index = random.nextInt( RECORDS );
+                        assertEquals( "record " + index, recman.fetch( recids[index] ) );
+                    }
+                }
+                catch ( IOException ioe )
+                {
+                    throw new RuntimeException( ioe );
+                }
+            }
+        } );
+
+        recman.close();
+    }
+
+
+    @Test
+    public void testConcurrentBTreeLookups() throws Throwable
+    {
+        BaseRecordManager base = new BaseRecordManager( name );
+        base.enableConcurrentReads();
+        final CacheRecordManager recman = new CacheRecordManager( base, new MRU( 20 ) );
+        recman.enableConcurrentReads();
+
+        final BTree<Integer, String> tree = new BTree<Integer, String>( recman, new IntegerComparator() );
+
+        for ( int i = 0; i < RECORDS; i++ )
+        {
+            tree.insert( i, "value " + i, false );
+        }
+
+        recman.commit();
+
+        runConcurrently( new Runnable()
+        {
+            public void run()
+            {
+                Random random = new Random();
+
+                try
+                {
+                    for ( int i = 0; i < FETCHES; i++ )
+                    {
+                        int key = random.nextInt( RECORDS );
+                        assertEquals( "value " + key, tree.find( key ) );
+                    }
+                }
+                catch ( IOException ioe )
+                {
+                    throw new RuntimeException( ioe );
+                }
+            }
+        } );
+
+        assertEquals( RECORDS, tree.size() );
+        recman.close();
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package jdbm.recman;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * Tests the record managers reading files which have been replaced.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class DetachLogTest
+{
+    private String name;
+
+
+    @Before
+    public void createFileName() throws IOException
+    {
+        File dbFile = File.createTempFile( "detach", RecordFile.extension );
+        dbFile.delete();
+        name = dbFile.getAbsolutePath().substring( 0,
+            dbFile.getAbsolutePath().length() - RecordFile.extension.length() );
+    }
+
+
+    @After
+    public void deleteFiles()
+    {
+        for ( String fileName : new String[] { name, name + "-moved" } )
+        {
+            new File( fileName + RecordFile.extension ).delete();
+            new File( fileName + TransactionManager.extension ).delete();
+        }
+    }
+
+
+    @Test
+    public void testDetachLog() throws IOException
+    {
+        BaseRecordManager recman = new BaseRecordManager( name );
+        long recid = recman.insert( "value" );
+        recman.commit();
+
+        recman.detachLog();
+
+        // The files can be replaced while the record manager is read
+        new File( name + TransactionManager.extension ).delete();
+        assertTrue( new File( name + RecordFile.extension ).renameTo( new File( name + "-moved"
+            + RecordFile.extension ) ) );
+        assertEquals( "value", recman.fetch( recid ) );
+
+        recman.close();
+        assertFalse( new File( name + TransactionManager.extension ).exists() );
+        assertFalse( new File( name + RecordFile.extension ).exists() );
+
+        // The log has been written to the file
+        recman = new BaseRecordManager( name + "-moved" );
+        assertEquals( "value", recman.fetch( recid ) );
+        recman.close();
+    }
+}
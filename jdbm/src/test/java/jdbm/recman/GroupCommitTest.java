@@ -0,0 +1,209 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package jdbm.recman;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+
+import jdbm.RecordManager;
+import jdbm.RecordManagerOptions;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * Tests the record managers synchronizing their log with a group commit.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class GroupCommitTest
+{
+    private static final int FILES = 4;
+    private static final int THREADS = 8;
+    private static final int COMMITS = 50;
+
+    private String[] names = new String[FILES];
+
+
+    @Before
+    public void createFileNames() throws IOException
+    {
+        for ( int i = 0; i < FILES; i++ )
+        {
+            File dbFile = File.createTempFile( "group", RecordFile.extension );
+            dbFile.delete();
+            names[i] = dbFile.getAbsolutePath().substring( 0,
+                dbFile.getAbsolutePath().length() - RecordFile.extension.length() );
+        }
+    }
+
+
+    @After
+    public void deleteFiles()
+    {
+        for ( String name : names )
+        {
+            new File( name + RecordFile.extension ).delete();
+            new File( name + TransactionManager.extension ).delete();
+        }
+    }
+
+
+    @Test
+    public void testConcurrentCommits() throws Throwable
+    {
+        GroupCommit groupCommit = new GroupCommit( 5 );
+        final BaseRecordManager[] recmans = new BaseRecordManager[FILES];
+
+        for ( int i = 0; i < FILES; i++ )
+        {
+            recmans[i] = new BaseRecordManager( names[i] );
+            recmans[i].setGroupCommit( groupCommit );
+        }
+
+        final long[][] recids = new long[THREADS][COMMITS];
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+
+        for ( int i = 0; i < THREADS; i++ )
+        {
+            final int thread = i;
+
+            threads.add( new Thread()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        BaseRecordManager recman = recmans[thread % FILES];
+
+                        for ( int j = 0; j < COMMITS; j++ )
+                        {
+                            recids[thread][j] = recman.insert( "value " + thread + " " + j );
+                            recman.commit();
+                        }
+                    }
+                    catch ( Throwable t )
+                    {
+                        failure.compareAndSet( null, t );
+                    }
+                }
+            } );
+        }
+
+        for ( Thread thread : threads )
+        {
+            thread.start();
+        }
+
+        for ( Thread thread : threads )
+        {
+            thread.join();
+        }
+
+        if ( failure.get() != null )
+        {
+            throw failure.get();
+        }
+
+        for ( BaseRecordManager recman : recmans )
+        {
+            recman.close();
+        }
+
+        groupCommit.close();
+
+        for ( int i = 0; i < THREADS; i++ )
+        {
+            RecordManager recman = new BaseRecordManager( names[i % FILES] );
+
+            for ( int j = 0; j < COMMITS; j++ )
+            {
+                assertEquals( "value " + i + " " + j, recman.fetch( recids[i][j] ) );
+            }
+
+            recman.close();
+        }
+    }
+
+
+    @Test
+    public void testCommitAsync() throws Exception
+    {
+        // A window long enough for the commit to wait until the group commit is closed
+        GroupCommit groupCommit = new GroupCommit( 60000, Long.MAX_VALUE );
+        BaseRecordManager recman = new BaseRecordManager( names[0] );
+        recman.setGroupCommit( groupCommit );
+
+        long recid = recman.insert( "value" );
+        Future<Void> durable = recman.commitAsync();
+        assertFalse( durable.isDone() );
+
+        groupCommit.close();
+        assertTrue( durable.isDone() );
+        durable.get();
+
+        // The log is synchronized by each commit once the group commit is closed
+        recman.update( recid, "other value" );
+        assertTrue( recman.commitAsync().isDone() );
+        recman.close();
+
+        recman = new BaseRecordManager( names[0] );
+        assertEquals( "other value", recman.fetch( recid ) );
+        recman.close();
+    }
+
+
+    @Test
+    public void testGroupCommitOptions() throws IOException
+    {
+        Properties options = new Properties();
+        options.setProperty( RecordManagerOptions.GROUP_COMMIT_WINDOW, "10" );
+        options.setProperty( RecordManagerOptions.GROUP_COMMIT_BYTES, "4096" );
+
+        RecordManager recman = new BaseRecordManager( names[0], options );
+        long recid = recman.insert( "value" );
+        recman.commit();
+        recman.close();
+
+        recman = new BaseRecordManager( names[0] );
+        assertEquals( "value", recman.fetch( recid ) );
+        recman.close();
+    }
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBadWindow()
+    {
+        new GroupCommit( 0 );
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package jdbm.recman;
+
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Properties;
+
+import jdbm.RecordManager;
+import jdbm.RecordManagerOptions;
+import jdbm.helper.ByteArraySerializer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * Tests the memory mapped block I/O of the record files.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class MappedBlockStorageTest
+{
+    private File dbFile;
+    private String name;
+
+
+    @Before
+    public void createFileName() throws IOException
+    {
+        dbFile = File.createTempFile( "mapped", RecordFile.extension );
+        dbFile.delete();
+        name = dbFile.getAbsolutePath().substring( 0, dbFile.getAbsolutePath().length() - RecordFile.extension.length() );
+    }
+
+
+    @After
+    public void deleteFiles()
+    {
+        dbFile.delete();
+        new File( name + TransactionManager.extension ).delete();
+    }
+
+
+    private Properties mapped( int segmentSize )
+    {
+        Properties options = new Properties();
+        options.setProperty( RecordManagerOptions.BLOCK_IO, RecordManagerOptions.MAPPED_BLOCK_IO );
+        options.setProperty( RecordManagerOptions.BLOCK_IO_SEGMENT_SIZE, Integer.toString( segmentSize ) );
+
+        return options;
+    }
+
+
+    private byte[] record( int i )
+    {
+        byte[] data = new byte[300 + ( i % 50 )];
+
+        for ( int j = 0; j < data.length; j++ )
+        {
+            data[j] = ( byte ) ( i + j );
+        }
+
+        return data;
+    }
+
+
+    @Test
+    public void testReadWriteAcrossSegments() throws IOException
+    {
+        // Two blocks per segment, so the records span many segments
+        RecordManager recman = new BaseRecordManager( name, mapped( 2 * RecordFile.BLOCK_SIZE ) );
+        long[] recids = new long[500];
+
+        for ( int i = 0; i < recids.length; i++ )
+        {
+            recids[i] = recman.insert( record( i ), ByteArraySerializer.INSTANCE );
+        }
+
+        recman.commit();
+
+        for ( int i = 0; i < recids.length; i++ )
+        {
+            assertArrayEquals( record( i ), ( byte[] ) recman.fetch( recids[i], ByteArraySerializer.INSTANCE ) );
+        }
+
+        recman.close();
+
+        // The padding added while growing the file is removed on close
+        assertEquals( 0, dbFile.length() % RecordFile.BLOCK_SIZE );
+
+        // Reopen the file with the default block I/O, then with the mapped one
+        recman = new BaseRecordManager( name );
+
+        for ( int i = 0; i < recids.length; i++ )
+        {
+            assertArrayEquals( record( i ), ( byte[] ) recman.fetch( recids[i], ByteArraySerializer.INSTANCE ) );
+        }
+
+        recman.close();
+
+        recman = new BaseRecordManager( name, mapped( MappedBlockStorage.DEFAULT_SEGMENT_SIZE ) );
+
+        for ( int i = 0; i < recids.length; i++ )
+        {
+            assertArrayEquals( record( i ), ( byte[] ) recman.fetch( recids[i], ByteArraySerializer.INSTANCE ) );
+        }
+
+        recman.update( recids[0], record( 1 ), ByteArraySerializer.INSTANCE );
+        recman.close();
+
+        recman = new BaseRecordManager( name );
+        assertArrayEquals( record( 1 ), ( byte[] ) recman.fetch( recids[0], ByteArraySerializer.INSTANCE ) );
+        recman.close();
+    }
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBadSegmentSize() throws IOException
+    {
+        new BaseRecordManager( name, mapped( RecordFile.BLOCK_SIZE + 1 ) );
+    }
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBadBlockIo() throws IOException
+    {
+        Properties options = new Properties();
+        options.setProperty( RecordManagerOptions.BLOCK_IO, "unknown" );
+
+        new BaseRecordManager( name, options );
+    }
+}
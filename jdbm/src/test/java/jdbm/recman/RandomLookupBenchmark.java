@@ -0,0 +1,140 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package jdbm.recman;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Properties;
+import java.util.Random;
+
+import jdbm.RecordManagerOptions;
+import jdbm.helper.ByteArraySerializer;
+
+import org.junit.Test;
+
+
+/**
+ * Compares the random lookup throughput of the record files when the blocks
+ * are read through a RandomAccessFile and when they are read from a memory
+ * mapping. The benchmark is not run with the unit tests, use :
+ * <pre>
+ * mvn test -Dtest=RandomLookupBenchmark -Dbenchmark.records=200000 -Dbenchmark.lookups=1000000
+ * </pre>
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class RandomLookupBenchmark
+{
+    /** The number of records stored in the file */
+    private static final int RECORDS = Integer.getInteger( "benchmark.records", 50000 );
+
+    /** The number of random fetches done on each run */
+    private static final int LOOKUPS = Integer.getInteger( "benchmark.lookups", 200000 );
+
+    /** The size of a record */
+    private static final int RECORD_SIZE = 512;
+
+
+    @Test
+    public void testRandomLookups() throws IOException
+    {
+        File dbFile = File.createTempFile( "benchmark", RecordFile.extension );
+        dbFile.delete();
+        String name = dbFile.getAbsolutePath().substring( 0,
+            dbFile.getAbsolutePath().length() - RecordFile.extension.length() );
+
+        try
+        {
+            long[] recids = load( name );
+
+            Properties randomAccess = new Properties();
+            randomAccess.setProperty( RecordManagerOptions.BLOCK_IO, RecordManagerOptions.RANDOM_ACCESS_BLOCK_IO );
+            Properties mapped = new Properties();
+            mapped.setProperty( RecordManagerOptions.BLOCK_IO, RecordManagerOptions.MAPPED_BLOCK_IO );
+
+            // A first pass on each backend to warm up the JIT and the OS page cache
+            lookup( name, randomAccess, recids );
+            lookup( name, mapped, recids );
+
+            long randomAccessTime = lookup( name, randomAccess, recids );
+            long mappedTime = lookup( name, mapped, recids );
+
+            System.out.println( "Random lookups of " + LOOKUPS + " records out of " + RECORDS + " ("
+                + ( dbFile.length() / 1024 ) + " KB)" );
+            System.out.println( "  randomAccess : " + randomAccessTime + " ms, " + ( LOOKUPS * 1000L / Math.max( 1, randomAccessTime ) )
+                + " fetches/s" );
+            System.out.println( "  mapped       : " + mappedTime + " ms, " + ( LOOKUPS * 1000L / Math.max( 1, mappedTime ) )
+                + " fetches/s" );
+        }
+        finally
+        {
+            dbFile.delete();
+            new File( name + TransactionManager.extension ).delete();
+        }
+    }
+
+
+    /**
+     * Creates the file and returns the record ids.
+     */
+    private long[] load( String name ) throws IOException
+    {
+        BaseRecordManager recman = new BaseRecordManager( name );
+        recman.disableTransactions();
+
+        long[] recids = new long[RECORDS];
+        byte[] record = new byte[RECORD_SIZE];
+        Random random = new Random( 0 );
+
+        for ( int i = 0; i < RECORDS; i++ )
+        {
+            random.nextBytes( record );
+            recids[i] = recman.insert( record, ByteArraySerializer.INSTANCE );
+        }
+
+        recman.close();
+
+        return recids;
+    }
+
+
+    /**
+     * Fetches random records and returns the elapsed time in milliseconds.
+     */
+    private long lookup( String name, Properties options, long[] recids ) throws IOException
+    {
+        BaseRecordManager recman = new BaseRecordManager( name, options );
+        recman.disableTransactions();
+        Random random = new Random( 1 );
+
+        long start = System.currentTimeMillis();
+
+        for ( int i = 0; i < LOOKUPS; i++ )
+        {
+            recman.fetch( recids[random.nextInt( recids.length )], ByteArraySerializer.INSTANCE );
+        }
+
+        long elapsed = System.currentTimeMillis() - start;
+        recman.close();
+
+        return elapsed;
+    }
+}
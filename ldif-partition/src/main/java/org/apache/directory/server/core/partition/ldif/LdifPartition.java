@@ -44,6 +44,7 @@ import org.apache.directory.server.i18n.I18n;
 import org.apache.directory.server.xdbm.Index;
 import org.apache.directory.server.xdbm.IndexCursor;
 import org.apache.directory.server.xdbm.IndexEntry;
+import org.apache.directory.server.xdbm.IntervalHierarchy;
 import org.apache.directory.shared.ldap.constants.SchemaConstants;
 import org.apache.directory.shared.ldap.csn.CsnFactory;
 import org.apache.directory.shared.ldap.entry.DefaultEntry;
@@ -409,7 +410,7 @@ public class LdifPartition extends BTreePartition<Long>
         // Then, if there are some children, move then to the new place
         try
         {
-            IndexCursor<Long, Entry, Long> cursor = getSubLevelIndex().forwardCursor( entryIdOld );
+            IndexCursor<Long, Entry, Long> cursor = getHierarchy().subtreeCursor( entryIdOld );
     
             while ( cursor.next() )
             {
@@ -877,9 +878,9 @@ public class LdifPartition extends BTreePartition<Long>
 
 
     @Override
-    public Index<Long, Entry, Long> getSubLevelIndex()
+    public IntervalHierarchy<Long> getHierarchy()
     {
-        return wrappedPartition.getSubLevelIndex();
+        return wrappedPartition.getHierarchy();
     }
 
 
@@ -0,0 +1,102 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.ldap;
+
+
+import org.apache.directory.shared.asn1.codec.Asn1CodecEncoder;
+import org.apache.directory.shared.ldap.message.MessageEncoder;
+import org.apache.directory.shared.ldap.message.internal.InternalResponse;
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.filter.codec.ProtocolEncoder;
+import org.apache.mina.filter.codec.ProtocolEncoderOutput;
+
+
+/**
+ * The LDAP encoder of a session. The messages are encoded one by one, except
+ * the {@link LdapResponseBatch}es, which responses are encoded in the same
+ * buffer, until it is large enough to be written : a batch of small entries
+ * is sent with a single write.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+final class LdapProtocolEncoder implements ProtocolEncoder
+{
+    /** The initial size of the buffers of the batches */
+    private static final int BATCH_BUFFER_SIZE = 8 * 1024;
+    
+    /** The number of bytes above which the encoded responses of a batch are written */
+    static final int MAX_BATCH_BYTES = 64 * 1024;
+    
+    /** The encoder of the single messages */
+    private final ProtocolEncoder messageEncoder = new Asn1CodecEncoder( new MessageEncoder() );
+    
+    /** The encoder of the responses of the batches */
+    private final MessageEncoder batchEncoder = new MessageEncoder();
+    
+    
+    /**
+     * {@inheritDoc}
+     */
+    public void encode( IoSession session, Object message, ProtocolEncoderOutput out ) throws Exception
+    {
+        if ( !( message instanceof LdapResponseBatch ) )
+        {
+            messageEncoder.encode( session, message, out );
+            return;
+        }
+        
+        IoBuffer buffer = null;
+        
+        // The encoder is shared by the threads writing to the session
+        synchronized ( batchEncoder )
+        {
+            for ( InternalResponse response : ( ( LdapResponseBatch ) message ).getResponses() )
+            {
+                if ( buffer == null )
+                {
+                    buffer = IoBuffer.allocate( BATCH_BUFFER_SIZE ).setAutoExpand( true );
+                }
+                
+                batchEncoder.encodeBlocking( null, buffer.asOutputStream(), response );
+                
+                if ( buffer.position() >= MAX_BATCH_BYTES )
+                {
+                    out.write( buffer.flip() );
+                    buffer = null;
+                }
+            }
+        }
+        
+        if ( buffer != null )
+        {
+            out.write( buffer.flip() );
+        }
+    }
+    
+    
+    /**
+     * {@inheritDoc}
+     */
+    public void dispose( IoSession session ) throws Exception
+    {
+        messageEncoder.dispose( session );
+    }
+}
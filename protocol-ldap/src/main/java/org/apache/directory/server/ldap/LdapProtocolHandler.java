@@ -20,6 +20,8 @@
 package org.apache.directory.server.ldap;
 
 
+import java.util.concurrent.ExecutorService;
+
 import org.apache.directory.shared.ldap.message.ExtendedRequestImpl;
 import org.apache.directory.shared.ldap.message.ResponseCarryingMessageException;
 import org.apache.directory.shared.ldap.message.ResultCodeEnum;
@@ -135,8 +137,32 @@ class LdapProtocolHandler extends DemuxingIoHandler
      */
     public void messageSent( IoSession session, Object message ) throws Exception
     {
-        // Do nothing : we have to ignore this message, otherwise we get an exception,
-        // thanks to the way MINA 2 works ...
+        // We don't dispatch this message to the demuxed handlers, otherwise we 
+        // get an exception, thanks to the way MINA 2 works ...
+        
+        // The searches suspended until their responses are sent go on once 
+        // half of the bytes waiting to be written have been sent. They are 
+        // resumed in another thread, not to hold this IoProcessor thread.
+        if ( session.getScheduledWriteBytes() > ldapServer.getMaxScheduledWriteBytes() / 2 )
+        {
+            return;
+        }
+        
+        LdapSession ldapSession = ldapServer.getLdapSessionManager().getLdapSession( session );
+        ExecutorService searchExecutor = ldapServer.getSearchExecutor();
+        
+        if ( ( ldapSession == null ) || ( searchExecutor == null ) || searchExecutor.isShutdown() )
+        {
+            return;
+        }
+        
+        Runnable search = ldapSession.pollSuspendedSearch();
+        
+        while ( search != null )
+        {
+            searchExecutor.execute( search );
+            search = ldapSession.pollSuspendedSearch();
+        }
     }
 
 
@@ -0,0 +1,109 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.ldap;
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.directory.shared.ldap.message.internal.InternalResponse;
+
+
+/**
+ * Consecutive responses to a request, written to the session at once. They
+ * are encoded together, and sent with as few writes as possible. A batch is
+ * full once it holds enough responses, or once its first response has been
+ * waiting for {@link #MAX_DELAY}. As this is only checked when a response is
+ * added, the search also schedules the writing of its batch after this delay,
+ * so that the responses of a slow search are not held back until the next
+ * one is found.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class LdapResponseBatch
+{
+    /** The number of responses above which a batch is full */
+    public static final int MAX_RESPONSES = 32;
+    
+    /** The time in nanoseconds a response waits in a batch before it is full */
+    public static final long MAX_DELAY = TimeUnit.MILLISECONDS.toNanos( 20 );
+    
+    /** The responses, in the order they are sent */
+    private final List<InternalResponse> responses = new ArrayList<InternalResponse>( MAX_RESPONSES );
+    
+    /** The time the first response has been added */
+    private long firstAddTime;
+    
+    
+    /**
+     * Adds a response to the batch.
+     *
+     * @param response the response, sent after the ones already added
+     */
+    public void add( InternalResponse response )
+    {
+        if ( responses.isEmpty() )
+        {
+            firstAddTime = System.nanoTime();
+        }
+        
+        responses.add( response );
+    }
+    
+    
+    /**
+     * @return <code>true</code> if the batch should be written before adding
+     * more responses
+     */
+    public boolean isFull()
+    {
+        return ( responses.size() >= MAX_RESPONSES ) 
+            || ( !responses.isEmpty() && ( System.nanoTime() - firstAddTime >= MAX_DELAY ) );
+    }
+    
+    
+    /**
+     * @return <code>true</code> if the batch has no response
+     */
+    public boolean isEmpty()
+    {
+        return responses.isEmpty();
+    }
+    
+    
+    /**
+     * @return the responses of the batch
+     */
+    public List<InternalResponse> getResponses()
+    {
+        return Collections.unmodifiableList( responses );
+    }
+    
+    
+    /**
+     * @see Object#toString()
+     */
+    public String toString()
+    {
+        return "LdapResponseBatch : " + responses.size() + " responses";
+    }
+}
@@ -34,6 +34,10 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 
 import org.apache.directory.server.core.DirectoryService;
 import org.apache.directory.server.core.partition.PartitionNexus;
@@ -128,6 +132,9 @@ public class LdapServer extends DirectoryBackedService
     /** The default maximum time limit. */
     private static final int MAX_TIME_LIMIT_DEFAULT = 10000;
 
+    /** The default maximum number of bytes waiting to be written to a session during a search. */
+    private static final long MAX_SCHEDULED_WRITE_BYTES_DEFAULT = 256 * 1024;
+
     /** The default service pid. */
     private static final String SERVICE_PID_DEFAULT = "org.apache.directory.server.ldap";
 
@@ -152,6 +159,19 @@ public class LdapServer extends DirectoryBackedService
      */
     private int maxTimeLimit = MAX_TIME_LIMIT_DEFAULT; 
 
+    /** 
+     * The maximum number of bytes waiting to be written to a session before
+     * a search is suspended.
+     * @see {@link LdapServer#MAX_SCHEDULED_WRITE_BYTES_DEFAULT }
+     */
+    private long maxScheduledWriteBytes = MAX_SCHEDULED_WRITE_BYTES_DEFAULT;
+
+    /** The executor resuming the suspended searches */
+    private ExecutorService searchExecutor;
+
+    /** The scheduler writing the search entries which waited too long in a batch */
+    private ScheduledExecutorService batchScheduler;
+
     /** If LDAPS is activated : the external Keystore file, if defined */
     private String keystoreFile;
     
@@ -419,6 +439,18 @@ public class LdapServer extends DirectoryBackedService
             return;
         }
 
+        searchExecutor = Executors.newCachedThreadPool();
+        batchScheduler = Executors.newSingleThreadScheduledExecutor( new ThreadFactory()
+        {
+            public Thread newThread( Runnable runnable )
+            {
+                Thread thread = new Thread( runnable, "ldap-batch-writer" );
+                thread.setDaemon( true );
+
+                return thread;
+            }
+        } );
+
         for ( Transport transport:transports )
         {
             if ( !(transport instanceof TcpTransport ) )
@@ -480,6 +512,16 @@ public class LdapServer extends DirectoryBackedService
      */
     public void stop()
     {
+        if ( searchExecutor != null )
+        {
+            searchExecutor.shutdown();
+        }
+
+        if ( batchScheduler != null )
+        {
+            batchScheduler.shutdown();
+        }
+
         try
         {
             for ( Transport transport:transports )
@@ -874,6 +916,78 @@ public class LdapServer extends DirectoryBackedService
     }
 
 
+    /**
+     * Sets the maximum number of bytes waiting to be written to a session
+     * before a search stops reading its entries. The search goes on once
+     * half of these bytes have been sent to the client.
+     *
+     * @param maxScheduledWriteBytes the maximum number of bytes, or 0 to never
+     * suspend a search
+     */
+    public void setMaxScheduledWriteBytes( long maxScheduledWriteBytes )
+    {
+        this.maxScheduledWriteBytes = maxScheduledWriteBytes;
+    }
+
+
+    /**
+     * Returns the maximum number of bytes waiting to be written to a session
+     * before a search stops reading its entries.
+     *
+     * @return The maximum number of bytes, or 0 if the searches are never suspended
+     */
+    public long getMaxScheduledWriteBytes()
+    {
+        return maxScheduledWriteBytes;
+    }
+
+
+    /**
+     * @return the executor resuming the suspended searches, or null if the 
+     * server has not been started
+     */
+    ExecutorService getSearchExecutor()
+    {
+        return searchExecutor;
+    }
+
+
+    /**
+     * Sets the executor resuming the suspended searches. The server 
+     * replaces it with its own executor when it is started.
+     * 
+     * @param searchExecutor the executor resuming the suspended searches
+     */
+    void setSearchExecutor( ExecutorService searchExecutor )
+    {
+        this.searchExecutor = searchExecutor;
+    }
+
+
+    /**
+     * @return the scheduler writing the search entries once they waited 
+     * {@link LdapResponseBatch#MAX_DELAY} in a batch, or null if the server
+     * has not been started
+     */
+    public ScheduledExecutorService getBatchScheduler()
+    {
+        return batchScheduler;
+    }
+
+
+    /**
+     * Sets the scheduler writing the search entries which waited too long 
+     * in a batch. The server replaces it with its own scheduler when it is 
+     * started.
+     * 
+     * @param batchScheduler the scheduler writing the batches
+     */
+    void setBatchScheduler( ScheduledExecutorService batchScheduler )
+    {
+        this.batchScheduler = batchScheduler;
+    }
+
+
     /**
      * Gets the {@link ExtendedOperationHandler}s.
      *
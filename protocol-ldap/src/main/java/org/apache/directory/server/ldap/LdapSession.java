@@ -24,7 +24,9 @@ import java.net.SocketAddress;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import org.apache.directory.server.core.CoreSession;
 import org.apache.directory.server.core.LdapPrincipal;
@@ -87,6 +89,9 @@ public class LdapSession
     /** A map containing all the paged search context */
     private Map<Integer, PagedSearchContext> pagedSearchContexts;
     
+    /** The searches waiting for their entries to be written before sending the next ones */
+    private final Queue<Runnable> suspendedSearches;
+    
 
     /**
      * Creates a new instance of LdapSession associated with the underlying
@@ -102,6 +107,7 @@ public class LdapSession
         bindStatus = BindStatus.ANONYMOUS;
         saslProperties = new HashMap<String, Object>();
         pagedSearchContexts = new ConcurrentHashMap<Integer, PagedSearchContext>();
+        suspendedSearches = new ConcurrentLinkedQueue<Runnable>();
     }
     
     
@@ -472,6 +478,43 @@ public class LdapSession
     }
     
     
+    /**
+     * Suspends a search until the responses waiting to be written to the
+     * client have been sent. The search is resumed running it.
+     * 
+     * @param search the search to resume
+     */
+    public void suspendSearch( Runnable search )
+    {
+        suspendedSearches.add( search );
+    }
+    
+    
+    /**
+     * Removes a search from the suspended searches, if it has not been 
+     * resumed yet.
+     * 
+     * @param search the suspended search
+     * @return <code>true</code> if the search was suspended, in which case
+     * the caller resumes it
+     */
+    public boolean removeSuspendedSearch( Runnable search )
+    {
+        return suspendedSearches.remove( search );
+    }
+    
+    
+    /**
+     * Removes the next search to resume.
+     * 
+     * @return the first suspended search, or null if there is none
+     */
+    public Runnable pollSuspendedSearch()
+    {
+        return suspendedSearches.poll();
+    }
+    
+    
     /**
      * The principal and remote address associated with this session.
      * @see Object#toString()
@@ -35,9 +35,12 @@ import org.apache.directory.shared.ldap.codec.search.controls.entryChange.EntryC
 import org.apache.directory.shared.ldap.codec.search.controls.persistentSearch.PersistentSearchControl;
 import org.apache.directory.shared.ldap.exception.LdapException;
 import org.apache.directory.shared.ldap.message.AbandonListener;
+import org.apache.directory.shared.ldap.message.ResultCodeEnum;
+import org.apache.directory.shared.ldap.message.SearchResponseDoneImpl;
 import org.apache.directory.shared.ldap.message.SearchResponseEntryImpl;
 import org.apache.directory.shared.ldap.message.internal.InternalAbandonableRequest;
 import org.apache.directory.shared.ldap.message.internal.InternalSearchRequest;
+import org.apache.directory.shared.ldap.message.internal.InternalSearchResponseDone;
 import org.apache.directory.shared.ldap.message.internal.InternalSearchResponseEntry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -49,9 +52,9 @@ import org.slf4j.LoggerFactory;
  * persistent search implementation which uses the event notification scheme built into
  * the server core.  
  * 
- * This listener is disabled only when a session closes or when an abandon request 
- * cancels it.  Hence time and size limits in normal search operations do not apply
- * here.
+ * This listener is disabled only when a session closes, when an abandon request 
+ * cancels it, or when the client does not read the changes fast enough.  Hence time 
+ * and size limits in normal search operations do not apply here.
  * 
  * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
  */
@@ -206,4 +209,18 @@ public class PersistentSearchListener implements DirectoryListener, AbandonListe
         setECResponseControl( respEntry, renameContext, ChangeType.MODDN );
         session.getIoSession().write( respEntry );
     }
+
+
+    /**
+     * Ends the search : the client does not read the changes fast enough.
+     */
+    public void listenerDisconnected()
+    {
+        session.unregisterOutstandingRequest( req );
+
+        InternalSearchResponseDone done = new SearchResponseDoneImpl( req.getMessageId() );
+        done.getLdapResult().setResultCode( ResultCodeEnum.ADMIN_LIMIT_EXCEEDED );
+        done.getLdapResult().setErrorMessage( I18n.err( I18n.ERR_755 ) );
+        session.getIoSession().write( done );
+    }
 }
\ No newline at end of file
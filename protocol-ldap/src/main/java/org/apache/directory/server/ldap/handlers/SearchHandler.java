@@ -24,6 +24,8 @@ import static java.lang.Math.min;
 import static org.apache.directory.server.ldap.LdapServer.NO_SIZE_LIMIT;
 import static org.apache.directory.server.ldap.LdapServer.NO_TIME_LIMIT;
 
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.lang.exception.ExceptionUtils;
@@ -35,6 +37,7 @@ import org.apache.directory.server.core.event.NotificationCriteria;
 import org.apache.directory.server.core.filtering.EntryFilteringCursor;
 import org.apache.directory.server.core.partition.PartitionNexus;
 import org.apache.directory.server.i18n.I18n;
+import org.apache.directory.server.ldap.LdapResponseBatch;
 import org.apache.directory.server.ldap.LdapSession;
 import org.apache.directory.server.ldap.handlers.controls.PagedSearchContext;
 import org.apache.directory.server.ldap.replication.ReplicationProvider;
@@ -56,10 +59,12 @@ import org.apache.directory.shared.ldap.filter.EqualityNode;
 import org.apache.directory.shared.ldap.filter.OrNode;
 import org.apache.directory.shared.ldap.filter.PresenceNode;
 import org.apache.directory.shared.ldap.filter.SearchScope;
+import org.apache.directory.shared.ldap.message.AbandonListener;
 import org.apache.directory.shared.ldap.message.ReferralImpl;
 import org.apache.directory.shared.ldap.message.ResultCodeEnum;
 import org.apache.directory.shared.ldap.message.SearchResponseEntryImpl;
 import org.apache.directory.shared.ldap.message.SearchResponseReferenceImpl;
+import org.apache.directory.shared.ldap.message.internal.InternalAbandonableRequest;
 import org.apache.directory.shared.ldap.message.internal.InternalLdapResult;
 import org.apache.directory.shared.ldap.message.internal.InternalReferral;
 import org.apache.directory.shared.ldap.message.internal.InternalResponse;
@@ -72,6 +77,7 @@ import org.apache.directory.shared.ldap.name.DN;
 import org.apache.directory.shared.ldap.schema.AttributeType;
 import org.apache.directory.shared.ldap.util.LdapURL;
 import org.apache.directory.shared.ldap.util.StringTools;
+import org.apache.mina.core.session.IoSession;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -135,7 +141,7 @@ public class SearchHandler extends LdapRequestHandler<InternalSearchRequest>
          */
         if ( ! psearchControl.isChangesOnly() )
         {
-            InternalSearchResponseDone done = doSimpleSearch( session, req );
+            InternalSearchResponseDone done = doSimpleSearch( session, req, false );
             
             // ok if normal search beforehand failed somehow quickly abandon psearch
             if ( done.getLdapResult().getResultCode() != ResultCodeEnum.SUCCESS )
@@ -162,6 +168,9 @@ public class SearchHandler extends LdapRequestHandler<InternalSearchRequest>
         criteria.setFilter( req.getFilter() );
         criteria.setScope( req.getScope() );
         criteria.setEventMask( EventType.getEventTypes( psearchControl.getChangeTypes() ) );
+        
+        // The client is sent the modified entries, not the modifications
+        criteria.setCoalesceModifies( true );
         getLdapServer().getDirectoryService().getEventService().addListener( handler, criteria );
         req.addAbandonListener( new SearchAbandonListener( ldapServer, handler ) );
     }
@@ -356,141 +365,412 @@ public class SearchHandler extends LdapRequestHandler<InternalSearchRequest>
     }
     
     
-    private void readResults( LdapSession session, InternalSearchRequest req, InternalLdapResult ldapResult,
-    EntryFilteringCursor cursor, long sizeLimit ) throws Exception
+    /**
+     * The entries of a search, sent to the client by batches as they are 
+     * read. 
+     * When too many bytes are waiting to be written to the session, the 
+     * search stops reading the cursor and is suspended, without holding a 
+     * thread, until half of these bytes have been sent. It is then resumed 
+     * by the {@link org.apache.mina.core.service.IoHandler} of the server,
+     * which runs it to send the next entries, and the SearchResultDone once 
+     * the cursor is exhausted. A paged search is suspended the same way 
+     * while it sends a page.
+     * <p>
+     * A batch is written once it is full, or by the batch scheduler of the 
+     * server once its first entry waited {@link LdapResponseBatch#MAX_DELAY},
+     * even if the cursor is still looking for the next entry. The batch is 
+     * written under the lock of the stream, to keep the entries in order.
+     */
+    private class SearchResultStream implements Runnable, AbandonListener
     {
-        long count = 0;
-
-        while ( (count < sizeLimit ) && cursor.next() )
+        /** The session of the search */
+        private final LdapSession session;
+        
+        /** The search request */
+        private final InternalSearchRequest req;
+        
+        /** The cursor on the entries to send */
+        private final EntryFilteringCursor cursor;
+        
+        /** The maximum number of entries to send */
+        private final long sizeLimit;
+        
+        /** The context of a paged search, null for a simple search */
+        private final PagedSearchContext pagedContext;
+        
+        /** The control added to the SearchResultDone of a paged search */
+        private final PagedResultsControl pagedResultsControl;
+        
+        /** The maximum number of entries of the page */
+        private final int pagedLimit;
+        
+        /** The number of entries sent, the previous pages included */
+        private long count;
+        
+        /** The number of entries of the page sent */
+        private int pageCount;
+        
+        /** The entries read and not written yet, null if there is none */
+        private LdapResponseBatch batch;
+        
+        /** The task writing the batch once its first entry waited too long */
+        private ScheduledFuture<?> batchTask;
+        
+        
+        private SearchResultStream( LdapSession session, InternalSearchRequest req, EntryFilteringCursor cursor, 
+            long sizeLimit )
         {
-            // Handle closed session
-            if ( session.getIoSession().isClosing() )
-            {
-                // The client has closed the connection
-                LOG.debug( "Request terminated for message {}, the client has closed the session", 
-                    req.getMessageId() );
-                break;
-            }
-
-            if ( req.isAbandoned() )
+            this( session, req, cursor, sizeLimit, null, null, Integer.MAX_VALUE );
+        }
+        
+        
+        private SearchResultStream( LdapSession session, InternalSearchRequest req, EntryFilteringCursor cursor, 
+            long sizeLimit, PagedSearchContext pagedContext, PagedResultsControl pagedResultsControl, int pagedLimit )
+        {
+            this.session = session;
+            this.req = req;
+            this.cursor = cursor;
+            this.sizeLimit = sizeLimit;
+            this.pagedContext = pagedContext;
+            this.pagedResultsControl = pagedResultsControl;
+            this.pagedLimit = pagedLimit;
+            
+            if ( pagedContext != null )
             {
-                // The cursor has been closed by an abandon request.
-                LOG.debug( "Request terminated by an AbandonRequest for message {}", 
-                    req.getMessageId() );
-                break;
+                count = pagedContext.getCurrentPosition();
             }
             
-            ClonedServerEntry entry = cursor.get();
-            session.getIoSession().write( generateResponse( session, req, entry ) );
-            LOG.debug( "Sending {}", entry.getDn() );
-            count++;
+            req.addAbandonListener( this );
         }
         
-        // DO NOT WRITE THE RESPONSE - JUST RETURN IT
-        ldapResult.setResultCode( ResultCodeEnum.SUCCESS );
-
-        if ( ( count >= sizeLimit ) && ( cursor.next() ) )
+        
+        /**
+         * Sends the entries, and sets the result code of the SearchResultDone
+         * without writing it. The entries are written by batches, so that 
+         * they are encoded and sent together.
+         *
+         * @param isSuspendable tells if the search can be suspended
+         * @return <code>false</code> if the search has been suspended before 
+         * all the entries have been sent
+         * @throws Exception if the entries can't be read
+         */
+        private boolean read( boolean isSuspendable ) throws Exception
         {
-            // We have reached the limit
-            // Move backward on the cursor to restore the previous position, as we moved forward
-            // to check if there is one more entry available
-            cursor.previous();
-            // Special case if the user has requested more elements than the request size limit
-            ldapResult.setResultCode( ResultCodeEnum.SIZE_LIMIT_EXCEEDED );
-        }
-    }
-    
+            IoSession ioSession = session.getIoSession();
+            long maxScheduledWriteBytes = isSuspendable ? ldapServer.getMaxScheduledWriteBytes() : 0L;
+            
+            try
+            {
+                while ( ( count < sizeLimit ) && ( pageCount < pagedLimit ) && cursor.next() )
+                {
+                    // Handle closed session
+                    if ( ioSession.isClosing() )
+                    {
+                        // The client has closed the connection
+                        LOG.debug( "Request terminated for message {}, the client has closed the session", 
+                            req.getMessageId() );
+                        break;
+                    }
+        
+                    if ( req.isAbandoned() )
+                    {
+                        // The cursor has been closed by an abandon request.
+                        LOG.debug( "Request terminated by an AbandonRequest for message {}", 
+                            req.getMessageId() );
+                        break;
+                    }
+                    
+                    ClonedServerEntry entry = cursor.get();
+                    LOG.debug( "Sending {}", entry.getDn() );
+                    count++;
+                    pageCount++;
+                    
+                    if ( !add( generateResponse( session, req, entry ) ) )
+                    {
+                        continue;
+                    }
+                    
+                    if ( ( maxScheduledWriteBytes > 0 ) && ( ioSession.getScheduledWriteBytes() > maxScheduledWriteBytes )
+                        && suspend( maxScheduledWriteBytes ) )
+                    {
+                        return false;
+                    }
+                }
+            }
+            finally
+            {
+                // The entries read are sent before the error, if the cursor
+                // fails. The entries of an abandoned search are not sent
+                writeBatch();
+            }
+            
+            // DO NOT WRITE THE RESPONSE - JUST RETURN IT
+            if ( pagedContext != null )
+            {
+                completePage();
+                return true;
+            }
+            
+            InternalLdapResult ldapResult = req.getResultResponse().getLdapResult();
+            ldapResult.setResultCode( ResultCodeEnum.SUCCESS );
     
-    private void readPagedResults( LdapSession session, InternalSearchRequest req, InternalLdapResult ldapResult,  
-        EntryFilteringCursor cursor, long sizeLimit, int pagedLimit, 
-        PagedSearchContext pagedContext, PagedResultsControl pagedResultsControl ) throws Exception
-    {
-        req.addAbandonListener( new SearchAbandonListener( ldapServer, cursor ) );
-        setTimeLimitsOnCursor( req, session, cursor );
-        LOG.debug( "using <{},{}> for size limit", sizeLimit, pagedLimit );
-        int cookieValue = 0;
+            if ( ( count >= sizeLimit ) && ( cursor.next() ) )
+            {
+                // We have reached the limit
+                // Move backward on the cursor to restore the previous position, as we moved forward
+                // to check if there is one more entry available
+                cursor.previous();
+                // Special case if the user has requested more elements than the request size limit
+                ldapResult.setResultCode( ResultCodeEnum.SIZE_LIMIT_EXCEEDED );
+            }
+            
+            return true;
+        }
         
-        int count = pagedContext.getCurrentPosition();
-        int pageCount = 0;
         
-        while ( ( count < sizeLimit ) && ( pageCount < pagedLimit ) && cursor.next() )
+        /**
+         * Adds an entry to the batch, and writes the batch if it is full. The
+         * first entry of a batch schedules its writing, so that it doesn't
+         * wait for the next entries longer than {@link LdapResponseBatch#MAX_DELAY}.
+         *
+         * @param response the entry to send
+         * @return <code>true</code> if the batch has been written
+         */
+        private synchronized boolean add( InternalResponse response )
         {
-            if ( session.getIoSession().isClosing() )
+            if ( batch == null )
             {
-                break;
+                batch = new LdapResponseBatch();
+                ScheduledExecutorService batchScheduler = ldapServer.getBatchScheduler();
+                
+                if ( ( batchScheduler != null ) && !batchScheduler.isShutdown() )
+                {
+                    batchTask = batchScheduler.schedule( new Runnable()
+                    {
+                        public void run()
+                        {
+                            writeBatch();
+                        }
+                    }, LdapResponseBatch.MAX_DELAY, TimeUnit.NANOSECONDS );
+                }
             }
             
-            ClonedServerEntry entry = cursor.get();
-            session.getIoSession().write( generateResponse( session, req, entry ) );
-            count++;
-            pageCount++;
+            batch.add( response );
+            
+            if ( !batch.isFull() )
+            {
+                return false;
+            }
+            
+            writeBatch();
+            
+            return true;
         }
         
-        // DO NOT WRITE THE RESPONSE - JUST RETURN IT
-        ldapResult.setResultCode( ResultCodeEnum.SUCCESS );
-        
-        boolean hasMoreEntry = cursor.next();
         
-        if ( hasMoreEntry )
+        /**
+         * Writes the entries waiting in the batch, unless the search has been
+         * abandoned. A task scheduled for a batch already written finds no 
+         * entry, or writes the next batch earlier.
+         */
+        private synchronized void writeBatch()
         {
-            cursor.previous();
+            if ( batchTask != null )
+            {
+                batchTask.cancel( false );
+                batchTask = null;
+            }
+            
+            if ( batch == null )
+            {
+                return;
+            }
+            
+            if ( !req.isAbandoned() )
+            {
+                session.getIoSession().write( batch );
+            }
+            
+            batch = null;
         }
-
-        if ( !hasMoreEntry )
+        
+        
+        /**
+         * Sets the result of a paged search once its page has been sent, 
+         * and keeps its cursor for the next page, if any.
+         */
+        private void completePage() throws Exception
         {
-            // That means we don't have anymore entry
-            // If we are here, it means we have returned all the entries
-            // We have to remove the cookie from the session
-            cookieValue = pagedContext.getCookieValue();
-            PagedSearchContext psCookie = session.removePagedSearchContext( cookieValue );
+            InternalLdapResult ldapResult = req.getResultResponse().getLdapResult();
+            ldapResult.setResultCode( ResultCodeEnum.SUCCESS );
+            int cookieValue = 0;
             
-            // Close the cursor if there is one
-            if ( psCookie != null )
+            boolean hasMoreEntry = cursor.next();
+            
+            if ( hasMoreEntry )
             {
-                cursor = psCookie.getCursor();
+                cursor.previous();
+            }
+
+            if ( !hasMoreEntry )
+            {
+                // That means we don't have anymore entry
+                // If we are here, it means we have returned all the entries
+                // We have to remove the cookie from the session
+                cookieValue = pagedContext.getCookieValue();
+                PagedSearchContext psCookie = session.removePagedSearchContext( cookieValue );
                 
-                if ( cursor != null )
+                // Close the cursor if there is one
+                if ( psCookie != null )
+                {
+                    EntryFilteringCursor psCursor = psCookie.getCursor();
+                    
+                    if ( psCursor != null )
+                    {
+                        psCursor.close();
+                    }
+                }
+                
+                PagedResultsControl lastPageControl = new PagedResultsControl();
+                lastPageControl.setCritical( true );
+                lastPageControl.setSize( 0 );
+                req.getResultResponse().add( lastPageControl );
+            }
+            else
+            {
+                // We have reached one limit
+                
+                if ( count < sizeLimit )
+                {
+                    // We stop here. We have to add a ResponseControl
+                    // DO NOT WRITE THE RESPONSE - JUST RETURN IT
+                    ldapResult.setResultCode( ResultCodeEnum.SUCCESS );
+                    req.getResultResponse().add( pagedResultsControl );
+                    
+                    // Stores the cursor current position 
+                    pagedContext.incrementCurrentPosition( pageCount );
+                }
+                else
                 {
+                    // Return an exception, close the cursor, and clean the session
+                    ldapResult.setResultCode( ResultCodeEnum.SIZE_LIMIT_EXCEEDED );
                     cursor.close();
+                    session.removePagedSearchContext( cookieValue );
                 }
             }
+        }
+        
+        
+        /**
+         * Suspends the search, unless the bytes waiting to be written have 
+         * been sent meanwhile : the search would then never be resumed.
+         * 
+         * @param maxScheduledWriteBytes the bytes waiting to be written above 
+         * which the search is suspended
+         * @return <code>true</code> if the search is suspended, in which case
+         * it is no more run by this thread
+         */
+        private boolean suspend( long maxScheduledWriteBytes )
+        {
+            LOG.debug( "Suspending the search for message {}", req.getMessageId() );
+            session.suspendSearch( this );
             
-            pagedResultsControl = new PagedResultsControl();
-            pagedResultsControl.setCritical( true );
-            pagedResultsControl.setSize( 0 );
-            req.getResultResponse().add( pagedResultsControl );
-
-            return;
+            if ( ( session.getIoSession().getScheduledWriteBytes() > maxScheduledWriteBytes / 2 )
+                && !req.isAbandoned() )
+            {
+                return true;
+            }
+            
+            return !session.removeSuspendedSearch( this );
         }
-        else
+        
+        
+        /**
+         * Resumes the suspended search, and completes it once all the entries
+         * have been sent.
+         */
+        public void run()
         {
-            // We have reached one limit
+            LOG.debug( "Resuming the search for message {}", req.getMessageId() );
+            boolean isDone = true;
             
-            if ( count < sizeLimit )
+            try
             {
-                // We stop here. We have to add a ResponseControl
-                // DO NOT WRITE THE RESPONSE - JUST RETURN IT
-                ldapResult.setResultCode( ResultCodeEnum.SUCCESS );
-                req.getResultResponse().add( pagedResultsControl );
+                isDone = read( true );
                 
-                // Stores the cursor current position 
-                pagedContext.incrementCurrentPosition( pageCount );
-                return;
+                if ( isDone && !req.isAbandoned() )
+                {
+                    session.getIoSession().write( req.getResultResponse() );
+                }
             }
-            else
+            catch ( Exception e )
             {
-                // Return an exception, close the cursor, and clean the session
-                ldapResult.setResultCode( ResultCodeEnum.SIZE_LIMIT_EXCEEDED );
-                
-                if ( cursor != null )
+                // Don't send anything for an abandoned search, as in handleIgnoringReferrals()
+                if ( !( e instanceof OperationAbandonedException ) && !req.isAbandoned() )
                 {
-                    cursor.close();
+                    handleException( session, req, e );
                 }
                 
-                session.removePagedSearchContext( cookieValue );
-                
+                // The cursor of a paged search is closed as in doPagedSearch()
+                if ( pagedContext != null )
+                {
+                    closeCursor( cursor );
+                }
+            }
+            finally
+            {
+                if ( isDone )
+                {
+                    // The cursor of a paged search is kept for the next page
+                    if ( pagedContext == null )
+                    {
+                        closeCursor( cursor );
+                    }
+                    
+                    session.unregisterOutstandingRequest( req );
+                }
+            }
+        }
+        
+        
+        /**
+         * Drops the search if it is suspended, as it would never be resumed
+         * once its cursor is closed by the {@link SearchAbandonListener}.
+         */
+        public void requestAbandoned( InternalAbandonableRequest abandoned )
+        {
+            if ( !session.removeSuspendedSearch( this ) )
+            {
                 return;
             }
+            
+            LOG.debug( "Dropping the suspended search for message {}", req.getMessageId() );
+            
+            if ( pagedContext != null )
+            {
+                session.removePagedSearchContext( pagedContext.getCookieValue() );
+            }
+            
+            session.unregisterOutstandingRequest( req );
+        }
+    }
+    
+    
+    /**
+     * Closes the cursor of a search, logging the failures.
+     */
+    private void closeCursor( EntryFilteringCursor cursor )
+    {
+        if ( cursor != null )
+        {
+            try
+            {
+                cursor.close();
+            }
+            catch ( Exception e )
+            {
+                LOG.error( I18n.err( I18n.ERR_168 ), e );
+            }
         }
     }
     
@@ -560,9 +840,12 @@ public class SearchHandler extends LdapRequestHandler<InternalSearchRequest>
     
     /**
      * Handle a Paged Search request.
+     * 
+     * @return the result done, or null if the search has been suspended 
+     * while it sends the page
      */
-    private InternalSearchResponseDone doPagedSearch( LdapSession session, InternalSearchRequest req, PagedResultsControl control )
-        throws Exception
+    private InternalSearchResponseDone doPagedSearch( LdapSession session, InternalSearchRequest req, 
+        PagedResultsControl control, boolean isSuspendable ) throws Exception
     {
         PagedResultsControl pagedSearchControl = ( PagedResultsControl )control;
         PagedResultsControl pagedResultsControl = null;
@@ -621,7 +904,7 @@ public class SearchHandler extends LdapRequestHandler<InternalSearchRequest>
                     cursor.beforeFirst();
                     
                     // And read the entries
-                    readResults( session, req, ldapResult, cursor, sizeLimit );
+                    new SearchResultStream( session, req, cursor, sizeLimit ).read( false );
                 }
                 finally
                 {
@@ -724,7 +1007,15 @@ public class SearchHandler extends LdapRequestHandler<InternalSearchRequest>
          */
         try
         {
-            readPagedResults( session, req, ldapResult, cursor, sizeLimit, pagedLimit, pagedContext, pagedResultsControl );
+            req.addAbandonListener( new SearchAbandonListener( ldapServer, cursor ) );
+            setTimeLimitsOnCursor( req, session, cursor );
+            LOG.debug( "using <{},{}> for size limit", sizeLimit, pagedLimit );
+            
+            if ( !new SearchResultStream( session, req, cursor, sizeLimit, pagedContext, pagedResultsControl, 
+                pagedLimit ).read( isSuspendable ) )
+            {
+                return null;
+            }
         }
         catch ( Exception e )
         {
@@ -753,21 +1044,23 @@ public class SearchHandler extends LdapRequestHandler<InternalSearchRequest>
      * <br>
      * @param session the LDAP session object for this request
      * @param req the search request 
-     * @return the result done 
+     * @param isSuspendable tells if the search can be suspended while its 
+     * entries are written
+     * @return the result done, or null if the search has been suspended, in
+     * which case it writes the result done and unregisters the request once
+     * it is resumed and completed
      * @throws Exception if there are failures while processing the request
      */
-    private InternalSearchResponseDone doSimpleSearch( LdapSession session, InternalSearchRequest req ) 
-        throws Exception
+    private InternalSearchResponseDone doSimpleSearch( LdapSession session, InternalSearchRequest req,
+        boolean isSuspendable ) throws Exception
     {
-        InternalLdapResult ldapResult = req.getResultResponse().getLdapResult();
-        
         // Check if we are using the Paged Search Control
         Object control = req.getControls().get( PagedResultsControl.CONTROL_OID );
         
         if ( control != null )
         {
             // Let's deal with the pagedControl
-            return doPagedSearch( session, req, (PagedResultsControl)control );
+            return doPagedSearch( session, req, (PagedResultsControl)control, isSuspendable );
         }
         
         // A normal search
@@ -778,6 +1071,9 @@ public class SearchHandler extends LdapRequestHandler<InternalSearchRequest>
         // Position the cursor at the beginning
         cursor.beforeFirst();
         
+        // Set when the cursor is handed over to a suspended search
+        boolean isSuspended = false;
+        
         /*
          * Iterate through all search results building and sending back responses
          * for each search result returned.
@@ -796,23 +1092,21 @@ public class SearchHandler extends LdapRequestHandler<InternalSearchRequest>
             LOG.debug( "using <{},{}> for size limit", requestLimit, serverLimit );
             long sizeLimit = min( requestLimit, serverLimit );
             
-            readResults( session, req, ldapResult, cursor, sizeLimit );
+            isSuspended = !new SearchResultStream( session, req, cursor, sizeLimit ).read( isSuspendable );
         }
         finally
         {
-            if ( cursor != null )
+            if ( !isSuspended )
             {
-                try
-                {
-                    cursor.close();
-                }
-                catch ( Exception e )
-                {
-                    LOG.error( I18n.err( I18n.ERR_168 ), e );
-                }
+                closeCursor( cursor );
             }
         }
         
+        if ( isSuspended )
+        {
+            return null;
+        }
+        
         return ( InternalSearchResponseDone ) req.getResultResponse();
     }
     
@@ -986,6 +1280,9 @@ public class SearchHandler extends LdapRequestHandler<InternalSearchRequest>
         // persistent search
         boolean persistentSearchException = false;
         
+        // A flag set when the search is suspended, and completed later
+        boolean isSuspended = false;
+        
         // add the search request to the registry of outstanding requests for this session
         session.registerOutstandingRequest( req );
 
@@ -1027,8 +1324,15 @@ public class SearchHandler extends LdapRequestHandler<InternalSearchRequest>
             // ===============================================================
 
             //long t0 = System.nanoTime();
-            InternalSearchResponseDone done = doSimpleSearch( session, req );
+            InternalSearchResponseDone done = doSimpleSearch( session, req, true );
             //long t1 = System.nanoTime();
+            
+            if ( done == null )
+            {
+                isSuspended = true;
+                return;
+            }
+            
             session.getIoSession().write( done );
             //.print( "Handler;" + ((t1-t0)/1000) + ";" );
         }
@@ -1064,8 +1368,9 @@ public class SearchHandler extends LdapRequestHandler<InternalSearchRequest>
         {
             
             // remove the request from the session, except if
-            // we didn't got an exception for a Persistent search 
-            if ( !isPersistentSearch || persistentSearchException )
+            // we didn't got an exception for a Persistent search, or
+            // if the search goes on once resumed
+            if ( ( !isPersistentSearch || persistentSearchException ) && !isSuspended )
             {
                 session.unregisterOutstandingRequest( req );
             }
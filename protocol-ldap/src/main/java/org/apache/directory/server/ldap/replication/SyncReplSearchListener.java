@@ -36,11 +36,14 @@ import org.apache.directory.shared.ldap.constants.SchemaConstants;
 import org.apache.directory.shared.ldap.entry.Entry;
 import org.apache.directory.shared.ldap.exception.LdapInvalidAttributeValueException;
 import org.apache.directory.shared.ldap.message.AbandonListener;
+import org.apache.directory.shared.ldap.message.ResultCodeEnum;
+import org.apache.directory.shared.ldap.message.SearchResponseDoneImpl;
 import org.apache.directory.shared.ldap.message.SearchResponseEntryImpl;
 import org.apache.directory.shared.ldap.message.control.replication.SyncModifyDnType;
 import org.apache.directory.shared.ldap.message.control.replication.SyncStateTypeEnum;
 import org.apache.directory.shared.ldap.message.internal.InternalAbandonableRequest;
 import org.apache.directory.shared.ldap.message.internal.InternalSearchRequest;
+import org.apache.directory.shared.ldap.message.internal.InternalSearchResponseDone;
 import org.apache.directory.shared.ldap.message.internal.InternalSearchResponseEntry;
 import org.apache.directory.shared.ldap.util.StringTools;
 import org.apache.mina.core.future.WriteFuture;
@@ -392,6 +395,28 @@ public class SyncReplSearchListener implements DirectoryListener, AbandonListene
     }
     
     
+    /**
+     * Ends the replication search, so that the consumer starts again from 
+     * its last cookie : the changes are not delivered fast enough.
+     */
+    public void listenerDisconnected()
+    {
+        LOG.error( I18n.err( I18n.ERR_755 ) );
+
+        if ( ( session == null ) || ( req == null ) )
+        {
+            return;
+        }
+
+        session.unregisterOutstandingRequest( req );
+
+        InternalSearchResponseDone done = new SearchResponseDoneImpl( req.getMessageId() );
+        done.getLdapResult().setResultCode( ResultCodeEnum.ADMIN_LIMIT_EXCEEDED );
+        done.getLdapResult().setErrorMessage( I18n.err( I18n.ERR_755 ) );
+        session.getIoSession().write( done );
+    }
+    
+    
     public boolean isPushInRealTime()
     {
         return pushInRealTime;
@@ -0,0 +1,204 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.ldap;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.directory.shared.ldap.entry.DefaultEntry;
+import org.apache.directory.shared.ldap.entry.Entry;
+import org.apache.directory.shared.ldap.message.ResultCodeEnum;
+import org.apache.directory.shared.ldap.message.SearchResponseDoneImpl;
+import org.apache.directory.shared.ldap.message.SearchResponseEntryImpl;
+import org.apache.directory.shared.ldap.message.internal.InternalSearchResponseDone;
+import org.apache.directory.shared.ldap.message.internal.InternalSearchResponseEntry;
+import org.apache.directory.shared.ldap.name.DN;
+import org.apache.directory.shared.ldap.util.StringTools;
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.future.WriteFuture;
+import org.apache.mina.core.session.DummySession;
+import org.apache.mina.filter.codec.AbstractProtocolEncoderOutput;
+import org.junit.Test;
+
+
+/**
+ * Tests the {@link LdapProtocolEncoder}, reading back the PDUs it writes.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class LdapProtocolEncoderTest
+{
+    private static final int MESSAGE_ID = 7;
+
+    private static final int ENTRY_COUNT = 200;
+
+
+    /**
+     * An output keeping the buffers written.
+     */
+    private static class BufferOutput extends AbstractProtocolEncoderOutput
+    {
+        public WriteFuture flush()
+        {
+            return null;
+        }
+
+
+        private List<IoBuffer> getBuffers()
+        {
+            List<IoBuffer> buffers = new ArrayList<IoBuffer>();
+
+            for ( Object message : getMessageQueue() )
+            {
+                buffers.add( ( IoBuffer ) message );
+            }
+
+            return buffers;
+        }
+    }
+
+
+    /**
+     * Reads the length of a TLV.
+     */
+    private static int readLength( IoBuffer buffer )
+    {
+        int length = buffer.get() & 0xFF;
+
+        if ( length < 0x80 )
+        {
+            return length;
+        }
+
+        int bytes = length & 0x7F;
+        length = 0;
+
+        for ( int i = 0; i < bytes; i++ )
+        {
+            length = ( length << 8 ) | ( buffer.get() & 0xFF );
+        }
+
+        return length;
+    }
+
+
+    /**
+     * Reads the LDAP messages of a buffer, which must only contain whole
+     * PDUs : the name of the entry for a SearchResultEntry, or "done" for
+     * a SearchResultDone.
+     */
+    private static void readMessages( IoBuffer buffer, List<String> messages )
+    {
+        while ( buffer.hasRemaining() )
+        {
+            // LDAPMessage SEQUENCE
+            assertEquals( 0x30, buffer.get() & 0xFF );
+            int end = readLength( buffer );
+            end += buffer.position();
+
+            // messageID INTEGER
+            assertEquals( 0x02, buffer.get() & 0xFF );
+            int idLength = readLength( buffer );
+            int id = 0;
+
+            for ( int i = 0; i < idLength; i++ )
+            {
+                id = ( id << 8 ) | ( buffer.get() & 0xFF );
+            }
+
+            assertEquals( MESSAGE_ID, id );
+
+            int protocolOp = buffer.get() & 0xFF;
+            readLength( buffer );
+
+            if ( protocolOp == 0x64 )
+            {
+                // SearchResultEntry : the objectName OCTET STRING comes first
+                assertEquals( 0x04, buffer.get() & 0xFF );
+                byte[] name = new byte[readLength( buffer )];
+                buffer.get( name );
+                messages.add( StringTools.utf8ToString( name ) );
+            }
+            else
+            {
+                assertEquals( 0x65, protocolOp );
+                messages.add( "done" );
+            }
+
+            assertTrue( end <= buffer.limit() );
+            buffer.position( end );
+        }
+    }
+
+
+    @Test
+    public void testLargeBatch() throws Exception
+    {
+        char[] description = new char[1000];
+        Arrays.fill( description, 'd' );
+        LdapResponseBatch batch = new LdapResponseBatch();
+        List<String> expected = new ArrayList<String>();
+
+        for ( int i = 0; i < ENTRY_COUNT; i++ )
+        {
+            DN dn = new DN( "cn=entry" + i );
+            Entry entry = new DefaultEntry( dn );
+            entry.add( "objectClass", "top", "person" );
+            entry.add( "description", new String( description ) );
+
+            InternalSearchResponseEntry response = new SearchResponseEntryImpl( MESSAGE_ID );
+            response.setObjectName( dn );
+            response.setEntry( entry );
+            batch.add( response );
+            expected.add( dn.getName() );
+        }
+
+        InternalSearchResponseDone done = new SearchResponseDoneImpl( MESSAGE_ID );
+        done.getLdapResult().setResultCode( ResultCodeEnum.SUCCESS );
+        expected.add( "done" );
+
+        LdapProtocolEncoder encoder = new LdapProtocolEncoder();
+        DummySession session = new DummySession();
+        BufferOutput out = new BufferOutput();
+        encoder.encode( session, batch, out );
+        encoder.encode( session, done, out );
+
+        List<IoBuffer> buffers = out.getBuffers();
+        List<String> messages = new ArrayList<String>();
+        int size = 0;
+
+        for ( IoBuffer buffer : buffers )
+        {
+            size += buffer.remaining();
+            readMessages( buffer, messages );
+        }
+
+        // The batch is split in several buffers of whole PDUs, written in
+        // order, and followed by the buffer of the SearchResultDone
+        assertTrue( size > LdapProtocolEncoder.MAX_BATCH_BYTES * 2 );
+        assertTrue( buffers.size() > 2 );
+        assertEquals( expected, messages );
+    }
+}
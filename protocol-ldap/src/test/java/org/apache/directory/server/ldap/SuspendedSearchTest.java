@@ -0,0 +1,400 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.ldap;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.directory.server.core.LdapPrincipal;
+import org.apache.directory.server.core.MockCoreSession;
+import org.apache.directory.server.core.MockDirectoryService;
+import org.apache.directory.server.core.entry.ClonedServerEntry;
+import org.apache.directory.server.core.filtering.BaseEntryFilteringCursor;
+import org.apache.directory.server.core.filtering.EntryFilteringCursor;
+import org.apache.directory.server.core.interceptor.context.SearchOperationContext;
+import org.apache.directory.server.ldap.handlers.SearchHandler;
+import org.apache.directory.shared.ldap.codec.controls.ManageDsaITControl;
+import org.apache.directory.shared.ldap.codec.search.controls.pagedSearch.PagedResultsControl;
+import org.apache.directory.shared.ldap.constants.AuthenticationLevel;
+import org.apache.directory.shared.ldap.cursor.ListCursor;
+import org.apache.directory.shared.ldap.entry.DefaultEntry;
+import org.apache.directory.shared.ldap.entry.Entry;
+import org.apache.directory.shared.ldap.exception.LdapException;
+import org.apache.directory.shared.ldap.filter.PresenceNode;
+import org.apache.directory.shared.ldap.filter.SearchScope;
+import org.apache.directory.shared.ldap.message.ResultCodeEnum;
+import org.apache.directory.shared.ldap.message.SearchRequestImpl;
+import org.apache.directory.shared.ldap.message.internal.InternalResponse;
+import org.apache.directory.shared.ldap.message.internal.InternalSearchRequest;
+import org.apache.directory.shared.ldap.message.internal.InternalSearchResponseDone;
+import org.apache.directory.shared.ldap.message.internal.InternalSearchResponseEntry;
+import org.apache.directory.shared.ldap.name.DN;
+import org.apache.mina.core.future.WriteFuture;
+import org.apache.mina.core.session.DummySession;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * Tests the searches suspended while too many bytes wait to be written to
+ * the session, and resumed once they have been sent.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class SuspendedSearchTest
+{
+    private static final long MAX_SCHEDULED_WRITE_BYTES = 1000L;
+
+    private static final int MESSAGE_ID = 5;
+
+    private static final int ENTRY_COUNT = 100;
+
+    private LdapServer ldapServer;
+
+    private LdapProtocolHandler handler;
+
+    private ExecutorService searchExecutor;
+
+    private SearchDummySession ioSession;
+
+    private LdapSession ldapSession;
+
+    /** The entries returned by the search */
+    private ListCursor<Entry> entries;
+
+
+    /**
+     * A session keeping the messages written, whose bytes waiting to be
+     * written are set by the test. The messages are sent as soon as they
+     * are written.
+     */
+    private class SearchDummySession extends DummySession
+    {
+        private volatile long scheduledWriteBytes;
+
+        private final List<Object> messages = new CopyOnWriteArrayList<Object>();
+
+
+        public long getScheduledWriteBytes()
+        {
+            return scheduledWriteBytes;
+        }
+
+
+        public WriteFuture write( Object message )
+        {
+            messages.add( message );
+
+            try
+            {
+                handler.messageSent( this, message );
+            }
+            catch ( Exception e )
+            {
+                throw new RuntimeException( e );
+            }
+
+            return null;
+        }
+
+
+        /**
+         * Sends all the bytes waiting to be written.
+         */
+        private void drain() throws Exception
+        {
+            scheduledWriteBytes = 0;
+            handler.messageSent( this, messages.get( messages.size() - 1 ) );
+        }
+    }
+
+
+    @Before
+    public void setUp() throws Exception
+    {
+        List<Entry> list = new ArrayList<Entry>();
+
+        for ( int i = 0; i < ENTRY_COUNT; i++ )
+        {
+            list.add( new ClonedServerEntry( new DefaultEntry( new DN( "cn=entry" + i ) ) ) );
+        }
+
+        entries = new ListCursor<Entry>( list );
+
+        searchExecutor = Executors.newSingleThreadExecutor();
+        ldapServer = new LdapServer();
+        ldapServer.setMaxScheduledWriteBytes( MAX_SCHEDULED_WRITE_BYTES );
+        ldapServer.setMaxSizeLimit( LdapServer.NO_SIZE_LIMIT );
+        ldapServer.setMaxTimeLimit( LdapServer.NO_TIME_LIMIT );
+        ldapServer.setSearchExecutor( searchExecutor );
+        ldapServer.setSearchHandler( new SearchHandler() );
+        handler = new LdapProtocolHandler( ldapServer );
+
+        ioSession = new SearchDummySession();
+        ioSession.scheduledWriteBytes = MAX_SCHEDULED_WRITE_BYTES * 2;
+        ldapSession = new LdapSession( ioSession );
+        ldapSession.setCoreSession( new MockCoreSession( new LdapPrincipal( new DN( "uid=admin,ou=system" ),
+            AuthenticationLevel.STRONG ), new MockDirectoryService() )
+        {
+            public EntryFilteringCursor search( InternalSearchRequest searchRequest ) throws LdapException
+            {
+                return new BaseEntryFilteringCursor( entries, new SearchOperationContext( this ) );
+            }
+        } );
+        ldapServer.getLdapSessionManager().addLdapSession( ldapSession );
+    }
+
+
+    @After
+    public void tearDown() throws Exception
+    {
+        searchExecutor.shutdownNow();
+    }
+
+
+    private InternalSearchRequest createRequest() throws Exception
+    {
+        InternalSearchRequest req = new SearchRequestImpl( MESSAGE_ID );
+        req.setBase( new DN( "ou=system" ) );
+        req.setScope( SearchScope.SUBTREE );
+        req.setFilter( new PresenceNode( "objectClass" ) );
+        req.add( new ManageDsaITControl() );
+
+        return req;
+    }
+
+
+    /**
+     * Waits for the resumed searches to complete.
+     */
+    private void awaitSearches() throws Exception
+    {
+        searchExecutor.shutdown();
+        assertTrue( searchExecutor.awaitTermination( 10, TimeUnit.SECONDS ) );
+    }
+
+
+    /**
+     * @return the entries sent, checking they are sent in order
+     */
+    private int getEntryCount()
+    {
+        int count = 0;
+
+        for ( Object message : ioSession.messages )
+        {
+            if ( message instanceof LdapResponseBatch )
+            {
+                for ( InternalResponse response : ( ( LdapResponseBatch ) message ).getResponses() )
+                {
+                    InternalSearchResponseEntry entry = ( InternalSearchResponseEntry ) response;
+                    assertEquals( "cn=entry" + count, entry.getObjectName().getName() );
+                    count++;
+                }
+            }
+        }
+
+        return count;
+    }
+
+
+    /**
+     * @return the SearchResultDone sent, checking there is one at most,
+     * which is the last message
+     */
+    private InternalSearchResponseDone getDone()
+    {
+        InternalSearchResponseDone done = null;
+
+        for ( Object message : ioSession.messages )
+        {
+            if ( message instanceof InternalSearchResponseDone )
+            {
+                assertNull( done );
+                done = ( InternalSearchResponseDone ) message;
+            }
+        }
+
+        if ( done != null )
+        {
+            assertTrue( done == ioSession.messages.get( ioSession.messages.size() - 1 ) );
+        }
+
+        return done;
+    }
+
+
+    @Test
+    public void testResume() throws Exception
+    {
+        ldapServer.getSearchHandler().handle( ldapSession, createRequest() );
+
+        // The search is suspended once a batch has been written
+        assertEquals( LdapResponseBatch.MAX_RESPONSES, getEntryCount() );
+        assertNull( getDone() );
+        assertTrue( ldapSession.getOutstandingRequests().containsKey( MESSAGE_ID ) );
+        assertFalse( entries.isClosed() );
+
+        // It is not resumed while the bytes stay above the mark
+        handler.messageSent( ioSession, ioSession.messages.get( 0 ) );
+        assertEquals( LdapResponseBatch.MAX_RESPONSES, getEntryCount() );
+
+        ioSession.drain();
+        awaitSearches();
+
+        assertEquals( ENTRY_COUNT, getEntryCount() );
+        assertNotNull( getDone() );
+        assertEquals( ResultCodeEnum.SUCCESS, getDone().getLdapResult().getResultCode() );
+        assertTrue( ldapSession.getOutstandingRequests().isEmpty() );
+        assertTrue( entries.isClosed() );
+        assertNull( ldapSession.pollSuspendedSearch() );
+    }
+
+
+    @Test
+    public void testAbandonWhileSuspended() throws Exception
+    {
+        ldapServer.getSearchHandler().handle( ldapSession, createRequest() );
+        assertEquals( LdapResponseBatch.MAX_RESPONSES, getEntryCount() );
+
+        ldapSession.abandonOutstandingRequest( MESSAGE_ID );
+
+        // The search is dropped, and sends nothing once the bytes are sent
+        assertTrue( entries.isClosed() );
+        assertTrue( ldapSession.getOutstandingRequests().isEmpty() );
+
+        ioSession.drain();
+        awaitSearches();
+
+        assertEquals( LdapResponseBatch.MAX_RESPONSES, getEntryCount() );
+        assertNull( getDone() );
+        assertNull( ldapSession.pollSuspendedSearch() );
+    }
+
+
+    @Test
+    public void testPagedSearch() throws Exception
+    {
+        InternalSearchRequest req = createRequest();
+        PagedResultsControl control = new PagedResultsControl();
+        control.setSize( 50 );
+        req.add( control );
+
+        ldapServer.getSearchHandler().handle( ldapSession, req );
+
+        // The page is suspended as a simple search
+        assertEquals( LdapResponseBatch.MAX_RESPONSES, getEntryCount() );
+        assertNull( getDone() );
+        assertTrue( ldapSession.getOutstandingRequests().containsKey( MESSAGE_ID ) );
+
+        ioSession.drain();
+        awaitSearches();
+
+        assertEquals( 50, getEntryCount() );
+        assertNotNull( getDone() );
+        assertEquals( ResultCodeEnum.SUCCESS, getDone().getLdapResult().getResultCode() );
+        assertTrue( ldapSession.getOutstandingRequests().isEmpty() );
+
+        // The cursor is kept for the next page
+        PagedResultsControl doneControl = ( PagedResultsControl ) getDone().getControls().get(
+            PagedResultsControl.CONTROL_OID );
+        assertNotNull( ldapSession.getPagedSearchContext( doneControl.getCookieValue() ) );
+        assertFalse( entries.isClosed() );
+    }
+
+
+    @Test(timeout = 10000)
+    public void testSlowSearch() throws Exception
+    {
+        final CountDownLatch found = new CountDownLatch( 1 );
+        List<Entry> list = new ArrayList<Entry>();
+        list.add( new ClonedServerEntry( new DefaultEntry( new DN( "cn=entry0" ) ) ) );
+        list.add( new ClonedServerEntry( new DefaultEntry( new DN( "cn=entry1" ) ) ) );
+
+        // The cursor looks for the second entry until the test finds it
+        entries = new ListCursor<Entry>( list )
+        {
+            private int calls;
+
+
+            public boolean next() throws Exception
+            {
+                if ( ++calls == 2 )
+                {
+                    found.await();
+                }
+
+                return super.next();
+            }
+        };
+
+        ScheduledExecutorService batchScheduler = Executors.newSingleThreadScheduledExecutor();
+        ldapServer.setBatchScheduler( batchScheduler );
+        ioSession.scheduledWriteBytes = 0;
+
+        Thread search = new Thread()
+        {
+            public void run()
+            {
+                try
+                {
+                    ldapServer.getSearchHandler().handle( ldapSession, createRequest() );
+                }
+                catch ( Exception e )
+                {
+                    throw new RuntimeException( e );
+                }
+            }
+        };
+
+        search.start();
+
+        // The first entry is sent without waiting for the next one
+        while ( getEntryCount() == 0 )
+        {
+            Thread.sleep( 10 );
+        }
+
+        assertEquals( 1, getEntryCount() );
+        assertNull( getDone() );
+
+        found.countDown();
+        search.join();
+        batchScheduler.shutdown();
+
+        assertEquals( 2, getEntryCount() );
+        assertNotNull( getDone() );
+        assertEquals( ResultCodeEnum.SUCCESS, getDone().getLdapResult().getResultCode() );
+    }
+}
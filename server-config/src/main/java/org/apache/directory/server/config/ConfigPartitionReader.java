@@ -799,6 +799,13 @@ public class ConfigPartitionReader
             // configure replication
         }
 
+        EntryAttribute searchThreadsAttr = dsEntry.get( ConfigSchemaConstants.ADS_DS_SEARCH_THREADS );
+
+        if ( searchThreadsAttr != null )
+        {
+            dirService.setSearchThreads( Integer.parseInt( searchThreadsAttr.getString() ) );
+        }
+
         EntryAttribute syncPeriodAttr = dsEntry.get( ConfigSchemaConstants.ADS_DS_SYNCPERIOD_MILLIS );
 
         if ( syncPeriodAttr != null )
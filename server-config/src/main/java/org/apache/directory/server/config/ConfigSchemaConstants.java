@@ -98,6 +98,8 @@ public interface ConfigSchemaConstants
 
     String ADS_DS_REPLICATION = "ads-dsReplication";
 
+    String ADS_DS_SEARCH_THREADS = "ads-dsSearchThreads";
+
     String ADS_DS_SYNCPERIOD_MILLIS = "ads-dsSyncPeriodMillis";
 
     String ADS_DS_TEST_ENTRIES = "ads-dsTestEntries";
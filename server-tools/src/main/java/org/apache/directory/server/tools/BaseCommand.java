@@ -102,6 +102,18 @@ public class BaseCommand
         commands.put( command.getName(), command );
         commandsOrdered.add( command.getName() );
 
+        command = new MigrateCommand();
+        commands.put( command.getName(), command );
+        commandsOrdered.add( command.getName() );
+
+        command = new BulkLoadCommand();
+        commands.put( command.getName(), command );
+        commandsOrdered.add( command.getName() );
+
+        command = new CompactCommand();
+        commands.put( command.getName(), command );
+        commandsOrdered.add( command.getName() );
+
         Option op = new Option( "i", "install-path", true, "path to installation directory" );
         getGlobal().addOption( op );
         op = new Option( "z", "instance-path", true, "path to ADS instance directory" );
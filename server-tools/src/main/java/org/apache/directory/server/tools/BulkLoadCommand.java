@@ -0,0 +1,224 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.tools;
+
+
+import java.io.File;
+import java.util.UUID;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.directory.server.constants.ServerDNConstants;
+import org.apache.directory.server.core.DefaultDirectoryService;
+import org.apache.directory.server.core.DirectoryService;
+import org.apache.directory.server.core.partition.impl.btree.jdbm.JdbmIndex;
+import org.apache.directory.server.core.partition.impl.btree.jdbm.JdbmStore;
+import org.apache.directory.server.i18n.I18n;
+import org.apache.directory.shared.ldap.constants.SchemaConstants;
+import org.apache.directory.shared.ldap.entry.DefaultEntry;
+import org.apache.directory.shared.ldap.entry.Entry;
+import org.apache.directory.shared.ldap.ldif.LdifEntry;
+import org.apache.directory.shared.ldap.ldif.LdifReader;
+import org.apache.directory.shared.ldap.name.DN;
+import org.apache.directory.shared.ldap.schema.SchemaManager;
+import org.apache.directory.shared.ldap.util.DateUtils;
+
+
+/**
+ * Tool used to create a jdbm based partition from a LDIF file, while the
+ * server is stopped. The partition must not exist : its master table and
+ * its indices are bulk loaded, which writes the BTree pages sequentially
+ * instead of adding the entries one by one. The entries must be sorted so
+ * that each entry follows its parent, the first one being the suffix.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class BulkLoadCommand extends ToolCommand
+{
+    private SchemaManager schemaManager;
+
+    private DirectoryService directoryService;
+
+
+    public BulkLoadCommand()
+    {
+        super( "bulkload" );
+    }
+
+
+    private SchemaManager loadSchemaManager() throws Exception
+    {
+        // --------------------------------------------------------------------
+        // Load the bootstrap schemas to start up the schema partition
+        // --------------------------------------------------------------------
+        directoryService = new DefaultDirectoryService();
+        directoryService.setWorkingDirectory( getInstanceLayout().getPartitionsDir() );
+        directoryService.startup();
+
+        return directoryService.getSchemaManager();
+    }
+
+
+    public void execute( CommandLine cmdline ) throws Exception
+    {
+        String partition = cmdline.getOptionValue( 'p' );
+        String suffix = cmdline.getOptionValue( 's' );
+        String ldifFileName = cmdline.getOptionValue( 'f' );
+        String[] attributes = cmdline.getOptionValues( 'x' );
+
+        File ldifFile = new File( ldifFileName );
+
+        if ( !ldifFile.canRead() )
+        {
+            System.err.println( I18n.err( I18n.ERR_210, ldifFileName ) );
+            System.exit( 1 );
+        }
+
+        schemaManager = loadSchemaManager();
+
+        File partitionDirectory = new File( getInstanceLayout().getPartitionsDir(), partition );
+        DN suffixDn = new DN( suffix );
+        suffixDn.normalize( schemaManager.getNormalizerMapping() );
+
+        JdbmStore<Entry> store = new JdbmStore<Entry>();
+        store.setId( partition );
+        store.setPartitionDir( partitionDirectory );
+        store.setSuffixDn( suffixDn );
+        store.setSyncOnWrite( false );
+
+        if ( attributes != null )
+        {
+            for ( String attribute : attributes )
+            {
+                store.addIndex( new JdbmIndex<Object, Entry>( attribute ) );
+            }
+        }
+
+        store.init( schemaManager );
+
+        long t0 = System.currentTimeMillis();
+        int nbAdd = 0;
+
+        try
+        {
+            store.startBulkLoad();
+
+            LdifReader ldifReader = new LdifReader( ldifFile );
+
+            for ( LdifEntry ldifEntry : ldifReader )
+            {
+                if ( ldifReader.hasError() )
+                {
+                    System.err.println( "Found an error while parsing an entry : "
+                        + ldifReader.getError().getLocalizedMessage() );
+                    System.exit( 1 );
+                }
+
+                store.add( createEntry( ldifEntry ) );
+                nbAdd++;
+
+                if ( isDebugEnabled() && ( nbAdd % 10000 == 0 ) )
+                {
+                    System.out.println( "Added " + nbAdd + " entries" );
+                }
+            }
+
+            ldifReader.close();
+
+            if ( !isQuietEnabled() )
+            {
+                System.out.println( "Writing the master table and the indices ..." );
+            }
+
+            store.endBulkLoad();
+        }
+        finally
+        {
+            store.destroy();
+            directoryService.shutdown();
+        }
+
+        if ( !isQuietEnabled() )
+        {
+            long t1 = System.currentTimeMillis();
+            System.out.println( "Done!" );
+            System.out.println( nbAdd + " entries loaded in " + ( ( t1 - t0 ) / 1000 ) + " seconds" );
+        }
+    }
+
+
+    /**
+     * Creates the entry to store, adding the operational attributes the
+     * server would have added.
+     */
+    private Entry createEntry( LdifEntry ldifEntry ) throws Exception
+    {
+        Entry entry = new DefaultEntry( schemaManager, ldifEntry.getEntry() );
+        entry.getDn().normalize( schemaManager.getNormalizerMapping() );
+
+        if ( !entry.containsAttribute( SchemaConstants.ENTRY_CSN_AT ) )
+        {
+            entry.put( SchemaConstants.ENTRY_CSN_AT, directoryService.getCSN().toString() );
+        }
+
+        if ( !entry.containsAttribute( SchemaConstants.ENTRY_UUID_AT ) )
+        {
+            entry.put( SchemaConstants.ENTRY_UUID_AT, UUID.randomUUID().toString() );
+        }
+
+        if ( !entry.containsAttribute( SchemaConstants.CREATORS_NAME_AT ) )
+        {
+            entry.put( SchemaConstants.CREATORS_NAME_AT, ServerDNConstants.ADMIN_SYSTEM_DN );
+        }
+
+        if ( !entry.containsAttribute( SchemaConstants.CREATE_TIMESTAMP_AT ) )
+        {
+            entry.put( SchemaConstants.CREATE_TIMESTAMP_AT, DateUtils.getGeneralizedTime() );
+        }
+
+        return entry;
+    }
+
+
+    public Options getOptions()
+    {
+        Options opts = new Options();
+        Option op = null;
+        op = new Option( "p", "partition", true, "the id of the partition to create, the server must be stopped" );
+        op.setRequired( true );
+        opts.addOption( op );
+        op = new Option( "s", "suffix", true, "the suffix of the partition" );
+        op.setRequired( true );
+        opts.addOption( op );
+        op = new Option( "f", "file", true, "the LDIF file containing the entries, parents first" );
+        op.setRequired( true );
+        opts.addOption( op );
+        op = new Option( "x", "indices", true, "the attributes to index" );
+        op.setRequired( false );
+        op.setValueSeparator( File.pathSeparatorChar );
+        opts.addOption( op );
+        op = new Option( "i", "install-path", true, "path to apacheds installation directory" );
+        op.setRequired( true );
+        opts.addOption( op );
+
+        return opts;
+    }
+}
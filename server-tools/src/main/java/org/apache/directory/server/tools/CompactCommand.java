@@ -0,0 +1,150 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.tools;
+
+
+import java.io.File;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.directory.server.core.DefaultDirectoryService;
+import org.apache.directory.server.core.DirectoryService;
+import org.apache.directory.server.core.partition.impl.btree.jdbm.JdbmIndex;
+import org.apache.directory.server.core.partition.impl.btree.jdbm.JdbmStore;
+import org.apache.directory.server.i18n.I18n;
+import org.apache.directory.shared.ldap.entry.Entry;
+import org.apache.directory.shared.ldap.name.DN;
+import org.apache.directory.shared.ldap.schema.SchemaManager;
+
+
+/**
+ * Tool used to compact the files of a jdbm based partition, reclaiming the
+ * space left by the deleted and modified entries. The records are copied
+ * contiguously to new files, which replace the files of the partition.
+ * A running partition is compacted with {@link JdbmStore#compact()}.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class CompactCommand extends ToolCommand
+{
+    private DirectoryService directoryService;
+
+
+    public CompactCommand()
+    {
+        super( "compact" );
+    }
+
+
+    private SchemaManager loadSchemaManager() throws Exception
+    {
+        // --------------------------------------------------------------------
+        // Load the bootstrap schemas to start up the schema partition
+        // --------------------------------------------------------------------
+        directoryService = new DefaultDirectoryService();
+        directoryService.setWorkingDirectory( getInstanceLayout().getPartitionsDir() );
+        directoryService.startup();
+
+        return directoryService.getSchemaManager();
+    }
+
+
+    public void execute( CommandLine cmdline ) throws Exception
+    {
+        String partition = cmdline.getOptionValue( 'p' );
+        String suffix = cmdline.getOptionValue( 's' );
+        String[] attributes = cmdline.getOptionValues( 'x' );
+
+        File partitionDirectory = new File( getInstanceLayout().getPartitionsDir(), partition );
+
+        if ( !partitionDirectory.exists() )
+        {
+            System.err.println( I18n.err( I18n.ERR_196, partitionDirectory ) );
+            System.exit( 1 );
+        }
+
+        SchemaManager schemaManager = loadSchemaManager();
+
+        DN suffixDn = new DN( suffix );
+        suffixDn.normalize( schemaManager.getNormalizerMapping() );
+
+        JdbmStore<Entry> store = new JdbmStore<Entry>();
+        store.setId( partition );
+        store.setPartitionDir( partitionDirectory );
+        store.setSuffixDn( suffixDn );
+        store.setSingleFile( cmdline.hasOption( 'f' ) );
+
+        if ( attributes != null )
+        {
+            for ( String attribute : attributes )
+            {
+                store.addIndex( new JdbmIndex<Object, Entry>( attribute ) );
+            }
+        }
+
+        store.init( schemaManager );
+
+        long t0 = System.currentTimeMillis();
+        long reclaimed;
+
+        try
+        {
+            reclaimed = store.compact();
+        }
+        finally
+        {
+            store.destroy();
+            directoryService.shutdown();
+        }
+
+        if ( !isQuietEnabled() )
+        {
+            long t1 = System.currentTimeMillis();
+            System.out.println( "Done!" );
+            System.out.println( reclaimed + " bytes reclaimed in " + ( ( t1 - t0 ) / 1000 ) + " seconds" );
+        }
+    }
+
+
+    public Options getOptions()
+    {
+        Options opts = new Options();
+        Option op = null;
+        op = new Option( "p", "partition", true, "the id of the partition to compact, the server must be stopped" );
+        op.setRequired( true );
+        opts.addOption( op );
+        op = new Option( "s", "suffix", true, "the suffix of the partition" );
+        op.setRequired( true );
+        opts.addOption( op );
+        op = new Option( "x", "indices", true, "the indexed attributes of the partition" );
+        op.setRequired( false );
+        op.setValueSeparator( File.pathSeparatorChar );
+        opts.addOption( op );
+        op = new Option( "f", "single-file", false, "the partition is stored in a single file" );
+        op.setRequired( false );
+        opts.addOption( op );
+        op = new Option( "i", "install-path", true, "path to apacheds installation directory" );
+        op.setRequired( true );
+        opts.addOption( op );
+
+        return opts;
+    }
+}
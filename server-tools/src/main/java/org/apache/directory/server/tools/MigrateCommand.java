@@ -0,0 +1,125 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.tools;
+
+
+import java.io.File;
+
+import jdbm.btree.BTree;
+import jdbm.recman.BaseRecordManager;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.directory.server.core.partition.impl.btree.jdbm.JdbmTable;
+import org.apache.directory.server.i18n.I18n;
+
+
+/**
+ * Tool used to convert the pages of the jdbm based partitions to the
+ * prefix-compressed BPage format. The server reads the pages written in the
+ * former format, and converts them when they are modified : this tool
+ * converts all of them at once, while the server is stopped.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class MigrateCommand extends ToolCommand
+{
+    /** The extension of the jdbm files */
+    private static final String DB_EXTENSION = ".db";
+
+
+    public MigrateCommand()
+    {
+        super( "migrate" );
+    }
+
+
+    public void execute( CommandLine cmdline ) throws Exception
+    {
+        String[] partitions = cmdline.getOptionValues( 'p' );
+
+        for ( String partition : partitions )
+        {
+            File partitionDirectory = new File( getInstanceLayout().getPartitionsDir(), partition );
+            migrate( partitionDirectory );
+        }
+    }
+
+
+    private void migrate( File partitionDirectory ) throws Exception
+    {
+        if ( !partitionDirectory.exists() )
+        {
+            System.err.println( I18n.err( I18n.ERR_196, partitionDirectory ) );
+            System.exit( 1 );
+        }
+
+        File[] files = partitionDirectory.listFiles();
+
+        for ( File file : files )
+        {
+            if ( !file.getName().endsWith( DB_EXTENSION ) )
+            {
+                continue;
+            }
+
+            String path = file.getPath().substring( 0, file.getPath().length() - DB_EXTENSION.length() );
+            BaseRecordManager recMan = new BaseRecordManager( path );
+            recMan.disableTransactions();
+            int rewritten = 0;
+
+            for ( String name : recMan.getNames() )
+            {
+                long recId = recMan.getNamedObject( name );
+
+                // The named objects are the tables, and their counters
+                if ( recMan.fetch( recId ) instanceof BTree )
+                {
+                    rewritten += JdbmTable.rewritePages( recMan, new BTree().load( recMan, recId ) );
+                }
+            }
+
+            recMan.commit();
+            recMan.close();
+
+            if ( !isQuietEnabled() )
+            {
+                System.out.println( "converted " + rewritten + " pages of the file: " + file );
+            }
+        }
+    }
+
+
+    public Options getOptions()
+    {
+        Options opts = new Options();
+        Option op = null;
+        op = new Option( "p", "partitions", true, "the partitions to convert, the server must be stopped" );
+        op.setRequired( true );
+        op.setValueSeparator( File.pathSeparatorChar );
+        opts.addOption( op );
+        op = new Option( "i", "install-path", true, "path to apacheds installation directory" );
+        op.setRequired( true );
+        opts.addOption( op );
+
+        return opts;
+    }
+}
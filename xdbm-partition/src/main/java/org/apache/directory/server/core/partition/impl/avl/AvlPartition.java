@@ -79,7 +79,10 @@ public class AvlPartition extends AbstractXdbmPartition<Long>
             optimizer = new DefaultOptimizer<Entry, Long>( store );
         }
 
-        searchEngine = new DefaultSearchEngine<Long>( store, cursorBuilder, evaluatorBuilder, optimizer );
+        DefaultSearchEngine<Long> defaultSearchEngine = new DefaultSearchEngine<Long>( store, cursorBuilder,
+            evaluatorBuilder, optimizer );
+        initParallelEvaluation( defaultSearchEngine );
+        searchEngine = defaultSearchEngine;
 
         if ( store.isInitialized() )
         {
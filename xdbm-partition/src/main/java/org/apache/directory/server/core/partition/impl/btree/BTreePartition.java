@@ -45,6 +45,7 @@ import org.apache.directory.server.core.partition.Partition;
 import org.apache.directory.server.i18n.I18n;
 import org.apache.directory.server.xdbm.Index;
 import org.apache.directory.server.xdbm.IndexCursor;
+import org.apache.directory.server.xdbm.IntervalHierarchy;
 import org.apache.directory.server.xdbm.search.Optimizer;
 import org.apache.directory.server.xdbm.search.SearchEngine;
 import org.apache.directory.shared.ldap.entry.Entry;
@@ -363,12 +364,12 @@ public abstract class BTreePartition<ID> extends AbstractPartition
 
 
     /**
-     * Gets the Index mapping the primary keys of ancestors to the 
-     * primary keys of their descendants.
+     * Gets the hierarchy of the entries, telling which entries are the
+     * descendants of an entry.
      *
-     * @return the sub tree level Index
+     * @return the hierarchy of the entries
      */
-    public abstract Index<ID, Entry, ID> getSubLevelIndex();
+    public abstract IntervalHierarchy<ID> getHierarchy();
 
 
     /**
@@ -447,6 +448,24 @@ public abstract class BTreePartition<ID> extends AbstractPartition
     public abstract int getChildCount( ID id ) throws LdapException;
 
 
+    /**
+     * Counts the children of an entry with the one level index, which is
+     * updated along with the entries.
+     */
+    @Override
+    public int getChildCount( DN dn ) throws LdapException
+    {
+        ID id = getEntryId( dn );
+
+        if ( id == null )
+        {
+            return -1;
+        }
+
+        return getChildCount( id );
+    }
+
+
     public abstract void setProperty( String key, String value ) throws Exception;
 
 
@@ -22,6 +22,8 @@ package org.apache.directory.server.core.partition.impl.xdbm;
 
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.apache.directory.server.core.entry.ClonedServerEntry;
 import org.apache.directory.server.core.interceptor.context.AddOperationContext;
@@ -36,7 +38,9 @@ import org.apache.directory.server.i18n.I18n;
 import org.apache.directory.server.xdbm.Index;
 import org.apache.directory.server.xdbm.IndexCursor;
 import org.apache.directory.server.xdbm.IndexNotFoundException;
+import org.apache.directory.server.xdbm.IntervalHierarchy;
 import org.apache.directory.server.xdbm.Store;
+import org.apache.directory.server.xdbm.search.impl.DefaultSearchEngine;
 import org.apache.directory.shared.ldap.entry.Entry;
 import org.apache.directory.shared.ldap.exception.LdapAuthenticationNotSupportedException;
 import org.apache.directory.shared.ldap.exception.LdapException;
@@ -57,9 +61,21 @@ public abstract class AbstractXdbmPartition<ID extends Comparable<ID>> extends B
 
     protected boolean optimizerEnabled = true;
 
+    /**
+     * The number of threads evaluating the candidates of the searches having
+     * many of them, 0 to evaluate them on the searching thread
+     */
+    protected int evaluationThreads;
+
+    /** Tells if the candidates evaluated concurrently are returned in order */
+    protected boolean orderedEvaluation;
+
     /** The store. */
     protected Store<Entry, ID> store;
 
+    /** The executor evaluating the candidates, if evaluation threads are configured */
+    private ExecutorService evaluationExecutor;
+
 
     protected AbstractXdbmPartition( Store<Entry, ID> store )
     {
@@ -72,10 +88,32 @@ public abstract class AbstractXdbmPartition<ID extends Comparable<ID>> extends B
      */
     protected void doDestroy() throws Exception
     {
+        if ( evaluationExecutor != null )
+        {
+            evaluationExecutor.shutdown();
+            evaluationExecutor = null;
+        }
+
         store.destroy();
     }
 
 
+    /**
+     * Creates the executor evaluating the candidates of the searches having
+     * many of them, if evaluation threads are configured.
+     *
+     * @param searchEngine the search engine of the partition
+     */
+    protected void initParallelEvaluation( DefaultSearchEngine<ID> searchEngine )
+    {
+        if ( evaluationThreads > 0 )
+        {
+            evaluationExecutor = Executors.newFixedThreadPool( evaluationThreads );
+            searchEngine.setParallelEvaluation( evaluationExecutor, evaluationThreads, orderedEvaluation );
+        }
+    }
+
+
     /**
      * {@inheritDoc}
      */
@@ -110,6 +148,46 @@ public abstract class AbstractXdbmPartition<ID extends Comparable<ID>> extends B
     }
 
 
+    public int getEvaluationThreads()
+    {
+        return evaluationThreads;
+    }
+
+
+    /**
+     * Sets the number of threads evaluating the candidates of the searches
+     * having many of them, like the unindexed subtree searches. The
+     * candidates are then read in chunks, which are evaluated concurrently.
+     * It must be set before the partition is initialized.
+     *
+     * @param evaluationThreads the number of threads, 0 to evaluate the
+     * candidates on the searching thread, which is the default
+     */
+    public void setEvaluationThreads( int evaluationThreads )
+    {
+        this.evaluationThreads = evaluationThreads;
+    }
+
+
+    public boolean isOrderedEvaluation()
+    {
+        return orderedEvaluation;
+    }
+
+
+    /**
+     * Tells if the entries evaluated concurrently are returned in the order
+     * of the candidates, as they are when evaluated on the searching thread.
+     * Otherwise they are returned as soon as they are evaluated.
+     *
+     * @param orderedEvaluation true to keep the order of the candidates
+     */
+    public void setOrderedEvaluation( boolean orderedEvaluation )
+    {
+        this.orderedEvaluation = orderedEvaluation;
+    }
+
+
     public void setSyncOnWrite( boolean syncOnWrite )
     {
         store.setSyncOnWrite( syncOnWrite );
@@ -416,9 +494,9 @@ public abstract class AbstractXdbmPartition<ID extends Comparable<ID>> extends B
     }
 
 
-    public final Index<ID, Entry, ID> getSubLevelIndex()
+    public final IntervalHierarchy<ID> getHierarchy()
     {
-        return store.getSubLevelIndex();
+        return store.getHierarchy();
     }
 
 
@@ -21,20 +21,21 @@ package org.apache.directory.server.xdbm;
 
 
 import java.io.File;
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.apache.directory.server.constants.ApacheSchemaConstants;
 import org.apache.directory.server.core.entry.ClonedServerEntry;
 import org.apache.directory.server.i18n.I18n;
 import org.apache.directory.shared.asn1.primitives.OID;
 import org.apache.directory.shared.ldap.constants.SchemaConstants;
-import org.apache.directory.shared.ldap.cursor.Cursor;
 import org.apache.directory.shared.ldap.entry.Entry;
 import org.apache.directory.shared.ldap.entry.EntryAttribute;
 import org.apache.directory.shared.ldap.entry.Modification;
@@ -89,6 +90,9 @@ public abstract class AbstractStore<E, ID extends Comparable<ID>> implements Sto
     /** The store cache size */
     protected int cacheSize = DEFAULT_CACHE_SIZE;
 
+    /** The cache of the entries and of their DNs */
+    protected EntryCache<ID> entryCache = new EntryCache<ID>( 0 );
+
     /** The store unique identifier */
     protected String id;
 
@@ -110,8 +114,8 @@ public abstract class AbstractStore<E, ID extends Comparable<ID>> implements Sto
     /** the attribute presence index */
     protected Index<String, E, ID> presenceIdx;
 
-    /** a system index on the entries of descendants of root DN*/
-    protected Index<ID, E, ID> subLevelIdx;
+    /** the hierarchy of the entries, answering the subtree scope */
+    protected IntervalHierarchy<ID> hierarchy;
 
     /** the parent child relationship index */
     protected Index<ID, E, ID> oneLevelIdx;
@@ -137,6 +141,18 @@ public abstract class AbstractStore<E, ID extends Comparable<ID>> implements Sto
     /** the relative distinguished name index */
     protected Index<ParentIdAndRdn<ID>, E, ID> rdnIdx;
 
+    /**
+     * the lock held shared by the write operations, and exclusively by the
+     * operations working on the whole store, like the syncs
+     */
+    protected final ReentrantReadWriteLock storeLock = new ReentrantReadWriteLock();
+
+    /** the locks of the entries being written */
+    protected final EntryLocks entryLocks = new EntryLocks();
+
+    /** the number of write operations which have released their locks */
+    private final AtomicLong writeCount = new AtomicLong();
+
 
     protected void protect( String property )
     {
@@ -192,6 +208,12 @@ public abstract class AbstractStore<E, ID extends Comparable<ID>> implements Sto
     }
 
 
+    public EntryCache<ID> getEntryCache()
+    {
+        return entryCache;
+    }
+
+
     public void setId( String id )
     {
         protect( "id" );
@@ -275,6 +297,43 @@ public abstract class AbstractStore<E, ID extends Comparable<ID>> implements Sto
     }
 
 
+    /**
+     * Creates the cache of the entries, holding up to {@link #cacheSize}
+     * entries and DNs.
+     */
+    protected void setupEntryCache()
+    {
+        entryCache = new EntryCache<ID>( cacheSize );
+    }
+
+
+    /**
+     * Builds the hierarchy of the entries from the one level index, the
+     * parents before their children.
+     */
+    protected void setupHierarchy() throws Exception
+    {
+        hierarchy = new IntervalHierarchy<ID>( getRootId() );
+        LinkedList<ID> parentIds = new LinkedList<ID>();
+        parentIds.add( getRootId() );
+
+        while ( !parentIds.isEmpty() )
+        {
+            ID parentId = parentIds.removeFirst();
+            IndexCursor<ID, E, ID> cursor = oneLevelIdx.forwardCursor( parentId );
+
+            while ( cursor.next() )
+            {
+                ID id = cursor.get().getId();
+                hierarchy.add( parentId, id );
+                parentIds.add( id );
+            }
+
+            cursor.close();
+        }
+    }
+
+
     /**
      * Sets up the system indices.
      */
@@ -292,11 +351,6 @@ public abstract class AbstractStore<E, ID extends Comparable<ID>> implements Sto
             addIndex( new GenericIndex<ID, E, ID>( ApacheSchemaConstants.APACHE_ONE_LEVEL_AT_OID ) );
         }
 
-        if ( getSubLevelIndex() == null )
-        {
-            addIndex( new GenericIndex<ID, E, ID>( ApacheSchemaConstants.APACHE_SUB_LEVEL_AT_OID ) );
-        }
-
         if ( getRdnIndex() == null )
         {
             addIndex( new GenericIndex<ParentIdAndRdn<ID>, E, ID>( ApacheSchemaConstants.APACHE_RDN_AT_OID ) );
@@ -344,7 +398,6 @@ public abstract class AbstractStore<E, ID extends Comparable<ID>> implements Sto
         rdnIdx = ( Index<ParentIdAndRdn<ID>, E, ID> ) systemIndices.get( ApacheSchemaConstants.APACHE_RDN_AT_OID );
         presenceIdx = ( Index<String, E, ID> ) systemIndices.get( ApacheSchemaConstants.APACHE_EXISTENCE_AT_OID );
         oneLevelIdx = ( Index<ID, E, ID> ) systemIndices.get( ApacheSchemaConstants.APACHE_ONE_LEVEL_AT_OID );
-        subLevelIdx = ( Index<ID, E, ID> ) systemIndices.get( ApacheSchemaConstants.APACHE_SUB_LEVEL_AT_OID );
         aliasIdx = ( Index<String, E, ID> ) systemIndices.get( ApacheSchemaConstants.APACHE_ALIAS_AT_OID );
         oneAliasIdx = ( Index<ID, E, ID> ) systemIndices.get( ApacheSchemaConstants.APACHE_ONE_ALIAS_AT_OID );
         subAliasIdx = ( Index<ID, E, ID> ) systemIndices.get( ApacheSchemaConstants.APACHE_SUB_ALIAS_AT_OID );
@@ -533,6 +586,14 @@ public abstract class AbstractStore<E, ID extends Comparable<ID>> implements Sto
             throw new IllegalArgumentException( I18n.err( I18n.ERR_309, oid ) );
         }
 
+        // The sub level index is replaced by the hierarchy of the entries :
+        // it is not opened anymore, so that the store deletes its files
+        if ( ApacheSchemaConstants.APACHE_SUB_LEVEL_AT_OID.equals( oid ) )
+        {
+            LOG.warn( "The {} index is no longer used, it is ignored and will be deleted", oid );
+            return;
+        }
+
         if ( SYS_INDEX_OIDS.contains( oid ) )
         {
             systemIndices.put( oid, index );
@@ -586,10 +647,9 @@ public abstract class AbstractStore<E, ID extends Comparable<ID>> implements Sto
     /**
      * {@inheritDoc}
      */
-    @SuppressWarnings("unchecked")
-    public Index<ID, E, ID> getSubLevelIndex()
+    public IntervalHierarchy<ID> getHierarchy()
     {
-        return ( Index<ID, E, ID> ) systemIndices.get( ApacheSchemaConstants.APACHE_SUB_LEVEL_AT_OID );
+        return hierarchy;
     }
 
 
@@ -713,7 +773,7 @@ public abstract class AbstractStore<E, ID extends Comparable<ID>> implements Sto
      */
     public DN getEntryDn( ID id ) throws Exception
     {
-        return buildEntryDn( id );
+        return ( DN ) buildEntryDn( id ).clone();
     }
 
 
@@ -742,16 +802,24 @@ public abstract class AbstractStore<E, ID extends Comparable<ID>> implements Sto
      */
     public Entry lookup( ID id ) throws Exception
     {
-        Entry entry = master.get( id );
+        Entry entry = entryCache.getEntry( id );
 
-        if ( entry != null )
+        if ( entry == null )
         {
-            DN dn = buildEntryDn( id );
-            entry.setDn( dn );
-            return entry;
+            long stamp = entryCache.getStamp();
+            entry = master.get( id );
+
+            if ( entry == null )
+            {
+                return null;
+            }
+
+            entryCache.putEntry( id, entry, stamp );
         }
 
-        return null;
+        entry.setDn( ( DN ) buildEntryDn( id ).clone() );
+
+        return entry;
     }
 
 
@@ -773,14 +841,46 @@ public abstract class AbstractStore<E, ID extends Comparable<ID>> implements Sto
      * if something went wrong. Also the index should auto-repair : if
      * an entry does not exist in the Master table, then the index must be updated to reflect this.
      */
-    @SuppressWarnings("unchecked")
-    public synchronized void add( Entry entry ) throws Exception
+    public void add( Entry entry ) throws Exception
     {
         if ( entry instanceof ClonedServerEntry )
         {
             throw new Exception( I18n.err( I18n.ERR_215 ) );
         }
 
+        DN entryDn = entry.getDn();
+        EntryAttribute objectClass = entry.get( objectClassAT );
+        EntryLocks.Request request = null;
+
+        // The alias indices are shared by all the entries
+        if ( ( objectClass == null ) || !objectClass.contains( SchemaConstants.ALIAS_OC ) )
+        {
+            request = new EntryLocks.Request().exclusive( entryDn );
+
+            if ( !entryDn.equals( suffixDn ) )
+            {
+                request.shared( entryDn.getParent() );
+            }
+        }
+
+        lock( request );
+
+        try
+        {
+            addEntry( entry );
+        }
+        finally
+        {
+            unlock( request );
+        }
+
+        syncOnWrite();
+    }
+
+
+    @SuppressWarnings("unchecked")
+    private void addEntry( Entry entry ) throws Exception
+    {
         ID parentId;
         ID id = master.getNextId( entry );
 
@@ -867,16 +967,7 @@ public abstract class AbstractStore<E, ID extends Comparable<ID>> implements Sto
 
         entryUuidIdx.add( entryUuid.getString(), id );
 
-        ID tempId = parentId;
-
-        while ( ( tempId != null ) && ( !tempId.equals( getRootId() ) ) && ( !tempId.equals( getSuffixId() ) ) )
-        {
-            subLevelIdx.add( tempId, id );
-            tempId = getParentId( tempId );
-        }
-
-        // making entry an ancestor/descendent of itself in sublevel index
-        subLevelIdx.add( id, id );
+        hierarchy.add( parentId, id );
 
         // Now work on the user defined userIndices
         for ( EntryAttribute attribute : entry )
@@ -901,24 +992,46 @@ public abstract class AbstractStore<E, ID extends Comparable<ID>> implements Sto
         }
 
         master.put( id, entry );
-
-        if ( isSyncOnWrite )
-        {
-            sync();
-        }
     }
 
 
     /**
      * {@inheritDoc}
      */
-    public synchronized void modify( DN dn, ModificationOperation modOp, Entry mods ) throws Exception
+    public void modify( DN dn, ModificationOperation modOp, Entry mods ) throws Exception
     {
         if ( mods instanceof ClonedServerEntry )
         {
             throw new Exception( I18n.err( I18n.ERR_215 ) );
         }
 
+        EntryLocks.Request request = new EntryLocks.Request().exclusive( normalize( dn ) );
+
+        for ( AttributeType attributeType : mods.getAttributeTypes() )
+        {
+            if ( attributeType.getOid().equals( SchemaConstants.ALIASED_OBJECT_NAME_AT_OID ) )
+            {
+                request = null;
+            }
+        }
+
+        lock( request );
+
+        try
+        {
+            modifyEntry( dn, modOp, mods );
+        }
+        finally
+        {
+            unlock( request );
+        }
+
+        syncOnWrite();
+    }
+
+
+    private void modifyEntry( DN dn, ModificationOperation modOp, Entry mods ) throws Exception
+    {
         ID id = getEntryId( dn );
         Entry entry = master.get( id );
 
@@ -948,18 +1061,47 @@ public abstract class AbstractStore<E, ID extends Comparable<ID>> implements Sto
 
         updateCsnIndex( entry, id );
         master.put( id, entry );
-
-        if ( isSyncOnWrite )
-        {
-            sync();
-        }
+        entryCache.remove( id );
     }
 
 
     /**
      * {@inheritDoc}
      */
-    public synchronized Entry modify( DN dn, List<Modification> mods ) throws Exception
+    public Entry modify( DN dn, List<Modification> mods ) throws Exception
+    {
+        EntryLocks.Request request = new EntryLocks.Request().exclusive( normalize( dn ) );
+
+        for ( Modification mod : mods )
+        {
+            String modsOid = schemaManager.getAttributeTypeRegistry().getOidByName( mod.getAttribute().getId() );
+
+            if ( modsOid.equals( SchemaConstants.ALIASED_OBJECT_NAME_AT_OID ) )
+            {
+                request = null;
+                break;
+            }
+        }
+
+        Entry entry;
+        lock( request );
+
+        try
+        {
+            entry = modifyEntry( dn, mods );
+        }
+        finally
+        {
+            unlock( request );
+        }
+
+        syncOnWrite();
+
+        return entry;
+    }
+
+
+    private Entry modifyEntry( DN dn, List<Modification> mods ) throws Exception
     {
         ID id = getEntryId( dn );
         Entry entry = master.get( id );
@@ -989,11 +1131,7 @@ public abstract class AbstractStore<E, ID extends Comparable<ID>> implements Sto
 
         updateCsnIndex( entry, id );
         master.put( id, entry );
-
-        if ( isSyncOnWrite )
-        {
-            sync();
-        }
+        entryCache.remove( id );
 
         return entry;
     }
@@ -1002,8 +1140,39 @@ public abstract class AbstractStore<E, ID extends Comparable<ID>> implements Sto
     /**
      * {@inheritDoc}
      */
+    public void delete( ID id ) throws Exception
+    {
+        EntryLocks.Request request;
+
+        while ( true )
+        {
+            DN dn = buildEntryDn( id );
+            request = lockEntry( dn, new EntryLocks.Request().exclusive( dn ) );
+
+            // The entry may have been renamed before it has been locked
+            if ( id.equals( getEntryId( dn ) ) )
+            {
+                break;
+            }
+
+            unlock( request );
+        }
+
+        try
+        {
+            deleteEntry( id );
+        }
+        finally
+        {
+            unlock( request );
+        }
+
+        syncOnWrite();
+    }
+
+
     @SuppressWarnings("unchecked")
-    public synchronized void delete( ID id ) throws Exception
+    private void deleteEntry( ID id ) throws Exception
     {
         Entry entry = master.get( id );
 
@@ -1021,7 +1190,7 @@ public abstract class AbstractStore<E, ID extends Comparable<ID>> implements Sto
 
         rdnIdx.drop( id );
         oneLevelIdx.drop( id );
-        subLevelIdx.drop( id );
+        hierarchy.delete( id );
         entryCsnIdx.drop( id );
         entryUuidIdx.drop( id );
 
@@ -1045,19 +1214,37 @@ public abstract class AbstractStore<E, ID extends Comparable<ID>> implements Sto
         }
 
         master.delete( id );
-
-        if ( isSyncOnWrite )
-        {
-            sync();
-        }
+        entryCache.remove( id );
     }
 
 
     /**
      * {@inheritDoc}
      */
+    public void rename( DN dn, RDN newRdn, boolean deleteOldRdn, Entry entry ) throws Exception
+    {
+        DN parentDn = normalize( dn ).getParent();
+        newRdn.normalize( schemaManager.getNormalizerMapping() );
+        EntryLocks.Request request = new EntryLocks.Request().subtree( dn ).shared( parentDn ).exclusive(
+            normalize( ( ( DN ) parentDn.clone() ).add( newRdn ) ) );
+
+        lock( request );
+
+        try
+        {
+            renameEntry( dn, newRdn, deleteOldRdn, entry );
+        }
+        finally
+        {
+            unlock( request );
+        }
+
+        syncOnWrite();
+    }
+
+
     @SuppressWarnings("unchecked")
-    public synchronized void rename( DN dn, RDN newRdn, boolean deleteOldRdn, Entry entry ) throws Exception
+    private void renameEntry( DN dn, RDN newRdn, boolean deleteOldRdn, Entry entry ) throws Exception
     {
         ID id = getEntryId( dn );
         boolean hasEntry = true;
@@ -1180,19 +1367,18 @@ public abstract class AbstractStore<E, ID extends Comparable<ID>> implements Sto
         ParentIdAndRdn<ID> key = new ParentIdAndRdn<ID>( parentId, newRdn );
         rdnIdx.add( key, id );
 
-        master.put( id, entry );
+        // The DNs of the entry and of all its descendants have changed
+        entryCache.clearDns();
 
-        if ( isSyncOnWrite )
-        {
-            sync();
-        }
+        master.put( id, entry );
+        entryCache.remove( id );
     }
 
 
     /**
      * {@inheritDoc}
      */
-    public synchronized void rename( DN dn, RDN newRdn, boolean deleteOldRdn ) throws Exception
+    public void rename( DN dn, RDN newRdn, boolean deleteOldRdn ) throws Exception
     {
         rename( dn, newRdn, deleteOldRdn, null );
     }
@@ -1201,7 +1387,32 @@ public abstract class AbstractStore<E, ID extends Comparable<ID>> implements Sto
     /**
      * {@inheritDoc}
      */
-    public synchronized void moveAndRename( DN oldDn, DN newSuperiorDn, RDN newRdn, Entry modifiedEntry, boolean deleteOldRdn ) throws Exception
+    public void moveAndRename( DN oldDn, DN newSuperiorDn, RDN newRdn, Entry modifiedEntry, boolean deleteOldRdn ) throws Exception
+    {
+        DN oldParentDn = normalize( oldDn ).getParent();
+        newRdn.normalize( schemaManager.getNormalizerMapping() );
+
+        // The entry is renamed under its former parent before being moved
+        EntryLocks.Request request = new EntryLocks.Request().subtree( oldDn ).shared( oldParentDn ).exclusive(
+            normalize( ( ( DN ) oldParentDn.clone() ).add( newRdn ) ) ).shared( normalize( newSuperiorDn ) ).exclusive(
+            normalize( ( ( DN ) newSuperiorDn.clone() ).add( newRdn ) ) );
+
+        request = lockEntry( oldDn, request );
+
+        try
+        {
+            moveAndRenameEntry( oldDn, newSuperiorDn, newRdn, modifiedEntry, deleteOldRdn );
+        }
+        finally
+        {
+            unlock( request );
+        }
+
+        syncOnWrite();
+    }
+
+
+    private void moveAndRenameEntry( DN oldDn, DN newSuperiorDn, RDN newRdn, Entry modifiedEntry, boolean deleteOldRdn ) throws Exception
     {
     	// Check that the old entry exists
         ID oldId = getEntryId( oldDn );
@@ -1239,20 +1450,15 @@ public abstract class AbstractStore<E, ID extends Comparable<ID>> implements Sto
             throw ne;
         }
 
-        rename( oldDn, newRdn, deleteOldRdn, modifiedEntry );
+        renameEntry( oldDn, newRdn, deleteOldRdn, modifiedEntry );
         moveAndRename( oldDn, oldId, newSuperiorDn, newRdn, modifiedEntry );
-
-        if ( isSyncOnWrite )
-        {
-            sync();
-        }
     }
 
 
     /**
      * {@inheritDoc}
      */
-    public synchronized void move( DN oldDn, DN newSuperiorDn, DN newDn  ) throws Exception
+    public void move( DN oldDn, DN newSuperiorDn, DN newDn  ) throws Exception
     {
         move( oldDn, newSuperiorDn, newDn, null );
     }
@@ -1261,7 +1467,27 @@ public abstract class AbstractStore<E, ID extends Comparable<ID>> implements Sto
     /**
      * {@inheritDoc}
      */
-    public synchronized void move( DN oldDn, DN newSuperiorDn, DN newDn, Entry modifiedEntry ) throws Exception
+    public void move( DN oldDn, DN newSuperiorDn, DN newDn, Entry modifiedEntry ) throws Exception
+    {
+        EntryLocks.Request request = new EntryLocks.Request().subtree( normalize( oldDn ) ).shared(
+            oldDn.getParent() ).shared( normalize( newSuperiorDn ) ).exclusive( normalize( newDn ) );
+
+        request = lockEntry( oldDn, request );
+
+        try
+        {
+            moveEntry( oldDn, newSuperiorDn, newDn, modifiedEntry );
+        }
+        finally
+        {
+            unlock( request );
+        }
+
+        syncOnWrite();
+    }
+
+
+    private void moveEntry( DN oldDn, DN newSuperiorDn, DN newDn, Entry modifiedEntry ) throws Exception
     {
         // Check that the parent DN exists
         ID newParentId = getEntryId( newSuperiorDn );
@@ -1307,13 +1533,16 @@ public abstract class AbstractStore<E, ID extends Comparable<ID>> implements Sto
         oneLevelIdx.drop( oldParentId, entryId );
         oneLevelIdx.add( newParentId, entryId );
 
-        updateSubLevelIndex( entryId, oldParentId, newParentId );
+        hierarchy.move( entryId, newParentId );
 
         // Update the RDN index
         rdnIdx.drop( entryId );
         ParentIdAndRdn<ID> key = new ParentIdAndRdn<ID>( newParentId, oldDn.getRdn() );
         rdnIdx.add( key, entryId );
 
+        // The DNs of the entry and of all its descendants have changed
+        entryCache.clearDns();
+
         
         /* 
          * Read Alias Index Tuples
@@ -1340,45 +1569,205 @@ public abstract class AbstractStore<E, ID extends Comparable<ID>> implements Sto
         if ( modifiedEntry != null )
         {
             master.put( entryId, modifiedEntry );
+            entryCache.remove( entryId );
         }
+    }
+
+
+    //------------------------------------------------------------------------
+    // Locks
+    //------------------------------------------------------------------------
 
-        if ( isSyncOnWrite )
+    /**
+     * Locks the whole store, waiting for the running write operations to
+     * end, and blocking the next ones until the store is unlocked. The
+     * maintenance operations like the syncs hold this lock.
+     */
+    protected void lockStore()
+    {
+        storeLock.writeLock().lock();
+    }
+
+
+    /**
+     * Unlocks the store locked with {@link #lockStore()}.
+     */
+    protected void unlockStore()
+    {
+        storeLock.writeLock().unlock();
+    }
+
+
+    /**
+     * Tells the number of write operations done so far. A maintenance
+     * operation reading the store without locking it knows that it has not
+     * been modified meanwhile if this number has not changed once the store
+     * is locked.
+     *
+     * @return the number of write operations which have released their locks
+     */
+    protected long getWriteCount()
+    {
+        return writeCount.get();
+    }
+
+
+    /**
+     * Locks the entries written by an operation, or the whole store if the
+     * request is null : the operations updating the alias indices, which
+     * are shared by all the entries, run alone.
+     *
+     * @param request the entries to lock, or null
+     * @throws Exception if the thread is interrupted while waiting
+     */
+    private void lock( EntryLocks.Request request ) throws Exception
+    {
+        if ( request == null )
+        {
+            storeLock.writeLock().lockInterruptibly();
+
+            return;
+        }
+
+        storeLock.readLock().lockInterruptibly();
+
+        try
+        {
+            entryLocks.lock( request );
+        }
+        catch ( InterruptedException e )
+        {
+            storeLock.readLock().unlock();
+            throw e;
+        }
+    }
+
+
+    /**
+     * Unlocks what has been locked by {@link #lock(EntryLocks.Request)}.
+     */
+    private void unlock( EntryLocks.Request request )
+    {
+        writeCount.incrementAndGet();
+
+        if ( request == null )
+        {
+            storeLock.writeLock().unlock();
+        }
+        else
+        {
+            entryLocks.unlock( request );
+            storeLock.readLock().unlock();
+        }
+    }
+
+
+    /**
+     * Locks the entries of an operation renaming or moving an entry, or the
+     * whole store if this entry is an alias, as its alias indices are then
+     * updated.
+     *
+     * @param dn the DN of the entry
+     * @param request the entries to lock
+     * @return the request locked, or null if the whole store has been locked
+     * @throws Exception if the thread is interrupted while waiting
+     */
+    private EntryLocks.Request lockEntry( DN dn, EntryLocks.Request request ) throws Exception
+    {
+        while ( true )
+        {
+            boolean isAlias = isAlias( dn );
+            EntryLocks.Request locked = isAlias ? null : request;
+            lock( locked );
+
+            // The entry may have been made an alias, or may not be one
+            // anymore, before it has been locked
+            if ( isAlias == isAlias( dn ) )
+            {
+                return locked;
+            }
+
+            unlock( locked );
+        }
+    }
+
+
+    private boolean isAlias( DN dn ) throws Exception
+    {
+        ID id = getEntryId( dn );
+
+        return ( id != null ) && ( aliasIdx.reverseLookup( id ) != null );
+    }
+
+
+    /**
+     * Syncs the store after a write operation if it is synced on each write.
+     * The store is locked while it is synced, so this is only done by the
+     * outermost operation once it has released its locks.
+     */
+    private void syncOnWrite() throws Exception
+    {
+        if ( isSyncOnWrite && ( storeLock.getReadHoldCount() == 0 ) && !storeLock.isWriteLockedByCurrentThread() )
         {
             sync();
         }
     }
 
 
+    private DN normalize( DN dn ) throws Exception
+    {
+        if ( !dn.isNormalized() )
+        {
+            dn.normalize( schemaManager.getNormalizerMapping() );
+        }
+
+        return dn;
+    }
+
+
     //------------------------------------------------------------------------
     // Helpers
     //------------------------------------------------------------------------
 
     /**
-     * builds the DN of the entry identified by the given id
+     * builds the DN of the entry identified by the given id. The DN of the
+     * parent is taken from the entry cache when it is there, so that only
+     * the RDN of the entry is read from the RDN index.
      *
      * @param id the entry's id
-     * @return the normalized DN of the entry
+     * @return the normalized DN of the entry, which is cached and must not
+     * be modified
      * @throws Exception
      */
     protected DN buildEntryDn( ID id ) throws Exception
     {
-        DN dn = new DN();
+        DN dn = entryCache.getDn( id );
+
+        if ( dn != null )
+        {
+            return dn;
+        }
 
-        ID parentId = id;
+        long stamp = entryCache.getStamp();
+        ParentIdAndRdn<ID> cur = rdnIdx.reverseLookup( id );
+        dn = new DN();
 
-        do
+        for ( RDN rdn : cur.getRdns() )
         {
-            ParentIdAndRdn<ID> cur = rdnIdx.reverseLookup( parentId );
-            RDN[] rdns = cur.getRdns();
+            dn.addNormalizedInOrder( rdn );
+        }
+
+        ID parentId = cur.getParentId();
 
-            for ( RDN rdn : rdns )
+        if ( !parentId.equals( getRootId() ) )
+        {
+            for ( RDN rdn : buildEntryDn( parentId ).getRdns() )
             {
                 dn.addNormalizedInOrder( rdn );
             }
-
-            parentId = cur.getParentId();
         }
-        while ( !parentId.equals( getRootId() ) );
+
+        entryCache.putDn( id, dn, stamp );
 
         return dn;
     }
@@ -1951,7 +2340,7 @@ public abstract class AbstractStore<E, ID extends Comparable<ID>> implements Sto
         oneLevelIdx.drop( oldParentId, childId );
         oneLevelIdx.add( newParentId, childId );
 
-        updateSubLevelIndex( childId, oldParentId, newParentId );
+        hierarchy.move( childId, newParentId );
 
         /*
          * Update the RDN index
@@ -1959,6 +2348,7 @@ public abstract class AbstractStore<E, ID extends Comparable<ID>> implements Sto
         rdnIdx.drop( childId );
         ParentIdAndRdn<ID> key = new ParentIdAndRdn<ID>( newParentId, newRdn );
         rdnIdx.add( key, childId );
+        entryCache.clearDns();
 
         /* 
          * Read Alias Index Tuples
@@ -1985,67 +2375,7 @@ public abstract class AbstractStore<E, ID extends Comparable<ID>> implements Sto
         if ( modifiedEntry != null )
         {
             master.put( childId, modifiedEntry );
-        }
-    }
-
-
-    /**
-     * Updates the SubLevel Index as part of a move operation.
-     *
-     * @param entrtyId child id to be moved
-     * @param oldParentId old parent's id
-     * @param newParentId new parent's id
-     * @throws Exception
-     */
-    protected void updateSubLevelIndex( ID entryId, ID oldParentId, ID newParentId ) throws Exception
-    {
-        ID tempId = oldParentId;
-        List<ID> parentIds = new ArrayList<ID>();
-
-        // find all the parents of the oldParentId
-        while ( ( tempId != null ) && !tempId.equals( getRootId() ) && !tempId.equals( getSuffixId() ) )
-        {
-            parentIds.add( tempId );
-            tempId = getParentId( tempId );
-        }
-
-        // find all the children of the childId
-        Cursor<IndexEntry<ID, E, ID>> cursor = subLevelIdx.forwardCursor( entryId );
-
-        List<ID> childIds = new ArrayList<ID>();
-        childIds.add( entryId );
-
-        while ( cursor.next() )
-        {
-            childIds.add( cursor.get().getId() );
-        }
-
-        // detach the childId and all its children from oldParentId and all it parents excluding the root
-        for ( ID pid : parentIds )
-        {
-            for ( ID cid : childIds )
-            {
-                subLevelIdx.drop( pid, cid );
-            }
-        }
-
-        parentIds.clear();
-        tempId = newParentId;
-
-        // find all the parents of the newParentId
-        while ( ( tempId != null)  && !tempId.equals( getRootId() ) && !tempId.equals( getSuffixId() ) )
-        {
-            parentIds.add( tempId );
-            tempId = getParentId( tempId );
-        }
-
-        // attach the childId and all its children to newParentId and all it parents excluding the root
-        for ( ID id : parentIds )
-        {
-            for ( ID cid : childIds )
-            {
-                subLevelIdx.add( id, cid );
-            }
+            entryCache.remove( childId );
         }
     }
 
@@ -0,0 +1,43 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *  
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License. 
+ *  
+ */
+package org.apache.directory.server.xdbm;
+
+
+/**
+ * An index storing the ids of the entries having a value in a compressed
+ * {@link IdBitmap}, which is worth it for the values shared by a lot of
+ * entries, like the values of the objectClass and of the presence indices.
+ * The bitmaps of several assertions can then be intersected or united
+ * without iterating over their candidates. The ids of the entries must be
+ * Longs.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public interface BitmapIndex<K, O, ID> extends Index<K, O, ID>
+{
+    /**
+     * Gets the ids of the entries having the given value.
+     *
+     * @param attrVal the value, which is normalized by the index
+     * @return a new bitmap of the ids, which may be modified by the caller
+     * @throws Exception if the index can't be read
+     */
+    IdBitmap forwardBitmap( K attrVal ) throws Exception;
+}
@@ -0,0 +1,389 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.xdbm;
+
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.directory.shared.ldap.entry.Entry;
+import org.apache.directory.shared.ldap.name.DN;
+
+
+/**
+ * A cache of the entries of a {@link Store}, and of their DNs, keyed by
+ * entry id. Each map is split into segments, which are LRU maps locked
+ * separately, so that concurrent searches rarely wait for each other.
+ * <p>
+ * The entries are stored without their DN : the DNs are cached apart, as
+ * they change when an ancestor is renamed or moved, while the entry itself
+ * does not. The cached entries are copies, and a copy is returned on each
+ * hit, so that the callers can modify what they get.
+ * <p>
+ * A value read from the store while it is being modified must not be
+ * cached once the modification is done. The readers get a stamp with
+ * {@link #getStamp()} before reading the store, and the value is only
+ * cached if the cache has not been invalidated since.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class EntryCache<ID>
+{
+    /** The number of segments of each map */
+    private static final int SEGMENTS = 16;
+
+    /** The maximum number of entries cached */
+    private final int size;
+
+    /** The cached entries */
+    private final Segment<ID, Entry>[] entries;
+
+    /** The cached DNs */
+    private final Segment<ID, DN>[] dns;
+
+    /** The number of invalidations, used to stamp the reads */
+    private final AtomicLong invalidations = new AtomicLong();
+
+    /** The number of entries found in the cache */
+    private final AtomicLong hits = new AtomicLong();
+
+    /** The number of entries not found in the cache */
+    private final AtomicLong misses = new AtomicLong();
+
+    /** The number of DNs found in the cache */
+    private final AtomicLong dnHits = new AtomicLong();
+
+    /** The number of DNs not found in the cache */
+    private final AtomicLong dnMisses = new AtomicLong();
+
+
+    /**
+     * Creates a cache.
+     *
+     * @param size the maximum number of entries, and of DNs, cached. Nothing
+     * is cached if it is 0 or less
+     */
+    @SuppressWarnings("unchecked") // Cannot create an array of generic objects
+    public EntryCache( int size )
+    {
+        this.size = Math.max( size, 0 );
+        int segmentSize = ( this.size + SEGMENTS - 1 ) / SEGMENTS;
+        entries = new Segment[SEGMENTS];
+        dns = new Segment[SEGMENTS];
+
+        for ( int i = 0; i < SEGMENTS; i++ )
+        {
+            entries[i] = new Segment<ID, Entry>( segmentSize );
+            dns[i] = new Segment<ID, DN>( segmentSize );
+        }
+    }
+
+
+    /**
+     * @return the maximum number of entries cached
+     */
+    public int getSize()
+    {
+        return size;
+    }
+
+
+    /**
+     * @return a stamp to give to {@link #putEntry(Object, Entry, long)} or
+     * {@link #putDn(Object, DN, long)}, taken before reading the store
+     */
+    public long getStamp()
+    {
+        return invalidations.get();
+    }
+
+
+    /**
+     * Gets a copy of a cached entry. Its DN is not set.
+     *
+     * @param id the id of the entry
+     * @return a copy of the entry, or null if it is not cached
+     */
+    public Entry getEntry( ID id )
+    {
+        if ( size == 0 )
+        {
+            return null;
+        }
+
+        Entry entry = segment( entries, id ).get( id );
+
+        if ( entry == null )
+        {
+            misses.incrementAndGet();
+            return null;
+        }
+
+        hits.incrementAndGet();
+
+        return ( Entry ) entry.clone();
+    }
+
+
+    /**
+     * Caches a copy of an entry read from the store.
+     *
+     * @param id the id of the entry
+     * @param entry the entry
+     * @param stamp the stamp taken before reading the entry
+     */
+    public void putEntry( ID id, Entry entry, long stamp )
+    {
+        if ( size > 0 )
+        {
+            put( entries, id, ( Entry ) entry.clone(), stamp );
+        }
+    }
+
+
+    /**
+     * Gets a cached DN. The DN is shared, and must not be modified.
+     *
+     * @param id the id of the entry
+     * @return the normalized DN of the entry, or null if it is not cached
+     */
+    public DN getDn( ID id )
+    {
+        if ( size == 0 )
+        {
+            return null;
+        }
+
+        DN dn = segment( dns, id ).get( id );
+
+        if ( dn == null )
+        {
+            dnMisses.incrementAndGet();
+        }
+        else
+        {
+            dnHits.incrementAndGet();
+        }
+
+        return dn;
+    }
+
+
+    /**
+     * Caches the DN of an entry, computed from the store.
+     *
+     * @param id the id of the entry
+     * @param dn the normalized DN, which must not be modified once cached
+     * @param stamp the stamp taken before computing the DN
+     */
+    public void putDn( ID id, DN dn, long stamp )
+    {
+        if ( size > 0 )
+        {
+            put( dns, id, dn, stamp );
+        }
+    }
+
+
+    /**
+     * Removes an entry, and its DN, from the cache.
+     *
+     * @param id the id of the modified or deleted entry
+     */
+    public void remove( ID id )
+    {
+        // The stamp is changed first : a value read before the invalidation
+        // is either removed below, or not cached
+        invalidations.incrementAndGet();
+        segment( entries, id ).remove( id );
+        segment( dns, id ).remove( id );
+    }
+
+
+    /**
+     * Removes all the DNs from the cache, as renaming or moving an entry
+     * changes the DN of all its descendants.
+     */
+    public void clearDns()
+    {
+        invalidations.incrementAndGet();
+
+        for ( Segment<ID, DN> segment : dns )
+        {
+            segment.clear();
+        }
+    }
+
+
+    /**
+     * Removes all the entries and DNs from the cache.
+     */
+    public void clear()
+    {
+        invalidations.incrementAndGet();
+
+        for ( Segment<ID, Entry> segment : entries )
+        {
+            segment.clear();
+        }
+
+        clearDns();
+    }
+
+
+    /**
+     * @return the number of lookups served by the cache
+     */
+    public long getHitCount()
+    {
+        return hits.get();
+    }
+
+
+    /**
+     * @return the number of lookups which have read the store
+     */
+    public long getMissCount()
+    {
+        return misses.get();
+    }
+
+
+    /**
+     * @return the ratio of the lookups served by the cache, between 0 and 1
+     */
+    public double getHitRatio()
+    {
+        return ratio( hits.get(), misses.get() );
+    }
+
+
+    /**
+     * @return the ratio of the DNs served by the cache, between 0 and 1
+     */
+    public double getDnHitRatio()
+    {
+        return ratio( dnHits.get(), dnMisses.get() );
+    }
+
+
+    /**
+     * Resets the hit and miss counters.
+     */
+    public void resetStatistics()
+    {
+        hits.set( 0 );
+        misses.set( 0 );
+        dnHits.set( 0 );
+        dnMisses.set( 0 );
+    }
+
+
+    /**
+     * @see Object#toString()
+     */
+    public String toString()
+    {
+        return "EntryCache[size=" + size + ", hits=" + hits + ", misses=" + misses + ", dnHits=" + dnHits
+            + ", dnMisses=" + dnMisses + "]";
+    }
+
+
+    private static double ratio( long hits, long misses )
+    {
+        long total = hits + misses;
+
+        return ( total == 0 ) ? 0 : ( double ) hits / total;
+    }
+
+
+    private <V> void put( Segment<ID, V>[] segments, ID id, V value, long stamp )
+    {
+        Segment<ID, V> segment = segment( segments, id );
+
+        synchronized ( segment )
+        {
+            // The invalidations remove the value after changing the stamp,
+            // under the same lock
+            if ( invalidations.get() == stamp )
+            {
+                segment.put( id, value );
+            }
+        }
+    }
+
+
+    private static <ID, V> Segment<ID, V> segment( Segment<ID, V>[] segments, ID id )
+    {
+        int hash = id.hashCode();
+        hash ^= ( hash >>> 16 );
+
+        return segments[( hash & 0x7fffffff ) % SEGMENTS];
+    }
+
+
+    /**
+     * A part of a map, evicting its least recently used values.
+     */
+    private static class Segment<ID, V>
+    {
+        private final LinkedHashMap<ID, V> map;
+
+
+        private Segment( final int capacity )
+        {
+            map = new LinkedHashMap<ID, V>( 16, 0.75f, true )
+            {
+                private static final long serialVersionUID = 1L;
+
+
+                protected boolean removeEldestEntry( Map.Entry<ID, V> eldest )
+                {
+                    return size() > capacity;
+                }
+            };
+        }
+
+
+        private synchronized V get( ID id )
+        {
+            return map.get( id );
+        }
+
+
+        private synchronized void put( ID id, V value )
+        {
+            map.put( id, value );
+        }
+
+
+        private synchronized void remove( ID id )
+        {
+            map.remove( id );
+        }
+
+
+        private synchronized void clear()
+        {
+            map.clear();
+        }
+    }
+}
@@ -0,0 +1,312 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.xdbm;
+
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.apache.directory.shared.ldap.name.DN;
+
+
+/**
+ * The locks taken on the entries of a {@link Store} by the write
+ * operations, so that the operations on distinct entries run concurrently.
+ * An operation describes all the entries it works on in a {@link Request},
+ * and locks them at once, which avoids the deadlocks.
+ * <p>
+ * An entry is locked in three ways :
+ * <ul>
+ *   <li>shared, when it must exist and keep its DN, like the parent of an
+ *   added entry</li>
+ *   <li>exclusive, when the entry itself is added, modified or deleted</li>
+ *   <li>subtree, when the DNs of the entry and of all its descendants
+ *   change, on a rename or a move</li>
+ * </ul>
+ * Two locks on the same entry conflict unless they are both shared, and a
+ * subtree lock conflicts with any lock on a descendant. The descendants are
+ * found comparing the normalized DNs, as a DN ending with the DN of the
+ * subtree, which may wrongly find a conflict with some escaped values but
+ * never misses one.
+ * <p>
+ * The requests are granted in the order they have been made, so that a
+ * subtree lock is not delayed forever by the locks of its descendants. The
+ * locks of a thread never conflict with each other : an operation calling
+ * another one while it holds its locks does not wait for itself.
+ * <p>
+ * The granted requests are kept in a list, which is short as there are
+ * not more requests than writing threads.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class EntryLocks
+{
+    /** The granted requests */
+    private final List<Request> granted = new ArrayList<Request>();
+
+    /** The requests waiting for their locks, in their arrival order */
+    private final LinkedList<Request> waiting = new LinkedList<Request>();
+
+
+    /**
+     * Locks the entries of a request, waiting until none of them is locked
+     * by another thread in a conflicting way.
+     *
+     * @param request the entries to lock
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public synchronized void lock( Request request ) throws InterruptedException
+    {
+        request.owner = Thread.currentThread();
+
+        // A thread already holding locks does not queue behind the
+        // requests which may wait for these locks
+        boolean isNested = isOwner( request.owner );
+
+        if ( !isNested )
+        {
+            waiting.add( request );
+        }
+
+        try
+        {
+            while ( !isGrantable( request, isNested ) )
+            {
+                wait();
+            }
+        }
+        catch ( InterruptedException e )
+        {
+            waiting.remove( request );
+            notifyAll();
+            throw e;
+        }
+
+        waiting.remove( request );
+        granted.add( request );
+    }
+
+
+    /**
+     * Unlocks the entries of a request previously locked.
+     *
+     * @param request the entries to unlock
+     */
+    public synchronized void unlock( Request request )
+    {
+        if ( granted.remove( request ) )
+        {
+            notifyAll();
+        }
+    }
+
+
+    /**
+     * @return the number of requests granted
+     */
+    public synchronized int getLockCount()
+    {
+        return granted.size();
+    }
+
+
+    private boolean isOwner( Thread thread )
+    {
+        for ( Request request : granted )
+        {
+            if ( request.owner == thread )
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+
+    private boolean isGrantable( Request request, boolean isNested )
+    {
+        for ( Request other : granted )
+        {
+            if ( request.conflictsWith( other ) )
+            {
+                return false;
+            }
+        }
+
+        if ( isNested )
+        {
+            return true;
+        }
+
+        // The conflicting requests made before this one are granted first
+        Iterator<Request> previous = waiting.iterator();
+
+        while ( previous.hasNext() )
+        {
+            Request other = previous.next();
+
+            if ( other == request )
+            {
+                break;
+            }
+
+            if ( request.conflictsWith( other ) )
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+
+    /**
+     * The entries locked at once by an operation. The DNs added must be
+     * normalized.
+     */
+    public static class Request
+    {
+        /** The normalized DNs locked */
+        private final List<String> dns = new ArrayList<String>();
+
+        /** The way each DN is locked */
+        private final List<Mode> modes = new ArrayList<Mode>();
+
+        /** The thread holding or waiting for the locks */
+        private Thread owner;
+
+
+        /**
+         * Adds an entry which must exist and keep its DN.
+         *
+         * @param dn the normalized DN of the entry
+         * @return this request
+         */
+        public Request shared( DN dn )
+        {
+            return add( dn, Mode.SHARED );
+        }
+
+
+        /**
+         * Adds an entry added, modified or deleted.
+         *
+         * @param dn the normalized DN of the entry
+         * @return this request
+         */
+        public Request exclusive( DN dn )
+        {
+            return add( dn, Mode.EXCLUSIVE );
+        }
+
+
+        /**
+         * Adds an entry which DN, and the DNs of all its descendants, change.
+         *
+         * @param dn the normalized DN of the entry
+         * @return this request
+         */
+        public Request subtree( DN dn )
+        {
+            return add( dn, Mode.SUBTREE );
+        }
+
+
+        private Request add( DN dn, Mode mode )
+        {
+            dns.add( dn.getNormName() );
+            modes.add( mode );
+
+            return this;
+        }
+
+
+        private boolean conflictsWith( Request other )
+        {
+            if ( other.owner == owner )
+            {
+                return false;
+            }
+
+            for ( int i = 0; i < dns.size(); i++ )
+            {
+                for ( int j = 0; j < other.dns.size(); j++ )
+                {
+                    if ( conflicts( dns.get( i ), modes.get( i ), other.dns.get( j ), other.modes.get( j ) ) )
+                    {
+                        return true;
+                    }
+                }
+            }
+
+            return false;
+        }
+
+
+        private static boolean conflicts( String dn, Mode mode, String otherDn, Mode otherMode )
+        {
+            if ( dn.equals( otherDn ) )
+            {
+                return ( mode != Mode.SHARED ) || ( otherMode != Mode.SHARED );
+            }
+
+            return ( ( mode == Mode.SUBTREE ) && isDescendant( otherDn, dn ) )
+                || ( ( otherMode == Mode.SUBTREE ) && isDescendant( dn, otherDn ) );
+        }
+
+
+        private static boolean isDescendant( String dn, String ancestorDn )
+        {
+            return ( dn.length() > ancestorDn.length() + 1 ) && dn.endsWith( ancestorDn )
+                && ( dn.charAt( dn.length() - ancestorDn.length() - 1 ) == ',' );
+        }
+
+
+        /**
+         * @see Object#toString()
+         */
+        public String toString()
+        {
+            StringBuilder sb = new StringBuilder( "Request[" );
+
+            for ( int i = 0; i < dns.size(); i++ )
+            {
+                if ( i > 0 )
+                {
+                    sb.append( ", " );
+                }
+
+                sb.append( modes.get( i ) ).append( ' ' ).append( dns.get( i ) );
+            }
+
+            return sb.append( ']' ).toString();
+        }
+    }
+
+
+    /** The ways an entry is locked */
+    private enum Mode
+    {
+        SHARED, EXCLUSIVE, SUBTREE
+    }
+}
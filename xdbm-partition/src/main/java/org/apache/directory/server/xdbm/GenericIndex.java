@@ -262,6 +262,12 @@ public class GenericIndex<K, O, ID> implements Index<K, O, ID>
     }
 
 
+    public IndexStatistics<K> getStatistics()
+    {
+        return null;
+    }
+
+
     public IndexCursor<K, O, ID> reverseCursor() throws Exception
     {
         throw new UnsupportedOperationException();
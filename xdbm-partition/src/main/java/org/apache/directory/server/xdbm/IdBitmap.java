@@ -0,0 +1,1089 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *  
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License. 
+ *  
+ */
+package org.apache.directory.server.xdbm;
+
+
+import java.util.Arrays;
+
+import org.apache.directory.server.i18n.I18n;
+
+
+/**
+ * A compressed set of entry ids, used to store the ids of the entries
+ * having the same value in a bitmap index, and to combine the candidates
+ * of several assertions. The ids are split in containers by their 48 high
+ * bits, and the 16 low bits of the ids of a container are stored either in
+ * a sorted array, when the container holds up to {@link #ARRAY_MAX} ids,
+ * or in a bitset of 65536 bits. The intersection and the union of two
+ * bitmaps then combine their containers word by word, instead of testing
+ * each id.
+ * <p>
+ * The containers can be serialized separately, so that an index only
+ * rewrites the container of the id added or removed. The ids must be
+ * positive or null. This class is not thread safe.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class IdBitmap
+{
+    /** the maximum number of ids of a container stored in an array */
+    public static final int ARRAY_MAX = 4096;
+
+    /** the number of low bits of the ids stored in a container */
+    private static final int LOW_BITS = 16;
+
+    /** the number of 64 bits words of a bitset container */
+    private static final int WORDS = 1024;
+
+    /** the type of a serialized container storing its ids in an array */
+    private static final byte ARRAY_CONTAINER = 0;
+
+    /** the type of a serialized container storing its ids in a bitset */
+    private static final byte BITSET_CONTAINER = 1;
+
+    /** the size of the header of a serialized container : its type and its cardinality */
+    private static final int HEADER_SIZE = 5;
+
+    /** the high bits of the ids of each container, in increasing order */
+    private long[] keys = new long[4];
+
+    /** the containers */
+    private Container[] containers = new Container[4];
+
+    /** the number of containers */
+    private int count;
+
+
+    /**
+     * Adds an id to this bitmap.
+     *
+     * @param id the id to add
+     * @return true if the id was not already present
+     * @throws IllegalArgumentException if the id is negative
+     */
+    public boolean add( long id )
+    {
+        if ( id < 0 )
+        {
+            throw new IllegalArgumentException( I18n.err( I18n.ERR_742, id ) );
+        }
+
+        long key = id >>> LOW_BITS;
+        int index = indexOf( key );
+
+        if ( index < 0 )
+        {
+            index = -index - 1;
+            insert( index, key, new Container() );
+        }
+
+        return containers[index].add( ( char ) id );
+    }
+
+
+    /**
+     * Removes an id from this bitmap.
+     *
+     * @param id the id to remove
+     * @return true if the id was present
+     */
+    public boolean remove( long id )
+    {
+        int index = ( id < 0 ) ? -1 : indexOf( id >>> LOW_BITS );
+
+        if ( ( index < 0 ) || !containers[index].remove( ( char ) id ) )
+        {
+            return false;
+        }
+
+        if ( containers[index].cardinality == 0 )
+        {
+            count--;
+            System.arraycopy( keys, index + 1, keys, index, count - index );
+            System.arraycopy( containers, index + 1, containers, index, count - index );
+            containers[count] = null;
+        }
+
+        return true;
+    }
+
+
+    /**
+     * @param id an id
+     * @return true if the id is in this bitmap
+     */
+    public boolean contains( long id )
+    {
+        int index = ( id < 0 ) ? -1 : indexOf( id >>> LOW_BITS );
+
+        return ( index >= 0 ) && containers[index].contains( ( char ) id );
+    }
+
+
+    /**
+     * @return the number of ids in this bitmap
+     */
+    public int size()
+    {
+        int size = 0;
+
+        for ( int i = 0; i < count; i++ )
+        {
+            size += containers[i].cardinality;
+        }
+
+        return size;
+    }
+
+
+    /**
+     * @return true if this bitmap contains no id
+     */
+    public boolean isEmpty()
+    {
+        return count == 0;
+    }
+
+
+    /**
+     * @return the smallest id of this bitmap, or -1 if it is empty
+     */
+    public long first()
+    {
+        return ( count == 0 ) ? -1 : ( ( keys[0] << LOW_BITS ) | containers[0].first() );
+    }
+
+
+    /**
+     * @return the greatest id of this bitmap, or -1 if it is empty
+     */
+    public long last()
+    {
+        return ( count == 0 ) ? -1 : ( ( keys[count - 1] << LOW_BITS ) | containers[count - 1].last() );
+    }
+
+
+    /**
+     * @param id an id, or a negative number to get the smallest id
+     * @return the smallest id of this bitmap greater than the given one,
+     * or -1 if there is none
+     */
+    public long next( long id )
+    {
+        if ( id < 0 )
+        {
+            return first();
+        }
+
+        if ( id == Long.MAX_VALUE )
+        {
+            return -1;
+        }
+
+        long target = id + 1;
+        long key = target >>> LOW_BITS;
+        int index = indexOf( key );
+
+        if ( index >= 0 )
+        {
+            int low = containers[index].next( ( int ) target & 0xFFFF );
+
+            if ( low >= 0 )
+            {
+                return ( key << LOW_BITS ) | low;
+            }
+
+            index++;
+        }
+        else
+        {
+            index = -index - 1;
+        }
+
+        return ( index < count ) ? ( ( keys[index] << LOW_BITS ) | containers[index].first() ) : -1;
+    }
+
+
+    /**
+     * @param id an id, or Long.MAX_VALUE to get the greatest id
+     * @return the greatest id of this bitmap smaller than the given one,
+     * or -1 if there is none
+     */
+    public long previous( long id )
+    {
+        if ( id <= 0 )
+        {
+            return -1;
+        }
+
+        long target = id - 1;
+        long key = target >>> LOW_BITS;
+        int index = indexOf( key );
+
+        if ( index >= 0 )
+        {
+            int low = containers[index].previous( ( int ) target & 0xFFFF );
+
+            if ( low >= 0 )
+            {
+                return ( key << LOW_BITS ) | low;
+            }
+
+            index--;
+        }
+        else
+        {
+            index = -index - 2;
+        }
+
+        return ( index >= 0 ) ? ( ( keys[index] << LOW_BITS ) | containers[index].last() ) : -1;
+    }
+
+
+    /**
+     * Computes the intersection of this bitmap with another one.
+     *
+     * @param other the other bitmap
+     * @return a new bitmap containing the ids present in both bitmaps
+     */
+    public IdBitmap and( IdBitmap other )
+    {
+        IdBitmap result = new IdBitmap();
+        int i = 0;
+        int j = 0;
+
+        while ( ( i < count ) && ( j < other.count ) )
+        {
+            if ( keys[i] < other.keys[j] )
+            {
+                i++;
+            }
+            else if ( keys[i] > other.keys[j] )
+            {
+                j++;
+            }
+            else
+            {
+                Container container = containers[i].and( other.containers[j] );
+
+                if ( container.cardinality != 0 )
+                {
+                    result.insert( result.count, keys[i], container );
+                }
+
+                i++;
+                j++;
+            }
+        }
+
+        return result;
+    }
+
+
+    /**
+     * Computes the union of this bitmap with another one.
+     *
+     * @param other the other bitmap
+     * @return a new bitmap containing the ids present in either bitmap
+     */
+    public IdBitmap or( IdBitmap other )
+    {
+        IdBitmap result = new IdBitmap();
+        int i = 0;
+        int j = 0;
+
+        while ( ( i < count ) || ( j < other.count ) )
+        {
+            if ( ( j == other.count ) || ( ( i < count ) && ( keys[i] < other.keys[j] ) ) )
+            {
+                result.insert( result.count, keys[i], containers[i].copy() );
+                i++;
+            }
+            else if ( ( i == count ) || ( keys[i] > other.keys[j] ) )
+            {
+                result.insert( result.count, other.keys[j], other.containers[j].copy() );
+                j++;
+            }
+            else
+            {
+                result.insert( result.count, keys[i], containers[i].or( other.containers[j] ) );
+                i++;
+                j++;
+            }
+        }
+
+        return result;
+    }
+
+
+    /**
+     * Computes the difference of this bitmap with another one.
+     *
+     * @param other the other bitmap
+     * @return a new bitmap containing the ids of this bitmap which are not
+     * present in the other one
+     */
+    public IdBitmap andNot( IdBitmap other )
+    {
+        IdBitmap result = new IdBitmap();
+        int j = 0;
+
+        for ( int i = 0; i < count; i++ )
+        {
+            while ( ( j < other.count ) && ( other.keys[j] < keys[i] ) )
+            {
+                j++;
+            }
+
+            Container container;
+
+            if ( ( j < other.count ) && ( other.keys[j] == keys[i] ) )
+            {
+                container = containers[i].andNot( other.containers[j] );
+            }
+            else
+            {
+                container = containers[i].copy();
+            }
+
+            if ( container.cardinality != 0 )
+            {
+                result.insert( result.count, keys[i], container );
+            }
+        }
+
+        return result;
+    }
+
+
+    // ------------------------------------------------------------------------
+    // Container serialization
+    // ------------------------------------------------------------------------
+
+    /**
+     * @param id an id
+     * @return the key of the container storing this id
+     */
+    public static long getContainerKey( long id )
+    {
+        return id >>> LOW_BITS;
+    }
+
+
+    /**
+     * @return the number of containers of this bitmap
+     */
+    public int getContainerCount()
+    {
+        return count;
+    }
+
+
+    /**
+     * @param index the position of a container, from 0 to {@link #getContainerCount()} excluded
+     * @return the key of the container, shared by the ids it stores
+     */
+    public long getContainerKeyAt( int index )
+    {
+        return keys[index];
+    }
+
+
+    /**
+     * Serializes a container of this bitmap.
+     *
+     * @param index the position of the container
+     * @return the serialized container
+     */
+    public byte[] serializeContainer( int index )
+    {
+        Container container = containers[index];
+        byte[] bites;
+
+        if ( container.bits != null )
+        {
+            bites = header( BITSET_CONTAINER, container.cardinality, WORDS * 8 );
+
+            for ( int i = 0; i < WORDS; i++ )
+            {
+                long word = container.bits[i];
+                int pos = HEADER_SIZE + ( i << 3 );
+
+                for ( int j = 7; j >= 0; j-- )
+                {
+                    bites[pos + j] = ( byte ) word;
+                    word >>>= 8;
+                }
+            }
+        }
+        else
+        {
+            bites = header( ARRAY_CONTAINER, container.cardinality, container.cardinality * 2 );
+
+            for ( int i = 0; i < container.cardinality; i++ )
+            {
+                bites[HEADER_SIZE + ( i << 1 )] = ( byte ) ( container.array[i] >> 8 );
+                bites[HEADER_SIZE + ( i << 1 ) + 1] = ( byte ) container.array[i];
+            }
+        }
+
+        return bites;
+    }
+
+
+    /**
+     * Adds the ids of a serialized container to this bitmap.
+     *
+     * @param key the key of the container
+     * @param bites the serialized container
+     */
+    public void addContainer( long key, byte[] bites )
+    {
+        Container container;
+        int cardinality = getCardinality( bites );
+
+        if ( bites[0] == BITSET_CONTAINER )
+        {
+            long[] bits = new long[WORDS];
+
+            for ( int i = 0; i < WORDS; i++ )
+            {
+                int pos = HEADER_SIZE + ( i << 3 );
+                long word = 0;
+
+                for ( int j = 0; j < 8; j++ )
+                {
+                    word = ( word << 8 ) | ( bites[pos + j] & 0xFF );
+                }
+
+                bits[i] = word;
+            }
+
+            container = new Container( bits, cardinality );
+        }
+        else
+        {
+            char[] array = new char[Math.max( cardinality, 4 )];
+
+            for ( int i = 0; i < cardinality; i++ )
+            {
+                array[i] = getLow( bites, i );
+            }
+
+            container = new Container( array, cardinality );
+        }
+
+        if ( cardinality == 0 )
+        {
+            return;
+        }
+
+        int index = indexOf( key );
+
+        if ( index >= 0 )
+        {
+            containers[index] = containers[index].or( container );
+        }
+        else
+        {
+            insert( -index - 1, key, container );
+        }
+    }
+
+
+    /**
+     * @param bites a serialized container
+     * @return the number of ids stored in the container
+     */
+    public static int getCardinality( byte[] bites )
+    {
+        return ( ( bites[1] & 0xFF ) << 24 ) | ( ( bites[2] & 0xFF ) << 16 ) | ( ( bites[3] & 0xFF ) << 8 )
+            | ( bites[4] & 0xFF );
+    }
+
+
+    /**
+     * Checks if a serialized container contains an id, without
+     * deserializing it.
+     *
+     * @param bites a serialized container
+     * @param id an id whose container key is the key of the container
+     * @return true if the container contains the id
+     */
+    public static boolean contains( byte[] bites, long id )
+    {
+        int low = ( int ) id & 0xFFFF;
+
+        if ( bites[0] == BITSET_CONTAINER )
+        {
+            // The words are written in big endian order
+            int pos = HEADER_SIZE + ( ( low >>> 6 ) << 3 ) + 7 - ( ( low & 63 ) >>> 3 );
+
+            return ( bites[pos] & ( 1 << ( low & 7 ) ) ) != 0;
+        }
+
+        int lowIndex = 0;
+        int highIndex = getCardinality( bites ) - 1;
+
+        while ( lowIndex <= highIndex )
+        {
+            int middle = ( lowIndex + highIndex ) >>> 1;
+            int value = getLow( bites, middle );
+
+            if ( value < low )
+            {
+                lowIndex = middle + 1;
+            }
+            else if ( value > low )
+            {
+                highIndex = middle - 1;
+            }
+            else
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+
+    /**
+     * @see Object#toString()
+     */
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder( "{" );
+        boolean isFirst = true;
+
+        for ( long id = first(); id >= 0; id = next( id ) )
+        {
+            if ( !isFirst )
+            {
+                sb.append( ", " );
+            }
+
+            sb.append( id );
+            isFirst = false;
+        }
+
+        return sb.append( '}' ).toString();
+    }
+
+
+    private static char getLow( byte[] bites, int index )
+    {
+        int pos = HEADER_SIZE + ( index << 1 );
+
+        return ( char ) ( ( ( bites[pos] & 0xFF ) << 8 ) | ( bites[pos + 1] & 0xFF ) );
+    }
+
+
+    private static byte[] header( byte type, int cardinality, int length )
+    {
+        byte[] bites = new byte[HEADER_SIZE + length];
+        bites[0] = type;
+        bites[1] = ( byte ) ( cardinality >> 24 );
+        bites[2] = ( byte ) ( cardinality >> 16 );
+        bites[3] = ( byte ) ( cardinality >> 8 );
+        bites[4] = ( byte ) cardinality;
+
+        return bites;
+    }
+
+
+    /**
+     * Searches the container of the given key.
+     *
+     * @return the position of the container, or (-(insertion point) - 1)
+     */
+    private int indexOf( long key )
+    {
+        return Arrays.binarySearch( keys, 0, count, key );
+    }
+
+
+    private void insert( int index, long key, Container container )
+    {
+        if ( count == keys.length )
+        {
+            keys = Arrays.copyOf( keys, count * 2 );
+            containers = Arrays.copyOf( containers, count * 2 );
+        }
+
+        System.arraycopy( keys, index, keys, index + 1, count - index );
+        System.arraycopy( containers, index, containers, index + 1, count - index );
+        keys[index] = key;
+        containers[index] = container;
+        count++;
+    }
+
+
+    /**
+     * The low bits of the ids sharing the same high bits, stored in a sorted
+     * array or in a bitset.
+     */
+    private static final class Container
+    {
+        /** the sorted low bits, if the container is not a bitset */
+        private char[] array;
+
+        /** the bitset, if the container holds more than ARRAY_MAX ids */
+        private long[] bits;
+
+        /** the number of ids in the container */
+        private int cardinality;
+
+
+        private Container()
+        {
+            array = new char[4];
+        }
+
+
+        private Container( char[] array, int cardinality )
+        {
+            this.array = array;
+            this.cardinality = cardinality;
+        }
+
+
+        private Container( long[] bits, int cardinality )
+        {
+            this.bits = bits;
+            this.cardinality = cardinality;
+        }
+
+
+        /**
+         * Creates a container from a bitset, converted to an array if it
+         * holds few ids.
+         */
+        private static Container fromBits( long[] bits, int cardinality )
+        {
+            if ( cardinality > ARRAY_MAX )
+            {
+                return new Container( bits, cardinality );
+            }
+
+            char[] array = new char[Math.max( cardinality, 4 )];
+            int n = 0;
+
+            for ( int i = 0; i < WORDS; i++ )
+            {
+                long word = bits[i];
+
+                while ( word != 0 )
+                {
+                    array[n++] = ( char ) ( ( i << 6 ) + Long.numberOfTrailingZeros( word ) );
+                    word &= word - 1;
+                }
+            }
+
+            return new Container( array, cardinality );
+        }
+
+
+        private int indexOf( char low )
+        {
+            return Arrays.binarySearch( array, 0, cardinality, low );
+        }
+
+
+        private boolean contains( char low )
+        {
+            if ( bits != null )
+            {
+                return ( bits[low >>> 6] & ( 1L << low ) ) != 0;
+            }
+
+            return indexOf( low ) >= 0;
+        }
+
+
+        private boolean add( char low )
+        {
+            if ( bits != null )
+            {
+                long mask = 1L << low;
+
+                if ( ( bits[low >>> 6] & mask ) != 0 )
+                {
+                    return false;
+                }
+
+                bits[low >>> 6] |= mask;
+                cardinality++;
+
+                return true;
+            }
+
+            int index = indexOf( low );
+
+            if ( index >= 0 )
+            {
+                return false;
+            }
+
+            if ( cardinality == ARRAY_MAX )
+            {
+                bits = toBits();
+                array = null;
+
+                return add( low );
+            }
+
+            if ( cardinality == array.length )
+            {
+                array = Arrays.copyOf( array, Math.min( ARRAY_MAX, cardinality * 2 ) );
+            }
+
+            index = -index - 1;
+            System.arraycopy( array, index, array, index + 1, cardinality - index );
+            array[index] = low;
+            cardinality++;
+
+            return true;
+        }
+
+
+        private boolean remove( char low )
+        {
+            if ( bits != null )
+            {
+                long mask = 1L << low;
+
+                if ( ( bits[low >>> 6] & mask ) == 0 )
+                {
+                    return false;
+                }
+
+                bits[low >>> 6] &= ~mask;
+                cardinality--;
+
+                if ( cardinality == ARRAY_MAX )
+                {
+                    array = fromBits( bits, cardinality ).array;
+                    bits = null;
+                }
+
+                return true;
+            }
+
+            int index = indexOf( low );
+
+            if ( index < 0 )
+            {
+                return false;
+            }
+
+            System.arraycopy( array, index + 1, array, index, cardinality - index - 1 );
+            cardinality--;
+
+            return true;
+        }
+
+
+        private long[] toBits()
+        {
+            if ( bits != null )
+            {
+                return bits.clone();
+            }
+
+            long[] result = new long[WORDS];
+
+            for ( int i = 0; i < cardinality; i++ )
+            {
+                result[array[i] >>> 6] |= 1L << array[i];
+            }
+
+            return result;
+        }
+
+
+        private int first()
+        {
+            return next( 0 );
+        }
+
+
+        private int last()
+        {
+            return previous( 0xFFFF );
+        }
+
+
+        /**
+         * @return the smallest value greater or equal to the given one, or -1
+         */
+        private int next( int from )
+        {
+            if ( bits != null )
+            {
+                int i = from >>> 6;
+                long word = bits[i] & ( -1L << from );
+
+                while ( word == 0 )
+                {
+                    if ( ++i == WORDS )
+                    {
+                        return -1;
+                    }
+
+                    word = bits[i];
+                }
+
+                return ( i << 6 ) + Long.numberOfTrailingZeros( word );
+            }
+
+            int index = indexOf( ( char ) from );
+
+            if ( index < 0 )
+            {
+                index = -index - 1;
+            }
+
+            return ( index < cardinality ) ? array[index] : -1;
+        }
+
+
+        /**
+         * @return the greatest value smaller or equal to the given one, or -1
+         */
+        private int previous( int from )
+        {
+            if ( bits != null )
+            {
+                int i = from >>> 6;
+                long word = bits[i] & ( -1L >>> ( 63 - ( from & 63 ) ) );
+
+                while ( word == 0 )
+                {
+                    if ( --i < 0 )
+                    {
+                        return -1;
+                    }
+
+                    word = bits[i];
+                }
+
+                return ( i << 6 ) + 63 - Long.numberOfLeadingZeros( word );
+            }
+
+            int index = indexOf( ( char ) from );
+
+            if ( index < 0 )
+            {
+                index = -index - 2;
+            }
+
+            return ( index >= 0 ) ? array[index] : -1;
+        }
+
+
+        private Container copy()
+        {
+            if ( bits != null )
+            {
+                return new Container( bits.clone(), cardinality );
+            }
+
+            return new Container( Arrays.copyOf( array, Math.max( cardinality, 4 ) ), cardinality );
+        }
+
+
+        private Container and( Container other )
+        {
+            if ( ( bits != null ) && ( other.bits != null ) )
+            {
+                long[] result = new long[WORDS];
+                int n = 0;
+
+                for ( int i = 0; i < WORDS; i++ )
+                {
+                    result[i] = bits[i] & other.bits[i];
+                    n += Long.bitCount( result[i] );
+                }
+
+                return fromBits( result, n );
+            }
+
+            if ( bits != null )
+            {
+                return other.and( this );
+            }
+
+            char[] result = new char[Math.max( cardinality, 4 )];
+            int n = 0;
+
+            if ( other.bits != null )
+            {
+                for ( int i = 0; i < cardinality; i++ )
+                {
+                    if ( other.contains( array[i] ) )
+                    {
+                        result[n++] = array[i];
+                    }
+                }
+            }
+            else
+            {
+                int i = 0;
+                int j = 0;
+
+                while ( ( i < cardinality ) && ( j < other.cardinality ) )
+                {
+                    if ( array[i] < other.array[j] )
+                    {
+                        i++;
+                    }
+                    else if ( array[i] > other.array[j] )
+                    {
+                        j++;
+                    }
+                    else
+                    {
+                        result[n++] = array[i];
+                        i++;
+                        j++;
+                    }
+                }
+            }
+
+            return new Container( result, n );
+        }
+
+
+        private Container or( Container other )
+        {
+            if ( ( bits != null ) || ( other.bits != null ) )
+            {
+                long[] result = toBits();
+
+                if ( other.bits != null )
+                {
+                    for ( int i = 0; i < WORDS; i++ )
+                    {
+                        result[i] |= other.bits[i];
+                    }
+                }
+                else
+                {
+                    for ( int i = 0; i < other.cardinality; i++ )
+                    {
+                        result[other.array[i] >>> 6] |= 1L << other.array[i];
+                    }
+                }
+
+                int n = 0;
+
+                for ( int i = 0; i < WORDS; i++ )
+                {
+                    n += Long.bitCount( result[i] );
+                }
+
+                return fromBits( result, n );
+            }
+
+            char[] result = new char[cardinality + other.cardinality];
+            int n = 0;
+            int i = 0;
+            int j = 0;
+
+            while ( ( i < cardinality ) || ( j < other.cardinality ) )
+            {
+                if ( ( j == other.cardinality ) || ( ( i < cardinality ) && ( array[i] < other.array[j] ) ) )
+                {
+                    result[n++] = array[i++];
+                }
+                else if ( ( i == cardinality ) || ( array[i] > other.array[j] ) )
+                {
+                    result[n++] = other.array[j++];
+                }
+                else
+                {
+                    result[n++] = array[i];
+                    i++;
+                    j++;
+                }
+            }
+
+            if ( n > ARRAY_MAX )
+            {
+                return new Container( result, n ).copyToBits();
+            }
+
+            return new Container( result, n );
+        }
+
+
+        private Container copyToBits()
+        {
+            return new Container( toBits(), cardinality );
+        }
+
+
+        private Container andNot( Container other )
+        {
+            if ( bits != null )
+            {
+                long[] result = bits.clone();
+
+                if ( other.bits != null )
+                {
+                    for ( int i = 0; i < WORDS; i++ )
+                    {
+                        result[i] &= ~other.bits[i];
+                    }
+                }
+                else
+                {
+                    for ( int i = 0; i < other.cardinality; i++ )
+                    {
+                        result[other.array[i] >>> 6] &= ~( 1L << other.array[i] );
+                    }
+                }
+
+                int n = 0;
+
+                for ( int i = 0; i < WORDS; i++ )
+                {
+                    n += Long.bitCount( result[i] );
+                }
+
+                return fromBits( result, n );
+            }
+
+            char[] result = new char[Math.max( cardinality, 4 )];
+            int n = 0;
+
+            for ( int i = 0; i < cardinality; i++ )
+            {
+                if ( !other.contains( array[i] ) )
+                {
+                    result[n++] = array[i];
+                }
+            }
+
+            return new Container( result, n );
+        }
+    }
+}
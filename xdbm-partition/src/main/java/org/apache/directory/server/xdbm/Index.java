@@ -157,6 +157,16 @@ public interface Index<K, O, ID>
     int lessThanCount( K attrVal ) throws Exception;
 
 
+    /**
+     * Gets the statistics on the values of this index, kept up to date as
+     * tuples are added and dropped, which let the optimizer estimate the
+     * scan counts without reading the index.
+     *
+     * @return the statistics, or null if this index does not maintain any
+     */
+    IndexStatistics<K> getStatistics();
+
+
     ID forwardLookup( K attrVal ) throws Exception;
 
 
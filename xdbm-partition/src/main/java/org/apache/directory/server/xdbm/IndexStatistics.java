@@ -0,0 +1,538 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.xdbm;
+
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+
+/**
+ * Statistics on the values of an {@link Index}, used by the optimizer to
+ * estimate the number of entries matching an assertion without reading
+ * the index. They hold :
+ * <ul>
+ *   <li>the number of tuples and of distinct values of the index</li>
+ *   <li>the number of tuples of its most frequent values</li>
+ *   <li>an equi-depth histogram : the values are split in buckets holding
+ *   about the same number of tuples, the number of tuples of each bucket
+ *   being kept</li>
+ * </ul>
+ * The statistics are computed by scanning the index with {@link #rebuild(Index)},
+ * and then updated by the index each time a tuple is added or dropped. The
+ * bounds of the buckets and the most frequent values are only chosen when
+ * the statistics are rebuilt, which the index does once they are stale.
+ * <p>
+ * The values given to the statistics are normalized, and compared with the
+ * comparator of the index, which must be set again once the statistics are
+ * deserialized.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class IndexStatistics<K> implements Serializable
+{
+    private static final long serialVersionUID = 1L;
+
+    /** The maximum number of buckets of the histogram */
+    private static final int BUCKETS = 64;
+
+    /** The number of most frequent values counted exactly */
+    private static final int FREQUENT_VALUES = 16;
+
+    /** The number of modifications after which the statistics are always stale */
+    private static final int STALE_MIN_MODIFICATIONS = 1000;
+
+    /** The number of tuples of the index */
+    private long count;
+
+    /** The number of distinct values of the index */
+    private long distinct;
+
+    /** The number of tuples added or dropped since the last rebuild */
+    private long modifications;
+
+    /** The greatest value of each bucket but the last one, in increasing order */
+    private Object[] bounds = new Object[0];
+
+    /** The number of tuples of each bucket */
+    private long[] bucketCounts = new long[1];
+
+    /** The most frequent values, in increasing order */
+    private Object[] frequentValues = new Object[0];
+
+    /** The number of tuples of each frequent value */
+    private long[] frequentCounts = new long[0];
+
+    /** The comparator of the values */
+    private transient Comparator<K> comparator;
+
+
+    /**
+     * Creates empty statistics.
+     *
+     * @param comparator the comparator of the normalized values of the index
+     */
+    public IndexStatistics( Comparator<K> comparator )
+    {
+        this.comparator = comparator;
+    }
+
+
+    /**
+     * Sets the comparator of the values, which is not serialized.
+     *
+     * @param comparator the comparator of the normalized values of the index
+     */
+    public void setComparator( Comparator<K> comparator )
+    {
+        this.comparator = comparator;
+    }
+
+
+    /**
+     * @return the number of tuples of the index
+     */
+    public synchronized long getCount()
+    {
+        return count;
+    }
+
+
+    /**
+     * @return the number of distinct values of the index
+     */
+    public synchronized long getDistinctCount()
+    {
+        return distinct;
+    }
+
+
+    /**
+     * @return the number of tuples added or dropped since the statistics
+     * have been rebuilt
+     */
+    public synchronized long getModifications()
+    {
+        return modifications;
+    }
+
+
+    /**
+     * Tells if the statistics must be rebuilt : the histogram does not
+     * reflect the values added once a fifth of the index has changed.
+     *
+     * @return true if the statistics should be rebuilt
+     */
+    public synchronized boolean isStale()
+    {
+        return modifications > STALE_MIN_MODIFICATIONS + count / 5;
+    }
+
+
+    /**
+     * Updates the statistics once a tuple has been added to the index.
+     *
+     * @param value the normalized value of the tuple
+     * @param isNewValue true if the index had no tuple with this value
+     */
+    public synchronized void add( K value, boolean isNewValue )
+    {
+        count++;
+        modifications++;
+
+        if ( isNewValue )
+        {
+            distinct++;
+        }
+
+        bucketCounts[getBucket( value )]++;
+        int pos = getFrequentPosition( value );
+
+        if ( pos >= 0 )
+        {
+            frequentCounts[pos]++;
+        }
+    }
+
+
+    /**
+     * Updates the statistics once a tuple has been dropped from the index.
+     *
+     * @param value the normalized value of the tuple
+     * @param isLastValue true if the index has no tuple with this value anymore
+     */
+    public synchronized void drop( K value, boolean isLastValue )
+    {
+        count = Math.max( count - 1, 0 );
+        modifications++;
+
+        if ( isLastValue )
+        {
+            distinct = Math.max( distinct - 1, 0 );
+        }
+
+        int bucket = getBucket( value );
+        bucketCounts[bucket] = Math.max( bucketCounts[bucket] - 1, 0 );
+        int pos = getFrequentPosition( value );
+
+        if ( pos >= 0 )
+        {
+            frequentCounts[pos] = Math.max( frequentCounts[pos] - 1, 0 );
+        }
+    }
+
+
+    /**
+     * Estimates the number of tuples having a value.
+     *
+     * @param value the normalized value
+     * @return the exact count if the value is one of the most frequent ones,
+     * and otherwise the average count of the other values
+     */
+    public synchronized long estimateCount( K value )
+    {
+        int pos = getFrequentPosition( value );
+
+        if ( pos >= 0 )
+        {
+            return frequentCounts[pos];
+        }
+
+        long otherCount = count;
+        long otherValues = distinct;
+
+        for ( long frequentCount : frequentCounts )
+        {
+            otherCount -= frequentCount;
+
+            if ( frequentCount > 0 )
+            {
+                otherValues--;
+            }
+        }
+
+        if ( otherValues <= 0 )
+        {
+            return bound( 0 );
+        }
+
+        return bound( otherCount / otherValues );
+    }
+
+
+    /**
+     * Estimates the number of tuples whose value is in a range.
+     *
+     * @param lower the normalized lower bound of the range, or null if the
+     * range is not bounded below
+     * @param upper the normalized upper bound of the range, or null if the
+     * range is not bounded above
+     * @return the estimated number of tuples, assuming that the values of
+     * the buckets partially in the range are spread uniformly
+     */
+    public synchronized long estimateRangeCount( K lower, K upper )
+    {
+        int first = ( lower == null ) ? 0 : getBucket( lower );
+        int last = ( upper == null ) ? bucketCounts.length - 1 : getBucket( upper );
+        long result = 0;
+
+        for ( int i = first; i <= last; i++ )
+        {
+            result += bucketCounts[i];
+        }
+
+        // Half of the buckets containing the bounds are in the range
+        if ( ( lower != null ) && ( first <= last ) )
+        {
+            result -= bucketCounts[first] / 2;
+        }
+
+        if ( ( upper != null ) && ( first < last ) )
+        {
+            result -= bucketCounts[last] / 2;
+        }
+
+        return bound( result );
+    }
+
+
+    /**
+     * Computes the statistics again by scanning the index. The statistics
+     * can still be read and updated during the scan, and are replaced by
+     * the new ones at its end : the tuples added or dropped meanwhile are
+     * then counted again as modifications.
+     *
+     * @param index the index, whose values are read in increasing order
+     * @throws Exception if the index can't be read
+     */
+    public void rebuild( Index<K, ?, ?> index ) throws Exception
+    {
+        long startModifications = getModifications();
+        Builder builder = new Builder( index.count() );
+        IndexCursor<K, ?, ?> cursor = index.forwardCursor();
+
+        try
+        {
+            cursor.beforeFirst();
+
+            while ( cursor.next() )
+            {
+                builder.add( cursor.get().getValue() );
+            }
+        }
+        finally
+        {
+            cursor.close();
+        }
+
+        synchronized ( this )
+        {
+            long scanModifications = modifications - startModifications;
+            builder.build();
+            modifications = Math.max( scanModifications, 0 );
+        }
+    }
+
+
+    /**
+     * @see Object#toString()
+     */
+    public synchronized String toString()
+    {
+        return "IndexStatistics[count=" + count + ", distinct=" + distinct + ", modifications=" + modifications
+            + ", buckets=" + bucketCounts.length + ", frequent=" + Arrays.asList( frequentValues ) + "]";
+    }
+
+
+    /**
+     * An estimated count can't be 0 if the index isn't empty, as a 0 count
+     * tells that nothing matches, and it can't be above the index count.
+     */
+    private long bound( long estimated )
+    {
+        if ( count == 0 )
+        {
+            return 0;
+        }
+
+        return Math.min( Math.max( estimated, 1 ), count );
+    }
+
+
+    /**
+     * @return the position of the first bucket whose bound is greater than
+     * or equal to the value, or the position of the last bucket
+     */
+    @SuppressWarnings("unchecked")
+    private int getBucket( K value )
+    {
+        int low = 0;
+        int high = bounds.length;
+
+        while ( low < high )
+        {
+            int middle = ( low + high ) >>> 1;
+
+            if ( comparator.compare( ( K ) bounds[middle], value ) < 0 )
+            {
+                low = middle + 1;
+            }
+            else
+            {
+                high = middle;
+            }
+        }
+
+        return low;
+    }
+
+
+    /**
+     * @return the position of the value in the frequent values, or -1
+     */
+    @SuppressWarnings("unchecked")
+    private int getFrequentPosition( K value )
+    {
+        int low = 0;
+        int high = frequentValues.length - 1;
+
+        while ( low <= high )
+        {
+            int middle = ( low + high ) >>> 1;
+            int result = comparator.compare( ( K ) frequentValues[middle], value );
+
+            if ( result < 0 )
+            {
+                low = middle + 1;
+            }
+            else if ( result > 0 )
+            {
+                high = middle - 1;
+            }
+            else
+            {
+                return middle;
+            }
+        }
+
+        return -1;
+    }
+
+
+    /**
+     * A value and its number of tuples.
+     */
+    private static class ValueCount<K> implements Comparable<ValueCount<K>>
+    {
+        private final K value;
+        private final long count;
+
+
+        private ValueCount( K value, long count )
+        {
+            this.value = value;
+            this.count = count;
+        }
+
+
+        public int compareTo( ValueCount<K> other )
+        {
+            return ( count < other.count ) ? -1 : ( ( count == other.count ) ? 0 : 1 );
+        }
+    }
+
+
+    /**
+     * Computes the statistics from the values of the index, read in
+     * increasing order.
+     */
+    private class Builder
+    {
+        /** The number of tuples of a bucket once full */
+        private final long depth;
+
+        private final List<Object> newBounds = new ArrayList<Object>();
+        private final List<Long> newBucketCounts = new ArrayList<Long>();
+
+        /** The most frequent values seen, the least frequent first */
+        private final PriorityQueue<ValueCount<K>> frequent = new PriorityQueue<ValueCount<K>>();
+
+        private long newCount;
+        private long newDistinct;
+        private long bucketCount;
+
+        /** The value being counted, and its number of tuples */
+        private K value;
+        private long valueCount;
+
+
+        private Builder( long expectedCount )
+        {
+            depth = Math.max( expectedCount / BUCKETS, 1 );
+        }
+
+
+        private void add( K next )
+        {
+            if ( ( valueCount > 0 ) && ( comparator.compare( value, next ) == 0 ) )
+            {
+                valueCount++;
+                return;
+            }
+
+            endValue();
+            value = next;
+            valueCount = 1;
+        }
+
+
+        private void endValue()
+        {
+            if ( valueCount == 0 )
+            {
+                return;
+            }
+
+            newCount += valueCount;
+            newDistinct++;
+            bucketCount += valueCount;
+
+            // The last bucket is the one of the values greater than the last bound
+            if ( ( bucketCount >= depth ) && ( newBounds.size() < BUCKETS - 1 ) )
+            {
+                newBounds.add( value );
+                newBucketCounts.add( bucketCount );
+                bucketCount = 0;
+            }
+
+            frequent.add( new ValueCount<K>( value, valueCount ) );
+
+            if ( frequent.size() > FREQUENT_VALUES )
+            {
+                frequent.poll();
+            }
+
+            valueCount = 0;
+        }
+
+
+        @SuppressWarnings("unchecked")
+        private void build()
+        {
+            endValue();
+            newBucketCounts.add( bucketCount );
+
+            List<ValueCount<K>> values = new ArrayList<ValueCount<K>>( frequent );
+            Collections.sort( values, new Comparator<ValueCount<K>>()
+            {
+                public int compare( ValueCount<K> vc1, ValueCount<K> vc2 )
+                {
+                    return comparator.compare( vc1.value, vc2.value );
+                }
+            } );
+
+            frequentValues = new Object[values.size()];
+            frequentCounts = new long[values.size()];
+
+            for ( int i = 0; i < values.size(); i++ )
+            {
+                frequentValues[i] = values.get( i ).value;
+                frequentCounts[i] = values.get( i ).count;
+            }
+
+            bounds = newBounds.toArray();
+            bucketCounts = new long[newBucketCounts.size()];
+
+            for ( int i = 0; i < bucketCounts.length; i++ )
+            {
+                bucketCounts[i] = newBucketCounts.get( i );
+            }
+
+            count = newCount;
+            distinct = newDistinct;
+            modifications = 0;
+        }
+    }
+}
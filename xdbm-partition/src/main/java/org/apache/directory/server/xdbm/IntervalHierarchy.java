@@ -0,0 +1,958 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.xdbm;
+
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.directory.server.i18n.I18n;
+import org.apache.directory.shared.ldap.cursor.Cursor;
+import org.apache.directory.shared.ldap.cursor.InvalidCursorPositionException;
+import org.apache.directory.shared.ldap.cursor.Tuple;
+
+
+/**
+ * The hierarchy of the entries of a {@link Store}, encoded with nested
+ * intervals : each entry has an interval of labels, which contains the
+ * intervals of its descendants. An entry is in the subtree of another one
+ * if its label, the low bound of its interval, is in the interval of the
+ * other one, and the entries of a subtree are read by scanning the labels
+ * of its interval.
+ * <p>
+ * The intervals leave gaps, so that most entries are added without
+ * changing the other labels : each entry keeps some free slots for its
+ * future children. When an entry has no free slot left, the labels of its
+ * subtree, or of the subtree of an ancestor if it is too small, are
+ * spread again, giving each entry as many free slots as it has children.
+ * Moving an entry relabels its subtree once, whatever its depth.
+ * <p>
+ * The hierarchy is kept in memory. A store can save the entries modified
+ * in a {@link Table} with {@link #save(Table)}, and read them back with a
+ * single scan of the table with {@link #load(Table)} when it is opened,
+ * instead of building the hierarchy again from the one level index.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class IntervalHierarchy<ID>
+{
+    /** The minimum number of free slots kept for the children of an entry */
+    private static final int MIN_SLOTS = 16;
+
+    /** The slot width under which the subtree of the parent is relabeled */
+    private static final long MIN_UNIT = 1L << 16;
+
+    /** The root, parent of the context entry, which has no label */
+    private final Node<ID> root;
+
+    /** The nodes of the entries, by entry id */
+    private final Map<ID, Node<ID>> nodes = new HashMap<ID, Node<ID>>();
+
+    /** The ids of the entries, by label */
+    private final ConcurrentNavigableMap<Long, ID> labels = new ConcurrentSkipListMap<Long, ID>();
+
+    /** The number of relabelings, used by the cursors to read the new labels */
+    private volatile long stamp;
+
+    /** The lock protecting the nodes */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /** The ids of the entries modified, and of the entries removed, since the hierarchy has been saved */
+    private final Set<ID> modified = new HashSet<ID>();
+    private final Set<ID> deleted = new HashSet<ID>();
+
+
+    /**
+     * A node of the hierarchy.
+     */
+    private static class Node<ID>
+    {
+        private final ID id;
+        private Node<ID> parent;
+
+        /** The bounds of the interval */
+        private long low;
+        private long high;
+
+        /** The first free label for the children */
+        private long next;
+
+        /** The width of the interval of a new child */
+        private long unit;
+
+        /** The number of children */
+        private int children;
+
+        /** The number of entries of the subtree, this one included */
+        private int size = 1;
+
+        /** The number of slots needed by the subtree, while it is relabeled */
+        private long weight;
+
+
+        private Node( ID id, Node<ID> parent )
+        {
+            this.id = id;
+            this.parent = parent;
+        }
+    }
+
+
+    /**
+     * The saved state of an entry of the hierarchy.
+     */
+    public static final class NodeRecord<ID> implements Serializable
+    {
+        private static final long serialVersionUID = 1L;
+
+        /** The id of the parent, null for the root */
+        private final ID parentId;
+
+        private final long low;
+        private final long high;
+        private final long next;
+        private final long unit;
+        private final int children;
+        private final int size;
+
+
+        private NodeRecord( Node<ID> node )
+        {
+            parentId = ( node.parent == null ) ? null : node.parent.id;
+            low = node.low;
+            high = node.high;
+            next = node.next;
+            unit = node.unit;
+            children = node.children;
+            size = node.size;
+        }
+    }
+
+
+    /**
+     * Creates an empty hierarchy.
+     *
+     * @param rootId the id of the parent of the context entry
+     */
+    public IntervalHierarchy( ID rootId )
+    {
+        root = new Node<ID>( rootId, null );
+        root.low = 0;
+        root.high = Long.MAX_VALUE - 1;
+        root.next = 1;
+        root.unit = Long.MAX_VALUE / 2;
+        root.size = 0;
+        nodes.put( rootId, root );
+    }
+
+
+    /**
+     * Adds an entry under its parent.
+     *
+     * @param parentId the id of the parent, which is in the hierarchy
+     * @param id the id of the added entry
+     */
+    public void add( ID parentId, ID id )
+    {
+        lock.writeLock().lock();
+
+        try
+        {
+            Node<ID> parent = getNode( parentId );
+            Node<ID> node = new Node<ID>( id, parent );
+            nodes.put( id, node );
+            modified.add( id );
+            deleted.remove( id );
+            parent.children++;
+            updateSizes( parent, 1 );
+
+            if ( !allocate( parent, node ) )
+            {
+                relabel( parent, null );
+                allocate( parent, node );
+            }
+
+            labels.put( node.low, id );
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+
+    /**
+     * Removes a leaf entry.
+     *
+     * @param id the id of the removed entry
+     */
+    public void delete( ID id )
+    {
+        lock.writeLock().lock();
+
+        try
+        {
+            Node<ID> node = nodes.remove( id );
+
+            if ( node == null )
+            {
+                return;
+            }
+
+            labels.remove( node.low, id );
+            modified.remove( id );
+            deleted.add( id );
+            node.parent.children--;
+            updateSizes( node.parent, -node.size );
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+
+    /**
+     * Moves an entry, and its subtree, under a new parent.
+     *
+     * @param id the id of the moved entry
+     * @param newParentId the id of its new parent
+     */
+    public void move( ID id, ID newParentId )
+    {
+        lock.writeLock().lock();
+
+        try
+        {
+            Node<ID> node = getNode( id );
+            Node<ID> newParent = getNode( newParentId );
+
+            // The old labels of the subtree are dropped before it is laid out again
+            List<Node<ID>> subtree = collect( node );
+
+            for ( Node<ID> moved : subtree )
+            {
+                labels.remove( moved.low, moved.id );
+            }
+
+            node.parent.children--;
+            updateSizes( node.parent, -node.size );
+            node.parent = newParent;
+            newParent.children++;
+            updateSizes( newParent, node.size );
+
+            computeWeights( node, subtree );
+            long width = newParent.unit * node.weight;
+
+            if ( ( newParent.unit > 0 ) && ( width / node.weight == newParent.unit )
+                && ( newParent.high - newParent.next + 1 >= width ) )
+            {
+                node.low = newParent.next;
+                node.high = node.low + width - 1;
+                newParent.next += width;
+                modified.add( newParent.id );
+                layout( node, subtree, newParent.unit );
+            }
+            else
+            {
+                relabel( newParent, subtree );
+            }
+
+            stamp++;
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+
+    /**
+     * Tells if an entry is in the subtree of another one.
+     *
+     * @param baseId the id of the base of the subtree
+     * @param id the id of the entry
+     * @return true if the entry is the base, or one of its descendants
+     */
+    public boolean isInSubtree( ID baseId, ID id )
+    {
+        lock.readLock().lock();
+
+        try
+        {
+            Node<ID> base = nodes.get( baseId );
+            Node<ID> node = nodes.get( id );
+
+            if ( ( base == null ) || ( node == null ) )
+            {
+                return false;
+            }
+
+            return ( base == root ) || ( ( node.low >= base.low ) && ( node.low <= base.high ) );
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+
+    /**
+     * Gets the number of entries in a subtree.
+     *
+     * @param baseId the id of the base of the subtree
+     * @return the number of entries of the subtree, the base included, or 0
+     * if the base is not in the hierarchy
+     */
+    public int getSubtreeSize( ID baseId )
+    {
+        lock.readLock().lock();
+
+        try
+        {
+            Node<ID> base = nodes.get( baseId );
+
+            return ( base == null ) ? 0 : base.size;
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+
+    /**
+     * Gets a Cursor over the entries of a subtree, in the order of their
+     * labels. The entries are returned after their parent, and the subtree
+     * of an entry is returned before its next sibling. The index entries
+     * have the base id as value.
+     *
+     * @param baseId the id of the base of the subtree
+     * @return a Cursor over the base and its descendants
+     */
+    public <E> IndexCursor<ID, E, ID> subtreeCursor( ID baseId )
+    {
+        return new SubtreeCursor<E>( baseId );
+    }
+
+
+    /**
+     * Removes all the entries.
+     */
+    public void clear()
+    {
+        lock.writeLock().lock();
+
+        try
+        {
+            deleted.addAll( nodes.keySet() );
+            deleted.remove( root.id );
+            modified.clear();
+            modified.add( root.id );
+            nodes.clear();
+            labels.clear();
+            nodes.put( root.id, root );
+            root.next = root.low + 1;
+            root.unit = Long.MAX_VALUE / 2;
+            root.children = 0;
+            root.size = 0;
+            stamp++;
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+
+    /**
+     * Writes the entries modified since the hierarchy has been saved, and
+     * removes the entries deleted meanwhile, in a table keyed by entry id.
+     *
+     * @param table the table of the saved hierarchy
+     * @return the number of entries written or removed
+     * @throws Exception if the table can't be written
+     */
+    public int save( Table<ID, NodeRecord<ID>> table ) throws Exception
+    {
+        lock.writeLock().lock();
+
+        try
+        {
+            int saved = modified.size() + deleted.size();
+
+            for ( ID id : deleted )
+            {
+                if ( table.has( id ) )
+                {
+                    table.remove( id );
+                }
+            }
+
+            for ( ID id : modified )
+            {
+                table.put( id, new NodeRecord<ID>( nodes.get( id ) ) );
+            }
+
+            deleted.clear();
+            modified.clear();
+
+            return saved;
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+
+    /**
+     * Reads the hierarchy saved in a table, replacing the entries of this
+     * hierarchy.
+     *
+     * @param table the table of the saved hierarchy
+     * @return false if the table does not contain the root, and nothing
+     * has been read
+     * @throws Exception if the table can't be read
+     */
+    public boolean load( Table<ID, NodeRecord<ID>> table ) throws Exception
+    {
+        lock.writeLock().lock();
+
+        try
+        {
+            NodeRecord<ID> rootRecord = table.get( root.id );
+
+            if ( rootRecord == null )
+            {
+                return false;
+            }
+
+            nodes.clear();
+            labels.clear();
+            nodes.put( root.id, root );
+            read( root, rootRecord );
+
+            // The parents are linked once all the nodes are created
+            Map<ID, ID> parentIds = new HashMap<ID, ID>();
+            Cursor<Tuple<ID, NodeRecord<ID>>> cursor = table.cursor();
+
+            try
+            {
+                while ( cursor.next() )
+                {
+                    Tuple<ID, NodeRecord<ID>> tuple = cursor.get();
+                    NodeRecord<ID> record = tuple.getValue();
+
+                    if ( record.parentId != null )
+                    {
+                        Node<ID> node = new Node<ID>( tuple.getKey(), null );
+                        read( node, record );
+                        nodes.put( node.id, node );
+                        parentIds.put( node.id, record.parentId );
+                        labels.put( node.low, node.id );
+                    }
+                }
+            }
+            finally
+            {
+                cursor.close();
+            }
+
+            for ( Map.Entry<ID, ID> parentId : parentIds.entrySet() )
+            {
+                nodes.get( parentId.getKey() ).parent = getNode( parentId.getValue() );
+            }
+
+            modified.clear();
+            deleted.clear();
+            stamp++;
+
+            return true;
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+
+    private static <ID> void read( Node<ID> node, NodeRecord<ID> record )
+    {
+        node.low = record.low;
+        node.high = record.high;
+        node.next = record.next;
+        node.unit = record.unit;
+        node.children = record.children;
+        node.size = record.size;
+    }
+
+
+    /**
+     * @return the number of relabelings, which changes when the labels of
+     * some entries are not the same anymore
+     */
+    long getStamp()
+    {
+        return stamp;
+    }
+
+
+    /**
+     * Gets the bounds of the interval of an entry.
+     *
+     * @return the low and high bounds, or null if the entry is unknown
+     */
+    long[] getInterval( ID id )
+    {
+        lock.readLock().lock();
+
+        try
+        {
+            Node<ID> node = nodes.get( id );
+
+            return ( node == null ) ? null : new long[]
+                { node.low, node.high };
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+
+    private Node<ID> getNode( ID id )
+    {
+        Node<ID> node = nodes.get( id );
+
+        if ( node == null )
+        {
+            throw new IllegalArgumentException( I18n.err( I18n.ERR_744, id ) );
+        }
+
+        return node;
+    }
+
+
+    private void updateSizes( Node<ID> node, int delta )
+    {
+        for ( Node<ID> ancestor = node; ancestor != null; ancestor = ancestor.parent )
+        {
+            ancestor.size += delta;
+            modified.add( ancestor.id );
+        }
+    }
+
+
+    /**
+     * Gives a new entry the next free slot of its parent.
+     *
+     * @return false if the parent has no free slot left
+     */
+    private boolean allocate( Node<ID> parent, Node<ID> node )
+    {
+        long width = parent.unit;
+
+        if ( ( width < 1 ) || ( parent.high - parent.next + 1 < width ) )
+        {
+            return false;
+        }
+
+        node.low = parent.next;
+        node.high = node.low + width - 1;
+        node.next = node.low + 1;
+        node.unit = ( width - 1 ) / MIN_SLOTS;
+        parent.next += width;
+        modified.add( parent.id );
+
+        return true;
+    }
+
+
+    /**
+     * Relabels the subtree of an entry, or of the closest ancestor having
+     * enough room for its subtree.
+     *
+     * @param node the entry whose subtree is relabeled
+     * @param moved the subtree moved under the entry, in the order of the
+     * labels, if any
+     */
+    private void relabel( Node<ID> node, List<Node<ID>> moved )
+    {
+        for ( Node<ID> top = node; ; top = top.parent )
+        {
+            List<Node<ID>> subtree = collect( top );
+
+            if ( moved != null )
+            {
+                subtree.addAll( moved );
+            }
+
+            computeWeights( top, subtree );
+            long unit = ( top.high - top.low + 1 ) / top.weight;
+
+            if ( ( unit >= MIN_UNIT ) || ( ( top == root ) && ( unit >= 1 ) ) )
+            {
+                for ( Node<ID> relabeled : subtree )
+                {
+                    if ( relabeled != root )
+                    {
+                        labels.remove( relabeled.low, relabeled.id );
+                    }
+                }
+
+                layout( top, subtree, unit );
+                stamp++;
+
+                return;
+            }
+
+            if ( top == root )
+            {
+                // There are more entries than labels
+                throw new IllegalStateException( I18n.err( I18n.ERR_744, node.id ) );
+            }
+        }
+    }
+
+
+    /**
+     * @return the nodes of the subtree of an entry, the entry first, and
+     * the others in the order of their labels
+     */
+    private List<Node<ID>> collect( Node<ID> top )
+    {
+        List<Node<ID>> subtree = new ArrayList<Node<ID>>();
+        subtree.add( top );
+
+        for ( ID id : labels.subMap( top.low, false, top.high, true ).values() )
+        {
+            subtree.add( nodes.get( id ) );
+        }
+
+        return subtree;
+    }
+
+
+    /**
+     * Computes the number of slots needed by each entry of a subtree :
+     * one for the entry itself, the ones of its children, and as many free
+     * slots as it has children.
+     */
+    private void computeWeights( Node<ID> top, List<Node<ID>> subtree )
+    {
+        for ( Node<ID> node : subtree )
+        {
+            node.weight = 1 + Math.max( node.children, MIN_SLOTS );
+        }
+
+        // The descendants of an entry come after it
+        for ( int i = subtree.size() - 1; i > 0; i-- )
+        {
+            Node<ID> node = subtree.get( i );
+
+            if ( node != top )
+            {
+                node.parent.weight += node.weight;
+            }
+        }
+    }
+
+
+    /**
+     * Gives new intervals to the entries of a subtree, in the same order.
+     * The interval of the first entry is kept.
+     */
+    private void layout( Node<ID> top, List<Node<ID>> subtree, long unit )
+    {
+        top.next = top.low + 1;
+        top.unit = unit;
+
+        for ( Node<ID> node : subtree )
+        {
+            if ( node != top )
+            {
+                long width = unit * node.weight;
+                node.low = node.parent.next;
+                node.high = node.low + width - 1;
+                node.next = node.low + 1;
+                node.unit = unit;
+                node.parent.next += width;
+            }
+
+            if ( node != root )
+            {
+                labels.put( node.low, node.id );
+            }
+
+            modified.add( node.id );
+        }
+    }
+
+
+    /**
+     * A Cursor scanning the labels of a subtree. When some labels change,
+     * the Cursor reads the new interval of the base, and the new label of
+     * the entry it is positioned on. The labels are read with the hierarchy
+     * locked, as a relabeled subtree has no label until it is laid out again.
+     */
+    private class SubtreeCursor<E> extends AbstractIndexCursor<ID, E, ID>
+    {
+        private final ID baseId;
+        private final IndexEntry<ID, E, ID> indexEntry = new ForwardIndexEntry<ID, E, ID>();
+
+        /** The bounds of the subtree */
+        private long low;
+        private long high;
+
+        /** The label of the current entry, or the bound the Cursor is on */
+        private long position;
+
+        /** The id of the current entry, null if not on an entry */
+        private ID current;
+
+        /** Whether the Cursor is positioned */
+        private boolean positioned;
+
+        /** The stamp of the hierarchy when the labels have been read */
+        private long readStamp;
+
+
+        private SubtreeCursor( ID baseId )
+        {
+            this.baseId = baseId;
+            indexEntry.setValue( baseId );
+            readBounds();
+        }
+
+
+        private void readBounds()
+        {
+            readStamp = getStamp();
+            long[] bounds = getInterval( baseId );
+
+            if ( bounds == null )
+            {
+                // An empty subtree
+                low = 0;
+                high = -1;
+            }
+            else
+            {
+                low = bounds[0];
+                high = bounds[1];
+            }
+        }
+
+
+        /**
+         * Reads the labels again if they have changed.
+         */
+        private void refresh()
+        {
+            if ( readStamp == getStamp() )
+            {
+                return;
+            }
+
+            readBounds();
+
+            if ( current != null )
+            {
+                long[] interval = getInterval( current );
+
+                if ( interval != null )
+                {
+                    position = interval[0];
+                }
+            }
+        }
+
+
+        public boolean available()
+        {
+            return current != null;
+        }
+
+
+        public void before( IndexEntry<ID, E, ID> element ) throws Exception
+        {
+            throw new UnsupportedOperationException( I18n.err( I18n.ERR_719 ) );
+        }
+
+
+        public void after( IndexEntry<ID, E, ID> element ) throws Exception
+        {
+            throw new UnsupportedOperationException( I18n.err( I18n.ERR_719 ) );
+        }
+
+
+        public void beforeValue( ID id, ID value ) throws Exception
+        {
+            throw new UnsupportedOperationException( I18n.err( I18n.ERR_719 ) );
+        }
+
+
+        public void afterValue( ID id, ID value ) throws Exception
+        {
+            throw new UnsupportedOperationException( I18n.err( I18n.ERR_719 ) );
+        }
+
+
+        public void beforeFirst() throws Exception
+        {
+            checkNotClosed( "beforeFirst()" );
+            readBounds();
+            position = low - 1;
+            current = null;
+            positioned = true;
+        }
+
+
+        public void afterLast() throws Exception
+        {
+            checkNotClosed( "afterLast()" );
+            readBounds();
+            position = high + 1;
+            current = null;
+            positioned = true;
+        }
+
+
+        public boolean first() throws Exception
+        {
+            beforeFirst();
+            return next();
+        }
+
+
+        public boolean last() throws Exception
+        {
+            afterLast();
+            return previous();
+        }
+
+
+        public boolean next() throws Exception
+        {
+            checkNotClosed( "next()" );
+
+            if ( !positioned )
+            {
+                beforeFirst();
+            }
+
+            lock.readLock().lock();
+
+            try
+            {
+                refresh();
+
+                Map.Entry<Long, ID> entry = ( position < low ) ? labels.ceilingEntry( low ) : labels
+                    .higherEntry( position );
+
+                if ( ( entry == null ) || ( entry.getKey() > high ) )
+                {
+                    position = high + 1;
+                    current = null;
+
+                    return false;
+                }
+
+                position = entry.getKey();
+                current = entry.getValue();
+
+                return true;
+            }
+            finally
+            {
+                lock.readLock().unlock();
+            }
+        }
+
+
+        public boolean previous() throws Exception
+        {
+            checkNotClosed( "previous()" );
+
+            if ( !positioned )
+            {
+                afterLast();
+            }
+
+            lock.readLock().lock();
+
+            try
+            {
+                refresh();
+
+                Map.Entry<Long, ID> entry = ( position > high ) ? labels.floorEntry( high ) : labels
+                    .lowerEntry( position );
+
+                if ( ( entry == null ) || ( entry.getKey() < low ) )
+                {
+                    position = low - 1;
+                    current = null;
+
+                    return false;
+                }
+
+                position = entry.getKey();
+                current = entry.getValue();
+
+                return true;
+            }
+            finally
+            {
+                lock.readLock().unlock();
+            }
+        }
+
+
+        public IndexEntry<ID, E, ID> get() throws Exception
+        {
+            checkNotClosed( "get()" );
+
+            if ( current == null )
+            {
+                throw new InvalidCursorPositionException( I18n.err( I18n.ERR_708 ) );
+            }
+
+            indexEntry.setId( current );
+
+            return indexEntry;
+        }
+
+
+        public boolean isElementReused()
+        {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.xdbm;
+
+
+import java.util.List;
+
+
+/**
+ * An index which also stores, for each n-gram of its values, the ids of
+ * the entries having a value containing it, as computed by {@link Ngrams}.
+ * The candidates of a substring assertion without initial part can then be
+ * found without scanning the whole index : an entry matching the assertion
+ * has all the n-grams of its parts. The candidates must still be checked
+ * against the assertion. The ids of the entries must be Longs.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public interface NgramIndex<O, ID> extends Index<String, O, ID>
+{
+    /**
+     * Gets the ids of the entries having a value which contains all the
+     * n-grams of the given parts of a value.
+     *
+     * @param parts the normalized parts of a value
+     * @return a new bitmap of the ids, or null if the parts are too short to
+     * contain an n-gram
+     * @throws Exception if the index can't be read
+     */
+    IdBitmap forwardNgramBitmap( List<String> parts ) throws Exception;
+}
@@ -0,0 +1,174 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.xdbm;
+
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.apache.directory.shared.ldap.filter.SubstringNode;
+import org.apache.directory.shared.ldap.schema.AttributeType;
+import org.apache.directory.shared.ldap.schema.MatchingRule;
+import org.apache.directory.shared.ldap.schema.Normalizer;
+import org.apache.directory.shared.ldap.schema.normalizers.NoOpNormalizer;
+
+
+/**
+ * Splits the values of a {@link NgramIndex} in n-grams : the substrings of
+ * {@link #LENGTH} characters they contain.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public final class Ngrams
+{
+    /** The number of characters of an n-gram */
+    public static final int LENGTH = 3;
+
+    /** The annotation of a substring assertion holding the candidates read from the n-gram index */
+    public static final String CANDIDATES = "ngramCandidates";
+
+
+    private Ngrams()
+    {
+    }
+
+
+    /**
+     * Gets the n-grams of a value.
+     *
+     * @param value the normalized value
+     * @return the distinct n-grams of the value, in increasing order, empty
+     * if the value is shorter than an n-gram
+     */
+    public static Set<String> split( String value )
+    {
+        Set<String> ngrams = new TreeSet<String>();
+
+        for ( int i = 0; i + LENGTH <= value.length(); i++ )
+        {
+            ngrams.add( value.substring( i, i + LENGTH ) );
+        }
+
+        return ngrams;
+    }
+
+
+    /**
+     * Tells if the candidates of a substring assertion are better found
+     * with the n-grams of its parts than by scanning the values starting
+     * with its initial part, when it has one long enough.
+     *
+     * @param node the substring assertion
+     * @return true if the n-grams should be used
+     */
+    public static boolean isSelective( SubstringNode node )
+    {
+        if ( ( node.getInitial() != null ) && ( node.getInitial().length() >= LENGTH ) )
+        {
+            return false;
+        }
+
+        for ( String part : getParts( node ) )
+        {
+            if ( part.length() >= LENGTH )
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+
+    /**
+     * @return the initial, any and final parts of a substring assertion
+     */
+    public static List<String> getParts( SubstringNode node )
+    {
+        List<String> parts = new ArrayList<String>();
+
+        if ( node.getInitial() != null )
+        {
+            parts.add( node.getInitial() );
+        }
+
+        if ( node.getAny() != null )
+        {
+            parts.addAll( node.getAny() );
+        }
+
+        if ( node.getFinal() != null )
+        {
+            parts.add( node.getFinal() );
+        }
+
+        return parts;
+    }
+
+
+    /**
+     * Gets the normalizer of the substring assertions on an attribute : the
+     * one of its substring matching rule, or of its equality matching rule
+     * when it has none.
+     *
+     * @param type the attribute of the assertions
+     * @return the normalizer of the assertion parts
+     */
+    public static Normalizer getNormalizer( AttributeType type )
+    {
+        MatchingRule rule = type.getSubstring();
+
+        if ( rule == null )
+        {
+            rule = type.getEquality();
+        }
+
+        if ( rule != null )
+        {
+            return rule.getNormalizer();
+        }
+
+        return new NoOpNormalizer( type.getSyntaxOid() );
+    }
+
+
+    /**
+     * Gets the initial, any and final parts of a substring assertion,
+     * normalized with the given normalizer.
+     *
+     * @param node the substring assertion
+     * @param normalizer the normalizer of the assertion parts
+     * @return the normalized parts
+     * @throws Exception if a part can't be normalized
+     */
+    public static List<String> getNormalizedParts( SubstringNode node, Normalizer normalizer ) throws Exception
+    {
+        List<String> parts = new ArrayList<String>();
+
+        for ( String part : getParts( node ) )
+        {
+            parts.add( ( String ) normalizer.normalize( part ) );
+        }
+
+        return parts;
+    }
+}
@@ -96,8 +96,6 @@ public interface Store<E, ID extends Comparable<ID>>
 
         ApacheSchemaConstants.APACHE_ONE_LEVEL_AT_OID,
 
-        ApacheSchemaConstants.APACHE_SUB_LEVEL_AT_OID,
-
         ApacheSchemaConstants.APACHE_RDN_AT_OID,
 
         ApacheSchemaConstants.APACHE_N_DN_AT_OID,
@@ -187,6 +185,15 @@ public interface Store<E, ID extends Comparable<ID>>
     int getCacheSize();
 
 
+    /**
+     * Gets the cache of the entries and of their DNs, which holds up to
+     * {@link #getCacheSize()} entries, and tells how often it is hit.
+     *
+     * @return The entry cache
+     */
+    EntryCache<ID> getEntryCache();
+
+
     /**
      * Sets the store's unique identifier.
      * @param id The store's unique identifier
@@ -264,9 +271,9 @@ public interface Store<E, ID extends Comparable<ID>>
 
 
     /**
-     * @return The SubLevel system index
+     * @return The hierarchy of the entries, answering the subtree scope
      */
-    Index<ID, E, ID> getSubLevelIndex();
+    IntervalHierarchy<ID> getHierarchy();
 
 
     /**
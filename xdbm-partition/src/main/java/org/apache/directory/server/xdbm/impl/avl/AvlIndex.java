@@ -27,6 +27,7 @@ import org.apache.directory.server.core.partition.impl.btree.LongComparator;
 import org.apache.directory.server.i18n.I18n;
 import org.apache.directory.server.xdbm.Index;
 import org.apache.directory.server.xdbm.IndexCursor;
+import org.apache.directory.server.xdbm.IndexStatistics;
 import org.apache.directory.shared.ldap.cursor.Cursor;
 import org.apache.directory.shared.ldap.cursor.Tuple;
 import org.apache.directory.shared.ldap.entry.BinaryValue;
@@ -332,6 +333,18 @@ public class AvlIndex<K, O> implements Index<K, O, Long>
     }
 
 
+    /**
+     * {@inheritDoc}
+     * 
+     * The counts of the in-memory index are cheap enough to be read
+     * directly, so no statistics are kept.
+     */
+    public IndexStatistics<K> getStatistics()
+    {
+        return null;
+    }
+
+
     /**
      * {@inheritDoc}
      */
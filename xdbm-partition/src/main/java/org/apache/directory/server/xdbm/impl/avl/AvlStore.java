@@ -73,12 +73,14 @@ public class AvlStore<E> extends AbstractStore<E, Long>
 
         // Create the master table (the table containing all the entries)
         master = new AvlMasterTable<Entry>( id, new LongComparator(), null, false );
+        setupEntryCache();
 
         // -------------------------------------------------------------------
         // Initializes the user and system indices
         // -------------------------------------------------------------------
         setupSystemIndices();
         setupUserIndices();
+        setupHierarchy();
 
         // We are done !
         initialized = true;
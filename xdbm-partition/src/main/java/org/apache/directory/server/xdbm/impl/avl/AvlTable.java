@@ -314,7 +314,7 @@ public class AvlTable<K, V> implements Table<K, V>
     /**
      * {@inheritDoc}
      */
-    public void put( K key, V value ) throws Exception
+    public synchronized void put( K key, V value ) throws Exception
     {
         if ( key == null || value == null )
         {
@@ -331,7 +331,7 @@ public class AvlTable<K, V> implements Table<K, V>
     /**
      * {@inheritDoc}
      */
-    public void remove( K key ) throws Exception
+    public synchronized void remove( K key ) throws Exception
     {
         if ( key == null )
         {
@@ -358,7 +358,7 @@ public class AvlTable<K, V> implements Table<K, V>
     /**
      * {@inheritDoc}
      */
-    public void remove( K key, V value ) throws Exception
+    public synchronized void remove( K key, V value ) throws Exception
     {
         if ( avl.remove( key, value ) != null )
         {
@@ -174,6 +174,24 @@ public class AndCursor<V, ID> extends AbstractIndexCursor<V, Entry, ID>
     }
 
 
+    /**
+     * @return the Cursor over the candidates
+     */
+    IndexCursor<V, Entry, ID> getWrapped()
+    {
+        return wrapped;
+    }
+
+
+    /**
+     * @return the evaluators of the candidates, sorted by scan count
+     */
+    List<Evaluator<? extends ExprNode, Entry, ID>> getEvaluators()
+    {
+        return evaluators;
+    }
+
+
     /**
      * TODO - duplicate code from AndEvaluator just make utility for this and
      * for the same code in the OrEvaluator once done.
@@ -0,0 +1,201 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *  
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License. 
+ *  
+ */
+package org.apache.directory.server.xdbm.search.impl;
+
+
+import org.apache.directory.server.i18n.I18n;
+import org.apache.directory.server.xdbm.AbstractIndexCursor;
+import org.apache.directory.server.xdbm.ForwardIndexEntry;
+import org.apache.directory.server.xdbm.IdBitmap;
+import org.apache.directory.server.xdbm.IndexEntry;
+import org.apache.directory.shared.ldap.cursor.InvalidCursorPositionException;
+import org.apache.directory.shared.ldap.entry.Entry;
+
+
+/**
+ * A Cursor over the ids of a bitmap, built from the bitmaps of the
+ * assertions of a conjunction or a disjunction. The candidates are returned
+ * in increasing id order, and the Cursor can be positioned before or after
+ * an id. The ids must be Longs.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class BitmapCursor<V, ID> extends AbstractIndexCursor<V, Entry, ID>
+{
+    /** the ids of the candidates */
+    private final IdBitmap bitmap;
+
+    /** the value of the index entries returned, may be null */
+    private final V value;
+
+    /** the id before the one returned by next() */
+    private long lower = -1;
+
+    /** the id after the one returned by previous() */
+    private long upper = 0;
+
+    /** the index entry the Cursor is positioned on, if any */
+    private ForwardIndexEntry<V, Entry, ID> current;
+
+
+    /**
+     * Creates a Cursor over the ids of a bitmap.
+     *
+     * @param bitmap the ids of the candidates
+     * @param value the value of the index entries returned, may be null
+     */
+    public BitmapCursor( IdBitmap bitmap, V value )
+    {
+        this.bitmap = bitmap;
+        this.value = value;
+    }
+
+
+    public boolean available()
+    {
+        return current != null;
+    }
+
+
+    public void beforeValue( ID id, V value ) throws Exception
+    {
+        checkNotClosed( "beforeValue()" );
+        long before = ( Long ) id;
+        lower = before - 1;
+        upper = before;
+        current = null;
+    }
+
+
+    public void afterValue( ID id, V value ) throws Exception
+    {
+        checkNotClosed( "afterValue()" );
+        long after = ( Long ) id;
+        lower = after;
+        upper = after + 1;
+        current = null;
+    }
+
+
+    public void before( IndexEntry<V, Entry, ID> element ) throws Exception
+    {
+        beforeValue( element.getId(), element.getValue() );
+    }
+
+
+    public void after( IndexEntry<V, Entry, ID> element ) throws Exception
+    {
+        afterValue( element.getId(), element.getValue() );
+    }
+
+
+    public void beforeFirst() throws Exception
+    {
+        checkNotClosed( "beforeFirst()" );
+        lower = -1;
+        upper = 0;
+        current = null;
+    }
+
+
+    public void afterLast() throws Exception
+    {
+        checkNotClosed( "afterLast()" );
+        lower = Long.MAX_VALUE;
+        upper = Long.MAX_VALUE;
+        current = null;
+    }
+
+
+    public boolean first() throws Exception
+    {
+        beforeFirst();
+        return next();
+    }
+
+
+    public boolean last() throws Exception
+    {
+        afterLast();
+        return previous();
+    }
+
+
+    public boolean previous() throws Exception
+    {
+        checkNotClosed( "previous()" );
+        long id = bitmap.previous( upper );
+
+        if ( id < 0 )
+        {
+            beforeFirst();
+            return false;
+        }
+
+        return moveTo( id );
+    }
+
+
+    public boolean next() throws Exception
+    {
+        checkNotClosed( "next()" );
+        long id = bitmap.next( lower );
+
+        if ( id < 0 )
+        {
+            afterLast();
+            return false;
+        }
+
+        return moveTo( id );
+    }
+
+
+    public IndexEntry<V, Entry, ID> get() throws Exception
+    {
+        checkNotClosed( "get()" );
+
+        if ( current != null )
+        {
+            return current;
+        }
+
+        throw new InvalidCursorPositionException( I18n.err( I18n.ERR_708 ) );
+    }
+
+
+    public boolean isElementReused()
+    {
+        return false;
+    }
+
+
+    @SuppressWarnings("unchecked")
+    private boolean moveTo( long id )
+    {
+        lower = id;
+        upper = id;
+        current = new ForwardIndexEntry<V, Entry, ID>();
+        current.setId( ( ID ) Long.valueOf( id ) );
+        current.setValue( value );
+
+        return true;
+    }
+}
@@ -21,20 +21,30 @@ package org.apache.directory.server.xdbm.search.impl;
 
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 
 import org.apache.directory.server.i18n.I18n;
+import org.apache.directory.server.xdbm.BitmapIndex;
+import org.apache.directory.server.xdbm.IdBitmap;
+import org.apache.directory.server.xdbm.Index;
 import org.apache.directory.server.xdbm.IndexCursor;
+import org.apache.directory.server.xdbm.NgramIndex;
+import org.apache.directory.server.xdbm.Ngrams;
 import org.apache.directory.server.xdbm.Store;
 import org.apache.directory.server.xdbm.search.Evaluator;
 import org.apache.directory.shared.ldap.NotImplementedException;
 import org.apache.directory.shared.ldap.entry.Entry;
 import org.apache.directory.shared.ldap.filter.AndNode;
+import org.apache.directory.shared.ldap.filter.EqualityNode;
 import org.apache.directory.shared.ldap.filter.ExprNode;
 import org.apache.directory.shared.ldap.filter.NotNode;
 import org.apache.directory.shared.ldap.filter.OrNode;
+import org.apache.directory.shared.ldap.filter.PresenceNode;
 import org.apache.directory.shared.ldap.filter.ScopeNode;
 import org.apache.directory.shared.ldap.filter.SearchScope;
+import org.apache.directory.shared.ldap.filter.SubstringNode;
 
 
 /**
@@ -98,7 +108,7 @@ public class CursorBuilder<ID extends Comparable<ID>>
                 }
 
             case SUBSTRING:
-                return new SubstringCursor<ID>( db, ( SubstringEvaluator<ID> ) evaluatorBuilder.build( node ) );
+                return buildSubstringCursor( ( SubstringNode ) node );
 
                 /* ---------- LOGICAL OPERATORS ---------- */
 
@@ -123,6 +133,52 @@ public class CursorBuilder<ID extends Comparable<ID>>
     }
 
 
+    /**
+     * Creates a Cursor over the candidates of a substring assertion. When
+     * the attribute has an n-gram index, and the assertion has no initial
+     * part long enough to limit the values scanned, the candidates are the
+     * entries having all the n-grams of its parts : the assertion is only
+     * evaluated on them.
+     *
+     * @param node the substring assertion
+     * @return Cursor over candidates satisfying the substring assertion
+     * @throws Exception on db access failures
+     */
+    @SuppressWarnings("unchecked")
+    private IndexCursor<?, Entry, ID> buildSubstringCursor( SubstringNode node ) throws Exception
+    {
+        SubstringEvaluator<ID> evaluator = ( SubstringEvaluator<ID> ) evaluatorBuilder.build( node );
+
+        if ( db.hasIndexOn( node.getAttribute() ) && Ngrams.isSelective( node ) )
+        {
+            Index<?, Entry, ID> index = db.getIndex( node.getAttribute() );
+
+            if ( index instanceof NgramIndex<?, ?> )
+            {
+                // The candidates have been read when the assertion has been optimized
+                IdBitmap candidates = ( IdBitmap ) node.get( Ngrams.CANDIDATES );
+
+                if ( candidates == null )
+                {
+                    candidates = ( ( NgramIndex<Entry, ID> ) index ).forwardNgramBitmap( evaluator
+                        .getNormalizedParts() );
+                }
+
+                if ( candidates != null )
+                {
+                    List<Evaluator<? extends ExprNode, Entry, ID>> evaluators = new ArrayList<Evaluator<? extends ExprNode, Entry, ID>>(
+                        1 );
+                    evaluators.add( evaluator );
+
+                    return new AndCursor<Object, ID>( new BitmapCursor<Object, ID>( candidates, null ), evaluators );
+                }
+            }
+        }
+
+        return new SubstringCursor<ID>( db, evaluator );
+    }
+
+
     /**
      * Creates a OrCursor over a disjunction expression branch node.
      *
@@ -133,6 +189,30 @@ public class CursorBuilder<ID extends Comparable<ID>>
     private IndexCursor<?, Entry, ID> buildOrCursor( OrNode node ) throws Exception
     {
         List<ExprNode> children = node.getChildren();
+
+        // When all the children are answered by bitmap indices, their union
+        // is computed word by word instead of merging the Cursors
+        IdBitmap union = new IdBitmap();
+
+        for ( ExprNode child : children )
+        {
+            if ( !hasBitmap( child ) )
+            {
+                union = null;
+                break;
+            }
+        }
+
+        if ( union != null )
+        {
+            for ( ExprNode child : children )
+            {
+                union = union.or( getBitmap( child ) );
+            }
+
+            return new BitmapCursor<Object, ID>( union, null );
+        }
+
         List<IndexCursor<? extends Object, Entry, ID>> childCursors = new ArrayList<IndexCursor<?, Entry, ID>>(
             children.size() );
         List<Evaluator<? extends ExprNode, Entry, ID>> childEvaluators = new ArrayList<Evaluator<? extends ExprNode, Entry, ID>>(
@@ -170,6 +250,13 @@ public class CursorBuilder<ID extends Comparable<ID>>
          */
         final List<ExprNode> children = node.getChildren();
 
+        IndexCursor<?, Entry, ID> bitmapCursor = buildBitmapAndCursor( children );
+
+        if ( bitmapCursor != null )
+        {
+            return bitmapCursor;
+        }
+
         for ( int ii = 0; ii < children.size(); ii++ )
         {
             ExprNode child = children.get( ii );
@@ -205,4 +292,142 @@ public class CursorBuilder<ID extends Comparable<ID>>
         IndexCursor<?, Entry, ID> childCursor = build( minChild );
         return new AndCursor( childCursor, childEvaluators );
     }
+
+
+    /**
+     * Creates an AndCursor over the intersection of the bitmaps of the
+     * children answered by bitmap indices, if there are at least two of them
+     * and if no other child has less candidates than the intersection. The
+     * other children are then evaluated on each candidate.
+     *
+     * @param children the children of a conjunction expression
+     * @return the Cursor, or null if the bitmaps are not worth using
+     * @throws Exception on db access failures
+     */
+    private IndexCursor<?, Entry, ID> buildBitmapAndCursor( List<ExprNode> children ) throws Exception
+    {
+        List<ExprNode> bitmapChildren = new ArrayList<ExprNode>();
+        List<ExprNode> otherChildren = new ArrayList<ExprNode>();
+        long minOtherCount = Long.MAX_VALUE;
+
+        for ( ExprNode child : children )
+        {
+            if ( hasBitmap( child ) )
+            {
+                bitmapChildren.add( child );
+            }
+            else
+            {
+                otherChildren.add( child );
+                Object count = child.get( "count" );
+
+                if ( count != null )
+                {
+                    minOtherCount = Math.min( minOtherCount, ( Long ) count );
+                }
+            }
+        }
+
+        if ( bitmapChildren.size() < 2 )
+        {
+            return null;
+        }
+
+        // The smallest bitmaps first, to stop as soon as the intersection is empty
+        Collections.sort( bitmapChildren, new Comparator<ExprNode>()
+        {
+            public int compare( ExprNode node1, ExprNode node2 )
+            {
+                Object count1 = node1.get( "count" );
+                Object count2 = node2.get( "count" );
+                long scanCount1 = ( count1 == null ) ? Long.MAX_VALUE : ( Long ) count1;
+                long scanCount2 = ( count2 == null ) ? Long.MAX_VALUE : ( Long ) count2;
+
+                return ( scanCount1 < scanCount2 ) ? -1 : ( ( scanCount1 == scanCount2 ) ? 0 : 1 );
+            }
+        } );
+
+        IdBitmap intersection = null;
+
+        for ( ExprNode child : bitmapChildren )
+        {
+            IdBitmap bitmap = getBitmap( child );
+            intersection = ( intersection == null ) ? bitmap : intersection.and( bitmap );
+
+            if ( intersection.isEmpty() )
+            {
+                break;
+            }
+        }
+
+        if ( minOtherCount < intersection.size() )
+        {
+            return null;
+        }
+
+        List<Evaluator<? extends ExprNode, Entry, ID>> childEvaluators = new ArrayList<Evaluator<? extends ExprNode, Entry, ID>>(
+            otherChildren.size() );
+
+        for ( ExprNode child : otherChildren )
+        {
+            childEvaluators.add( evaluatorBuilder.build( child ) );
+        }
+
+        return new AndCursor<Object, ID>( new BitmapCursor<Object, ID>( intersection, null ), childEvaluators );
+    }
+
+
+    /**
+     * Tells if the candidates of an expression node can be read from a
+     * bitmap index : the node must be an equality assertion on an attribute
+     * whose index is a bitmap index, or a presence assertion on an indexed
+     * attribute when the presence index is a bitmap index.
+     *
+     * @param node an expression node
+     * @return true if {@link #getBitmap(ExprNode)} can be called
+     * @throws Exception on db access failures
+     */
+    private boolean hasBitmap( ExprNode node ) throws Exception
+    {
+        if ( node instanceof EqualityNode<?> )
+        {
+            String attribute = ( ( EqualityNode<?> ) node ).getAttribute();
+
+            return db.hasIndexOn( attribute ) && ( db.getIndex( attribute ) instanceof BitmapIndex<?, ?, ?> );
+        }
+
+        if ( node instanceof PresenceNode )
+        {
+            return db.hasUserIndexOn( ( ( PresenceNode ) node ).getAttribute() )
+                && ( db.getPresenceIndex() instanceof BitmapIndex<?, ?, ?> );
+        }
+
+        return false;
+    }
+
+
+    /**
+     * Reads the candidates of an expression node from a bitmap index.
+     *
+     * @param node an expression node for which {@link #hasBitmap(ExprNode)} returned true
+     * @return the ids of the candidates
+     * @throws Exception on db access failures
+     */
+    @SuppressWarnings("unchecked")
+    private IdBitmap getBitmap( ExprNode node ) throws Exception
+    {
+        if ( node instanceof EqualityNode<?> )
+        {
+            EqualityNode<Object> equalityNode = ( EqualityNode<Object> ) node;
+            Index<?, Entry, ID> index = db.getIndex( equalityNode.getAttribute() );
+
+            return ( ( BitmapIndex<Object, Entry, ID> ) index ).forwardBitmap( equalityNode.getValue().get() );
+        }
+
+        // The presence index is keyed by the OID of the attributes
+        PresenceEvaluator<ID> evaluator = ( PresenceEvaluator<ID> ) evaluatorBuilder.build( node );
+        Index<String, Entry, ID> index = db.getPresenceIndex();
+
+        return ( ( BitmapIndex<String, Entry, ID> ) index ).forwardBitmap( evaluator.getAttributeType().getOid() );
+    }
 }
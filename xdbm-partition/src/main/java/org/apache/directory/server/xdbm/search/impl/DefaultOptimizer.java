@@ -39,7 +39,10 @@ import org.apache.directory.shared.ldap.filter.ScopeNode;
 import org.apache.directory.shared.ldap.filter.SimpleNode;
 import org.apache.directory.shared.ldap.filter.SubstringNode;
 import org.apache.directory.server.i18n.I18n;
+import org.apache.directory.server.xdbm.IdBitmap;
 import org.apache.directory.server.xdbm.Index;
+import org.apache.directory.server.xdbm.NgramIndex;
+import org.apache.directory.server.xdbm.Ngrams;
 import org.apache.directory.server.xdbm.search.Optimizer;
 import org.apache.directory.server.xdbm.Store;
 
@@ -52,7 +55,7 @@ import org.apache.directory.server.xdbm.Store;
 public class DefaultOptimizer<E, ID extends Comparable<ID>> implements Optimizer
 {
     /** the database this optimizer operates on */
-    private final Store<E, ID> db;
+    protected final Store<E, ID> db;
     private ID contextEntryId;
 
 
@@ -153,8 +156,7 @@ public class DefaultOptimizer<E, ID extends Comparable<ID>> implements Optimizer
             }
             else if ( node instanceof SubstringNode )
             {
-                /** Cannot really say so we presume the total index count */
-                count = getFullScan( leaf );
+                count = getSubstringScan( ( SubstringNode ) leaf );
             }
             else if ( node instanceof ExtensibleNode )
             {
@@ -272,7 +274,7 @@ public class DefaultOptimizer<E, ID extends Comparable<ID>> implements Optimizer
      * @throws Exception if there is an error accessing an index
      */
     @SuppressWarnings("unchecked")
-    private <V> long getEqualityScan( SimpleNode<V> node ) throws Exception
+    protected <V> long getEqualityScan( SimpleNode<V> node ) throws Exception
     {
         if ( db.hasIndexOn( node.getAttribute() ) )
         {
@@ -295,7 +297,7 @@ public class DefaultOptimizer<E, ID extends Comparable<ID>> implements Optimizer
      * @throws Exception if there is an error accessing an index
      */
     @SuppressWarnings("unchecked")
-    private <V> long getGreaterLessScan( SimpleNode<V> node, boolean isGreaterThan ) throws Exception
+    protected <V> long getGreaterLessScan( SimpleNode<V> node, boolean isGreaterThan ) throws Exception
     {
         if ( db.hasIndexOn( node.getAttribute() ) )
         {
@@ -315,6 +317,42 @@ public class DefaultOptimizer<E, ID extends Comparable<ID>> implements Optimizer
     }
 
 
+    /**
+     * Gets a scan count of the entries that satisfy the substring assertion.
+     * When the candidates are read from an n-gram index, their number is
+     * returned. Otherwise we cannot really say so we presume the total
+     * index count.
+     *
+     * @param node the substring node to get a count for
+     * @return the scan count of all nodes satisfying the substring assertion
+     * @throws Exception if there is an error accessing an index
+     */
+    @SuppressWarnings("unchecked")
+    protected long getSubstringScan( SubstringNode node ) throws Exception
+    {
+        if ( db.hasIndexOn( node.getAttribute() ) && Ngrams.isSelective( node ) )
+        {
+            Index<?, E, ID> idx = db.getIndex( node.getAttribute() );
+
+            if ( idx instanceof NgramIndex<?, ?> )
+            {
+                // The candidates are kept on the node, to be read by the cursor of the assertion
+                List<String> parts = Ngrams.getNormalizedParts( node, Ngrams.getNormalizer( idx.getAttribute() ) );
+                IdBitmap candidates = ( ( NgramIndex<E, ID> ) idx ).forwardNgramBitmap( parts );
+
+                if ( candidates != null )
+                {
+                    node.set( Ngrams.CANDIDATES, candidates );
+
+                    return candidates.size();
+                }
+            }
+        }
+
+        return getFullScan( node );
+    }
+
+
     /**
      * Gets the total number of entries within the database index if one is 
      * available otherwise the count of all the entries within the database is
@@ -325,7 +363,7 @@ public class DefaultOptimizer<E, ID extends Comparable<ID>> implements Optimizer
      * @throws Exception if there is an error access database indices
      */
     @SuppressWarnings("unchecked")
-    private long getFullScan( LeafNode node ) throws Exception
+    protected long getFullScan( LeafNode node ) throws Exception
     {
         if ( db.hasIndexOn( node.getAttribute() ) )
         {
@@ -345,7 +383,7 @@ public class DefaultOptimizer<E, ID extends Comparable<ID>> implements Optimizer
      * @return the number of entries matched for the presence of an attribute
      * @throws Exception if errors result
      */
-    private long getPresenceScan( PresenceNode node ) throws Exception
+    protected long getPresenceScan( PresenceNode node ) throws Exception
     {
         if ( db.hasUserIndexOn( node.getAttribute() ) )
         {
@@ -388,7 +426,7 @@ public class DefaultOptimizer<E, ID extends Comparable<ID>> implements Optimizer
                 }
                 else
                 {
-                    return db.getSubLevelIndex().count( id );
+                    return db.getHierarchy().getSubtreeSize( id );
                 }
 
             default:
@@ -20,6 +20,8 @@
 package org.apache.directory.server.xdbm.search.impl;
 
 
+import java.util.concurrent.Executor;
+
 import javax.naming.directory.SearchControls;
 
 import org.apache.directory.server.xdbm.EmptyIndexCursor;
@@ -49,6 +51,9 @@ import org.apache.directory.shared.ldap.name.DN;
  */
 public class DefaultSearchEngine<ID extends Comparable<ID>> implements SearchEngine<Entry, ID>
 {
+    /** the default minimum number of candidates of a search evaluated concurrently */
+    public static final long DEFAULT_PARALLEL_THRESHOLD = 10000L;
+
     /** the Optimizer used by this DefaultSearchEngine */
     private final Optimizer optimizer;
     /** the Database this DefaultSearchEngine operates on */
@@ -57,6 +62,14 @@ public class DefaultSearchEngine<ID extends Comparable<ID>> implements SearchEng
     private final CursorBuilder<ID> cursorBuilder;
     /** creates evaluators which check to see if candidates satisfy a filter expression */
     private final EvaluatorBuilder<ID> evaluatorBuilder;
+    /** the executor evaluating the candidates of the large searches, or null */
+    private Executor evaluationExecutor;
+    /** the number of threads of the evaluation executor */
+    private int evaluationThreads;
+    /** tells if the candidates evaluated concurrently are returned in order */
+    private boolean orderedEvaluation;
+    /** the minimum estimated number of candidates of a search evaluated concurrently */
+    private long parallelThreshold = DEFAULT_PARALLEL_THRESHOLD;
 
 
     // ------------------------------------------------------------------------
@@ -92,6 +105,38 @@ public class DefaultSearchEngine<ID extends Comparable<ID>> implements SearchEng
     }
 
 
+    /**
+     * Evaluates the candidates of the searches having many of them with an
+     * executor, instead of evaluating them one after the other on the
+     * searching thread.
+     *
+     * @param executor the executor, or null to evaluate all the candidates
+     * on the searching thread
+     * @param threads the number of threads of the executor
+     * @param ordered true if the entries must be returned in the order of
+     * the candidates, false if they can be returned as soon as they are
+     * evaluated
+     */
+    public void setParallelEvaluation( Executor executor, int threads, boolean ordered )
+    {
+        this.evaluationExecutor = executor;
+        this.evaluationThreads = threads;
+        this.orderedEvaluation = ordered;
+    }
+
+
+    /**
+     * Sets the minimum number of candidates, as estimated by the optimizer,
+     * of the searches whose candidates are evaluated concurrently.
+     *
+     * @param parallelThreshold the minimum number of candidates
+     */
+    public void setParallelThreshold( long parallelThreshold )
+    {
+        this.parallelThreshold = parallelThreshold;
+    }
+
+
     /**
      * @see SearchEngine#cursor(DN, AliasDerefMode, ExprNode, SearchControls)
      */
@@ -166,11 +211,32 @@ public class DefaultSearchEngine<ID extends Comparable<ID>> implements SearchEng
         ExprNode node = new ScopeNode( aliasDerefMode, effectiveBase, SearchScope.getSearchScope( searchCtls
             .getSearchScope() ) );
         root.getChildren().add( node );
-        root.getChildren().add( filter );
+
+        // When the candidates may be evaluated concurrently, a conjunction is
+        // merged with the scope, so that all its assertions are evaluated by
+        // the executor
+        if ( ( evaluationExecutor != null ) && ( filter instanceof AndNode ) )
+        {
+            root.getChildren().addAll( ( ( AndNode ) filter ).getChildren() );
+        }
+        else
+        {
+            root.getChildren().add( filter );
+        }
 
         // Annotate the node with the optimizer and return search enumeration.
         optimizer.annotate( root );
-        return ( IndexCursor<ID, Entry, ID> ) cursorBuilder.build( root );
+        IndexCursor<?, Entry, ID> cursor = cursorBuilder.build( root );
+
+        if ( ( evaluationExecutor != null ) && ( cursor instanceof AndCursor<?, ?> )
+            && ( ( Long ) root.get( "count" ) >= parallelThreshold ) )
+        {
+            AndCursor<Object, ID> andCursor = ( AndCursor<Object, ID> ) cursor;
+            cursor = new ParallelAndCursor<Object, ID>( db, andCursor.getWrapped(), andCursor.getEvaluators(),
+                evaluationExecutor, evaluationThreads, orderedEvaluation );
+        }
+
+        return ( IndexCursor<ID, Entry, ID> ) cursor;
     }
 
 
@@ -0,0 +1,507 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.xdbm.search.impl;
+
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.directory.server.i18n.I18n;
+import org.apache.directory.server.xdbm.AbstractIndexCursor;
+import org.apache.directory.server.xdbm.ForwardIndexEntry;
+import org.apache.directory.server.xdbm.IndexCursor;
+import org.apache.directory.server.xdbm.IndexEntry;
+import org.apache.directory.server.xdbm.Store;
+import org.apache.directory.server.xdbm.search.Evaluator;
+import org.apache.directory.shared.ldap.cursor.InvalidCursorPositionException;
+import org.apache.directory.shared.ldap.entry.Entry;
+import org.apache.directory.shared.ldap.filter.ExprNode;
+
+
+/**
+ * A Cursor returning candidates satisfying a logical conjunction expression,
+ * like the {@link AndCursor}, whose candidates are evaluated concurrently.
+ * The candidates are read by the calling thread in chunks, and each chunk is
+ * evaluated by a task run by an {@link Executor}. The tasks also fetch the
+ * entries of the accepted candidates from the master table, when the
+ * evaluators have not done it.
+ * <p>
+ * The accepted candidates are returned in the order of the candidates if
+ * the Cursor is ordered, and otherwise chunk by chunk as soon as a chunk
+ * has been evaluated.
+ * <p>
+ * This Cursor only moves forward, except for the single step back done by
+ * the search handler once it has checked whether another entry is available.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class ParallelAndCursor<V, ID> extends AbstractIndexCursor<V, Entry, ID>
+{
+    private static final String UNSUPPORTED_MSG = I18n.err( I18n.ERR_707 );
+
+    /** The number of candidates evaluated by a task */
+    private static final int CHUNK_SIZE = 256;
+
+    /** The time, in milliseconds, waited for a chunk before checking the closure of the Cursor */
+    private static final long POLL_TIMEOUT = 100;
+
+    private final Store<Entry, ID> db;
+    private final IndexCursor<V, Entry, ID> wrapped;
+    private final List<Evaluator<? extends ExprNode, Entry, ID>> evaluators;
+    private final Executor executor;
+    private final boolean ordered;
+
+    /** The maximum number of chunks read ahead */
+    private final int maxChunks;
+
+    /** The chunks being evaluated, in the order of the candidates */
+    private final LinkedList<Future<List<IndexEntry<V, Entry, ID>>>> chunks = new LinkedList<Future<List<IndexEntry<V, Entry, ID>>>>();
+
+    /** The chunks evaluated, in the order they have been evaluated, when the Cursor is not ordered */
+    private CompletionService<List<IndexEntry<V, Entry, ID>>> completion;
+
+    /** The accepted candidates of the last chunk evaluated, and the position of the next one */
+    private List<IndexEntry<V, Entry, ID>> accepted;
+    private int acceptedPos;
+
+    /** Tells if all the candidates have been read */
+    private boolean exhausted;
+
+    /** The current candidate, the one returned before and the one to return again */
+    private IndexEntry<V, Entry, ID> current;
+    private IndexEntry<V, Entry, ID> previous;
+    private IndexEntry<V, Entry, ID> pushedBack;
+
+    /** Tells if the Cursor is positioned after the last candidate */
+    private boolean afterLast;
+
+
+    /**
+     * Creates a ParallelAndCursor.
+     *
+     * @param db the database the candidates belong to
+     * @param wrapped the Cursor over the candidates
+     * @param evaluators the evaluators of the other expressions of the conjunction
+     * @param executor the executor running the evaluation of the chunks
+     * @param parallelism the number of threads of the executor
+     * @param ordered true if the candidates must be returned in order
+     */
+    public ParallelAndCursor( Store<Entry, ID> db, IndexCursor<V, Entry, ID> wrapped,
+        List<Evaluator<? extends ExprNode, Entry, ID>> evaluators, Executor executor, int parallelism,
+        boolean ordered )
+    {
+        this.db = db;
+        this.wrapped = wrapped;
+        this.evaluators = evaluators;
+        this.executor = executor;
+        this.ordered = ordered;
+
+        // Each thread has a chunk to evaluate while the last ones are returned
+        maxChunks = Math.max( parallelism, 1 ) * 2;
+
+        if ( !ordered )
+        {
+            completion = new ExecutorCompletionService<List<IndexEntry<V, Entry, ID>>>( executor );
+        }
+    }
+
+
+    public boolean available()
+    {
+        return current != null;
+    }
+
+
+    public void beforeValue( ID id, V value )
+    {
+        throw new UnsupportedOperationException( UNSUPPORTED_MSG );
+    }
+
+
+    public void afterValue( ID id, V value )
+    {
+        throw new UnsupportedOperationException( UNSUPPORTED_MSG );
+    }
+
+
+    public void before( IndexEntry<V, Entry, ID> element ) throws Exception
+    {
+        throw new UnsupportedOperationException( UNSUPPORTED_MSG );
+    }
+
+
+    public void after( IndexEntry<V, Entry, ID> element ) throws Exception
+    {
+        throw new UnsupportedOperationException( UNSUPPORTED_MSG );
+    }
+
+
+    public void beforeFirst() throws Exception
+    {
+        checkNotClosed( "beforeFirst()" );
+        cancelChunks();
+        wrapped.beforeFirst();
+        exhausted = false;
+        afterLast = false;
+        current = null;
+        previous = null;
+        pushedBack = null;
+    }
+
+
+    public void afterLast() throws Exception
+    {
+        throw new UnsupportedOperationException( UNSUPPORTED_MSG );
+    }
+
+
+    public boolean first() throws Exception
+    {
+        beforeFirst();
+        return next();
+    }
+
+
+    public boolean last() throws Exception
+    {
+        throw new UnsupportedOperationException( UNSUPPORTED_MSG );
+    }
+
+
+    /**
+     * Moves back to the previous candidate. The candidates are not kept once
+     * returned, so the Cursor can only move back one candidate after each
+     * move forward.
+     */
+    public boolean previous() throws Exception
+    {
+        checkNotClosed( "previous()" );
+
+        if ( pushedBack != null )
+        {
+            throw new UnsupportedOperationException( UNSUPPORTED_MSG );
+        }
+
+        if ( afterLast )
+        {
+            afterLast = false;
+            current = previous;
+        }
+        else if ( current != null )
+        {
+            pushedBack = current;
+            current = previous;
+        }
+
+        previous = null;
+
+        return current != null;
+    }
+
+
+    public boolean next() throws Exception
+    {
+        checkNotClosed( "next()" );
+
+        if ( pushedBack != null )
+        {
+            previous = current;
+            current = pushedBack;
+            pushedBack = null;
+
+            return true;
+        }
+
+        IndexEntry<V, Entry, ID> candidate = nextAccepted();
+
+        if ( candidate == null )
+        {
+            if ( current != null )
+            {
+                previous = current;
+            }
+
+            current = null;
+            afterLast = true;
+
+            return false;
+        }
+
+        previous = current;
+        current = candidate;
+
+        return true;
+    }
+
+
+    public IndexEntry<V, Entry, ID> get() throws Exception
+    {
+        checkNotClosed( "get()" );
+
+        if ( current != null )
+        {
+            return current;
+        }
+
+        throw new InvalidCursorPositionException( I18n.err( I18n.ERR_708 ) );
+    }
+
+
+    public boolean isElementReused()
+    {
+        return false;
+    }
+
+
+    public void close() throws Exception
+    {
+        super.close();
+        cancelChunks();
+        wrapped.close();
+    }
+
+
+    public void close( Exception cause ) throws Exception
+    {
+        super.close( cause );
+        cancelChunks();
+        wrapped.close( cause );
+    }
+
+
+    /**
+     * @return the next accepted candidate, or null once all the candidates
+     * have been evaluated
+     */
+    private IndexEntry<V, Entry, ID> nextAccepted() throws Exception
+    {
+        while ( ( accepted == null ) || ( acceptedPos >= accepted.size() ) )
+        {
+            submitChunks();
+
+            if ( chunks.isEmpty() )
+            {
+                return null;
+            }
+
+            accepted = ordered ? takeFirstChunk() : takeEvaluatedChunk();
+            acceptedPos = 0;
+        }
+
+        return accepted.get( acceptedPos++ );
+    }
+
+
+    /**
+     * Reads the candidates, and submits their evaluation, until enough chunks
+     * are being evaluated.
+     */
+    private void submitChunks() throws Exception
+    {
+        while ( !exhausted && ( chunks.size() < maxChunks ) )
+        {
+            List<IndexEntry<V, Entry, ID>> candidates = new ArrayList<IndexEntry<V, Entry, ID>>( CHUNK_SIZE );
+
+            while ( ( candidates.size() < CHUNK_SIZE ) && wrapped.next() )
+            {
+                // The wrapped Cursor may reuse its elements
+                ForwardIndexEntry<V, Entry, ID> candidate = new ForwardIndexEntry<V, Entry, ID>();
+                candidate.copy( wrapped.get() );
+                candidates.add( candidate );
+            }
+
+            if ( candidates.size() < CHUNK_SIZE )
+            {
+                exhausted = true;
+            }
+
+            if ( candidates.isEmpty() )
+            {
+                return;
+            }
+
+            Chunk chunk = new Chunk( candidates );
+
+            if ( ordered )
+            {
+                FutureTask<List<IndexEntry<V, Entry, ID>>> task = new FutureTask<List<IndexEntry<V, Entry, ID>>>(
+                    chunk );
+                executor.execute( task );
+                chunks.add( task );
+            }
+            else
+            {
+                chunks.add( completion.submit( chunk ) );
+            }
+        }
+    }
+
+
+    /**
+     * Waits for the evaluation of the first chunk submitted.
+     */
+    private List<IndexEntry<V, Entry, ID>> takeFirstChunk() throws Exception
+    {
+        Future<List<IndexEntry<V, Entry, ID>>> chunk = chunks.getFirst();
+
+        while ( true )
+        {
+            try
+            {
+                List<IndexEntry<V, Entry, ID>> result = chunk.get( POLL_TIMEOUT, TimeUnit.MILLISECONDS );
+                chunks.removeFirst();
+
+                return result;
+            }
+            catch ( TimeoutException te )
+            {
+                checkNotClosed( "next()" );
+            }
+            catch ( ExecutionException ee )
+            {
+                throw failure( ee );
+            }
+        }
+    }
+
+
+    /**
+     * Waits for the evaluation of any of the chunks submitted.
+     */
+    private List<IndexEntry<V, Entry, ID>> takeEvaluatedChunk() throws Exception
+    {
+        while ( true )
+        {
+            Future<List<IndexEntry<V, Entry, ID>>> chunk = completion.poll( POLL_TIMEOUT, TimeUnit.MILLISECONDS );
+
+            if ( chunk == null )
+            {
+                checkNotClosed( "next()" );
+                continue;
+            }
+
+            chunks.remove( chunk );
+
+            try
+            {
+                return chunk.get();
+            }
+            catch ( ExecutionException ee )
+            {
+                throw failure( ee );
+            }
+        }
+    }
+
+
+    /**
+     * Cancels the evaluation of the chunks, and returns the failure of one
+     * of them to rethrow.
+     */
+    private Exception failure( ExecutionException ee ) throws Exception
+    {
+        cancelChunks();
+
+        if ( ee.getCause() instanceof Exception )
+        {
+            return ( Exception ) ee.getCause();
+        }
+
+        throw ( Error ) ee.getCause();
+    }
+
+
+    private void cancelChunks()
+    {
+        for ( Future<List<IndexEntry<V, Entry, ID>>> chunk : chunks )
+        {
+            chunk.cancel( false );
+        }
+
+        chunks.clear();
+        accepted = null;
+
+        // The cancelled chunks are still queued by the completion service
+        if ( !ordered )
+        {
+            completion = new ExecutorCompletionService<List<IndexEntry<V, Entry, ID>>>( executor );
+        }
+    }
+
+
+    /**
+     * The evaluation of a chunk of candidates.
+     */
+    private class Chunk implements Callable<List<IndexEntry<V, Entry, ID>>>
+    {
+        private final List<IndexEntry<V, Entry, ID>> candidates;
+
+
+        private Chunk( List<IndexEntry<V, Entry, ID>> candidates )
+        {
+            this.candidates = candidates;
+        }
+
+
+        public List<IndexEntry<V, Entry, ID>> call() throws Exception
+        {
+            List<IndexEntry<V, Entry, ID>> matching = new ArrayList<IndexEntry<V, Entry, ID>>();
+
+            for ( IndexEntry<V, Entry, ID> candidate : candidates )
+            {
+                if ( matches( candidate ) )
+                {
+                    if ( candidate.getObject() == null )
+                    {
+                        candidate.setObject( db.lookup( candidate.getId() ) );
+                    }
+
+                    matching.add( candidate );
+                }
+            }
+
+            return matching;
+        }
+
+
+        private boolean matches( IndexEntry<?, Entry, ID> indexEntry ) throws Exception
+        {
+            for ( Evaluator<?, Entry, ID> evaluator : evaluators )
+            {
+                if ( !evaluator.evaluate( indexEntry ) )
+                {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.xdbm.search.impl;
+
+
+import org.apache.directory.server.xdbm.Index;
+import org.apache.directory.server.xdbm.NgramIndex;
+import org.apache.directory.server.xdbm.Ngrams;
+import org.apache.directory.server.xdbm.Store;
+import org.apache.directory.shared.ldap.filter.PresenceNode;
+import org.apache.directory.shared.ldap.filter.SimpleNode;
+import org.apache.directory.shared.ldap.filter.SubstringNode;
+
+
+/**
+ * Optimizer that annotates the filter using the statistics maintained by
+ * the indices, instead of reading the indices on each search. The counts
+ * are estimated from the number of tuples of the most frequent values, and
+ * from the histogram of the values for the ranges and the substrings
+ * having an initial part.
+ * <p>
+ * The indices without statistics are read as done by the
+ * {@link DefaultOptimizer}.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class StatisticsOptimizer<E, ID extends Comparable<ID>> extends DefaultOptimizer<E, ID>
+{
+    /** The character greater than all the others, ending the range of a prefix */
+    private static final char MAX_CHAR = '\uffff';
+
+
+    /**
+     * Creates an optimizer on a database.
+     *
+     * @param db the database this optimizer works for.
+     */
+    public StatisticsOptimizer( Store<E, ID> db ) throws Exception
+    {
+        super( db );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    protected <V> long getEqualityScan( SimpleNode<V> node ) throws Exception
+    {
+        Index<V, E, ID> idx = getIndexWithStatistics( node.getAttribute() );
+
+        if ( idx == null )
+        {
+            return super.getEqualityScan( node );
+        }
+
+        return idx.getStatistics().estimateCount( idx.getNormalized( node.getValue().get() ) );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    protected <V> long getGreaterLessScan( SimpleNode<V> node, boolean isGreaterThan ) throws Exception
+    {
+        Index<V, E, ID> idx = getIndexWithStatistics( node.getAttribute() );
+
+        if ( idx == null )
+        {
+            return super.getGreaterLessScan( node, isGreaterThan );
+        }
+
+        V normalized = idx.getNormalized( node.getValue().get() );
+
+        if ( isGreaterThan )
+        {
+            return idx.getStatistics().estimateRangeCount( normalized, null );
+        }
+        else
+        {
+            return idx.getStatistics().estimateRangeCount( null, normalized );
+        }
+    }
+
+
+    /**
+     * Estimates the values starting with the initial part of the substring
+     * as the values between the initial part and the initial part followed
+     * by the greatest character. The other substrings are evaluated on the
+     * whole index, or on the n-gram index when the candidates are read from
+     * it.
+     */
+    protected long getSubstringScan( SubstringNode node ) throws Exception
+    {
+        Index<String, E, ID> idx = getIndexWithStatistics( node.getAttribute() );
+
+        if ( ( idx == null ) || ( node.getInitial() == null )
+            || !idx.getAttribute().getSyntax().isHumanReadable()
+            || ( ( idx instanceof NgramIndex<?, ?> ) && Ngrams.isSelective( node ) ) )
+        {
+            return super.getSubstringScan( node );
+        }
+
+        // The initial part is used as is by the SubstringCursor
+        String initial = node.getInitial();
+
+        return idx.getStatistics().estimateRangeCount( initial, initial + MAX_CHAR );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    protected long getPresenceScan( PresenceNode node ) throws Exception
+    {
+        Index<String, E, ID> idx = db.getPresenceIndex();
+
+        if ( !db.hasUserIndexOn( node.getAttribute() ) || ( idx.getStatistics() == null ) )
+        {
+            return super.getPresenceScan( node );
+        }
+
+        return idx.getStatistics().estimateCount( idx.getNormalized( node.getAttribute() ) );
+    }
+
+
+    /**
+     * @return the index on the attribute, if it has statistics, or null
+     */
+    @SuppressWarnings("unchecked")
+    private <V> Index<V, E, ID> getIndexWithStatistics( String attribute ) throws Exception
+    {
+        if ( !db.hasIndexOn( attribute ) )
+        {
+            return null;
+        }
+
+        Index<V, E, ID> idx = ( Index<V, E, ID> ) db.getIndex( attribute );
+
+        return ( idx.getStatistics() == null ) ? null : idx;
+    }
+}
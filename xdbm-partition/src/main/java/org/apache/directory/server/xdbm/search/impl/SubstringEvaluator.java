@@ -21,11 +21,13 @@ package org.apache.directory.server.xdbm.search.impl;
 
 
 import java.util.Iterator;
+import java.util.List;
 import java.util.regex.Pattern;
 
 import org.apache.directory.server.i18n.I18n;
 import org.apache.directory.server.xdbm.Index;
 import org.apache.directory.server.xdbm.IndexEntry;
+import org.apache.directory.server.xdbm.Ngrams;
 import org.apache.directory.server.xdbm.Store;
 import org.apache.directory.server.xdbm.search.Evaluator;
 import org.apache.directory.shared.ldap.cursor.Cursor;
@@ -34,10 +36,8 @@ import org.apache.directory.shared.ldap.entry.EntryAttribute;
 import org.apache.directory.shared.ldap.entry.Value;
 import org.apache.directory.shared.ldap.filter.SubstringNode;
 import org.apache.directory.shared.ldap.schema.AttributeType;
-import org.apache.directory.shared.ldap.schema.MatchingRule;
 import org.apache.directory.shared.ldap.schema.Normalizer;
 import org.apache.directory.shared.ldap.schema.SchemaManager;
-import org.apache.directory.shared.ldap.schema.normalizers.NoOpNormalizer;
 
 
 /**
@@ -85,21 +85,7 @@ public class SubstringEvaluator<ID extends Comparable<ID>> implements Evaluator<
         String oid = schemaManager.getAttributeTypeRegistry().getOidByName( node.getAttribute() );
         type = schemaManager.lookupAttributeTypeRegistry( oid );
 
-        MatchingRule rule = type.getSubstring();
-
-        if ( rule == null )
-        {
-            rule = type.getEquality();
-        }
-
-        if ( rule != null )
-        {
-            normalizer = rule.getNormalizer();
-        }
-        else
-        {
-            normalizer = new NoOpNormalizer( type.getSyntaxOid() );
-        }
+        normalizer = Ngrams.getNormalizer( type );
 
         // compile the regular expression to search for a matching attribute
         // if the attributeType is humanReadable
@@ -179,6 +165,19 @@ public class SubstringEvaluator<ID extends Comparable<ID>> implements Evaluator<
     }
 
 
+    /**
+     * Gets the initial, any and final parts of the assertion, normalized
+     * like the parts of the regular expression.
+     *
+     * @return the normalized parts
+     * @throws Exception if a part can't be normalized
+     */
+    public List<String> getNormalizedParts() throws Exception
+    {
+        return Ngrams.getNormalizedParts( node, normalizer );
+    }
+
+
     private boolean evaluateWithIndex( IndexEntry<?, Entry, ID> indexEntry ) throws Exception
     {
         /*
@@ -79,7 +79,7 @@ public class SubtreeScopeCursor<ID extends Comparable<ID>> extends AbstractIndex
         }
         else
         {
-            scopeCursor = db.getSubLevelIndex().forwardCursor( evaluator.getBaseId() );
+            scopeCursor = db.getHierarchy().subtreeCursor( evaluator.getBaseId() );
         }
 
         if ( evaluator.isDereferencing() )
@@ -142,12 +142,12 @@ public class SubtreeScopeEvaluator<E, ID extends Comparable<ID>> implements Eval
     {
         /*
          * This condition catches situations where the candidate is equal to 
-         * the base entry and when the base entry is the context entry.  Note
-         * we do not store a mapping in the subtree index of the context entry
-         * to all it's subordinates since that would be the entire set of 
-         * entries in the db.
+         * the base entry and when the base entry is the context entry, whose
+         * subtree holds the entire set of entries in the db.  Otherwise the
+         * candidate is a descendant if its label is in the interval of the
+         * base entry.
          */        
-        boolean isDescendant = baseIsContextEntry || baseId.equals( id ) || db.getSubLevelIndex().forward( baseId, id );
+        boolean isDescendant = baseIsContextEntry || baseId.equals( id ) || db.getHierarchy().isInSubtree( baseId, id );
 
         /*
          * The candidate id could be any entry in the db.  If search
@@ -0,0 +1,158 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.partition.impl.avl;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+
+import javax.naming.directory.SearchControls;
+
+import org.apache.directory.server.xdbm.IndexCursor;
+import org.apache.directory.server.xdbm.StoreUtils;
+import org.apache.directory.shared.ldap.constants.SchemaConstants;
+import org.apache.directory.shared.ldap.entry.Entry;
+import org.apache.directory.shared.ldap.filter.PresenceNode;
+import org.apache.directory.shared.ldap.message.AliasDerefMode;
+import org.apache.directory.shared.ldap.name.DN;
+import org.apache.directory.shared.ldap.schema.SchemaManager;
+import org.apache.directory.shared.ldap.schema.ldif.extractor.SchemaLdifExtractor;
+import org.apache.directory.shared.ldap.schema.ldif.extractor.impl.DefaultSchemaLdifExtractor;
+import org.apache.directory.shared.ldap.schema.loader.ldif.LdifSchemaLoader;
+import org.apache.directory.shared.ldap.schema.manager.impl.DefaultSchemaManager;
+import org.apache.directory.shared.ldap.util.LdapExceptionUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+
+/**
+ * Tests the {@link AvlPartition}.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class AvlPartitionTest
+{
+    private static SchemaManager schemaManager;
+
+    private AvlPartition partition;
+
+
+    @BeforeClass
+    public static void setup() throws Exception
+    {
+        String workingDirectory = System.getProperty( "workingDirectory" );
+
+        if ( workingDirectory == null )
+        {
+            String path = AvlPartitionTest.class.getResource( "" ).getPath();
+            int targetPos = path.indexOf( "target" );
+            workingDirectory = path.substring( 0, targetPos + 6 );
+        }
+
+        File schemaRepository = new File( workingDirectory, "schema" );
+        SchemaLdifExtractor extractor = new DefaultSchemaLdifExtractor( new File( workingDirectory ) );
+        extractor.extractOrCopy( true );
+        LdifSchemaLoader loader = new LdifSchemaLoader( schemaRepository );
+        schemaManager = new DefaultSchemaManager( loader );
+
+        boolean loaded = schemaManager.loadAllEnabled();
+
+        if ( !loaded )
+        {
+            fail( "Schema load failed : " + LdapExceptionUtils.printErrors( schemaManager.getErrors() ) );
+        }
+    }
+
+
+    @Before
+    public void createPartition() throws Exception
+    {
+        partition = new AvlPartition();
+        partition.setId( "example" );
+        partition.getStore().setId( "example" );
+        StoreUtils.loadExampleData( partition.getStore(), schemaManager );
+
+        partition.setSchemaManager( schemaManager );
+        partition.initialize();
+    }
+
+
+    @After
+    public void destroyPartition() throws Exception
+    {
+        if ( partition != null )
+        {
+            partition.destroy();
+        }
+
+        partition = null;
+    }
+
+
+    /**
+     * @return the number of entries found by a one level search
+     */
+    private int searchOneLevel( DN dn ) throws Exception
+    {
+        SearchControls controls = new SearchControls();
+        controls.setSearchScope( SearchControls.ONELEVEL_SCOPE );
+        IndexCursor<Long, Entry, Long> cursor = partition.getSearchEngine().cursor( dn,
+            AliasDerefMode.NEVER_DEREF_ALIASES, new PresenceNode( SchemaConstants.OBJECT_CLASS_AT_OID ), controls );
+        int count = 0;
+
+        while ( cursor.next() )
+        {
+            count++;
+        }
+
+        cursor.close();
+
+        return count;
+    }
+
+
+    @Test
+    public void testChildCount() throws Exception
+    {
+        for ( long id = 1; id <= partition.count(); id++ )
+        {
+            DN dn = partition.getEntryDn( id );
+            assertEquals( dn.getName(), searchOneLevel( dn ), partition.getChildCount( dn ) );
+        }
+
+        // The count follows the changes
+        DN sales = new DN( "ou=Sales,o=Good Times Co." );
+        sales.normalize( schemaManager.getNormalizerMapping() );
+        DN jimBean = new DN( "cn=JIM BEAN,ou=Sales,o=Good Times Co." );
+        jimBean.normalize( schemaManager.getNormalizerMapping() );
+        assertEquals( 2, partition.getChildCount( sales ) );
+
+        partition.delete( partition.getEntryId( jimBean ) );
+        assertEquals( 1, partition.getChildCount( sales ) );
+        assertEquals( searchOneLevel( sales ), partition.getChildCount( sales ) );
+
+        // An entry which doesn't exist has no count
+        assertEquals( -1, partition.getChildCount( jimBean ) );
+    }
+}
@@ -44,6 +44,7 @@ import org.apache.directory.shared.ldap.entry.EntryAttribute;
 import org.apache.directory.shared.ldap.entry.Modification;
 import org.apache.directory.shared.ldap.entry.ModificationOperation;
 import org.apache.directory.shared.ldap.name.DN;
+import org.apache.directory.shared.ldap.name.RDN;
 import org.apache.directory.shared.ldap.schema.AttributeType;
 import org.apache.directory.shared.ldap.schema.SchemaManager;
 import org.apache.directory.shared.ldap.schema.ldif.extractor.SchemaLdifExtractor;
@@ -140,7 +141,7 @@ public class AbstractStoreTest
     {
         assertEquals( 11, store.getRdnIndex().count() );
         assertEquals( 11, store.getOneLevelIndex().count() );
-        assertEquals( 19, store.getSubLevelIndex().count() );
+        assertEquals( 11, store.getHierarchy().getSubtreeSize( 1L ) );
         assertEquals( 3, store.getAliasIndex().count() );
         assertEquals( 3, store.getOneAliasIndex().count() );
         assertEquals( 3, store.getSubAliasIndex().count() );
@@ -369,4 +370,52 @@ public class AbstractStoreTest
         assertEquals( csn, lookedup.get( csnAt ).getString() );
         assertEquals( csn, store.getEntryCsnIndex().reverseLookup( entryId ) );
     }
+
+
+    /**
+     * The entries and their DNs are served by the cache until they change.
+     */
+    @Test
+    public void testEntryCache() throws Exception
+    {
+        DN dn = new DN( "cn=JOhnny WAlkeR,ou=Sales,o=Good Times Co." );
+        dn.normalize( schemaManager.getNormalizerMapping() );
+        Long entryId = store.getEntryId( dn );
+        EntryCache<Long> cache = store.getEntryCache();
+        cache.resetStatistics();
+
+        Entry lookedup = store.lookup( entryId );
+        assertEquals( 0, cache.getHitCount() );
+        assertEquals( 1, cache.getMissCount() );
+
+        // A copy of the cached entry is returned
+        Entry cached = store.lookup( entryId );
+        assertEquals( 1, cache.getHitCount() );
+        assertNotSame( lookedup, cached );
+        assertEquals( dn, cached.getDn() );
+        cached.removeAttributes( "cn" );
+        assertTrue( store.lookup( entryId ).containsAttribute( "cn" ) );
+
+        // The modified entry is read again
+        Entry modEntry = new DefaultEntry( schemaManager );
+        modEntry.add( "ou", "Marketing" );
+        store.modify( dn, ModificationOperation.ADD_ATTRIBUTE, modEntry );
+        assertTrue( store.lookup( entryId ).get( "ou" ).contains( "Marketing" ) );
+        assertEquals( 2, cache.getMissCount() );
+
+        // Renaming the parent changes the DN of its children
+        DN salesDn = new DN( "ou=Sales,o=Good Times Co." );
+        salesDn.normalize( schemaManager.getNormalizerMapping() );
+        store.rename( salesDn, new RDN( "ou=Marketing" ), false );
+
+        DN newDn = new DN( "cn=JOhnny WAlkeR,ou=Marketing,o=Good Times Co." );
+        newDn.normalize( schemaManager.getNormalizerMapping() );
+        assertEquals( newDn, store.lookup( entryId ).getDn() );
+        assertEquals( newDn, store.getEntryDn( entryId ) );
+        assertEquals( 0.5, cache.getHitRatio(), 0 );
+
+        // A deleted entry is not cached anymore
+        store.delete( entryId );
+        assertNull( store.lookup( entryId ) );
+    }
 }
@@ -0,0 +1,239 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.xdbm;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.directory.shared.ldap.name.DN;
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * Tests the {@link EntryLocks} class.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class EntryLocksTest
+{
+    private EntryLocks locks;
+
+
+    @Before
+    public void createLocks()
+    {
+        locks = new EntryLocks();
+    }
+
+
+    /**
+     * A thread locking a request, and holding the locks until it is released.
+     */
+    private class Locker extends Thread
+    {
+        private final EntryLocks.Request request;
+        private final CountDownLatch locked = new CountDownLatch( 1 );
+        private final CountDownLatch released = new CountDownLatch( 1 );
+
+
+        private Locker( EntryLocks.Request request )
+        {
+            this.request = request;
+            start();
+        }
+
+
+        public void run()
+        {
+            try
+            {
+                locks.lock( request );
+                locked.countDown();
+                released.await();
+                locks.unlock( request );
+            }
+            catch ( InterruptedException e )
+            {
+                // Ends the thread
+            }
+        }
+
+
+        private boolean isLocked() throws InterruptedException
+        {
+            return locked.await( 200, TimeUnit.MILLISECONDS );
+        }
+
+
+        private void release() throws InterruptedException
+        {
+            released.countDown();
+            join();
+        }
+    }
+
+
+    private static DN dn( String name ) throws Exception
+    {
+        return new DN( name );
+    }
+
+
+    @Test
+    public void testSharedLocks() throws Exception
+    {
+        Locker first = new Locker( new EntryLocks.Request().shared( dn( "ou=a,ou=system" ) ) );
+        Locker second = new Locker( new EntryLocks.Request().shared( dn( "ou=a,ou=system" ) ) );
+
+        assertTrue( first.isLocked() );
+        assertTrue( second.isLocked() );
+        assertEquals( 2, locks.getLockCount() );
+
+        first.release();
+        second.release();
+        assertEquals( 0, locks.getLockCount() );
+    }
+
+
+    @Test
+    public void testExclusiveLock() throws Exception
+    {
+        Locker first = new Locker( new EntryLocks.Request().shared( dn( "ou=a,ou=system" ) ) );
+        assertTrue( first.isLocked() );
+
+        Locker second = new Locker( new EntryLocks.Request().exclusive( dn( "ou=a,ou=system" ) ) );
+        Locker other = new Locker( new EntryLocks.Request().exclusive( dn( "ou=b,ou=system" ) ) );
+        assertFalse( second.isLocked() );
+        assertTrue( other.isLocked() );
+
+        first.release();
+        assertTrue( second.isLocked() );
+
+        second.release();
+        other.release();
+    }
+
+
+    @Test
+    public void testSubtreeLock() throws Exception
+    {
+        Locker subtree = new Locker( new EntryLocks.Request().subtree( dn( "ou=a,ou=system" ) ) );
+        assertTrue( subtree.isLocked() );
+
+        // The ancestors, the siblings and the entries with a similar DN are not locked
+        Locker parent = new Locker( new EntryLocks.Request().shared( dn( "ou=system" ) ) );
+        Locker sibling = new Locker( new EntryLocks.Request().exclusive( dn( "cn=x,ou=ba,ou=system" ) ) );
+        Locker similar = new Locker( new EntryLocks.Request().exclusive( dn( "cn=x,ou=a,ou=systemx" ) ) );
+        assertTrue( parent.isLocked() );
+        assertTrue( sibling.isLocked() );
+        assertTrue( similar.isLocked() );
+
+        Locker child = new Locker( new EntryLocks.Request().shared( dn( "cn=x,ou=a,ou=system" ) ) );
+        Locker descendant = new Locker( new EntryLocks.Request().exclusive( dn( "cn=y,ou=b,ou=a,ou=system" ) ) );
+        assertFalse( child.isLocked() );
+        assertFalse( descendant.isLocked() );
+
+        subtree.release();
+        assertTrue( child.isLocked() );
+        assertTrue( descendant.isLocked() );
+
+        parent.release();
+        sibling.release();
+        similar.release();
+        child.release();
+        descendant.release();
+        assertEquals( 0, locks.getLockCount() );
+    }
+
+
+    @Test
+    public void testRequestsGrantedInOrder() throws Exception
+    {
+        Locker first = new Locker( new EntryLocks.Request().shared( dn( "cn=x,ou=a,ou=system" ) ) );
+        assertTrue( first.isLocked() );
+
+        // The subtree lock waits for the first lock, and the last one waits
+        // for the subtree lock, although it does not conflict with the first one
+        Locker subtree = new Locker( new EntryLocks.Request().subtree( dn( "ou=a,ou=system" ) ) );
+        assertFalse( subtree.isLocked() );
+        Locker last = new Locker( new EntryLocks.Request().shared( dn( "cn=x,ou=a,ou=system" ) ) );
+        assertFalse( last.isLocked() );
+
+        first.release();
+        assertTrue( subtree.isLocked() );
+        assertFalse( last.isLocked() );
+
+        subtree.release();
+        assertTrue( last.isLocked() );
+        last.release();
+    }
+
+
+    @Test
+    public void testNestedLocks() throws Exception
+    {
+        EntryLocks.Request outer = new EntryLocks.Request().subtree( dn( "ou=a,ou=system" ) );
+        EntryLocks.Request inner = new EntryLocks.Request().exclusive( dn( "cn=x,ou=a,ou=system" ) );
+
+        locks.lock( outer );
+
+        // A request conflicting with the outer one is queued
+        Locker waiting = new Locker( new EntryLocks.Request().exclusive( dn( "cn=x,ou=a,ou=system" ) ) );
+        assertFalse( waiting.isLocked() );
+
+        // The locks of a thread do not conflict, and are not queued behind
+        // the requests waiting for them
+        locks.lock( inner );
+        assertEquals( 2, locks.getLockCount() );
+
+        locks.unlock( inner );
+        assertFalse( waiting.isLocked() );
+        locks.unlock( outer );
+        assertTrue( waiting.isLocked() );
+        waiting.release();
+    }
+
+
+    @Test
+    public void testInterruptedRequest() throws Exception
+    {
+        Locker first = new Locker( new EntryLocks.Request().exclusive( dn( "ou=a,ou=system" ) ) );
+        assertTrue( first.isLocked() );
+
+        Locker interrupted = new Locker( new EntryLocks.Request().subtree( dn( "ou=system" ) ) );
+        Locker next = new Locker( new EntryLocks.Request().exclusive( dn( "ou=b,ou=system" ) ) );
+        assertFalse( next.isLocked() );
+
+        // The requests waiting behind the interrupted one are granted
+        interrupted.interrupt();
+        interrupted.join();
+        assertTrue( next.isLocked() );
+
+        first.release();
+        next.release();
+        assertEquals( 0, locks.getLockCount() );
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *  
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License. 
+ *  
+ */
+package org.apache.directory.server.xdbm;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+
+/**
+ * Tests the {@link IdBitmap} class.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class IdBitmapTest
+{
+    /**
+     * Creates a bitmap and the equivalent set, with ids spread in several
+     * containers, some of them stored as arrays and others as bitsets.
+     */
+    private IdBitmap create( TreeSet<Long> ids, long seed )
+    {
+        Random random = new Random( seed );
+        IdBitmap bitmap = new IdBitmap();
+
+        for ( int i = 0; i < 20000; i++ )
+        {
+            long id = ( i < 10000 ) ? random.nextInt( 65536 * 3 ) : random.nextInt( 5000 ) + 65536 * 5;
+            assertEquals( ids.add( id ), bitmap.add( id ) );
+        }
+
+        return bitmap;
+    }
+
+
+    private void assertIds( TreeSet<Long> ids, IdBitmap bitmap )
+    {
+        assertEquals( ids.size(), bitmap.size() );
+        assertEquals( ids.isEmpty(), bitmap.isEmpty() );
+
+        long id = -1;
+
+        for ( Long expected : ids )
+        {
+            id = bitmap.next( id );
+            assertEquals( expected.longValue(), id );
+            assertTrue( bitmap.contains( id ) );
+        }
+
+        assertEquals( -1, bitmap.next( id ) );
+
+        id = Long.MAX_VALUE;
+
+        for ( Long expected : ids.descendingSet() )
+        {
+            id = bitmap.previous( id );
+            assertEquals( expected.longValue(), id );
+        }
+
+        assertEquals( -1, bitmap.previous( id ) );
+    }
+
+
+    @Test
+    public void testAddRemove()
+    {
+        TreeSet<Long> ids = new TreeSet<Long>();
+        IdBitmap bitmap = create( ids, 1 );
+        assertIds( ids, bitmap );
+        assertEquals( ids.first().longValue(), bitmap.first() );
+        assertEquals( ids.last().longValue(), bitmap.last() );
+        assertFalse( bitmap.contains( 65536 * 4 ) );
+
+        Random random = new Random( 2 );
+
+        for ( int i = 0; i < 30000; i++ )
+        {
+            long id = ( i % 2 == 0 ) ? random.nextInt( 65536 * 3 ) : random.nextInt( 5000 ) + 65536 * 5;
+            assertEquals( ids.remove( id ), bitmap.remove( id ) );
+        }
+
+        assertIds( ids, bitmap );
+
+        for ( Long id : new TreeSet<Long>( ids ) )
+        {
+            assertTrue( bitmap.remove( id ) );
+        }
+
+        assertTrue( bitmap.isEmpty() );
+        assertEquals( -1, bitmap.first() );
+        assertEquals( -1, bitmap.last() );
+    }
+
+
+    @Test
+    public void testNegativeId()
+    {
+        IdBitmap bitmap = new IdBitmap();
+        assertFalse( bitmap.remove( -1 ) );
+        assertFalse( bitmap.contains( -1 ) );
+
+        try
+        {
+            bitmap.add( -1 );
+            fail();
+        }
+        catch ( IllegalArgumentException iae )
+        {
+            // Expected
+        }
+    }
+
+
+    @Test
+    public void testAndOrAndNot()
+    {
+        TreeSet<Long> ids1 = new TreeSet<Long>();
+        TreeSet<Long> ids2 = new TreeSet<Long>();
+        IdBitmap bitmap1 = create( ids1, 3 );
+        IdBitmap bitmap2 = create( ids2, 4 );
+        bitmap2.add( 65536L * 10 );
+        ids2.add( 65536L * 10 );
+
+        TreeSet<Long> and = new TreeSet<Long>( ids1 );
+        and.retainAll( ids2 );
+        assertIds( and, bitmap1.and( bitmap2 ) );
+
+        TreeSet<Long> or = new TreeSet<Long>( ids1 );
+        or.addAll( ids2 );
+        assertIds( or, bitmap1.or( bitmap2 ) );
+
+        TreeSet<Long> andNot = new TreeSet<Long>( ids1 );
+        andNot.removeAll( ids2 );
+        assertIds( andNot, bitmap1.andNot( bitmap2 ) );
+
+        // The operands are not modified
+        assertIds( ids1, bitmap1 );
+        assertIds( ids2, bitmap2 );
+    }
+
+
+    @Test
+    public void testSerializeContainers()
+    {
+        TreeSet<Long> ids = new TreeSet<Long>();
+        IdBitmap bitmap = create( ids, 5 );
+        IdBitmap copy = new IdBitmap();
+
+        for ( int i = 0; i < bitmap.getContainerCount(); i++ )
+        {
+            byte[] container = bitmap.serializeContainer( i );
+            long key = bitmap.getContainerKeyAt( i );
+            int cardinality = 0;
+
+            for ( Long id : ids )
+            {
+                if ( IdBitmap.getContainerKey( id ) == key )
+                {
+                    assertTrue( IdBitmap.contains( container, id ) );
+                    cardinality++;
+                }
+            }
+
+            long absent = ( key << 16 ) + 65535;
+            assertEquals( ids.contains( absent ), IdBitmap.contains( container, absent ) );
+            assertEquals( cardinality, IdBitmap.getCardinality( container ) );
+            copy.addContainer( key, container );
+        }
+
+        assertIds( ids, copy );
+    }
+}
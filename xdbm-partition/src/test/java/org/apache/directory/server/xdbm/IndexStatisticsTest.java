@@ -0,0 +1,250 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.xdbm;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.directory.server.core.partition.impl.btree.IndexCursorAdaptor;
+import org.apache.directory.shared.ldap.cursor.Cursor;
+import org.apache.directory.shared.ldap.cursor.ListCursor;
+import org.apache.directory.shared.ldap.cursor.Tuple;
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * Tests the {@link IndexStatistics} class.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class IndexStatisticsTest
+{
+    private static final Comparator<String> COMPARATOR = new Comparator<String>()
+    {
+        public int compare( String s1, String s2 )
+        {
+            return s1.compareTo( s2 );
+        }
+    };
+
+    /** The tuples of the index, sorted by value */
+    private List<Tuple<String, Long>> tuples;
+
+    private IndexStatistics<String> statistics;
+
+
+    /**
+     * An index reading the tuples of the test.
+     */
+    private class ListIndex extends GenericIndex<String, Object, Long>
+    {
+        private ListIndex()
+        {
+            super( "cn" );
+        }
+
+
+        public int count()
+        {
+            return tuples.size();
+        }
+
+
+        @SuppressWarnings("unchecked")
+        public IndexCursor<String, Object, Long> forwardCursor()
+        {
+            return new IndexCursorAdaptor<String, Object, Long>( ( Cursor ) new ListCursor<Tuple<String, Long>>(
+                tuples ), true );
+        }
+    }
+
+
+    /**
+     * Creates an index of 10000 tuples : the value "common" has 2000 tuples,
+     * and the values "v0000" to "v7999" have one tuple each.
+     */
+    @Before
+    public void createIndex() throws Exception
+    {
+        tuples = new ArrayList<Tuple<String, Long>>();
+        long id = 1;
+
+        for ( int i = 0; i < 2000; i++ )
+        {
+            tuples.add( new Tuple<String, Long>( "common", id++ ) );
+        }
+
+        for ( int i = 0; i < 8000; i++ )
+        {
+            tuples.add( new Tuple<String, Long>( String.format( "v%04d", i ), id++ ) );
+        }
+
+        statistics = new IndexStatistics<String>( COMPARATOR );
+        statistics.rebuild( new ListIndex() );
+    }
+
+
+    @Test
+    public void testRebuild()
+    {
+        assertEquals( 10000, statistics.getCount() );
+        assertEquals( 8001, statistics.getDistinctCount() );
+        assertEquals( 0, statistics.getModifications() );
+        assertFalse( statistics.isStale() );
+    }
+
+
+    @Test
+    public void testEstimateCount()
+    {
+        // The most frequent value is counted exactly
+        assertEquals( 2000, statistics.estimateCount( "common" ) );
+
+        // The other values have the average count of the values not kept
+        assertEquals( 1, statistics.estimateCount( "v0042" ) );
+        assertEquals( 1, statistics.estimateCount( "unknown" ) );
+    }
+
+
+    @Test
+    public void testEstimateRangeCount()
+    {
+        assertEquals( 10000, statistics.estimateRangeCount( null, null ) );
+
+        // 4000 values between "v2000" and "v5999", the buckets are about 156 tuples deep
+        long estimated = statistics.estimateRangeCount( "v2000", "v5999" );
+        assertTrue( estimated > 3800 && estimated < 4200 );
+
+        estimated = statistics.estimateRangeCount( "v6000", null );
+        assertTrue( estimated > 1800 && estimated < 2200 );
+
+        estimated = statistics.estimateRangeCount( null, "common" );
+        assertTrue( estimated > 1800 && estimated < 2200 );
+
+        // A prefix range
+        estimated = statistics.estimateRangeCount( "v1", "v1\uffff" );
+        assertTrue( estimated > 800 && estimated < 1200 );
+    }
+
+
+    @Test
+    public void testAddAndDrop()
+    {
+        statistics.add( "common", false );
+        statistics.add( "new", true );
+        assertEquals( 10002, statistics.getCount() );
+        assertEquals( 8002, statistics.getDistinctCount() );
+        assertEquals( 2001, statistics.estimateCount( "common" ) );
+
+        statistics.drop( "common", false );
+        statistics.drop( "new", true );
+        statistics.drop( "v0000", true );
+        assertEquals( 9999, statistics.getCount() );
+        assertEquals( 8000, statistics.getDistinctCount() );
+        assertEquals( 2000, statistics.estimateCount( "common" ) );
+        assertEquals( 5, statistics.getModifications() );
+    }
+
+
+    @Test
+    public void testStale()
+    {
+        // A fifth of the index, and a minimum number of modifications
+        for ( int i = 0; i < 3000; i++ )
+        {
+            statistics.add( "w" + i, true );
+        }
+
+        assertFalse( statistics.isStale() );
+
+        for ( int i = 0; i < 1000; i++ )
+        {
+            statistics.drop( "w" + i, true );
+        }
+
+        assertTrue( statistics.isStale() );
+    }
+
+
+    @Test
+    public void testModifiedWhileRebuilt() throws Exception
+    {
+        final List<Long> estimates = new ArrayList<Long>();
+
+        // The statistics are read and updated by another thread during the scan
+        statistics.rebuild( new ListIndex()
+        {
+            public IndexCursor<String, Object, Long> forwardCursor()
+            {
+                Thread writer = new Thread()
+                {
+                    public void run()
+                    {
+                        statistics.add( "new", true );
+                        estimates.add( statistics.estimateCount( "common" ) );
+                    }
+                };
+
+                writer.start();
+
+                try
+                {
+                    writer.join( 10000 );
+                }
+                catch ( InterruptedException ie )
+                {
+                    Thread.currentThread().interrupt();
+                }
+
+                return super.forwardCursor();
+            }
+        } );
+
+        assertEquals( 1, estimates.size() );
+        assertEquals( 2000, estimates.get( 0 ).longValue() );
+
+        // The value added during the scan is not in the index read
+        assertEquals( 10000, statistics.getCount() );
+        assertEquals( 1, statistics.getModifications() );
+    }
+
+
+    @Test
+    public void testEmpty() throws Exception
+    {
+        tuples.clear();
+        statistics.rebuild( new ListIndex() );
+
+        assertEquals( 0, statistics.getCount() );
+        assertEquals( 0, statistics.estimateCount( "common" ) );
+        assertEquals( 0, statistics.estimateRangeCount( null, null ) );
+
+        statistics.add( "common", true );
+        assertEquals( 1, statistics.estimateCount( "common" ) );
+        assertEquals( 1, statistics.estimateRangeCount( "a", "z" ) );
+    }
+}
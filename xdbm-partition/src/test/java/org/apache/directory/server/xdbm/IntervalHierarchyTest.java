@@ -0,0 +1,239 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.xdbm;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * Tests the {@link IntervalHierarchy} class.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class IntervalHierarchyTest
+{
+    private IntervalHierarchy<Long> hierarchy;
+
+
+    /**
+     * Creates a context entry 1 with the children 2 and 3, and the
+     * grand children 4 and 5 under 2.
+     */
+    @Before
+    public void createHierarchy()
+    {
+        hierarchy = new IntervalHierarchy<Long>( 0L );
+        hierarchy.add( 0L, 1L );
+        hierarchy.add( 1L, 2L );
+        hierarchy.add( 1L, 3L );
+        hierarchy.add( 2L, 4L );
+        hierarchy.add( 2L, 5L );
+    }
+
+
+    private List<Long> readSubtree( long baseId ) throws Exception
+    {
+        List<Long> ids = new ArrayList<Long>();
+        IndexCursor<Long, Object, Long> cursor = hierarchy.subtreeCursor( baseId );
+
+        while ( cursor.next() )
+        {
+            assertEquals( baseId, ( long ) cursor.get().getValue() );
+            ids.add( cursor.get().getId() );
+        }
+
+        cursor.close();
+
+        return ids;
+    }
+
+
+    @Test
+    public void testAdd() throws Exception
+    {
+        assertEquals( 5, hierarchy.getSubtreeSize( 1L ) );
+        assertEquals( 3, hierarchy.getSubtreeSize( 2L ) );
+        assertEquals( 1, hierarchy.getSubtreeSize( 3L ) );
+        assertEquals( 0, hierarchy.getSubtreeSize( 6L ) );
+
+        assertTrue( hierarchy.isInSubtree( 1L, 5L ) );
+        assertTrue( hierarchy.isInSubtree( 2L, 2L ) );
+        assertFalse( hierarchy.isInSubtree( 3L, 4L ) );
+        assertFalse( hierarchy.isInSubtree( 4L, 2L ) );
+
+        assertEquals( "[1, 2, 4, 5, 3]", readSubtree( 1L ).toString() );
+        assertEquals( "[2, 4, 5]", readSubtree( 2L ).toString() );
+        assertEquals( "[]", readSubtree( 6L ).toString() );
+    }
+
+
+    @Test
+    public void testDelete() throws Exception
+    {
+        hierarchy.delete( 4L );
+
+        assertEquals( 4, hierarchy.getSubtreeSize( 1L ) );
+        assertFalse( hierarchy.isInSubtree( 2L, 4L ) );
+        assertEquals( "[2, 5]", readSubtree( 2L ).toString() );
+    }
+
+
+    @Test
+    public void testMove() throws Exception
+    {
+        hierarchy.move( 2L, 3L );
+
+        assertEquals( 4, hierarchy.getSubtreeSize( 3L ) );
+        assertTrue( hierarchy.isInSubtree( 3L, 5L ) );
+        assertEquals( "[1, 3, 2, 4, 5]", readSubtree( 1L ).toString() );
+        assertEquals( "[3, 2, 4, 5]", readSubtree( 3L ).toString() );
+
+        hierarchy.move( 4L, 1L );
+
+        assertEquals( 3, hierarchy.getSubtreeSize( 3L ) );
+        assertFalse( hierarchy.isInSubtree( 3L, 4L ) );
+        assertEquals( "[1, 3, 2, 5, 4]", readSubtree( 1L ).toString() );
+    }
+
+
+    @Test
+    public void testRelabel() throws Exception
+    {
+        // Many more children than free slots, and a deep branch
+        for ( long id = 10; id < 10000; id++ )
+        {
+            hierarchy.add( 3L, id );
+        }
+
+        long parentId = 5L;
+
+        for ( long id = 10000; id < 10500; id++ )
+        {
+            hierarchy.add( parentId, id );
+            parentId = id;
+        }
+
+        assertEquals( 9991, hierarchy.getSubtreeSize( 3L ) );
+        assertEquals( 503, hierarchy.getSubtreeSize( 2L ) );
+        assertTrue( hierarchy.isInSubtree( 2L, 10499L ) );
+        assertFalse( hierarchy.isInSubtree( 3L, 10499L ) );
+        assertTrue( hierarchy.isInSubtree( 3L, 9999L ) );
+
+        // The children are read in the order they have been added
+        List<Long> ids = readSubtree( 3L );
+        assertEquals( 9991, ids.size() );
+
+        for ( int i = 1; i < ids.size(); i++ )
+        {
+            assertEquals( i + 9, ( long ) ids.get( i ) );
+        }
+
+        hierarchy.move( 2L, 9999L );
+        assertEquals( 10494, hierarchy.getSubtreeSize( 3L ) );
+        assertTrue( hierarchy.isInSubtree( 3L, 10499L ) );
+    }
+
+
+    @Test
+    public void testCursorWhileRelabeled() throws Exception
+    {
+        IndexCursor<Long, Object, Long> cursor = hierarchy.subtreeCursor( 2L );
+        assertTrue( cursor.next() );
+        assertTrue( cursor.next() );
+        assertEquals( 4L, ( long ) cursor.get().getId() );
+
+        // Relabels the subtree
+        for ( long id = 10; id < 1000; id++ )
+        {
+            hierarchy.add( 2L, id );
+        }
+
+        hierarchy.move( 3L, 2L );
+
+        assertTrue( cursor.next() );
+        assertEquals( 5L, ( long ) cursor.get().getId() );
+        assertTrue( cursor.previous() );
+        assertEquals( 4L, ( long ) cursor.get().getId() );
+
+        int count = 2;
+
+        while ( cursor.next() )
+        {
+            count++;
+        }
+
+        assertEquals( hierarchy.getSubtreeSize( 2L ), count );
+    }
+
+
+    @Test
+    public void testCursorWhileMoved() throws Exception
+    {
+        for ( long id = 10; id < 200; id++ )
+        {
+            hierarchy.add( 2L, id );
+        }
+
+        final List<Throwable> failures = new ArrayList<Throwable>();
+
+        // The subtree of 2 moves back and forth under 1, without leaving it
+        Thread mover = new Thread()
+        {
+            public void run()
+            {
+                try
+                {
+                    for ( int i = 0; i < 200; i++ )
+                    {
+                        hierarchy.move( 2L, ( i % 2 == 0 ) ? 3L : 1L );
+                    }
+                }
+                catch ( Throwable t )
+                {
+                    failures.add( t );
+                }
+            }
+        };
+
+        mover.start();
+
+        // The base of a subtree being relabeled is always found
+        while ( mover.isAlive() )
+        {
+            IndexCursor<Long, Object, Long> cursor = hierarchy.subtreeCursor( 2L );
+            assertTrue( cursor.first() );
+            assertEquals( 2L, ( long ) cursor.get().getId() );
+            cursor.close();
+        }
+
+        mover.join();
+        assertTrue( failures.isEmpty() );
+        assertEquals( 193, readSubtree( 2L ).size() );
+    }
+}
@@ -42,6 +42,7 @@ import org.apache.directory.server.xdbm.GenericIndex;
 import org.apache.directory.server.xdbm.Index;
 import org.apache.directory.server.xdbm.IndexEntry;
 import org.apache.directory.server.xdbm.IndexNotFoundException;
+import org.apache.directory.server.xdbm.IntervalHierarchy;
 import org.apache.directory.server.xdbm.StoreUtils;
 import org.apache.directory.shared.ldap.constants.SchemaConstants;
 import org.apache.directory.shared.ldap.csn.CsnFactory;
@@ -167,10 +168,6 @@ public class AvlStoreTest
         store.addIndex( new AvlIndex<Long, Attributes>( ApacheSchemaConstants.APACHE_ONE_LEVEL_AT_OID ) );
         assertNotNull( store.getOneLevelIndex() );
 
-        assertNull( store.getSubLevelIndex() );
-        store.addIndex( new AvlIndex<Long, Attributes>( ApacheSchemaConstants.APACHE_SUB_LEVEL_AT_OID ) );
-        assertNotNull( store.getSubLevelIndex() );
-
         assertNull( store.getId() );
         store.setId( "foo" );
         assertEquals( "foo", store.getId() );
@@ -246,16 +243,6 @@ public class AvlStoreTest
         {
         }
 
-        assertNotNull( store.getSubLevelIndex() );
-        try
-        {
-            store.addIndex( new AvlIndex<Long, Entry>( ApacheSchemaConstants.APACHE_SUB_LEVEL_AT_OID ) );
-            fail();
-        }
-        catch ( IllegalStateException e )
-        {
-        }
-
         assertNotNull( store.getId() );
         try
         {
@@ -438,13 +425,16 @@ public class AvlStoreTest
 
 
     @Test
-    public void testSubLevelIndex() throws Exception
+    public void testHierarchy() throws Exception
     {
-        Index idx = store.getSubLevelIndex();
+        IntervalHierarchy<Long> hierarchy = store.getHierarchy();
 
-        assertEquals( 19, idx.count() );
+        assertEquals( 11, hierarchy.getSubtreeSize( 1L ) );
+        assertEquals( 3, hierarchy.getSubtreeSize( 2L ) );
+        assertTrue( hierarchy.isInSubtree( 2L, 5L ) );
+        assertFalse( hierarchy.isInSubtree( 3L, 5L ) );
 
-        Cursor<IndexEntry<Long, Attributes, Long>> cursor = idx.forwardCursor( 2L );
+        Cursor<IndexEntry<Long, Attributes, Long>> cursor = hierarchy.subtreeCursor( 2L );
 
         assertTrue( cursor.next() );
         assertEquals( 2, ( long ) cursor.get().getId() );
@@ -457,9 +447,9 @@ public class AvlStoreTest
 
         assertFalse( cursor.next() );
 
-        idx.drop( 5L );
+        hierarchy.delete( 5L );
 
-        cursor = idx.forwardCursor( 2L );
+        cursor = hierarchy.subtreeCursor( 2L );
 
         assertTrue( cursor.next() );
         assertEquals( 2, ( long ) cursor.get().getId() );
@@ -480,7 +470,7 @@ public class AvlStoreTest
         entry.add( "entryUUID", UUID.randomUUID().toString() );
         store.add( entry );
 
-        cursor = idx.forwardCursor( 2L );
+        cursor = hierarchy.subtreeCursor( 2L );
         cursor.afterLast();
         assertTrue( cursor.previous() );
         assertEquals( 12, ( long ) cursor.get().getId() );
@@ -491,7 +481,7 @@ public class AvlStoreTest
         DN newDn = ((DN)newParentDn.clone()).add( martinDn.getRdn() );
         store.move( martinDn, newParentDn, newDn, new ClonedServerEntry( entry ) );
 
-        cursor = idx.forwardCursor( 3L );
+        cursor = hierarchy.subtreeCursor( 3L );
         cursor.afterLast();
         assertTrue( cursor.previous() );
         assertEquals( 12, ( long ) cursor.get().getId() );
@@ -520,7 +510,7 @@ public class AvlStoreTest
         newDn = ((DN)newParentDn.clone()).add( marketingDn.getRdn() );
         store.move( marketingDn, newParentDn, newDn, new ClonedServerEntry( entry ) );
 
-        cursor = idx.forwardCursor( 3L );
+        cursor = hierarchy.subtreeCursor( 3L );
         cursor.afterLast();
 
         assertTrue( cursor.previous() );
@@ -545,6 +535,10 @@ public class AvlStoreTest
         assertEquals( 3, ( long ) cursor.get().getId() );
 
         assertFalse( cursor.previous() );
+
+        assertEquals( 7, hierarchy.getSubtreeSize( 3L ) );
+        assertTrue( hierarchy.isInSubtree( 3L, 14L ) );
+        assertFalse( hierarchy.isInSubtree( 2L, 14L ) );
     }
 
 
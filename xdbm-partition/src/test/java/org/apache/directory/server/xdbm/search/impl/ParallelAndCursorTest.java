@@ -0,0 +1,272 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *  
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License. 
+ *  
+ */
+package org.apache.directory.server.xdbm.search.impl;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.directory.server.xdbm.IndexCursor;
+import org.apache.directory.server.xdbm.Store;
+import org.apache.directory.server.xdbm.StoreUtils;
+import org.apache.directory.server.xdbm.impl.avl.AvlIndex;
+import org.apache.directory.server.xdbm.impl.avl.AvlStore;
+import org.apache.directory.shared.ldap.constants.SchemaConstants;
+import org.apache.directory.shared.ldap.entry.Entry;
+import org.apache.directory.shared.ldap.filter.ExprNode;
+import org.apache.directory.shared.ldap.filter.FilterParser;
+import org.apache.directory.shared.ldap.schema.SchemaManager;
+import org.apache.directory.shared.ldap.schema.ldif.extractor.SchemaLdifExtractor;
+import org.apache.directory.shared.ldap.schema.ldif.extractor.impl.DefaultSchemaLdifExtractor;
+import org.apache.directory.shared.ldap.schema.loader.ldif.LdifSchemaLoader;
+import org.apache.directory.shared.ldap.schema.manager.impl.DefaultSchemaManager;
+import org.apache.directory.shared.ldap.util.LdapExceptionUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * 
+ * Test class for ParallelAndCursor.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class ParallelAndCursorTest
+{
+    private static final Logger LOG = LoggerFactory.getLogger( ParallelAndCursorTest.class.getSimpleName() );
+
+    File wkdir;
+    Store<Entry, Long> store;
+    EvaluatorBuilder evaluatorBuilder;
+    CursorBuilder cursorBuilder;
+    ExecutorService executor;
+    private static SchemaManager schemaManager;
+
+
+    @BeforeClass
+    public static void setup() throws Exception
+    {
+        // setup the standard registries
+        String workingDirectory = System.getProperty( "workingDirectory" );
+
+        if ( workingDirectory == null )
+        {
+            String path = ParallelAndCursorTest.class.getResource( "" ).getPath();
+            int targetPos = path.indexOf( "target" );
+            workingDirectory = path.substring( 0, targetPos + 6 );
+        }
+
+        File schemaRepository = new File( workingDirectory, "schema" );
+        SchemaLdifExtractor extractor = new DefaultSchemaLdifExtractor( new File( workingDirectory ) );
+        extractor.extractOrCopy( true );
+        LdifSchemaLoader loader = new LdifSchemaLoader( schemaRepository );
+        schemaManager = new DefaultSchemaManager( loader );
+
+        boolean loaded = schemaManager.loadAllEnabled();
+
+        if ( !loaded )
+        {
+            fail( "Schema load failed : " + LdapExceptionUtils.printErrors( schemaManager.getErrors() ) );
+        }
+
+        loaded = schemaManager.loadWithDeps( "collective" );
+
+        if ( !loaded )
+        {
+            fail( "Schema load failed : " + LdapExceptionUtils.printErrors( schemaManager.getErrors() ) );
+        }
+    }
+
+
+    public ParallelAndCursorTest() throws Exception
+    {
+    }
+
+
+    @Before
+    public void createStore() throws Exception
+    {
+        destroyStore();
+
+        // setup the working directory for the store
+        wkdir = File.createTempFile( getClass().getSimpleName(), "db" );
+        wkdir.delete();
+        wkdir = new File( wkdir.getParentFile(), getClass().getSimpleName() );
+        wkdir.mkdirs();
+
+        // initialize the store
+        store = new AvlStore<Entry>();
+        store.setId( "example" );
+        store.setCacheSize( 10 );
+        store.setPartitionDir( wkdir );
+        store.setSyncOnWrite( false );
+
+        store.addIndex( new AvlIndex( SchemaConstants.OU_AT_OID ) );
+        store.addIndex( new AvlIndex( SchemaConstants.CN_AT_OID ) );
+        StoreUtils.loadExampleData( store, schemaManager );
+
+        evaluatorBuilder = new EvaluatorBuilder( store, schemaManager );
+        cursorBuilder = new CursorBuilder( store, evaluatorBuilder );
+        executor = Executors.newFixedThreadPool( 2 );
+
+        LOG.debug( "Created new store" );
+    }
+
+
+    @After
+    public void destroyStore() throws Exception
+    {
+        if ( executor != null )
+        {
+            executor.shutdown();
+        }
+
+        executor = null;
+
+        if ( store != null )
+        {
+            store.destroy();
+        }
+
+        store = null;
+        if ( wkdir != null )
+        {
+            FileUtils.deleteDirectory( wkdir );
+        }
+
+        wkdir = null;
+    }
+
+
+    @SuppressWarnings("unchecked")
+    private IndexCursor<Object, Entry, Long> buildCursor( String filter, boolean ordered ) throws Exception
+    {
+        ExprNode exprNode = FilterParser.parse( filter );
+        AndCursor<Object, Long> andCursor = ( AndCursor<Object, Long> ) cursorBuilder.build( exprNode );
+
+        return new ParallelAndCursor<Object, Long>( store, andCursor.getWrapped(), andCursor.getEvaluators(),
+            executor, 2, ordered );
+    }
+
+
+    @Test
+    public void testOrderedCursor() throws Exception
+    {
+        IndexCursor<Object, Entry, Long> cursor = buildCursor( "(&(cn=J*)(sn=*))", true );
+
+        cursor.beforeFirst();
+
+        assertTrue( cursor.next() );
+        assertTrue( cursor.available() );
+        assertEquals( 8, ( long ) cursor.get().getId() );
+        assertEquals( "jack daniels", cursor.get().getValue() );
+
+        // The entries are fetched by the evaluating threads
+        assertNotNull( cursor.get().getObject() );
+
+        assertTrue( cursor.next() );
+        assertTrue( cursor.available() );
+        assertEquals( 6, ( long ) cursor.get().getId() );
+        assertEquals( "jim bean", cursor.get().getValue() );
+
+        assertTrue( cursor.next() );
+        assertTrue( cursor.available() );
+        assertEquals( 5, ( long ) cursor.get().getId() );
+        assertEquals( "johnny walker", cursor.get().getValue() );
+
+        assertFalse( cursor.next() );
+        assertFalse( cursor.available() );
+
+        cursor.close();
+        assertTrue( cursor.isClosed() );
+    }
+
+
+    @Test
+    public void testUnorderedCursor() throws Exception
+    {
+        IndexCursor<Object, Entry, Long> cursor = buildCursor( "(&(cn=J*)(sn=*))", false );
+        Set<Long> ids = new HashSet<Long>();
+
+        cursor.beforeFirst();
+
+        while ( cursor.next() )
+        {
+            assertNotNull( cursor.get().getObject() );
+            ids.add( cursor.get().getId() );
+        }
+
+        assertEquals( 3, ids.size() );
+        assertTrue( ids.contains( 5L ) );
+        assertTrue( ids.contains( 6L ) );
+        assertTrue( ids.contains( 8L ) );
+
+        cursor.close();
+    }
+
+
+    @Test
+    public void testStepBack() throws Exception
+    {
+        IndexCursor<Object, Entry, Long> cursor = buildCursor( "(&(cn=J*)(sn=*))", true );
+
+        cursor.beforeFirst();
+
+        assertTrue( cursor.next() );
+        assertTrue( cursor.next() );
+        assertEquals( 6, ( long ) cursor.get().getId() );
+
+        // The search handler moves back once it has checked for another entry
+        assertTrue( cursor.previous() );
+        assertEquals( 8, ( long ) cursor.get().getId() );
+
+        assertTrue( cursor.next() );
+        assertEquals( 6, ( long ) cursor.get().getId() );
+        assertTrue( cursor.next() );
+        assertEquals( 5, ( long ) cursor.get().getId() );
+        assertFalse( cursor.next() );
+
+        // Moving back from the end
+        assertTrue( cursor.previous() );
+        assertEquals( 5, ( long ) cursor.get().getId() );
+        assertFalse( cursor.next() );
+
+        // Starting again
+        cursor.beforeFirst();
+        assertTrue( cursor.next() );
+        assertEquals( 8, ( long ) cursor.get().getId() );
+
+        cursor.close();
+    }
+}